@@ -15,6 +15,8 @@
  */
 package org.modeshape.jcr.api;
 
+import java.io.File;
+
 /**
  * Class which allows a customization of the backup process.
  * 
@@ -32,12 +34,34 @@ public abstract class BackupOptions {
      * The number of documents read form the persistent store and written in a backup file in one unit
      */
     public static final int DEFAULT_BATCH_SIZE = 10000;
+
+    /**
+     * The default number of threads that concurrently read batches of documents and write them to separate backup files.
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
     
     /**
      * Default backup options which will be used when a backup is performed without an explicit set of options.
      */
     public static final BackupOptions DEFAULT = new BackupOptions(){};
 
+    /**
+     * The formats in which the documents of a backup can be written.
+     *
+     * @since 5.5
+     */
+    public enum DocumentFormat {
+        /**
+         * Each document is written as JSON on a separate line, and each backup file is compressed as a whole.
+         */
+        JSON,
+        /**
+         * The documents are written as BSON in segments, each of which is compressed separately and has a checksum. Such files
+         * are more compact and faster to restore, and they can be verified without reading the documents.
+         */
+        BSON
+    }
+
     /**
      * Whether or not binary data should be part of the backup or not. Since ModeShape stores references from the schematic documents
      * toward the binary values which are being used, it might not always be desired to do a full binary backup.
@@ -71,6 +95,46 @@ public abstract class BackupOptions {
         return DEFAULT_BATCH_SIZE;
     }
 
+    /**
+     * Return the number of threads that concurrently read batches of documents (and binary values) from the repository and
+     * write them to the backup. Each thread writes to its own backup files, so a larger value results in more (and smaller)
+     * files.
+     *
+     * @return the number of threads; defaults to {@value #DEFAULT_PARALLELISM}
+     * @since 5.5
+     */
+    public int parallelism() {
+        return DEFAULT_PARALLELISM;
+    }
+
+    /**
+     * Return the directory of a previous (full or incremental) backup of the same repository, in which case an incremental
+     * backup is made that contains only the documents and binary values that were changed since the previous backup was made.
+     * Such backups are restored by restoring the full backup they are based upon, followed by each of the incremental backups
+     * in turn (see {@link RestoreOptions#incrementalBackupDirectories()}).
+     * <p>
+     * Incremental backups rely upon the repository's change journal, so journaling must be enabled and the journal must still
+     * contain the changes made since the previous backup.
+     * </p>
+     *
+     * @return the directory of the previous backup, or {@code null} if a full backup should be made; defaults to {@code null}
+     * @since 5.5
+     */
+    public File previousBackupDirectory() {
+        return null;
+    }
+
+    /**
+     * Return the format in which the documents are written to the backup files. A backup made in either format can be restored
+     * using the same {@link RestoreOptions}.
+     *
+     * @return the format; defaults to {@link DocumentFormat#JSON}
+     * @since 5.5
+     */
+    public DocumentFormat documentFormat() {
+        return DocumentFormat.JSON;
+    }
+
     /**
      * Return whether or not each backup file (which contains multiple documents) should be compressed or not.
      *
@@ -85,8 +149,13 @@ public abstract class BackupOptions {
         StringBuilder builder = new StringBuilder("[backup_options: ");
         builder.append("include binaries=").append(includeBinaries());
         builder.append(", batch size=").append(batchSize());
+        builder.append(", parallelism=").append(parallelism());
         builder.append(", documents per file=").append(documentsPerFile());
         builder.append(", compress=").append(compress());
+        builder.append(", format=").append(documentFormat());
+        if (previousBackupDirectory() != null) {
+            builder.append(", previous backup=").append(previousBackupDirectory());
+        }
         builder.append("]");
         return builder.toString();
     }
@@ -16,11 +16,15 @@
 package org.modeshape.jcr.api;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import javax.jcr.RepositoryException;
 
 /**
- * An extension of the standard {@link javax.jcr.Binary} interface, with methods to obtain the SHA-1 hash of the binary value.
+ * An extension of the standard {@link javax.jcr.Binary} interface, with methods to obtain the SHA-1 hash of the binary value and
+ * to efficiently read ranges of the content.
  */
 public interface Binary extends javax.jcr.Binary {
 
@@ -71,4 +75,100 @@ public interface Binary extends javax.jcr.Binary {
      */
     public String getMimeType( String name ) throws IOException, RepositoryException;
 
+    /**
+     * Get a stream to a range of the content. Unlike skipping over the stream returned by {@link #getStream()}, implementations
+     * will generally start reading the content at the given offset.
+     * <p>
+     * <b>Caution:</b> always consume the {@link InputStream} using a {@code try-with-resources} idiom to ensure it's properly
+     * closed.
+     * </p>
+     *
+     * @param offset the position of the first byte to be read; must be non-negative
+     * @param length the maximum number of bytes to be read; the stream will end sooner if the content ends first
+     * @return the stream; never null
+     * @throws RepositoryException if an error occurs.
+     * @see #getStream()
+     */
+    default InputStream getStream( long offset,
+                                   long length ) throws RepositoryException {
+        if (offset < 0L) throw new IllegalArgumentException("The offset may not be negative: " + offset);
+        if (length < 0L) throw new IllegalArgumentException("The length may not be negative: " + length);
+        InputStream stream = getStream();
+        try {
+            long remaining = offset;
+            while (remaining > 0L) {
+                long skipped = stream.skip(remaining);
+                if (skipped <= 0L) {
+                    if (stream.read() == -1) break;
+                    skipped = 1L;
+                }
+                remaining -= skipped;
+            }
+        } catch (IOException e) {
+            try {
+                stream.close();
+            } catch (IOException ignored) {
+                // the original problem is more important
+            }
+            throw new RepositoryException(e);
+        }
+        return new InputStream() {
+            private long remaining = length;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining <= 0L) return -1;
+                int result = stream.read();
+                if (result != -1) --remaining;
+                return result;
+            }
+
+            @Override
+            public int read( byte[] b,
+                             int off,
+                             int len ) throws IOException {
+                if (len == 0) return 0;
+                if (remaining <= 0L) return -1;
+                int count = stream.read(b, off, (int)Math.min(len, remaining));
+                if (count > 0) remaining -= count;
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                stream.close();
+            }
+        };
+    }
+
+    /**
+     * Write a range of the content to the supplied channel. Implementations backed by files hand the content to
+     * {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel)}, which avoids copying it through the
+     * heap only when the target is a file or socket channel; content written to any other channel is still copied.
+     *
+     * @param offset the position of the first byte to be written; must be non-negative
+     * @param length the maximum number of bytes to be written; fewer bytes are written if the content ends first
+     * @param target the channel to which the content should be written; may not be null
+     * @return the number of bytes that were written
+     * @throws IOException if there is a problem reading the content or writing to the channel
+     * @throws RepositoryException if an error occurs.
+     */
+    default long transferTo( long offset,
+                             long length,
+                             WritableByteChannel target ) throws IOException, RepositoryException {
+        try (InputStream stream = getStream(offset, length)) {
+            byte[] buffer = new byte[8192];
+            long total = 0L;
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+                while (bytes.hasRemaining()) {
+                    target.write(bytes);
+                }
+                total += count;
+            }
+            return total;
+        }
+    }
+
 }
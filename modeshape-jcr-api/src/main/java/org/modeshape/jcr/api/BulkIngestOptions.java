@@ -0,0 +1,56 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.api;
+
+/**
+ * Class which allows a customization of a {@link BulkIngester bulk ingest}.
+ *
+ * @since 5.5
+ */
+public abstract class BulkIngestOptions {
+
+    /**
+     * The default number of nodes which are written to the persistent store in a single transaction.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 10000;
+
+    /**
+     * Default bulk ingest options which will be used when an ingest is performed without an explicit set of options.
+     */
+    public static final BulkIngestOptions DEFAULT = new BulkIngestOptions() {};
+
+    /**
+     * Return the number of nodes that should be accumulated in memory and then written to the persistent store in one
+     * transaction.
+     * <p>
+     * This is a setting that can be used to influence the memory and throughput of the ingest: larger batches mean fewer
+     * transactions, but also more documents which have to be held in memory and written at once.
+     * </p>
+     *
+     * @return the number of nodes; defaults to {@value #DEFAULT_BATCH_SIZE}
+     */
+    public int batchSize() {
+        return DEFAULT_BATCH_SIZE;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("[bulk_ingest_options: ");
+        builder.append("batch size=").append(batchSize());
+        builder.append("]");
+        return builder.toString();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.api;
+
+import java.util.Map;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+
+/**
+ * A component which writes large amounts of new content directly to the persistent store, without building the transient
+ * state of a {@link Session}. Each node is validated against the registered node types when it is added, and the nodes are
+ * then written to the store in large batches, each in its own transaction.
+ * <p>
+ * This is meant for initial loads and migrations, and trades some of the regular JCR semantics for throughput:
+ * <ul>
+ * <li>the events for the nodes of a batch (which are journaled and indexed like any other changes) are only fired once the
+ * whole batch has been written;</li>
+ * <li>nodes are only ever appended, and each batch is visible to other sessions as soon as it has been written, regardless of
+ * the nodes which are still to follow;</li>
+ * <li>versionable, shareable and unordered collection nodes, nodes with an ETag or with auto-created child nodes, and
+ * properties with (weak) references are not supported, and must be created through a regular session.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * Instances are obtained via {@link Session#bulkIngester(BulkIngestOptions)}, are not thread-safe, and must be
+ * {@link #close() closed} in order to write the last batch. If a batch cannot be written, its nodes are discarded and the
+ * ingester is closed.
+ * </p>
+ *
+ * @since 5.5
+ */
+public interface BulkIngester extends AutoCloseable {
+
+    /**
+     * Add a new node. The node is validated against the node types of its parent, but is only written to the persistent store
+     * with the batch it belongs to.
+     *
+     * @param parentIdentifier the {@link javax.jcr.Node#getIdentifier() identifier} of the parent, which is either an existing
+     *        node or a node previously added via this ingester; may not be null
+     * @param name the name of the new node, without any same-name-sibling index; may not be null
+     * @param primaryType the name of the primary type of the new node; may not be null
+     * @param mixinTypes the names of the mixin types of the new node; may be null or empty
+     * @param properties the properties of the new node, keyed by their names; each value is either a {@link Value} for a
+     *        single-valued property or a {@link Value}[] for a multi-valued property; may be null or empty
+     * @return the identifier of the new node; never null
+     * @throws javax.jcr.nodetype.ConstraintViolationException if the node or one of its properties is not allowed by the node
+     *         types, or is not supported by a bulk ingest
+     * @throws RepositoryException if the parent cannot be found or modified, or if a previous batch could not be written
+     */
+    String addNode( String parentIdentifier,
+                    String name,
+                    String primaryType,
+                    String[] mixinTypes,
+                    Map<String, ?> properties ) throws RepositoryException;
+
+    /**
+     * Write all the nodes which were added since the last batch to the persistent store, without waiting for the batch to be
+     * full.
+     *
+     * @throws RepositoryException if the nodes cannot be written
+     */
+    void flush() throws RepositoryException;
+
+    /**
+     * Write the last batch and, if so {@link BulkIngestOptions#reindexOnClose() configured}, reindex all the ingested content.
+     * The ingester cannot be used afterwards.
+     *
+     * @throws RepositoryException if the nodes cannot be written or the content cannot be reindexed
+     */
+    @Override
+    void close() throws RepositoryException;
+}
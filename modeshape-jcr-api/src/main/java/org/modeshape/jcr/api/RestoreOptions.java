@@ -15,6 +15,10 @@
  */
 package org.modeshape.jcr.api;
 
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Class which allows a customization of the restore process
  * 
@@ -26,6 +30,11 @@ public abstract class RestoreOptions {
      * The number of documents written in one unit (i.e. transaction) from the backup files into the persistent storage.
      */
     public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * The default number of threads that concurrently restore backup files, each in its own transactions.
+     */
+    public static final int DEFAULT_PARALLELISM = 4;
     
     /**
      * The default options used during restore, if no explicit ones are given.
@@ -55,6 +64,18 @@ public abstract class RestoreOptions {
         return DEFAULT_BATCH_SIZE;
     }
 
+    /**
+     * Return the number of threads that concurrently restore the documents and binary values from the backup. Each thread
+     * restores whole backup files, writing each batch of documents in its own transaction. The documents that were changed
+     * while the backup was being made are always restored afterwards by a single thread, in the order they were changed.
+     *
+     * @return the number of threads; defaults to {@value #DEFAULT_PARALLELISM}
+     * @since 5.5
+     */
+    public int parallelism() {
+        return DEFAULT_PARALLELISM;
+    }
+
     /**
      * Whether binaries should be restored or not. ModeShape uses references between documents and binary values, so 
      * depending on the context it may not always be desired for binary values to be restored. 
@@ -65,12 +86,28 @@ public abstract class RestoreOptions {
         return true;
     }
 
+    /**
+     * Return the directories of the incremental backups that are to be applied, in order, after the (full) backup being
+     * restored. The first incremental backup must have been made using the restored backup as its
+     * {@link BackupOptions#previousBackupDirectory() previous backup}, and each subsequent one using the one before it.
+     *
+     * @return the directories of the incremental backups; never {@code null} and empty by default
+     * @since 5.5
+     */
+    public List<File> incrementalBackupDirectories() {
+        return Collections.emptyList();
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder("[restore_options: ");
         builder.append("batch size=").append(batchSize());
+        builder.append(", parallelism=").append(parallelism());
         builder.append(", include binaries=").append(includeBinaries());
         builder.append(", reindex content on finish=").append(reindexContentOnFinish());
+        if (!incrementalBackupDirectories().isEmpty()) {
+            builder.append(", incremental backups=").append(incrementalBackupDirectories());
+        }
         builder.append("]");
         return builder.toString();
     }
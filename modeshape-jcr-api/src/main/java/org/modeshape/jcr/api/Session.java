@@ -58,6 +58,23 @@ public interface Session extends javax.jcr.Session {
                       Property inputProperty,
                       Node outputNode ) throws RepositoryException;
 
+    /**
+     * Create a {@link BulkIngester} which writes new content directly into this session's workspace, bypassing the transient
+     * state of this session. This is meant for loading large amounts of content and has a number of restrictions compared to
+     * adding nodes via this session; see {@link BulkIngester} for details.
+     * <p>
+     * The session must not have any pending changes, and should not be used to modify the content while the ingester is open.
+     * </p>
+     *
+     * @param options the options for the ingest; may be null if the {@link BulkIngestOptions#DEFAULT default} options should be
+     *        used
+     * @return the ingester; never null
+     * @throws javax.jcr.InvalidItemStateException if this session has pending changes
+     * @throws RepositoryException if there was a problem creating the ingester
+     * @since 5.5
+     */
+    BulkIngester bulkIngester( BulkIngestOptions options ) throws RepositoryException;
+
     /**
      * Evaluate a local name and replace any characters that are not allowed within the local names of nodes and properties. Such
      * characters include '/', ':', '[', ']', '*', and '|', since these are all important to the rules for qualified names and
@@ -44,7 +44,20 @@ public enum DurationMetric {
      * instances are strings containing the sequencer name and the input and output paths.
      */
     SEQUENCER_EXECUTION_TIME("sequencer-execution-time", "Sequencing duration",
-                             "The metric measuring how long sequencers take to run and save the changes.");
+                             "The metric measuring how long sequencers take to run and save the changes."),
+    /**
+     * The metric that captures how long sequencing work waits in the queue before it is started. Note that the payload of the
+     * {@link DurationActivity} instances are strings containing the sequencer name and the input path.
+     */
+    SEQUENCER_QUEUE_TIME("sequencer-queue-time", "Sequencing queue duration",
+                         "The metric measuring how long sequencing work waits before the sequencer runs."),
+    /**
+     * The metric that captures how long saves wait to obtain the locks on the nodes they modify, when those locks are held by
+     * another save. Note that the payload of the {@link DurationActivity} instances are strings containing the names of the
+     * locks and whether they were obtained.
+     */
+    LOCK_WAIT_TIME("lock-wait-time", "Lock wait duration",
+                   "The metric measuring how long saves wait for the locks held by other saves.");
 
     private static final Map<String, DurationMetric> BY_LITERAL;
     private static final Map<String, DurationMetric> BY_NAME;
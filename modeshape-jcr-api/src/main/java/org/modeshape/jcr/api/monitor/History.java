@@ -128,4 +128,18 @@ public interface History {
      *         repository
      */
     Statistics[] getStats();
+
+    /**
+     * Get the value at or below which the given percentage of all the values sampled during this history window fall. Unlike
+     * the {@link Statistics#getPercentile(double) percentiles} of the individual {@link #getStats() statistics}, this covers the
+     * whole window. The percentiles are only available for {@link DurationMetric durations}, and are precise to within about 6%
+     * of the actual value.
+     * 
+     * @param percentile the percentile, between 0.0 and 100.0 (inclusive); for example, 99.9 for the 99.9th percentile
+     * @return the value at the percentile, or -1 if the percentiles are not available for this history
+     * @since 5.5
+     */
+    default long getPercentile( double percentile ) {
+        return -1L;
+    }
 }
@@ -164,7 +164,8 @@ public interface RepositoryMonitor {
 
     /**
      * Get the statics for the specified duration metric during the given window in time. The oldest statistics will be first,
-     * while the newest statistics will be last.
+     * while the newest statistics will be last. The {@link History#getPercentile(double) percentiles} of the durations are
+     * available for the whole window as well as for each of the statistics.
      * 
      * @param metric the duration metric; may not be null
      * @param windowInTime the window specifying which statistics are to be returned; may not be null
@@ -25,6 +25,10 @@ package org.modeshape.jcr.api.monitor;
  * without having the original values. It is possible to compute the weighted median, but this loses effectiveness/value the more
  * times it is rolled up.
  * </p>
+ * <p>
+ * The statistics for {@link DurationMetric durations}, however, are backed by a histogram of the sampled durations, and therefore
+ * also provide the {@link #getPercentile(double) percentiles} (including the median, which is the 50th percentile).
+ * </p>
  * 
  * @since 3.0
  */
@@ -77,4 +81,16 @@ public interface Statistics {
      * @return the standard deviation; never negative
      */
     double getStandardDeviation();
+
+    /**
+     * Get the value at or below which the given percentage of the sampled values fall. The percentiles are only available for
+     * {@link DurationMetric durations}, and are precise to within about 6% of the actual value.
+     * 
+     * @param percentile the percentile, between 0.0 and 100.0 (inclusive); for example, 99.9 for the 99.9th percentile
+     * @return the value at the percentile, or -1 if the percentiles are not available for these statistics
+     * @since 5.5
+     */
+    default long getPercentile( double percentile ) {
+        return -1L;
+    }
 }
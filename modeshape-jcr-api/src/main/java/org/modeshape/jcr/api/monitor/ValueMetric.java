@@ -104,7 +104,65 @@ public enum ValueMetric {
     /**
      * The metric that records the number of nodes that were sequenced.
      */
-    SEQUENCED_COUNT("sequenced-count", false, "Sequenced nodes", "The number of nodes that were sequenced during the window.");
+    SEQUENCED_COUNT("sequenced-count", false, "Sequenced nodes", "The number of nodes that were sequenced during the window."),
+    /**
+     * The metric that records the number of transactions used to persist the output of sequencers.
+     */
+    SEQUENCED_BATCH_COUNT("sequenced-batch-count", false, "Sequencing batches",
+                          "The number of batches of sequencer output that were committed during the window."),
+    /**
+     * The metric that records the number of times that failed sequencing work was scheduled to be retried.
+     */
+    SEQUENCER_RETRY_COUNT("sequencer-retry-count", false, "Sequencing retries",
+                          "The number of times that failed sequencing work was scheduled to be retried during the window."),
+    /**
+     * The metric that records the number of units of sequencing work that have been set aside after failing too many times.
+     */
+    SEQUENCER_DEAD_LETTER_COUNT("sequencer-dead-letter-count", true, "Abandoned sequencing work",
+                                "The number of units of sequencing work at the end of the window that have been set aside after failing too many times."),
+    /**
+     * The metric that records the number of change sets that have yet to be applied to asynchronous indexes.
+     */
+    INDEX_UPDATE_QUEUE_SIZE("index-update-queue-size", true, "Index update queue size",
+                            "The number of change sets at the end of the window that have yet to be applied to asynchronous indexes."),
+    /**
+     * The metric that records how long it takes for changes to be committed to asynchronous indexes, measured from the oldest of
+     * the changes in each commit.
+     */
+    INDEX_UPDATE_LAG("index-update-lag", true, "Index update lag",
+                     "The number of milliseconds between the oldest changes in the most recent commit to asynchronous indexes being saved and being committed."),
+    /**
+     * The metric that records the number of unused binary values that are awaiting garbage collection.
+     */
+    BINARY_GC_PENDING_COUNT("binary-gc-pending-count", true, "Unused binary values",
+                            "The number of unused binary values at the end of the window that have yet to be garbage collected."),
+    /**
+     * The metric that records the number of unused binary values that were removed by garbage collection.
+     */
+    BINARY_GC_REMOVED_COUNT("binary-gc-removed-count", false, "Removed binary values",
+                            "The number of unused binary values that were removed by garbage collection during the window."),
+    /**
+     * The metric that records the number of bytes reclaimed by removing unused binary values.
+     */
+    BINARY_GC_RECLAIMED_BYTES("binary-gc-reclaimed-bytes", false, "Reclaimed binary bytes",
+                              "The number of bytes reclaimed by removing unused binary values during the window."),
+    /**
+     * The metric that records the number of binary values that are waiting for their text to be extracted.
+     */
+    TEXT_EXTRACTION_QUEUE_SIZE("text-extraction-queue-size", true, "Text extraction queue size",
+                               "The number of binary values at the end of the window that have yet to have their text extracted."),
+    /**
+     * The metric that records the number of text extractions that were run by the requesting thread because the text extraction
+     * queue was full.
+     */
+    TEXT_EXTRACTION_OVERFLOW_COUNT("text-extraction-overflow-count", false, "Overflowed text extractions",
+                                   "The number of text extractions during the window that were run by the requesting thread because the extraction queue was full."),
+    /**
+     * The metric that records the number of requests to extract text from a binary value whose text was already being or had
+     * already been extracted.
+     */
+    TEXT_EXTRACTION_DEDUPLICATED_COUNT("text-extraction-deduplicated-count", false, "Deduplicated text extractions",
+                                       "The number of requests during the window to extract text from a binary value whose text was already being or had already been extracted.");
 
     private static final Map<String, ValueMetric> BY_LITERAL;
     private static final Map<String, ValueMetric> BY_NAME;
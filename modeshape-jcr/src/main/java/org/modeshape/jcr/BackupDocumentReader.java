@@ -16,35 +16,49 @@
 package org.modeshape.jcr;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 import org.modeshape.common.annotation.NotThreadSafe;
 import org.modeshape.common.collection.Problems;
 import org.modeshape.common.util.CheckArg;
 import org.modeshape.common.util.StringUtil;
+import org.modeshape.jcr.BackupDocumentWriter.FieldName;
+import org.modeshape.schematic.document.Bson;
 import org.modeshape.schematic.document.Document;
 import org.modeshape.schematic.document.DocumentSequence;
 import org.modeshape.schematic.document.Json;
 
 /**
- * A utility that writes {@link Document} instances to one or more sequential files in a backup directory.
+ * A utility that reads {@link Document} instances from one or more sequential files in a backup directory, which were written
+ * as JSON or as BSON by a {@link BackupDocumentWriter}.
  */
 @NotThreadSafe
 public final class BackupDocumentReader {
 
     public static final String GZIP_EXTENSION = BackupDocumentWriter.GZIP_EXTENSION;
     public static final String DOCUMENTS_EXTENSION = BackupDocumentWriter.DOCUMENTS_EXTENSION;
+    public static final String BSON_DOCUMENTS_EXTENSION = BackupDocumentWriter.BSON_DOCUMENTS_EXTENSION;
 
     private final File parentDirectory;
     private final String filenamePrefix;
+    private final File onlyFile;
     private final Problems problems;
     protected InputStream stream;
     protected DocumentSequence documents;
     protected long fileCount = 0L;
     private File currentFile;
+    private boolean bson;
+    private InputStream segmentData;
+    private long segmentPosition;
 
     public BackupDocumentReader( File parentDirectory,
                                  String filenamePrefix,
@@ -53,9 +67,100 @@ public final class BackupDocumentReader {
         CheckArg.isNotEmpty(filenamePrefix, "filenamePrefix");
         this.parentDirectory = parentDirectory;
         this.filenamePrefix = filenamePrefix;
+        this.onlyFile = null;
         this.problems = problems;
     }
 
+    /**
+     * Create a reader of a single backup file, such as one of those {@link #filesIn(File, String) found} in a backup directory.
+     *
+     * @param file the backup file; may not be null
+     * @param problems the problems to which any errors are added
+     */
+    public BackupDocumentReader( File file,
+                                 Problems problems ) {
+        CheckArg.isNotNull(file, "file");
+        this.parentDirectory = file.getParentFile();
+        this.filenamePrefix = null;
+        this.onlyFile = file;
+        this.problems = problems;
+    }
+
+    /**
+     * Find the sequentially-numbered backup files with the given prefix in a backup directory, in the order in which they would
+     * be read by a reader of the whole directory.
+     *
+     * @param parentDirectory the backup directory; may not be null
+     * @param filenamePrefix the prefix of the file names; may not be empty
+     * @return the existing and readable backup files; never null but possibly empty
+     */
+    public static List<File> filesIn( File parentDirectory,
+                                      String filenamePrefix ) {
+        List<File> files = new ArrayList<>();
+        for (long fileCount = 1L;; ++fileCount) {
+            File file = fileFor(parentDirectory, filenamePrefix, fileCount);
+            if (file == null || !file.canRead() || !file.isFile()) return files;
+            files.add(file);
+        }
+    }
+
+    private static File fileFor( File parentDirectory,
+                                 String filenamePrefix,
+                                 long fileCount ) {
+        String suffix = StringUtil.justifyRight(Long.toString(fileCount), BackupService.NUM_CHARS_IN_FILENAME_SUFFIX, '0');
+        File file = new File(parentDirectory, filenamePrefix + "_" + suffix + DOCUMENTS_EXTENSION + GZIP_EXTENSION);
+        if (file.exists()) return file;
+        // Try the uncompressed form ...
+        file = new File(parentDirectory, filenamePrefix + "_" + suffix + DOCUMENTS_EXTENSION);
+        if (file.exists()) return file;
+        // Try the BSON form ...
+        file = new File(parentDirectory, filenamePrefix + "_" + suffix + BSON_DOCUMENTS_EXTENSION);
+        return file.exists() ? file : null;
+    }
+
+    private static boolean isBson( File file ) {
+        return file.getName().endsWith(BSON_DOCUMENTS_EXTENSION);
+    }
+
+    /**
+     * Verify the checksums of all of the segments of a BSON backup file against its index, without reading the documents. JSON
+     * backup files cannot be verified, and are always considered valid.
+     *
+     * @param file the backup file; may not be null
+     * @param problems the problems to which an error is added if the file is not valid
+     * @return true if the file is valid, or false otherwise
+     */
+    public static boolean verify( File file,
+                                  Problems problems ) {
+        if (!isBson(file)) return true;
+        File indexFile = BackupDocumentWriter.indexFileFor(file);
+        if (!indexFile.canRead()) {
+            problems.addError(JcrI18n.backupFileIsCorrupt, file.getAbsolutePath(), "the index file is missing");
+            return false;
+        }
+        try (InputStream indexStream = new FileInputStream(indexFile);
+             DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            List<?> segments = Json.read(indexStream).getArray(FieldName.SEGMENTS);
+            long position = 0L;
+            for (Object value : segments) {
+                Document entry = (Document)value;
+                SegmentHeader header = SegmentHeader.read(input);
+                if (header == null) throw new IOException("the file ends before the segment at " + position);
+                if (entry.getLong(FieldName.OFFSET, -1L) != position || entry.getInteger(FieldName.LENGTH, -1) != header.length
+                    || entry.getLong(FieldName.CHECKSUM, -1L) != header.checksum) {
+                    throw new IOException("the segment at " + position + " does not match the index");
+                }
+                header.readData(input, position);
+                position += BackupDocumentWriter.SEGMENT_HEADER_SIZE + header.length;
+            }
+            if (input.read() != -1) throw new IOException("the file contains more segments than its index");
+            return true;
+        } catch (IOException | RuntimeException e) {
+            problems.addError(JcrI18n.backupFileIsCorrupt, file.getAbsolutePath(), e.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Read the next document from the files.
      * 
@@ -71,13 +176,24 @@ public final class BackupDocumentReader {
                         // No more files to read ...
                         return null;
                     }
-                    documents = Json.readMultiple(stream, false);
+                    bson = isBson(currentFile);
+                    if (bson) {
+                        segmentData = null;
+                        segmentPosition = 0L;
+                    } else {
+                        documents = Json.readMultiple(stream, false);
+                    }
                 }
-                try {
-                    Document doc = documents.nextDocument();
+                if (bson) {
+                    Document doc = readBsonDocument();
                     if (doc != null) return doc;
-                } catch (IOException e) {
-                    // We'll just continue ...
+                } else {
+                    try {
+                        Document doc = documents.nextDocument();
+                        if (doc != null) return doc;
+                    } catch (IOException e) {
+                        // We'll just continue ...
+                    }
                 }
                 // Close the stream and try opening the next stream ...
                 close(stream);
@@ -89,21 +205,35 @@ public final class BackupDocumentReader {
         }
     }
 
+    private Document readBsonDocument() {
+        try {
+            while (segmentData == null || segmentData.available() == 0) {
+                // Read the next segment, which contains at least one document ...
+                SegmentHeader header = SegmentHeader.read((DataInputStream)stream);
+                if (header == null) return null;
+                segmentData = header.readDocuments((DataInputStream)stream, segmentPosition);
+                segmentPosition += BackupDocumentWriter.SEGMENT_HEADER_SIZE + header.length;
+            }
+            return Bson.read(segmentData);
+        } catch (IOException e) {
+            problems.addError(JcrI18n.backupFileIsCorrupt, currentFile.getAbsolutePath(), e.getMessage());
+            return null;
+        }
+    }
+
     protected InputStream openNextFile() throws IOException {
         // Open the stream to the next file ...
         ++fileCount;
-        String suffix = StringUtil.justifyRight(Long.toString(fileCount), BackupService.NUM_CHARS_IN_FILENAME_SUFFIX, '0');
-        String filename = filenamePrefix + "_" + suffix + DOCUMENTS_EXTENSION + GZIP_EXTENSION;
-        currentFile = new File(parentDirectory, filename);
-        boolean compressed = true;
-        if (!currentFile.exists()) {
-            // Try the uncompressed form ...
-            filename = filenamePrefix + "_" + suffix + DOCUMENTS_EXTENSION;
-            currentFile = new File(parentDirectory, filename);
-            if (!currentFile.exists()) return null;
-            compressed = false;
+        if (onlyFile != null) {
+            currentFile = fileCount == 1L ? onlyFile : null;
+        } else {
+            currentFile = fileFor(parentDirectory, filenamePrefix, fileCount);
+        }
+        if (currentFile == null || !currentFile.canRead() || !currentFile.isFile()) return null;
+        if (isBson(currentFile)) {
+            return new DataInputStream(new BufferedInputStream(new FileInputStream(currentFile)));
         }
-        if (!currentFile.canRead() || !currentFile.isFile()) return null;
+        boolean compressed = currentFile.getName().endsWith(GZIP_EXTENSION);
         InputStream fileStream = new FileInputStream(currentFile);
         if (compressed) fileStream = new GZIPInputStream(fileStream);
         return new BufferedInputStream(fileStream);
@@ -128,4 +258,66 @@ public final class BackupDocumentReader {
     public void close() {
         close(stream);
     }
+
+    /**
+     * The header of a segment of a BSON backup file.
+     */
+    private static final class SegmentHeader {
+        private final int flags;
+        private final int length;
+        private final int uncompressedLength;
+        private final long checksum;
+
+        private SegmentHeader( int flags,
+                               int length,
+                               int uncompressedLength,
+                               long checksum ) {
+            this.flags = flags;
+            this.length = length;
+            this.uncompressedLength = uncompressedLength;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Read the header of the next segment.
+         *
+         * @param input the input positioned at the start of a segment or at the end of the file; may not be null
+         * @return the header, or null if the end of the file was reached
+         * @throws IOException if the header could not be read or is not valid
+         */
+        static SegmentHeader read( DataInputStream input ) throws IOException {
+            int first = input.read();
+            if (first == -1) return null;
+            int magic = (first << 24) | (input.readUnsignedByte() << 16) | (input.readUnsignedShort());
+            if (magic != BackupDocumentWriter.SEGMENT_MAGIC) throw new IOException("a segment does not start where expected");
+            int flags = input.readInt();
+            int length = input.readInt();
+            int uncompressedLength = input.readInt();
+            input.readInt(); // the number of documents
+            long checksum = input.readLong();
+            if (length < 0 || uncompressedLength < 0) throw new IOException("a segment has an invalid length");
+            return new SegmentHeader(flags, length, uncompressedLength, checksum);
+        }
+
+        byte[] readData( DataInputStream input,
+                         long position ) throws IOException {
+            byte[] data = new byte[length];
+            input.readFully(data);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            if (crc.getValue() != checksum) throw new IOException("the checksum of the segment at " + position + " is not valid");
+            return data;
+        }
+
+        InputStream readDocuments( DataInputStream input,
+                                   long position ) throws IOException {
+            byte[] data = readData(input, position);
+            if ((flags & BackupDocumentWriter.SEGMENT_COMPRESSED) == 0) return new ByteArrayInputStream(data);
+            byte[] uncompressed = new byte[uncompressedLength];
+            try (DataInputStream inflated = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(data)))) {
+                inflated.readFully(uncompressed);
+            }
+            return new ByteArrayInputStream(uncompressed);
+        }
+    }
 }
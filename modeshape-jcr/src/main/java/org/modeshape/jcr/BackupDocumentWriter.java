@@ -16,12 +16,22 @@
 package org.modeshape.jcr;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.GZIPOutputStream;
+import org.modeshape.schematic.Schematic;
+import org.modeshape.schematic.document.Bson;
 import org.modeshape.schematic.document.Document;
+import org.modeshape.schematic.document.EditableArray;
+import org.modeshape.schematic.document.EditableDocument;
 import org.modeshape.schematic.document.Json;
 import org.modeshape.common.annotation.NotThreadSafe;
 import org.modeshape.common.collection.Problems;
@@ -30,12 +40,44 @@ import org.modeshape.common.util.StringUtil;
 
 /**
  * A utility that writes {@link Document} instances to one or more sequential files in a backup directory.
+ * <p>
+ * Several writers can write to the same directory at the same time (each from its own thread) if they share the
+ * {@link #BackupDocumentWriter(File, String, long, boolean, Problems, AtomicLong) counter} used to number the files, in which
+ * case the numbers of the files written by each writer are not consecutive.
+ * </p>
+ * <p>
+ * The documents are written either as JSON, one per line, or as BSON. A BSON file consists of segments, each of which has a
+ * {@value #SEGMENT_HEADER_SIZE}-byte header (the {@link #SEGMENT_MAGIC magic number}, flags, the length of the segment's data,
+ * the length of the uncompressed data, the number of documents and the CRC-32 checksum of the data) followed by the data, which
+ * holds the BSON documents and is compressed separately from the other segments. Each BSON file is accompanied by an index file
+ * that records the position, length, number of documents and checksum of every segment, so that files can be verified without
+ * reading the documents, and so that truncated files can be detected.
+ * </p>
  */
 @NotThreadSafe
 public final class BackupDocumentWriter {
 
     public static final String GZIP_EXTENSION = ".gz";
     public static final String DOCUMENTS_EXTENSION = ".bin";
+    public static final String BSON_DOCUMENTS_EXTENSION = ".bson";
+    public static final String INDEX_EXTENSION = ".idx";
+
+    /**
+     * The number of (uncompressed) bytes of documents after which a BSON segment is completed.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    protected static final int SEGMENT_MAGIC = 0x4D534253;
+    protected static final int SEGMENT_HEADER_SIZE = 28;
+    protected static final int SEGMENT_COMPRESSED = 0x1;
+
+    protected static class FieldName {
+        public static final String SEGMENTS = "segments";
+        public static final String OFFSET = "offset";
+        public static final String LENGTH = "length";
+        public static final String DOCUMENTS = "documents";
+        public static final String CHECKSUM = "checksum";
+    }
 
     private final File parentDirectory;
     private final String filenamePrefix;
@@ -46,13 +88,63 @@ public final class BackupDocumentWriter {
     protected long totalCount = 0L;
     protected long fileCount = 0L;
     private final Problems problems;
+    private final AtomicLong fileNumbers;
+    private final boolean bson;
+    private final int segmentSize;
     private File currentFile;
+    private ByteArrayOutputStream segment;
+    private int segmentDocumentCount;
+    private long position;
+    private EditableArray segmentIndex;
 
     public BackupDocumentWriter( File parentDirectory,
                                  String filenamePrefix,
                                  long documentsPerFile,
                                  boolean compress,
                                  Problems problems ) {
+        this(parentDirectory, filenamePrefix, documentsPerFile, compress, problems, new AtomicLong());
+    }
+
+    /**
+     * Create a writer that shares the numbering of its files with other writers.
+     *
+     * @param parentDirectory the directory in which the files are written; may not be null
+     * @param filenamePrefix the prefix of the file names; may not be empty
+     * @param documentsPerFile the maximum number of documents in each file; must be positive
+     * @param compress true if the files are to be compressed
+     * @param problems the problems to which any errors are added; must be thread-safe if it is shared with other writers
+     * @param fileNumbers the counter used to number the files, shared by all of the writers of the directory; may not be null
+     */
+    public BackupDocumentWriter( File parentDirectory,
+                                 String filenamePrefix,
+                                 long documentsPerFile,
+                                 boolean compress,
+                                 Problems problems,
+                                 AtomicLong fileNumbers ) {
+        this(parentDirectory, filenamePrefix, documentsPerFile, compress, problems, fileNumbers, false, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Create a writer that shares the numbering of its files with other writers, and that writes the documents either as JSON
+     * or as BSON.
+     *
+     * @param parentDirectory the directory in which the files are written; may not be null
+     * @param filenamePrefix the prefix of the file names; may not be empty
+     * @param documentsPerFile the maximum number of documents in each file; must be positive
+     * @param compress true if the files (or the segments of BSON files) are to be compressed
+     * @param problems the problems to which any errors are added; must be thread-safe if it is shared with other writers
+     * @param fileNumbers the counter used to number the files, shared by all of the writers of the directory; may not be null
+     * @param bson true if the documents are to be written as BSON, or false if they are to be written as JSON
+     * @param segmentSize the number of uncompressed bytes of documents in each BSON segment; must be positive
+     */
+    public BackupDocumentWriter( File parentDirectory,
+                                 String filenamePrefix,
+                                 long documentsPerFile,
+                                 boolean compress,
+                                 Problems problems,
+                                 AtomicLong fileNumbers,
+                                 boolean bson,
+                                 int segmentSize ) {
         CheckArg.isNotNull(parentDirectory, "parentDirectory");
         CheckArg.isNotEmpty(filenamePrefix, "filenamePrefix");
         CheckArg.isPositive(documentsPerFile, "documentsPerFile");
@@ -61,6 +153,9 @@ public final class BackupDocumentWriter {
         this.maxDocumentsPerFile = documentsPerFile;
         this.problems = problems;
         this.compress = compress;
+        this.fileNumbers = fileNumbers;
+        this.bson = bson;
+        this.segmentSize = segmentSize;
     }
 
     /**
@@ -81,17 +176,35 @@ public final class BackupDocumentWriter {
             if (stream == null) {
                 // Open the stream to the next file ...
                 ++fileCount;
-                String suffix = StringUtil.justifyRight(Long.toString(fileCount), BackupService.NUM_CHARS_IN_FILENAME_SUFFIX, '0');
-                String filename = filenamePrefix + "_" + suffix + DOCUMENTS_EXTENSION;
-                if (compress) filename = filename + GZIP_EXTENSION;
-                currentFile = new File(parentDirectory, filename);
-                OutputStream fileStream = new FileOutputStream(currentFile);
-                if (compress) fileStream = new GZIPOutputStream(fileStream);
-                stream = new BufferedOutputStream(fileStream);
+                String suffix = StringUtil.justifyRight(Long.toString(fileNumbers.incrementAndGet()),
+                                                        BackupService.NUM_CHARS_IN_FILENAME_SUFFIX, '0');
+                if (bson) {
+                    // Each segment is compressed separately ...
+                    currentFile = new File(parentDirectory, filenamePrefix + "_" + suffix + BSON_DOCUMENTS_EXTENSION);
+                    stream = new BufferedOutputStream(new FileOutputStream(currentFile));
+                    segment = new ByteArrayOutputStream(segmentSize + segmentSize / 4);
+                    segmentIndex = Schematic.newDocument().setArray(FieldName.SEGMENTS);
+                    segmentDocumentCount = 0;
+                    position = 0L;
+                } else {
+                    String filename = filenamePrefix + "_" + suffix + DOCUMENTS_EXTENSION;
+                    if (compress) filename = filename + GZIP_EXTENSION;
+                    currentFile = new File(parentDirectory, filename);
+                    OutputStream fileStream = new FileOutputStream(currentFile);
+                    if (compress) fileStream = new GZIPOutputStream(fileStream);
+                    stream = new BufferedOutputStream(fileStream);
+                }
+            }
+            if (bson) {
+                // BSON documents start with their length, so they can be read one after the other ...
+                Bson.write(document, segment);
+                ++segmentDocumentCount;
+                if (segment.size() >= segmentSize) writeSegment();
+            } else {
+                Json.write(document, stream);
+                // Need to append a non-consumable character so that we can read multiple JSON documents per file
+                stream.write((byte)'\n');
             }
-            Json.write(document, stream);
-            // Need to append a non-consumable character so that we can read multiple JSON documents per file
-            stream.write((byte)'\n');
         } catch (IOException e) {
             problems.addError(JcrI18n.problemsWritingDocumentToBackup, currentFile.getAbsolutePath(), e.getMessage());
         }
@@ -104,8 +217,15 @@ public final class BackupDocumentWriter {
     public void close() {
         if (stream != null) {
             try {
-                stream.flush();
-                stream.close();
+                if (bson) {
+                    if (segmentDocumentCount > 0) writeSegment();
+                    stream.flush();
+                    stream.close();
+                    writeIndex();
+                } else {
+                    stream.flush();
+                    stream.close();
+                }
             } catch (IOException e) {
                 problems.addError(JcrI18n.problemsClosingBackupFiles, parentDirectory.getAbsolutePath(), e.getMessage());
             } finally {
@@ -114,6 +234,64 @@ public final class BackupDocumentWriter {
         }
     }
 
+    private void writeSegment() throws IOException {
+        byte[] data = segment.toByteArray();
+        int uncompressedLength = data.length;
+        int flags = 0;
+        if (compress) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(uncompressedLength / 2);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DeflaterOutputStream deflaterStream = new DeflaterOutputStream(compressed, deflater)) {
+                deflaterStream.write(data);
+            } finally {
+                deflater.end();
+            }
+            data = compressed.toByteArray();
+            flags |= SEGMENT_COMPRESSED;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        long checksum = crc.getValue();
+
+        DataOutputStream output = new DataOutputStream(stream);
+        output.writeInt(SEGMENT_MAGIC);
+        output.writeInt(flags);
+        output.writeInt(data.length);
+        output.writeInt(uncompressedLength);
+        output.writeInt(segmentDocumentCount);
+        output.writeLong(checksum);
+        output.write(data);
+
+        EditableDocument entry = Schematic.newDocument();
+        entry.setNumber(FieldName.OFFSET, position);
+        entry.setNumber(FieldName.LENGTH, data.length);
+        entry.setNumber(FieldName.DOCUMENTS, segmentDocumentCount);
+        entry.setNumber(FieldName.CHECKSUM, checksum);
+        segmentIndex.add(entry);
+
+        position += SEGMENT_HEADER_SIZE + data.length;
+        segment.reset();
+        segmentDocumentCount = 0;
+    }
+
+    private void writeIndex() throws IOException {
+        EditableDocument index = Schematic.newDocument();
+        index.setArray(FieldName.SEGMENTS, segmentIndex);
+        try (OutputStream indexStream = new FileOutputStream(indexFileFor(currentFile))) {
+            Json.write(index, indexStream);
+        }
+    }
+
+    /**
+     * Return the index file of the given BSON backup file.
+     *
+     * @param file the BSON backup file; may not be null
+     * @return the index file; never null
+     */
+    public static File indexFileFor( File file ) {
+        return new File(file.getParentFile(), file.getName() + INDEX_EXTENSION);
+    }
+
     /**
      * Return the number of documents that have been written so far.
      * 
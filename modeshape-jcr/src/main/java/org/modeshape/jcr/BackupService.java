@@ -23,28 +23,41 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 import javax.jcr.RepositoryException;
 import javax.transaction.SystemException;
 import org.modeshape.common.annotation.NotThreadSafe;
+import org.modeshape.common.annotation.ThreadSafe;
 import org.modeshape.common.collection.Problems;
-import org.modeshape.common.collection.SimpleProblems;
+import org.modeshape.common.collection.ThreadSafeProblems;
 import org.modeshape.common.i18n.I18n;
 import org.modeshape.common.logging.Logger;
 import org.modeshape.common.util.CheckArg;
@@ -56,7 +69,13 @@ import org.modeshape.jcr.api.BackupOptions;
 import org.modeshape.jcr.api.RestoreOptions;
 import org.modeshape.jcr.cache.NodeKey;
 import org.modeshape.jcr.cache.RepositoryCache;
+import org.modeshape.jcr.cache.change.BinaryValueUnused;
+import org.modeshape.jcr.cache.change.BinaryValueUsed;
+import org.modeshape.jcr.cache.change.Change;
+import org.modeshape.jcr.cache.document.DocumentConstants;
 import org.modeshape.jcr.cache.document.LocalDocumentStore;
+import org.modeshape.jcr.journal.ChangeJournal;
+import org.modeshape.jcr.journal.JournalRecord;
 import org.modeshape.jcr.value.BinaryKey;
 import org.modeshape.jcr.value.BinaryValue;
 import org.modeshape.jcr.value.binary.BinaryStore;
@@ -70,6 +89,18 @@ import org.modeshape.schematic.document.Json;
 
 /**
  * A service used to generate backups from content and restore repository content from backups.
+ * <p>
+ * Both operations use several threads: a backup loads batches of documents and writes them to separate backup files
+ * concurrently, and a restore reads several backup files concurrently and writes each batch of documents in its own
+ * transaction. The progress and throughput of each phase are periodically logged.
+ * </p>
+ * <p>
+ * Each backup records (in its {@value #BACKUP_INFO_FILE_NAME} file) the time up to which it is known to contain all changes.
+ * An incremental backup uses the change journal to find the documents and binary values changed since that time in a
+ * previous backup (including the changes to the system workspace, which the journal keeps apart from the other changes), and
+ * contains only those plus the repository's few documents which are not nodes. An incremental backup is restored by applying
+ * it after the backup it is based upon.
+ * </p>
  */
 public class BackupService {
 
@@ -81,15 +112,26 @@ public class BackupService {
     protected static final String SUMMARY_FILE_NAME = "summary_of_changes.json";
     protected static final String BINARY_EXTENSION = ".bin";
     protected static final int NUM_CHARS_IN_FILENAME_SUFFIX = 6;
+    protected static final String BACKUP_INFO_FILE_NAME = "backup_info.json";
+    /**
+     * How far before the start of a backup its watermark is placed, so that changes which were persisted before the backup
+     * started but had not yet been written to the journal are included in the next incremental backup.
+     */
+    protected static final long WATERMARK_MARGIN_IN_MILLIS = TimeUnit.MINUTES.toMillis(1);
 
     protected static class FieldName {
         public static final String UNUSED_BINARY_KEYS = "unusedBinaryKeys";
+        public static final String WATERMARK = "watermark";
+        public static final String INCREMENTAL_SINCE = "incrementalSince";
+        public static final String REMOVED_DOCUMENT_KEYS = "removedDocumentKeys";
     }
 
     private final RunningState runningState;
     private final LocalDocumentStore documentStore;
     private final BinaryStore binaryStore;
     private final RepositoryCache repositoryCache;
+    private final ChangeJournal journal;
+    private final int journalRetentionInDays;
 
     protected BackupService( RunningState runningState ) {
         this.runningState = runningState;
@@ -97,6 +139,8 @@ public class BackupService {
         documentStore = this.runningState.documentStore().localStore();
         binaryStore = this.runningState.binaryStore();
         repositoryCache = this.runningState.repositoryCache();
+        journal = this.runningState.journal();
+        journalRetentionInDays = this.runningState.config().getJournaling().maxDaysToKeepRecords();
     }
 
     /**
@@ -192,7 +236,8 @@ public class BackupService {
      */
     public BackupActivity createBackupActivity( File backupDirectory,
                                                 BackupOptions options ) {
-        return new BackupActivity(backupDirectory, documentStore, binaryStore, repositoryCache, options);
+        return new BackupActivity(backupDirectory, documentStore, binaryStore, repositoryCache, options, journal,
+                                  journalRetentionInDays);
     }
 
     /**
@@ -218,7 +263,7 @@ public class BackupService {
         protected final File binaryDirectory;
         protected final LocalDocumentStore documentStore;
         protected final BinaryStore binaryStore;
-        protected final SimpleProblems problems;
+        protected final ThreadSafeProblems problems;
         private final String backupLocation;
 
         protected Activity( File backupDirectory,
@@ -232,7 +277,7 @@ public class BackupService {
             this.documentStore = documentStore;
             this.binaryStore = binaryStore;
             this.repositoryCache = repositoryCache;
-            this.problems = new SimpleProblems();
+            this.problems = new ThreadSafeProblems();
         }
 
         /**
@@ -249,6 +294,129 @@ public class BackupService {
         protected final String backupLocation() {
             return backupLocation;
         }
+
+        /**
+         * Read the information about the backup in the given directory.
+         *
+         * @param directory the backup directory; may not be null
+         * @return the backup information, or null if there is none (or it could not be read), in which case a problem is
+         *         recorded
+         */
+        protected final Document readBackupInfo( File directory ) {
+            File file = new File(directory, BACKUP_INFO_FILE_NAME);
+            if (!file.canRead()) {
+                problems.addError(JcrI18n.invalidPreviousBackup, directory.getAbsolutePath(), repositoryName(),
+                                  "the backup information file '" + BACKUP_INFO_FILE_NAME + "' was not found");
+                return null;
+            }
+            try (InputStream stream = new FileInputStream(file)) {
+                return Json.read(stream);
+            } catch (Throwable t) {
+                problems.addError(t, JcrI18n.invalidPreviousBackup, directory.getAbsolutePath(), repositoryName(),
+                                  t.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Run the given work on one of the supplied workers, first waiting until one of the permits is available. The permit is
+         * released once the work is done, so the permits bound the amount of work that is waiting to be run.
+         *
+         * @param workers the workers; may not be null
+         * @param permits the permits; may not be null
+         * @param work the work; may not be null
+         * @throws InterruptedException if the thread is interrupted while waiting for a permit
+         */
+        protected final void submit( ExecutorService workers,
+                                     Semaphore permits,
+                                     Runnable work ) throws InterruptedException {
+            permits.acquire();
+            try {
+                workers.execute(() -> {
+                    try {
+                        work.run();
+                    } catch (RuntimeException e) {
+                        workFailed(e);
+                    } finally {
+                        permits.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        /**
+         * Record a problem for a unit of {@link #submit submitted} work that failed unexpectedly.
+         *
+         * @param e the failure; never null
+         */
+        protected void workFailed( RuntimeException e ) {
+            problems.addError(e, JcrI18n.unexpectedProblemDuringRestore, e.getMessage());
+        }
+
+        /**
+         * Wait until all of the work that was {@link #submit submitted} using the given permits is done.
+         *
+         * @param permits the permits; may not be null
+         * @param numberOfPermits the total number of permits
+         * @throws InterruptedException if the thread is interrupted while waiting
+         */
+        protected final void awaitCompletion( Semaphore permits,
+                                              int numberOfPermits ) throws InterruptedException {
+            permits.acquire(numberOfPermits);
+            permits.release(numberOfPermits);
+        }
+    }
+
+    /**
+     * Counts the documents or binary values processed by one phase of a backup or restore, and periodically logs the progress
+     * and throughput of the phase.
+     */
+    @ThreadSafe
+    protected static final class Progress {
+        private static final long REPORT_INTERVAL_IN_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+        private final I18n message;
+        private final String items;
+        private final String repositoryName;
+        private final String location;
+        private final long start = System.nanoTime();
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong nextReport = new AtomicLong(start + REPORT_INTERVAL_IN_NANOS);
+
+        protected Progress( I18n message,
+                            String items,
+                            String repositoryName,
+                            String location ) {
+            this.message = message;
+            this.items = items;
+            this.repositoryName = repositoryName;
+            this.location = location;
+        }
+
+        protected void add( long number ) {
+            long total = count.addAndGet(number);
+            long now = System.nanoTime();
+            long next = nextReport.get();
+            if (now - next >= 0 && nextReport.compareAndSet(next, now + REPORT_INTERVAL_IN_NANOS)) {
+                report(total, now);
+            }
+        }
+
+        protected long completed() {
+            long total = count.get();
+            if (total > 0) report(total, System.nanoTime());
+            return total;
+        }
+
+        private void report( long total,
+                             long now ) {
+            double seconds = Math.max(now - start, 1L) / 1e9d;
+            LOGGER.info(message, total, items, repositoryName, location, String.format("%.1f", seconds),
+                        Math.round(total / seconds));
+        }
     }
 
     /**
@@ -261,13 +429,28 @@ public class BackupService {
         protected final ExecutorService changedDocumentWorker;
         protected final BlockingQueue<NodeKey> changedDocumentQueue;
         protected final BackupOptions options;
+        private final ChangeJournal journal;
+        private final int journalRetentionInDays;
+        private IncrementalChanges incrementalChanges;
 
         protected BackupActivity( File backupDirectory,
                                   LocalDocumentStore documentStore,
                                   BinaryStore binaryStore,
                                   RepositoryCache repositoryCache,
                                   BackupOptions options) {
+            this(backupDirectory, documentStore, binaryStore, repositoryCache, options, null, 0, null);
+        }
+
+        protected BackupActivity( File backupDirectory,
+                                  LocalDocumentStore documentStore,
+                                  BinaryStore binaryStore,
+                                  RepositoryCache repositoryCache,
+                                  BackupOptions options,
+                                  ChangeJournal journal,
+                                  int journalRetentionInDays ) {
             super(backupDirectory, documentStore, binaryStore, repositoryCache);
+            this.journal = journal;
+            this.journalRetentionInDays = journalRetentionInDays;
             CheckArg.isNotNull(options, "options");
             CheckArg.isPositive(options.documentsPerFile(), "documentsPerFile");
             this.options = options;
@@ -364,21 +547,122 @@ public class BackupService {
             }
         }
 
+        /**
+         * Determine the documents and binary values that have changed since the previous backup, using the change journal.
+         *
+         * @param previousBackupDirectory the directory of the previous backup; may not be null
+         * @return the changes, or null if they could not be determined, in which case a problem is recorded
+         */
+        protected IncrementalChanges incrementalChangesSince( File previousBackupDirectory ) {
+            if (journal == null) {
+                problems.addError(JcrI18n.incrementalBackupRequiresJournaling, repositoryName(), backupLocation());
+                return null;
+            }
+            String previousLocation = previousBackupDirectory.getAbsolutePath();
+            Document info = readBackupInfo(previousBackupDirectory);
+            if (info == null) return null;
+            Long since = info.getLong(FieldName.WATERMARK);
+            if (since == null) {
+                problems.addError(JcrI18n.invalidPreviousBackup, previousLocation, repositoryName(),
+                                  "the backup does not record the time at which it was made");
+                return null;
+            }
+            if (journalRetentionInDays > 0
+                && since < System.currentTimeMillis() - TimeUnit.DAYS.toMillis(journalRetentionInDays)) {
+                problems.addError(JcrI18n.invalidPreviousBackup, previousLocation, repositoryName(),
+                                  "the journal no longer contains all of the changes made since the backup");
+                return null;
+            }
+            ChangeJournal.Records systemRecords = journal.systemRecordsNewerThan(since);
+            if (systemRecords == null) {
+                problems.addError(JcrI18n.invalidPreviousBackup, previousLocation, repositoryName(),
+                                  "the journal is missing some of the changes made to the system workspace since the backup");
+                return null;
+            }
+
+            IncrementalChanges changes = new IncrementalChanges(since);
+            LocalDateTime sinceTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(since), ZoneOffset.UTC);
+            addChanges(changes, journal.recordsNewerThan(sinceTime, true, false));
+            addChanges(changes, systemRecords);
+            // The few documents which are not nodes are not journaled, so always include them ...
+            changes.documentKeys.add(RepositoryCache.REPOSITORY_INFO_KEY);
+            changes.documentKeys.add(repositoryCache.getRepositoryMetadataDocumentKey().toString());
+            LOGGER.debug("Found {0} documents and {1} binary values changed in '{2}' repository since {3}",
+                         changes.documentKeys.size(), changes.usedBinaryKeys.size(), repositoryName(), sinceTime);
+            return changes;
+        }
+
+        private void addChanges( IncrementalChanges changes,
+                                 Iterable<JournalRecord> records ) {
+            for (JournalRecord record : records) {
+                for (NodeKey key : record.changedNodes()) {
+                    changes.documentKeys.add(key.toString());
+                }
+                for (Change change : record) {
+                    if (change instanceof BinaryValueUsed) {
+                        BinaryKey key = ((BinaryValueUsed)change).getKey();
+                        changes.usedBinaryKeys.add(key);
+                        changes.unusedBinaryKeys.remove(key);
+                    } else if (change instanceof BinaryValueUnused) {
+                        changes.unusedBinaryKeys.add(((BinaryValueUnused)change).getKey());
+                    }
+                }
+            }
+        }
+
+        protected void writeBackupInfo( long watermark ) {
+            File file = new File(backupDirectory, BACKUP_INFO_FILE_NAME);
+            try {
+                EditableDocument doc = Schematic.newDocument();
+                doc.setNumber(FieldName.WATERMARK, watermark);
+                if (incrementalChanges != null) {
+                    doc.setNumber(FieldName.INCREMENTAL_SINCE, incrementalChanges.since);
+                    EditableArray removedKeys = doc.setArray(FieldName.REMOVED_DOCUMENT_KEYS);
+                    for (String key : incrementalChanges.removedDocumentKeys) {
+                        removedKeys.add(key);
+                    }
+                }
+                try (OutputStream outputStream = new FileOutputStream(file)) {
+                    Json.write(doc, outputStream);
+                    outputStream.flush();
+                }
+            } catch (Throwable t) {
+                problems.addError(JcrI18n.problemsWritingDocumentToBackup, file.getAbsolutePath(), t.getMessage());
+            }
+        }
+
         @Override
         public Problems execute() {
+            // Everything persisted before this time will be in this backup ...
+            long watermark = System.currentTimeMillis() - WATERMARK_MARGIN_IN_MILLIS;
+            if (options.previousBackupDirectory() != null) {
+                incrementalChanges = incrementalChangesSince(options.previousBackupDirectory());
+                if (incrementalChanges == null) return problems;
+            }
+
             // initialize the area on disk where we'll be writing ...
             if (!initializeAreaOnDisk()) return problems;
 
             LOGGER.debug("Starting backup of '{0}' repository into {1}", repositoryName(), backupLocation());
 
-            final BackupDocumentWriter contentWriter = new BackupDocumentWriter(backupDirectory, DOCUMENTS_FILENAME_PREFIX, 
-                                                                                options.documentsPerFile(), 
-                                                          options.compress(),
-                                                          problems);
+            int parallelism = Math.max(1, options.parallelism());
+            int numberOfPermits = parallelism * 2;
+            Semaphore permits = new Semaphore(numberOfPermits);
+            ExecutorService workers = Executors.newFixedThreadPool(parallelism, new NamedThreadFactory("modeshape-backup-worker"));
+
+            // Each worker writes to its own files, all of which are numbered using the same counter ...
+            final AtomicLong fileNumbers = new AtomicLong();
+            final boolean bson = options.documentFormat() == BackupOptions.DocumentFormat.BSON;
+            final BlockingQueue<BackupDocumentWriter> contentWriters = new ArrayBlockingQueue<>(parallelism);
+            for (int i = 0; i != parallelism; ++i) {
+                contentWriters.add(new BackupDocumentWriter(backupDirectory, DOCUMENTS_FILENAME_PREFIX, options.documentsPerFile(),
+                                                            options.compress(), problems, fileNumbers, bson,
+                                                            BackupDocumentWriter.DEFAULT_SEGMENT_SIZE));
+            }
             final BackupDocumentWriter changesWriter = new BackupDocumentWriter(changeDirectory, DOCUMENTS_FILENAME_PREFIX, 
                                                                                 options.documentsPerFile(), 
-                                                          options.compress(),
-                                                          problems);
+                                                                                options.compress(), problems, new AtomicLong(),
+                                                                                bson, BackupDocumentWriter.DEFAULT_SEGMENT_SIZE);
             long numBinaryValues = 0L;
             NodeKey metadataKey = repositoryCache.getRepositoryMetadataDocumentKey();
 
@@ -424,32 +708,34 @@ public class BackupService {
 
                 try {
                     // PHASE 1:
-                    // Perform the backup of the repository cache content ...
-                    AtomicInteger counter = new AtomicInteger();
-                    List<String> keys = documentStore.keys();
-                    // remove the metadata key since we want that to always export that last
-                    keys.remove(metadataKey.toString());
-                    int startIdx = 0;
-                    int totalDocumentsCount = keys.size();
+                    // Perform the backup of the repository cache content (or only of the documents changed since the
+                    // previous backup), with each worker loading and writing one batch of documents at a time ...
+                    Progress progress = new Progress(JcrI18n.backupProgress, "documents", repositoryName(), backupLocation());
+                    String metadataKeyStr = metadataKey.toString();
                     int batchSize = options.batchSize();
-                    while (startIdx < totalDocumentsCount) {
-                        int estimatedEndIdx = startIdx + batchSize;
-                        int endIdx = estimatedEndIdx < totalDocumentsCount ? estimatedEndIdx : totalDocumentsCount;
-                        LOGGER.debug("writing batch [{0}, {1}] of documents from the content store...", startIdx, endIdx);
-                        List<String> batchKeys = keys.subList(startIdx, endIdx);
-                        batchWriteDocuments(batchKeys, contentWriter);
-                        counter.addAndGet(batchKeys.size());
-                        if (endIdx == totalDocumentsCount) {
-                            break;
+                    List<String> batchKeys = new ArrayList<>(batchSize);
+                    Iterable<String> keys = incrementalChanges != null ? incrementalChanges.documentKeys : documentStore.keys();
+                    for (String key : keys) {
+                        // skip the metadata key since we want that to always export that last
+                        if (key.equals(metadataKeyStr)) continue;
+                        batchKeys.add(key);
+                        if (batchKeys.size() == batchSize) {
+                            submitBatch(workers, permits, batchKeys, contentWriters, progress);
+                            batchKeys = new ArrayList<>(batchSize);
                         }
-                        startIdx += batchSize;
                     }
-                    LOGGER.debug("Wrote {0} documents to {1}", counter, backupDirectory.getAbsolutePath());
+                    if (!batchKeys.isEmpty()) {
+                        submitBatch(workers, permits, batchKeys, contentWriters, progress);
+                    }
+                    awaitCompletion(permits, numberOfPermits);
+                    LOGGER.debug("Wrote {0} documents to {1}", progress.completed(), backupDirectory.getAbsolutePath());
 
                     // PHASE 2:
                     // Write out the repository metadata document (which may have not changed) ...
-                    SchematicEntry entry = documentStore.get(metadataKey.toString());
-                    writeToContentArea(entry, contentWriter);
+                    SchematicEntry entry = documentStore.get(metadataKeyStr);
+                    writeToContentArea(entry, contentWriters.peek());
+                } catch (InterruptedException e) {
+                    throw e;
                 } catch (Exception e) {
                     I18n msg = JcrI18n.problemObtainingDocumentsToBackup;
                     this.problems.addError(msg, repositoryName(), backupLocation(), e.getMessage());
@@ -469,17 +755,16 @@ public class BackupService {
                     LOGGER.debug("writing used binaries to backup location...");
                     // PHASE 3:
                     // Perform the backup of the binary store ...
+                    Progress progress = new Progress(JcrI18n.backupProgress, "binary values", repositoryName(),
+                                                     backupLocation());
                     try {
-                        int counter = 0;
-                        for (BinaryKey binaryKey : binaryStore.getAllBinaryKeys()) {
-                            try {
-                                writeToContentArea(binaryKey, binaryStore.getInputStream(binaryKey));
-                                ++counter;
-                            } catch (BinaryStoreException e) {
-                                problems.addError(JcrI18n.problemsWritingBinaryToBackup, binaryKey, backupLocation(),
-                                                  e.getMessage());
-                            }
+                        Iterable<BinaryKey> binaryKeys = incrementalChanges != null ? incrementalChanges.usedBinaryKeys
+                                                                                     : binaryStore.getAllBinaryKeys();
+                        for (BinaryKey binaryKey : binaryKeys) {
+                            submit(workers, permits, () -> writeBinary(binaryKey, progress));
                         }
+                        awaitCompletion(permits, numberOfPermits);
+                        long counter = progress.completed();
                         LOGGER.debug("Wrote {0} binary values to {1}", counter, binaryDirectory.getAbsolutePath());
                         numBinaryValues += counter;
                     } catch (BinaryStoreException e) {
@@ -487,34 +772,43 @@ public class BackupService {
                         problems.addError(msg, repositoryName(), backupLocation(), e.getMessage());
                     }
 
-
                     // PHASE 4:
                     // Write all of the binary files that were added during the changes made while we worked ...
-                    int counter = 0;
                     LOGGER.debug("writing recently used binaries to backup location...");
+                    Progress recentProgress = new Progress(JcrI18n.backupProgress, "recently used binary values",
+                                                           repositoryName(), backupLocation());
                     for (BinaryKey binaryKey : observer.getUsedBinaryKeys()) {
-                        try {
-                            writeToContentArea(binaryKey, binaryStore.getInputStream(binaryKey));
-                            ++counter;
-                        } catch (BinaryStoreException e) {
-                            problems.addError(JcrI18n.problemsWritingBinaryToBackup, binaryKey, backupLocation(),
-                                              e.getMessage());
-                        }
+                        submit(workers, permits, () -> writeBinary(binaryKey, recentProgress));
                     }
+                    awaitCompletion(permits, numberOfPermits);
+                    long counter = recentProgress.completed();
                     LOGGER.debug("Wrote {0} recent binary values to {1}", counter, binaryDirectory.getAbsolutePath());
                     numBinaryValues += counter;
 
                     // PHASE 5:
                     // And now write all binary keys for the binaries that were recorded as unused by the observer ...
                     LOGGER.debug("writing unused binaries to the backup location...");
-                    writeToChangedArea(observer.getUnusedBinaryKeys());
+                    if (incrementalChanges != null) {
+                        Set<BinaryKey> unusedBinaryKeys = new HashSet<>(incrementalChanges.unusedBinaryKeys);
+                        observer.getUnusedBinaryKeys().forEach(unusedBinaryKeys::add);
+                        writeToChangedArea(unusedBinaryKeys);
+                    } else {
+                        writeToChangedArea(observer.getUnusedBinaryKeys());
+                    }
                 }
                 // Wait for the changes to be written
                 changesLatch.await(30, TimeUnit.SECONDS);
 
+                // PHASE 6:
+                // Record when this backup was made, so that it can be the basis of an incremental backup ...
+                writeBackupInfo(watermark);
+
+                long numDocuments = changesWriter.getDocumentCount();
+                for (BackupDocumentWriter contentWriter : contentWriters) {
+                    numDocuments += contentWriter.getDocumentCount();
+                }
                 LOGGER.debug("Completed backup of '{0}' repository into {1} (contains {2} nodes and {3} binary values)",
-                             repositoryName(), backupLocation(),
-                             contentWriter.getDocumentCount() + changesWriter.getDocumentCount(), numBinaryValues);
+                             repositoryName(), backupLocation(), numDocuments, numBinaryValues);
 
             } catch (InterruptedException e) {
                 Thread.interrupted();
@@ -524,21 +818,127 @@ public class BackupService {
                 this.problems.addError(JcrI18n.backupOperationWasCancelled, repositoryName(), backupLocation(), e.getMessage());
             } finally {
                 // PHASE 5:
-                // Close all open writers ...
-                contentWriter.close();
+                // Stop the workers and close all open writers ...
+                workers.shutdownNow();
+                try {
+                    workers.awaitTermination(30, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.interrupted();
+                }
+                for (BackupDocumentWriter contentWriter : contentWriters) {
+                    contentWriter.close();
+                }
                 changesWriter.close();
             }
 
             return problems;
         }
-        
+
+        @Override
+        protected void workFailed( RuntimeException e ) {
+            problems.addError(e, JcrI18n.problemObtainingDocumentsToBackup, repositoryName(), backupLocation(), e.getMessage());
+        }
+
+        private void submitBatch( ExecutorService workers,
+                                  Semaphore permits,
+                                  List<String> keys,
+                                  BlockingQueue<BackupDocumentWriter> contentWriters,
+                                  Progress progress ) throws InterruptedException {
+            submit(workers, permits, () -> {
+                // There are as many writers as workers, so there is always a writer that's not in use ...
+                BackupDocumentWriter contentWriter = contentWriters.poll();
+                assert contentWriter != null;
+                try {
+                    batchWriteDocuments(keys, contentWriter);
+                } finally {
+                    contentWriters.add(contentWriter);
+                }
+                progress.add(keys.size());
+            });
+        }
+
         private void batchWriteDocuments(List<String> keys, BackupDocumentWriter contentWriter) {
-            documentStore.load(keys).forEach(entry -> {
+            LOGGER.debug("writing batch of {0} documents from the content store...", keys.size());
+            List<SchematicEntry> entries = documentStore.load(keys);
+            entries.forEach(entry -> {
                 if (LOGGER.isTraceEnabled()) {
                     LOGGER.trace("backing up doc: {0}", entry.source());
                 }
                 writeToContentArea(entry, contentWriter);
-            });   
+                if (incrementalChanges != null) {
+                    writeChildReferenceBlocks(entry, contentWriter);
+                }
+            });
+            if (incrementalChanges != null && entries.size() < keys.size()) {
+                // Any changed document that no longer exists was removed ...
+                Set<String> loadedKeys = entries.stream().map(SchematicEntry::id).collect(Collectors.toSet());
+                keys.stream().filter(key -> !loadedKeys.contains(key)).forEach(incrementalChanges.removedDocumentKeys::add);
+            }
+        }
+
+        private void writeChildReferenceBlocks( SchematicEntry entry,
+                                                BackupDocumentWriter contentWriter ) {
+            // The blocks of child references of a changed node are stored in separate documents that are not journaled ...
+            Document childrenInfo = entry.content().getDocument(DocumentConstants.CHILDREN_INFO);
+            if (childrenInfo != null) {
+                // and so is its child directory, which has to match the blocks ...
+                writeChildDirectory(childrenInfo.getString(DocumentConstants.DIRECTORY), contentWriter);
+            }
+            while (childrenInfo != null) {
+                String blockKey = childrenInfo.getString(DocumentConstants.NEXT_BLOCK);
+                if (blockKey == null || !incrementalChanges.exportedBlockKeys.add(blockKey)) return;
+                SchematicEntry block = documentStore.get(blockKey);
+                if (block == null) return;
+                writeToContentArea(block, contentWriter);
+                childrenInfo = block.content().getDocument(DocumentConstants.CHILDREN_INFO);
+            }
+        }
+
+        private void writeChildDirectory( String directoryKey,
+                                          BackupDocumentWriter contentWriter ) {
+            if (directoryKey == null || !incrementalChanges.exportedBlockKeys.add(directoryKey)) return;
+            SchematicEntry directory = documentStore.get(directoryKey);
+            if (directory == null) return;
+            writeToContentArea(directory, contentWriter);
+            List<?> segmentKeys = directory.content().getArray(DocumentConstants.SEGMENTS);
+            if (segmentKeys == null) return;
+            for (Object segmentKey : segmentKeys) {
+                SchematicEntry segment = documentStore.get(segmentKey.toString());
+                if (segment != null) {
+                    writeToContentArea(segment, contentWriter);
+                }
+            }
+        }
+
+        private void writeBinary( BinaryKey binaryKey,
+                                  Progress progress ) {
+            if (incrementalChanges != null && !binaryStore.hasBinary(binaryKey)) {
+                // the binary value was used after the previous backup but has since been removed ...
+                return;
+            }
+            try {
+                writeToContentArea(binaryKey, binaryStore.getInputStream(binaryKey));
+                progress.add(1);
+            } catch (BinaryStoreException e) {
+                problems.addError(JcrI18n.problemsWritingBinaryToBackup, binaryKey, backupLocation(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The documents and binary values changed since a previous backup, and the documents found to be removed while making an
+     * incremental backup.
+     */
+    protected static final class IncrementalChanges {
+        protected final long since;
+        protected final Set<String> documentKeys = new LinkedHashSet<>();
+        protected final Set<BinaryKey> usedBinaryKeys = new LinkedHashSet<>();
+        protected final Set<BinaryKey> unusedBinaryKeys = new HashSet<>();
+        protected final Queue<String> removedDocumentKeys = new ConcurrentLinkedQueue<>();
+        protected final Set<String> exportedBlockKeys = ConcurrentHashMap.newKeySet();
+
+        protected IncrementalChanges( long since ) {
+            this.since = since;
         }
     }
 
@@ -561,11 +961,33 @@ public class BackupService {
 
         @Override
         public Problems execute() {
+            int parallelism = Math.max(1, options.parallelism());
+            ExecutorService workers = Executors.newFixedThreadPool(parallelism, new NamedThreadFactory("modeshape-restore-worker"));
+            try {
+                return execute(workers, parallelism);
+            } catch (InterruptedException e) {
+                Thread.interrupted();
+                problems.addError(e, JcrI18n.unexpectedProblemDuringRestore, e.getMessage());
+                return problems;
+            } finally {
+                workers.shutdownNow();
+            }
+        }
+
+        private Problems execute( ExecutorService workers,
+                                  int parallelism ) throws InterruptedException {
+            // Make sure the incremental backups can be applied before changing anything ...
+            List<Document> incrementalInfos = readIncrementalBackupInfos();
+            if (incrementalInfos == null) return problems;
+            // and that none of the (BSON) backup files are corrupt ...
+            verifyBackupFiles(workers, parallelism);
+            if (problems.hasErrors()) return problems;
+
             boolean includeBinaries = binaryDirectory.exists() && binaryDirectory.canRead() && options.includeBinaries();
             if (includeBinaries) {
                 LOGGER.debug("restoring binary files...");
                 removeExistingBinaryFiles();
-                restoreBinaryFiles();
+                restoreBinaryFiles(binaryDirectory, workers, parallelism);
                 if (problems.hasErrors()) {
                     // there were issues restoring the binaries so break
                     return problems;
@@ -578,8 +1000,14 @@ public class BackupService {
                 return problems;
             }
 
-            restoreDocuments(backupDirectory); // first pass of documents
-            restoreDocuments(changeDirectory); // documents changed while backup was being made
+            restoreDocuments(backupDirectory, workers, parallelism); // first pass of documents
+            if (!problems.hasErrors()) {
+                restoreDocuments(changeDirectory); // documents changed while backup was being made
+            }
+            List<File> incrementalDirectories = options.incrementalBackupDirectories();
+            for (int i = 0; i != incrementalDirectories.size() && !problems.hasErrors(); ++i) {
+                applyIncrementalBackup(incrementalDirectories.get(i), incrementalInfos.get(i), workers, parallelism);
+            }
             if (problems.hasErrors()) {
                 // there were issues while restoring, so remove everything
                 removeExistingBinaryFiles();
@@ -588,6 +1016,94 @@ public class BackupService {
             return problems;
         }
 
+        /**
+         * Read the information of each of the incremental backups to be restored, verifying that each is based upon the backup
+         * restored before it.
+         *
+         * @return the information of each incremental backup, in order; or null if any of them cannot be applied, in which case
+         *         a problem is recorded
+         */
+        private List<Document> readIncrementalBackupInfos() {
+            List<File> incrementalDirectories = options.incrementalBackupDirectories();
+            List<Document> infos = new ArrayList<>(incrementalDirectories.size());
+            if (incrementalDirectories.isEmpty()) return infos;
+            File previousDirectory = backupDirectory;
+            Document previous = readBackupInfo(previousDirectory);
+            if (previous == null) return null;
+            for (File directory : incrementalDirectories) {
+                Document info = readBackupInfo(directory);
+                if (info == null) return null;
+                Long since = info.getLong(FieldName.INCREMENTAL_SINCE);
+                if (since == null || !since.equals(previous.getLong(FieldName.WATERMARK))) {
+                    problems.addError(JcrI18n.invalidPreviousBackup, previousDirectory.getAbsolutePath(), repositoryName(),
+                                      "the backup at " + directory.getAbsolutePath() + " is not an incremental backup based upon it");
+                    return null;
+                }
+                infos.add(info);
+                previous = info;
+                previousDirectory = directory;
+            }
+            return infos;
+        }
+
+        private void verifyBackupFiles( ExecutorService workers,
+                                        int parallelism ) throws InterruptedException {
+            List<File> directories = new ArrayList<>();
+            directories.add(backupDirectory);
+            directories.add(changeDirectory);
+            for (File directory : options.incrementalBackupDirectories()) {
+                directories.add(directory);
+                directories.add(new File(directory, CHANGED_AREA_DIR_NAME));
+            }
+            Semaphore permits = new Semaphore(parallelism);
+            for (File directory : directories) {
+                for (File file : BackupDocumentReader.filesIn(directory, DOCUMENTS_FILENAME_PREFIX)) {
+                    submit(workers, permits, () -> BackupDocumentReader.verify(file, problems));
+                }
+            }
+            awaitCompletion(permits, parallelism);
+        }
+
+        private void applyIncrementalBackup( File directory,
+                                             Document info,
+                                             ExecutorService workers,
+                                             int parallelism ) throws InterruptedException {
+            LOGGER.debug("applying incremental backup at {0}...", directory.getAbsolutePath());
+            File binaries = new File(directory, BINARY_AREA_DIR_NAME);
+            if (binaries.exists() && binaries.canRead() && options.includeBinaries()) {
+                restoreBinaryFiles(binaries, workers, parallelism);
+                if (problems.hasErrors()) return;
+            }
+            removeDocuments(info);
+            if (problems.hasErrors()) return;
+            restoreDocuments(directory, workers, parallelism);
+            if (!problems.hasErrors()) {
+                restoreDocuments(new File(directory, CHANGED_AREA_DIR_NAME));
+            }
+        }
+
+        private void removeDocuments( Document incrementalInfo ) {
+            List<String> keys = new ArrayList<>();
+            List<?> removedKeys = incrementalInfo.getArray(FieldName.REMOVED_DOCUMENT_KEYS);
+            if (removedKeys != null) {
+                removedKeys.forEach(key -> keys.add(key.toString()));
+            }
+            LOGGER.debug("removing {0} documents...", keys.size());
+            int batchSize = options.batchSize();
+            for (int i = 0; i < keys.size(); i += batchSize) {
+                List<String> batch = keys.subList(i, Math.min(i + batchSize, keys.size()));
+                try {
+                    documentStore.runInTransaction(() -> {
+                        batch.forEach(documentStore::remove);
+                        return null;
+                    }, 0);
+                } catch (Throwable t) {
+                    problems.addError(t, JcrI18n.unexpectedProblemDuringRestore, t.getMessage());
+                    return;
+                }
+            }
+        }
+
         private void removeExistingBinaryFiles() {
             // simply mark all of the existing binary values as unused; if an unused binary value is restored,
             // it will simply be kept without having store it ...
@@ -612,24 +1128,43 @@ public class BackupService {
             }
         }
 
-        private void restoreBinaryFiles() {
-            for (File segment1Dir : binaryDirectory.listFiles()) {
-                for (File segment2Dir : segment1Dir.listFiles()) {
-                    for (File segment3Dir : segment2Dir.listFiles()) {
-                        List<BinaryKey> restoredKeys = Arrays.stream(segment3Dir.listFiles())
-                                                             .map(this::restoreBinaryFile)
-                                                             .filter(Objects::nonNull)
-                                                             .collect(Collectors.toList());
-                        // now mark all restored keys as used (we originally exported only used binaries)
-                        try {
-                            binaryStore.markAsUsed(restoredKeys);
-                        } catch (BinaryStoreException e) {
-                            I18n msg = JcrI18n.problemsGettingBinaryKeysFromBinaryStore;
-                            problems.addError(msg, repositoryName(), backupLocation(), e.getMessage());
-                        }
+        private void restoreBinaryFiles( File binaryDirectory,
+                                         ExecutorService workers,
+                                         int parallelism ) throws InterruptedException {
+            Progress progress = new Progress(JcrI18n.restoreProgress, "binary values", repositoryName(), backupLocation());
+            int numberOfPermits = parallelism * 2;
+            Semaphore permits = new Semaphore(numberOfPermits);
+            // Each of the directories at the third level contains the binary files, and is restored by one of the workers ...
+            for (File segment1Dir : listFiles(binaryDirectory)) {
+                for (File segment2Dir : listFiles(segment1Dir)) {
+                    for (File segment3Dir : listFiles(segment2Dir)) {
+                        submit(workers, permits, () -> restoreBinaryFiles(segment3Dir, progress));
                     }
                 }
             }
+            awaitCompletion(permits, numberOfPermits);
+            LOGGER.debug("Restored {0} binary values from {1}", progress.completed(), binaryDirectory.getAbsolutePath());
+        }
+
+        private void restoreBinaryFiles( File directory,
+                                         Progress progress ) {
+            List<BinaryKey> restoredKeys = Arrays.stream(listFiles(directory))
+                                                 .map(this::restoreBinaryFile)
+                                                 .filter(Objects::nonNull)
+                                                 .collect(Collectors.toList());
+            // now mark all restored keys as used (we originally exported only used binaries)
+            try {
+                binaryStore.markAsUsed(restoredKeys);
+            } catch (BinaryStoreException e) {
+                I18n msg = JcrI18n.problemsGettingBinaryKeysFromBinaryStore;
+                problems.addError(msg, repositoryName(), backupLocation(), e.getMessage());
+            }
+            progress.add(restoredKeys.size());
+        }
+
+        private File[] listFiles( File directory ) {
+            File[] files = directory.listFiles();
+            return files != null ? files : new File[0];
         }
 
         private BinaryKey restoreBinaryFile( File binaryFile ) {
@@ -671,39 +1206,79 @@ public class BackupService {
             return new BinaryKey(sha1);
         }
 
+        /**
+         * Restore the documents in the backup files of the given directory, using the supplied workers to restore several files
+         * at once. This can only be used when the order in which the documents are restored doesn't matter, since no document
+         * appears more than once.
+         *
+         * @param directory the directory containing the backup files; may not be null
+         * @param workers the workers; may not be null
+         * @param parallelism the number of workers
+         * @throws InterruptedException if the thread is interrupted while waiting for the workers
+         */
+        protected void restoreDocuments( File directory,
+                                         ExecutorService workers,
+                                         int parallelism ) throws InterruptedException {
+            LOGGER.debug("Restoring documents from {0} using {1} threads", directory.getAbsolutePath(), parallelism);
+            Progress progress = new Progress(JcrI18n.restoreProgress, "documents", repositoryName(), backupLocation());
+            int numberOfPermits = parallelism;
+            Semaphore permits = new Semaphore(numberOfPermits);
+            for (File file : BackupDocumentReader.filesIn(directory, DOCUMENTS_FILENAME_PREFIX)) {
+                if (problems.hasErrors()) break;
+                submit(workers, permits, () -> restoreDocuments(new BackupDocumentReader(file, problems), progress));
+            }
+            awaitCompletion(permits, numberOfPermits);
+            LOGGER.debug("Restored {0} documents from {1}", progress.completed(), directory.getAbsolutePath());
+        }
+
+        /**
+         * Restore the documents in the backup files of the given directory, in the order in which they appear in the files.
+         *
+         * @param directory the directory containing the backup files; may not be null
+         */
         protected void restoreDocuments( File directory ) {
-            BackupDocumentReader reader = new BackupDocumentReader(directory, DOCUMENTS_FILENAME_PREFIX, problems);
             LOGGER.debug("Restoring documents from {0}", directory.getAbsolutePath());
+            Progress progress = new Progress(JcrI18n.restoreProgress, "changed documents", repositoryName(), backupLocation());
+            restoreDocuments(new BackupDocumentReader(directory, DOCUMENTS_FILENAME_PREFIX, problems), progress);
+            LOGGER.debug("Restored {0} documents from {1}", progress.completed(), directory.getAbsolutePath());
+        }
+
+        private void restoreDocuments( BackupDocumentReader reader,
+                                       Progress progress ) {
             int count = 0;
             int batchSize = options.batchSize();
             int batchCounter = 0;
             List<Document> documentsBatch = new ArrayList<>();
             boolean eod = false;
-            while (!eod) {       
-                while (batchCounter++ < batchSize) {
-                    Document doc = reader.read();
-                    if (doc == null) {
-                        eod = true; 
-                        break;
-                    }
-                    documentsBatch.add(doc);
-                }
-                count += documentsBatch.size();
-                if (!documentsBatch.isEmpty()) {
-                    if (LOGGER.isDebugEnabled()) {
-                        LOGGER.debug("restoring documents batch [{0}, {1}]", count - documentsBatch.size(), count - 1);
+            try {
+                while (!eod) {
+                    while (batchCounter++ < batchSize) {
+                        Document doc = reader.read();
+                        if (doc == null) {
+                            eod = true;
+                            break;
+                        }
+                        documentsBatch.add(doc);
                     }
-                    writeDocumentsBatch(documentsBatch);
-                   
-                    if (problems.hasErrors()) {
-                        // something when wrong while writing the batch, so abort
-                        return;
+                    count += documentsBatch.size();
+                    if (!documentsBatch.isEmpty()) {
+                        if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug("restoring documents batch [{0}, {1}]", count - documentsBatch.size(), count - 1);
+                        }
+                        writeDocumentsBatch(documentsBatch);
+
+                        if (problems.hasErrors()) {
+                            // something when wrong while writing the batch (here or in another thread), so abort
+                            return;
+                        }
+                        progress.add(documentsBatch.size());
+                        documentsBatch.clear();
+                        batchCounter = 0;
                     }
-                    documentsBatch.clear();
-                    batchCounter = 0;
                 }
+            } finally {
+                reader.close();
             }
-            LOGGER.debug("Restored {0} documents from {1}", count, directory.getAbsolutePath());
         }
         
         private void writeDocumentsBatch(List<Document> documents) {
@@ -0,0 +1,300 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import org.modeshape.common.annotation.Immutable;
+import org.modeshape.common.annotation.ThreadSafe;
+
+/**
+ * An immutable histogram of durations, which counts the durations in a fixed number of log-linear buckets: durations below
+ * {@value #SUB_BUCKET_COUNT} each have their own bucket, and larger durations are counted in buckets which are never wider than
+ * 1/{@value #SUB_BUCKET_HALF_COUNT} of the smallest duration they contain. Any percentile can therefore be read from the
+ * histogram with a relative error of at most 6.25%, regardless of the number of durations that were counted.
+ * <p>
+ * Unlike the median of a series of {@link org.modeshape.jcr.api.monitor.Statistics}, histograms can be {@link #merge(Iterable)
+ * merged} without losing any precision, which is what allows {@link RepositoryStatistics} to roll up the percentiles into larger
+ * windows. Only the non-empty buckets are stored.
+ * </p>
+ * <p>
+ * The durations themselves are counted by {@link Recorder}s, each of which is written by a single thread without any locking or
+ * allocation, and is periodically drained by another thread.
+ * </p>
+ */
+@Immutable
+final class DurationHistogram {
+
+    static final int SUB_BUCKET_BITS = 5;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+
+    /**
+     * The largest duration which is distinguished from larger durations, which is more than 2 years in milliseconds.
+     */
+    static final long MAX_TRACKABLE_VALUE = (1L << 36) - 1L;
+
+    /**
+     * The number of buckets needed to count all durations up to {@link #MAX_TRACKABLE_VALUE}.
+     */
+    static final int BUCKET_COUNT = bucketIndex(MAX_TRACKABLE_VALUE) + 1;
+
+    static final DurationHistogram EMPTY = new DurationHistogram(new int[0], new long[0], 0L);
+
+    private final int[] buckets;
+    private final long[] counts;
+    private final long totalCount;
+
+    private DurationHistogram( int[] buckets,
+                               long[] counts,
+                               long totalCount ) {
+        this.buckets = buckets;
+        this.counts = counts;
+        this.totalCount = totalCount;
+    }
+
+    /**
+     * Get the index of the bucket which counts the supplied duration.
+     *
+     * @param value the duration
+     * @return the bucket index; never negative and always less than {@link #BUCKET_COUNT}
+     */
+    static int bucketIndex( long value ) {
+        if (value < SUB_BUCKET_COUNT) {
+            return value < 0L ? 0 : (int)value;
+        }
+        if (value > MAX_TRACKABLE_VALUE) {
+            value = MAX_TRACKABLE_VALUE;
+        }
+        // The bucket is determined by the position of the highest bit and the (SUB_BUCKET_BITS - 1) bits that follow it ...
+        int magnitude = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        return (magnitude * SUB_BUCKET_HALF_COUNT) + (int)(value >>> magnitude);
+    }
+
+    /**
+     * Get the smallest duration counted by the bucket with the supplied index.
+     *
+     * @param index the bucket index
+     * @return the smallest duration in the bucket
+     */
+    static long lowestEquivalentValue( int index ) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int magnitude = (index / SUB_BUCKET_HALF_COUNT) - 1;
+        long subBucket = index - (magnitude * SUB_BUCKET_HALF_COUNT);
+        return subBucket << magnitude;
+    }
+
+    /**
+     * Get the largest duration counted by the bucket with the supplied index.
+     *
+     * @param index the bucket index
+     * @return the largest duration in the bucket
+     */
+    static long highestEquivalentValue( int index ) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int magnitude = (index / SUB_BUCKET_HALF_COUNT) - 1;
+        long subBucket = index - (magnitude * SUB_BUCKET_HALF_COUNT);
+        return ((subBucket + 1L) << magnitude) - 1L;
+    }
+
+    /**
+     * Create a histogram with the supplied number of durations in each bucket.
+     *
+     * @param bucketCounts the number of durations in each bucket, indexed by the {@link #bucketIndex(long) bucket index}; may
+     *        not be null
+     * @return the histogram; never null
+     */
+    static DurationHistogram of( long[] bucketCounts ) {
+        int size = 0;
+        for (long count : bucketCounts) {
+            if (count > 0L) ++size;
+        }
+        if (size == 0) return EMPTY;
+        int[] buckets = new int[size];
+        long[] counts = new long[size];
+        long totalCount = 0L;
+        int j = 0;
+        for (int i = 0; i != bucketCounts.length; ++i) {
+            long count = bucketCounts[i];
+            if (count > 0L) {
+                buckets[j] = i;
+                counts[j++] = count;
+                totalCount += count;
+            }
+        }
+        return new DurationHistogram(buckets, counts, totalCount);
+    }
+
+    /**
+     * Merge the supplied histograms into a single histogram.
+     *
+     * @param histograms the histograms; may not be null but may contain nulls
+     * @return the merged histogram; never null
+     */
+    static DurationHistogram merge( Iterable<DurationHistogram> histograms ) {
+        long[] bucketCounts = new long[BUCKET_COUNT];
+        for (DurationHistogram histogram : histograms) {
+            if (histogram == null) continue;
+            for (int i = 0; i != histogram.buckets.length; ++i) {
+                bucketCounts[histogram.buckets[i]] += histogram.counts[i];
+            }
+        }
+        return of(bucketCounts);
+    }
+
+    /**
+     * Get the number of durations in this histogram.
+     *
+     * @return the number of durations; never negative
+     */
+    long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * Get the smallest duration that is equivalent to the smallest duration in this histogram.
+     *
+     * @return the minimum, or 0 if the histogram is empty
+     */
+    long getMinimum() {
+        return totalCount == 0L ? 0L : lowestEquivalentValue(buckets[0]);
+    }
+
+    /**
+     * Get the largest duration that is equivalent to the largest duration in this histogram.
+     *
+     * @return the maximum, or 0 if the histogram is empty
+     */
+    long getMaximum() {
+        return totalCount == 0L ? 0L : highestEquivalentValue(buckets[buckets.length - 1]);
+    }
+
+    /**
+     * Get the variance of the durations in this histogram, using the middle of each bucket as the value of the durations it
+     * contains.
+     *
+     * @param mean the mean of the durations
+     * @return the variance; never negative
+     */
+    double getVariance( double mean ) {
+        if (totalCount == 0L) return 0.0d;
+        double sum = 0.0d;
+        for (int i = 0; i != buckets.length; ++i) {
+            double middle = (lowestEquivalentValue(buckets[i]) + highestEquivalentValue(buckets[i])) / 2.0d;
+            double distance = middle - mean;
+            sum += counts[i] * distance * distance;
+        }
+        return sum / totalCount;
+    }
+
+    /**
+     * Get the duration at or below which the supplied percentage of the durations in this histogram fall.
+     *
+     * @param percentile the percentile, between 0.0 and 100.0 (inclusive)
+     * @return the largest duration that is equivalent to the duration at that percentile, or 0 if the histogram is empty
+     */
+    long getValueAtPercentile( double percentile ) {
+        if (totalCount == 0L) return 0L;
+        double requested = Math.min(Math.max(percentile, 0.0d), 100.0d);
+        long rank = Math.max(1L, (long)Math.ceil(requested * totalCount / 100.0d));
+        long seen = 0L;
+        for (int i = 0; i != buckets.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return highestEquivalentValue(buckets[i]);
+            }
+        }
+        return getMaximum();
+    }
+
+    @Override
+    public String toString() {
+        return "p50=" + getValueAtPercentile(50.0d) + "; p90=" + getValueAtPercentile(90.0d) + "; p99="
+               + getValueAtPercentile(99.0d) + "; p999=" + getValueAtPercentile(99.9d);
+    }
+
+    /**
+     * Counts the durations recorded by a single thread. The owning thread only ever increments the counters in place using
+     * ordered writes, so that {@link #record(long) recording} a duration requires neither locks nor allocation, while the
+     * counters are read by the thread that {@link #drainInto(long[]) drains} them. Since the counters are never reset, the
+     * draining thread keeps track of the values it has already drained.
+     */
+    @ThreadSafe
+    static final class Recorder {
+        private final AtomicIntegerArray counts = new AtomicIntegerArray(BUCKET_COUNT);
+        private final AtomicLong total = new AtomicLong();
+        private final WeakReference<Thread> owner;
+
+        // These are only used by the draining thread ...
+        private final int[] drainedCounts = new int[BUCKET_COUNT];
+        private long drainedTotal;
+
+        Recorder( Thread owner ) {
+            this.owner = new WeakReference<Thread>(owner);
+        }
+
+        /**
+         * Record a duration. This must only be called by the thread that owns this recorder.
+         *
+         * @param value the duration
+         */
+        void record( long value ) {
+            if (value < 0L) value = 0L;
+            int index = bucketIndex(value);
+            counts.lazySet(index, counts.get(index) + 1);
+            total.lazySet(total.get() + value);
+        }
+
+        /**
+         * Add the number of durations recorded in each bucket since the last call to the supplied array. This must only be
+         * called by a single thread.
+         *
+         * @param bucketCounts the number of durations in each bucket, to which the recorded durations are added; may not be
+         *        null
+         * @return the sum of the durations recorded since the last call
+         */
+        long drainInto( long[] bucketCounts ) {
+            // Read the total first, so that the counts include at least all of the durations in the total ...
+            long total = this.total.get();
+            long drained = total - drainedTotal;
+            drainedTotal = total;
+            for (int i = 0; i != BUCKET_COUNT; ++i) {
+                int count = counts.get(i);
+                if (count != drainedCounts[i]) {
+                    // The counters may wrap around, but the difference is still correct ...
+                    bucketCounts[i] += (count - drainedCounts[i]) & 0xFFFFFFFFL;
+                    drainedCounts[i] = count;
+                }
+            }
+            return drained;
+        }
+
+        /**
+         * Determine whether the thread that owns this recorder may still record durations.
+         *
+         * @return true if the thread is still alive, or false otherwise
+         */
+        boolean isOwnerAlive() {
+            Thread thread = owner.get();
+            return thread != null && thread.isAlive();
+        }
+    }
+}
@@ -0,0 +1,646 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.ValueFormatException;
+import javax.jcr.nodetype.ConstraintViolationException;
+import javax.jcr.nodetype.NoSuchNodeTypeException;
+import org.modeshape.common.i18n.I18n;
+import org.modeshape.common.logging.Logger;
+import org.modeshape.common.util.CheckArg;
+import org.modeshape.jcr.NodeTypes.NodeDefinitionSet;
+import org.modeshape.jcr.api.Binary;
+import org.modeshape.jcr.api.BulkIngestOptions;
+import org.modeshape.jcr.api.BulkIngester;
+import org.modeshape.jcr.api.value.DateTime;
+import org.modeshape.jcr.cache.CachedNode;
+import org.modeshape.jcr.cache.ChildReferences;
+import org.modeshape.jcr.cache.DocumentNotFoundException;
+import org.modeshape.jcr.cache.NodeKey;
+import org.modeshape.jcr.cache.SessionCache;
+import org.modeshape.jcr.cache.SiblingCounter;
+import org.modeshape.jcr.cache.change.RecordingChanges;
+import org.modeshape.jcr.cache.document.DocumentTranslator;
+import org.modeshape.jcr.cache.document.ImmutableChildReferences;
+import org.modeshape.jcr.cache.document.LocalDocumentStore;
+import org.modeshape.jcr.cache.document.WorkspaceCache;
+import org.modeshape.jcr.security.ModeShapePermissions;
+import org.modeshape.jcr.value.BinaryKey;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.Property;
+import org.modeshape.jcr.value.PropertyFactory;
+import org.modeshape.jcr.value.binary.AbstractBinary;
+import org.modeshape.jcr.value.binary.BinaryStoreException;
+import org.modeshape.schematic.Schematic;
+import org.modeshape.schematic.document.EditableArray;
+import org.modeshape.schematic.document.EditableDocument;
+
+/**
+ * The {@link BulkIngester} implementation, which validates each node against the {@link NodeTypes} of the session and then
+ * writes it as a document, built via the {@link DocumentTranslator}, directly to the {@link LocalDocumentStore}.
+ * <p>
+ * The nodes of a batch are only held in memory as their properties and child references, and each batch is written in one
+ * transaction which locks just the existing parents under which nodes were added (and the reference counts of any stored
+ * binary values). After a batch is committed, the workspace cache and any listeners are told that those parents have changed
+ * and that the new nodes were added, so that the nodes are journaled, indexed and sent to the other members of a cluster just
+ * like the nodes created by a regular save.
+ * </p>
+ */
+final class JcrBulkIngester implements BulkIngester {
+
+    private static final Logger LOGGER = Logger.getLogger(JcrBulkIngester.class);
+
+    /**
+     * The maximum number of written nodes whose information is kept, so that children can be added to recently written nodes
+     * without loading them back from the store.
+     */
+    private static final int MAX_WRITTEN_NODES = 10000;
+
+    /**
+     * The number of times the locks of a batch are requested before the batch fails.
+     */
+    private static final int LOCK_RETRY_COUNT = 2;
+
+    private final JcrSession session;
+    private final BulkIngestOptions options;
+    private final NodeTypes nodeTypes;
+    private final WorkspaceCache workspaceCache;
+    private final DocumentTranslator translator;
+    private final LocalDocumentStore documentStore;
+    private final PropertyFactory propertyFactory;
+    private final NodeKey rootKey;
+    private final String workspaceName;
+    private final boolean mimeTypeDetectionEnabled;
+
+    private final Map<NodeKey, NodeInfo> pendingNodes = new LinkedHashMap<>();
+    private final Map<NodeKey, NodeInfo> changedNodes = new LinkedHashMap<>();
+    private final Set<String> binaryReferenceKeys = new HashSet<>();
+    private final Map<NodeKey, NodeInfo> writtenNodes = new LinkedHashMap<NodeKey, NodeInfo>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<NodeKey, NodeInfo> eldest ) {
+            return size() > MAX_WRITTEN_NODES;
+        }
+    };
+    private long writtenNodeCount = 0L;
+    private boolean closed = false;
+
+    protected JcrBulkIngester( JcrSession session,
+                               BulkIngestOptions options ) {
+        this.session = session;
+        this.options = options;
+        this.nodeTypes = session.nodeTypes();
+        this.workspaceName = session.workspaceName();
+        this.workspaceCache = session.repository().repositoryCache().getWorkspaceCache(workspaceName);
+        this.translator = session.repository().repositoryCache().getDocumentTranslator();
+        this.documentStore = session.repository().documentStore().localStore();
+        this.propertyFactory = session.propertyFactory();
+        this.rootKey = workspaceCache.getRootKey();
+        this.mimeTypeDetectionEnabled = session.repository().mimeTypeDetectionEnabled();
+    }
+
+    @Override
+    public String addNode( String parentIdentifier,
+                           String name,
+                           String primaryType,
+                           String[] mixinTypes,
+                           Map<String, ?> properties ) throws RepositoryException {
+        CheckArg.isNotNull(parentIdentifier, "parentIdentifier");
+        CheckArg.isNotEmpty(name, "name");
+        CheckArg.isNotEmpty(primaryType, "primaryType");
+        checkOpen();
+
+        NodeInfo parent = nodeInfo(JcrSession.createNodeKeyFromIdentifier(parentIdentifier, rootKey));
+        Name childName = session.nameFactory().create(name);
+        Name childPrimaryType = session.nameFactory().create(primaryType);
+        Set<Name> childMixinTypes = new LinkedHashSet<>();
+        if (mixinTypes != null) {
+            for (String mixinType : mixinTypes) {
+                childMixinTypes.add(session.nameFactory().create(mixinType));
+            }
+        }
+        Path childPath = session.pathFactory().create(parent.path, childName, parent.countSiblingsNamed(childName) + 1);
+        validateNodeTypes(parent, childName, childPrimaryType, childMixinTypes, childPath);
+
+        NodeInfo child = new NodeInfo(parent.key.withRandomId(), parent.key, childPath, childPrimaryType, childMixinTypes,
+                                      SiblingCounter.noSiblings());
+        child.properties = propertiesFor(child, parent, properties);
+
+        // The node is valid, so add it to the batch ...
+        parent.childAdded(child.key, childName, translator);
+        changedNodes.put(parent.key, parent);
+        pendingNodes.put(child.key, child);
+        if (pendingNodes.size() >= options.batchSize()) {
+            writeBatch();
+        }
+        return session.nodeIdentifier(child.key);
+    }
+
+    @Override
+    public void flush() throws RepositoryException {
+        checkOpen();
+        writeBatch();
+    }
+
+    @Override
+    public void close() throws RepositoryException {
+        if (closed) {
+            return;
+        }
+        try {
+            writeBatch();
+        } finally {
+            closed = true;
+        }
+        LOGGER.debug("Bulk ingest wrote {0} nodes into workspace '{1}'", writtenNodeCount, workspaceName);
+    }
+
+    private void checkOpen() throws RepositoryException {
+        if (closed) {
+            throw new InvalidItemStateException(JcrI18n.bulkIngesterIsClosed.text(workspaceName));
+        }
+        session.checkLive();
+    }
+
+    private NodeInfo nodeInfo( NodeKey key ) throws RepositoryException {
+        NodeInfo info = pendingNodes.get(key);
+        if (info == null) {
+            info = changedNodes.get(key);
+        }
+        if (info == null) {
+            info = writtenNodes.get(key);
+        }
+        if (info == null) {
+            info = loadNodeInfo(key);
+            writtenNodes.put(key, info);
+        }
+        return info;
+    }
+
+    private NodeInfo loadNodeInfo( NodeKey key ) throws RepositoryException {
+        AbstractJcrNode node = session.node(key, null);
+        Path path = node.path();
+        session.checkPermission(path, ModeShapePermissions.ADD_NODE);
+        node.checkForLock();
+        node.checkForCheckedOut();
+        node.checkNodeTypeCanBeModified();
+
+        SessionCache cache = session.cache();
+        CachedNode cachedNode = node.node();
+        Name primaryType = cachedNode.getPrimaryType(cache);
+        Set<Name> mixinTypes = cachedNode.getMixinTypes(cache);
+        if (node.isExternal() || !rootKey.getWorkspaceKey().equals(key.getWorkspaceKey())
+            || nodeTypes.isUnorderedCollection(primaryType, mixinTypes)) {
+            // we can only append children to regular documents in this workspace ...
+            throw new ConstraintViolationException(JcrI18n.bulkIngestParentNotSupported.text(readable(path), workspaceName));
+        }
+        return new NodeInfo(key, null, path, primaryType, mixinTypes, SiblingCounter.create(cachedNode, cache));
+    }
+
+    private void validateNodeTypes( NodeInfo parent,
+                                    Name childName,
+                                    Name childPrimaryType,
+                                    Set<Name> childMixinTypes,
+                                    Path childPath ) throws RepositoryException {
+        if (ModeShapeLexicon.SHARE.equals(childPrimaryType)) {
+            String msg = JcrI18n.unableToCreateNodeWithInternalPrimaryType.text(childPrimaryType, readable(childPath),
+                                                                                workspaceName);
+            throw new ConstraintViolationException(msg);
+        }
+        JcrNodeType primaryType = nodeTypes.getNodeType(childPrimaryType);
+        if (primaryType == null) {
+            I18n msg = JcrI18n.unableToCreateNodeWithPrimaryTypeThatDoesNotExist;
+            throw new NoSuchNodeTypeException(msg.text(childPrimaryType, readable(childPath), workspaceName));
+        }
+        if (primaryType.isMixin()) {
+            throw new ConstraintViolationException(JcrI18n.cannotUseMixinTypeAsPrimaryType.text(primaryType.getName()));
+        }
+        if (primaryType.isAbstract()) {
+            throw new ConstraintViolationException(JcrI18n.primaryTypeCannotBeAbstract.text(primaryType.getName()));
+        }
+        boolean hasAutoCreatedChildren = !nodeTypes.getAutoCreatedChildNodeDefinitions(childPrimaryType).isEmpty();
+        for (Name childMixinType : childMixinTypes) {
+            JcrNodeType mixinType = nodeTypes.getNodeType(childMixinType);
+            if (mixinType == null) {
+                throw new NoSuchNodeTypeException(JcrI18n.typeNotFound.text(readable(childMixinType)));
+            }
+            if (!mixinType.isMixin() || mixinType.isAbstract()) {
+                throw new ConstraintViolationException(JcrI18n.cannotAddMixin.text(mixinType.getName()));
+            }
+            hasAutoCreatedChildren |= !nodeTypes.getAutoCreatedChildNodeDefinitions(childMixinType).isEmpty();
+        }
+
+        // Some kinds of nodes need more than a single document (or other documents to be updated) ...
+        if (hasAutoCreatedChildren || nodeTypes.isVersionable(childPrimaryType, childMixinTypes)
+            || nodeTypes.isShareable(childPrimaryType, childMixinTypes) || nodeTypes.isETag(childPrimaryType, childMixinTypes)
+            || nodeTypes.isUnorderedCollection(childPrimaryType, childMixinTypes)) {
+            I18n msg = JcrI18n.bulkIngestNodeTypesNotSupported;
+            throw new ConstraintViolationException(msg.text(readable(childPath), workspaceName, readable(childPrimaryType),
+                                                            readable(childMixinTypes)));
+        }
+
+        NodeDefinitionSet childDefns = nodeTypes.findChildNodeDefinitions(parent.primaryType, parent.mixinTypes);
+        JcrNodeDefinition childDefn = childDefns.findBestDefinitionForChild(childName, childPrimaryType, true, parent);
+        if (childDefn == null) {
+            // Failed to find an appropriate child node definition. Throw an exception with the appropriate message...
+            String repoName = session.repository().repositoryName();
+            childDefns.determineReasonForMismatch(childName, childPrimaryType, true, parent, parent.primaryType,
+                                                  parent.mixinTypes, parent.path, workspaceName, repoName, session.context());
+        }
+    }
+
+    private Map<Name, Property> propertiesFor( NodeInfo node,
+                                               NodeInfo parent,
+                                               Map<String, ?> values ) throws RepositoryException {
+        Map<Name, Property> properties = new LinkedHashMap<>();
+        properties.put(JcrLexicon.PRIMARY_TYPE, propertyFactory.create(JcrLexicon.PRIMARY_TYPE, node.primaryType));
+        if (!node.mixinTypes.isEmpty()) {
+            properties.put(JcrLexicon.MIXIN_TYPES, propertyFactory.create(JcrLexicon.MIXIN_TYPES, node.mixinTypes));
+        }
+
+        if (values != null) {
+            for (Map.Entry<String, ?> entry : values.entrySet()) {
+                Name name = session.nameFactory().create(entry.getKey());
+                Object value = entry.getValue();
+                Property property = null;
+                if (value instanceof Value[]) {
+                    property = multiValuedProperty(node, name, (Value[])value);
+                } else if (value instanceof Value) {
+                    property = singleValuedProperty(node, name, (JcrValue)value);
+                } else if (value != null) {
+                    throw new ValueFormatException(JcrI18n.bulkIngestInvalidPropertyValue.text(readable(name), value));
+                }
+                if (property != null) {
+                    properties.put(name, property);
+                }
+            }
+        }
+
+        // Add the auto-created properties which have default values ...
+        autoCreateProperties(node.primaryType, properties);
+        for (Name mixinType : node.mixinTypes) {
+            autoCreateProperties(mixinType, properties);
+        }
+
+        // Add the properties that are otherwise set by the session ...
+        if (nodeTypes.isReferenceable(node.primaryType, node.mixinTypes)) {
+            properties.put(JcrLexicon.UUID, propertyFactory.create(JcrLexicon.UUID, session.nodeIdentifier(node.key)));
+        }
+        DateTime now = session.dateFactory().create();
+        String userId = session.getUserID();
+        if (nodeTypes.isCreated(node.primaryType, node.mixinTypes)) {
+            properties.put(JcrLexicon.CREATED, propertyFactory.create(JcrLexicon.CREATED, now));
+            properties.put(JcrLexicon.CREATED_BY, propertyFactory.create(JcrLexicon.CREATED_BY, userId));
+        }
+        if (nodeTypes.isLastModified(node.primaryType, node.mixinTypes)) {
+            properties.put(JcrLexicon.LAST_MODIFIED, propertyFactory.create(JcrLexicon.LAST_MODIFIED, now));
+            properties.put(JcrLexicon.LAST_MODIFIED_BY, propertyFactory.create(JcrLexicon.LAST_MODIFIED_BY, userId));
+        }
+        if (mimeTypeDetectionEnabled && nodeTypes.isNtResource(node.primaryType)
+            && !properties.containsKey(JcrLexicon.MIMETYPE)) {
+            detectMimeType(properties, parent);
+        }
+
+        Collection<JcrPropertyDefinition> mandatoryPropDefns = nodeTypes.getMandatoryPropertyDefinitions(node.primaryType,
+                                                                                                          node.mixinTypes);
+        for (JcrPropertyDefinition defn : mandatoryPropDefns) {
+            if (!properties.containsKey(defn.getInternalName())) {
+                String typeName = defn.getDeclaringNodeType().getName();
+                throw new ConstraintViolationException(JcrI18n.missingMandatoryProperty.text(defn.getName(), typeName,
+                                                                                             readable(node.path)));
+            }
+        }
+
+        // Stored binary values have reference counts which are updated (and have to be locked) when the batch is written ...
+        for (Property property : properties.values()) {
+            if (property.isBinary()) {
+                for (Object value : property) {
+                    if (value instanceof AbstractBinary) {
+                        String sha1 = ((AbstractBinary)value).getKey().toString();
+                        binaryReferenceKeys.add(translator.keyForBinaryReferenceDocument(sha1));
+                    }
+                }
+            }
+        }
+        return properties;
+    }
+
+    private Property singleValuedProperty( NodeInfo node,
+                                           Name name,
+                                           JcrValue value ) throws RepositoryException {
+        if (value.value() == null) {
+            throw new ValueFormatException(JcrI18n.valueMayNotContainNull.text(readable(name)));
+        }
+        JcrPropertyDefinition defn = nodeTypes.findPropertyDefinition(session, node.primaryType, node.mixinTypes, name, value,
+                                                                      true, true, true);
+        if (defn == null) {
+            // See if there's a definition that would work if it had no constraints ...
+            defn = nodeTypes.findPropertyDefinition(session, node.primaryType, node.mixinTypes, name, value, true, true, false);
+            throw noPropertyDefinition(node, name, defn, value.getString());
+        }
+        int requiredType = requiredType(node, name, defn, value.getType());
+        return propertyFactory.create(name, value.asType(requiredType).value());
+    }
+
+    private Property multiValuedProperty( NodeInfo node,
+                                          Name name,
+                                          Value[] values ) throws RepositoryException {
+        List<JcrValue> nonNullValues = new ArrayList<>(values.length);
+        for (Value value : values) {
+            JcrValue jcrValue = (JcrValue)value;
+            if (jcrValue == null) {
+                continue;
+            }
+            if (jcrValue.value() == null) {
+                throw new ValueFormatException(JcrI18n.valueMayNotContainNull.text(readable(name)));
+            }
+            if (!nonNullValues.isEmpty() && nonNullValues.get(0).getType() != jcrValue.getType()) {
+                String type = org.modeshape.jcr.api.PropertyType.nameFromValue(nonNullValues.get(0).getType());
+                I18n msg = JcrI18n.allPropertyValuesMustHaveSameType;
+                throw new ValueFormatException(msg.text(readable(name), values, type, readable(node.path), workspaceName));
+            }
+            nonNullValues.add(jcrValue);
+        }
+        JcrValue[] jcrValues = nonNullValues.toArray(new JcrValue[nonNullValues.size()]);
+        JcrPropertyDefinition defn = nodeTypes.findPropertyDefinition(session, node.primaryType, node.mixinTypes, name,
+                                                                      jcrValues, true, true);
+        if (defn == null) {
+            // See if there's a definition that would work if it had no constraints ...
+            defn = nodeTypes.findPropertyDefinition(session, node.primaryType, node.mixinTypes, name, jcrValues, true, false);
+            throw noPropertyDefinition(node, name, defn, readable(Arrays.asList(jcrValues)));
+        }
+        int valueType = jcrValues.length > 0 ? jcrValues[0].getType() : PropertyType.STRING;
+        int requiredType = requiredType(node, name, defn, valueType);
+        Object[] rawValues = new Object[jcrValues.length];
+        for (int i = 0; i != jcrValues.length; ++i) {
+            rawValues[i] = jcrValues[i].asType(requiredType).value();
+        }
+        return propertyFactory.create(name, rawValues);
+    }
+
+    private int requiredType( NodeInfo node,
+                              Name name,
+                              JcrPropertyDefinition defn,
+                              int valueType ) throws ConstraintViolationException {
+        int requiredType = defn.getRequiredType();
+        if (requiredType == PropertyType.UNDEFINED) {
+            requiredType = valueType;
+        }
+        if (requiredType == PropertyType.REFERENCE || requiredType == PropertyType.WEAKREFERENCE) {
+            // references are tracked in the referenced documents, which are not part of a batch ...
+            I18n msg = JcrI18n.bulkIngestReferencesNotSupported;
+            throw new ConstraintViolationException(msg.text(readable(name), readable(node.path), workspaceName));
+        }
+        return requiredType;
+    }
+
+    private ConstraintViolationException noPropertyDefinition( NodeInfo node,
+                                                               Name name,
+                                                               JcrPropertyDefinition defnWithoutConstraints,
+                                                               String value ) {
+        String propName = readable(name);
+        if (defnWithoutConstraints != null) {
+            String defnName = defnWithoutConstraints.getName();
+            String nodeTypeName = defnWithoutConstraints.getDeclaringNodeType().getName();
+            I18n msg = JcrI18n.valueViolatesConstraintsOnDefinition;
+            return new ConstraintViolationException(msg.text(propName, value, readable(node.path), defnName, nodeTypeName));
+        }
+        I18n msg = JcrI18n.noPropertyDefinition;
+        return new ConstraintViolationException(msg.text(propName, readable(node.path), readable(node.primaryType),
+                                                         readable(node.mixinTypes)));
+    }
+
+    private void autoCreateProperties( Name nodeType,
+                                       Map<Name, Property> properties ) {
+        for (JcrPropertyDefinition defn : nodeTypes.getAutoCreatedPropertyDefinitions(nodeType)) {
+            Name propName = defn.getInternalName();
+            if (!defn.hasDefaultValues() || properties.containsKey(propName)) {
+                continue;
+            }
+            Object[] defaultValues = defn.getRawDefaultValues();
+            if (defn.isMultiple()) {
+                properties.put(propName, propertyFactory.create(propName, defaultValues));
+            } else {
+                properties.put(propName, propertyFactory.create(propName, defaultValues[0]));
+            }
+        }
+    }
+
+    private void detectMimeType( Map<Name, Property> properties,
+                                 NodeInfo parent ) throws RepositoryException {
+        Property dataProp = properties.get(JcrLexicon.DATA);
+        if (dataProp == null || !(dataProp.getFirstValue() instanceof Binary)) {
+            return;
+        }
+        String fileName = parent.path.isRoot() ? null : readable(parent.path.getLastSegment().getName());
+        try {
+            String mimeType = ((Binary)dataProp.getFirstValue()).getMimeType(fileName);
+            if (mimeType != null) {
+                properties.put(JcrLexicon.MIMETYPE, propertyFactory.create(JcrLexicon.MIMETYPE, mimeType));
+            }
+        } catch (java.io.IOException e) {
+            throw new RepositoryException(e);
+        }
+    }
+
+    private void writeBatch() throws RepositoryException {
+        if (pendingNodes.isEmpty()) {
+            return;
+        }
+        // Lock the existing documents which are changed, but not the new ones which nobody else can see yet ...
+        List<String> keysToLock = new ArrayList<>(binaryReferenceKeys);
+        for (NodeInfo changed : changedNodes.values()) {
+            if (!pendingNodes.containsKey(changed.key)) {
+                keysToLock.add(changed.key.toString());
+            }
+        }
+        Collections.sort(keysToLock);
+
+        Set<BinaryKey> usedBinaryKeys = new HashSet<>();
+        try {
+            documentStore.runInTransaction(() -> {
+                for (NodeInfo node : pendingNodes.values()) {
+                    EditableDocument doc = Schematic.newDocument();
+                    translator.setKey(doc, node.key);
+                    translator.setParents(doc, node.parentKey, null, null);
+                    for (Property property : node.properties.values()) {
+                        translator.setProperty(doc, property, null, usedBinaryKeys);
+                    }
+                    if (!nodeTypes.isQueryable(node.primaryType, node.mixinTypes)) {
+                        translator.setQueryable(doc, false);
+                    }
+                    if (node.appended != null) {
+                        translator.changeChildren(doc, null, node.appendedReferences(translator, nodeTypes));
+                    }
+                    documentStore.put(node.key.toString(), doc);
+                }
+                for (NodeInfo changed : changedNodes.values()) {
+                    if (pendingNodes.containsKey(changed.key)) {
+                        continue;
+                    }
+                    String key = changed.key.toString();
+                    EditableDocument doc = documentStore.edit(key, false);
+                    if (doc == null) {
+                        // the parent was removed by someone else in the meantime ...
+                        throw new DocumentNotFoundException(key);
+                    }
+                    translator.changeChildren(doc, null, changed.appendedReferences(translator, nodeTypes));
+                }
+                return null;
+            }, LOCK_RETRY_COUNT, keysToLock.toArray(new String[keysToLock.size()]));
+        } catch (DocumentNotFoundException e) {
+            closed = true;
+            throw new InvalidItemStateException(JcrI18n.nodeModifiedBySessionWasRemovedByAnotherSession.text(e.getKey()), e);
+        } catch (RuntimeException e) {
+            // the batch cannot be written, and the information about the nodes which were added is no longer accurate ...
+            closed = true;
+            throw new RepositoryException(e);
+        }
+        batchWritten(usedBinaryKeys);
+    }
+
+    private void batchWritten( Set<BinaryKey> usedBinaryKeys ) {
+        ExecutionContext context = session.context();
+        RecordingChanges changes = new RecordingChanges(context.getId(), context.getProcessId(),
+                                                        workspaceCache.getRepositoryKey(), workspaceName,
+                                                        session.repository().journalId());
+        Set<NodeKey> changedKeys = new HashSet<>();
+        for (NodeInfo changed : changedNodes.values()) {
+            changed.appended = null;
+            if (!pendingNodes.containsKey(changed.key)) {
+                changes.nodeChanged(changed.key, changed.path, changed.primaryType, changed.mixinTypes);
+                changedKeys.add(changed.key);
+            }
+        }
+        for (NodeInfo node : pendingNodes.values()) {
+            changes.nodeCreated(node.key, node.parentKey, node.path, node.primaryType, node.mixinTypes, node.properties);
+            changedKeys.add(node.key);
+        }
+        for (BinaryKey binaryKey : usedBinaryKeys) {
+            changes.binaryValueUsed(binaryKey);
+        }
+        changes.setChangedNodes(changedKeys);
+        changes.freeze(session.getUserID(), context.getData(), session.dateFactory().create());
+        workspaceCache.changed(changes);
+
+        if (!usedBinaryKeys.isEmpty()) {
+            try {
+                context.getBinaryStore().markAsUsed(usedBinaryKeys);
+            } catch (BinaryStoreException e) {
+                LOGGER.error(e, JcrI18n.errorMarkingBinaryValuesUsed, e.getMessage());
+            }
+        }
+
+        for (NodeInfo node : pendingNodes.values()) {
+            // the properties are written, and only the information needed to add more children is kept ...
+            node.properties = null;
+            writtenNodes.put(node.key, node);
+        }
+        writtenNodeCount += pendingNodes.size();
+        LOGGER.debug("Bulk ingest wrote a batch of {0} nodes into workspace '{1}'", pendingNodes.size(), workspaceName);
+        pendingNodes.clear();
+        changedNodes.clear();
+        binaryReferenceKeys.clear();
+    }
+
+    private String readable( Object obj ) {
+        return session.stringFactory().create(obj);
+    }
+
+    private String readable( Collection<?> objs ) {
+        StringBuilder sb = new StringBuilder("[");
+        for (Object obj : objs) {
+            if (sb.length() > 1) {
+                sb.append(',');
+            }
+            sb.append(readable(obj));
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * The information about a node to which children can be added: either an existing node, or a node which was added via this
+     * ingester (and which might not have been written yet). This also counts the existing and added children by name.
+     */
+    private static final class NodeInfo extends SiblingCounter {
+        private final NodeKey key;
+        /** The key of the parent of a node added via this ingester; null for existing nodes */
+        private final NodeKey parentKey;
+        private final Path path;
+        private final Name primaryType;
+        private final Set<Name> mixinTypes;
+        private final SiblingCounter existingChildren;
+        private final Map<Name, Integer> addedChildCounts = new HashMap<>();
+        /** The properties of a node which has not yet been written; null otherwise */
+        private Map<Name, Property> properties;
+        /** The references to the children added since the last batch was written; may be null */
+        private EditableArray appended;
+
+        protected NodeInfo( NodeKey key,
+                            NodeKey parentKey,
+                            Path path,
+                            Name primaryType,
+                            Set<Name> mixinTypes,
+                            SiblingCounter existingChildren ) {
+            this.key = key;
+            this.parentKey = parentKey;
+            this.path = path;
+            this.primaryType = primaryType;
+            this.mixinTypes = mixinTypes;
+            this.existingChildren = existingChildren;
+        }
+
+        @Override
+        public int countSiblingsNamed( Name childName ) {
+            Integer added = addedChildCounts.get(childName);
+            return existingChildren.countSiblingsNamed(childName) + (added != null ? added : 0);
+        }
+
+        protected void childAdded( NodeKey childKey,
+                                   Name childName,
+                                   DocumentTranslator translator ) {
+            addedChildCounts.merge(childName, 1, Integer::sum);
+            if (appended == null) {
+                appended = Schematic.newArray();
+            }
+            appended.add(translator.childReferenceDocument(childKey, childName));
+        }
+
+        protected ChildReferences appendedReferences( DocumentTranslator translator,
+                                                      NodeTypes nodeTypes ) {
+            boolean allowsSNS = nodeTypes.allowsNameSiblings(primaryType, mixinTypes);
+            EditableDocument children = Schematic.newDocument(DocumentTranslator.CHILDREN, appended);
+            return ImmutableChildReferences.create(translator, children, DocumentTranslator.CHILDREN, allowsSNS);
+        }
+    }
+}
@@ -43,10 +43,12 @@ public final class JcrI18n {
     public static I18n indexProviderMissingPlanner;
     public static I18n errorNotifyingNodeTypesListener;
     public static I18n errorIndexing;
+    public static I18n errorUpdatingIndex;
     public static I18n cannotReindexJournalNotEnabled;
     public static I18n warnIncrementalIndexingJournalNotEnabled;
     public static I18n warnIncrementalIndexingJournalNotStarted;
     public static I18n warnIncrementalIndexingNotSupported;
+    public static I18n warnIncrementalIndexingJournalIncomplete;
 
     public static I18n cannotConvertValue;
     public static I18n loginFailed;
@@ -75,7 +77,12 @@ public final class JcrI18n {
     public static I18n interruptedWhilePerformingBackup;
     public static I18n problemObtainingDocumentsToBackup;
     public static I18n backupOperationWasCancelled;
+    public static I18n backupFileIsCorrupt;
     public static I18n problemsClosingBackupFiles;
+    public static I18n backupProgress;
+    public static I18n restoreProgress;
+    public static I18n incrementalBackupRequiresJournaling;
+    public static I18n invalidPreviousBackup;
     public static I18n unableToInitializeAuthenticationProvider;
     public static I18n errorInAuthenticationProvider;
     public static I18n unableToInitializeSequencer;
@@ -388,6 +395,7 @@ public final class JcrI18n {
     public static I18n unableToWriteTemporaryDirectory;
     public static I18n unableToDeleteTemporaryFile;
     public static I18n unableToFindBinaryValue;
+    public static I18n binaryValueDoesNotMatchKey;
     public static I18n tempDirectorySystemPropertyMustBeSet;
 
     public static I18n errorKillingRepository;
@@ -440,6 +448,7 @@ public final class JcrI18n {
     public static I18n cannotStartJournal;
     public static I18n cannotStopJournal;
     public static I18n journalHasNotCompletedReconciliation;
+    public static I18n journalIsMissingChanges;
 
     public static I18n indexProviderNameRequired;
     public static I18n indexProviderNameMustMatchProvider;
@@ -452,6 +461,14 @@ public final class JcrI18n {
 
     public static I18n errorInvalidUserTransaction;
     public static I18n warnAttemptingToUnlockAnotherLock;
+
+    public static I18n unableToBulkIngestWithPendingChanges;
+    public static I18n bulkIngesterIsClosed;
+    public static I18n bulkIngestParentNotSupported;
+    public static I18n bulkIngestNodeTypesNotSupported;
+    public static I18n bulkIngestReferencesNotSupported;
+    public static I18n bulkIngestInvalidPropertyValue;
+
     private JcrI18n() {
     }
 
@@ -42,12 +42,14 @@ import org.modeshape.jcr.api.query.QueryManager;
 import org.modeshape.jcr.cache.CachedNode;
 import org.modeshape.jcr.cache.NodeCache;
 import org.modeshape.jcr.cache.NodeKey;
+import org.modeshape.jcr.cache.NodeNotFoundException;
 import org.modeshape.jcr.cache.RepositoryCache;
 import org.modeshape.jcr.query.BufferManager;
 import org.modeshape.jcr.query.CancellableQuery;
 import org.modeshape.jcr.query.JcrQuery;
 import org.modeshape.jcr.query.JcrQueryContext;
 import org.modeshape.jcr.query.JcrTypeSystem;
+import org.modeshape.jcr.query.engine.CoveredNode;
 import org.modeshape.jcr.query.model.QueryCommand;
 import org.modeshape.jcr.query.model.QueryObjectModel;
 import org.modeshape.jcr.query.model.QueryObjectModelFactory;
@@ -321,7 +323,14 @@ class JcrQueryManager implements QueryManager {
             if (node == null) {
                 return false;
             }
-            Path path = getPath(node);
+            Path path = null;
+            try {
+                path = storedPath(node);
+                if (path == null) path = getPath(node);
+            } catch (NodeNotFoundException e) {
+                // the node was covered by an index but has since been removed ...
+                return false;
+            }
             try {
                 session.checkPermission(path, ModeShapePermissions.READ);
                 return true;
@@ -331,6 +340,20 @@ class JcrQueryManager implements QueryManager {
             }
         }
 
+        /**
+         * Get the path of a node covered by an index, as it was stored in the index. The stored path is the persisted path of
+         * the node, so it is only used when the session has no transient changes that could have moved the node.
+         *
+         * @param node the node; may not be null
+         * @return the stored path, or null if the actual path of the node has to be used
+         */
+        private Path storedPath( CachedNode node ) {
+            if (!(node instanceof CoveredNode) || session.cache().hasChanges()) {
+                return null;
+            }
+            return ((CoveredNode)node).getStoredPath();
+        }
+
         @SuppressWarnings( "deprecation" )
         @Override
         public String getUuid( CachedNode node ) {
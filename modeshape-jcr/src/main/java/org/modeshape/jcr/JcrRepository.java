@@ -1051,7 +1051,8 @@ public class JcrRepository implements org.modeshape.jcr.api.Repository {
                             this.clusteringService = ClusteringService.startStandalone(clusterName, clustering.getConfiguration());        
                         }
                         this.lockingService = clustering.useDbLocking() ?
-                                              new DbLockingService(lockTimeoutMillis, this.schematicDb) :
+                                              new DbLockingService(lockTimeoutMillis, this.schematicDb,
+                                                                   this.clusteringService, this.statistics) :
                                               new JGroupsLockingService(this.clusteringService.getChannel(), lockTimeoutMillis);
                     } else {
                         this.clusteringService = null;
@@ -1178,6 +1179,7 @@ public class JcrRepository implements org.modeshape.jcr.api.Repository {
                 }
                 this.binaryStore.setMimeTypeDetector(this.mimeTypeDetector);
                 this.binaryStore.setTextExtractors(this.extractors);
+                this.binaryStore.setStatistics(this.statistics);
 
                 if (other != null && !change.sequencingChanged) {
                     this.sequencers = other.sequencers.with(this);
@@ -1313,6 +1315,9 @@ public class JcrRepository implements org.modeshape.jcr.api.Repository {
                 // Have the query manager tell the providers to initialize the indexes. This may cause a background reindexing ...
                 queryManager().reindex();
 
+                // Run any sequencing work that was queued but not completed before the repository was last shut down ...
+                sequencers.restoreQueuedWork();
+
                 // Register the background processes.
                 // Do this last since we want the repository running before these are started ...
                 GarbageCollection gcConfig = config.getGarbageCollection();
@@ -1341,10 +1346,12 @@ public class JcrRepository implements org.modeshape.jcr.api.Repository {
                     long optIntervalInHours = optConfig.getIntervalInHours();
                     int targetCount = optConfig.getChildCountTarget();
                     int tolerance = optConfig.getChildCountTolerance();
+                    boolean childDirectory = optConfig.isChildDirectoryEnabled();
                     assert optInitialTimeInMillis >= 0;
                     long optIntervalInMillis = TimeUnit.MILLISECONDS.convert(optIntervalInHours, TimeUnit.HOURS);
                     ScheduledExecutorService optService = this.context.getScheduledThreadPool(threadPoolName);
-                    OptimizationTask optTask = new OptimizationTask(JcrRepository.this, targetCount, tolerance);
+                    OptimizationTask optTask = new OptimizationTask(JcrRepository.this, targetCount, tolerance,
+                                                                    childDirectory);
                     backgroundProcesses.add(optService.scheduleAtFixedRate(optTask, optInitialTimeInMillis, optIntervalInMillis,
                                                                            TimeUnit.MILLISECONDS));
                 }
@@ -1388,6 +1395,10 @@ public class JcrRepository implements org.modeshape.jcr.api.Repository {
             return cache;
         }
 
+        final RepositoryConfiguration config() {
+            return config;
+        }
+
         final ChangeJournal journal() {
             return journal;
         }
@@ -1427,6 +1438,10 @@ public class JcrRepository implements org.modeshape.jcr.api.Repository {
             return transactions.getTransactionManager();
         }
 
+        protected final Transactions transactions() {
+            return transactions;
+        }
+
         protected final RepositoryNodeTypeManager nodeTypeManager() {
             return nodeTypes;
         }
@@ -2008,18 +2023,21 @@ public class JcrRepository implements org.modeshape.jcr.api.Repository {
     protected static class OptimizationTask extends BackgroundRepositoryTask {
         private final int targetCount;
         private final int tolerance;
+        private final boolean childDirectory;
 
         protected OptimizationTask( JcrRepository repository,
                                     int targetCount,
-                                    int tolerance ) {
+                                    int tolerance,
+                                    boolean childDirectory ) {
             super(repository);
             this.targetCount = targetCount;
             this.tolerance = tolerance;
+            this.childDirectory = childDirectory;
         }
 
         @Override
         protected void doRun( JcrRepository repository ) {
-            repository.runningState().repositoryCache().optimizeChildren(targetCount, tolerance);
+            repository.runningState().repositoryCache().optimizeChildren(targetCount, tolerance, childDirectory);
         }
     }
 
@@ -73,6 +73,8 @@ import org.modeshape.jcr.JcrRepository.RunningState;
 import org.modeshape.jcr.JcrSharedNodeCache.SharedSet;
 import org.modeshape.jcr.NodeTypes.NodeDefinitionSet;
 import org.modeshape.jcr.api.Binary;
+import org.modeshape.jcr.api.BulkIngestOptions;
+import org.modeshape.jcr.api.BulkIngester;
 import org.modeshape.jcr.api.ValueFactory;
 import org.modeshape.jcr.api.monitor.DurationMetric;
 import org.modeshape.jcr.api.monitor.ValueMetric;
@@ -2031,6 +2033,15 @@ public class JcrSession implements org.modeshape.jcr.api.Session {
         }
     }
 
+    @Override
+    public BulkIngester bulkIngester( BulkIngestOptions options ) throws RepositoryException {
+        checkLive();
+        if (cache().hasChanges()) {
+            throw new InvalidItemStateException(JcrI18n.unableToBulkIngestWithPendingChanges.text(workspaceName()));
+        }
+        return new JcrBulkIngester(this, options != null ? options : BulkIngestOptions.DEFAULT);
+    }
+
     @Override
     public String toString() {
         return cache.toString();
@@ -30,6 +30,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
@@ -53,6 +54,7 @@ import org.modeshape.jcr.api.index.IndexColumnDefinition;
 import org.modeshape.jcr.api.index.IndexDefinition;
 import org.modeshape.jcr.api.index.IndexDefinition.IndexKind;
 import org.modeshape.jcr.api.txn.TransactionManagerLookup;
+import org.modeshape.jcr.index.local.InMemoryIndexProvider;
 import org.modeshape.jcr.index.local.LocalIndexProvider;
 import org.modeshape.jcr.mimetype.MimeTypeDetector;
 import org.modeshape.jcr.mimetype.MimeTypeDetectors;
@@ -63,7 +65,9 @@ import org.modeshape.jcr.value.PropertyType;
 import org.modeshape.jcr.value.binary.AbstractBinaryStore;
 import org.modeshape.jcr.value.binary.BinaryStore;
 import org.modeshape.jcr.value.binary.BinaryStoreException;
+import org.modeshape.jcr.value.binary.CachingBinaryStore;
 import org.modeshape.jcr.value.binary.CassandraBinaryStore;
+import org.modeshape.jcr.value.binary.ChunkedFileSystemBinaryStore;
 import org.modeshape.jcr.value.binary.CompositeBinaryStore;
 import org.modeshape.jcr.value.binary.DatabaseBinaryStore;
 import org.modeshape.jcr.value.binary.FileSystemBinaryStore;
@@ -411,9 +415,18 @@ public class RepositoryConfiguration {
         public static final String SYNCHRONOUS = "synchronous";
         public static final String NODE_TYPE = "nodeType";
         public static final String COLUMNS = "columns";
+        public static final String STORED_COLUMNS = "storedColumns";
         public static final String TYPE = "type";
         public static final String DIRECTORY = "directory";
         public static final String TRASH_DIRECTORY = "trash";
+        public static final String MAXIMUM_PACKED_BINARY_SIZE_IN_BYTES = "maximumPackedBinarySizeInBytes";
+        public static final String PACK_SEGMENT_SIZE_IN_BYTES = "packSegmentSizeInBytes";
+        public static final String UNUSED_VALUE_INDEX_ENABLED = "unusedValueIndexEnabled";
+        public static final String GARBAGE_COLLECTION_RATE_LIMIT = "garbageCollectionRateLimit";
+        public static final String AVERAGE_CHUNK_SIZE_IN_BYTES = "averageChunkSizeInBytes";
+        public static final String CACHE_SIZE_IN_BYTES = "cacheSizeInBytes";
+        public static final String CACHE_EVICTION_POLICY = "evictionPolicy";
+        public static final String CACHED_STORE = "cachedStore";
         public static final String CLASSLOADER = "classloader";
         public static final String CLASSNAME = "classname";
         public static final String DATA_SOURCE_JNDI_NAME = "dataSourceJndiName";
@@ -446,6 +459,7 @@ public class RepositoryConfiguration {
         public static final String DOCUMENT_OPTIMIZATION = "documentOptimization";
         public static final String OPTIMIZATION_CHILD_COUNT_TARGET = "childCountTarget";
         public static final String OPTIMIZATION_CHILD_COUNT_TOLERANCE = "childCountTolerance";
+        public static final String OPTIMIZATION_CHILD_DIRECTORY = "childDirectory";
         
         public static final String HOST_ADDRESSES = "hostAddresses";
 
@@ -458,6 +472,14 @@ public class RepositoryConfiguration {
          * The name of the field which allows the configuration of the maximum number of threads that can be spawned by a pool
          */
         public static final String MAX_POOL_SIZE = "maxPoolSize";
+        public static final String MAX_QUEUE_SIZE = "maxQueueSize";
+        public static final String MAX_TEXT_LENGTH = "maxTextLength";
+        public static final String MIME_TYPE_CONCURRENCY = "mimeTypeConcurrency";
+        public static final String BATCH_SIZE = "batchSize";
+        public static final String MAX_CONCURRENCY = "maxConcurrency";
+        public static final String WORK_QUEUE_DIRECTORY = "workQueueDirectory";
+        public static final String MAX_ATTEMPTS = "maxAttempts";
+        public static final String RETRY_DELAY_IN_MILLIS = "retryDelayInMillis";
         
         /**
          * The name of the journaling schema field.
@@ -555,6 +577,7 @@ public class RepositoryConfiguration {
 
         public static final String OPTIMIZATION_INITIAL_TIME = "02:00";
         public static final int OPTIMIZATION_INTERVAL_IN_HOURS = 24;
+        public static final boolean OPTIMIZATION_CHILD_DIRECTORY = false;
 
         public static final String JOURNAL_LOCATION = "modeshape/journal";
         // by default journal entries are kept indefinitely
@@ -567,14 +590,21 @@ public class RepositoryConfiguration {
         public static final String WORKSPACES = "*";
 
         public static final int SEQUENCING_MAX_POOL_SIZE = 10;
+        public static final int SEQUENCING_BATCH_SIZE = 100;
+        public static final int SEQUENCING_MAX_ATTEMPTS = 1;
+        public static final long SEQUENCING_RETRY_DELAY_IN_MILLIS = TimeUnit.MILLISECONDS.convert(30, TimeUnit.SECONDS);
         public static final int TEXT_EXTRACTION_MAX_POOL_SIZE = 5;
+        public static final int TEXT_EXTRACTION_MAX_QUEUE_SIZE = 1000;
+        public static final int TEXT_EXTRACTION_MAX_TEXT_LENGTH = 10 * 1024 * 1024;
     }
 
     public static final class FieldValue {
         public static final String BINARY_STORAGE_TYPE_TRANSIENT = "transient";
         public static final String BINARY_STORAGE_TYPE_FILE = "file";
+        public static final String BINARY_STORAGE_TYPE_CHUNKED = "chunked";
         public static final String BINARY_STORAGE_TYPE_DATABASE = "database";
         public static final String BINARY_STORAGE_TYPE_COMPOSITE = "composite";
+        public static final String BINARY_STORAGE_TYPE_CACHED = "cached";
         public static final String BINARY_STORAGE_TYPE_CASSANDRA = "cassandra";
         public static final String BINARY_STORAGE_TYPE_MONGO = "mongo";
         public static final String BINARY_STORAGE_TYPE_S3 = "s3";
@@ -607,6 +637,7 @@ public class RepositoryConfiguration {
         skipProps.add(FieldName.CLASSNAME);
         skipProps.add(FieldName.PROJECTIONS);
         skipProps.add(FieldName.EXPOSE_AS_WORKSPACE);
+        skipProps.add(FieldName.MAX_CONCURRENCY);
         
         COMPONENT_SKIP_PROPERTIES = Collections.unmodifiableSet(skipProps);
 
@@ -686,6 +717,7 @@ public class RepositoryConfiguration {
 
         aliases = new HashMap<>();
         aliases.put("local", LocalIndexProvider.class.getName());
+        aliases.put("in-memory", InMemoryIndexProvider.class.getName());
         aliases.put("lucene", "org.modeshape.jcr.index.lucene.LuceneIndexProvider");
         aliases.put("elasticsearch", "org.modeshape.jcr.index.elasticsearch.EsIndexProvider");
 
@@ -1152,7 +1184,21 @@ public class RepositoryConfiguration {
                 assert directory != null;
                 File dir = new File(directory);
                 File trashDir = trash != null ? new File(trash) : null;
-                store = FileSystemBinaryStore.create(dir, trashDir);
+                FileSystemBinaryStore fileStore = FileSystemBinaryStore.create(dir, trashDir);
+                fileStore.setMaximumPackedBinarySizeInBytes(binaryStorage.getLong(FieldName.MAXIMUM_PACKED_BINARY_SIZE_IN_BYTES,
+                                                                                  0L));
+                fileStore.setPackSegmentSizeInBytes(binaryStorage.getLong(FieldName.PACK_SEGMENT_SIZE_IN_BYTES,
+                                                                          FileSystemBinaryStore.DEFAULT_PACK_SEGMENT_SIZE_IN_BYTES));
+                fileStore.setUnusedValueIndexEnabled(binaryStorage.getBoolean(FieldName.UNUSED_VALUE_INDEX_ENABLED, false));
+                fileStore.setGarbageCollectionRateLimit(binaryStorage.getInteger(FieldName.GARBAGE_COLLECTION_RATE_LIMIT, 0));
+                store = fileStore;
+            } else if (type.equalsIgnoreCase(FieldValue.BINARY_STORAGE_TYPE_CHUNKED)) {
+                String directory = binaryStorage.getString(FieldName.DIRECTORY);
+                assert directory != null;
+                ChunkedFileSystemBinaryStore chunkedStore = new ChunkedFileSystemBinaryStore(new File(directory));
+                chunkedStore.setAverageChunkSizeInBytes(binaryStorage.getInteger(FieldName.AVERAGE_CHUNK_SIZE_IN_BYTES,
+                                                                                 ChunkedFileSystemBinaryStore.DEFAULT_AVERAGE_CHUNK_SIZE_IN_BYTES));
+                store = chunkedStore;
             } else if (type.equalsIgnoreCase(FieldValue.BINARY_STORAGE_TYPE_DATABASE)) {
                 String driverClass = binaryStorage.getString(FieldName.JDBC_DRIVER_CLASS);
                 String connectionURL = binaryStorage.getString(FieldName.CONNECTION_URL);
@@ -1184,6 +1230,20 @@ public class RepositoryConfiguration {
 
                 store = new CompositeBinaryStore(binaryStores);
 
+            } else if (type.equalsIgnoreCase(FieldValue.BINARY_STORAGE_TYPE_CACHED)) {
+                String directory = binaryStorage.getString(FieldName.DIRECTORY);
+                assert directory != null;
+                Document cachedStoreConfig = binaryStorage.getDocument(FieldName.CACHED_STORE);
+                if (cachedStoreConfig == null) {
+                    throw new BinaryStoreException(JcrI18n.missingVariableValue.text(FieldName.CACHED_STORE));
+                }
+                BinaryStore cachedStore = new BinaryStorage(cachedStoreConfig).getBinaryStore();
+                long cacheSize = binaryStorage.getLong(FieldName.CACHE_SIZE_IN_BYTES,
+                                                       CachingBinaryStore.DEFAULT_CACHE_SIZE_IN_BYTES);
+                String policy = binaryStorage.getString(FieldName.CACHE_EVICTION_POLICY,
+                                                        CachingBinaryStore.EvictionPolicy.LRU.name());
+                store = new CachingBinaryStore(cachedStore, new File(directory), cacheSize,
+                                               CachingBinaryStore.EvictionPolicy.valueOf(policy.toUpperCase(Locale.ROOT)));
             } else if (type.equalsIgnoreCase(FieldValue.BINARY_STORAGE_TYPE_CUSTOM)) {
                 classname = binaryStorage.getString(FieldName.CLASSNAME);
                 classPath = binaryStorage.getString(FieldName.CLASSLOADER);
@@ -1701,7 +1761,7 @@ public class RepositoryConfiguration {
 
                 @Override
                 public Object getIndexProperty( String propertyName ) {
-                    return doc.get(name);
+                    return doc.get(propertyName);
                 }
 
                 @Override
@@ -1850,6 +1910,43 @@ public class RepositoryConfiguration {
             return textExtracting.getInteger(FieldName.MAX_POOL_SIZE, Default.TEXT_EXTRACTION_MAX_POOL_SIZE);
         }
 
+        /**
+         * Get the maximum number of binary values that can be waiting for their text to be extracted. When the queue is full,
+         * text is extracted by the thread requesting it.
+         *
+         * @return the maximum queue size
+         */
+        public int getMaxQueueSize() {
+            return textExtracting.getInteger(FieldName.MAX_QUEUE_SIZE, Default.TEXT_EXTRACTION_MAX_QUEUE_SIZE);
+        }
+
+        /**
+         * Get the maximum number of characters of text that are kept for a single binary value. Any text beyond this limit is
+         * discarded.
+         *
+         * @return the maximum text length, or a non-positive value if the text length is unlimited
+         */
+        public int getMaxTextLength() {
+            return textExtracting.getInteger(FieldName.MAX_TEXT_LENGTH, Default.TEXT_EXTRACTION_MAX_TEXT_LENGTH);
+        }
+
+        /**
+         * Get the maximum number of concurrent text extractions for each of the configured MIME types. MIME types that are not
+         * listed are only limited by the size of the thread pool.
+         *
+         * @return the concurrency limits keyed by MIME type; never null but possibly empty
+         */
+        public Map<String, Integer> getMimeTypeConcurrency() {
+            Document limits = textExtracting.getDocument(FieldName.MIME_TYPE_CONCURRENCY);
+            if (limits == null) return Collections.emptyMap();
+            Map<String, Integer> result = new HashMap<>();
+            for (Field field : limits.fields()) {
+                Object value = field.getValue();
+                if (value instanceof Number) result.put(field.getName(), ((Number)value).intValue());
+            }
+            return result;
+        }
+
 
         /**
          * Get the ordered list of text extractors. All text extractors are configured with this list.
@@ -2017,6 +2114,16 @@ public class RepositoryConfiguration {
             Integer result = optimization.getInteger(FieldName.OPTIMIZATION_CHILD_COUNT_TOLERANCE);
             return result == null ? 0 : result.intValue();
         }
+
+        /**
+         * Determine whether the optimization should maintain a directory for each node whose children are split into multiple
+         * blocks, so that a child can be found by name or key by reading at most one block.
+         *
+         * @return true if child directories should be maintained, or false otherwise
+         */
+        public boolean isChildDirectoryEnabled() {
+            return optimization.getBoolean(FieldName.OPTIMIZATION_CHILD_DIRECTORY, Default.OPTIMIZATION_CHILD_DIRECTORY);
+        }
     }
 
     /**
@@ -2048,6 +2155,45 @@ public class RepositoryConfiguration {
             return sequencing.getInteger(FieldName.MAX_POOL_SIZE, Default.SEQUENCING_MAX_POOL_SIZE);
         }
 
+        /**
+         * Get the maximum number of sequenced nodes whose output is saved together. Work for the same sequencer and workspaces
+         * that is queued at the same time is run in batches of up to this size, with one save per batch.
+         *
+         * @return the batch size; always positive
+         */
+        public int getBatchSize() {
+            return Math.max(1, sequencing.getInteger(FieldName.BATCH_SIZE, Default.SEQUENCING_BATCH_SIZE));
+        }
+
+        /**
+         * Get the directory in which the queued sequencing work is persisted, so that it survives a restart. When no directory
+         * is configured, the queued work is kept only in memory.
+         *
+         * @return the directory, or null if the queued work is not to be persisted
+         */
+        public String getWorkQueueDirectory() {
+            return sequencing.getString(FieldName.WORK_QUEUE_DIRECTORY);
+        }
+
+        /**
+         * Get the number of times that a sequencer is run on a node before the work is given up. Work that fails on every
+         * attempt is set aside when the queued work is persisted.
+         *
+         * @return the maximum number of attempts; always positive
+         */
+        public int getMaxAttempts() {
+            return Math.max(1, sequencing.getInteger(FieldName.MAX_ATTEMPTS, Default.SEQUENCING_MAX_ATTEMPTS));
+        }
+
+        /**
+         * Get the delay before failed sequencing work is first retried. The delay doubles with each subsequent attempt.
+         *
+         * @return the delay in milliseconds; never negative
+         */
+        public long getRetryDelayInMillis() {
+            return Math.max(0L, sequencing.getLong(FieldName.RETRY_DELAY_IN_MILLIS, Default.SEQUENCING_RETRY_DELAY_IN_MILLIS));
+        }
+
         /**
          * Get the ordered list of sequencers. All sequencers are configured with this list.
          *
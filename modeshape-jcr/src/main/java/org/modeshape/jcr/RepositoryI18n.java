@@ -72,6 +72,10 @@ public final class RepositoryI18n {
     public static I18n unableToFindPropertyForSequencing;
     public static I18n atLeastOneSequencerPathExpressionMustBeSpecified;
     public static I18n shutdownWhileSequencing;
+    public static I18n unableToOpenSequencingWorkQueue;
+    public static I18n sequencingWorkDeadLettered;
+    public static I18n sequencingBatchFailed;
+    public static I18n sequencerForQueuedWorkNotFound;
 
     // Properties
     public static I18n errorReadingPropertiesFromContainerNode;
@@ -238,6 +238,9 @@ class RepositoryIndexManager implements IndexManager, NodeTypes.Listener {
         // Set the environment
         Reflection.setValue(provider, "environment", repository.environment());
 
+        // Set the statistics
+        Reflection.setValue(provider, "statistics", repository.statistics());
+
         provider.initialize();
 
         // If successful, call the 'postInitialize' method reflectively (due to inability to call directly) ...
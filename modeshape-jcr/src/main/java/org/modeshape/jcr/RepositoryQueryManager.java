@@ -54,6 +54,7 @@ import org.modeshape.jcr.cache.change.ChangeSet;
 import org.modeshape.jcr.cache.change.ChangeSetListener;
 import org.modeshape.jcr.cache.document.WorkspaceCache;
 import org.modeshape.jcr.journal.ChangeJournal;
+import org.modeshape.jcr.journal.ClusteredJournal;
 import org.modeshape.jcr.query.BufferManager;
 import org.modeshape.jcr.query.CancellableQuery;
 import org.modeshape.jcr.query.CompositeIndexWriter;
@@ -294,6 +295,7 @@ class RepositoryQueryManager implements ChangeSetListener {
                 // when reindexing after startup, make sure the system area is included as well or indexes will lack this
                 // information
                 reindexIfNeeded(async, true);
+                reindexCaughtUpChanges(async);
                 break;
             }
             default: {
@@ -321,19 +323,60 @@ class RepositoryQueryManager implements ChangeSetListener {
             return;
         }
         assert earliestTimestamp != Long.MAX_VALUE;
-        Iterator<NodeKey> changedNodes = journal.changedNodesSince(earliestTimestamp);
         IndexWriter writer = CompositeIndexWriter.create(incrementalIndexingProviders);
+        if (!journal.containsChangesSince(earliestTimestamp)) {
+            // some of the changes are no longer in the journal, so the indexes can only be rebuilt ...
+            logger.warn(JcrI18n.warnIncrementalIndexingJournalIncomplete, repoConfig.getName(), new Date(earliestTimestamp));
+            writer.clearAllIndexes();
+            reindexContent(true, writer);
+            return;
+        }
+        reindexChangesSince(journal, earliestTimestamp, writer);
+    }
+
+    private void reindexChangesSince( ChangeJournal journal,
+                                      long timestamp,
+                                      IndexWriter writer ) {
         RepositoryCache repositoryCache = runningState.repositoryCache();
         for (String workspaceName : repositoryCache.getWorkspaceNames()) {
             if (logger.isDebugEnabled()) {
                 logger.debug("Performing incremental reindexing since '{0}' for repository '{1}' on workspace '{2}'",
-                             new Date(earliestTimestamp), repositoryCache.getName(), workspaceName);
+                             new Date(timestamp), repositoryCache.getName(), workspaceName);
             }
+            // each workspace only uses the keys of its own nodes, so it needs its own iterator over all the changed nodes
             WorkspaceCache workspaceCache = repositoryCache.getWorkspaceCache(workspaceName);
-            reindexSince(workspaceCache, writer, changedNodes);
+            reindexSince(workspaceCache, writer, journal.changedNodesSince(timestamp));
         }
     }
 
+    /**
+     * Update the indexes with the changes this process received from the other members of the cluster when it started, which
+     * were made while this process was not running. The indexes which are rebuilt do not need this, but the existing indexes
+     * would otherwise not reflect these changes.
+     *
+     * @param async whether the reindexing should be performed asynchronously or not
+     */
+    private void reindexCaughtUpChanges( boolean async ) {
+        ChangeJournal journal = runningState.journal();
+        if (!(journal instanceof ClusteredJournal)) {
+            return;
+        }
+        Long caughtUpChangesSince = ((ClusteredJournal)journal).caughtUpChangesSince();
+        if (caughtUpChangesSince == null) {
+            return;
+        }
+        final IndexWriter writer = getIndexWriter();
+        if (!journal.containsChangesSince(caughtUpChangesSince)) {
+            logger.warn(JcrI18n.warnIncrementalIndexingJournalIncomplete, repoConfig.getName(), new Date(caughtUpChangesSince));
+            cleanAndReindex(async);
+            return;
+        }
+        scan(async, writer, () -> {
+            reindexChangesSince(journal, caughtUpChangesSince, writer);
+            return null;
+        });
+    }
+
     /**
      * Reindex the repository only if there is at least one provider that required scanning and reindexing.
      *
@@ -17,11 +17,14 @@ package org.modeshape.jcr;
 
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
@@ -31,6 +34,7 @@ import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.modeshape.common.SystemFailureException;
@@ -79,7 +83,8 @@ import org.modeshape.jcr.value.DateTimeFactory;
  * </ol>
  * This class provides a way to obtain the {@link History history} for a particular metric during a specified window, where the
  * window is comprised of the {@link Statistics statistics} (the average value, minimum value, maximum value, variance, standard
- * deviation, number of samples, and time interval of the statistics) for:
+ * deviation, number of samples, time interval of the statistics and, for durations, the {@link Statistics#getPercentile(double)
+ * percentiles}) for:
  * <ol>
  * <li>each ten 5-second intervals during the last minute (60 seconds); or</li>
  * <li>each minute during the last hour (60 minutes); or</li>
@@ -113,6 +118,11 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
      */
     public static final int MAXIMUM_LONG_RUNNING_SESSION_COUNT = 15;
 
+    /**
+     * The maximum number of longest lock waits to retain.
+     */
+    public static final int MAXIMUM_LONG_LOCK_WAIT_COUNT = 15;
+
     /**
      * The frequency at which the metric values are rolled into statistics.
      */
@@ -134,6 +144,7 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
 
     private final ConcurrentMap<DurationMetric, DurationHistory> durations = new ConcurrentHashMap<DurationMetric, DurationHistory>();
     private final ConcurrentMap<ValueMetric, ValueHistory> values = new ConcurrentHashMap<ValueMetric, ValueHistory>();
+    private final ConcurrentMap<String, LongSupplier> gauges = new ConcurrentHashMap<>();
     private final AtomicReference<ScheduledFuture<?>> rollupFuture = new AtomicReference<ScheduledFuture<?>>();
     private final DateTimeFactory timeFactory;
 
@@ -163,8 +174,12 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
                                                                                MAXIMUM_LONG_RUNNING_QUERY_COUNT));
         durations.put(DurationMetric.SEQUENCER_EXECUTION_TIME, new DurationHistory(TimeUnit.MILLISECONDS,
                                                                                    MAXIMUM_LONG_RUNNING_SEQUENCING_COUNT));
+        durations.put(DurationMetric.SEQUENCER_QUEUE_TIME, new DurationHistory(TimeUnit.MILLISECONDS,
+                                                                               MAXIMUM_LONG_RUNNING_SEQUENCING_COUNT));
         durations.put(DurationMetric.SESSION_LIFETIME, new DurationHistory(TimeUnit.MILLISECONDS,
                                                                            MAXIMUM_LONG_RUNNING_SESSION_COUNT));
+        durations.put(DurationMetric.LOCK_WAIT_TIME, new DurationHistory(TimeUnit.MILLISECONDS,
+                                                                         MAXIMUM_LONG_LOCK_WAIT_COUNT));
 
         for (ValueMetric metric : EnumSet.allOf(ValueMetric.class)) {
             boolean resetUponRollup = !metric.isContinuous();
@@ -366,15 +381,53 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
      * @see #increment(ValueMetric, long)
      * @see #decrement(ValueMetric)
      */
-    void recordDuration( DurationMetric metric,
-                         long duration,
-                         TimeUnit timeUnit,
-                         Map<String, String> payload ) {
+    public void recordDuration( DurationMetric metric,
+                                long duration,
+                                TimeUnit timeUnit,
+                                Map<String, String> payload ) {
         assert metric != null;
         DurationHistory history = durations.get(metric);
         if (history != null) history.recordDuration(duration, timeUnit, payload);
     }
 
+    /**
+     * Register a named value which is read from the supplier whenever the {@link #getGauges() gauges} are obtained. Gauges are
+     * meant for values which are kept per component, such as the size of the queue of each sequencer, rather than for the
+     * whole repository like the {@link ValueMetric value metrics}, and they have no history.
+     *
+     * @param name the name of the gauge; may not be null
+     * @param value the supplier of the current value; may not be null
+     * @see #unregisterGauge(String)
+     */
+    public void registerGauge( String name,
+                               LongSupplier value ) {
+        assert name != null;
+        assert value != null;
+        gauges.put(name, value);
+    }
+
+    /**
+     * Remove the named value which was {@link #registerGauge(String, LongSupplier) registered} before.
+     *
+     * @param name the name of the gauge; may not be null
+     */
+    public void unregisterGauge( String name ) {
+        assert name != null;
+        gauges.remove(name);
+    }
+
+    /**
+     * Get the current values of all the registered gauges.
+     *
+     * @return the values keyed by the names of the gauges, in the order of the names; never null
+     * @see #registerGauge(String, LongSupplier)
+     */
+    public Map<String, Long> getGauges() {
+        Map<String, Long> result = new TreeMap<>();
+        gauges.forEach((name, value) -> result.put(name, value.getAsLong()));
+        return Collections.unmodifiableMap(result);
+    }
+
     @Override
     public void notify( ChangeSet changeSet ) {
         // Track all changes, even those that originate in remote processes ...
@@ -606,24 +659,39 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
         }
     }
 
+    /**
+     * The {@link MetricHistory} specialization used for recording the statistics for durations. Each thread records its durations
+     * into its own {@link DurationHistogram.Recorder}, without locking or allocating any objects, and the recorders of all the
+     * threads are merged into a single {@link DurationHistogram} upon each rollup. Only the activities that might be among the
+     * longest-running activities are retained.
+     * <p>
+     * Each recorder uses a fixed amount of memory (about 4kB), and is discarded once its thread has terminated.
+     * </p>
+     */
     @ThreadSafe
     protected static final class DurationHistory extends MetricHistory {
-        private final Queue<DurationActivity> duration1 = new ConcurrentLinkedQueue<DurationActivity>();
-        private final Queue<DurationActivity> duration2 = new ConcurrentLinkedQueue<DurationActivity>();
-        private final AtomicReference<Queue<DurationActivity>> durations = new AtomicReference<Queue<DurationActivity>>();
+        private final Queue<DurationHistogram.Recorder> recorders = new ConcurrentLinkedQueue<DurationHistogram.Recorder>();
+        private final ThreadLocal<DurationHistogram.Recorder> recorder = ThreadLocal.withInitial(this::newRecorder);
+        private final Queue<DurationActivity> candidates = new ConcurrentLinkedQueue<DurationActivity>();
         private final TimeUnit timeUnit;
         private final int retentionSize;
         private final PriorityBlockingQueue<DurationActivity> largestDurations;
+        private volatile long retentionThreshold = Long.MIN_VALUE;
 
         protected DurationHistory( TimeUnit timeUnit,
                                    int retentionSize ) {
             assert retentionSize > 0;
-            this.durations.set(duration1);
             this.timeUnit = timeUnit;
             this.retentionSize = retentionSize;
             this.largestDurations = new PriorityBlockingQueue<DurationActivity>(this.retentionSize + 5);
         }
 
+        private DurationHistogram.Recorder newRecorder() {
+            DurationHistogram.Recorder recorder = new DurationHistogram.Recorder(Thread.currentThread());
+            this.recorders.add(recorder);
+            return recorder;
+        }
+
         /**
          * Record a new duration. This method should be as fast as possible, since it is called within production code.
          * 
@@ -635,36 +703,40 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
                              TimeUnit timeUnit,
                              Map<String, String> payload ) {
             value = this.timeUnit.convert(value, timeUnit);
-            this.durations.get().add(new DurationActivityImpl(value, this.timeUnit, payload));
+            this.recorder.get().record(value);
+            if (value > retentionThreshold) {
+                // This might be one of the largest durations ...
+                this.candidates.add(new DurationActivityImpl(value, this.timeUnit, payload));
+            }
         }
 
         @Override
         Window rollup() {
-            // Swap the queue (which should work, since we should be the only concurrent thread doing this) ...
-            Queue<DurationActivity> durations = null;
-            if (this.durations.weakCompareAndSet(duration1, duration2)) {
-                durations = duration1;
-            } else {
-                this.durations.weakCompareAndSet(duration2, duration1);
-                durations = duration2;
+            // Merge what has been recorded by each thread since the last rollup ...
+            long[] bucketCounts = new long[DurationHistogram.BUCKET_COUNT];
+            long total = 0L;
+            for (Iterator<DurationHistogram.Recorder> iter = recorders.iterator(); iter.hasNext();) {
+                DurationHistogram.Recorder recorder = iter.next();
+                // Check the thread before draining, so that nothing recorded by a thread that has since terminated is lost ...
+                boolean terminated = !recorder.isOwnerAlive();
+                total += recorder.drainInto(bucketCounts);
+                if (terminated) iter.remove();
             }
-            // Make a copy to minimize the time spent using the durations ...
-            List<DurationActivity> records = new ArrayList<DurationActivity>(durations);
-            durations.clear();
 
-            // Now add to the largest durations and compute the statistics ...
-            int numRecords = records.size();
-            long[] values = new long[numRecords];
-            int i = 0;
-            for (DurationActivity record : records) {
-                values[i++] = record != null ? record.getDuration(TimeUnit.MILLISECONDS) : 0L;
-                this.largestDurations.add(record);
+            // Now add to the largest durations and raise the threshold for new candidates ...
+            DurationActivity candidate = null;
+            while ((candidate = this.candidates.poll()) != null) {
+                this.largestDurations.add(candidate);
                 while (this.largestDurations.size() > this.retentionSize) {
                     this.largestDurations.poll(); // remove the smallest duration from the front of the queue
                 }
             }
+            if (this.largestDurations.size() >= this.retentionSize) {
+                DurationActivity smallest = this.largestDurations.peek();
+                if (smallest != null) this.retentionThreshold = smallest.getDuration(this.timeUnit);
+            }
 
-            Statistics stats = statisticsFor(values);
+            Statistics stats = statisticsFor(DurationHistogram.of(bucketCounts), total);
             return recordStatisticsForLastSecond(stats);
         }
 
@@ -712,6 +784,23 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
         return new StatisticsImpl(length, min, max, mean, Math.sqrt(varianceSquared));
     }
 
+    /**
+     * Utility method to construct the statistics for the durations in a histogram. The minimum, maximum and variance are only as
+     * precise as the histogram itself, but the statistics also include the histogram so that percentiles can be obtained.
+     * 
+     * @param histogram the histogram of the durations; may not be null
+     * @param total the sum of the durations in the histogram
+     * @return the core statistics; never null
+     */
+    static Statistics statisticsFor( DurationHistogram histogram,
+                                     long total ) {
+        long count = histogram.getTotalCount();
+        if (count == 0L) return EMPTY_STATISTICS;
+        double mean = ((double)total) / count;
+        return new StatisticsImpl((int)count, histogram.getMinimum(), histogram.getMaximum(), mean, histogram.getVariance(mean),
+                                  histogram);
+    }
+
     /**
      * Utility method to construct the composite statistics for a series of sampled statistics.
      * 
@@ -728,6 +817,7 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
         long min = Long.MAX_VALUE;
         double mean = 0.0d;
         double variance = 0.0d;
+        List<DurationHistogram> histograms = null;
         // Compute the min, max, and mean ...
         for (Statistics stat : statistics) {
             if (stat == null) continue;
@@ -735,6 +825,11 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
             max = Math.max(max, stat.getMaximum());
             min = Math.min(min, stat.getMinimum());
             mean = mean + (stat.getMean() * stat.getCount());
+            DurationHistogram histogram = histogramOf(stat);
+            if (histogram != null) {
+                if (histograms == null) histograms = new ArrayList<DurationHistogram>(length);
+                histograms.add(histogram);
+            }
         }
         mean = mean / count;
 
@@ -745,7 +840,13 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
             meanDelta = stat.getMean() - mean;
             variance = variance + (stat.getCount() * (stat.getVariance() + (meanDelta * meanDelta)));
         }
-        return new StatisticsImpl(count, min, max, mean, variance);
+        // Histograms can be merged without losing precision, so the percentiles are rolled up as well ...
+        DurationHistogram histogram = histograms != null ? DurationHistogram.merge(histograms) : null;
+        return new StatisticsImpl(count, min, max, mean, variance, histogram);
+    }
+
+    private static DurationHistogram histogramOf( Statistics stat ) {
+        return stat instanceof StatisticsImpl ? ((StatisticsImpl)stat).histogram : null;
     }
 
     private static final Statistics EMPTY_STATISTICS = new StatisticsImpl(0, 0L, 0L, 0.0d, 0.0d);
@@ -755,9 +856,9 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
      * maximum}, {@link #getMean() mean (average)}, {@link #getVariance() variance} and {@link #getStandardDeviation() standard
      * deviation}.
      * <p>
-     * The median value is not included in these statistics, since the median value cannot be rolled up given a series of
-     * statistics without having the original values. It is possible to compute the weighted median, but this loses
-     * effectiveness/value the more times it is rolled up.
+     * The statistics for durations also include the {@link DurationHistogram histogram} of the sampled durations, from which the
+     * {@link #getPercentile(double) percentiles} (including the median) are obtained. Unlike the values themselves, histograms
+     * can be rolled up without losing precision.
      * </p>
      */
     @Immutable
@@ -768,17 +869,28 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
         private final long minimum;
         private final double mean;
         private final double variance; // just the square of the standard deviation
+        protected final DurationHistogram histogram;
 
         protected StatisticsImpl( int count,
                                   long min,
                                   long max,
                                   double mean,
                                   double variance ) {
+            this(count, min, max, mean, variance, null);
+        }
+
+        protected StatisticsImpl( int count,
+                                  long min,
+                                  long max,
+                                  double mean,
+                                  double variance,
+                                  DurationHistogram histogram ) {
             this.count = count;
             this.maximum = max;
             this.minimum = min;
             this.mean = mean;
             this.variance = variance;
+            this.histogram = histogram;
         }
 
         @Override
@@ -811,12 +923,18 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
             return variance <= 0.0d ? 0.0d : Math.sqrt(variance);
         }
 
+        @Override
+        public long getPercentile( double percentile ) {
+            return histogram != null && histogram.getTotalCount() > 0L ? histogram.getValueAtPercentile(percentile) : -1L;
+        }
+
         @Override
         public String toString() {
             long count = this.getCount();
             String samples = Inflector.getInstance().pluralize("sample", count > 1L ? 2 : 1);
-            return StringUtil.createString("{0} {1}: min={2}; avg={3}; max={4}; dev={5}", count, samples, this.minimum,
-                                           this.mean, this.maximum, this.getStandardDeviation());
+            String result = StringUtil.createString("{0} {1}: min={2}; avg={3}; max={4}; dev={5}", count, samples, this.minimum,
+                                                    this.mean, this.maximum, this.getStandardDeviation());
+            return histogram != null ? result + "; " + histogram : result;
         }
     }
 
@@ -831,6 +949,7 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
         private final Statistics[] stats;
         private final DateTime endTime;
         private final Window window;
+        private volatile DurationHistogram histogram;
 
         protected HistoryImpl( Statistics[] stats,
                                DateTime endTime,
@@ -878,6 +997,22 @@ public class RepositoryStatistics implements RepositoryMonitor, ChangeSetListene
             return stats;
         }
 
+        @Override
+        public long getPercentile( double percentile ) {
+            DurationHistogram histogram = this.histogram;
+            if (histogram == null) {
+                // Merge the histograms of all the statistics in the window; concurrent callers may both do this ...
+                List<DurationHistogram> histograms = new ArrayList<DurationHistogram>(stats.length);
+                for (Statistics stat : stats) {
+                    DurationHistogram statHistogram = histogramOf(stat);
+                    if (statHistogram != null) histograms.add(statHistogram);
+                }
+                histogram = DurationHistogram.merge(histograms);
+                this.histogram = histogram;
+            }
+            return histogram.getTotalCount() > 0L ? histogram.getValueAtPercentile(percentile) : -1L;
+        }
+
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
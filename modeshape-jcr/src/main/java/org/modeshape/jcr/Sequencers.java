@@ -15,22 +15,30 @@
  */
 package org.modeshape.jcr;
 
+import java.io.File;
 import java.io.Serializable;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import javax.jcr.NamespaceRegistry;
@@ -43,6 +51,8 @@ import org.modeshape.common.logging.Logger;
 import org.modeshape.common.util.HashCode;
 import org.modeshape.common.util.Reflection;
 import org.modeshape.jcr.RepositoryConfiguration.Component;
+import org.modeshape.jcr.RepositoryConfiguration.FieldName;
+import org.modeshape.jcr.api.monitor.DurationMetric;
 import org.modeshape.jcr.api.monitor.ValueMetric;
 import org.modeshape.jcr.api.sequencer.Sequencer;
 import org.modeshape.jcr.api.value.DateTime;
@@ -78,6 +88,9 @@ public class Sequencers implements ChangeSetListener {
     private static final boolean TRACE = LOGGER.isTraceEnabled();
     private static final boolean DEBUG = LOGGER.isDebugEnabled();
 
+    private static final String RETRY_POOL_NAME = "modeshape-sequencer-retry";
+    private static final long MAX_RETRY_DELAY_IN_MILLIS = TimeUnit.MILLISECONDS.convert(1, TimeUnit.HOURS);
+
     protected final JcrRepository.RunningState repository;
     private final Map<UUID, Sequencer> sequencersById;
     private final Map<String, Sequencer> sequencersByName;
@@ -90,6 +103,12 @@ public class Sequencers implements ChangeSetListener {
     private final ValueFactory<String> stringFactory;
     private final WorkQueue workQueue;
     protected final ExecutorService sequencingExecutor;
+    private final Map<UUID, Integer> maxConcurrencyBySequencerId;
+    private final int maxThreadCount;
+    private final int batchSize;
+    private final SequencingWorkStore workStore;
+    private final int maxAttempts;
+    private final long retryDelayInMillis;
     private boolean initialized;
     private volatile boolean acceptsWork = true;
 
@@ -100,6 +119,10 @@ public class Sequencers implements ChangeSetListener {
         RepositoryConfiguration.Sequencing sequencing = config.getSequencing();
         this.components = sequencing.getSequencers(repository.problems());
         this.systemWorkspaceKey = repository.repositoryCache().getSystemKey().getWorkspaceKey();
+        this.maxThreadCount = sequencing.getMaxPoolSize();
+        this.batchSize = sequencing.getBatchSize();
+        this.maxAttempts = sequencing.getMaxAttempts();
+        this.retryDelayInMillis = sequencing.getRetryDelayInMillis();
         if (components.isEmpty()) {
             this.processId = null;
             this.stringFactory = null;
@@ -108,13 +131,15 @@ public class Sequencers implements ChangeSetListener {
             this.pathExpressionsBySequencerId = null;
             this.sequencingExecutor = null;
             this.workQueue = null;
+            this.workStore = null;
             this.initialized = true;
             this.sequencersByName = Collections.emptyMap();
+            this.maxConcurrencyBySequencerId = Collections.emptyMap();
         } else {
-            int maxThreadCount = sequencing.getMaxPoolSize();
             String threadPoolName = sequencing.getThreadPoolName();
             this.sequencingExecutor = repository.context().getCachedTreadPool(threadPoolName, maxThreadCount);
             this.workQueue = new SequencingWorkQueue();
+            this.workStore = openWorkStore(sequencing.getWorkQueueDirectory());
             this.processId = repository.context().getProcessId();
             ExecutionContext context = this.repository.context();
             this.stringFactory = context.getValueFactories().getStringFactory();
@@ -122,6 +147,7 @@ public class Sequencers implements ChangeSetListener {
             this.sequencersByName = new HashMap<>();
             this.configByWorkspaceName = new HashMap<>();
             this.pathExpressionsBySequencerId = new HashMap<>();
+            this.maxConcurrencyBySequencerId = new HashMap<>();
 
             String repoName = repository.name();
             for (Component component : components) {
@@ -146,6 +172,10 @@ public class Sequencers implements ChangeSetListener {
                         // For each sequencer, figure out which workspaces apply ...
                         UUID uuid = sequencer.getUniqueId();
                         sequencersById.put(sequencer.getUniqueId(), sequencer);
+                        Integer maxConcurrency = component.getDocument().getInteger(FieldName.MAX_CONCURRENCY);
+                        if (maxConcurrency != null && maxConcurrency > 0) {
+                            maxConcurrencyBySequencerId.put(uuid, maxConcurrency);
+                        }
                         // For each sequencer, create the path expressions ...
 
                         Set<SequencerPathExpression> pathExpressions = buildPathExpressionSet(sequencer);
@@ -167,6 +197,7 @@ public class Sequencers implements ChangeSetListener {
                 workspaceAdded(workspaceName);
             }
             repository.changeBus().register(this);
+            registerQueueSizes();
             this.initialized = false;
         }
     }
@@ -176,6 +207,12 @@ public class Sequencers implements ChangeSetListener {
         this.repository = repository;
         this.sequencingExecutor = original.sequencingExecutor;
         this.workQueue = original.workQueue;
+        this.maxConcurrencyBySequencerId = original.maxConcurrencyBySequencerId;
+        this.maxThreadCount = original.maxThreadCount;
+        this.batchSize = original.batchSize;
+        this.workStore = original.workStore;
+        this.maxAttempts = original.maxAttempts;
+        this.retryDelayInMillis = original.retryDelayInMillis;
         this.systemWorkspaceKey = original.systemWorkspaceKey;
         this.processId = original.processId;
         this.stringFactory = repository.context().getValueFactories().getStringFactory();
@@ -184,6 +221,36 @@ public class Sequencers implements ChangeSetListener {
         this.sequencersByName = original.sequencersByName;
         this.configByWorkspaceName = original.configByWorkspaceName;
         this.pathExpressionsBySequencerId = original.pathExpressionsBySequencerId;
+        if (workQueue != null) registerQueueSizes();
+    }
+
+    private void registerQueueSizes() {
+        // the size of each sequencer's queue is exposed as a gauge, since the queue size metric is for all the sequencers ...
+        for (Sequencer sequencer : sequencersById.values()) {
+            String sequencerName = sequencer.getName();
+            statistics().registerGauge(queueSizeGaugeName(sequencerName), () -> getQueueSize(sequencerName));
+        }
+    }
+
+    /**
+     * Get the name of the {@link RepositoryStatistics#getGauges() gauge} with the number of nodes waiting to be sequenced by the
+     * named sequencer.
+     *
+     * @param sequencerName the name of the sequencer; may not be null
+     * @return the name of the gauge; never null
+     */
+    public static String queueSizeGaugeName( String sequencerName ) {
+        return ValueMetric.SEQUENCER_QUEUE_SIZE.getLiteral() + "/" + sequencerName;
+    }
+
+    private SequencingWorkStore openWorkStore( String directory ) {
+        if (directory == null) return null;
+        try {
+            return new SequencingWorkStore(new File(directory));
+        } catch (Throwable t) {
+            repository.error(t, RepositoryI18n.unableToOpenSequencingWorkQueue, directory, repository.name(), t.getMessage());
+            return null;
+        }
     }
 
     protected Sequencers with( JcrRepository.RunningState repository ) {
@@ -233,6 +300,7 @@ public class Sequencers implements ChangeSetListener {
                         sequencersIterator.remove();
                     } finally {
                         sequencersById.remove(sequencer.getUniqueId());
+                        statistics().unregisterGauge(queueSizeGaugeName(sequencer.getName()));
                     }
                 }
             }
@@ -341,7 +409,65 @@ public class Sequencers implements ChangeSetListener {
         if (workQueue != null) {
             sequencingExecutor.shutdown();
             workQueue.shutdown();
+            for (Sequencer sequencer : sequencersById.values()) {
+                statistics().unregisterGauge(queueSizeGaugeName(sequencer.getName()));
+            }
+        }
+        if (workStore != null) {
+            // any work that is still pending remains in the store, and is run again when the repository is restarted ...
+            workStore.close();
+        }
+    }
+
+    /**
+     * Queue the sequencing work that was persisted but not completed before the repository was last shut down. This should be
+     * called once the repository is running, since the work is run right away. Work for sequencers that no longer exist is set
+     * aside.
+     */
+    protected void restoreQueuedWork() {
+        if (workStore == null || !acceptsWork) return;
+        queue(workStore.pending());
+    }
+
+    private void queue( List<SequencingWorkStore.Entry> entries ) {
+        for (SequencingWorkStore.Entry entry : entries) {
+            Sequencer sequencer = sequencersByName.get(entry.getSequencerName());
+            if (sequencer == null || !sequencersById.containsKey(sequencer.getUniqueId())) {
+                String msg = RepositoryI18n.sequencerForQueuedWorkNotFound.text(entry.getSequencerName(), repository.name(),
+                                                                                entry.getInputPath());
+                LOGGER.warn(RepositoryI18n.sequencerForQueuedWorkNotFound, entry.getSequencerName(), repository.name(),
+                            entry.getInputPath());
+                workStore.deadLetter(entry.getId(), msg);
+                continue;
+            }
+            statistics().increment(ValueMetric.SEQUENCER_QUEUE_SIZE);
+            ((SequencingWorkQueue)workQueue).enqueue(new QueuedWork(entry.toWorkItem(sequencer.getUniqueId()), System.nanoTime(),
+                                                                    entry.getId(), entry.getAttempts()));
         }
+        statistics().set(ValueMetric.SEQUENCER_DEAD_LETTER_COUNT, workStore.deadLetterCount());
+    }
+
+    /**
+     * Get the number of units of sequencing work that have been set aside after failing too many times (or because their
+     * sequencer no longer exists). Work is only set aside when the queued work is persisted.
+     *
+     * @return the number of units of work that have been set aside
+     */
+    public int getDeadLetterCount() {
+        return workStore != null ? workStore.deadLetterCount() : 0;
+    }
+
+    /**
+     * Queue again all of the sequencing work that has been set aside after failing too many times, for example after the cause
+     * of the failures has been fixed. Work for sequencers that no longer exist is set aside again.
+     *
+     * @return the number of units of work that were queued again
+     */
+    public int retryDeadLetters() {
+        if (workStore == null || !acceptsWork) return 0;
+        List<SequencingWorkStore.Entry> revived = workStore.reviveDeadLetters();
+        queue(revived);
+        return revived.size();
     }
 
     protected final RepositoryStatistics statistics() {
@@ -363,6 +489,18 @@ public class Sequencers implements ChangeSetListener {
         workQueue.submit(workItem);
     }
 
+    /**
+     * Get the number of nodes that are waiting to be sequenced by the named sequencer.
+     *
+     * @param sequencerName the name of the sequencer; may not be null
+     * @return the number of queued nodes, or 0 if there is no such sequencer
+     */
+    public int getQueueSize( String sequencerName ) {
+        Sequencer sequencer = sequencersByName.get(sequencerName);
+        if (sequencer == null || workQueue == null) return 0;
+        return workQueue.size(sequencer.getUniqueId());
+    }
+
     protected Sequencer getSequencer( UUID id ) {
         return sequencersById.get(id);
     }
@@ -508,30 +646,310 @@ public class Sequencers implements ChangeSetListener {
             }
         } catch (Throwable e) {
             LOGGER.error(e, JcrI18n.errorCleaningUpLocks, repository.name());
+        } finally {
+            workQueue.flush();
         }
     }
 
     protected static interface WorkQueue {
         void submit( SequencingWorkItem work );
 
+        /**
+         * Make sure that all of the work submitted so far will survive a restart, if the queue is persistent.
+         */
+        void flush();
+
+        int size( UUID sequencerId );
+
         void shutdown();
     }
 
+    /**
+     * A {@link WorkQueue} that groups the queued work by sequencer and by input and output workspace, and runs each group in
+     * batches whose output is saved together. Each sequencer is run by at most its configured number of threads, which take
+     * batches from the sequencer's groups in turn.
+     * <p>
+     * If a work queue directory is configured, each unit of work is also recorded in the {@link SequencingWorkStore} until it
+     * is completed, and failed work is retried (after an increasing delay) until the maximum number of attempts is reached, at
+     * which point it is set aside.
+     * </p>
+     */
     protected final class SequencingWorkQueue implements WorkQueue {
-        private final List<Future<?>> results = new ArrayList<Future<?>>();
+        private final Set<Future<?>> results = Collections.newSetFromMap(new ConcurrentHashMap<Future<?>, Boolean>());
+        // the following are guarded by 'this' ...
+        private final Map<UUID, LinkedHashMap<List<String>, LinkedList<QueuedWork>>> pendingBySequencerId = new HashMap<>();
+        private final Map<UUID, Integer> runnersBySequencerId = new HashMap<>();
 
         @Override
         public void submit( SequencingWorkItem work ) {
-            results.add(sequencingExecutor.submit(new SequencingRunner(repository, work)));
+            long id = -1L;
+            if (workStore != null) {
+                Sequencer sequencer = getSequencer(work.getSequencerId());
+                if (sequencer != null) id = workStore.add(sequencer.getName(), work);
+            }
+            enqueue(new QueuedWork(work, System.nanoTime(), id, 0));
+        }
+
+        @Override
+        public void flush() {
+            if (workStore != null) workStore.commit();
+        }
+
+        protected void enqueue( QueuedWork queued ) {
+            SequencingWorkItem work = queued.work;
+            UUID sequencerId = work.getSequencerId();
+            synchronized (this) {
+                LinkedHashMap<List<String>, LinkedList<QueuedWork>> groups = pendingBySequencerId.get(sequencerId);
+                if (groups == null) {
+                    groups = new LinkedHashMap<>();
+                    pendingBySequencerId.put(sequencerId, groups);
+                }
+                List<String> group = Arrays.asList(work.getInputWorkspaceName(), work.getOutputWorkspaceName());
+                LinkedList<QueuedWork> queue = groups.get(group);
+                if (queue == null) {
+                    queue = new LinkedList<>();
+                    groups.put(group, queue);
+                }
+                queue.add(queued);
+
+                Integer runners = runnersBySequencerId.get(sequencerId);
+                int running = runners != null ? runners : 0;
+                if (running >= maxConcurrency(sequencerId)) {
+                    // the work will be picked up by one of the sequencer's existing runners ...
+                    return;
+                }
+                runnersBySequencerId.put(sequencerId, running + 1);
+            }
+            BatchRunner runner = new BatchRunner(sequencerId);
+            results.add(runner);
+            try {
+                sequencingExecutor.execute(runner);
+            } catch (RejectedExecutionException e) {
+                // the thread pool has been shut down, so the work will never be run ...
+                results.remove(runner);
+                nextBatch(sequencerId);
+            }
+        }
+
+        @Override
+        public synchronized int size( UUID sequencerId ) {
+            LinkedHashMap<List<String>, LinkedList<QueuedWork>> groups = pendingBySequencerId.get(sequencerId);
+            if (groups == null) return 0;
+            int size = 0;
+            for (LinkedList<QueuedWork> queue : groups.values()) {
+                size += queue.size();
+            }
+            return size;
         }
 
         @Override
         public void shutdown() {
+            synchronized (this) {
+                pendingBySequencerId.clear();
+            }
             for (Future<?> workItem : results) {
                 workItem.cancel(true);
             }
             results.clear();
         }
+
+        private int maxConcurrency( UUID sequencerId ) {
+            Integer max = maxConcurrencyBySequencerId.get(sequencerId);
+            return max != null ? Math.min(max, maxThreadCount) : maxThreadCount;
+        }
+
+        /**
+         * Take the next batch of work for the given sequencer, from the group that has waited the longest since it was last
+         * run. If there is no more work for the sequencer, the calling runner stops.
+         *
+         * @param sequencerId the identifier of the sequencer; may not be null
+         * @return the next batch of work, or null if the calling runner should stop
+         */
+        protected synchronized List<QueuedWork> nextBatch( UUID sequencerId ) {
+            LinkedHashMap<List<String>, LinkedList<QueuedWork>> groups = pendingBySequencerId.get(sequencerId);
+            if (groups == null || groups.isEmpty() || !acceptsWork) {
+                runnerStopped(sequencerId);
+                return null;
+            }
+            Iterator<Map.Entry<List<String>, LinkedList<QueuedWork>>> iter = groups.entrySet().iterator();
+            Map.Entry<List<String>, LinkedList<QueuedWork>> entry = iter.next();
+            LinkedList<QueuedWork> queue = entry.getValue();
+            List<QueuedWork> batch = new ArrayList<>(Math.min(queue.size(), batchSize));
+            while (!queue.isEmpty() && batch.size() < batchSize) {
+                batch.add(queue.removeFirst());
+            }
+            // move the group to the end, so the sequencer's other groups are run before it again ...
+            iter.remove();
+            if (!queue.isEmpty()) groups.put(entry.getKey(), queue);
+            if (groups.isEmpty()) pendingBySequencerId.remove(sequencerId);
+            return batch;
+        }
+
+        /**
+         * Record that one of the runners of the given sequencer has stopped, so that a new one is started for the next work.
+         *
+         * @param sequencerId the identifier of the sequencer; may not be null
+         */
+        protected synchronized void runnerStopped( UUID sequencerId ) {
+            Integer runners = runnersBySequencerId.remove(sequencerId);
+            if (runners != null && runners > 1) runnersBySequencerId.put(sequencerId, runners - 1);
+        }
+
+        /**
+         * A task run by the sequencing thread pool that repeatedly runs the next batch of work for one sequencer.
+         */
+        protected final class BatchRunner extends FutureTask<Void> {
+
+            protected BatchRunner( final UUID sequencerId ) {
+                super(new Runnable() {
+                    @Override
+                    public void run() {
+                        boolean stopped = false;
+                        try {
+                            List<QueuedWork> batch = null;
+                            while ((batch = nextBatch(sequencerId)) != null) {
+                                try {
+                                    runBatch(sequencerId, batch);
+                                } catch (RuntimeException e) {
+                                    batchFailed(sequencerId, batch, e);
+                                }
+                            }
+                            // 'nextBatch' has already accounted for this runner ...
+                            stopped = true;
+                        } finally {
+                            if (!stopped) runnerStopped(sequencerId);
+                        }
+                    }
+                }, null);
+            }
+
+            @Override
+            protected void done() {
+                results.remove(this);
+            }
+        }
+
+        protected void runBatch( UUID sequencerId,
+                                 List<QueuedWork> batch ) {
+            Sequencer sequencer = getSequencer(sequencerId);
+            String sequencerName = sequencer != null ? sequencer.getName() : sequencerId.toString();
+            RepositoryStatistics stats = statistics();
+            long now = System.nanoTime();
+            List<SequencingWorkItem> items = new ArrayList<>(batch.size());
+            for (QueuedWork queued : batch) {
+                items.add(queued.work);
+                Map<String, String> payload = new HashMap<>();
+                payload.put("sequencerName", sequencerName);
+                payload.put("sequencedPath", queued.work.getInputPath());
+                stats.recordDuration(DurationMetric.SEQUENCER_QUEUE_TIME, Math.abs(now - queued.queuedAt), TimeUnit.NANOSECONDS,
+                                     payload);
+            }
+            if (DEBUG) {
+                LOGGER.debug("Running sequencer '{0}' in repository '{1}' on a batch of {2} node(s)", sequencerName,
+                             repository.name(), items.size());
+            }
+            SequencingRunner runner = new SequencingRunner(repository, items);
+            runner.run();
+            if (workStore == null && maxAttempts == 1) return;
+
+            List<Long> completed = new ArrayList<>(batch.size());
+            for (QueuedWork queued : batch) {
+                Throwable failure = runner.failures().get(queued.work);
+                if (failure != null) {
+                    failed(queued, sequencerName, failure);
+                } else if (queued.id >= 0 && runner.completed().contains(queued.work)) {
+                    completed.add(queued.id);
+                }
+                // otherwise the repository was shut down before the work was done, so it's left in the store ...
+            }
+            if (workStore != null) workStore.completed(completed);
+        }
+
+        /**
+         * Set aside all the work in a batch whose processing failed unexpectedly (rather than failing for some of the nodes),
+         * since the same failure would most likely happen again if the work were retried.
+         *
+         * @param sequencerId the identifier of the sequencer; may not be null
+         * @param batch the work in the batch; may not be null
+         * @param failure the cause of the failure; may not be null
+         */
+        protected void batchFailed( UUID sequencerId,
+                                    List<QueuedWork> batch,
+                                    Throwable failure ) {
+            Sequencer sequencer = getSequencer(sequencerId);
+            String sequencerName = sequencer != null ? sequencer.getName() : sequencerId.toString();
+            String error = failure.getMessage() != null ? failure.getMessage() : failure.toString();
+            LOGGER.error(failure, RepositoryI18n.sequencingBatchFailed, sequencerName, repository.name(), batch.size(), error);
+            if (workStore == null) return;
+            for (QueuedWork queued : batch) {
+                if (queued.id < 0) continue;
+                try {
+                    workStore.deadLetter(queued.id, error);
+                } catch (RuntimeException e) {
+                    // the work stays in the store, and is run again after a restart ...
+                    LOGGER.debug(e, "Unable to set aside the sequencing work for '{0}'", queued.work.getInputPath());
+                }
+            }
+            statistics().set(ValueMetric.SEQUENCER_DEAD_LETTER_COUNT, workStore.deadLetterCount());
+        }
+
+        private void failed( final QueuedWork queued,
+                             String sequencerName,
+                             Throwable failure ) {
+            final int attempts = queued.attempts + 1;
+            String error = failure.getMessage() != null ? failure.getMessage() : failure.toString();
+            if (attempts >= maxAttempts) {
+                if (queued.id < 0) return;
+                // set aside the work, so that it can be retried once the cause of the failures has been fixed ...
+                workStore.deadLetter(queued.id, error);
+                LOGGER.warn(RepositoryI18n.sequencingWorkDeadLettered, sequencerName, repository.name(), attempts,
+                            queued.work.getInputPath(), queued.work.getInputWorkspaceName(), error);
+                statistics().set(ValueMetric.SEQUENCER_DEAD_LETTER_COUNT, workStore.deadLetterCount());
+                return;
+            }
+            if (queued.id >= 0) workStore.failed(queued.id, error);
+            // wait longer after each failure, up to a limit ...
+            long delay = retryDelayInMillis;
+            for (int i = 1; i < attempts && delay < MAX_RETRY_DELAY_IN_MILLIS; ++i) {
+                delay *= 2;
+            }
+            delay = Math.min(delay, MAX_RETRY_DELAY_IN_MILLIS);
+            ScheduledExecutorService retryService = repository.context().getScheduledThreadPool(RETRY_POOL_NAME);
+            try {
+                retryService.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!acceptsWork) return;
+                        statistics().increment(ValueMetric.SEQUENCER_QUEUE_SIZE);
+                        enqueue(new QueuedWork(queued.work, System.nanoTime(), queued.id, attempts));
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+                statistics().increment(ValueMetric.SEQUENCER_RETRY_COUNT);
+            } catch (RejectedExecutionException e) {
+                // the repository is being shut down, so the work will be retried after a restart (if it is persistent) ...
+            }
+        }
+    }
+
+    /**
+     * A work item, the time at which it was queued, its identifier in the {@link SequencingWorkStore} (or -1 if it is not
+     * persisted) and the number of times it has already failed.
+     */
+    protected static final class QueuedWork {
+        protected final SequencingWorkItem work;
+        protected final long queuedAt;
+        protected final long id;
+        protected final int attempts;
+
+        protected QueuedWork( SequencingWorkItem work,
+                              long queuedAt,
+                              long id,
+                              int attempts ) {
+            this.work = work;
+            this.queuedAt = queuedAt;
+            this.id = id;
+            this.attempts = attempts;
+        }
     }
 
     /**
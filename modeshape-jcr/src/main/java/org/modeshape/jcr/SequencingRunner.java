@@ -18,7 +18,9 @@ package org.modeshape.jcr;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -45,8 +47,25 @@ import org.modeshape.jcr.api.monitor.ValueMetric;
 import org.modeshape.jcr.api.sequencer.Sequencer;
 import org.modeshape.jcr.api.value.DateTime;
 import org.modeshape.jcr.cache.change.RecordingChanges;
+import org.modeshape.jcr.txn.Transactions;
 import org.modeshape.jcr.value.Name;
 
+/**
+ * Runs a batch of {@link SequencingWorkItem work items} that all use the same sequencer and the same input and output
+ * workspaces. The output of each item is saved as soon as it has been sequenced, but all of these saves are made within a
+ * single transaction, so that the output of the whole batch is committed at once; the sequencing events for each item are
+ * fired after the commit.
+ * <p>
+ * If the sequencer fails on or declines one of the items, only the unsaved changes made for that item are discarded, so the
+ * sequencer is never run again for items that were already sequenced. Only if the transaction itself cannot be committed is the
+ * output of the batch lost, in which case each of the items whose output was lost is run and saved separately so that a single
+ * bad item doesn't prevent the others from being sequenced.
+ * </p>
+ * <p>
+ * Once run, the runner reports which items are {@link #completed() done with} and which {@link #failures() failed}. Any other
+ * items were interrupted by the shutdown of the repository and have yet to be sequenced.
+ * </p>
+ */
 final class SequencingRunner implements Runnable {
 
     /** We don't use the standard logging convention here; we want clients to easily configure logging for sequencing */
@@ -57,13 +76,24 @@ final class SequencingRunner implements Runnable {
     private static final String DERIVED_NODE_TYPE_NAME = "mode:derived";
     private static final String DERIVED_FROM_PROPERTY_NAME = "mode:derivedFrom";
 
+    /** The marker for a sequencer that declined to produce output after changes were made on its behalf */
+    private static final SequencedOutput DECLINED = new SequencedOutput(null, null, null, null, null, 0L);
+
     private final RunningState repository;
-    private final SequencingWorkItem work;
+    private final List<SequencingWorkItem> batch;
+    private final Set<SequencingWorkItem> completed = Collections.newSetFromMap(new IdentityHashMap<SequencingWorkItem, Boolean>());
+    private final Map<SequencingWorkItem, Throwable> failures = new IdentityHashMap<>();
 
     protected SequencingRunner( RunningState repository,
                                 SequencingWorkItem work ) {
+        this(repository, Collections.singletonList(work));
+    }
+
+    protected SequencingRunner( RunningState repository,
+                                List<SequencingWorkItem> batch ) {
+        assert !batch.isEmpty();
         this.repository = repository;
-        this.work = work;
+        this.batch = batch;
     }
 
     @Override
@@ -71,183 +101,396 @@ final class SequencingRunner implements Runnable {
         JcrSession inputSession = null;
         JcrSession outputSession = null;
         final RepositoryStatistics stats = repository.statistics();
-        Sequencer sequencer = null;
-        String sequencerName = null;
+        SequencingWorkItem first = batch.get(0);
         try {
-            // Create the required session(s) ...
-            inputSession = repository.loginInternalSession(work.getInputWorkspaceName());
-            if (work.getOutputWorkspaceName() != null && !work.getOutputWorkspaceName().equals(work.getInputWorkspaceName())) {
-                outputSession = repository.loginInternalSession(work.getOutputWorkspaceName());
-            } else {
-                outputSession = inputSession;
-            }
-
             // Get the sequencer ...
-            sequencer = repository.sequencers().getSequencer(work.getSequencerId());
+            Sequencer sequencer = repository.sequencers().getSequencer(first.getSequencerId());
             if (sequencer == null) {
                 if (DEBUG) {
-                    LOGGER.debug("Unable to find sequencer with ID '{0}' in repository '{1}'; skipping input '{3}:{2}' and output '{5}:{4}'",
-                                 work.getSequencerId(), repository.name(), work.getInputPath(), work.getInputWorkspaceName(),
-                                 work.getOutputPath(), work.getOutputWorkspaceName());
+                    for (SequencingWorkItem work : batch) {
+                        LOGGER.debug("Unable to find sequencer with ID '{0}' in repository '{1}'; skipping input '{3}:{2}' and output '{5}:{4}'",
+                                     work.getSequencerId(), repository.name(), work.getInputPath(), work.getInputWorkspaceName(),
+                                     work.getOutputPath(), work.getOutputWorkspaceName());
+                    }
                 }
+                completed.addAll(batch);
                 return;
             }
-            sequencerName = sequencer.getName();
-
-            String logMsg = null;
-            if (TRACE || DEBUG) {
-                logMsg = StringUtil.createString("sequencer '{0}' in repository '{1}' with input '{3}:{2}' to produce '{5}:{4}'",
-                                                 sequencerName,
-                                                 repository.name(),
-                                                 work.getInputPath(),
-                                                 work.getInputWorkspaceName(),
-                                                 work.getOutputPath(),
-                                                 work.getOutputWorkspaceName() != null ? work.getOutputWorkspaceName() : work.getInputWorkspaceName());
-                LOGGER.debug("Running {0}", logMsg);
-            }
 
-            // Find the selected node ...
-            AbstractJcrNode selectedNode = inputSession.getNode(work.getSelectedPath());
-
-            // Find the input that has changed and is to be sequenced ...
-            Item inputItem = inputSession.getItem(work.getInputPath());
-            Property changedProperty = null;
-            if (inputItem instanceof Property) {
-                changedProperty = (Property)inputItem;
+            // Create the required session(s) ...
+            inputSession = repository.loginInternalSession(first.getInputWorkspaceName());
+            if (first.getOutputWorkspaceName() != null && !first.getOutputWorkspaceName().equals(first.getInputWorkspaceName())) {
+                outputSession = repository.loginInternalSession(first.getOutputWorkspaceName());
             } else {
-                Node changedNode = (Node)inputItem;
-                // now look for a property that was changed or added ...
-                changedProperty = changedNode.getProperty(work.getChangedPropertyName());
+                outputSession = inputSession;
             }
-            assert changedProperty != null;
 
-            if (sequencer.hasAcceptedMimeTypes()) {
-                // Get the MIME type, first by looking at the changed property's parent node
-                // (or grand-parent node if parent is 'jcr:content') ...
-                String mimeType = getInputMimeType(changedProperty);
-
-                // See if the sequencer accepts the MIME type ...
-                if (mimeType != null && !sequencer.isAccepted(mimeType)) {
-                    LOGGER.debug("Skipping sequencing because MIME type of input doesn't match expectations for {0}", logMsg);
-                    return; // nope
+            List<SequencingWorkItem> unsaved = run(batch, sequencer, inputSession, outputSession);
+            if (!unsaved.isEmpty()) {
+                // The output of these items was lost with the batch's transaction, so run and save each item separately ...
+                for (SequencingWorkItem work : unsaved) {
+                    run(Collections.singletonList(work), sequencer, inputSession, outputSession);
+                }
+            }
+        } catch (InterruptedException ie) {
+            // most likely the repository is being shut down and is asking the runnable to interrupt
+            Thread.interrupted();
+            LOGGER.warn(RepositoryI18n.shutdownWhileSequencing, first.getInputPath(), ie.getMessage());
+        } catch (Throwable t) {
+            logFailure(first, null, t);
+            if (repository.sequencers().acceptsWork()) {
+                for (SequencingWorkItem work : batch) {
+                    if (!completed.contains(work) && !failures.containsKey(work)) failures.put(work, t);
                 }
             }
+        } finally {
+            stats.increment(ValueMetric.SEQUENCED_COUNT, batch.size());
+            stats.increment(ValueMetric.SEQUENCER_QUEUE_SIZE, -batch.size());
+            if (inputSession != null && inputSession.isLive()) inputSession.logout();
+            if (outputSession != null && outputSession != inputSession && outputSession.isLive()) outputSession.logout();
+        }
+    }
 
-            AbstractJcrNode outputNode = null;
-            String primaryType = null;
-            if (work.getSelectedPath().equals(work.getOutputPath())) {
-                // The output is to go directly under the sequenced node ...
-                outputNode = selectedNode.getName().equals(JcrConstants.JCR_CONTENT) ? selectedNode.getParent() : selectedNode;
-                primaryType = selectedNode.getPrimaryNodeType().getName();
-            } else {
-                // Find the parent of the output if it exists, or create the node(s) along the path if not ...
-                AbstractJcrNode parentOfOutput = null;
+    /**
+     * Sequence the given work items and save the output of each item as soon as it is sequenced. If there is more than one item,
+     * the saves are made within a single transaction, which is committed once all of the items have been sequenced.
+     *
+     * @param items the work items; may not be null
+     * @param sequencer the sequencer for the work items; may not be null
+     * @param inputSession the session for the input workspace; may not be null
+     * @param outputSession the session for the output workspace; may not be null
+     * @return the work items whose output was sequenced but could not be committed with the rest of the batch; never null but
+     *         possibly empty
+     * @throws InterruptedException if the thread was interrupted
+     * @throws RepositoryException if the unsaved output could not be discarded
+     */
+    private List<SequencingWorkItem> run( List<SequencingWorkItem> items,
+                                          Sequencer sequencer,
+                                          JcrSession inputSession,
+                                          JcrSession outputSession ) throws InterruptedException, RepositoryException {
+        String sequencerName = sequencer.getName();
+        List<SequencedOutput> saved = new ArrayList<>(items.size());
+        List<SequencingWorkItem> unsaved = new ArrayList<>();
+        int commits = 0;
+        Transactions.Transaction txn = items.size() > 1 ? beginTransaction() : null;
+        try {
+            for (SequencingWorkItem work : items) {
+                SequencedOutput output = null;
+                try {
+                    output = sequence(work, sequencer, inputSession, outputSession);
+                } catch (InterruptedException ie) {
+                    throw ie;
+                } catch (Throwable t) {
+                    logFailure(work, sequencerName, t);
+                    // Discard only the changes made for this item, since the output of the others has already been saved ...
+                    outputSession.refresh(false);
+                    continue;
+                }
+                if (output == null || output == DECLINED) {
+                    // The sequencer produced no output, and any changes made in preparation for it must not be saved ...
+                    completed.add(work);
+                    if (output == DECLINED) outputSession.refresh(false);
+                    continue;
+                }
                 try {
-                    parentOfOutput = outputSession.getNode(work.getOutputPath());
-                } catch (PathNotFoundException e) {
-                    LOGGER.trace("Creating missing output path for {0}", logMsg);
-                    JcrTools tools = new JcrTools();
-                    parentOfOutput = (AbstractJcrNode)tools.findOrCreateNode(outputSession, work.getOutputPath());
+                    LOGGER.trace("Saving session used by sequencer '{0}' for input '{1}'", sequencerName, work.getInputPath());
+                    outputSession.save();
+                    saved.add(output);
+                    if (txn == null) ++commits;
+                } catch (Throwable t) {
+                    outputSession.refresh(false);
+                    if (txn == null) {
+                        // The item was saved on its own, so there is nothing else to try ...
+                        saveFailed(output, inputSession, sequencerName, t);
+                        continue;
+                    }
+                    // A failed save rolls back the whole transaction, so the output saved so far is lost as well. Only those
+                    // items must be redone, while the remaining items are saved separately ...
+                    LOGGER.debug(t, "Unable to save the output of sequencer '{0}' for {1} nodes in a single transaction; "
+                                    + "saving each node separately", sequencerName, saved.size() + 1);
+                    rollback(txn);
+                    txn = null;
+                    unsaved.addAll(workOf(saved));
+                    unsaved.add(work);
+                    saved.clear();
                 }
+            }
+            if (txn != null) {
+                Transactions.Transaction committing = txn;
+                txn = null;
+                try {
+                    committing.commit();
+                    ++commits;
+                } catch (Exception e) {
+                    LOGGER.debug(e, "Unable to commit the output of sequencer '{0}' for {1} nodes; saving each node separately",
+                                 sequencerName, saved.size());
+                    unsaved.addAll(workOf(saved));
+                    saved.clear();
+                }
+            }
+        } finally {
+            if (txn != null) {
+                // Something unexpected happened, so don't leave the transaction open ...
+                rollback(txn);
+                unsaved.addAll(workOf(saved));
+                saved.clear();
+            }
+        }
+        if (saved.isEmpty()) {
+            return unsaved;
+        }
 
-                // Now determine the name of top node in the output, using the last segment of the selected path ...
-                String outputNodeName = computeOutputNodeName(selectedNode);
+        RepositoryStatistics stats = repository.statistics();
+        stats.increment(ValueMetric.SEQUENCED_BATCH_COUNT, commits);
+        for (SequencedOutput output : saved) {
+            completed.add(output.work);
+            Map<String, String> payload = new HashMap<String, String>();
+            payload.put("sequencerName", sequencer.getClass().getName());
+            payload.put("sequencedPath", output.sequencedPath);
+            payload.put("outputPath", output.outputPath);
+            stats.recordDuration(DurationMetric.SEQUENCER_EXECUTION_TIME, output.durationInNanos, TimeUnit.NANOSECONDS, payload);
+
+            // fire the sequencing event after the commit and after the metrics have been updated
+            LOGGER.trace("Firing events resulting from sequencer '{0}' for input '{1}'", sequencerName, output.work.getInputPath());
+            fireSequencingEvent(output, outputSession, sequencerName);
+        }
+        return unsaved;
+    }
 
-                // Remove any existing output (from a prior sequencing run on this same input) ...
-                removeExistingOutputNodes(parentOfOutput, outputNodeName, work.getSelectedPath(), logMsg);
+    private Transactions.Transaction beginTransaction() throws RepositoryException {
+        try {
+            return repository.transactions().begin();
+        } catch (Exception e) {
+            throw new RepositoryException(e);
+        }
+    }
 
-                // Create the output node
-                if (parentOfOutput.isNew() && parentOfOutput.getName().equals(outputNodeName)) {
-                    // avoid creating a duplicate path with the same name
-                    outputNode = parentOfOutput;
-                } else {
-                    if (TRACE) {
-                        LOGGER.trace("Creating output node '{0}' under parent '{1}' for {2}", outputNodeName,
-                                     parentOfOutput.getPath(), logMsg);
-                    }
-                    outputNode = parentOfOutput.addNode(outputNodeName, JcrConstants.NT_UNSTRUCTURED);
-                }
+    private void rollback( Transactions.Transaction txn ) {
+        try {
+            txn.rollback();
+        } catch (Exception e) {
+            LOGGER.debug(e, "Error while rolling back the transaction used for sequencing");
+        }
+    }
 
-                // and make sure the output node has the 'mode:derived' mixin ...
-                outputNode.addMixin(DERIVED_NODE_TYPE_NAME);
-                outputNode.setProperty(DERIVED_FROM_PROPERTY_NAME, work.getSelectedPath());
+    private void saveFailed( SequencedOutput output,
+                             JcrSession inputSession,
+                             String sequencerName,
+                             Throwable t ) {
+        try {
+            fireSequencingFailureEvent(output, inputSession, t, sequencerName);
+        } catch (Exception e) {
+            LOGGER.debug(e, "Error while trying to fire sequencing failure event");
+        }
+        logFailure(output.work, sequencerName, t);
+    }
+
+    private static List<SequencingWorkItem> workOf( List<SequencedOutput> outputs ) {
+        List<SequencingWorkItem> work = new ArrayList<>(outputs.size());
+        for (SequencedOutput output : outputs) {
+            work.add(output.work);
+        }
+        return work;
+    }
+
+    /**
+     * Run the sequencer on a single work item, leaving the output unsaved in the output session.
+     *
+     * @param work the work item; may not be null
+     * @param sequencer the sequencer; may not be null
+     * @param inputSession the session for the input workspace; may not be null
+     * @param outputSession the session for the output workspace; may not be null
+     * @return the unsaved output; null if the input was skipped before any changes were made, or {@link #DECLINED} if the
+     *         sequencer did not produce any output after changes were made to the output session
+     * @throws Throwable if the sequencer failed
+     */
+    private SequencedOutput sequence( SequencingWorkItem work,
+                                      Sequencer sequencer,
+                                      JcrSession inputSession,
+                                      JcrSession outputSession ) throws Throwable {
+        String sequencerName = sequencer.getName();
+        String logMsg = null;
+        if (TRACE || DEBUG) {
+            logMsg = StringUtil.createString("sequencer '{0}' in repository '{1}' with input '{3}:{2}' to produce '{5}:{4}'",
+                                             sequencerName,
+                                             repository.name(),
+                                             work.getInputPath(),
+                                             work.getInputWorkspaceName(),
+                                             work.getOutputPath(),
+                                             work.getOutputWorkspaceName() != null ? work.getOutputWorkspaceName() : work.getInputWorkspaceName());
+            LOGGER.debug("Running {0}", logMsg);
+        }
+
+        // Find the selected node ...
+        AbstractJcrNode selectedNode = inputSession.getNode(work.getSelectedPath());
+
+        // Find the input that has changed and is to be sequenced ...
+        Item inputItem = inputSession.getItem(work.getInputPath());
+        Property changedProperty = null;
+        if (inputItem instanceof Property) {
+            changedProperty = (Property)inputItem;
+        } else {
+            Node changedNode = (Node)inputItem;
+            // now look for a property that was changed or added ...
+            changedProperty = changedNode.getProperty(work.getChangedPropertyName());
+        }
+        assert changedProperty != null;
+
+        if (sequencer.hasAcceptedMimeTypes()) {
+            // Get the MIME type, first by looking at the changed property's parent node
+            // (or grand-parent node if parent is 'jcr:content') ...
+            String mimeType = getInputMimeType(changedProperty);
+
+            // See if the sequencer accepts the MIME type ...
+            if (mimeType != null && !sequencer.isAccepted(mimeType)) {
+                LOGGER.debug("Skipping sequencing because MIME type of input doesn't match expectations for {0}", logMsg);
+                return null; // nope
             }
+        }
 
-            // Execute the sequencer ...
-            DateTime now = outputSession.dateFactory().create();
-            Sequencer.Context context = new SequencingContext(now, outputSession.getValueFactory());
-            if (inputSession.isLive() && (inputSession == outputSession || outputSession.isLive())) {
-                final long start = System.nanoTime();
+        AbstractJcrNode outputNode = null;
+        String primaryType = null;
+        if (work.getSelectedPath().equals(work.getOutputPath())) {
+            // The output is to go directly under the sequenced node ...
+            outputNode = selectedNode.getName().equals(JcrConstants.JCR_CONTENT) ? selectedNode.getParent() : selectedNode;
+            primaryType = selectedNode.getPrimaryNodeType().getName();
+        } else {
+            // Find the parent of the output if it exists, or create the node(s) along the path if not ...
+            AbstractJcrNode parentOfOutput = null;
+            try {
+                parentOfOutput = outputSession.getNode(work.getOutputPath());
+            } catch (PathNotFoundException e) {
+                LOGGER.trace("Creating missing output path for {0}", logMsg);
+                JcrTools tools = new JcrTools();
+                parentOfOutput = (AbstractJcrNode)tools.findOrCreateNode(outputSession, work.getOutputPath());
+            }
 
-                try {
-                    LOGGER.trace("Executing {0}", logMsg);
-                    if (sequencer.execute(changedProperty, outputNode, context)) {
-                        LOGGER.trace("Completed executing {0}", logMsg);
-
-                        // Make sure that the sequencer did not change the primary type of the selected node ..
-                        if (selectedNode == outputNode && !selectedNode.getPrimaryNodeType().getName().equals(primaryType)) {
-                            String msg = RepositoryI18n.sequencersMayNotChangeThePrimaryTypeOfTheSelectedNode.text();
-                            throw new RepositoryException(msg);
-                        }
-
-                        // find the new nodes created by the sequencing before saving, so we can properly fire the events
-                        List<AbstractJcrNode> outputNodes = findOutputNodes(outputNode);
-
-                        // set the createdBy property (if it applies) to the user which triggered the sequencing, not the context
-                        // of the saving session
-                        setCreatedByIfNecessary(outputSession, outputNodes);
-
-                        // outputSession
-                        LOGGER.trace("Saving session used by {0}", logMsg);
-                        outputSession.save();
-                        
-                        long durationInNanos = Math.abs(System.nanoTime() - start);
-                        Map<String, String> payload = new HashMap<String, String>();
-                        payload.put("sequencerName", sequencer.getClass().getName());
-                        payload.put("sequencedPath", changedProperty.getPath());
-                        payload.put("outputPath", outputNode.getPath());
-                        stats.recordDuration(DurationMetric.SEQUENCER_EXECUTION_TIME, durationInNanos, TimeUnit.NANOSECONDS,
-                                             payload);
-
-                        // fire the sequencing event after save (hopefully by this time the transaction has been committed)
-                        // and after the metrics have been updated
-                        LOGGER.trace("Firing events resulting from {0}", logMsg);
-                        fireSequencingEvent(selectedNode, outputNodes, outputSession, sequencerName);
-                    }
-                } catch (Throwable t) {
-                    try {
-                        fireSequencingFailureEvent(selectedNode, inputSession, t, sequencerName);
-                    } catch (Exception e) {
-                        LOGGER.debug(e, "Error while trying to fire sequencing failure event");
-                    }
-                    // let it bubble down, because we still want to log it and update the stats
-                    throw t;
+            // Now determine the name of top node in the output, using the last segment of the selected path ...
+            String outputNodeName = computeOutputNodeName(selectedNode);
+
+            // Remove any existing output (from a prior sequencing run on this same input) ...
+            removeExistingOutputNodes(parentOfOutput, outputNodeName, work.getSelectedPath(), logMsg);
+
+            // Create the output node
+            if (parentOfOutput.isNew() && parentOfOutput.getName().equals(outputNodeName)) {
+                // avoid creating a duplicate path with the same name
+                outputNode = parentOfOutput;
+            } else {
+                if (TRACE) {
+                    LOGGER.trace("Creating output node '{0}' under parent '{1}' for {2}", outputNodeName,
+                                 parentOfOutput.getPath(), logMsg);
                 }
+                outputNode = parentOfOutput.addNode(outputNodeName, JcrConstants.NT_UNSTRUCTURED);
             }
-        } catch (InterruptedException ie) {
-            // most likely the repository is being shut down and is asking the runnable to interrupt
-            Thread.interrupted();
-            LOGGER.warn(RepositoryI18n.shutdownWhileSequencing, work.getInputPath(), ie.getMessage());
+
+            // and make sure the output node has the 'mode:derived' mixin ...
+            outputNode.addMixin(DERIVED_NODE_TYPE_NAME);
+            outputNode.setProperty(DERIVED_FROM_PROPERTY_NAME, work.getSelectedPath());
+        }
+
+        // Execute the sequencer ...
+        DateTime now = outputSession.dateFactory().create();
+        Sequencer.Context context = new SequencingContext(now, outputSession.getValueFactory());
+        if (!inputSession.isLive() || (inputSession != outputSession && !outputSession.isLive())) {
+            return DECLINED;
+        }
+        final long start = System.nanoTime();
+        try {
+            LOGGER.trace("Executing {0}", logMsg);
+            if (!sequencer.execute(changedProperty, outputNode, context)) {
+                return DECLINED;
+            }
+            LOGGER.trace("Completed executing {0}", logMsg);
+
+            // Make sure that the sequencer did not change the primary type of the selected node ..
+            if (selectedNode == outputNode && !selectedNode.getPrimaryNodeType().getName().equals(primaryType)) {
+                String msg = RepositoryI18n.sequencersMayNotChangeThePrimaryTypeOfTheSelectedNode.text();
+                throw new RepositoryException(msg);
+            }
+
+            // find the new nodes created by the sequencing before saving, so we can properly fire the events
+            List<AbstractJcrNode> outputNodes = findOutputNodes(outputNode);
+
+            // set the createdBy property (if it applies) to the user which triggered the sequencing, not the context
+            // of the saving session
+            setCreatedByIfNecessary(outputSession, outputNodes, work);
+
+            return new SequencedOutput(work, selectedNode, outputNodes, changedProperty.getPath(), outputNode.getPath(),
+                                       Math.abs(System.nanoTime() - start));
         } catch (Throwable t) {
-            if (!repository.sequencers().acceptsWork()) {
-                // the repository has already been shut down, so we'll just log a warning
-                LOGGER.warn(RepositoryI18n.shutdownWhileSequencing, work.getInputPath(), t.getMessage());
+            try {
+                fireSequencingFailureEvent(new SequencedOutput(work, selectedNode, null, null, null, 0L), inputSession, t,
+                                           sequencerName);
+            } catch (Exception e) {
+                LOGGER.debug(e, "Error while trying to fire sequencing failure event");
+            }
+            // let it bubble down, because we still want to log it
+            throw t;
+        }
+    }
+
+    private void logFailure( SequencingWorkItem work,
+                             String sequencerName,
+                             Throwable t ) {
+        if (!repository.sequencers().acceptsWork()) {
+            // the repository has already been shut down, so we'll just log a warning
+            LOGGER.warn(RepositoryI18n.shutdownWhileSequencing, work.getInputPath(), t.getMessage());
+        } else {
+            if (work.getOutputWorkspaceName() != null) {
+                LOGGER.error(t, RepositoryI18n.errorWhileSequencingNodeIntoWorkspace, sequencerName, repository.name(),
+                             work.getInputPath(), work.getInputWorkspaceName(), work.getOutputPath(),
+                             work.getOutputWorkspaceName());
             } else {
-                if (work.getOutputWorkspaceName() != null) {
-                    LOGGER.error(t, RepositoryI18n.errorWhileSequencingNodeIntoWorkspace, sequencerName, repository.name(),
-                                 work.getInputPath(), work.getInputWorkspaceName(), work.getOutputPath(),
-                                 work.getOutputWorkspaceName());
-                } else {
-                    LOGGER.error(t, RepositoryI18n.errorWhileSequencingNode, sequencerName, repository.name(),
-                                 work.getInputPath(),
-                                 work.getInputWorkspaceName(), work.getOutputPath());
-                }
+                LOGGER.error(t, RepositoryI18n.errorWhileSequencingNode, sequencerName, repository.name(),
+                             work.getInputPath(),
+                             work.getInputWorkspaceName(), work.getOutputPath());
             }
-        } finally {
-            stats.increment(ValueMetric.SEQUENCED_COUNT);
-            stats.decrement(ValueMetric.SEQUENCER_QUEUE_SIZE);
-            if (inputSession != null && inputSession.isLive()) inputSession.logout();
-            if (outputSession != null && outputSession != inputSession && outputSession.isLive()) outputSession.logout();
+            failures.put(work, t);
+        }
+    }
+
+    /**
+     * Get the work items that need not be run again, because their output was saved, the sequencer declined to produce output,
+     * or the input could not be sequenced by the sequencer.
+     *
+     * @return the completed items; never null
+     */
+    Set<SequencingWorkItem> completed() {
+        return completed;
+    }
+
+    /**
+     * Get the work items for which the sequencer or the save of its output failed, and the cause of each failure.
+     *
+     * @return the failures keyed by work item; never null
+     */
+    Map<SequencingWorkItem, Throwable> failures() {
+        return failures;
+    }
+
+    /**
+     * The unsaved output of running a sequencer on one work item.
+     */
+    private static final class SequencedOutput {
+        protected final SequencingWorkItem work;
+        protected final AbstractJcrNode selectedNode;
+        protected final List<AbstractJcrNode> outputNodes;
+        protected final String sequencedPath;
+        protected final String outputPath;
+        protected final long durationInNanos;
+
+        protected SequencedOutput( SequencingWorkItem work,
+                                   AbstractJcrNode selectedNode,
+                                   List<AbstractJcrNode> outputNodes,
+                                   String sequencedPath,
+                                   String outputPath,
+                                   long durationInNanos ) {
+            this.work = work;
+            this.selectedNode = selectedNode;
+            this.outputNodes = outputNodes;
+            this.sequencedPath = sequencedPath;
+            this.outputPath = outputPath;
+            this.durationInNanos = durationInNanos;
         }
     }
 
@@ -302,7 +545,8 @@ final class SequencingRunner implements Runnable {
     }
 
     private void setCreatedByIfNecessary( JcrSession outputSession,
-                                          List<AbstractJcrNode> outputNodes ) throws RepositoryException {
+                                          List<AbstractJcrNode> outputNodes,
+                                          SequencingWorkItem work ) throws RepositoryException {
         // if the mix:created mixin is on any of the new nodes, we need to set the createdBy here, otherwise it will be
         // set by the system session when it saves and it will default to "modeshape-worker"
         for (AbstractJcrNode node : outputNodes) {
@@ -313,10 +557,11 @@ final class SequencingRunner implements Runnable {
         }
     }
 
-    private void fireSequencingEvent( AbstractJcrNode sequencedNode,
-                                      List<AbstractJcrNode> outputNodes,
+    private void fireSequencingEvent( SequencedOutput output,
                                       JcrSession outputSession,
                                       String sequencerName ) throws RepositoryException {
+        AbstractJcrNode sequencedNode = output.selectedNode;
+        SequencingWorkItem work = output.work;
 
         final ExecutionContext context = outputSession.context();
         RecordingChanges sequencingChanges = new RecordingChanges(outputSession.sessionId(), context.getProcessId(),
@@ -325,7 +570,7 @@ final class SequencingRunner implements Runnable {
                                                                                                               .journalId());
         Name primaryType = sequencedNode.getPrimaryTypeName();
         Set<Name> mixinTypes = sequencedNode.getMixinTypeNames();
-        for (AbstractJcrNode outputNode : outputNodes) {
+        for (AbstractJcrNode outputNode : output.outputNodes) {
 
             sequencingChanges.nodeSequenced(sequencedNode.key(), sequencedNode.path(), primaryType, mixinTypes, outputNode.key(),
                                             outputNode.path(), work.getOutputPath(), work.getUserId(), work.getSelectedPath(),
@@ -335,10 +580,12 @@ final class SequencingRunner implements Runnable {
         repository.changeBus().notify(sequencingChanges);
     }
 
-    private void fireSequencingFailureEvent( AbstractJcrNode sequencedNode,
+    private void fireSequencingFailureEvent( SequencedOutput output,
                                              JcrSession inputSession,
                                              Throwable cause,
                                              String sequencerName ) throws RepositoryException {
+        AbstractJcrNode sequencedNode = output.selectedNode;
+        SequencingWorkItem work = output.work;
         assert sequencedNode != null;
         assert inputSession != null;
         Name primaryType = sequencedNode.getPrimaryTypeName();
@@ -0,0 +1,316 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import org.modeshape.common.annotation.Immutable;
+import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.jcr.Sequencers.SequencingWorkItem;
+
+/**
+ * An on-disk store of the sequencing work that has been queued but not yet completed, so that the work survives a restart of the
+ * repository. Work is added when it is queued and removed only once its output has been saved (or it has been deliberately
+ * skipped), so every item is processed at least once. Work that repeatedly fails is moved to a separate collection of "dead
+ * letters", where it remains until it is explicitly {@link #reviveDeadLetters() revived}.
+ * <p>
+ * Sequencers are identified by their name rather than their {@link org.modeshape.jcr.api.sequencer.Sequencer#getUniqueId()
+ * identifier}, since the identifiers change every time the repository starts.
+ * </p>
+ */
+@ThreadSafe
+final class SequencingWorkStore {
+
+    static final String STORE_FILENAME = "sequencing-queue.db";
+
+    private final DB db;
+    private final BTreeMap<Long, byte[]> pending;
+    private final BTreeMap<Long, byte[]> deadLetters;
+    private final Atomic.Long sequence;
+    private boolean closed;
+
+    SequencingWorkStore( File directory ) throws IOException {
+        if (!directory.exists() && !directory.mkdirs() && !directory.exists()) {
+            throw new IOException("Unable to create directory for the sequencing work queue: " + directory);
+        }
+        this.db = DBMaker.newFileDB(new File(directory, STORE_FILENAME)).commitFileSyncDisable().closeOnJvmShutdown().make();
+        this.pending = db.createTreeMap("pending").keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                         .valueSerializer(Serializer.BYTE_ARRAY).makeOrGet();
+        this.deadLetters = db.createTreeMap("deadLetters").keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                             .valueSerializer(Serializer.BYTE_ARRAY).makeOrGet();
+        this.sequence = db.getAtomicLong("sequence");
+    }
+
+    /**
+     * Add the given work, without committing the change.
+     *
+     * @param sequencerName the name of the sequencer; may not be null
+     * @param work the work; may not be null
+     * @return the identifier of the stored work, or -1 if this store is closed
+     * @see #commit()
+     */
+    synchronized long add( String sequencerName,
+                           SequencingWorkItem work ) {
+        if (closed) return -1L;
+        long id = sequence.incrementAndGet();
+        pending.put(id, new Entry(id, sequencerName, work, 0, null).toBytes());
+        return id;
+    }
+
+    /**
+     * Remove the given completed work, and commit all outstanding changes.
+     *
+     * @param ids the identifiers of the completed work; may not be null
+     */
+    synchronized void completed( Collection<Long> ids ) {
+        if (closed) return;
+        for (Long id : ids) {
+            pending.remove(id);
+        }
+        db.commit();
+    }
+
+    /**
+     * Record a failed attempt to process the given work, without committing the change.
+     *
+     * @param id the identifier of the work
+     * @param error the description of the failure; may be null
+     * @return the updated work, or null if there is no such pending work
+     */
+    synchronized Entry failed( long id,
+                               String error ) {
+        if (closed) return null;
+        byte[] bytes = pending.get(id);
+        if (bytes == null) return null;
+        Entry entry = Entry.fromBytes(id, bytes);
+        Entry updated = new Entry(id, entry.sequencerName, entry.fields, entry.attempts + 1, error);
+        pending.put(id, updated.toBytes());
+        return updated;
+    }
+
+    /**
+     * Move the given pending work to the dead letters, and commit all outstanding changes.
+     *
+     * @param id the identifier of the work
+     * @param error the description of the last failure; may be null
+     */
+    synchronized void deadLetter( long id,
+                                  String error ) {
+        if (closed) return;
+        byte[] bytes = pending.remove(id);
+        if (bytes != null) {
+            Entry entry = Entry.fromBytes(id, bytes);
+            deadLetters.put(id, new Entry(id, entry.sequencerName, entry.fields, entry.attempts, error).toBytes());
+        }
+        db.commit();
+    }
+
+    /**
+     * Commit all outstanding changes.
+     */
+    synchronized void commit() {
+        if (!closed) db.commit();
+    }
+
+    /**
+     * Get the work that is pending, in the order it was added.
+     *
+     * @return the pending work; never null
+     */
+    synchronized List<Entry> pending() {
+        return entries(pending);
+    }
+
+    /**
+     * Get the work that has been set aside after failing too many times, in the order it was added.
+     *
+     * @return the dead letters; never null
+     */
+    synchronized List<Entry> deadLetters() {
+        return entries(deadLetters);
+    }
+
+    synchronized int deadLetterCount() {
+        return closed ? 0 : deadLetters.size();
+    }
+
+    /**
+     * Move all of the dead letters back to the pending work, resetting their attempts, and commit the change.
+     *
+     * @return the revived work; never null
+     */
+    synchronized List<Entry> reviveDeadLetters() {
+        List<Entry> revived = new ArrayList<>();
+        if (closed) return revived;
+        for (Map.Entry<Long, byte[]> letter : deadLetters.entrySet()) {
+            Entry entry = Entry.fromBytes(letter.getKey(), letter.getValue());
+            Entry reset = new Entry(entry.id, entry.sequencerName, entry.fields, 0, null);
+            pending.put(entry.id, reset.toBytes());
+            revived.add(reset);
+        }
+        deadLetters.clear();
+        db.commit();
+        return revived;
+    }
+
+    synchronized void close() {
+        if (closed) return;
+        closed = true;
+        db.commit();
+        db.close();
+    }
+
+    private List<Entry> entries( BTreeMap<Long, byte[]> map ) {
+        List<Entry> result = new ArrayList<>();
+        if (closed) return result;
+        for (Map.Entry<Long, byte[]> entry : map.entrySet()) {
+            result.add(Entry.fromBytes(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * A stored unit of sequencing work.
+     */
+    @Immutable
+    static final class Entry {
+        private static final int FIELD_COUNT = 7;
+        /** The maximum length of the recorded error, which keeps the entry well within the limit of a modified UTF-8 string */
+        private static final int MAX_ERROR_LENGTH = 4096;
+
+        private final long id;
+        private final String sequencerName;
+        /** The user ID, input workspace, selected path, input path, output path, output workspace and property name */
+        private final String[] fields;
+        private final int attempts;
+        private final String lastError;
+
+        private Entry( long id,
+                       String sequencerName,
+                       SequencingWorkItem work,
+                       int attempts,
+                       String lastError ) {
+            this(id, sequencerName, new String[] {work.getUserId(), work.getInputWorkspaceName(), work.getSelectedPath(),
+                work.getInputPath(), work.getOutputPath(), work.getOutputWorkspaceName(), work.getChangedPropertyName()}, attempts,
+                 lastError);
+        }
+
+        private Entry( long id,
+                       String sequencerName,
+                       String[] fields,
+                       int attempts,
+                       String lastError ) {
+            this.id = id;
+            this.sequencerName = sequencerName;
+            this.fields = fields;
+            this.attempts = attempts;
+            boolean tooLong = lastError != null && lastError.length() > MAX_ERROR_LENGTH;
+            this.lastError = tooLong ? lastError.substring(0, MAX_ERROR_LENGTH) : lastError;
+        }
+
+        long getId() {
+            return id;
+        }
+
+        String getSequencerName() {
+            return sequencerName;
+        }
+
+        int getAttempts() {
+            return attempts;
+        }
+
+        String getLastError() {
+            return lastError;
+        }
+
+        String getInputPath() {
+            return fields[3];
+        }
+
+        /**
+         * Create the work item for this entry, using the current identifier of its sequencer.
+         *
+         * @param sequencerId the identifier of the sequencer; may not be null
+         * @return the work item; never null
+         */
+        SequencingWorkItem toWorkItem( UUID sequencerId ) {
+            return new SequencingWorkItem(sequencerId, fields[0], fields[1], fields[2], fields[3], fields[4], fields[5],
+                                          fields[6]);
+        }
+
+        byte[] toBytes() {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream output = new DataOutputStream(bytes);
+                output.writeUTF(sequencerName);
+                for (String field : fields) {
+                    writeNullable(output, field);
+                }
+                output.writeInt(attempts);
+                writeNullable(output, lastError);
+                output.flush();
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                // should never happen with an in-memory stream
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static Entry fromBytes( long id,
+                                byte[] bytes ) {
+            try {
+                DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+                String sequencerName = input.readUTF();
+                String[] fields = new String[FIELD_COUNT];
+                for (int i = 0; i != FIELD_COUNT; ++i) {
+                    fields[i] = readNullable(input);
+                }
+                int attempts = input.readInt();
+                String lastError = readNullable(input);
+                return new Entry(id, sequencerName, fields, attempts, lastError);
+            } catch (IOException e) {
+                // should never happen with an in-memory stream
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static void writeNullable( DataOutputStream output,
+                                           String value ) throws IOException {
+            output.writeBoolean(value != null);
+            if (value != null) output.writeUTF(value);
+        }
+
+        private static String readNullable( DataInputStream input ) throws IOException {
+            return input.readBoolean() ? input.readUTF() : null;
+        }
+    }
+}
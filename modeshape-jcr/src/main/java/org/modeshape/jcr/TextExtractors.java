@@ -16,16 +16,27 @@
 package org.modeshape.jcr;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
-import org.modeshape.common.annotation.Immutable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.modeshape.common.annotation.ThreadSafe;
 import org.modeshape.common.logging.Logger;
 import org.modeshape.common.util.CheckArg;
 import org.modeshape.common.util.StringUtil;
 import org.modeshape.jcr.RepositoryConfiguration.Component;
+import org.modeshape.jcr.RepositoryConfiguration.Default;
+import org.modeshape.jcr.api.monitor.ValueMetric;
 import org.modeshape.jcr.api.text.TextExtractor;
 import org.modeshape.jcr.text.TextExtractorOutput;
 import org.modeshape.jcr.value.BinaryKey;
@@ -34,42 +45,96 @@ import org.modeshape.jcr.value.binary.AbstractBinaryStore;
 import org.modeshape.jcr.value.binary.InMemoryBinaryValue;
 
 /**
- * Facility for managing {@link TextExtractor} instances and submitting text extraction work
+ * Facility for managing {@link TextExtractor} instances and submitting text extraction work.
+ * <p>
+ * Extraction work is held in a bounded queue and run by at most {@code maxConcurrency} threads of the extraction thread pool,
+ * with the smallest binary values extracted first. The number of concurrent extractions of particular MIME types can be further
+ * limited, so that expensive formats cannot occupy every thread. Requests for a binary value whose text is already being
+ * extracted share the same work, and when the queue is full the text is extracted by the requesting thread.
+ * </p>
  */
-@Immutable
+@ThreadSafe
 public final class TextExtractors {
 
     private static final Logger LOGGER = Logger.getLogger(TextExtractors.class);
 
     private final List<TextExtractor> extractors;
     private final ExecutorService extractingQueue;
-    private final List<Future<?>> extractionResults;
     private final ConcurrentHashMap<BinaryKey, CountDownLatch> workerLatches;
+    private final int maxConcurrency;
+    private final int maxQueueSize;
+    private final int maxTextLength;
+    private final Map<String, Integer> mimeTypeConcurrency;
+    private final RepositoryStatistics statistics;
+    private final AtomicLong sequence = new AtomicLong();
+    private final Set<Future<?>> dispatchers = Collections.newSetFromMap(new ConcurrentHashMap<Future<?>, Boolean>());
+    // the following are guarded by 'this' ...
+    private final TreeSet<Worker> pending = new TreeSet<>();
+    private final Map<String, Integer> runningByMimeType = new HashMap<>();
+    private int dispatcherCount;
     private volatile boolean active;
 
     public TextExtractors( ExecutorService extractingQueue,
                            List<TextExtractor> extractors ) {
+        this(extractingQueue, extractors, Default.TEXT_EXTRACTION_MAX_POOL_SIZE, Default.TEXT_EXTRACTION_MAX_QUEUE_SIZE,
+             Default.TEXT_EXTRACTION_MAX_TEXT_LENGTH, Collections.<String, Integer>emptyMap(), null);
+    }
+
+    /**
+     * Create a facility that extracts text using the given extractors and thread pool.
+     *
+     * @param extractingQueue the thread pool used to extract text; may not be null
+     * @param extractors the text extractors; may not be null
+     * @param maxConcurrency the maximum number of texts that are extracted at the same time by the thread pool; must be positive
+     * @param maxQueueSize the maximum number of binary values that can be waiting for their text to be extracted; must be positive
+     * @param maxTextLength the maximum number of characters of text kept for each binary value, or a non-positive value if the
+     *        length is unlimited
+     * @param mimeTypeConcurrency the maximum number of concurrent extractions keyed by MIME type; may not be null
+     * @param statistics the statistics to which the state of the queue is reported; may be null
+     */
+    public TextExtractors( ExecutorService extractingQueue,
+                           List<TextExtractor> extractors,
+                           int maxConcurrency,
+                           int maxQueueSize,
+                           int maxTextLength,
+                           Map<String, Integer> mimeTypeConcurrency,
+                           RepositoryStatistics statistics ) {
+        CheckArg.isPositive(maxConcurrency, "maxConcurrency");
+        CheckArg.isPositive(maxQueueSize, "maxQueueSize");
+        CheckArg.isNotNull(mimeTypeConcurrency, "mimeTypeConcurrency");
         this.extractingQueue = extractingQueue;
         this.workerLatches = new ConcurrentHashMap<>();
-        this.extractionResults = new ArrayList<>();
         this.extractors = extractors;
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueueSize = maxQueueSize;
+        this.maxTextLength = maxTextLength;
+        this.mimeTypeConcurrency = new HashMap<>(mimeTypeConcurrency);
+        this.statistics = statistics;
         this.active = true;
     }
 
     protected TextExtractors( JcrRepository.RunningState repository,
                               RepositoryConfiguration.TextExtraction extracting ) {
         this(repository.context().getCachedTreadPool(extracting.getThreadPoolName(), extracting.getMaxPoolSize()),
-             getConfiguredExtractors(repository, extracting));
+             getConfiguredExtractors(repository, extracting), extracting.getMaxPoolSize(), extracting.getMaxQueueSize(),
+             extracting.getMaxTextLength(), extracting.getMimeTypeConcurrency(), repository.statistics());
     }
 
     public void shutdown() {
         this.active = false;
         this.extractors.clear();
         this.extractingQueue.shutdown();
-        for (Future<?> extractionResult : extractionResults) {
-            extractionResult.cancel(true);
+        synchronized (this) {
+            // release anyone waiting for work that will now never be done ...
+            for (Worker worker : pending) {
+                worker.latch.countDown();
+            }
+            pending.clear();
         }
-        extractionResults.clear();
+        for (Future<?> dispatcher : dispatchers) {
+            dispatcher.cancel(true);
+        }
+        dispatchers.clear();
     }
 
     public boolean extractionEnabled() {
@@ -83,7 +148,7 @@ public final class TextExtractors {
         }
         try {
             String mimeType = inMemoryBinaryValue.getMimeType();
-            TextExtractorOutput output = new TextExtractorOutput();
+            TextExtractorOutput output = new TextExtractorOutput(" ", maxTextLength);
             // Run through the extractors and have them extract the text - the first one which accepts the mime-type will win
             for (TextExtractor extractor : extractors) {
                 if (!extractor.supportsMimeType(mimeType)) {
@@ -111,8 +176,19 @@ public final class TextExtractors {
             return null;
         }
         CheckArg.isNotNull(binaryValue, "binaryValue");
-        CountDownLatch latch = getWorkerLatch(binaryValue.getKey(), true);
-        extractionResults.add(extractingQueue.submit(new Worker(store, binaryValue, context, latch)));
+        CountDownLatch latch = new CountDownLatch(1);
+        CountDownLatch existingLatch = workerLatches.putIfAbsent(binaryValue.getKey(), latch);
+        if (existingLatch != null) {
+            // The text is already being (or has already been) extracted ...
+            increment(ValueMetric.TEXT_EXTRACTION_DEDUPLICATED_COUNT);
+            return existingLatch;
+        }
+        Worker worker = new Worker(store, binaryValue, context, latch);
+        if (!enqueue(worker)) {
+            // The queue is full, so do the work in this thread rather than letting the queue grow ...
+            increment(ValueMetric.TEXT_EXTRACTION_OVERFLOW_COUNT);
+            worker.run();
+        }
         return latch;
     }
 
@@ -126,6 +202,82 @@ public final class TextExtractors {
         return workerLatches.get(binaryKey);
     }
 
+    /**
+     * Get the number of binary values that are waiting for their text to be extracted.
+     *
+     * @return the number of queued binary values
+     */
+    public synchronized int getQueueSize() {
+        return pending.size();
+    }
+
+    private synchronized boolean enqueue( Worker worker ) {
+        if (pending.size() >= maxQueueSize) {
+            return false;
+        }
+        pending.add(worker);
+        statistics(ValueMetric.TEXT_EXTRACTION_QUEUE_SIZE, pending.size());
+        if (dispatcherCount < maxConcurrency) {
+            Dispatcher dispatcher = new Dispatcher();
+            try {
+                extractingQueue.execute(dispatcher);
+                dispatchers.add(dispatcher);
+                ++dispatcherCount;
+            } catch (RejectedExecutionException e) {
+                // The thread pool has been shut down, so there's no point in waiting ...
+                pending.remove(worker);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Take the next worker whose MIME type is not already being extracted by as many threads as it is allowed, releasing the
+     * MIME type of the worker that the calling dispatcher just completed. If no such worker is queued, the calling dispatcher
+     * stops; any queued workers will be taken by the remaining dispatchers as they complete their current work.
+     *
+     * @param completed the worker that the calling dispatcher just completed; may be null
+     * @return the next worker, or null if the calling dispatcher should stop
+     */
+    private synchronized Worker next( Worker completed ) {
+        if (completed != null && completed.limited) {
+            Integer running = runningByMimeType.get(completed.mimeType);
+            if (running != null && running > 1) {
+                runningByMimeType.put(completed.mimeType, running - 1);
+            } else {
+                runningByMimeType.remove(completed.mimeType);
+            }
+        }
+        if (active) {
+            for (Iterator<Worker> iter = pending.iterator(); iter.hasNext();) {
+                Worker worker = iter.next();
+                Integer limit = worker.mimeType != null ? mimeTypeConcurrency.get(worker.mimeType) : null;
+                if (limit != null) {
+                    Integer running = runningByMimeType.get(worker.mimeType);
+                    int count = running != null ? running : 0;
+                    if (count >= limit) continue;
+                    runningByMimeType.put(worker.mimeType, count + 1);
+                    worker.limited = true;
+                }
+                iter.remove();
+                statistics(ValueMetric.TEXT_EXTRACTION_QUEUE_SIZE, pending.size());
+                return worker;
+            }
+        }
+        --dispatcherCount;
+        return null;
+    }
+
+    private void increment( ValueMetric metric ) {
+        if (statistics != null) statistics.increment(metric);
+    }
+
+    private void statistics( ValueMetric metric,
+                             long value ) {
+        if (statistics != null) statistics.set(metric, value);
+    }
+
     private static List<TextExtractor> getConfiguredExtractors( JcrRepository.RunningState repository,
                                                                 RepositoryConfiguration.TextExtraction extracting ) {
         List<Component> extractorComponents = extracting.getTextExtractors(repository.problems());
@@ -144,16 +296,51 @@ public final class TextExtractors {
         return extractors;
     }
 
+    /**
+     * A task run by the extraction thread pool that repeatedly takes the next eligible worker from the queue and runs it.
+     */
+    protected final class Dispatcher extends FutureTask<Void> {
+
+        protected Dispatcher() {
+            super(new Runnable() {
+                @SuppressWarnings( "synthetic-access" )
+                @Override
+                public void run() {
+                    Worker worker = next(null);
+                    while (worker != null) {
+                        try {
+                            worker.run();
+                        } finally {
+                            worker = next(worker);
+                        }
+                    }
+                }
+            }, null);
+        }
+
+        @SuppressWarnings( "synthetic-access" )
+        @Override
+        protected void done() {
+            dispatchers.remove(this);
+        }
+    }
+
     /**
      * A unit of work which extracts text from a binary value, stores that text in a store and notifies a latch that the
-     * extraction operation has finished.
+     * extraction operation has finished. Workers are ordered by the size of their binary value (smallest first), and then by
+     * the order in which they were created.
      */
-    protected final class Worker implements Runnable {
+    protected final class Worker implements Runnable, Comparable<Worker> {
         private final BinaryValue binaryValue;
         private final TextExtractor.Context context;
         private final AbstractBinaryStore store;
         private final CountDownLatch latch;
+        private final String mimeType;
+        private final long size;
+        private final long order;
+        private boolean limited;
 
+        @SuppressWarnings( "synthetic-access" )
         protected Worker( AbstractBinaryStore store,
                           BinaryValue binaryValue,
                           TextExtractor.Context context,
@@ -162,23 +349,35 @@ public final class TextExtractors {
             this.binaryValue = binaryValue;
             this.context = context;
             this.latch = latch;
+            this.mimeType = mimeTypeOf(binaryValue);
+            this.size = binaryValue.getSize();
+            this.order = sequence.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo( Worker that ) {
+            if (this == that) return 0;
+            int diff = Long.compare(this.size, that.size);
+            return diff != 0 ? diff : Long.compare(this.order, that.order);
         }
 
         @SuppressWarnings( "synthetic-access" )
         @Override
         public void run() {
             if (!active) {
+                latch.countDown();
                 return;
             }
+            boolean stored = false;
             try {
                 // only extract text if there isn't a stored value for the binary key (note that any changes in the binary will
                 // produce a different key)
                 if (store.getExtractedText(binaryValue) != null) {
+                    stored = true;
                     return;
                 }
 
-                String mimeType = binaryValue.getMimeType();
-                TextExtractorOutput output = new TextExtractorOutput();
+                TextExtractorOutput output = new TextExtractorOutput(" ", maxTextLength);
                 // Run through the extractors and have them extract the text - the first one which accepts the mime-type will win
                 for (TextExtractor extractor : extractors) {
                     if (!extractor.supportsMimeType(mimeType)) {
@@ -187,10 +386,15 @@ public final class TextExtractors {
                     extractor.extractFrom(binaryValue, output, context);
                     break;
                 }
+                if (output.isTruncated()) {
+                    LOGGER.debug("Text extracted from binary value '{0}' was truncated to {1} characters", binaryValue.getKey(),
+                                 maxTextLength);
+                }
 
                 String extractedText = output.getText();
                 if (!StringUtil.isBlank(extractedText)) {
                     store.storeExtractedText(binaryValue, extractedText);
+                    stored = true;
                 }
             } catch (InterruptedException ie) {
                 Thread.interrupted();
@@ -204,7 +408,20 @@ public final class TextExtractors {
             } finally {
                 // decrement the latch regardless of success/failure to avoid blocking, as extraction is not retried
                 latch.countDown();
+                if (stored) {
+                    // the text can now be found in the store, so there's no need to remember this work ...
+                    workerLatches.remove(binaryValue.getKey(), latch);
+                }
             }
         }
     }
+
+    private static String mimeTypeOf( BinaryValue binaryValue ) {
+        try {
+            return binaryValue.getMimeType();
+        } catch (Exception e) {
+            LOGGER.debug(e, "Unable to determine the MIME type of binary value '{0}'", binaryValue.getKey());
+            return null;
+        }
+    }
 }
@@ -19,6 +19,7 @@ import org.modeshape.common.annotation.ThreadSafe;
 import org.modeshape.common.logging.Logger;
 import org.modeshape.common.util.CheckArg;
 import org.modeshape.jcr.cache.change.ChangeSet;
+import org.modeshape.jcr.cache.change.ChangeSetCodec;
 import org.modeshape.jcr.cache.change.ChangeSetListener;
 import org.modeshape.jcr.clustering.ClusteringService;
 import org.modeshape.jcr.clustering.MessageConsumer;
@@ -84,6 +85,7 @@ public final class ClusteredChangeBus extends MessageConsumer<ChangeSet> impleme
         delegate.start();
 
         // register with the clustering service
+        clusteringService.addCodec(ChangeSetCodec.INSTANCE);
         clusteringService.addConsumer(this);
     }
 
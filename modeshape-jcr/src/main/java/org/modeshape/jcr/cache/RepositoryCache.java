@@ -959,6 +959,27 @@ public class RepositoryCache {
      */
     public DocumentOperationResults optimizeChildren( final int targetCountPerBlock,
                                                       final int tolerance ) {
+        return optimizeChildren(targetCountPerBlock, tolerance, false);
+    }
+
+    /**
+     * Optimize the children in the supplied node document, and optionally maintain a directory of the children of each node whose
+     * children are split into multiple blocks.
+     * <p>
+     * Note that this method changes the underlying db as well as the given document, so *it must* be called either from a
+     * transactional context or it must be followed by a session.save call, otherwise there might be inconsistencies between what
+     * a session sees as "persisted" state and the reality.
+     * </p>
+     *
+     * @param targetCountPerBlock the target number of children per block
+     * @param tolerance the allowed tolerance between the target and actual number of children per block
+     * @param childDirectory true if a child directory should be maintained for nodes with multiple blocks of children, or false
+     *        if any existing child directories should be removed
+     * @return the results of the optimization; never null
+     */
+    public DocumentOperationResults optimizeChildren( final int targetCountPerBlock,
+                                                      final int tolerance,
+                                                      final boolean childDirectory ) {
         Stopwatch sw = new Stopwatch();
         logger.info(JcrI18n.beginChildrenOptimization, getName());
         sw.start();
@@ -966,7 +987,8 @@ public class RepositoryCache {
         DocumentOptimizer optimizer = new DocumentOptimizer(documentStore());
         try {
             DocumentOperationResults results = documentStore().localStore().performOnEachDocument((key, document) -> 
-                optimizer.optimizeChildrenBlocks(new NodeKey(key), document, targetCountPerBlock, tolerance)
+                optimizer.optimizeChildrenBlocks(new NodeKey(key), document, targetCountPerBlock, tolerance,
+                                                 childDirectory)
             );
             sw.stop();
             logger.info(JcrI18n.completeChildrenOptimization, getName(), sw.getTotalDuration().toSimpleString(), results);
@@ -0,0 +1,747 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.cache.change;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.jcr.api.value.DateTime;
+import org.modeshape.jcr.cache.NodeKey;
+import org.modeshape.jcr.clustering.MessageCodec;
+import org.modeshape.jcr.value.BinaryKey;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.Path.Segment;
+import org.modeshape.jcr.value.Property;
+import org.modeshape.jcr.value.basic.BasicEmptyProperty;
+import org.modeshape.jcr.value.basic.BasicMultiValueProperty;
+import org.modeshape.jcr.value.basic.BasicName;
+import org.modeshape.jcr.value.basic.BasicPath;
+import org.modeshape.jcr.value.basic.BasicPathSegment;
+import org.modeshape.jcr.value.basic.BasicSingleValueProperty;
+import org.modeshape.jcr.value.basic.ModeShapeDateTime;
+import org.modeshape.jcr.value.basic.RootPath;
+
+/**
+ * A {@link MessageCodec} for the {@link ChangeSet}s sent to the other members of a cluster, which is much more compact and
+ * faster than Java serialization.
+ * <p>
+ * Each change is written as a type code followed by its fields. The strings that usually repeat within a change set (the
+ * namespaces and local parts of names, the source and workspace parts of node keys, workspace names, etc.) are written only the
+ * first time they are used, and are then referred to by their position in a table; names are similarly written only once.
+ * Integers are written with a variable number of bytes. Property values of the common types are written directly, while any
+ * other values (and any unknown kinds of changes) are written with Java serialization.
+ * </p>
+ * <p>
+ * Change sets are decoded as {@link RecordingChanges} instances.
+ * </p>
+ */
+@ThreadSafe
+public final class ChangeSetCodec extends MessageCodec<ChangeSet> {
+
+    public static final int ID = 1;
+
+    public static final ChangeSetCodec INSTANCE = new ChangeSetCodec();
+
+    private static final int SERIALIZED = 0;
+
+    private static final int NODE_ADDED = 1;
+    private static final int NODE_CHANGED = 2;
+    private static final int NODE_MOVED = 3;
+    private static final int NODE_REMOVED = 4;
+    private static final int NODE_RENAMED = 5;
+    private static final int NODE_REORDERED = 6;
+    private static final int NODE_SEQUENCED = 7;
+    private static final int NODE_SEQUENCING_FAILURE = 8;
+    private static final int PROPERTY_ADDED = 9;
+    private static final int PROPERTY_CHANGED = 10;
+    private static final int PROPERTY_REMOVED = 11;
+    private static final int BINARY_VALUE_USED = 12;
+    private static final int BINARY_VALUE_UNUSED = 13;
+    private static final int WORKSPACE_ADDED = 14;
+    private static final int WORKSPACE_REMOVED = 15;
+    private static final int REPOSITORY_METADATA_CHANGED = 16;
+
+    private static final int STRING_VALUE = 1;
+    private static final int LONG_VALUE = 2;
+    private static final int DOUBLE_VALUE = 3;
+    private static final int BOOLEAN_VALUE = 4;
+    private static final int NAME_VALUE = 5;
+    private static final int PATH_VALUE = 6;
+    private static final int DATE_VALUE = 7;
+
+    private static final int NULL_PATH = 0;
+    private static final int ROOT_PATH = 1;
+    private static final int RELATIVE_PATH = 2;
+    private static final int ABSOLUTE_PATH = 3;
+    private static final int SERIALIZED_PATH = 4;
+
+    private static final int SINGLE_PROPERTY = 1;
+    private static final int MULTI_VALUED_PROPERTY = 2;
+    private static final int EMPTY_PROPERTY = 3;
+    private static final int SERIALIZED_PROPERTY = 4;
+
+    /**
+     * The references to strings and names, where 0 denotes null and 1 denotes a value that is written in full.
+     */
+    private static final int NULL_REFERENCE = 0;
+    private static final int NEW_REFERENCE = 1;
+    private static final int FIRST_TABLE_REFERENCE = 2;
+
+    private ChangeSetCodec() {
+        super(ID, ChangeSet.class);
+    }
+
+    @Override
+    public void encode( ChangeSet changeSet,
+                        DataOutput output ) throws IOException {
+        Encoder encoder = new Encoder(output);
+        encoder.string(changeSet.getProcessKey());
+        encoder.string(changeSet.getRepositoryKey());
+        encoder.string(changeSet.getWorkspaceName());
+        encoder.string(changeSet.getJournalId());
+        encoder.string(changeSet.getSessionId());
+        encoder.rawString(changeSet.getUUID());
+        encoder.string(changeSet.getUserId());
+        DateTime timestamp = changeSet.getTimestamp();
+        output.writeBoolean(timestamp != null);
+        if (timestamp != null) {
+            output.writeLong(timestamp.getMillisecondsInUtc());
+            encoder.string(timestamp.getTimeZoneId());
+        }
+        Map<String, String> userData = changeSet.getUserData();
+        if (userData == null) userData = Collections.emptyMap();
+        writeVarInt(output, userData.size());
+        for (Map.Entry<String, String> entry : userData.entrySet()) {
+            encoder.string(entry.getKey());
+            encoder.rawString(entry.getValue());
+        }
+        Set<NodeKey> changedNodes = changeSet.changedNodes();
+        writeVarInt(output, changedNodes.size());
+        for (NodeKey key : changedNodes) {
+            encoder.nodeKey(key);
+        }
+        List<Change> changes = new ArrayList<>(changeSet.size());
+        for (Change change : changeSet) {
+            changes.add(change);
+        }
+        writeVarInt(output, changes.size());
+        for (Change change : changes) {
+            encoder.change(change);
+        }
+    }
+
+    @Override
+    public ChangeSet decode( DataInput input,
+                             ClassLoader classLoader ) throws IOException, ClassNotFoundException {
+        Decoder decoder = new Decoder(input, classLoader);
+        String processKey = decoder.string();
+        String repositoryKey = decoder.string();
+        String workspaceName = decoder.string();
+        String journalId = decoder.string();
+        String sessionId = decoder.string();
+        String uuid = decoder.rawString();
+        String userId = decoder.string();
+        DateTime timestamp = null;
+        if (input.readBoolean()) {
+            long millis = input.readLong();
+            timestamp = new ModeShapeDateTime(millis, decoder.string());
+        }
+        int userDataSize = readVarInt(input);
+        Map<String, String> userData = new HashMap<>();
+        for (int i = 0; i != userDataSize; ++i) {
+            userData.put(decoder.string(), decoder.rawString());
+        }
+        int changedNodesSize = readVarInt(input);
+        Set<NodeKey> changedNodes = new HashSet<>();
+        for (int i = 0; i != changedNodesSize; ++i) {
+            changedNodes.add(decoder.nodeKey());
+        }
+
+        RecordingChanges changeSet = new RecordingChanges(sessionId, processKey, repositoryKey, workspaceName, journalId, uuid);
+        int changesSize = readVarInt(input);
+        for (int i = 0; i != changesSize; ++i) {
+            changeSet.add(decoder.change());
+        }
+        changeSet.setChangedNodes(changedNodes);
+        changeSet.freeze(userId, userData, timestamp);
+        return changeSet;
+    }
+
+    private static final class Encoder {
+        private final DataOutput output;
+        private final Map<String, Integer> strings = new HashMap<>();
+        private final Map<Name, Integer> names = new HashMap<>();
+
+        protected Encoder( DataOutput output ) {
+            this.output = output;
+        }
+
+        protected void change( Change change ) throws IOException {
+            Class<?> type = change.getClass();
+            if (type == NodeAdded.class) {
+                NodeAdded added = (NodeAdded)change;
+                writeVarInt(output, NODE_ADDED);
+                nodeKey(added.getKey());
+                nodeKey(added.getParentKey());
+                path(added.getPath());
+                types(added);
+                Map<Name, Property> properties = added.getProperties();
+                writeVarInt(output, properties.size());
+                for (Property property : properties.values()) {
+                    property(property);
+                }
+            } else if (type == NodeChanged.class) {
+                NodeChanged changed = (NodeChanged)change;
+                writeVarInt(output, NODE_CHANGED);
+                nodeKey(changed.getKey());
+                path(changed.getPath());
+                types(changed);
+            } else if (type == NodeMoved.class) {
+                NodeMoved moved = (NodeMoved)change;
+                writeVarInt(output, NODE_MOVED);
+                nodeKey(moved.getKey());
+                types(moved);
+                nodeKey(moved.getOldParent());
+                nodeKey(moved.getNewParent());
+                path(moved.getNewPath());
+                path(moved.getOldPath());
+            } else if (type == NodeRemoved.class) {
+                NodeRemoved removed = (NodeRemoved)change;
+                writeVarInt(output, NODE_REMOVED);
+                nodeKey(removed.getKey());
+                nodeKey(removed.getParentKey());
+                path(removed.getPath());
+                types(removed);
+                name(removed.getParentPrimaryType());
+                names(removed.getParentMixinTypes());
+            } else if (type == NodeRenamed.class) {
+                NodeRenamed renamed = (NodeRenamed)change;
+                writeVarInt(output, NODE_RENAMED);
+                nodeKey(renamed.getKey());
+                path(renamed.getPath());
+                name(renamed.getOldSegment().getName());
+                writeVarInt(output, renamed.getOldSegment().getIndex());
+                types(renamed);
+            } else if (type == NodeReordered.class) {
+                NodeReordered reordered = (NodeReordered)change;
+                writeVarInt(output, NODE_REORDERED);
+                nodeKey(reordered.getKey());
+                types(reordered);
+                nodeKey(reordered.getParent());
+                path(reordered.getPath());
+                path(reordered.getOldPath());
+                path(reordered.getReorderedBeforePath());
+                Map<NodeKey, Map<Path, Path>> snsPathChanges = reordered.getSnsPathChangesByNodeKey();
+                writeVarInt(output, snsPathChanges.size());
+                for (Map.Entry<NodeKey, Map<Path, Path>> entry : snsPathChanges.entrySet()) {
+                    nodeKey(entry.getKey());
+                    writeVarInt(output, entry.getValue().size());
+                    for (Map.Entry<Path, Path> pathChange : entry.getValue().entrySet()) {
+                        path(pathChange.getKey());
+                        path(pathChange.getValue());
+                    }
+                }
+            } else if (type == NodeSequenced.class) {
+                NodeSequenced sequenced = (NodeSequenced)change;
+                writeVarInt(output, NODE_SEQUENCED);
+                nodeKey(sequenced.getKey());
+                path(sequenced.getPath());
+                types(sequenced);
+                nodeKey(sequenced.getOutputNodeKey());
+                path(sequenced.getOutputNodePath());
+                sequencing(sequenced);
+            } else if (type == NodeSequencingFailure.class) {
+                NodeSequencingFailure failure = (NodeSequencingFailure)change;
+                writeVarInt(output, NODE_SEQUENCING_FAILURE);
+                nodeKey(failure.getKey());
+                path(failure.getPath());
+                types(failure);
+                sequencing(failure);
+                serialized(failure.getCause());
+            } else if (type == PropertyAdded.class || type == PropertyRemoved.class) {
+                AbstractPropertyChange propertyChange = (AbstractPropertyChange)change;
+                writeVarInt(output, type == PropertyAdded.class ? PROPERTY_ADDED : PROPERTY_REMOVED);
+                nodeKey(propertyChange.getKey());
+                types(propertyChange);
+                path(propertyChange.getPathToNode());
+                property(propertyChange.getProperty());
+            } else if (type == PropertyChanged.class) {
+                PropertyChanged changed = (PropertyChanged)change;
+                writeVarInt(output, PROPERTY_CHANGED);
+                nodeKey(changed.getKey());
+                types(changed);
+                path(changed.getPathToNode());
+                property(changed.getNewProperty());
+                property(changed.getOldProperty());
+            } else if (type == BinaryValueUsed.class || type == BinaryValueUnused.class) {
+                writeVarInt(output, type == BinaryValueUsed.class ? BINARY_VALUE_USED : BINARY_VALUE_UNUSED);
+                rawString(((BinaryValueUsageChange)change).getKey().toString());
+            } else if (type == WorkspaceAdded.class) {
+                writeVarInt(output, WORKSPACE_ADDED);
+                string(((WorkspaceAdded)change).getWorkspaceName());
+            } else if (type == WorkspaceRemoved.class) {
+                writeVarInt(output, WORKSPACE_REMOVED);
+                string(((WorkspaceRemoved)change).getWorkspaceName());
+            } else if (type == RepositoryMetadataChanged.class) {
+                writeVarInt(output, REPOSITORY_METADATA_CHANGED);
+            } else {
+                writeVarInt(output, SERIALIZED);
+                serialized(change);
+            }
+        }
+
+        private void types( AbstractNodeChange change ) throws IOException {
+            name(change.getPrimaryType());
+            names(change.getMixinTypes());
+        }
+
+        private void sequencing( AbstractSequencingChange change ) throws IOException {
+            rawString(change.getOutputPath());
+            string(change.getUserId());
+            rawString(change.getSelectedPath());
+            string(change.getSequencerName());
+        }
+
+        protected void string( String value ) throws IOException {
+            if (value == null) {
+                writeVarInt(output, NULL_REFERENCE);
+                return;
+            }
+            Integer index = strings.get(value);
+            if (index != null) {
+                writeVarInt(output, FIRST_TABLE_REFERENCE + index);
+                return;
+            }
+            strings.put(value, strings.size());
+            writeVarInt(output, NEW_REFERENCE);
+            utf8(value);
+        }
+
+        protected void rawString( String value ) throws IOException {
+            output.writeBoolean(value != null);
+            if (value != null) utf8(value);
+        }
+
+        private void utf8( String value ) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(output, bytes.length);
+            output.write(bytes);
+        }
+
+        protected void name( Name name ) throws IOException {
+            if (name == null) {
+                writeVarInt(output, NULL_REFERENCE);
+                return;
+            }
+            Integer index = names.get(name);
+            if (index != null) {
+                writeVarInt(output, FIRST_TABLE_REFERENCE + index);
+                return;
+            }
+            names.put(name, names.size());
+            writeVarInt(output, NEW_REFERENCE);
+            string(name.getNamespaceUri());
+            string(name.getLocalName());
+        }
+
+        protected void names( Set<Name> names ) throws IOException {
+            if (names == null) {
+                writeVarInt(output, 0);
+                return;
+            }
+            writeVarInt(output, names.size() + 1);
+            for (Name name : names) {
+                name(name);
+            }
+        }
+
+        protected void nodeKey( NodeKey key ) throws IOException {
+            if (key == null) {
+                string(null);
+                return;
+            }
+            // The source and workspace parts are shared by most keys ...
+            string(key.getSourceKey() + key.getWorkspaceKey());
+            utf8(key.getIdentifier());
+        }
+
+        protected void path( Path path ) throws IOException {
+            if (path == null) {
+                writeVarInt(output, NULL_PATH);
+            } else if (path.isRoot()) {
+                writeVarInt(output, ROOT_PATH);
+            } else if (path.isIdentifier()) {
+                writeVarInt(output, SERIALIZED_PATH);
+                serialized(path);
+            } else {
+                writeVarInt(output, path.isAbsolute() ? ABSOLUTE_PATH : RELATIVE_PATH);
+                writeVarInt(output, path.size());
+                for (Segment segment : path) {
+                    name(segment.getName());
+                    writeVarInt(output, segment.getIndex());
+                }
+            }
+        }
+
+        protected void property( Property property ) throws IOException {
+            if (property == null) {
+                writeVarInt(output, NULL_REFERENCE);
+                return;
+            }
+            Class<?> type = property.getClass();
+            if (type == BasicSingleValueProperty.class) {
+                writeVarInt(output, SINGLE_PROPERTY);
+                name(property.getName());
+                value(property.getFirstValue());
+            } else if (type == BasicMultiValueProperty.class) {
+                writeVarInt(output, MULTI_VALUED_PROPERTY);
+                name(property.getName());
+                writeVarInt(output, property.size());
+                for (Object value : property) {
+                    value(value);
+                }
+            } else if (type == BasicEmptyProperty.class) {
+                writeVarInt(output, EMPTY_PROPERTY);
+                name(property.getName());
+            } else {
+                writeVarInt(output, SERIALIZED_PROPERTY);
+                serialized(property);
+            }
+        }
+
+        protected void value( Object value ) throws IOException {
+            if (value instanceof String) {
+                writeVarInt(output, STRING_VALUE);
+                utf8((String)value);
+            } else if (value instanceof Long) {
+                writeVarInt(output, LONG_VALUE);
+                output.writeLong((Long)value);
+            } else if (value instanceof Double) {
+                writeVarInt(output, DOUBLE_VALUE);
+                output.writeDouble((Double)value);
+            } else if (value instanceof Boolean) {
+                writeVarInt(output, BOOLEAN_VALUE);
+                output.writeBoolean((Boolean)value);
+            } else if (value instanceof BasicName) {
+                writeVarInt(output, NAME_VALUE);
+                name((Name)value);
+            } else if (value instanceof Path && !((Path)value).isIdentifier()) {
+                writeVarInt(output, PATH_VALUE);
+                path((Path)value);
+            } else if (value instanceof ModeShapeDateTime) {
+                writeVarInt(output, DATE_VALUE);
+                DateTime dateTime = (DateTime)value;
+                output.writeLong(dateTime.getMillisecondsInUtc());
+                string(dateTime.getTimeZoneId());
+            } else {
+                writeVarInt(output, SERIALIZED);
+                serialized(value);
+            }
+        }
+
+        protected void serialized( Object value ) throws IOException {
+            writeSerialized(output, value);
+        }
+    }
+
+    private static final class Decoder {
+        private final DataInput input;
+        private final ClassLoader classLoader;
+        private final List<String> strings = new ArrayList<>();
+        private final List<Name> names = new ArrayList<>();
+
+        protected Decoder( DataInput input,
+                           ClassLoader classLoader ) {
+            this.input = input;
+            this.classLoader = classLoader;
+        }
+
+        protected Change change() throws IOException, ClassNotFoundException {
+            int type = readVarInt(input);
+            switch (type) {
+                case NODE_ADDED: {
+                    NodeKey key = nodeKey();
+                    NodeKey parentKey = nodeKey();
+                    Path path = path();
+                    Name primaryType = name();
+                    Set<Name> mixinTypes = names();
+                    int size = readVarInt(input);
+                    Map<Name, Property> properties = new LinkedHashMap<>();
+                    for (int i = 0; i != size; ++i) {
+                        Property property = property();
+                        properties.put(property.getName(), property);
+                    }
+                    return new NodeAdded(key, parentKey, path, primaryType, mixinTypes, properties);
+                }
+                case NODE_CHANGED: {
+                    NodeKey key = nodeKey();
+                    Path path = path();
+                    return new NodeChanged(key, path, name(), names());
+                }
+                case NODE_MOVED: {
+                    NodeKey key = nodeKey();
+                    Name primaryType = name();
+                    Set<Name> mixinTypes = names();
+                    NodeKey oldParent = nodeKey();
+                    NodeKey newParent = nodeKey();
+                    Path newPath = path();
+                    Path oldPath = path();
+                    return new NodeMoved(key, primaryType, mixinTypes, oldParent, newParent, newPath, oldPath);
+                }
+                case NODE_REMOVED: {
+                    NodeKey key = nodeKey();
+                    NodeKey parentKey = nodeKey();
+                    Path path = path();
+                    Name primaryType = name();
+                    Set<Name> mixinTypes = names();
+                    Name parentPrimaryType = name();
+                    Set<Name> parentMixinTypes = names();
+                    return new NodeRemoved(key, parentKey, path, primaryType, mixinTypes, parentPrimaryType, parentMixinTypes);
+                }
+                case NODE_RENAMED: {
+                    NodeKey key = nodeKey();
+                    Path newPath = path();
+                    Name oldName = name();
+                    Segment oldSegment = new BasicPathSegment(oldName, readVarInt(input));
+                    return new NodeRenamed(key, newPath, oldSegment, name(), names());
+                }
+                case NODE_REORDERED: {
+                    NodeKey key = nodeKey();
+                    Name primaryType = name();
+                    Set<Name> mixinTypes = names();
+                    NodeKey parent = nodeKey();
+                    Path newPath = path();
+                    Path oldPath = path();
+                    Path reorderedBeforePath = path();
+                    int size = readVarInt(input);
+                    Map<NodeKey, Map<Path, Path>> snsPathChanges = new HashMap<>();
+                    for (int i = 0; i != size; ++i) {
+                        NodeKey snsKey = nodeKey();
+                        int pathChangesSize = readVarInt(input);
+                        Map<Path, Path> pathChanges = new HashMap<>();
+                        for (int j = 0; j != pathChangesSize; ++j) {
+                            pathChanges.put(path(), path());
+                        }
+                        snsPathChanges.put(snsKey, pathChanges);
+                    }
+                    return new NodeReordered(key, primaryType, mixinTypes, parent, newPath, oldPath, reorderedBeforePath,
+                                             snsPathChanges);
+                }
+                case NODE_SEQUENCED: {
+                    NodeKey key = nodeKey();
+                    Path path = path();
+                    Name primaryType = name();
+                    Set<Name> mixinTypes = names();
+                    NodeKey outputNodeKey = nodeKey();
+                    Path outputNodePath = path();
+                    String outputPath = rawString();
+                    String userId = string();
+                    String selectedPath = rawString();
+                    String sequencerName = string();
+                    return new NodeSequenced(key, path, primaryType, mixinTypes, outputNodeKey, outputNodePath, outputPath, userId,
+                                             selectedPath, sequencerName);
+                }
+                case NODE_SEQUENCING_FAILURE: {
+                    NodeKey key = nodeKey();
+                    Path path = path();
+                    Name primaryType = name();
+                    Set<Name> mixinTypes = names();
+                    String outputPath = rawString();
+                    String userId = string();
+                    String selectedPath = rawString();
+                    String sequencerName = string();
+                    Throwable cause = (Throwable)serialized();
+                    return new NodeSequencingFailure(key, path, primaryType, mixinTypes, outputPath, userId, selectedPath,
+                                                     sequencerName, cause);
+                }
+                case PROPERTY_ADDED:
+                case PROPERTY_REMOVED: {
+                    NodeKey key = nodeKey();
+                    Name primaryType = name();
+                    Set<Name> mixinTypes = names();
+                    Path nodePath = path();
+                    Property property = property();
+                    if (type == PROPERTY_ADDED) return new PropertyAdded(key, primaryType, mixinTypes, nodePath, property);
+                    return new PropertyRemoved(key, primaryType, mixinTypes, nodePath, property);
+                }
+                case PROPERTY_CHANGED: {
+                    NodeKey key = nodeKey();
+                    Name primaryType = name();
+                    Set<Name> mixinTypes = names();
+                    Path nodePath = path();
+                    Property newProperty = property();
+                    Property oldProperty = property();
+                    return new PropertyChanged(key, primaryType, mixinTypes, nodePath, newProperty, oldProperty);
+                }
+                case BINARY_VALUE_USED:
+                    return new BinaryValueUsed(new BinaryKey(rawString()));
+                case BINARY_VALUE_UNUSED:
+                    return new BinaryValueUnused(new BinaryKey(rawString()));
+                case WORKSPACE_ADDED:
+                    return new WorkspaceAdded(string());
+                case WORKSPACE_REMOVED:
+                    return new WorkspaceRemoved(string());
+                case REPOSITORY_METADATA_CHANGED:
+                    return new RepositoryMetadataChanged();
+                case SERIALIZED:
+                    return (Change)serialized();
+                default:
+                    throw new IOException("Unknown type of change: " + type);
+            }
+        }
+
+        protected String string() throws IOException {
+            int reference = readVarInt(input);
+            if (reference == NULL_REFERENCE) return null;
+            if (reference == NEW_REFERENCE) {
+                String value = utf8();
+                strings.add(value);
+                return value;
+            }
+            return strings.get(reference - FIRST_TABLE_REFERENCE);
+        }
+
+        protected String rawString() throws IOException {
+            return input.readBoolean() ? utf8() : null;
+        }
+
+        private String utf8() throws IOException {
+            byte[] bytes = new byte[readVarInt(input)];
+            input.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        protected Name name() throws IOException {
+            int reference = readVarInt(input);
+            if (reference == NULL_REFERENCE) return null;
+            if (reference == NEW_REFERENCE) {
+                String namespaceUri = string();
+                Name name = new BasicName(namespaceUri, string());
+                names.add(name);
+                return name;
+            }
+            return names.get(reference - FIRST_TABLE_REFERENCE);
+        }
+
+        protected Set<Name> names() throws IOException {
+            int size = readVarInt(input);
+            if (size == 0) return null;
+            --size;
+            if (size == 0) return Collections.emptySet();
+            Set<Name> result = new HashSet<>();
+            for (int i = 0; i != size; ++i) {
+                result.add(name());
+            }
+            return result;
+        }
+
+        protected NodeKey nodeKey() throws IOException {
+            String prefix = string();
+            if (prefix == null) return null;
+            return new NodeKey(prefix + utf8());
+        }
+
+        protected Path path() throws IOException, ClassNotFoundException {
+            int type = readVarInt(input);
+            switch (type) {
+                case NULL_PATH:
+                    return null;
+                case ROOT_PATH:
+                    return RootPath.INSTANCE;
+                case SERIALIZED_PATH:
+                    return (Path)serialized();
+                case RELATIVE_PATH:
+                case ABSOLUTE_PATH:
+                    int size = readVarInt(input);
+                    List<Segment> segments = new ArrayList<>(size);
+                    for (int i = 0; i != size; ++i) {
+                        Name name = name();
+                        segments.add(new BasicPathSegment(name, readVarInt(input)));
+                    }
+                    return new BasicPath(segments, type == ABSOLUTE_PATH);
+                default:
+                    throw new IOException("Unknown type of path: " + type);
+            }
+        }
+
+        protected Property property() throws IOException, ClassNotFoundException {
+            int type = readVarInt(input);
+            switch (type) {
+                case NULL_REFERENCE:
+                    return null;
+                case SINGLE_PROPERTY: {
+                    Name name = name();
+                    return new BasicSingleValueProperty(name, value());
+                }
+                case MULTI_VALUED_PROPERTY: {
+                    Name name = name();
+                    int size = readVarInt(input);
+                    List<Object> values = new ArrayList<>(size);
+                    for (int i = 0; i != size; ++i) {
+                        values.add(value());
+                    }
+                    return new BasicMultiValueProperty(name, values);
+                }
+                case EMPTY_PROPERTY:
+                    return new BasicEmptyProperty(name());
+                case SERIALIZED_PROPERTY:
+                    return (Property)serialized();
+                default:
+                    throw new IOException("Unknown type of property: " + type);
+            }
+        }
+
+        protected Object value() throws IOException, ClassNotFoundException {
+            int type = readVarInt(input);
+            switch (type) {
+                case STRING_VALUE:
+                    return utf8();
+                case LONG_VALUE:
+                    return input.readLong();
+                case DOUBLE_VALUE:
+                    return input.readDouble();
+                case BOOLEAN_VALUE:
+                    return input.readBoolean();
+                case NAME_VALUE:
+                    return name();
+                case PATH_VALUE:
+                    return path();
+                case DATE_VALUE:
+                    long millis = input.readLong();
+                    return new ModeShapeDateTime(millis, string());
+                case SERIALIZED:
+                    return serialized();
+                default:
+                    throw new IOException("Unknown type of value: " + type);
+            }
+        }
+
+        protected Object serialized() throws IOException, ClassNotFoundException {
+            return readSerialized(input, classLoader);
+        }
+    }
+}
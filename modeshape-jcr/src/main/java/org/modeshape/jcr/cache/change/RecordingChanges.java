@@ -54,7 +54,7 @@ public class RecordingChanges implements Changes, ChangeSet {
     private final String journalId;
     private final String sessionId;
     private final Queue<Change> events = new ConcurrentLinkedQueue<Change>();
-    private final String uuid = UUID.randomUUID().toString();
+    private final String uuid;
     private Set<NodeKey> nodeKeys = Collections.emptySet();
     private Map<String, String> userData = Collections.emptyMap();
     private Set<BinaryKey> unusedBinaries = Collections.newSetFromMap(new ConcurrentHashMap<BinaryKey, Boolean>());
@@ -75,6 +75,19 @@ public class RecordingChanges implements Changes, ChangeSet {
                              String repositoryKey,
                              String workspaceName,
                              String journalId ) {
+        this(sessionId, processKey, repositoryKey, workspaceName, journalId, UUID.randomUUID().toString());
+    }
+
+    /**
+     * Creates a change set with a given identifier, such as a copy of a change set received from another process.
+     */
+    RecordingChanges( String sessionId,
+                      String processKey,
+                      String repositoryKey,
+                      String workspaceName,
+                      String journalId,
+                      String uuid ) {
+        this.uuid = uuid;
         this.sessionId = sessionId;
         this.processKey = processKey;
         this.repositoryKey = repositoryKey;
@@ -246,6 +259,21 @@ public class RecordingChanges implements Changes, ChangeSet {
         usedBinaries.add(key);
     }
 
+    /**
+     * Record a change that was already made, such as one of the changes of a change set received from another process.
+     *
+     * @param change the change; may not be null
+     */
+    void add( Change change ) {
+        if (change instanceof BinaryValueUsed) {
+            binaryValueUsed(((BinaryValueUsed)change).getKey());
+        } else if (change instanceof BinaryValueUnused) {
+            binaryValueNoLongerUsed(((BinaryValueUnused)change).getKey());
+        } else {
+            events.add(change);
+        }
+    }
+
     @Override
     public int size() {
         return events.size();
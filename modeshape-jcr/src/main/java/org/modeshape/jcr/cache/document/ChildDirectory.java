@@ -0,0 +1,507 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.cache.document;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.modeshape.common.annotation.Immutable;
+import org.modeshape.jcr.cache.ChildReference;
+import org.modeshape.jcr.cache.NodeKey;
+import org.modeshape.schematic.Schematic;
+import org.modeshape.schematic.SchematicEntry;
+import org.modeshape.schematic.document.Document;
+import org.modeshape.schematic.document.EditableArray;
+import org.modeshape.schematic.document.EditableDocument;
+
+/**
+ * A read-only view over the directory of a node whose children are split into multiple blocks. The directory is a set of
+ * separate documents, referenced from the node's "{@value DocumentConstants#CHILDREN_INFO}" document, which map the name and
+ * the key of each child to the number of the block containing it, so that a single child can be found by reading at most one
+ * block. The directory document itself only lists the blocks and the segments of the directory:
+ *
+ * <pre>
+ * {
+ *     "count" : 2500,
+ *     "blocks" : [ "&lt;key of the 2nd block>", "&lt;key of the 3rd block>" ],
+ *     "segments" : [ "&lt;key of the 1st segment>", "&lt;key of the 2nd segment>", "&lt;key of the 3rd segment>" ]
+ * }
+ * </pre>
+ *
+ * while the names and keys of the children are spread over the segments by their hash code, so that appending children only
+ * rewrites the segments of the appended children rather than a single document with all the children:
+ *
+ * <pre>
+ * {
+ *     "names" : { "&lt;name>" : [ &lt;block number>, &lt;number of children with the name in that block>, ... ] },
+ *     "keys" : { "&lt;child key>" : &lt;block number> }
+ * }
+ * </pre>
+ *
+ * Block number 0 is the node document itself, and block number <i>n</i> is the <i>n</i>th entry in the "blocks" array. The
+ * entries for each name are in the order of the blocks, so they also give the same-name-sibling indexes of the children.
+ * <p>
+ * The directory is only a hint: it is created by the {@link DocumentOptimizer} and kept up-to-date by the
+ * {@link DocumentTranslator} whenever the children of the node are changed, but it is only used when both its number of children
+ * and its last block match those of the node. Such a directory knows of every child, so readers can trust it when it does not
+ * find a child, but they must fall back to reading the blocks in order whenever one of its segments cannot be read or it does
+ * not agree with the actual blocks.
+ * </p>
+ */
+@Immutable
+final class ChildDirectory implements DocumentConstants {
+
+    /**
+     * The number of children for which the directory has one segment when it is built. Appended children are added to the
+     * existing segments until the directory is rebuilt.
+     */
+    static final int CHILDREN_PER_SEGMENT = 1000;
+
+    /**
+     * The block number of a child which is not in the directory.
+     */
+    static final int NO_BLOCK = -1;
+
+    /**
+     * The block number of a child whose directory segment cannot be read.
+     */
+    static final int UNKNOWN_BLOCK = -2;
+
+    private final Document directory;
+    private final List<?> blocks;
+    private final List<?> segmentKeys;
+    private final Function<String, Document> loader;
+    private final Map<Integer, Document> segments = new ConcurrentHashMap<>();
+
+    private ChildDirectory( Document directory,
+                            Function<String, Document> loader ) {
+        this.directory = directory;
+        this.blocks = directory.getArray(BLOCKS);
+        this.segmentKeys = directory.getArray(SEGMENTS);
+        this.loader = loader;
+    }
+
+    /**
+     * Create a directory view over the supplied document, provided that the document is a directory for the expected number of
+     * children and blocks.
+     *
+     * @param directory the directory document; may be null
+     * @param expectedSize the number of children of the node, as recorded in the node's document
+     * @param expectedLastBlockKey the key of the last block of children, as recorded in the node's document; may be null
+     * @param loader the function used to read the segments of the directory; may not be null
+     * @return the directory, or null if the supplied document is null or is not a valid directory for the node
+     */
+    static ChildDirectory from( Document directory,
+                                long expectedSize,
+                                String expectedLastBlockKey,
+                                Function<String, Document> loader ) {
+        if (!isValid(directory, expectedSize, expectedLastBlockKey)) {
+            return null;
+        }
+        return new ChildDirectory(directory, loader);
+    }
+
+    private static boolean isValid( Document directory,
+                                    long expectedSize,
+                                    String expectedLastBlockKey ) {
+        if (directory == null || directory.getLong(COUNT, -1L) != expectedSize) {
+            return false;
+        }
+        List<?> blocks = directory.getArray(BLOCKS);
+        List<?> segmentKeys = directory.getArray(SEGMENTS);
+        if (blocks == null || blocks.isEmpty() || segmentKeys == null || segmentKeys.isEmpty()) {
+            return false;
+        }
+        // The directory is rewritten whenever the blocks change, so it must end with the same block as the node ...
+        return Objects.equals(expectedLastBlockKey, blocks.get(blocks.size() - 1));
+    }
+
+    /**
+     * Get the keys of all the documents of the directory with the supplied key, including that of the directory itself.
+     *
+     * @param directoryKey the key of the directory document; may not be null
+     * @param directory the directory document; may be null
+     * @return the keys of the documents; never null
+     */
+    static List<String> documentKeys( String directoryKey,
+                                      Document directory ) {
+        List<String> keys = new ArrayList<>();
+        keys.add(directoryKey);
+        keys.addAll(segmentKeysOf(directory));
+        return keys;
+    }
+
+    private static List<String> segmentKeysOf( Document directory ) {
+        List<?> segmentKeys = directory != null ? directory.getArray(SEGMENTS) : null;
+        if (segmentKeys == null) {
+            return Collections.emptyList();
+        }
+        List<String> keys = new ArrayList<>(segmentKeys.size());
+        for (Object key : segmentKeys) {
+            if (key instanceof String) {
+                keys.add((String)key);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Remove all of the documents of the directory with the supplied key.
+     *
+     * @param directoryKey the key of the directory document; may not be null
+     * @param documentStore the document store; may not be null
+     */
+    static void remove( String directoryKey,
+                        DocumentStore documentStore ) {
+        SchematicEntry existing = documentStore.get(directoryKey);
+        for (String key : documentKeys(directoryKey, existing != null ? existing.content() : null)) {
+            documentStore.remove(key);
+        }
+    }
+
+    protected static int segmentNumber( String nameOrKey,
+                                        int segmentCount ) {
+        return Math.floorMod(nameOrKey.hashCode(), segmentCount);
+    }
+
+    /**
+     * Get the segment which holds the supplied name or child key.
+     *
+     * @param nameOrKey the string form of the name or the child key; may not be null
+     * @return the segment document, or null if it cannot be read
+     */
+    private Document segmentFor( String nameOrKey ) {
+        int segmentNumber = segmentNumber(nameOrKey, segmentKeys.size());
+        Document segment = segments.get(segmentNumber);
+        if (segment == null) {
+            Object key = segmentKeys.get(segmentNumber);
+            segment = key instanceof String ? loader.apply((String)key) : null;
+            if (segment == null) {
+                return null;
+            }
+            segments.put(segmentNumber, segment);
+        }
+        return segment;
+    }
+
+    private List<?> entriesFor( String name ) {
+        Document segment = segmentFor(name);
+        Document names = segment != null ? segment.getDocument(NAMES) : null;
+        return names != null ? names.getArray(name) : null;
+    }
+
+    /**
+     * Get the total number of children in the directory.
+     *
+     * @return the number of children
+     */
+    long size() {
+        return directory.getLong(COUNT, 0L);
+    }
+
+    /**
+     * Get the key of the block with the supplied number.
+     *
+     * @param blockNumber the block number; must be positive
+     * @return the key of the block document, or null if there is no such block
+     */
+    String blockKey( int blockNumber ) {
+        assert blockNumber > 0;
+        if (blockNumber > blocks.size()) {
+            return null;
+        }
+        Object key = blocks.get(blockNumber - 1);
+        return key instanceof String ? (String)key : null;
+    }
+
+    /**
+     * Get the number of the block which contains the child with the supplied key.
+     *
+     * @param childKey the string form of the child's key; may not be null
+     * @return the block number, {@link #NO_BLOCK} if the directory does not know of such a child, or {@link #UNKNOWN_BLOCK} if
+     *         the segment with that key cannot be read
+     */
+    int blockFor( String childKey ) {
+        Document segment = segmentFor(childKey);
+        if (segment == null) {
+            return UNKNOWN_BLOCK;
+        }
+        Document keys = segment.getDocument(KEYS);
+        Object blockNumber = keys != null ? keys.get(childKey) : null;
+        return blockNumber instanceof Number ? ((Number)blockNumber).intValue() : NO_BLOCK;
+    }
+
+    /**
+     * Get the number of children with the supplied name.
+     *
+     * @param name the string form of the name; may not be null
+     * @return the number of children with that name, or -1 if the segment with that name cannot be read
+     */
+    int childCount( String name ) {
+        Document segment = segmentFor(name);
+        if (segment == null) {
+            return -1;
+        }
+        Document names = segment.getDocument(NAMES);
+        List<?> entries = names != null ? names.getArray(name) : null;
+        if (entries == null) {
+            return 0;
+        }
+        int count = 0;
+        for (int i = 1; i < entries.size(); i += 2) {
+            count += ((Number)entries.get(i)).intValue();
+        }
+        return count;
+    }
+
+    /**
+     * Get the number of children with the supplied name in the blocks before the given block.
+     *
+     * @param name the string form of the name; may not be null
+     * @param blockNumber the block number
+     * @return the number of children with that name which precede the block, or -1 if the directory does not know of any child
+     *         with that name
+     */
+    int childCountBefore( String name,
+                          int blockNumber ) {
+        List<?> entries = entriesFor(name);
+        if (entries == null) {
+            return -1;
+        }
+        int count = 0;
+        for (int i = 0; i + 1 < entries.size(); i += 2) {
+            if (((Number)entries.get(i)).intValue() >= blockNumber) {
+                break;
+            }
+            count += ((Number)entries.get(i + 1)).intValue();
+        }
+        return count;
+    }
+
+    /**
+     * Find the block which contains the child with the supplied name and same-name-sibling index.
+     *
+     * @param name the string form of the name; may not be null
+     * @param snsIndex the 1-based same-name-sibling index of the child within all the children of the node
+     * @return a two-element array with the block number and the 1-based same-name-sibling index of the child within that block,
+     *         or null if the directory does not know of such a child
+     */
+    int[] locate( String name,
+                  int snsIndex ) {
+        List<?> entries = entriesFor(name);
+        if (entries == null) {
+            return null;
+        }
+        int remaining = snsIndex;
+        for (int i = 0; i + 1 < entries.size(); i += 2) {
+            int count = ((Number)entries.get(i + 1)).intValue();
+            if (remaining <= count) {
+                return new int[] {((Number)entries.get(i)).intValue(), remaining};
+            }
+            remaining -= count;
+        }
+        return null;
+    }
+
+    /**
+     * Record children which were appended to the last block of the node in the supplied directory document. Only the directory
+     * document and the segments holding the names and keys of the appended children are changed.
+     *
+     * @param directory the editable directory document; may not be null
+     * @param lastBlockKey the key of the block to which the children were appended; may be null if they were appended to the
+     *        node document itself
+     * @param expectedSize the number of children of the node before the children were appended
+     * @param appended the appended children; may not be null
+     * @param translator the translator used to convert the names of the children; may not be null
+     * @param documentStore the document store in which the segments are edited; may not be null
+     * @return true if the directory was updated, or false if it does not agree with the node's blocks and should be discarded
+     */
+    static boolean append( EditableDocument directory,
+                           String lastBlockKey,
+                           long expectedSize,
+                           Iterable<ChildReference> appended,
+                           DocumentTranslator translator,
+                           DocumentStore documentStore ) {
+        if (!isValid(directory, expectedSize, lastBlockKey)) {
+            return false;
+        }
+        List<String> segmentKeys = segmentKeysOf(directory);
+        if (segmentKeys.size() != directory.getArray(SEGMENTS).size()) {
+            return false;
+        }
+        int blockNumber = directory.getArray(BLOCKS).size();
+        Map<Integer, EditableDocument> edited = new HashMap<>();
+        long count = expectedSize;
+        for (ChildReference ref : appended) {
+            String childKey = ref.getKey().toString();
+            String name = translator.getStringFactory().create(ref.getName());
+            EditableDocument keySegment = edit(segmentNumber(childKey, segmentKeys.size()), segmentKeys, edited, documentStore);
+            EditableDocument nameSegment = edit(segmentNumber(name, segmentKeys.size()), segmentKeys, edited, documentStore);
+            if (keySegment == null || nameSegment == null) {
+                return false;
+            }
+            keySegment.getOrCreateDocument(KEYS).setNumber(childKey, blockNumber);
+            addName(nameSegment.getOrCreateDocument(NAMES), blockNumber, name);
+            ++count;
+        }
+        directory.setNumber(COUNT, count);
+        return true;
+    }
+
+    private static EditableDocument edit( int segmentNumber,
+                                          List<String> segmentKeys,
+                                          Map<Integer, EditableDocument> edited,
+                                          DocumentStore documentStore ) {
+        return edited.computeIfAbsent(segmentNumber, number -> documentStore.edit(segmentKeys.get(number), false));
+    }
+
+    protected static void addName( EditableDocument names,
+                                   int blockNumber,
+                                   String name ) {
+        EditableArray entries = names.getArray(name);
+        if (entries == null) {
+            entries = names.setArray(name);
+        }
+        int size = entries.size();
+        if (size >= 2 && ((Number)entries.get(size - 2)).intValue() == blockNumber) {
+            entries.setNumber(size - 1, ((Number)entries.get(size - 1)).intValue() + 1);
+        } else {
+            entries.addNumber(blockNumber);
+            entries.addNumber(1);
+        }
+    }
+
+    /**
+     * A builder for a new directory, which is given the blocks of the node in order.
+     */
+    static final class Builder {
+        private final EditableArray blocks = Schematic.newArray();
+        private final EditableDocument names = Schematic.newDocument();
+        private final EditableDocument keys = Schematic.newDocument();
+        private int blockNumber = -1;
+        private String lastBlockKey;
+        private long count;
+
+        /**
+         * Add the next block of children.
+         *
+         * @param blockKey the key of the block, or null if this is the node document itself (which must be the first block)
+         * @param children the array of child reference documents in the block; may be null if the block has no children
+         * @return this builder
+         */
+        Builder addBlock( String blockKey,
+                          List<?> children ) {
+            assert (blockNumber == -1) == (blockKey == null);
+            ++blockNumber;
+            if (blockKey != null) {
+                blocks.add(blockKey);
+            }
+            lastBlockKey = blockKey;
+            if (children != null) {
+                for (Object child : children) {
+                    if (child instanceof Document) {
+                        Document childRef = (Document)child;
+                        add(childRef.getString(KEY), childRef.getString(NAME));
+                    }
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Add children which were appended to the last block that was added to this builder.
+         *
+         * @param appended the appended children; may not be null
+         * @param translator the translator used to convert the names of the children; may not be null
+         * @return this builder
+         */
+        Builder addAppended( Iterable<ChildReference> appended,
+                             DocumentTranslator translator ) {
+            assert blockNumber >= 0;
+            for (ChildReference ref : appended) {
+                add(ref.getKey().toString(), translator.getStringFactory().create(ref.getName()));
+            }
+            return this;
+        }
+
+        private void add( String childKey,
+                          String name ) {
+            keys.setNumber(childKey, blockNumber);
+            addName(names, blockNumber, name);
+            ++count;
+        }
+
+        /**
+         * Get the key of the last block that was added.
+         *
+         * @return the key, or null if only the node document has been added
+         */
+        String lastBlockKey() {
+            return lastBlockKey;
+        }
+
+        /**
+         * Store the directory, replacing the documents of any existing directory with the same key. The segments of the existing
+         * directory are reused, and any segments that are no longer needed are removed.
+         *
+         * @param directoryKey the key of the directory document; may not be null
+         * @param documentStore the document store; may not be null
+         */
+        void store( String directoryKey,
+                    DocumentStore documentStore ) {
+            int segmentCount = (int)Math.max(1L, (count + CHILDREN_PER_SEGMENT - 1) / CHILDREN_PER_SEGMENT);
+            List<EditableDocument> segments = new ArrayList<>(segmentCount);
+            for (int i = 0; i != segmentCount; ++i) {
+                EditableDocument segment = Schematic.newDocument();
+                segment.setDocument(NAMES);
+                segment.setDocument(KEYS);
+                segments.add(segment);
+            }
+            for (Document.Field field : keys.fields()) {
+                segments.get(segmentNumber(field.getName(), segmentCount)).getDocument(KEYS).set(field.getName(),
+                                                                                                 field.getValue());
+            }
+            for (Document.Field field : names.fields()) {
+                segments.get(segmentNumber(field.getName(), segmentCount)).getDocument(NAMES).set(field.getName(),
+                                                                                                  field.getValue());
+            }
+
+            SchematicEntry existing = documentStore.get(directoryKey);
+            List<String> existingKeys = segmentKeysOf(existing != null ? existing.content() : null);
+            NodeKey nodeKey = new NodeKey(directoryKey);
+            EditableArray segmentKeys = Schematic.newArray();
+            for (int i = 0; i != segmentCount; ++i) {
+                String segmentKey = i < existingKeys.size() ? existingKeys.get(i) : nodeKey.withRandomId().toString();
+                documentStore.localStore().put(segmentKey, segments.get(i));
+                segmentKeys.add(segmentKey);
+            }
+            for (int i = segmentCount; i < existingKeys.size(); ++i) {
+                documentStore.remove(existingKeys.get(i));
+            }
+
+            EditableDocument directory = Schematic.newDocument();
+            directory.setNumber(COUNT, count);
+            directory.setArray(BLOCKS, blocks);
+            directory.setArray(SEGMENTS, segmentKeys);
+            documentStore.localStore().put(directoryKey, directory);
+        }
+    }
+}
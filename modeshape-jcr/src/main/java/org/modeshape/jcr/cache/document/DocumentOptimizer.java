@@ -61,6 +61,55 @@ public class DocumentOptimizer implements DocumentConstants {
                 return false;
             }
         }
+        // Keep any existing child directory, but don't create new ones ...
+        return optimizeChildrenBlocks(key, document, targetCountPerBlock, tolerance, hasChildDirectory(document));
+    }
+
+    /**
+     * Optimize the children in the supplied node document, and create, rebuild or remove the {@link ChildDirectory child
+     * directory} of the node.
+     * <p>
+     * Note that this method changes the underlying db as well as the given document, so *it must* be called either from a
+     * transactional context or it must be followed by a session.save call, otherwise there might be inconsistencies between what
+     * a session sees as "persisted" state and the reality.
+     * </p>
+     *
+     * @param key the key for the node
+     * @param document the node's document representation that is to be optimized
+     * @param targetCountPerBlock the target number of children per block
+     * @param tolerance the allowed tolerance between the target and actual number of children per block
+     * @param childDirectory true if the node should have a child directory when its children are split into multiple blocks, or
+     *        false if any existing child directory should be removed
+     * @return true if the document was changed, or false otherwise
+     */
+    public boolean optimizeChildrenBlocks( NodeKey key,
+                                           EditableDocument document,
+                                           int targetCountPerBlock,
+                                           int tolerance,
+                                           boolean childDirectory ) {
+        if (document == null) {
+            document = edit(key.toString());
+            if (document == null) {
+                return false;
+            }
+        }
+        boolean changed = optimizeBlocks(key, document, targetCountPerBlock, tolerance);
+        if (document.containsField(KEY)) {
+            // Only node documents have a directory, and not the blocks of children which are also visited ...
+            changed = optimizeChildDirectory(key, document, changed, childDirectory) || changed;
+        }
+        return changed;
+    }
+
+    protected boolean hasChildDirectory( Document document ) {
+        Document info = document.getDocument(CHILDREN_INFO);
+        return info != null && info.containsField(DIRECTORY);
+    }
+
+    protected boolean optimizeBlocks( NodeKey key,
+                                      EditableDocument document,
+                                      int targetCountPerBlock,
+                                      int tolerance ) {
         EditableArray children = document.getArray(CHILDREN);
         if (children == null) {
             // There are no children to optimize
@@ -129,6 +178,77 @@ public class DocumentOptimizer implements DocumentConstants {
         return changed;
     }
 
+    /**
+     * Create, rebuild or remove the child directory of the supplied node document. An existing directory is only rebuilt when the
+     * blocks of children were changed or when it no longer matches the number of children, since otherwise the
+     * {@link DocumentTranslator} has kept it up-to-date.
+     *
+     * @param key the key for the node; may not be null
+     * @param document the node document; may not be null
+     * @param blocksChanged true if the blocks of children were just changed
+     * @param childDirectory true if the node should have a directory when its children are split into multiple blocks
+     * @return true if the document was changed, or false otherwise
+     */
+    protected boolean optimizeChildDirectory( NodeKey key,
+                                              EditableDocument document,
+                                              boolean blocksChanged,
+                                              boolean childDirectory ) {
+        EditableDocument info = document.getDocument(CHILDREN_INFO);
+        if (info == null) {
+            return false;
+        }
+        String directoryKey = info.getString(DIRECTORY);
+        if (!childDirectory || !info.containsField(NEXT_BLOCK)) {
+            // There should not be a directory ...
+            return removeChildDirectory(info, directoryKey);
+        }
+        if (directoryKey != null && !blocksChanged) {
+            SchematicEntry existing = documentStore.get(directoryKey);
+            String lastBlockKey = info.getString(LAST_BLOCK, info.getString(NEXT_BLOCK));
+            if (existing != null
+                && ChildDirectory.from(existing.content(), info.getLong(COUNT, -1L), lastBlockKey, this::content) != null) {
+                // The directory is still valid ...
+                return false;
+            }
+        }
+
+        // Build the directory by visiting all the blocks in order ...
+        ChildDirectory.Builder builder = new ChildDirectory.Builder().addBlock(null, document.getArray(CHILDREN));
+        String nextKey = info.getString(NEXT_BLOCK);
+        while (nextKey != null) {
+            SchematicEntry nextEntry = documentStore.get(nextKey);
+            if (nextEntry == null) {
+                // The chain of blocks is broken, so we can't have a directory ...
+                return removeChildDirectory(info, directoryKey);
+            }
+            Document block = nextEntry.content();
+            builder.addBlock(nextKey, block.getArray(CHILDREN));
+            Document blockInfo = block.getDocument(CHILDREN_INFO);
+            nextKey = blockInfo != null ? blockInfo.getString(NEXT_BLOCK) : null;
+        }
+        if (directoryKey == null) {
+            directoryKey = key.withRandomId().toString();
+            info.setString(DIRECTORY, directoryKey);
+        }
+        builder.store(directoryKey, documentStore);
+        return true;
+    }
+
+    protected boolean removeChildDirectory( EditableDocument info,
+                                            String directoryKey ) {
+        if (directoryKey == null) {
+            return false;
+        }
+        info.remove(DIRECTORY);
+        ChildDirectory.remove(directoryKey, documentStore);
+        return true;
+    }
+
+    protected Document content( String key ) {
+        SchematicEntry entry = documentStore.get(key);
+        return entry != null ? entry.content() : null;
+    }
+
     protected EditableDocument edit( String key ) {
         return documentStore.lockDocuments(key) ? documentStore.edit(key, false) : null;
     }
@@ -27,6 +27,7 @@ import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
@@ -705,7 +706,11 @@ public class DocumentTranslator implements DocumentConstants {
         EditableDocument doc = document;
         EditableDocument lastDoc = document;
         String lastDocKey = null;
+        // A child directory is either rebuilt while visiting all the blocks, or just updated with the appended children ...
+        boolean hasDirectory = info != null && info.directoryKey != null;
+        ChildDirectory.Builder directory = null;
         if (changedChildren != null && !changedChildren.isEmpty()) {
+            directory = hasDirectory ? new ChildDirectory.Builder() : null;
             Map<NodeKey, Insertions> insertionsByBeforeKey = changedChildren.getInsertionsByBeforeKey();
 
             // Handle removals and renames ...
@@ -727,6 +732,9 @@ public class DocumentTranslator implements DocumentConstants {
                 // Change the existing children ...
                 long blockCount = insertChildren(doc, insertionsByBeforeKey, removals, newNames);
                 newTotalSize += blockCount;
+                if (directory != null) {
+                    directory.addBlock(doc == document ? null : lastDocKey, doc.getArray(CHILDREN));
+                }
 
                 // Look at the 'childrenInfo' document for info about the next block of children ...
                 SchematicEntry nextEntry = null;
@@ -755,12 +763,18 @@ public class DocumentTranslator implements DocumentConstants {
                     doc = null;
                 }
             }
+            if (lastDocKey != null) {
+                // There is more than one block, so record the new number of children on the first document ...
+                document.getDocument(CHILDREN_INFO).setNumber(COUNT, newTotalSize);
+            }
         } else {
             // We're not inserting or removing children, so we've not modified the number of children ...
             newTotalSize = info != null ? info.totalSize : 0L;
         }
 
-        if (appended != null && appended.size() != 0) {
+        boolean isAppending = appended != null && appended.size() != 0;
+        String appendedToKey = null;
+        if (isAppending) {
             String lastKey = info != null ? info.lastKey : null;
             if (lastKey != null && !lastKey.equals(lastDocKey)) {
                 // Find the last document ...
@@ -790,6 +804,51 @@ public class DocumentTranslator implements DocumentConstants {
             if (lastKey != null) {
                 childInfo.setString(LAST_BLOCK, lastKey);
             }
+            appendedToKey = lastKey != null ? lastKey : lastDocKey;
+        }
+
+        if (hasDirectory) {
+            changeDirectory(document, info, directory, isAppending ? appended : null, appendedToKey);
+        }
+    }
+
+    /**
+     * Bring the child directory of the supplied node document up-to-date with the changes that were just made to its blocks, or
+     * discard the directory if it cannot be updated. A discarded directory will be recreated by the next optimization.
+     *
+     * @param document the node document; may not be null
+     * @param info the children information of the node before the changes; may not be null
+     * @param rebuilt the builder for the new directory if all the blocks were visited, or null if children were only appended
+     * @param appended the children which were appended to the last block, or null if there are none
+     * @param appendedToKey the key of the block to which the children were appended, or null if they were appended to the node
+     *        document itself
+     */
+    protected void changeDirectory( EditableDocument document,
+                                    ChildReferencesInfo info,
+                                    ChildDirectory.Builder rebuilt,
+                                    ChildReferences appended,
+                                    String appendedToKey ) {
+        assert info.directoryKey != null;
+        boolean updated = false;
+        if (rebuilt != null) {
+            if (appended == null || Objects.equals(appendedToKey, rebuilt.lastBlockKey())) {
+                if (appended != null) {
+                    rebuilt.addAppended(appended, this);
+                }
+                rebuilt.store(info.directoryKey, documentStore);
+                updated = true;
+            }
+        } else if (appended != null) {
+            EditableDocument directory = documentStore.edit(info.directoryKey, false);
+            updated = directory != null
+                      && ChildDirectory.append(directory, appendedToKey, info.totalSize, appended, this, documentStore);
+        } else {
+            // nothing was changed ...
+            updated = true;
+        }
+        if (!updated) {
+            document.getDocument(CHILDREN_INFO).remove(DIRECTORY);
+            ChildDirectory.remove(info.directoryKey, documentStore);
         }
     }
 
@@ -929,7 +988,8 @@ public class DocumentTranslator implements DocumentConstants {
             long blockSize = childrenInfo.getLong(BLOCK_SIZE, 0L);
             String nextBlockKey = childrenInfo.getString(NEXT_BLOCK);
             String lastBlockKey = childrenInfo.getString(LAST_BLOCK, nextBlockKey);
-            return new ChildReferencesInfo(totalSize, blockSize, nextBlockKey, lastBlockKey);
+            String directoryKey = childrenInfo.getString(DIRECTORY);
+            return new ChildReferencesInfo(totalSize, blockSize, nextBlockKey, lastBlockKey, directoryKey);
         }
         return null;
     }
@@ -940,20 +1000,31 @@ public class DocumentTranslator implements DocumentConstants {
         public final long blockSize;
         public final String nextKey;
         public final String lastKey;
+        public final String directoryKey;
 
         public ChildReferencesInfo( long totalSize,
                                     long blockSize,
                                     String nextKey,
                                     String lastKey ) {
+            this(totalSize, blockSize, nextKey, lastKey, null);
+        }
+
+        public ChildReferencesInfo( long totalSize,
+                                    long blockSize,
+                                    String nextKey,
+                                    String lastKey,
+                                    String directoryKey ) {
             this.totalSize = totalSize;
             this.blockSize = blockSize;
             this.nextKey = nextKey;
             this.lastKey = lastKey;
+            this.directoryKey = directoryKey;
         }
 
         @Override
         public String toString() {
-            return "totalSize: " + totalSize + "; blockSize: " + blockSize + "; nextKey: " + nextKey + "; lastKey: " + lastKey;
+            return "totalSize: " + totalSize + "; blockSize: " + blockSize + "; nextKey: " + nextKey + "; lastKey: " + lastKey
+                   + "; directoryKey: " + directoryKey;
         }
     }
 
@@ -1228,7 +1299,14 @@ public class DocumentTranslator implements DocumentConstants {
         return null;
     }
 
-    protected final String keyForBinaryReferenceDocument( String sha1 ) {
+    /**
+     * Get the key of the document which holds the reference count of the stored binary value with the supplied SHA-1 hash.
+     * Writers have to lock this document before storing a property with such a binary value.
+     *
+     * @param sha1 the SHA-1 hash of the binary value; may not be null
+     * @return the document key; never null
+     */
+    public final String keyForBinaryReferenceDocument( String sha1 ) {
         return sha1 + "-ref";
     }
 
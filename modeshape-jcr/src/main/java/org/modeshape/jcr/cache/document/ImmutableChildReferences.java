@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.modeshape.schematic.document.Document;
 import org.modeshape.common.annotation.Immutable;
 import org.modeshape.common.collection.EmptyIterator;
@@ -497,6 +498,11 @@ public class ImmutableChildReferences {
         protected final long totalSize;
         protected final boolean allowsSNS;
         private Segment firstSegment;
+        private final String directoryKey;
+        private final String lastBlockKey;
+        private volatile ChildDirectory directory;
+        private volatile boolean directoryLoaded;
+        private final Map<Integer, ChildReferences> blocksByNumber = new ConcurrentHashMap<>();
 
         public Segmented( WorkspaceCache cache,
                           ChildReferences firstSegment,
@@ -506,6 +512,8 @@ public class ImmutableChildReferences {
             this.totalSize = info.totalSize;
             this.firstSegment = new Segment(firstSegment, info.nextKey, allowsSNS);
             this.allowsSNS = allowsSNS;
+            this.directoryKey = info.directoryKey;
+            this.lastBlockKey = info.lastKey;
         }
 
         @Override
@@ -513,6 +521,53 @@ public class ImmutableChildReferences {
             return totalSize;
         }
 
+        /**
+         * Get the child directory of the node, if there is a valid one. A valid directory knows of every persisted child, but
+         * not of any transient changes, which may also change the same-name-sibling indexes of the persisted children.
+         *
+         * @return the directory, or null if the blocks have to be read in order
+         */
+        private ChildDirectory directory() {
+            if (directoryKey == null) {
+                return null;
+            }
+            if (!directoryLoaded) {
+                // Load the directory only once, even if it turns out not to be valid ...
+                this.directory = ChildDirectory.from(cache.blockFor(directoryKey), totalSize, lastBlockKey, cache::blockFor);
+                this.directoryLoaded = true;
+            }
+            return this.directory;
+        }
+
+        /**
+         * Get the children in the block with the supplied number, without reading any of the preceding blocks.
+         *
+         * @param directory the child directory; may not be null
+         * @param blockNumber the block number, where 0 is the node document itself
+         * @return the children in the block, or null if the block no longer exists
+         */
+        private ChildReferences block( ChildDirectory directory,
+                                       int blockNumber ) {
+            if (blockNumber == 0) {
+                return firstSegment.getReferences();
+            }
+            ChildReferences refs = blocksByNumber.get(blockNumber);
+            if (refs == null) {
+                String blockKey = directory.blockKey(blockNumber);
+                Document blockDoc = blockKey != null ? cache.blockFor(blockKey) : null;
+                if (blockDoc == null) {
+                    return null;
+                }
+                refs = cache.translator().getChildReferencesFromBlock(blockDoc, allowsSNS);
+                blocksByNumber.put(blockNumber, refs);
+            }
+            return refs;
+        }
+
+        private String nameString( Name name ) {
+            return cache.translator().getStringFactory().create(name);
+        }
+
         @Override
         public boolean supportsGetChildReferenceByKey() {
             return size() != ChildReferences.UNKNOWN_SIZE;
@@ -520,7 +575,12 @@ public class ImmutableChildReferences {
 
         @Override
         public int getChildCount( Name name ) {
-            int result = 0;
+            ChildDirectory directory = directory();
+            int result = directory != null ? directory.childCount(nameString(name)) : -1;
+            if (result >= 0) {
+                return result;
+            }
+            result = 0;
             Segment segment = this.firstSegment;
             while (segment != null) {
                 result += segment.getReferences().getChildCount(name);
@@ -533,6 +593,28 @@ public class ImmutableChildReferences {
         public ChildReference getChild( Name name,
                                         int snsIndex,
                                         Context context ) {
+            ChildDirectory directory = directory();
+            if (directory != null) {
+                String nameString = nameString(name);
+                int count = directory.childCount(nameString);
+                Changes changes = context != null ? context.changes() : null;
+                if (changes == null && count >= 0) {
+                    if (snsIndex > count || (!allowsSNS && snsIndex > 1)) {
+                        // The directory knows of every child, so there is no such child ...
+                        return null;
+                    }
+                    int[] location = directory.locate(nameString, snsIndex);
+                    ChildReferences block = location != null ? block(directory, location[0]) : null;
+                    ChildReference ref = block != null ? block.getChild(name, location[1], context) : null;
+                    if (ref != null) {
+                        return allowsSNS ? ref.with(snsIndex) : ref;
+                    }
+                    // Otherwise the directory does not agree with the blocks, so look through them ...
+                } else if (count == 0 && changes.insertionCount(name) == 0 && !changes.isRenamed(name)) {
+                    // No child has this name, and none was added or renamed to it ...
+                    return null;
+                }
+            }
             ChildReference result = null;
             Segment segment = this.firstSegment;
             while (segment != null) {
@@ -547,6 +629,19 @@ public class ImmutableChildReferences {
 
         @Override
         public boolean hasChild( NodeKey key ) {
+            ChildDirectory directory = directory();
+            if (directory != null) {
+                int blockNumber = directory.blockFor(key.toString());
+                if (blockNumber == ChildDirectory.NO_BLOCK) {
+                    // The directory knows of every child, so there is no such child ...
+                    return false;
+                }
+                ChildReferences block = blockNumber >= 0 ? block(directory, blockNumber) : null;
+                if (block != null && block.hasChild(key)) {
+                    return true;
+                }
+                // Otherwise the directory cannot be read or does not agree with the blocks, so look through them ...
+            }
             Segment segment = this.firstSegment;
             while (segment != null) {
                 if (segment.getReferences().hasChild(key)) {
@@ -565,6 +660,27 @@ public class ImmutableChildReferences {
         @Override
         public ChildReference getChild( NodeKey key,
                                         Context context ) {
+            ChildDirectory directory = directory();
+            if (directory != null) {
+                Changes changes = context != null ? context.changes() : null;
+                int blockNumber = directory.blockFor(key.toString());
+                if (blockNumber == ChildDirectory.NO_BLOCK && (changes == null || changes.inserted(key) == null)) {
+                    // The directory knows of every child, so there is no such child unless it was just inserted ...
+                    return null;
+                }
+                // Transient changes may shift the same-name-sibling indexes, so those have to be found in order ...
+                ChildReferences block = changes == null && blockNumber >= 0 ? block(directory, blockNumber) : null;
+                ChildReference ref = block != null ? block.getChild(key, context) : null;
+                if (ref != null && allowsSNS && blockNumber > 0) {
+                    // The SNS index is relative to the block, so add the same-name siblings in the preceding blocks ...
+                    int preceding = directory.childCountBefore(nameString(ref.getName()), blockNumber);
+                    ref = preceding >= 0 ? ref.with(ref.getSnsIndex() + preceding) : null;
+                }
+                if (ref != null) {
+                    return ref;
+                }
+                // Otherwise the directory cannot be read or does not agree with the blocks, so look through them ...
+            }
             ChildReference result = null;
             Segment segment = this.firstSegment;
             while (segment != null) {
@@ -331,6 +331,17 @@ public class WorkspaceCache implements DocumentCache {
         }
     }
 
+    /**
+     * Determine whether the node with the supplied key is already held by this cache, so that {@link #getNode(NodeKey)} will not
+     * have to go to the document store for it.
+     *
+     * @param key the node key; may not be null
+     * @return {@code true} if the node is cached, or {@code false} otherwise
+     */
+    protected final boolean isCached( NodeKey key ) {
+        return nodesByKey.containsKey(key);
+    }
+
     protected void loadFromDocumentStore(Set<String> keys) {
         this.documentStore.load(keys).forEach(entry -> {
             String key = entry.id();
@@ -910,6 +910,9 @@ public class WritableSessionCache extends AbstractSessionCache {
         PathCache sessionPaths = new PathCache(this);
         PathCache workspacePaths = new PathCache(persistedCache);
 
+        // Bring in all the other persisted documents we'll read or edit, rather than going to the store for each one ...
+        prefetchDocuments(changedNodesInOrder, persistedCache);
+
         Set<NodeKey> removedNodes = null;
         Set<NodeKey> removedUnorderedCollections = null;
         Set<BinaryKey> unusedBinaryKeys = new HashSet<>();
@@ -1216,7 +1219,7 @@ public class WritableSessionCache extends AbstractSessionCache {
                     if (!newNames.isEmpty()) {
                         for (Map.Entry<NodeKey, Name> renameEntry : newNames.entrySet()) {
                             NodeKey renamedKey = renameEntry.getKey();
-                            CachedNode oldRenamedNode = persistedCache.getNode(renamedKey);
+                            CachedNode oldRenamedNode = persistedNodeUnlessNew(renamedKey, persistedCache);
                             if (oldRenamedNode == null) {
                                 // The node was created in this session, so we can ignore this ...
                                 continue;
@@ -1235,7 +1238,7 @@ public class WritableSessionCache extends AbstractSessionCache {
                     Map<NodeKey, SessionNode.Insertions> insertionsByBeforeKey = changedChildren.getInsertionsByBeforeKey();
                     for (SessionNode.Insertions insertion : insertionsByBeforeKey.values()) {
                         for (ChildReference insertedRef : insertion.inserted()) {
-                            CachedNode insertedNodePersistent = persistedCache.getNode(insertedRef);
+                            CachedNode insertedNodePersistent = persistedNodeUnlessNew(insertedRef.getKey(), persistedCache);
                             // if the node is new and reordered at the same time (most likely due to either a version restore
                             // or explicit reordering of transient nodes) there is no "old path"
                             CachedNode insertedNode = getNode(insertedRef.getKey());
@@ -1547,6 +1550,135 @@ public class WritableSessionCache extends AbstractSessionCache {
         workspaceCache.loadFromDocumentStore(changedNodesKeys);
     }
     
+    /**
+     * Load from the document store, in as few batches as possible, the persisted documents which
+     * {@link #persistChanges(Iterable)} reads or edits and which have not already been loaded by {@link #lockNodes(Collection)}:
+     * the children which were removed, renamed or reordered, the reference documents of the binary values which are no longer
+     * used, and the ancestors of all the persisted nodes (which are needed to compute their paths). The ancestors are loaded one
+     * level at a time, so the number of round-trips to the store depends on the depth of the changed nodes and not on their
+     * number.
+     *
+     * @param changedNodesInOrder the nodes that are to be persisted; may not be null
+     * @param persistedCache the transactional workspace cache; may not be null
+     */
+    private void prefetchDocuments( Iterable<NodeKey> changedNodesInOrder,
+                                    WorkspaceCache persistedCache ) {
+        DocumentTranslator translator = persistedCache.translator();
+        Set<String> keysToLoad = new HashSet<>();
+        Set<NodeKey> childKeys = new HashSet<>();
+        List<CachedNode> persistedNodes = new ArrayList<>();
+        for (NodeKey key : changedNodesInOrder) {
+            SessionNode node = changedNodes.get(key);
+            if (node == null || node.isNew()) {
+                continue;
+            }
+            // the changed nodes themselves have already been loaded when locking them
+            CachedNode persisted = persistedCache.getNode(key);
+            if (persisted == null) {
+                continue;
+            }
+            persistedNodes.add(persisted);
+            if (node == REMOVED) {
+                // the reference counts of all the binary values will be decremented
+                persisted.getProperties(persistedCache).forEachRemaining(
+                        property -> addBinaryReferenceDocumentKeys(translator, property, keysToLoad));
+                continue;
+            }
+            // the reference counts of the binary values being replaced or removed will be decremented
+            for (Name name : node.removedProperties()) {
+                addBinaryReferenceDocumentKeys(translator, persisted.getProperty(name, persistedCache), keysToLoad);
+            }
+            for (Name name : node.changedProperties().keySet()) {
+                addBinaryReferenceDocumentKeys(translator, persisted.getProperty(name, persistedCache), keysToLoad);
+            }
+            ChangedChildren changedChildren = node.changedChildren();
+            if (changedChildren != null && !changedChildren.isEmpty()) {
+                childKeys.addAll(changedChildren.getRemovals());
+                childKeys.addAll(changedChildren.getNewNames().keySet());
+                for (SessionNode.Insertions insertion : changedChildren.getInsertionsByBeforeKey().values()) {
+                    insertion.inserted().forEach(ref -> childKeys.add(ref.getKey()));
+                    childKeys.add(insertion.insertedBefore().getKey());
+                }
+            }
+        }
+        // the children created in this session are not in the document store, so don't look for them there ...
+        childKeys.removeIf(childKey -> {
+            SessionNode child = changedNodes.get(childKey);
+            return child != null && child.isNew();
+        });
+        for (NodeKey childKey : childKeys) {
+            if (!persistedCache.isCached(childKey)) {
+                keysToLoad.add(childKey.toString());
+            }
+        }
+        if (!keysToLoad.isEmpty()) {
+            persistedCache.loadFromDocumentStore(keysToLoad);
+        }
+        for (NodeKey childKey : childKeys) {
+            CachedNode persistedChild = persistedCache.getNode(childKey);
+            if (persistedChild != null) {
+                persistedNodes.add(persistedChild);
+            }
+        }
+
+        // now load the ancestors, one level at a time ...
+        Set<NodeKey> visitedParents = new HashSet<>();
+        List<CachedNode> level = persistedNodes;
+        while (!level.isEmpty()) {
+            List<NodeKey> parentKeys = new ArrayList<>();
+            Set<String> parentKeysToLoad = new HashSet<>();
+            for (CachedNode persisted : level) {
+                NodeKey parentKey = persisted.getParentKey(persistedCache);
+                if (parentKey != null && visitedParents.add(parentKey)) {
+                    parentKeys.add(parentKey);
+                    if (!persistedCache.isCached(parentKey)) {
+                        parentKeysToLoad.add(parentKey.toString());
+                    }
+                }
+            }
+            if (!parentKeysToLoad.isEmpty()) {
+                persistedCache.loadFromDocumentStore(parentKeysToLoad);
+            }
+            level = new ArrayList<>(parentKeys.size());
+            for (NodeKey parentKey : parentKeys) {
+                CachedNode parent = persistedCache.getNode(parentKey);
+                if (parent != null) {
+                    level.add(parent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the persisted node with the supplied key, without going to the document store for a node which was created in this
+     * session and which therefore cannot have been persisted yet.
+     *
+     * @param key the node key; may not be null
+     * @param persistedCache the transactional workspace cache; may not be null
+     * @return the persisted node, or null if the node was created in this session or does not exist
+     */
+    private CachedNode persistedNodeUnlessNew( NodeKey key,
+                                               WorkspaceCache persistedCache ) {
+        SessionNode node = changedNodes.get(key);
+        if (node != null && node.isNew()) {
+            return null;
+        }
+        return persistedCache.getNode(key);
+    }
+
+    private void addBinaryReferenceDocumentKeys( DocumentTranslator translator,
+                                                 Property property,
+                                                 Set<String> keys ) {
+        if (property == null || !property.isBinary()) {
+            return;
+        }
+        property.forEach(value -> {
+            if (value instanceof AbstractBinary) {
+                keys.add(translator.keyForBinaryReferenceDocument(((AbstractBinary)value).getKey().toString()));
+            }
+        });
+    }
+
     private Set<String> keysToLockForNode(NodeKey key) {
         Set<String> keys = new TreeSet<>();
         //always the node itself
@@ -18,6 +18,8 @@ package org.modeshape.jcr.clustering;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -31,10 +33,16 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 import javax.jcr.RepositoryException;
 import org.jgroups.Address;
 import org.jgroups.Channel;
@@ -58,6 +66,12 @@ import org.modeshape.common.util.StringUtil;
 /**
  * ModeShape service which handles sending/receiving messages in a cluster via JGroups. This service is also a
  * {@link org.modeshape.jcr.locking.LockingService} when running in a cluster, relying on JGroups' {@link CENTRAL_LOCK} protocol.
+ * <p>
+ * Payloads are encoded with the {@link MessageCodec codec} added for their type, or otherwise with Java serialization. The
+ * payloads sent by several threads at the same time are batched into a single JGroups message: the thread that sends a message
+ * also sends the payloads queued by other threads in the meantime, while those threads wait until their own payload has been
+ * sent (or has failed to be sent). Large messages are compressed.
+ * </p>
  * 
  * @author Horia Chiorean (hchiorea@redhat.com)
  */
@@ -71,6 +85,29 @@ public abstract class ClusteringService {
      */
     private static final long DEFAULT_MAX_CLOCK_DELAY_CLUSTER_MILLIS = TimeUnit.MINUTES.toMillis(10);
 
+    /**
+     * The first byte of the messages containing batches of payloads.
+     */
+    private static final byte BATCH_FORMAT_VERSION = 1;
+
+    /**
+     * The first byte of a Java serialization stream, used by messages of older versions which contain a single payload.
+     */
+    private static final byte JAVA_SERIALIZATION_MAGIC = (byte)0xAC;
+
+    private static final int JAVA_SERIALIZATION_CODEC_ID = 0;
+    private static final byte COMPRESSED = 0x1;
+
+    /**
+     * The size above which the payloads of a message are compressed.
+     */
+    private static final int COMPRESSION_THRESHOLD_IN_BYTES = 16 * 1024;
+
+    /**
+     * The size of the payloads above which no more payloads are added to a message.
+     */
+    private static final int MAX_BATCH_SIZE_IN_BYTES = 1024 * 1024;
+
     /**
      * The listener for channel changes.
      */
@@ -111,6 +148,18 @@ public abstract class ClusteringService {
      */
     private final Set<MessageConsumer<Serializable>> consumers;
 
+    /**
+     * The codecs used to encode the payloads, and the same codecs indexed by their identifiers.
+     */
+    private final List<MessageCodec<Serializable>> codecs;
+    private final MessageCodec<?>[] codecsById;
+
+    /**
+     * The encoded payloads waiting to be sent, and the lock held by the thread sending them.
+     */
+    private final ConcurrentLinkedQueue<OutgoingPayload> outgoing;
+    private final ReentrantLock sendLock;
+
     protected ClusteringService( String clusterName ) {
         assert clusterName != null;
         this.clusterName = clusterName;
@@ -121,6 +170,10 @@ public abstract class ClusteringService {
         this.membersInCluster = new AtomicInteger(1);
         this.maxAllowedClockDelayMillis = DEFAULT_MAX_CLOCK_DELAY_CLUSTER_MILLIS;
         this.consumers = new CopyOnWriteArraySet<>();     
+        this.codecs = new CopyOnWriteArrayList<>();
+        this.codecsById = new MessageCodec<?>[128];
+        this.outgoing = new ConcurrentLinkedQueue<>();
+        this.sendLock = new ReentrantLock();
     }
 
     /**
@@ -143,6 +196,23 @@ public abstract class ClusteringService {
         consumers.add((MessageConsumer<Serializable>)consumer);
     }
 
+    /**
+     * Adds a codec used to encode and decode the payloads of a given type. All members of the cluster must add the same codecs.
+     *
+     * @param codec a {@link MessageCodec} instance; may not be null
+     */
+    @SuppressWarnings( "unchecked" )
+    public synchronized void addCodec( MessageCodec<? extends Serializable> codec ) {
+        MessageCodec<?> existing = codecsById[codec.getId()];
+        if (existing != null && existing != codec) {
+            throw new IllegalArgumentException("A codec with the identifier " + codec.getId() + " has already been added");
+        }
+        if (existing == null) {
+            codecsById[codec.getId()] = codec;
+            codecs.add((MessageCodec<Serializable>)codec);
+        }
+    }
+
     /**
      * Shuts down and clears resources held by this service.
      * 
@@ -155,6 +225,7 @@ public abstract class ClusteringService {
         Address address = channel.getAddress();
         LOGGER.debug("{0} shutting down clustering service...", address);
         consumers.clear();
+        outgoing.clear();
 
         // Mark this as not accepting any more ...
         isOpen.set(false);
@@ -233,9 +304,9 @@ public abstract class ClusteringService {
             LOGGER.debug("{0} SENDING {1} ", toString(), payload);
         }
         try {
-            byte[] messageData = toByteArray(payload);
-            Message jgMessage = new Message(null, channel.getAddress(), messageData);
-            channel.send(jgMessage);
+            OutgoingPayload queued = new OutgoingPayload(encode(payload));
+            outgoing.add(queued);
+            send(queued);
             return true;
         } catch (Exception e) {
             // Something went wrong here
@@ -293,6 +364,154 @@ public abstract class ClusteringService {
         return clusteringService;
     }
 
+    /**
+     * Wait until the supplied payload has been sent, sending the queued payloads in batches if no other thread is doing so. The
+     * payloads are sent in the order in which they were queued, so a thread only ever sends the payloads queued before its own
+     * and those that fit in the same message.
+     *
+     * @param queued the queued payload; may not be null
+     * @throws Exception if the message containing the payload could not be sent
+     */
+    private void send( OutgoingPayload queued ) throws Exception {
+        sendLock.lock();
+        try {
+            // Once we have the lock, our payload has either been sent by another thread or is still queued ...
+            while (!queued.isDone()) {
+                sendBatch();
+            }
+        } finally {
+            sendLock.unlock();
+        }
+        if (queued.failure != null) {
+            throw queued.failure;
+        }
+    }
+
+    /**
+     * Send the payloads at the front of the queue in a single message, and record the outcome with each of them. This must only
+     * be called while holding the {@link #sendLock send lock}.
+     */
+    private void sendBatch() {
+        List<OutgoingPayload> batch = new ArrayList<>();
+        List<byte[]> encoded = new ArrayList<>();
+        int size = 0;
+        OutgoingPayload next = null;
+        while (size < MAX_BATCH_SIZE_IN_BYTES && (next = outgoing.poll()) != null) {
+            batch.add(next);
+            encoded.add(next.encoded);
+            size += next.encoded.length;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        Exception failure = null;
+        try {
+            channel.send(new Message(null, channel.getAddress(), toMessageData(encoded, size)));
+        } catch (Exception e) {
+            failure = e;
+        }
+        for (OutgoingPayload payload : batch) {
+            payload.done(failure);
+        }
+    }
+
+    byte[] encode( Serializable payload ) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        DataOutputStream dataOutput = new DataOutputStream(output);
+        MessageCodec<Serializable> codec = codecFor(payload);
+        if (codec != null) {
+            ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            DataOutputStream encodedOutput = new DataOutputStream(encoded);
+            codec.encode(payload, encodedOutput);
+            encodedOutput.flush();
+            dataOutput.writeByte(codec.getId());
+            MessageCodec.writeVarInt(dataOutput, encoded.size());
+            encoded.writeTo(dataOutput);
+        } else {
+            byte[] serialized = toByteArray(payload);
+            dataOutput.writeByte(JAVA_SERIALIZATION_CODEC_ID);
+            MessageCodec.writeVarInt(dataOutput, serialized.length);
+            dataOutput.write(serialized);
+        }
+        dataOutput.flush();
+        return output.toByteArray();
+    }
+
+    private MessageCodec<Serializable> codecFor( Serializable payload ) {
+        for (MessageCodec<Serializable> codec : codecs) {
+            if (codec.getPayloadType().isInstance(payload)) return codec;
+        }
+        return null;
+    }
+
+    byte[] toMessageData( List<byte[]> batch,
+                          int size ) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(size + 5);
+        DataOutputStream bodyOutput = new DataOutputStream(body);
+        MessageCodec.writeVarInt(bodyOutput, batch.size());
+        for (byte[] encoded : batch) {
+            bodyOutput.write(encoded);
+        }
+        bodyOutput.flush();
+
+        boolean compress = body.size() > COMPRESSION_THRESHOLD_IN_BYTES;
+        ByteArrayOutputStream output = new ByteArrayOutputStream(compress ? body.size() / 2 : body.size() + 2);
+        output.write(BATCH_FORMAT_VERSION);
+        output.write(compress ? COMPRESSED : 0);
+        if (compress) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (DeflaterOutputStream deflaterOutput = new DeflaterOutputStream(output, deflater)) {
+                body.writeTo(deflaterOutput);
+            } finally {
+                deflater.end();
+            }
+        } else {
+            body.writeTo(output);
+        }
+        return output.toByteArray();
+    }
+
+    protected List<Serializable> fromMessageData( byte[] data,
+                                                  ClassLoader classLoader ) throws IOException, ClassNotFoundException {
+        if (classLoader == null) {
+            classLoader = ClusteringService.class.getClassLoader();
+        }
+        if (data.length > 0 && data[0] == JAVA_SERIALIZATION_MAGIC) {
+            // A message from an older member, containing a single serialized payload ...
+            List<Serializable> payloads = new ArrayList<>(1);
+            payloads.add(fromByteArray(data, classLoader));
+            return payloads;
+        }
+        if (data.length < 2 || data[0] != BATCH_FORMAT_VERSION) {
+            throw new IOException("Unknown message format");
+        }
+        InputStream stream = new ByteArrayInputStream(data, 2, data.length - 2);
+        if ((data[1] & COMPRESSED) != 0) {
+            stream = new InflaterInputStream(stream);
+        }
+        try (DataInputStream input = new DataInputStream(stream)) {
+            int count = MessageCodec.readVarInt(input);
+            List<Serializable> payloads = new ArrayList<>(count);
+            for (int i = 0; i != count; ++i) {
+                int codecId = input.readUnsignedByte();
+                byte[] encoded = new byte[MessageCodec.readVarInt(input)];
+                input.readFully(encoded);
+                if (codecId == JAVA_SERIALIZATION_CODEC_ID) {
+                    payloads.add(fromByteArray(encoded, classLoader));
+                    continue;
+                }
+                MessageCodec<?> codec = codecId < codecsById.length ? codecsById[codecId] : null;
+                if (codec == null) {
+                    // This member is not (yet) interested in these payloads ...
+                    LOGGER.debug("{0} ignoring payload with unknown codec {1}", toString(), codecId);
+                    continue;
+                }
+                payloads.add(codec.decode(new DataInputStream(new ByteArrayInputStream(encoded)), classLoader));
+            }
+            return payloads;
+        }
+    }
+
     private byte[] toByteArray( Object payload ) throws IOException {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
         try (ObjectOutputStream stream = new ObjectOutputStream(output)) {
@@ -334,15 +553,15 @@ public abstract class ClusteringService {
         @Override
         public void receive( final org.jgroups.Message message ) {
             try {
-                Serializable payload = fromByteArray(message.getBuffer(), getClass().getClassLoader());
-
-                if (LOGGER.isDebugEnabled()) {
-                    LOGGER.debug("{0} RECEIVED {1}", ClusteringService.this.toString(), payload);
-                }
+                for (Serializable payload : fromMessageData(message.getBuffer(), getClass().getClassLoader())) {
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("{0} RECEIVED {1}", ClusteringService.this.toString(), payload);
+                    }
 
-                for (MessageConsumer<Serializable> consumer : consumers) {
-                    if (consumer.getPayloadType().isAssignableFrom(payload.getClass())) {
-                        consumer.consume(payload);
+                    for (MessageConsumer<Serializable> consumer : consumers) {
+                        if (consumer.getPayloadType().isAssignableFrom(payload.getClass())) {
+                            consumer.consume(payload);
+                        }
                     }
                 }
             } catch (Exception e) {
@@ -398,7 +617,7 @@ public abstract class ClusteringService {
     /**
      * ObjectInputStream extension that allows a different class loader to be used when resolving types.
      */
-    private static class ObjectInputStreamWithClassLoader extends ObjectInputStream {
+    static class ObjectInputStreamWithClassLoader extends ObjectInputStream {
 
         private ClassLoader cl;
 
@@ -596,4 +815,26 @@ public abstract class ClusteringService {
             return false;
         }
     }
+
+    /**
+     * An encoded payload waiting to be sent, which records whether the message containing it was sent.
+     */
+    private static final class OutgoingPayload {
+        protected final byte[] encoded;
+        private volatile boolean done;
+        protected volatile Exception failure;
+
+        protected OutgoingPayload( byte[] encoded ) {
+            this.encoded = encoded;
+        }
+
+        protected void done( Exception failure ) {
+            this.failure = failure;
+            this.done = true;
+        }
+
+        protected boolean isDone() {
+            return done;
+        }
+    }
 }
@@ -0,0 +1,162 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.clustering;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * A compact binary encoding of the messages of a given type, which {@link ClusteringService} uses instead of Java serialization
+ * for the payloads of that type once the codec has been {@link ClusteringService#addCodec(MessageCodec) added}.
+ * <p>
+ * Every member of a cluster must use the same codecs, which are identified by their {@link #getId() identifiers}.
+ * </p>
+ *
+ * @param <T> the payload type that this codec encodes
+ * @see ClusteringService#sendMessage(java.io.Serializable)
+ */
+public abstract class MessageCodec<T extends Serializable> {
+
+    private final int id;
+    private final Class<T> payloadType;
+
+    /**
+     * @param id the identifier of the codec, which must be unique amongst the codecs and between 1 and 127
+     * @param payloadType the type of payload; may not be null
+     */
+    protected MessageCodec( int id,
+                            Class<T> payloadType ) {
+        assert id > 0 && id < 128;
+        this.id = id;
+        this.payloadType = payloadType;
+    }
+
+    /**
+     * Returns the identifier of this codec, which is written with every encoded payload.
+     *
+     * @return the identifier, between 1 and 127
+     */
+    public final int getId() {
+        return id;
+    }
+
+    /**
+     * Returns the type of the payload; the codec is used for all payloads that are instances of this type.
+     *
+     * @return a {@link Class} instance never null;
+     */
+    public final Class<T> getPayloadType() {
+        return payloadType;
+    }
+
+    /**
+     * Encode the supplied payload.
+     *
+     * @param payload the payload; never null
+     * @param output the output to which the payload is written; never null
+     * @throws IOException if there is a problem writing the payload
+     */
+    public abstract void encode( T payload,
+                                 DataOutput output ) throws IOException;
+
+    /**
+     * Decode a payload that was {@link #encode(Serializable, DataOutput) encoded} by this codec.
+     *
+     * @param input the input from which the payload is read; never null
+     * @param classLoader the class loader used to load any classes; never null
+     * @return the payload; never null
+     * @throws IOException if there is a problem reading the payload
+     * @throws ClassNotFoundException if a class of the payload cannot be found
+     */
+    public abstract T decode( DataInput input,
+                              ClassLoader classLoader ) throws IOException, ClassNotFoundException;
+
+    /**
+     * Write a non-negative integer using between 1 and 5 bytes, where smaller values use fewer bytes.
+     *
+     * @param output the output; may not be null
+     * @param value the value; must not be negative
+     * @throws IOException if there is a problem writing the value
+     */
+    public static void writeVarInt( DataOutput output,
+                                    int value ) throws IOException {
+        assert value >= 0;
+        while ((value & ~0x7F) != 0) {
+            output.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.writeByte(value);
+    }
+
+    /**
+     * Read a non-negative integer written with {@link #writeVarInt(DataOutput, int)}.
+     *
+     * @param input the input; may not be null
+     * @return the value
+     * @throws IOException if there is a problem reading the value
+     */
+    public static int readVarInt( DataInput input ) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = input.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    /**
+     * Write an object using Java serialization, for the parts of a payload which the codec does not encode itself.
+     *
+     * @param output the output; may not be null
+     * @param value the object; may be null
+     * @throws IOException if there is a problem writing the object
+     */
+    protected static void writeSerialized( DataOutput output,
+                                           Object value ) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream stream = new ObjectOutputStream(bytes)) {
+            stream.writeObject(value);
+        }
+        writeVarInt(output, bytes.size());
+        output.write(bytes.toByteArray());
+    }
+
+    /**
+     * Read an object written with {@link #writeSerialized(DataOutput, Object)}.
+     *
+     * @param input the input; may not be null
+     * @param classLoader the class loader used to load the classes of the object; may be null
+     * @return the object; may be null
+     * @throws IOException if there is a problem reading the object
+     * @throws ClassNotFoundException if a class of the object cannot be found
+     */
+    protected static Object readSerialized( DataInput input,
+                                            ClassLoader classLoader ) throws IOException, ClassNotFoundException {
+        byte[] bytes = new byte[readVarInt(input)];
+        input.readFully(bytes);
+        try (ObjectInputStream stream = new ClusteringService.ObjectInputStreamWithClassLoader(new ByteArrayInputStream(bytes),
+                                                                                               classLoader)) {
+            return stream.readObject();
+        }
+    }
+}
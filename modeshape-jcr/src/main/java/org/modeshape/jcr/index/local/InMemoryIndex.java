@@ -0,0 +1,295 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.index.local;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jcr.query.qom.Constraint;
+import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.common.logging.Logger;
+import org.modeshape.jcr.index.local.IndexValues.Converter;
+import org.modeshape.jcr.spi.index.IndexConstraints;
+import org.modeshape.jcr.spi.index.provider.ProvidedIndex;
+import org.modeshape.jcr.value.ValueFactory;
+
+/**
+ * An index that is kept entirely on the heap. Values are kept in natural sort order in a concurrent skip list, so reads never
+ * block and never deserialize anything. Writes are serialized on the index, which is appropriate for the small and frequently
+ * read indexes this is meant for.
+ * <p>
+ * A unique index associates each value with a single node key (adding a value replaces any node key previously associated with
+ * it), whereas a non-unique index (including enumerated and node type indexes) associates each value with any number of node
+ * keys.
+ * </p>
+ *
+ * @param <T> the type of values
+ * @see InMemoryIndexProvider
+ */
+@ThreadSafe
+final class InMemoryIndex<T> implements ProvidedIndex<T> {
+
+    private final Logger logger = Logger.getLogger(getClass());
+
+    private final String name;
+    private final String workspaceName;
+    private final boolean unique;
+    private final Converter<T> converter;
+    private final ValueFactory<T> valueFactory;
+    private final ValueFactory<String> stringFactory;
+    private final NavigableMap<T, Set<String>> nodeKeysByValue;
+    private final Map<String, Set<T>> valuesByNodeKey = new ConcurrentHashMap<>();
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();
+    private final Runnable onDestroy;
+    private volatile boolean requiresReindexing = true;
+
+    InMemoryIndex( String name,
+                   String workspaceName,
+                   boolean unique,
+                   Comparator<T> comparator,
+                   ValueFactory<T> valueFactory,
+                   ValueFactory<String> stringFactory,
+                   Runnable onDestroy ) {
+        assert name != null;
+        assert workspaceName != null;
+        assert comparator != null;
+        this.name = name;
+        this.workspaceName = workspaceName;
+        this.unique = unique;
+        this.valueFactory = valueFactory;
+        this.stringFactory = stringFactory;
+        this.converter = IndexValues.converter(valueFactory);
+        this.nodeKeysByValue = new ConcurrentSkipListMap<>(comparator);
+        this.onDestroy = onDestroy;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    String getWorkspaceName() {
+        return workspaceName;
+    }
+
+    @Override
+    public boolean requiresReindexing() {
+        return requiresReindexing;
+    }
+
+    @Override
+    public long estimateTotalCount() {
+        return totalCount.get();
+    }
+
+    @Override
+    public long estimateCardinality( List<Constraint> andedConstraints,
+                                     Map<String, Object> variables ) {
+        return Operations.createEnumeratedFilter(nodeKeysByValue, converter, andedConstraints, variables).estimateCount();
+    }
+
+    @Override
+    public Results filter( IndexConstraints constraints,
+                           long cardinalityEstimate ) {
+        return Operations.createEnumeratedFilter(nodeKeysByValue, converter, constraints.getConstraints(),
+                                                 constraints.getVariables()).getResults();
+    }
+
+    @Override
+    public void add( String nodeKey,
+                     String propertyName,
+                     T value ) {
+        addValues(nodeKey, new Object[] {value});
+    }
+
+    @Override
+    public void add( String nodeKey,
+                     String propertyName,
+                     T[] values ) {
+        addValues(nodeKey, values);
+    }
+
+    private synchronized void addValues( String nodeKey,
+                                         Object[] values ) {
+        for (Object obj : values) {
+            @SuppressWarnings( "unchecked" )
+            T value = (T)obj;
+            logger.trace("Adding node '{0}' to '{1}' index with value '{2}'", nodeKey, name, value);
+            if (unique) {
+                Set<String> previous = nodeKeysByValue.put(value, singleNodeKey(nodeKey));
+                if (previous != null) {
+                    for (String previousKey : previous) {
+                        if (!previousKey.equals(nodeKey)) removeReverse(previousKey, value);
+                    }
+                    totalCount.addAndGet(-previous.size());
+                }
+                totalCount.incrementAndGet();
+            } else {
+                if (nodeKeysByValue.computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet()).add(nodeKey)) {
+                    totalCount.incrementAndGet();
+                }
+            }
+            valuesByNodeKey.computeIfAbsent(nodeKey, k -> ConcurrentHashMap.newKeySet()).add(value);
+        }
+        changes.incrementAndGet();
+    }
+
+    @Override
+    public synchronized void remove( String nodeKey ) {
+        Set<T> values = valuesByNodeKey.remove(nodeKey);
+        if (values == null) return;
+        for (T value : values) {
+            logger.trace("Removing node '{0}' from '{1}' index with value '{2}'", nodeKey, name, value);
+            removeForward(nodeKey, value);
+        }
+        changes.incrementAndGet();
+    }
+
+    @Override
+    public void remove( String nodeKey,
+                        String propertyName,
+                        T value ) {
+        removeValues(nodeKey, new Object[] {value});
+    }
+
+    @Override
+    public void remove( String nodeKey,
+                        String propertyName,
+                        T[] values ) {
+        removeValues(nodeKey, values);
+    }
+
+    private synchronized void removeValues( String nodeKey,
+                                            Object[] values ) {
+        Set<T> existing = valuesByNodeKey.get(nodeKey);
+        if (existing == null) return;
+        for (Object obj : values) {
+            @SuppressWarnings( "unchecked" )
+            T value = (T)obj;
+            if (existing.contains(value)) {
+                logger.trace("Removing node '{0}' from '{1}' index with value '{2}'", nodeKey, name, value);
+                removeForward(nodeKey, value);
+                removeReverse(nodeKey, value);
+            }
+        }
+        changes.incrementAndGet();
+    }
+
+    private void removeForward( String nodeKey,
+                                T value ) {
+        Set<String> nodeKeys = nodeKeysByValue.get(value);
+        if (nodeKeys != null && nodeKeys.contains(nodeKey)) {
+            if (nodeKeys.size() == 1) {
+                nodeKeysByValue.remove(value);
+            } else {
+                nodeKeys.remove(nodeKey);
+            }
+            totalCount.decrementAndGet();
+        }
+    }
+
+    private void removeReverse( String nodeKey,
+                                T value ) {
+        Set<T> values = valuesByNodeKey.get(nodeKey);
+        if (values != null) {
+            values.remove(value);
+            if (values.isEmpty()) valuesByNodeKey.remove(nodeKey);
+        }
+    }
+
+    private static Set<String> singleNodeKey( String nodeKey ) {
+        Set<String> nodeKeys = ConcurrentHashMap.newKeySet(1);
+        nodeKeys.add(nodeKey);
+        return nodeKeys;
+    }
+
+    @Override
+    public void commit() {
+        // Nothing to do, since all changes are immediately visible ...
+    }
+
+    @Override
+    public synchronized void clearAllData() {
+        nodeKeysByValue.clear();
+        valuesByNodeKey.clear();
+        totalCount.set(0L);
+        changes.incrementAndGet();
+    }
+
+    @Override
+    public void shutdown( boolean destroyed ) {
+        if (destroyed) {
+            clearAllData();
+            if (onDestroy != null) onDestroy.run();
+        }
+    }
+
+    /**
+     * Get the number of changes made to this index since it was created. Snapshots use this to detect whether an index has
+     * changed since the last snapshot was written.
+     *
+     * @return the number of changes
+     */
+    long changeCount() {
+        return changes.get();
+    }
+
+    /**
+     * Copy the content of this index into a snapshot section, using the string form of each value.
+     *
+     * @return the map of value strings to node keys; never null
+     */
+    synchronized Map<String, String[]> snapshot() {
+        Map<String, String[]> content = new LinkedHashMap<>();
+        for (Map.Entry<T, Set<String>> entry : nodeKeysByValue.entrySet()) {
+            Set<String> nodeKeys = entry.getValue();
+            content.put(stringFactory.create(entry.getKey()), nodeKeys.toArray(new String[nodeKeys.size()]));
+        }
+        return content;
+    }
+
+    /**
+     * Populate this index with the content of a snapshot section. The index no longer {@link #requiresReindexing() requires
+     * reindexing} after the snapshot has been restored.
+     *
+     * @param content the map of value strings to node keys; may be null if there is no snapshot for this index
+     */
+    synchronized void restore( Map<String, String[]> content ) {
+        if (content == null) return;
+        clearAllData();
+        for (Map.Entry<String, String[]> entry : content.entrySet()) {
+            T value = valueFactory.create(entry.getKey());
+            for (String nodeKey : entry.getValue()) {
+                addValues(nodeKey, new Object[] {value});
+            }
+        }
+        logger.debug("Restored {0} entries in '{1}' index in workspace '{2}' from snapshot", totalCount.get(), name,
+                     workspaceName);
+        requiresReindexing = false;
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryIndex " + name + " in workspace " + workspaceName + (unique ? " (unique)" : "");
+    }
+}
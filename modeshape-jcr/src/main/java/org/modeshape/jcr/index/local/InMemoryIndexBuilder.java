@@ -0,0 +1,105 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.index.local;
+
+import java.util.Comparator;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.NodeTypes.Supplier;
+import org.modeshape.jcr.api.index.IndexDefinition;
+import org.modeshape.jcr.cache.change.ChangeSetAdapter.NodeTypePredicate;
+import org.modeshape.jcr.spi.index.provider.ManagedIndexBuilder;
+import org.modeshape.jcr.spi.index.provider.ProvidedIndex;
+import org.modeshape.jcr.value.PropertyType;
+import org.modeshape.jcr.value.ValueFactory;
+
+/**
+ * A builder for {@link InMemoryIndex in-memory indexes}.
+ *
+ * @see InMemoryIndexProvider
+ */
+final class InMemoryIndexBuilder extends ManagedIndexBuilder {
+
+    private final InMemoryIndexProvider provider;
+    private final PropertyType type;
+
+    InMemoryIndexBuilder( ExecutionContext context,
+                          IndexDefinition defn,
+                          Supplier nodeTypesSupplier,
+                          String workspaceName,
+                          NodeTypePredicate matcher,
+                          InMemoryIndexProvider provider ) {
+        super(context, defn, workspaceName, nodeTypesSupplier, matcher);
+        assert defn.hasSingleColumn();
+        this.provider = provider;
+        this.type = determineActualPropertyType(defn.getColumnDefinition(0));
+    }
+
+    @SuppressWarnings( "unchecked" )
+    private <T> InMemoryIndex<T> build( String workspaceName,
+                                        boolean unique,
+                                        PropertyType type ) {
+        ValueFactory<T> factory = (ValueFactory<T>)context.getValueFactories().getValueFactory(type);
+        Comparator<T> comparator = (Comparator<T>)type.getComparator();
+        return provider.register(new InMemoryIndex<>(defn.getName(), workspaceName, unique, comparator, factory,
+                                                     context.getValueFactories().getStringFactory(),
+                                                     () -> provider.unregister(defn.getName(), workspaceName)));
+    }
+
+    @Override
+    protected ProvidedIndex<?> buildMultiValueIndex( ExecutionContext context,
+                                                     IndexDefinition defn,
+                                                     String workspaceName,
+                                                     Supplier nodeTypesSupplier,
+                                                     NodeTypePredicate matcher ) {
+        return build(workspaceName, false, type);
+    }
+
+    @Override
+    protected ProvidedIndex<?> buildUniqueValueIndex( ExecutionContext context,
+                                                      IndexDefinition defn,
+                                                      String workspaceName,
+                                                      Supplier nodeTypesSupplier,
+                                                      NodeTypePredicate matcher ) {
+        return build(workspaceName, true, type);
+    }
+
+    @Override
+    protected ProvidedIndex<?> buildEnumeratedIndex( ExecutionContext context,
+                                                     IndexDefinition defn,
+                                                     String workspaceName,
+                                                     Supplier nodeTypesSupplier,
+                                                     NodeTypePredicate matcher ) {
+        return build(workspaceName, false, PropertyType.STRING);
+    }
+
+    @Override
+    protected ProvidedIndex<?> buildTextIndex( ExecutionContext context,
+                                               IndexDefinition defn,
+                                               String workspaceName,
+                                               Supplier nodeTypesSupplier,
+                                               NodeTypePredicate matcher ) {
+        throw new UnsupportedOperationException("should not ever see this because validation should prevent such indexes from being used");
+    }
+
+    @Override
+    protected ProvidedIndex<?> buildNodeTypeIndex( ExecutionContext context,
+                                                   IndexDefinition defn,
+                                                   String workspaceName,
+                                                   Supplier nodeTypesSupplier,
+                                                   NodeTypePredicate matcher ) {
+        return build(workspaceName, false, PropertyType.STRING);
+    }
+}
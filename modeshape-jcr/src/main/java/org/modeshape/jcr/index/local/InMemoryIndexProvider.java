@@ -0,0 +1,258 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.index.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.jcr.RepositoryException;
+import org.modeshape.common.collection.Problems;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.JcrI18n;
+import org.modeshape.jcr.NodeTypes;
+import org.modeshape.jcr.NodeTypes.Supplier;
+import org.modeshape.jcr.api.index.IndexDefinition;
+import org.modeshape.jcr.api.query.qom.ChildCount;
+import org.modeshape.jcr.api.query.qom.QueryObjectModelConstants;
+import org.modeshape.jcr.cache.change.ChangeSetAdapter.NodeTypePredicate;
+import org.modeshape.jcr.query.QueryContext;
+import org.modeshape.jcr.query.model.Comparison;
+import org.modeshape.jcr.query.model.FullTextSearch;
+import org.modeshape.jcr.spi.index.IndexCostCalculator;
+import org.modeshape.jcr.spi.index.provider.IndexProvider;
+import org.modeshape.jcr.spi.index.provider.IndexUsage;
+import org.modeshape.jcr.spi.index.provider.ManagedIndexBuilder;
+
+/**
+ * An {@link IndexProvider} implementation that keeps its indexes entirely on the heap, and is best suited for small indexes that
+ * are read very frequently (e.g., unique indexes on {@code jcr:uuid} or {@code mode:sha1}). Lookups require neither
+ * deserialization nor file access.
+ * <p>
+ * If a {@code directory} attribute (or a {@code path} <i>and</i> a {@code relativeTo} attribute) is specified, the provider
+ * periodically writes a snapshot of all of its indexes to a file in that directory (every {@code snapshotIntervalInSeconds},
+ * and always at shutdown), and restores the indexes from that snapshot upon startup rather than reindexing the content. Changes
+ * made after the last snapshot are lost if the process terminates abruptly. Each snapshot is stamped with the time up to which
+ * it contains all changes (i.e., the time of the oldest change that was still waiting to be applied to an asynchronous index),
+ * which is reported as the {@link #getLatestIndexUpdateTime() latest index update time} so that incremental reindexing can
+ * recover the other changes. Without a directory, all indexes are rebuilt every time the repository starts.
+ * </p>
+ */
+public class InMemoryIndexProvider extends IndexProvider {
+
+    private static final String SNAPSHOT_FILENAME = "in-memory-indexes.snapshot";
+    private static final int DEFAULT_SNAPSHOT_INTERVAL_IN_SECONDS = 60;
+
+    /**
+     * The directory in which the snapshots are to be stored. This may be null if snapshots are not to be written.
+     */
+    private String directory;
+    /**
+     * The path in which the snapshots are to be stored, relative to {@link #relativeTo}.
+     */
+    private String path;
+    /**
+     * The directory relative to which the {@link #path} specifies where the snapshots are to be stored.
+     */
+    private String relativeTo;
+    /**
+     * The number of seconds between snapshots; a value of 0 or less means snapshots are only written at shutdown.
+     */
+    private int snapshotIntervalInSeconds = DEFAULT_SNAPSHOT_INTERVAL_IN_SECONDS;
+
+    private final Map<String, InMemoryIndex<?>> indexes = new ConcurrentHashMap<>();
+    private volatile File snapshotFile;
+    private volatile InMemoryIndexSnapshot restored;
+    private volatile long latestSnapshotTime;
+    private long changesAtLatestSnapshot = -1L;
+    private ScheduledFuture<?> snapshots;
+
+    public InMemoryIndexProvider() {
+    }
+
+    /**
+     * Get the absolute or relative path to the directory where this provider should store its snapshots.
+     *
+     * @return the path to the directory, or null if this provider does not write snapshots
+     */
+    public String getDirectory() {
+        return directory;
+    }
+
+    @Override
+    protected void doInitialize() throws RepositoryException {
+        if (directory == null && relativeTo != null && path != null) {
+            // Try to set the directory using relativeTo and path ...
+            try {
+                File rel = new File(relativeTo);
+                File dir = Paths.get(rel.toURI()).resolve(path).toFile();
+                directory = dir.getAbsolutePath();
+            } catch (RuntimeException e) {
+                throw new RepositoryException(e);
+            }
+        }
+        if (directory == null) {
+            logger().debug("The in-memory index provider '{0}' in repository '{1}' will not write snapshots", getName(),
+                           getRepositoryName());
+            return;
+        }
+        File dir = new File(directory);
+        if (!dir.exists() && !dir.mkdirs()) {
+            logger().debug("Unable to create directory for index snapshots in repository '{1}' at: {0}", dir.getAbsolutePath(),
+                           getRepositoryName());
+        }
+        if (!dir.canRead()) {
+            throw new RepositoryException(JcrI18n.localIndexProviderDirectoryMustBeReadable.text(dir, getRepositoryName()));
+        }
+        if (!dir.canWrite()) {
+            throw new RepositoryException(JcrI18n.localIndexProviderDirectoryMustBeWritable.text(dir, getRepositoryName()));
+        }
+        snapshotFile = new File(dir, SNAPSHOT_FILENAME);
+        try {
+            restored = InMemoryIndexSnapshot.read(snapshotFile);
+            if (restored != null) {
+                latestSnapshotTime = restored.timestamp();
+                logger().debug("Restoring the in-memory indexes in repository '{0}' from snapshot at: {1}", getRepositoryName(),
+                               snapshotFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            // The indexes will simply be rebuilt ...
+            String msg = "Unable to read the index snapshot at '{0}' for the '{1}' index provider, so its indexes will be rebuilt";
+            logger().warn(e, msg, snapshotFile.getAbsolutePath(), getName());
+        }
+        if (snapshotIntervalInSeconds > 0) {
+            snapshots = context().getScheduledThreadPool("modeshape-index-snapshots")
+                                 .scheduleWithFixedDelay(this::writeSnapshot, snapshotIntervalInSeconds,
+                                                         snapshotIntervalInSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    @Override
+    protected void postShutdown() {
+        logger().debug("Shutting down the in-memory index provider '{0}' in repository '{1}'", getName(), getRepositoryName());
+        if (snapshots != null) {
+            snapshots.cancel(false);
+            snapshots = null;
+        }
+        writeSnapshot();
+        indexes.clear();
+        restored = null;
+    }
+
+    @Override
+    public Long getLatestIndexUpdateTime() {
+        // Only the changes included in the snapshot survive a restart ...
+        return snapshotFile != null ? latestSnapshotTime : null;
+    }
+
+    /**
+     * Write a snapshot of all indexes, if any of them have changed since the last snapshot.
+     */
+    protected synchronized void writeSnapshot() {
+        if (snapshotFile == null) return;
+        // The snapshot only contains the changes which were applied before it is written ...
+        long timestamp = System.currentTimeMillis();
+        Long oldestPendingChangeTime = getOldestPendingChangeTime();
+        if (oldestPendingChangeTime != null) {
+            timestamp = Math.min(timestamp, oldestPendingChangeTime);
+        }
+        List<InMemoryIndex<?>> indexes = new ArrayList<>(this.indexes.values());
+        long changes = 0L;
+        for (InMemoryIndex<?> index : indexes) {
+            changes += index.changeCount();
+        }
+        if (changes == changesAtLatestSnapshot) return;
+        try {
+            InMemoryIndexSnapshot.write(snapshotFile, timestamp, indexes);
+            latestSnapshotTime = timestamp;
+            changesAtLatestSnapshot = changes;
+            logger().debug("Wrote snapshot of {0} in-memory indexes in repository '{1}' to: {2}", indexes.size(),
+                           getRepositoryName(), snapshotFile.getAbsolutePath());
+        } catch (IOException | RuntimeException e) {
+            String msg = "Unable to write the index snapshot at '{0}' for the '{1}' index provider";
+            logger().error(e, msg, snapshotFile.getAbsolutePath(), getName());
+        }
+    }
+
+    <T> InMemoryIndex<T> register( InMemoryIndex<T> index ) {
+        InMemoryIndexSnapshot restored = this.restored;
+        if (restored != null) {
+            index.restore(restored.take(index.getName(), index.getWorkspaceName()));
+        }
+        indexes.put(key(index.getName(), index.getWorkspaceName()), index);
+        return index;
+    }
+
+    void unregister( String indexName,
+                     String workspaceName ) {
+        indexes.remove(key(indexName, workspaceName));
+    }
+
+    private static String key( String indexName,
+                               String workspaceName ) {
+        return indexName + '\n' + workspaceName;
+    }
+
+    @Override
+    public void validateProposedIndex( ExecutionContext context,
+                                       IndexDefinition defn,
+                                       NodeTypes.Supplier nodeTypeSupplier,
+                                       Problems problems ) {
+        // The same restrictions as the local indexes apply ...
+        LocalIndexBuilder.validate(defn, problems);
+    }
+
+    @Override
+    protected ManagedIndexBuilder getIndexBuilder( IndexDefinition defn,
+                                                   String workspaceName,
+                                                   Supplier nodeTypesSupplier,
+                                                   NodeTypePredicate matcher ) {
+        return new InMemoryIndexBuilder(context(), defn, nodeTypesSupplier, workspaceName, matcher, this);
+    }
+
+    @Override
+    protected IndexUsage evaluateUsage( QueryContext context,
+                                        IndexCostCalculator calculator,
+                                        IndexDefinition defn ) {
+        return new IndexUsage(context, calculator, defn) {
+            @Override
+            protected boolean applies( FullTextSearch search ) {
+                // We don't support full text search criteria ...
+                return false;
+            }
+
+            @Override
+            protected boolean indexAppliesTo( Comparison constraint ) {
+                if (QueryObjectModelConstants.JCR_OPERATOR_LIKE.equals(constraint.getOperator())) {
+                    // Our indexes don't handle LIKE operations ...
+                    return false;
+                }
+                return super.indexAppliesTo(constraint);
+            }
+
+            @Override
+            protected boolean applies( ChildCount operand ) {
+                // this index can't handle this
+                return false;
+            }
+        };
+    }
+}
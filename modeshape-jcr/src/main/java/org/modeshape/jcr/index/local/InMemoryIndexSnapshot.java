@@ -0,0 +1,169 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.index.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The content of all of the {@link InMemoryIndex in-memory indexes} of an {@link InMemoryIndexProvider}, as written to or read
+ * from a snapshot file. Values are stored in their string form, so the snapshot does not depend upon the type of the indexes.
+ * <p>
+ * Snapshots are first written to a temporary file that then atomically replaces the previous snapshot, so a failure while
+ * writing never corrupts the existing snapshot.
+ * </p>
+ */
+final class InMemoryIndexSnapshot {
+
+    private static final int MAGIC = 0x4D534958; // "MSIX"
+    private static final int VERSION = 1;
+
+    /**
+     * Read the snapshot in the given file.
+     *
+     * @param file the snapshot file; may not be null
+     * @return the snapshot, or null if the file does not exist
+     * @throws IOException if the file could not be read or is not a valid snapshot
+     */
+    static InMemoryIndexSnapshot read( File file ) throws IOException {
+        if (!file.exists()) return null;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not an index snapshot: " + file);
+            }
+            int version = input.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported index snapshot version " + version + ": " + file);
+            }
+            long timestamp = input.readLong();
+            int indexCount = input.readInt();
+            Map<String, Map<String, String[]>> sections = new HashMap<>();
+            for (int i = 0; i != indexCount; ++i) {
+                String indexName = readString(input);
+                String workspaceName = readString(input);
+                int valueCount = input.readInt();
+                Map<String, String[]> content = new LinkedHashMap<>();
+                for (int j = 0; j != valueCount; ++j) {
+                    String value = readString(input);
+                    String[] nodeKeys = new String[input.readInt()];
+                    for (int k = 0; k != nodeKeys.length; ++k) {
+                        nodeKeys[k] = readString(input);
+                    }
+                    content.put(value, nodeKeys);
+                }
+                sections.put(sectionKey(indexName, workspaceName), content);
+            }
+            return new InMemoryIndexSnapshot(timestamp, sections);
+        }
+    }
+
+    /**
+     * Write a snapshot of the given indexes to the given file.
+     *
+     * @param file the snapshot file; may not be null
+     * @param timestamp the time at which the snapshot was started
+     * @param indexes the indexes; may not be null
+     * @throws IOException if the snapshot could not be written
+     */
+    static void write( File file,
+                       long timestamp,
+                       Collection<InMemoryIndex<?>> indexes ) throws IOException {
+        File temp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(timestamp);
+            output.writeInt(indexes.size());
+            for (InMemoryIndex<?> index : indexes) {
+                writeString(output, index.getName());
+                writeString(output, index.getWorkspaceName());
+                Map<String, String[]> content = index.snapshot();
+                output.writeInt(content.size());
+                for (Map.Entry<String, String[]> entry : content.entrySet()) {
+                    writeString(output, entry.getKey());
+                    output.writeInt(entry.getValue().length);
+                    for (String nodeKey : entry.getValue()) {
+                        writeString(output, nodeKey);
+                    }
+                }
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String readString( DataInputStream input ) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString( DataOutputStream output,
+                                     String value ) throws IOException {
+        // Unlike 'writeUTF', this is not limited to 64K bytes ...
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String sectionKey( String indexName,
+                                      String workspaceName ) {
+        return indexName + '\n' + workspaceName;
+    }
+
+    private final long timestamp;
+    private final Map<String, Map<String, String[]>> sections;
+
+    private InMemoryIndexSnapshot( long timestamp,
+                                   Map<String, Map<String, String[]>> sections ) {
+        this.timestamp = timestamp;
+        this.sections = sections;
+    }
+
+    /**
+     * Get the time at which this snapshot was started. All changes made to the indexes before this time are included in the
+     * snapshot.
+     *
+     * @return the timestamp in milliseconds
+     */
+    long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Remove and return the content of the given index from this snapshot.
+     *
+     * @param indexName the name of the index; may not be null
+     * @param workspaceName the name of the workspace; may not be null
+     * @return the content of the index, or null if the snapshot does not contain the index
+     */
+    synchronized Map<String, String[]> take( String indexName,
+                                             String workspaceName ) {
+        return sections.remove(sectionKey(indexName, workspaceName));
+    }
+}
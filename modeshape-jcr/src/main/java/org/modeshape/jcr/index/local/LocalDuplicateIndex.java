@@ -20,7 +20,6 @@ import java.util.Comparator;
 import java.util.concurrent.atomic.AtomicLong;
 import javax.jcr.query.qom.StaticOperand;
 import org.mapdb.DB;
-import org.mapdb.Fun;
 import org.mapdb.Serializer;
 import org.modeshape.common.logging.Logger;
 import org.modeshape.jcr.cache.NodeKey;
@@ -46,6 +45,7 @@ final class LocalDuplicateIndex<T> extends LocalMapIndex<UniqueKey<T>, T> {
      * @param converter the converter from {@link StaticOperand} to values being indexed; may not be null
      * @param valueSerializer the serializer for the type of value being indexed
      * @param comparator the comparator for the values; may not be null
+     * @param storedColumns the values of the stored columns; may be null if the index has no stored columns
      * @return the new index; never null
      */
     static <T> LocalDuplicateIndex<T> create( String name,
@@ -53,8 +53,9 @@ final class LocalDuplicateIndex<T> extends LocalMapIndex<UniqueKey<T>, T> {
                                               DB db,
                                               Converter<T> converter,
                                               Serializer<T> valueSerializer,
-                                              Comparator<T> comparator ) {
-        return new LocalDuplicateIndex<>(name, workspaceName, db, converter, valueSerializer, comparator);
+                                              Comparator<T> comparator,
+                                              LocalStoredColumns storedColumns ) {
+        return new LocalDuplicateIndex<>(name, workspaceName, db, converter, valueSerializer, comparator, storedColumns);
     }
 
     private static final String NEXT_COUNTER = "next-counter";
@@ -67,10 +68,12 @@ final class LocalDuplicateIndex<T> extends LocalMapIndex<UniqueKey<T>, T> {
                                    DB db,
                                    Converter<T> converter,
                                    Serializer<T> valueSerializer,
-                                   Comparator<T> comparator ) {
+                                   Comparator<T> comparator,
+                                   LocalStoredColumns storedColumns ) {
         super(name, workspaceName, db, IndexValues.uniqueKeyConverter(converter), MapDB.uniqueKeyBTreeSerializer(valueSerializer,
                                                                                                                  comparator),
-              MapDB.uniqueKeySerializer(valueSerializer, comparator));
+              MapDB.uniqueKeySerializer(valueSerializer, comparator), storedColumns,
+              LocalIndexStatistics.create(name, db, (UniqueKey<T> key) -> key.actualKey, comparator, valueSerializer));
         Long nextCounter = (Long)options.get(NEXT_COUNTER);
         this.counter = new AtomicLong(nextCounter != null ? nextCounter : -1L);
     }
@@ -83,7 +86,8 @@ final class LocalDuplicateIndex<T> extends LocalMapIndex<UniqueKey<T>, T> {
         // Store the value of the next counter in the options map first so in the case of a failure we'll pick up at least from there
         long nextId = (long) options.compute(NEXT_COUNTER, (key, val) -> counter.incrementAndGet());
         // then store the data in the index
-        keysByValue.compute(new UniqueKey<T>(value, nextId), (key, val) -> nodeKey);
+        long nodeKeyId = nodeKeys.acquire(nodeKey);
+        keysByValue.compute(new UniqueKey<T>(value, nextId), (key, val) -> nodeKeyId);
     }
 
     @Override
@@ -91,7 +95,7 @@ final class LocalDuplicateIndex<T> extends LocalMapIndex<UniqueKey<T>, T> {
                         String propertyName, 
                         T value ) {
         // Find all of the T values (entry keys) for the given node key (entry values) and remove those which have value 'value'
-        for (UniqueKey<T> key : Fun.filter(valuesByKey, nodeKey)) {
+        for (UniqueKey<T> key : valuesFor(nodeKey)) {
             if (key.actualKey.equals(value)) {
                 logger.trace("Removing node '{0}' from '{1}' index with value '{2}'", nodeKey, name, key.actualKey);
                 keysByValue.remove(key);
@@ -102,7 +106,7 @@ final class LocalDuplicateIndex<T> extends LocalMapIndex<UniqueKey<T>, T> {
     @Override
     public void remove( String nodeKey ) {
         // Find all of the T values (entry keys) for the given node key (entry values) ...
-        for (UniqueKey<T> key : Fun.filter(valuesByKey, nodeKey)) {
+        for (UniqueKey<T> key : valuesFor(nodeKey)) {
             logger.trace("Removing node '{0}' from '{1}' index with value '{2}'", nodeKey, name, key.actualKey);
             keysByValue.remove(key);
         }
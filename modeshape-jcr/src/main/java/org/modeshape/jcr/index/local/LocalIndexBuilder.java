@@ -17,6 +17,7 @@
 package org.modeshape.jcr.index.local;
 
 import java.util.Comparator;
+import java.util.Map;
 import org.mapdb.BTreeKeySerializer;
 import org.mapdb.DB;
 import org.mapdb.Serializer;
@@ -32,6 +33,7 @@ import org.modeshape.jcr.index.local.IndexValues.Converter;
 import org.modeshape.jcr.index.local.MapDB.Serializers;
 import org.modeshape.jcr.spi.index.provider.ManagedIndexBuilder;
 import org.modeshape.jcr.spi.index.provider.ProvidedIndex;
+import org.modeshape.jcr.value.Name;
 import org.modeshape.jcr.value.PropertyType;
 import org.modeshape.jcr.value.ValueComparators;
 import org.modeshape.jcr.value.ValueFactory;
@@ -105,6 +107,11 @@ public abstract class LocalIndexBuilder<T> extends ManagedIndexBuilder {
 
     protected abstract Serializer<T> getSerializer();
 
+    protected final LocalStoredColumns storedColumns( DB db ) {
+        Map<Name, PropertyType> columns = storedColumns();
+        return columns.isEmpty() ? null : LocalStoredColumns.create(indexName(), db, context, columns, defn.isSynchronous());
+    }
+
     protected abstract Comparator<T> getComparator();
 
     protected static class SingleColumnIndexBuilder<T> extends LocalIndexBuilder<T> {
@@ -172,14 +179,16 @@ public abstract class LocalIndexBuilder<T> extends ManagedIndexBuilder {
         protected ProvidedIndex<?> buildMultiValueIndex( ExecutionContext context, IndexDefinition defn, String workspaceName,
                                                          Supplier nodeTypesSupplier,
                                                          NodeTypePredicate matcher ) {
-            return LocalDuplicateIndex.create(indexName(), workspaceName, db, getConverter(), getSerializer(), getComparator());
+            return LocalDuplicateIndex.create(indexName(), workspaceName, db, getConverter(), getSerializer(), getComparator(),
+                                              storedColumns(db));
         }
 
         @Override
         protected ProvidedIndex<?> buildUniqueValueIndex( ExecutionContext context, IndexDefinition defn, String workspaceName,
                                                           Supplier nodeTypesSupplier,
                                                           NodeTypePredicate matcher ) {
-            return LocalUniqueIndex.create(indexName(), workspaceName, db, getConverter(), getBTreeKeySerializer(), getSerializer());
+            return LocalUniqueIndex.create(indexName(), workspaceName, db, getConverter(), getBTreeKeySerializer(), getSerializer(),
+                                           storedColumns(db));
         }
 
         @Override
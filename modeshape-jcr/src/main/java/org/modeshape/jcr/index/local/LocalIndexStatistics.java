@@ -0,0 +1,804 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.index.local;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Function;
+import javax.jcr.query.qom.And;
+import javax.jcr.query.qom.Constraint;
+import javax.jcr.query.qom.Not;
+import javax.jcr.query.qom.Or;
+import javax.jcr.query.qom.StaticOperand;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.common.logging.Logger;
+import org.modeshape.common.util.NamedThreadFactory;
+import org.modeshape.jcr.api.query.qom.Between;
+import org.modeshape.jcr.api.query.qom.Operator;
+import org.modeshape.jcr.api.query.qom.SetCriteria;
+import org.modeshape.jcr.api.value.DateTime;
+import org.modeshape.jcr.index.local.IndexValues.Converter;
+import org.modeshape.jcr.query.model.Comparison;
+
+/**
+ * Statistics about the distribution of the values in a {@link LocalMapIndex}, used to estimate the cardinality of constraints
+ * without scanning the index. The statistics consist of an equi-depth histogram, in which every bucket holds roughly the same
+ * number of index entries (and no value ever spans two buckets), plus a HyperLogLog sketch of the number of distinct values.
+ * <p>
+ * The bucket counts and the sketch are updated as entries are added to and removed from the index, but the bucket boundaries are
+ * only recomputed (with a single ordered scan of the index) once a sufficient fraction of its entries have changed. Committing
+ * the index never scans it: the first histogram is built when the planner first asks for an estimate, and later histograms are
+ * rebuilt in the background while the previous one continues to be used. The statistics are persisted in the index's database
+ * every time the index is committed, so they survive restarts.
+ * </p>
+ *
+ * @param <T> the type of the index keys
+ * @param <V> the type of the values from which the index keys are formed
+ */
+@ThreadSafe
+final class LocalIndexStatistics<T, V> {
+
+    /**
+     * The number of buckets in each histogram.
+     */
+    static final int DEFAULT_BUCKET_COUNT = 64;
+
+    /**
+     * The fraction of the index entries that must be changed before the histogram boundaries are recomputed.
+     */
+    private static final double REBUILD_RATIO = 0.1d;
+
+    /**
+     * The minimum number of changes before the histogram boundaries are recomputed, so that small indexes are not rescanned
+     * on every commit.
+     */
+    private static final long MIN_CHANGES_BEFORE_REBUILD = 1000L;
+
+    private static final String STATISTICS = "statistics";
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The single thread, shared by all indexes, that rebuilds the histograms in the background. The thread stops when idle.
+     */
+    private static final ThreadPoolExecutor REBUILDER = new ThreadPoolExecutor(
+            1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new NamedThreadFactory("modeshape-index-statistics"));
+
+    static {
+        REBUILDER.allowCoreThreadTimeOut(true);
+    }
+
+    private final Logger logger = Logger.getLogger(getClass());
+    private final String name;
+    private final DB db;
+    private final HTreeMap<String, byte[]> storage;
+    private final Function<T, V> valueOfKey;
+    private final Comparator<V> comparator;
+    private final Serializer<V> serializer;
+    private final int bucketCount;
+    private final AtomicLong changes = new AtomicLong();
+    private final Object rebuildLock = new Object();
+    private final AtomicBoolean rebuildScheduled = new AtomicBoolean();
+    private volatile boolean rebuildWanted;
+    private volatile long generation;
+    private volatile BTreeMap<T, ?> keysByValue;
+    private volatile Histogram<V> histogram;
+    private volatile HyperLogLog sketch = new HyperLogLog();
+    private volatile long distinctAtRebuild;
+    private volatile boolean dirty;
+
+    /**
+     * Create or open the statistics for an index.
+     *
+     * @param indexName the name of the index; may not be null
+     * @param db the database in which the statistics are to be stored; may not be null
+     * @param valueOfKey the function that obtains the value from an index key; may not be null
+     * @param comparator the comparator for the values; may not be null
+     * @param serializer the serializer for the values; may not be null
+     * @return the statistics; never null
+     */
+    static <T, V> LocalIndexStatistics<T, V> create( String indexName,
+                                                     DB db,
+                                                     Function<T, V> valueOfKey,
+                                                     Comparator<V> comparator,
+                                                     Serializer<V> serializer ) {
+        return new LocalIndexStatistics<>(indexName, db, valueOfKey, comparator, serializer, DEFAULT_BUCKET_COUNT);
+    }
+
+    private LocalIndexStatistics( String indexName,
+                                  DB db,
+                                  Function<T, V> valueOfKey,
+                                  Comparator<V> comparator,
+                                  Serializer<V> serializer,
+                                  int bucketCount ) {
+        assert bucketCount > 0;
+        this.name = indexName + "/statistics";
+        this.db = db;
+        this.valueOfKey = valueOfKey;
+        this.comparator = comparator;
+        this.serializer = serializer;
+        this.bucketCount = bucketCount;
+        this.storage = db.createHashMap(name).keySerializer(Serializer.STRING).valueSerializer(Serializer.BYTE_ARRAY)
+                         .makeOrGet();
+        read(storage.get(STATISTICS));
+    }
+
+    /**
+     * Start tracking the changes made to the supplied index map.
+     *
+     * @param keysByValue the index map; may not be null
+     */
+    void bind( BTreeMap<T, ?> keysByValue ) {
+        this.keysByValue = keysByValue;
+        keysByValue.modificationListenerAdd((key, oldValue, newValue) -> {
+            if (oldValue == null && newValue != null) {
+                added(key);
+            } else if (oldValue != null && newValue == null) {
+                removed(key);
+            }
+        });
+    }
+
+    private void added( T key ) {
+        V value = valueOfKey.apply(key);
+        Histogram<V> histogram = this.histogram;
+        if (histogram != null) {
+            histogram.counts.incrementAndGet(histogram.bucketFor(value, comparator));
+        }
+        sketch.add(value);
+        changes.incrementAndGet();
+        dirty = true;
+    }
+
+    private void removed( T key ) {
+        Histogram<V> histogram = this.histogram;
+        if (histogram != null) {
+            int bucket = histogram.bucketFor(valueOfKey.apply(key), comparator);
+            histogram.counts.getAndUpdate(bucket, count -> count > 0L ? count - 1L : 0L);
+        }
+        // the sketch can't forget values, so the distinct count is only corrected when the histogram is rebuilt ...
+        changes.incrementAndGet();
+        dirty = true;
+    }
+
+    /**
+     * Request a rebuild of the histogram if enough of the index has changed, and record the statistics in the database so that
+     * they are committed along with the index. The index is not scanned here: a replacement histogram is built in the
+     * background, and the first histogram is built when it is first needed.
+     */
+    synchronized void commit() {
+        BTreeMap<T, ?> keysByValue = this.keysByValue;
+        if (keysByValue == null) return;
+        long total = keysByValue.sizeLong();
+        boolean rebuild = histogram == null ? total > 0L : changes.get() > Math.max(MIN_CHANGES_BEFORE_REBUILD,
+                                                                                      (long)(total * REBUILD_RATIO));
+        if (rebuild) {
+            rebuildWanted = true;
+            if (histogram != null) {
+                rebuildInBackground();
+            }
+        }
+        if (dirty) {
+            dirty = false;
+            storage.put(STATISTICS, write());
+        }
+    }
+
+    private void rebuildInBackground() {
+        if (!rebuildScheduled.compareAndSet(false, true)) return;
+        REBUILDER.execute(() -> {
+            try {
+                rebuild();
+            } catch (RuntimeException | IllegalAccessError e) {
+                // most likely the index was closed or removed in the meantime (MapDB signals a closed store with an error) ...
+                logger.debug(e, "Unable to rebuild the statistics of index '{0}'", name);
+            } finally {
+                rebuildScheduled.set(false);
+            }
+        });
+    }
+
+    private void rebuild() {
+        synchronized (rebuildLock) {
+            BTreeMap<T, ?> keysByValue = this.keysByValue;
+            if (keysByValue == null || !rebuildWanted) return;
+            // requests made while scanning need another scan, since the changes they count may not be seen by this one ...
+            rebuildWanted = false;
+            long generation = this.generation;
+            long changesBefore = changes.get();
+            long total = keysByValue.sizeLong();
+            logger.debug("Rebuilding statistics for index '{0}' with {1} entries", name, total);
+            long depth = Math.max(1L, (total + bucketCount - 1) / bucketCount);
+            List<V> lowerBounds = new ArrayList<>();
+            List<long[]> buckets = new ArrayList<>(); // count and distinct count of each bucket
+            HyperLogLog sketch = new HyperLogLog();
+            V previous = null;
+            long[] current = null;
+            for (T key : keysByValue.keySet()) {
+                V value = valueOfKey.apply(key);
+                boolean newValue = previous == null || comparator.compare(previous, value) != 0;
+                if (newValue) {
+                    // only start a new bucket on a value boundary, so that a value never spans two buckets ...
+                    if (current == null || current[0] >= depth) {
+                        current = new long[2];
+                        lowerBounds.add(value);
+                        buckets.add(current);
+                    }
+                    ++current[1];
+                    sketch.add(value);
+                    previous = value;
+                }
+                ++current[0];
+            }
+            synchronized (this) {
+                if (generation != this.generation) {
+                    // the statistics were discarded while scanning ...
+                    return;
+                }
+                this.changes.addAndGet(-changesBefore);
+                this.sketch = sketch;
+                this.distinctAtRebuild = sketch.estimate();
+                this.histogram = previous == null ? null : new Histogram<>(lowerBounds, previous, buckets);
+                this.dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Discard all of the statistics, which will be rebuilt after the next commit.
+     */
+    synchronized void clear() {
+        ++this.generation;
+        this.rebuildWanted = false;
+        this.histogram = null;
+        this.sketch = new HyperLogLog();
+        this.distinctAtRebuild = 0L;
+        this.changes.set(0L);
+        this.dirty = false;
+        storage.clear();
+    }
+
+    /**
+     * Remove the statistics from the database.
+     */
+    synchronized void destroy() {
+        ++this.generation;
+        this.rebuildWanted = false;
+        db.delete(name);
+    }
+
+    /**
+     * Estimate the number of distinct values in the index.
+     *
+     * @return the estimated number of distinct values
+     */
+    long estimateDistinctValues() {
+        return sketch.estimate();
+    }
+
+    /**
+     * Estimate the number of index entries that satisfy all of the supplied constraints.
+     *
+     * @param andedConstraints the constraints; may not be null
+     * @param converter the converter from static operands to index keys; may not be null
+     * @param variables the bound variables; may not be null
+     * @return the estimated number of index entries, or -1 if the statistics are not yet available or the constraints could not
+     *         be estimated
+     */
+    long estimateCardinality( Collection<Constraint> andedConstraints,
+                              Converter<T> converter,
+                              Map<String, Object> variables ) {
+        Histogram<V> histogram = this.histogram;
+        BTreeMap<T, ?> keysByValue = this.keysByValue;
+        if (keysByValue == null) return -1L;
+        if (histogram == null && rebuildWanted) {
+            // this is the first time the statistics are needed since the index was committed ...
+            rebuild();
+            histogram = this.histogram;
+        }
+        if (histogram == null) return -1L;
+        long total = histogram.total();
+        if (total <= 0L) return 0L;
+        try {
+            Estimator estimator = new Estimator(histogram, converter, variables);
+            double selectivity = estimator.conjunction(andedConstraints);
+            long estimate = Math.round(selectivity * total);
+            return estimate == 0L && selectivity > 0.0d ? 1L : estimate;
+        } catch (RuntimeException e) {
+            logger.debug(e, "Unable to estimate the cardinality of {0} using the statistics of index '{1}'", andedConstraints,
+                         name);
+            return -1L;
+        }
+    }
+
+    private double distinctGrowth() {
+        long distinctAtRebuild = this.distinctAtRebuild;
+        if (distinctAtRebuild <= 0L) return 1.0d;
+        return Math.max(1.0d, (double)sketch.estimate() / distinctAtRebuild);
+    }
+
+    private byte[] write() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(FORMAT_VERSION);
+            Histogram<V> histogram = this.histogram;
+            out.writeBoolean(histogram != null);
+            if (histogram != null) {
+                int size = histogram.size();
+                out.writeInt(size);
+                for (int i = 0; i != size; ++i) {
+                    serializer.serialize(out, histogram.lowerBound(i));
+                    out.writeLong(histogram.counts.get(i));
+                    out.writeLong(histogram.countsAtRebuild[i]);
+                    out.writeLong(histogram.distincts[i]);
+                }
+                serializer.serialize(out, histogram.max);
+            }
+            out.writeLong(distinctAtRebuild);
+            out.writeLong(changes.get());
+            byte[] registers = sketch.registers;
+            out.writeInt(registers.length);
+            out.write(registers);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new LocalIndexException("Unable to write the statistics of index '" + name + "'", e);
+        }
+    }
+
+    private void read( byte[] data ) {
+        if (data == null) return;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != FORMAT_VERSION) return;
+            Histogram<V> histogram = null;
+            if (in.readBoolean()) {
+                int size = in.readInt();
+                List<V> lowerBounds = new ArrayList<>(size);
+                List<long[]> buckets = new ArrayList<>(size);
+                long[] countsAtRebuild = new long[size];
+                for (int i = 0; i != size; ++i) {
+                    lowerBounds.add(serializer.deserialize(in, -1));
+                    long count = in.readLong();
+                    countsAtRebuild[i] = in.readLong();
+                    buckets.add(new long[] {count, in.readLong()});
+                }
+                V max = serializer.deserialize(in, -1);
+                histogram = new Histogram<>(lowerBounds, max, buckets);
+                System.arraycopy(countsAtRebuild, 0, histogram.countsAtRebuild, 0, size);
+            }
+            long distinctAtRebuild = in.readLong();
+            long changes = in.readLong();
+            byte[] registers = new byte[in.readInt()];
+            in.readFully(registers);
+            this.histogram = histogram;
+            this.distinctAtRebuild = distinctAtRebuild;
+            this.changes.set(changes);
+            this.sketch = new HyperLogLog(registers);
+        } catch (IOException | RuntimeException e) {
+            // The statistics will simply be rebuilt ...
+            logger.debug(e, "Unable to read the statistics of index '{0}'; they will be rebuilt", name);
+        }
+    }
+
+    /**
+     * Computes the selectivity (the fraction of the index entries that satisfy) of constraints using a histogram.
+     */
+    private final class Estimator {
+        private final Histogram<V> histogram;
+        private final Converter<T> converter;
+        private final Map<String, Object> variables;
+
+        protected Estimator( Histogram<V> histogram,
+                             Converter<T> converter,
+                             Map<String, Object> variables ) {
+            this.histogram = histogram;
+            this.converter = converter;
+            this.variables = variables;
+        }
+
+        protected double conjunction( Collection<Constraint> constraints ) {
+            // Multiple ranges on the same index are intersected rather than treated as independent ...
+            Range range = new Range();
+            double selectivity = 1.0d;
+            for (Constraint constraint : constraints) {
+                if (!range.narrow(constraint)) {
+                    selectivity *= selectivity(constraint);
+                }
+            }
+            if (!range.isUnbounded()) {
+                selectivity *= range.isEmpty() ? 0.0d : histogram.selectivityOfRange(range.lower, range.lowerIncluded,
+                                                                                      range.upper, range.upperIncluded,
+                                                                                      comparator);
+            }
+            return selectivity;
+        }
+
+        protected double selectivity( Constraint constraint ) {
+            if (constraint instanceof And) {
+                And and = (And)constraint;
+                List<Constraint> constraints = new ArrayList<>(2);
+                constraints.add(and.getConstraint1());
+                constraints.add(and.getConstraint2());
+                return conjunction(constraints);
+            }
+            if (constraint instanceof Or) {
+                Or or = (Or)constraint;
+                double left = selectivity(or.getConstraint1());
+                double right = selectivity(or.getConstraint2());
+                return Math.min(1.0d, left + right - left * right);
+            }
+            if (constraint instanceof Not) {
+                return 1.0d - selectivity(((Not)constraint).getConstraint());
+            }
+            if (constraint instanceof Between) {
+                Range range = new Range();
+                range.narrow(constraint);
+                return range.isEmpty() ? 0.0d : histogram.selectivityOfRange(range.lower, range.lowerIncluded, range.upper,
+                                                                             range.upperIncluded, comparator);
+            }
+            if (constraint instanceof Comparison) {
+                Comparison comparison = (Comparison)constraint;
+                StaticOperand operand = comparison.getOperand2();
+                switch (comparison.operator()) {
+                    case EQUAL_TO:
+                        return equalTo(operand);
+                    case NOT_EQUAL_TO:
+                        return 1.0d - equalTo(operand);
+                    case LIKE:
+                        // The index can't evaluate LIKE ...
+                        return 1.0d;
+                    default:
+                        Range range = new Range();
+                        range.narrow(constraint);
+                        return range.isEmpty() ? 0.0d : histogram.selectivityOfRange(range.lower, range.lowerIncluded,
+                                                                                     range.upper, range.upperIncluded,
+                                                                                     comparator);
+                }
+            }
+            if (constraint instanceof SetCriteria) {
+                double selectivity = 0.0d;
+                for (StaticOperand operand : ((SetCriteria)constraint).getValues()) {
+                    selectivity += equalTo(operand);
+                }
+                return Math.min(1.0d, selectivity);
+            }
+            // Property existence and anything else this index can't evaluate ...
+            return 1.0d;
+        }
+
+        private double equalTo( StaticOperand operand ) {
+            V value = value(converter.toLowerValue(operand, variables));
+            return value == null ? 0.0d : histogram.selectivityOfValue(value, comparator, distinctGrowth());
+        }
+
+        private V value( T key ) {
+            return key != null ? valueOfKey.apply(key) : null;
+        }
+
+        /**
+         * The intersection of the range constraints applied to the index.
+         */
+        private final class Range {
+            protected V lower;
+            protected V upper;
+            protected boolean lowerIncluded;
+            protected boolean upperIncluded;
+            private boolean empty;
+
+            protected boolean narrow( Constraint constraint ) {
+                if (constraint instanceof Between) {
+                    Between between = (Between)constraint;
+                    narrowLower(value(converter.toLowerValue(between.getLowerBound(), variables)),
+                                between.isLowerBoundIncluded());
+                    narrowUpper(value(converter.toUpperValue(between.getUpperBound(), variables)),
+                                between.isUpperBoundIncluded());
+                    return true;
+                }
+                if (constraint instanceof Comparison) {
+                    Comparison comparison = (Comparison)constraint;
+                    Operator op = comparison.operator();
+                    StaticOperand operand = comparison.getOperand2();
+                    switch (op) {
+                        case GREATER_THAN:
+                            narrowLower(value(converter.toUpperValue(operand, variables)), false);
+                            return true;
+                        case GREATER_THAN_OR_EQUAL_TO:
+                            narrowLower(value(converter.toLowerValue(operand, variables)), true);
+                            return true;
+                        case LESS_THAN:
+                            narrowUpper(value(converter.toLowerValue(operand, variables)), false);
+                            return true;
+                        case LESS_THAN_OR_EQUAL_TO:
+                            narrowUpper(value(converter.toUpperValue(operand, variables)), true);
+                            return true;
+                        default:
+                            return false;
+                    }
+                }
+                return false;
+            }
+
+            private void narrowLower( V value,
+                                      boolean included ) {
+                if (value == null) {
+                    empty = true;
+                    return;
+                }
+                int diff = lower == null ? 1 : comparator.compare(value, lower);
+                if (diff > 0 || (diff == 0 && !included)) {
+                    lower = value;
+                    lowerIncluded = included;
+                }
+            }
+
+            private void narrowUpper( V value,
+                                      boolean included ) {
+                if (value == null) {
+                    empty = true;
+                    return;
+                }
+                int diff = upper == null ? -1 : comparator.compare(value, upper);
+                if (diff < 0 || (diff == 0 && !included)) {
+                    upper = value;
+                    upperIncluded = included;
+                }
+            }
+
+            protected boolean isUnbounded() {
+                return lower == null && upper == null && !empty;
+            }
+
+            protected boolean isEmpty() {
+                if (empty) return true;
+                if (lower == null || upper == null) return false;
+                int diff = comparator.compare(lower, upper);
+                return diff > 0 || (diff == 0 && !(lowerIncluded && upperIncluded));
+            }
+        }
+    }
+
+    /**
+     * An equi-depth histogram. Bucket <code>i</code> contains all of the values greater than or equal to its lower bound and less
+     * than the lower bound of the next bucket; the first and last buckets also contain any values outside of the range that
+     * existed when the histogram was built.
+     *
+     * @param <V> the type of value
+     */
+    protected static final class Histogram<V> {
+        private final Object[] lowerBounds;
+        protected final V max;
+        protected final AtomicLongArray counts;
+        protected final long[] countsAtRebuild;
+        protected final long[] distincts;
+
+        protected Histogram( List<V> lowerBounds,
+                             V max,
+                             List<long[]> buckets ) {
+            assert !lowerBounds.isEmpty();
+            assert lowerBounds.size() == buckets.size();
+            int size = lowerBounds.size();
+            this.lowerBounds = lowerBounds.toArray();
+            this.max = max;
+            this.counts = new AtomicLongArray(size);
+            this.countsAtRebuild = new long[size];
+            this.distincts = new long[size];
+            for (int i = 0; i != size; ++i) {
+                long[] bucket = buckets.get(i);
+                counts.set(i, bucket[0]);
+                countsAtRebuild[i] = bucket[0];
+                distincts[i] = Math.max(1L, bucket[1]);
+            }
+        }
+
+        protected int size() {
+            return lowerBounds.length;
+        }
+
+        @SuppressWarnings( "unchecked" )
+        protected V lowerBound( int bucket ) {
+            return (V)lowerBounds[bucket];
+        }
+
+        protected long total() {
+            long total = 0L;
+            for (int i = 0; i != counts.length(); ++i) {
+                total += counts.get(i);
+            }
+            return total;
+        }
+
+        protected int bucketFor( V value,
+                                 Comparator<V> comparator ) {
+            // Find the last bucket whose lower bound is not greater than the value ...
+            int low = 0;
+            int high = lowerBounds.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (comparator.compare(lowerBound(mid), value) <= 0) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+
+        protected double selectivityOfValue( V value,
+                                             Comparator<V> comparator,
+                                             double distinctGrowth ) {
+            long total = total();
+            if (total <= 0L) return 0.0d;
+            int bucket = bucketFor(value, comparator);
+            long count = counts.get(bucket);
+            if (distincts[bucket] == 1L && comparator.compare(lowerBound(bucket), value) != 0) {
+                // The bucket contains a single (frequent) value, and this isn't it. So at most the entries added since the
+                // histogram was built can have this value ...
+                return Math.max(0L, count - countsAtRebuild[bucket]) / (double)total;
+            }
+            return count / (distincts[bucket] * distinctGrowth) / total;
+        }
+
+        protected double selectivityOfRange( V lower,
+                                             boolean lowerIncluded,
+                                             V upper,
+                                             boolean upperIncluded,
+                                             Comparator<V> comparator ) {
+            long total = total();
+            if (total <= 0L) return 0.0d;
+            double matched = 0.0d;
+            int last = lowerBounds.length - 1;
+            for (int i = 0; i <= last; ++i) {
+                long count = counts.get(i);
+                if (count == 0L) continue;
+                V bucketLower = lowerBound(i);
+                V bucketUpper = i < last ? lowerBound(i + 1) : max;
+                boolean bucketUpperIncluded = i == last;
+                if (distincts[i] == 1L) {
+                    // All of the bucket's entries have the same value ...
+                    if (contains(bucketLower, lower, lowerIncluded, upper, upperIncluded, comparator)) matched += count;
+                    continue;
+                }
+                // Skip the buckets entirely outside of the range ...
+                if (upper != null) {
+                    int diff = comparator.compare(upper, bucketLower);
+                    if (diff < 0 || (diff == 0 && !upperIncluded)) continue;
+                }
+                if (lower != null) {
+                    int diff = comparator.compare(lower, bucketUpper);
+                    if (diff > 0 || (diff == 0 && !(lowerIncluded && bucketUpperIncluded))) continue;
+                }
+                boolean coversLower = lower == null || comparator.compare(lower, bucketLower) < 0
+                                      || (lowerIncluded && comparator.compare(lower, bucketLower) == 0);
+                boolean coversUpper = upper == null || comparator.compare(upper, bucketUpper) > 0
+                                      || ((upperIncluded || !bucketUpperIncluded) && comparator.compare(upper, bucketUpper) == 0);
+                if (coversLower && coversUpper) {
+                    matched += count;
+                    continue;
+                }
+                // The range partially overlaps the bucket, so interpolate if the values are numeric ...
+                double from = numeric(bucketLower);
+                double to = numeric(bucketUpper);
+                double fraction = 0.5d;
+                if (!Double.isNaN(from) && !Double.isNaN(to) && to > from) {
+                    double start = coversLower ? from : Math.max(from, numeric(lower));
+                    double end = coversUpper ? to : Math.min(to, numeric(upper));
+                    if (!Double.isNaN(start) && !Double.isNaN(end)) {
+                        fraction = Math.max(0.0d, Math.min(1.0d, (end - start) / (to - from)));
+                    }
+                }
+                matched += count * fraction;
+            }
+            return Math.min(1.0d, matched / total);
+        }
+
+        private static <V> boolean contains( V value,
+                                             V lower,
+                                             boolean lowerIncluded,
+                                             V upper,
+                                             boolean upperIncluded,
+                                             Comparator<V> comparator ) {
+            if (lower != null) {
+                int diff = comparator.compare(value, lower);
+                if (diff < 0 || (diff == 0 && !lowerIncluded)) return false;
+            }
+            if (upper != null) {
+                int diff = comparator.compare(value, upper);
+                if (diff > 0 || (diff == 0 && !upperIncluded)) return false;
+            }
+            return true;
+        }
+
+        private static double numeric( Object value ) {
+            if (value instanceof Number) return ((Number)value).doubleValue();
+            if (value instanceof DateTime) return ((DateTime)value).getMilliseconds();
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * A HyperLogLog sketch of the number of distinct values. Concurrent updates of the same register may occasionally lose an
+     * update, which only affects the accuracy of the estimate.
+     */
+    protected static final class HyperLogLog {
+        private static final int PRECISION = 11;
+        private static final int REGISTER_COUNT = 1 << PRECISION;
+        private static final double ALPHA = 0.7213d / (1.0d + 1.079d / REGISTER_COUNT);
+
+        protected final byte[] registers;
+
+        protected HyperLogLog() {
+            this(new byte[REGISTER_COUNT]);
+        }
+
+        protected HyperLogLog( byte[] registers ) {
+            this.registers = registers.length == REGISTER_COUNT ? registers : new byte[REGISTER_COUNT];
+        }
+
+        protected void add( Object value ) {
+            long hash = hash(value != null ? value.hashCode() : 0);
+            int register = (int)(hash >>> (64 - PRECISION));
+            byte rank = (byte)(Long.numberOfLeadingZeros((hash << PRECISION) | (1L << (PRECISION - 1))) + 1);
+            if (registers[register] < rank) {
+                registers[register] = rank;
+            }
+        }
+
+        protected long estimate() {
+            double sum = 0.0d;
+            int zeros = 0;
+            for (byte rank : registers) {
+                sum += 1.0d / (1L << rank);
+                if (rank == 0) ++zeros;
+            }
+            double estimate = ALPHA * REGISTER_COUNT * REGISTER_COUNT / sum;
+            if (estimate <= 2.5d * REGISTER_COUNT && zeros != 0) {
+                // Use linear counting for small cardinalities ...
+                estimate = REGISTER_COUNT * Math.log((double)REGISTER_COUNT / zeros);
+            }
+            return Math.round(estimate);
+        }
+
+        private static long hash( int hashCode ) {
+            // The 64-bit finalizer of MurmurHash3, which spreads the bits of the hash code ...
+            long hash = hashCode;
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb93e53a13e85L;
+            hash ^= hash >>> 33;
+            return hash;
+        }
+    }
+}
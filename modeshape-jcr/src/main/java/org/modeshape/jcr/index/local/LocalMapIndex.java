@@ -16,6 +16,7 @@
 
 package org.modeshape.jcr.index.local;
 
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
@@ -30,6 +31,9 @@ import org.mapdb.Fun;
 import org.mapdb.Serializer;
 import org.modeshape.jcr.index.local.IndexValues.Converter;
 import org.modeshape.jcr.spi.index.IndexConstraints;
+import org.modeshape.jcr.spi.index.provider.CoveringIndex;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Path;
 import org.modeshape.jcr.value.ValueComparators;
 
 /**
@@ -39,12 +43,22 @@ import org.modeshape.jcr.value.ValueComparators;
  * @param <T> the type of value to be indexed
  * @param <V> the raw type of value to be added
  */
-abstract class LocalMapIndex<T, V> extends LocalIndex<V> {
-
-    protected final BTreeMap<T, String> keysByValue;
-    protected final NavigableSet<Fun.Tuple2<String, T>> valuesByKey;
+abstract class LocalMapIndex<T, V> extends LocalIndex<V> implements CoveringIndex {
+
+    /**
+     * The version of the storage format, recorded in the options map. Indexes written with an older format (that stored the full
+     * node keys, or identifiers from a dictionary without reference counts) are discarded and rebuilt.
+     */
+    private static final String FORMAT_OPTION = "format";
+    private static final Integer FORMAT_NODE_KEY_IDS = 3;
+
+    protected final BTreeMap<T, Long> keysByValue;
+    protected final NavigableSet<Fun.Tuple2<Long, T>> valuesByKey;
+    protected final LocalNodeKeyDictionary nodeKeys;
     protected final ConcurrentMap<String, Object> options;
     private final Converter<T> converter;
+    private final LocalStoredColumns storedColumns;
+    private final LocalIndexStatistics<T, V> statistics;
    
     protected final Comparator<T> comparator;
     private final boolean isNew;
@@ -54,12 +68,25 @@ abstract class LocalMapIndex<T, V> extends LocalIndex<V> {
                    DB db,
                    Converter<T> converter,
                    BTreeKeySerializer<T> valueSerializer,
-                   Serializer<T> valueRawSerializer ) {
+                   Serializer<T> valueRawSerializer,
+                   LocalStoredColumns storedColumns,
+                   LocalIndexStatistics<T, V> statistics ) {
         super(name, workspaceName, db);
 
         assert converter != null;
         assert valueSerializer != null;
+        assert statistics != null;
         this.converter = converter;
+        this.storedColumns = storedColumns;
+        this.statistics = statistics;
+        this.nodeKeys = LocalNodeKeyDictionary.create(db);
+        if (db.exists(name) && !FORMAT_NODE_KEY_IDS.equals(db.getHashMap(name + "/options").get(FORMAT_OPTION))) {
+            logger.debug("Discarding storage for '{0}' index in workspace '{1}' written in an older format", name, workspaceName);
+            db.delete(name);
+            db.delete(name + "/inverse");
+            db.delete(name + "/options");
+            statistics.clear();
+        }
         if (db.exists(name)) {
             logger.debug("Reopening storage for '{0}' index in workspace '{1}'", name, workspaceName);
             this.options = db.getHashMap(name + "/options");
@@ -70,24 +97,33 @@ abstract class LocalMapIndex<T, V> extends LocalIndex<V> {
             logger.debug("Creating storage for '{0}' index in workspace '{1}'", name, workspaceName);
             this.isNew = true;
             this.options = db.createHashMap(name + "/options").makeOrGet();
+            this.options.put(FORMAT_OPTION, FORMAT_NODE_KEY_IDS);
             this.keysByValue = db.createTreeMap(name).counterEnable().comparator(valueSerializer.getComparator())
-                                 .keySerializer(valueSerializer).makeOrGet();
+                                 .keySerializer(valueSerializer).valueSerializer(Serializer.LONG).makeOrGet();
             // Create the TreeSet used in the reverse mapping, but we have to set a comparator that works in terms of the
-            // Fun.Tuple2<String,T> ...
-            final Comparator<String> strComparator = ValueComparators.STRING_COMPARATOR;
-            final Serializer<String> strSerializer = Serializer.STRING;
+            // Fun.Tuple2<Long,T> ...
+            final Comparator<Long> idComparator = ValueComparators.LONG_COMPARATOR;
+            final Serializer<Long> idSerializer = Serializer.LONG;
             final Comparator<T> valueComparator = valueSerializer.getComparator();
-            final Comparator<Fun.Tuple2<String, T>> revComparator = MapDB.tupleComparator(strComparator, valueComparator);
-            final BTreeKeySerializer<Fun.Tuple2<String, T>> revSerializer = MapDB.tupleBTreeSerializer(strComparator,
-                                                                                                       strSerializer,
-                                                                                                       valueRawSerializer,
-                                                                                                       revComparator);
+            final Comparator<Fun.Tuple2<Long, T>> revComparator = MapDB.tupleComparator(idComparator, valueComparator);
+            final BTreeKeySerializer<Fun.Tuple2<Long, T>> revSerializer = MapDB.tupleBTreeSerializer(idComparator,
+                                                                                                     idSerializer,
+                                                                                                     valueRawSerializer,
+                                                                                                     revComparator);
             this.valuesByKey = db.createTreeSet(name + "/inverse").comparator(revComparator).serializer(revSerializer).makeOrGet();
         }
         this.comparator = valueSerializer.getComparator();
 
         // Bind the map and the set together so the set is auto-updated as the map is changed ...
         Bind.mapInverse(this.keysByValue, this.valuesByKey);
+        // and release the node keys referenced by the entries that are replaced or removed ...
+        this.keysByValue.modificationListenerAdd((key, oldValue, newValue) -> {
+            if (oldValue != null) {
+                nodeKeys.release(oldValue);
+            }
+        });
+        // and keep the statistics up-to-date as the map is changed ...
+        this.statistics.bind(this.keysByValue);
     }
 
     @Override
@@ -101,7 +137,7 @@ abstract class LocalMapIndex<T, V> extends LocalIndex<V> {
 
     @Override
     public boolean requiresReindexing() {
-        return isNew;
+        return isNew || (storedColumns != null && storedColumns.requiresReindexing());
     }
 
     @Override
@@ -109,31 +145,98 @@ abstract class LocalMapIndex<T, V> extends LocalIndex<V> {
         return keysByValue.sizeLong();
     }
 
+    /**
+     * Get the values (entry keys) stored for the given node key.
+     *
+     * @param nodeKey the node key; may not be null
+     * @return the values; never null but possibly empty
+     */
+    protected final Iterable<T> valuesFor( String nodeKey ) {
+        Long id = nodeKeys.existingIdFor(nodeKey);
+        return id != null ? Fun.filter(valuesByKey, id) : Collections.<T>emptyList();
+    }
+
     protected final Converter<T> converter() {
         return converter;
     }
 
     @Override
     public Results filter(IndexConstraints filter, long cardinalityEstimate) {
-        return Operations.createFilter(keysByValue, converter, filter.getConstraints(), filter.getVariables()).getResults();
+        Results results = Operations.createFilter(keysByValue, nodeKeys::nodeKeyFor, converter, filter.getConstraints(), filter.getVariables())
+                                    .getResults();
+        return storedColumns != null ? storedColumns.withStoredValues(results) : results;
+    }
+
+    @Override
+    public void storeValues( String nodeKey,
+                             String propertyName,
+                             Object[] values ) {
+        if (storedColumns != null) {
+            storedColumns.store(nodeKey, propertyName, values);
+        }
+    }
+
+    @Override
+    public void removeStoredValues( String nodeKey ) {
+        if (storedColumns != null) {
+            storedColumns.remove(nodeKey);
+        }
+    }
+
+    @Override
+    public void storePath( String nodeKey,
+                           Path path ) {
+        if (storedColumns != null) {
+            storedColumns.storePath(nodeKey, path);
+        }
+    }
+
+    @Override
+    public void invalidatePaths( Path parentPath,
+                                 Name childName,
+                                 int fromIndex ) {
+        if (storedColumns != null) {
+            storedColumns.invalidatePaths(parentPath, childName, fromIndex);
+        }
     }
 
     @Override
     public long estimateCardinality( List<Constraint> andedConstraints,
                                      Map<String, Object> variables ) {
-        return Operations.createFilter(keysByValue, converter, andedConstraints, variables).estimateCount();
+        long estimate = statistics.estimateCardinality(andedConstraints, converter, variables);
+        if (estimate >= 0L) return estimate;
+        // The statistics aren't available yet, so count the matching entries ...
+        return Operations.createFilter(keysByValue, nodeKeys::nodeKeyFor, converter, andedConstraints, variables).estimateCount();
+    }
+
+    @Override
+    public void commit() {
+        statistics.commit();
+        super.commit();
     }
 
     @Override
     public void clearAllData() {
         keysByValue.clear();
+        statistics.clear();
+        if (storedColumns != null) {
+            storedColumns.clear();
+        }
     }
 
     @Override
     public void shutdown( boolean destroyed ) {
         if (destroyed) {
-            // Remove the database since the index was destroyed ...
+            // Remove the entries first so that the node keys they reference are released ...
+            keysByValue.clear();
+            // and then remove the database since the index was destroyed ...
             db.delete(name);
+            db.delete(name + "/inverse");
+            db.delete(name + "/options");
+            statistics.destroy();
+            if (storedColumns != null) {
+                storedColumns.destroy();
+            }
         }
     }
 
@@ -0,0 +1,252 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.index.local;
+
+import java.util.concurrent.ConcurrentMap;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.DB;
+import org.mapdb.Serializer;
+import org.modeshape.common.annotation.ThreadSafe;
+
+/**
+ * A dictionary that assigns a compact, 64-bit identifier to each node key stored in a local index database. Map-based local
+ * indexes store these identifiers rather than the full node key strings (which are typically 40 or more characters long), and
+ * resolve them back to node keys only when the results of a query are consumed. The dictionary is shared by all of the indexes
+ * in the same database, so each node key is stored only once per index provider.
+ * <p>
+ * Each node key string is stored only once, along with the number of index entries that refer to it: node keys are found by
+ * their 64-bit hash (verified against the stored node key) rather than through a second map keyed by the node key string. Only
+ * the rare node keys whose hash is already taken by another node key are also kept by their string. An entry is removed as soon
+ * as no index entry refers to it any longer, so the dictionary never holds more than the node keys that are currently indexed.
+ * Identifiers are never reused.
+ * </p>
+ * <p>
+ * The dictionary does not lock: identifiers are published with {@link ConcurrentMap#putIfAbsent(Object, Object)} and the
+ * reference counts are updated with {@link ConcurrentMap#replace(Object, Object, Object)}, so indexes that update different
+ * node keys never wait for each other. An identifier is live only while it has a reference count. The count is added after
+ * the identifier has been published and removed before the identifier is unpublished, so an identifier that is still being
+ * added or removed is never handed out.
+ * </p>
+ */
+@ThreadSafe
+final class LocalNodeKeyDictionary {
+
+    private static final String KEYS_BY_ID = "node-keys/by-id";
+    private static final String COUNTS_BY_ID = "node-keys/counts";
+    private static final String IDS_BY_HASH = "node-keys/by-hash";
+    private static final String COLLIDING_IDS_BY_KEY = "node-keys/colliding";
+    private static final String LAST_ID = "node-keys/last-id";
+
+    /**
+     * Obtain the dictionary stored in the supplied database, creating it if required. All instances obtained for the same
+     * database share the same underlying storage.
+     *
+     * @param db the database; may not be null
+     * @return the dictionary; never null
+     */
+    static LocalNodeKeyDictionary create( DB db ) {
+        synchronized (db) {
+            ConcurrentMap<Long, String> keysById = db.createTreeMap(KEYS_BY_ID)
+                                                     .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                                                     .valueSerializer(Serializer.STRING)
+                                                     .makeOrGet();
+            ConcurrentMap<Long, Long> countsById = db.createHashMap(COUNTS_BY_ID)
+                                                     .keySerializer(Serializer.LONG)
+                                                     .valueSerializer(Serializer.LONG)
+                                                     .makeOrGet();
+            ConcurrentMap<Long, Long> idsByHash = db.createHashMap(IDS_BY_HASH)
+                                                    .keySerializer(Serializer.LONG)
+                                                    .valueSerializer(Serializer.LONG)
+                                                    .makeOrGet();
+            ConcurrentMap<String, Long> collidingIdsByKey = db.createHashMap(COLLIDING_IDS_BY_KEY)
+                                                              .keySerializer(Serializer.STRING)
+                                                              .valueSerializer(Serializer.LONG)
+                                                              .makeOrGet();
+            Atomic.Long lastId = db.exists(LAST_ID) ? db.getAtomicLong(LAST_ID) : db.createAtomicLong(LAST_ID, 0L);
+            return new LocalNodeKeyDictionary(keysById, countsById, idsByHash, collidingIdsByKey, lastId);
+        }
+    }
+
+    private final ConcurrentMap<Long, String> keysById;
+    private final ConcurrentMap<Long, Long> countsById;
+    private final ConcurrentMap<Long, Long> idsByHash;
+    private final ConcurrentMap<String, Long> collidingIdsByKey;
+    private final Atomic.Long lastId;
+
+    private LocalNodeKeyDictionary( ConcurrentMap<Long, String> keysById,
+                                    ConcurrentMap<Long, Long> countsById,
+                                    ConcurrentMap<Long, Long> idsByHash,
+                                    ConcurrentMap<String, Long> collidingIdsByKey,
+                                    Atomic.Long lastId ) {
+        this.keysById = keysById;
+        this.countsById = countsById;
+        this.idsByHash = idsByHash;
+        this.collidingIdsByKey = collidingIdsByKey;
+        this.lastId = lastId;
+    }
+
+    /**
+     * Get the identifier for the supplied node key and record one more reference to it, assigning a new identifier if the node
+     * key is not yet in the dictionary. Every call must be balanced by a call to {@link #release(Long)} when the index entry
+     * that stores the identifier is removed.
+     *
+     * @param nodeKey the node key; may not be null
+     * @return the identifier
+     */
+    long acquire( String nodeKey ) {
+        long hash = hash(nodeKey);
+        while (true) {
+            Long id = idsByHash.get(hash);
+            if (id == null || !nodeKey.equals(keysById.get(id))) {
+                // The hash is free or taken by another node key, and the node key may be one of the colliding ones ...
+                Long collidingId = collidingIdsByKey.get(nodeKey);
+                if (collidingId == null) {
+                    Long newId = id == null ? publishByHash(nodeKey, hash) : publishAsColliding(nodeKey, hash);
+                    if (newId != null) return newId;
+                    continue;
+                }
+                id = collidingId;
+            }
+            Long count = countsById.get(id);
+            if (count == null) {
+                // The identifier is still being added or is being removed, so look again ...
+                Thread.yield();
+                continue;
+            }
+            if (countsById.replace(id, count, count + 1L)) return id;
+        }
+    }
+
+    /**
+     * Record that an index entry which stored the supplied identifier has been removed, and remove the node key from the
+     * dictionary if no other index entry refers to it.
+     *
+     * @param id the identifier; may not be null
+     */
+    void release( Long id ) {
+        while (true) {
+            Long count = countsById.get(id);
+            if (count == null) return;
+            if (count > 1L) {
+                if (countsById.replace(id, count, count - 1L)) return;
+            } else if (countsById.remove(id, count)) {
+                // No other thread can acquire this identifier any longer, so unpublish it ...
+                String nodeKey = keysById.get(id);
+                if (nodeKey != null && !idsByHash.remove(hash(nodeKey), id)) {
+                    collidingIdsByKey.remove(nodeKey, id);
+                }
+                keysById.remove(id);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the identifier for the supplied node key, without assigning one if the node key is not in the dictionary.
+     *
+     * @param nodeKey the node key; may not be null
+     * @return the identifier, or null if the node key is not stored in any index
+     */
+    Long existingIdFor( String nodeKey ) {
+        Long id = idsByHash.get(hash(nodeKey));
+        if (id == null || !nodeKey.equals(keysById.get(id))) {
+            id = collidingIdsByKey.get(nodeKey);
+        }
+        return id != null && countsById.containsKey(id) ? id : null;
+    }
+
+    /**
+     * Resolve the node key for the supplied identifier.
+     *
+     * @param id the identifier; may not be null
+     * @return the node key, or null if the identifier is not known
+     */
+    String nodeKeyFor( Long id ) {
+        return keysById.get(id);
+    }
+
+    /**
+     * Get the number of node keys in the dictionary.
+     *
+     * @return the number of node keys
+     */
+    long size() {
+        return countsById.size();
+    }
+
+    /**
+     * Store the supplied node key under a new identifier that can be found by the hash of the node key. The identifier only
+     * becomes live once no other thread has stored the same node key as a colliding one in the meantime.
+     *
+     * @param nodeKey the node key; may not be null
+     * @param hash the hash of the node key
+     * @return the new identifier, or null if another identifier was stored first and the caller must look again
+     */
+    private Long publishByHash( String nodeKey,
+                                long hash ) {
+        long newId = lastId.incrementAndGet();
+        keysById.put(newId, nodeKey);
+        if (idsByHash.putIfAbsent(hash, newId) == null) {
+            if (!collidingIdsByKey.containsKey(nodeKey)) {
+                countsById.put(newId, 1L);
+                return newId;
+            }
+            idsByHash.remove(hash, newId);
+        }
+        keysById.remove(newId);
+        return null;
+    }
+
+    /**
+     * Store the supplied node key under a new identifier that can be found by the node key itself, because the hash of the node
+     * key is taken by another node key. The identifier only becomes live if the hash is still taken by another node key.
+     *
+     * @param nodeKey the node key; may not be null
+     * @param hash the hash of the node key
+     * @return the new identifier, or null if the hash was released or taken by the same node key, and the caller must look again
+     */
+    private Long publishAsColliding( String nodeKey,
+                                     long hash ) {
+        long newId = lastId.incrementAndGet();
+        keysById.put(newId, nodeKey);
+        if (collidingIdsByKey.putIfAbsent(nodeKey, newId) == null) {
+            Long hashId = idsByHash.get(hash);
+            if (hashId != null && !nodeKey.equals(keysById.get(hashId))) {
+                countsById.put(newId, 1L);
+                return newId;
+            }
+            collidingIdsByKey.remove(nodeKey, newId);
+        }
+        keysById.remove(newId);
+        return null;
+    }
+
+    /**
+     * Compute the 64-bit FNV-1a hash of the supplied node key, which makes collisions between node keys very unlikely.
+     *
+     * @param nodeKey the node key; may not be null
+     * @return the hash
+     */
+    static long hash( String nodeKey ) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i != nodeKey.length(); ++i) {
+            hash ^= nodeKey.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,372 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.modeshape.jcr.index.local;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.HTreeMap;
+import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.cache.NodeKey;
+import org.modeshape.jcr.spi.index.provider.Filter;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.PathFactory;
+import org.modeshape.jcr.value.Property;
+import org.modeshape.jcr.value.PropertyFactory;
+import org.modeshape.jcr.value.PropertyType;
+import org.modeshape.jcr.value.ValueFactories;
+import org.modeshape.jcr.value.ValueFactory;
+
+/**
+ * The values of the stored (non-indexed) columns of a local index. The values of each node are kept in a single MapDB hash map
+ * entry keyed by the node key, so that the stored values for all of the nodes in a result batch can be read without loading the
+ * nodes themselves. All values are stored in their string form and converted back to the column's type when read.
+ * <p>
+ * The path of each node is also stored (with a second map ordered by path), so that the paths of the same-name siblings and
+ * descendants of a node which is moved, renamed, reordered or removed can be found and forgotten. The paths are only kept for
+ * synchronous indexes, since the paths in an asynchronous index may lag behind the moves of the nodes and must not be used to
+ * check permissions.
+ * </p>
+ */
+@ThreadSafe
+final class LocalStoredColumns {
+
+    private final String name;
+    private final DB db;
+    private final HTreeMap<String, HashMap<String, ArrayList<String>>> valuesByNodeKey;
+    private final HTreeMap<String, String> pathsByNodeKey;
+    private final BTreeMap<String, String> nodeKeysByPath;
+    private final Map<String, Name> namesByProperty;
+    private final Map<Name, String> propertiesByName;
+    private final Map<Name, PropertyType> columns;
+    private final ValueFactories factories;
+    private final PropertyFactory propertyFactory;
+    private final PathFactory pathFactory;
+    private final boolean storesPaths;
+    private final boolean isNew;
+
+    /**
+     * Create or open the storage for the stored columns of an index.
+     *
+     * @param indexName the name of the index; may not be null
+     * @param db the database in which the values are to be stored; may not be null
+     * @param context the execution context; may not be null
+     * @param columns the types of the stored columns keyed by their property names; may not be null or empty
+     * @param storesPaths true if the paths of the nodes should also be stored, or false otherwise
+     * @return the stored columns; never null
+     */
+    static LocalStoredColumns create( String indexName,
+                                      DB db,
+                                      ExecutionContext context,
+                                      Map<Name, PropertyType> columns,
+                                      boolean storesPaths ) {
+        return new LocalStoredColumns(indexName, db, context, columns, storesPaths);
+    }
+
+    private LocalStoredColumns( String indexName,
+                                DB db,
+                                ExecutionContext context,
+                                Map<Name, PropertyType> columns,
+                                boolean storesPaths ) {
+        assert columns != null && !columns.isEmpty();
+        this.name = indexName + "/stored";
+        this.db = db;
+        this.columns = Collections.unmodifiableMap(new LinkedHashMap<>(columns));
+        this.factories = context.getValueFactories();
+        this.propertyFactory = context.getPropertyFactory();
+        this.pathFactory = factories.getPathFactory();
+        this.storesPaths = storesPaths;
+        this.namesByProperty = new HashMap<>();
+        this.propertiesByName = new HashMap<>();
+        for (Name column : columns.keySet()) {
+            String propertyName = column.getString(context.getNamespaceRegistry());
+            namesByProperty.put(propertyName, column);
+            propertiesByName.put(column, propertyName);
+        }
+        boolean existed = db.exists(name);
+        this.valuesByNodeKey = db.createHashMap(name).makeOrGet();
+        this.pathsByNodeKey = db.createHashMap(name + "/paths").makeOrGet();
+        this.nodeKeysByPath = db.createTreeMap(name + "/nodesByPath").keySerializer(BTreeKeySerializer.STRING).makeOrGet();
+        // If the stored columns were changed, the existing values are no longer valid and the index has to be rebuilt ...
+        Atomic.String signature = db.getAtomicString(name + "/columns");
+        StringBuilder expected = new StringBuilder();
+        columns.forEach((column, type) -> expected.append(propertiesByName.get(column)).append('(').append(type).append(')'));
+        if (!expected.toString().equals(signature.get())) {
+            valuesByNodeKey.clear();
+            signature.set(expected.toString());
+            existed = false;
+        }
+        if (!storesPaths || !existed) {
+            // Any paths that were stored (e.g., while the index was synchronous) are no longer maintained ...
+            pathsByNodeKey.clear();
+            nodeKeysByPath.clear();
+        }
+        this.isNew = !existed;
+    }
+
+    /**
+     * Determine whether the stored values were just created and therefore need to be populated by reindexing.
+     *
+     * @return true if the index needs to be reindexed, or false otherwise
+     */
+    boolean requiresReindexing() {
+        return isNew;
+    }
+
+    void store( String nodeKey,
+                String propertyName,
+                Object[] values ) {
+        if (!namesByProperty.containsKey(propertyName)) {
+            return;
+        }
+        ArrayList<String> strings = null;
+        if (values != null && values.length != 0) {
+            ValueFactory<String> stringFactory = factories.getStringFactory();
+            strings = new ArrayList<>(values.length);
+            for (Object value : values) {
+                strings.add(stringFactory.create(value));
+            }
+        }
+        // The updates are done with compare-and-set semantics, since several columns of the same node may be changed at once ...
+        while (true) {
+            HashMap<String, ArrayList<String>> existing = valuesByNodeKey.get(nodeKey);
+            HashMap<String, ArrayList<String>> updated = existing != null ? new HashMap<>(existing) : new HashMap<>();
+            if (strings != null) {
+                updated.put(propertyName, strings);
+            } else {
+                updated.remove(propertyName);
+            }
+            if (existing == null) {
+                if (updated.isEmpty() || valuesByNodeKey.putIfAbsent(nodeKey, updated) == null) {
+                    return;
+                }
+            } else if (updated.isEmpty()) {
+                if (valuesByNodeKey.remove(nodeKey, existing)) {
+                    return;
+                }
+            } else if (valuesByNodeKey.replace(nodeKey, existing, updated)) {
+                return;
+            }
+        }
+    }
+
+    void remove( String nodeKey ) {
+        valuesByNodeKey.remove(nodeKey);
+        String path = pathsByNodeKey.remove(nodeKey);
+        if (path != null) {
+            nodeKeysByPath.remove(path, nodeKey);
+        }
+    }
+
+    void storePath( String nodeKey,
+                    Path path ) {
+        if (!storesPaths) {
+            return;
+        }
+        String pathString = factories.getStringFactory().create(path);
+        String previous = pathsByNodeKey.put(nodeKey, pathString);
+        if (previous != null && !previous.equals(pathString)) {
+            nodeKeysByPath.remove(previous, nodeKey);
+        }
+        String displaced = nodeKeysByPath.put(pathString, nodeKey);
+        if (displaced != null && !displaced.equals(nodeKey)) {
+            // the other node must have been moved without its path being invalidated, so its path is no longer known ...
+            pathsByNodeKey.remove(displaced, pathString);
+        }
+    }
+
+    void invalidatePaths( Path parentPath,
+                          Name childName,
+                          int fromIndex ) {
+        if (!storesPaths) {
+            return;
+        }
+        // The paths of the children have this prefix, followed by nothing (for the first sibling), a '[' or a '/' ...
+        String prefix = factories.getStringFactory().create(pathFactory.create(parentPath, childName));
+        List<String> invalid = new ArrayList<>();
+        for (String path : nodeKeysByPath.subMap(prefix, true, prefix + Character.MAX_VALUE, true).keySet()) {
+            if (siblingIndex(path, prefix.length()) >= fromIndex) {
+                invalid.add(path);
+            }
+        }
+        for (String path : invalid) {
+            String nodeKey = nodeKeysByPath.remove(path);
+            if (nodeKey != null) {
+                pathsByNodeKey.remove(nodeKey, path);
+            }
+        }
+    }
+
+    /**
+     * Determine the same-name-sibling index of the child whose name ends at the given position of the path.
+     *
+     * @param path the path of the child or one of its descendants; may not be null
+     * @param nameEnd the position in the path just after the child's name
+     * @return the index of the child, or -1 if the path belongs to a child with a different name
+     */
+    private static int siblingIndex( String path,
+                                     int nameEnd ) {
+        if (path.length() == nameEnd || path.charAt(nameEnd) == '/') {
+            return 1;
+        }
+        int indexEnd = path.indexOf(']', nameEnd);
+        if (path.charAt(nameEnd) != '[' || indexEnd < 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(path.substring(nameEnd + 1, indexEnd));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Get the stored path of the given node.
+     *
+     * @param key the node key; may not be null
+     * @return the path of the node, or null if it is not known
+     */
+    Path pathFor( NodeKey key ) {
+        String path = pathsByNodeKey.get(key.toString());
+        return path != null ? pathFactory.create(path) : null;
+    }
+
+    /**
+     * Get the stored values for the given node.
+     *
+     * @param key the node key; may not be null
+     * @return the properties keyed by the names of all stored columns, where the value is null if the node does not have the
+     * property; never null
+     */
+    Map<Name, Property> valuesFor( NodeKey key ) {
+        Map<String, ArrayList<String>> stored = valuesByNodeKey.get(key.toString());
+        Map<Name, Property> result = new HashMap<>();
+        for (Map.Entry<Name, PropertyType> column : columns.entrySet()) {
+            Name columnName = column.getKey();
+            List<String> strings = stored != null ? stored.get(propertiesByName.get(columnName)) : null;
+            if (strings == null) {
+                result.put(columnName, null);
+                continue;
+            }
+            ValueFactory<?> factory = factories.getValueFactory(column.getValue());
+            if (strings.size() == 1) {
+                result.put(columnName, propertyFactory.create(columnName, factory.create(strings.get(0))));
+            } else {
+                Object[] values = new Object[strings.size()];
+                for (int i = 0; i != values.length; ++i) {
+                    values[i] = factory.create(strings.get(i));
+                }
+                result.put(columnName, propertyFactory.create(columnName, values));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Wrap the supplied results so that each of its batches also returns the stored values of the matching nodes.
+     *
+     * @param results the results of the index; may not be null
+     * @return the results with stored values; never null
+     */
+    Filter.Results withStoredValues( final Filter.Results results ) {
+        return new Filter.Results() {
+            @Override
+            public Filter.ResultBatch getNextBatch( int batchSize ) {
+                final Filter.ResultBatch batch = results.getNextBatch(batchSize);
+                if (batch.size() == 0) {
+                    return batch;
+                }
+                return new Filter.ResultBatch() {
+                    private List<Map<Name, Property>> values;
+                    private List<Path> paths;
+
+                    @Override
+                    public Iterable<NodeKey> keys() {
+                        return batch.keys();
+                    }
+
+                    @Override
+                    public Iterable<Float> scores() {
+                        return batch.scores();
+                    }
+
+                    @Override
+                    public boolean hasNext() {
+                        return batch.hasNext();
+                    }
+
+                    @Override
+                    public int size() {
+                        return batch.size();
+                    }
+
+                    @Override
+                    public Iterable<Map<Name, Property>> storedValues() {
+                        if (values == null) {
+                            values = new ArrayList<>(batch.size());
+                            for (NodeKey key : batch.keys()) {
+                                values.add(valuesFor(key));
+                            }
+                        }
+                        return values;
+                    }
+
+                    @Override
+                    public Iterable<Path> storedPaths() {
+                        if (!storesPaths) {
+                            return null;
+                        }
+                        if (paths == null) {
+                            paths = new ArrayList<>(batch.size());
+                            for (NodeKey key : batch.keys()) {
+                                paths.add(pathFor(key));
+                            }
+                        }
+                        return paths;
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+                results.close();
+            }
+        };
+    }
+
+    void clear() {
+        valuesByNodeKey.clear();
+        pathsByNodeKey.clear();
+        nodeKeysByPath.clear();
+    }
+
+    void destroy() {
+        db.delete(name);
+        db.delete(name + "/paths");
+        db.delete(name + "/nodesByPath");
+        db.delete(name + "/columns");
+    }
+}
@@ -16,10 +16,10 @@
 
 package org.modeshape.jcr.index.local;
 
+import java.util.function.Function;
 import javax.jcr.query.qom.StaticOperand;
 import org.mapdb.BTreeKeySerializer;
 import org.mapdb.DB;
-import org.mapdb.Fun;
 import org.mapdb.Serializer;
 import org.modeshape.jcr.cache.NodeKey;
 import org.modeshape.jcr.index.local.IndexValues.Converter;
@@ -43,6 +43,7 @@ class LocalUniqueIndex<T> extends LocalMapIndex<T, T> {
      * @param converter the converter from {@link StaticOperand} to values being indexed; may not be null
      * @param valueSerializer the serializer for the type of value being indexed; may not be null
      * @param rawSerializer the raw value serializer for the type of value being indexed; may not be null
+     * @param storedColumns the values of the stored columns; may be null if the index has no stored columns
      * @return the new index; never null
      */
     static <T> LocalUniqueIndex<T> create( String name,
@@ -50,8 +51,9 @@ class LocalUniqueIndex<T> extends LocalMapIndex<T, T> {
                                            DB db,
                                            Converter<T> converter,
                                            BTreeKeySerializer<T> valueSerializer,
-                                           Serializer<T> rawSerializer ) {
-        return new LocalUniqueIndex<>(name, workspaceName, db, converter, valueSerializer, rawSerializer);
+                                           Serializer<T> rawSerializer,
+                                           LocalStoredColumns storedColumns ) {
+        return new LocalUniqueIndex<>(name, workspaceName, db, converter, valueSerializer, rawSerializer, storedColumns);
     }
 
     /**
@@ -63,14 +65,17 @@ class LocalUniqueIndex<T> extends LocalMapIndex<T, T> {
      * @param converter the converter from {@link StaticOperand} to values being indexed; may not be null
      * @param valueSerializer the serializer for the type of value being indexed; may not be null
      * @param rawSerializer the raw value serializer for the type of value being indexed; may not be null
+     * @param storedColumns the values of the stored columns; may be null if the index has no stored columns
      */
     protected LocalUniqueIndex( String name,
                                 String workspaceName,
                                 DB db,
                                 Converter<T> converter,
                                 BTreeKeySerializer<T> valueSerializer,
-                                Serializer<T> rawSerializer ) {
-        super(name, workspaceName, db, converter, valueSerializer, rawSerializer);
+                                Serializer<T> rawSerializer,
+                                LocalStoredColumns storedColumns ) {
+        super(name, workspaceName, db, converter, valueSerializer, rawSerializer, storedColumns,
+              LocalIndexStatistics.create(name, db, Function.identity(), valueSerializer.getComparator(), rawSerializer));
 
     }
 
@@ -79,7 +84,7 @@ class LocalUniqueIndex<T> extends LocalMapIndex<T, T> {
                      String propertyName, 
                      T value ) {
         logger.trace("Adding node '{0}' to '{1}' index with value '{2}'", nodeKey, name, value);
-        keysByValue.put(value, nodeKey);
+        keysByValue.put(value, nodeKeys.acquire(nodeKey));
     }
 
     @Override
@@ -87,7 +92,7 @@ class LocalUniqueIndex<T> extends LocalMapIndex<T, T> {
                         String propertyName, 
                         T value ) {
         // Find all of the T values (entry keys) for the given node key (entry values) ...
-        for (T key : Fun.filter(valuesByKey, nodeKey)) {
+        for (T key : valuesFor(nodeKey)) {
             if (comparator.compare(value, key) == 0) {
                 logger.trace("Removing node '{0}' from '{1}' index with value '{2}'", nodeKey, name, value);
                 keysByValue.remove(key);
@@ -98,7 +103,7 @@ class LocalUniqueIndex<T> extends LocalMapIndex<T, T> {
     @Override
     public void remove( String nodeKey ) {
         // Find all of the T values (entry keys) for the given node key (entry values) ...
-        for (T key : Fun.filter(valuesByKey, nodeKey)) {
+        for (T key : valuesFor(nodeKey)) {
             logger.trace("Removing node '{0}' from '{1}' index with value '{2}'", nodeKey, name, key);
             keysByValue.remove(key);
         }
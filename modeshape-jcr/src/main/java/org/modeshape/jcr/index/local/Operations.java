@@ -24,6 +24,7 @@ import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.function.Function;
 import javax.jcr.query.qom.And;
 import javax.jcr.query.qom.Constraint;
 import javax.jcr.query.qom.Not;
@@ -81,29 +82,45 @@ class Operations {
 
     /**
      * Create an {@link Results index operation} instance that will use the supplied {@link NavigableMap} (provided by an index)
-     * and the {@link Converter} to return all of the {@link NodeKey}s that satisfy the given constraints.
+     * and the {@link Converter} to return all of the {@link NodeKey}s that satisfy the given constraints. The map's values are
+     * references to node keys (such as dictionary identifiers) that are resolved only as the results are consumed.
      *
-     * @param keysByValue the index's map of values-to-NodeKey; may not be null
+     * @param keysByValue the index's map of values-to-node key references; may not be null
+     * @param nodeKeyResolver the function that resolves a node key reference into the node key; may not be null
      * @param converter the converter; may not be null
      * @param constraints the constraints; may not be null but may be empty if there are no constraints
      * @param variables the bound variables for this query; may not be null but may be empty
      * @return the index operation; never null
      */
-    public static <T> FilterOperation createFilter( NavigableMap<T, String> keysByValue,
-                                                    Converter<T> converter,
-                                                    Collection<Constraint> constraints,
-                                                    Map<String, Object> variables ) {
+    public static <T, K> FilterOperation createFilter( NavigableMap<T, K> keysByValue,
+                                                       Function<? super K, String> nodeKeyResolver,
+                                                       Converter<T> converter,
+                                                       Collection<Constraint> constraints,
+                                                       Map<String, Object> variables ) {
         if (keysByValue.isEmpty()) return EMPTY_FILTER_OPERATION;
-        NodeKeysAccessor<T, String> nodeKeysAccessor = new NodeKeysAccessor<T, String>() {
+        NodeKeysAccessor<T, K> nodeKeysAccessor = new NodeKeysAccessor<T, K>() {
             @Override
-            public Iterator<String> getNodeKeys( NavigableMap<T, String> keysByValue ) {
-                return keysByValue.values().iterator();
+            public Iterator<String> getNodeKeys( NavigableMap<T, K> keysByValue ) {
+                final Iterator<K> refs = keysByValue.values().iterator();
+                return new Iterator<String>() {
+                    @Override
+                    public boolean hasNext() {
+                        return refs.hasNext();
+                    }
+
+                    @Override
+                    public String next() {
+                        return nodeKeyResolver.apply(refs.next());
+                    }
+                };
             }
 
             @Override
-            public void addAllTo( NavigableMap<T, String> keysByValue,
+            public void addAllTo( NavigableMap<T, K> keysByValue,
                                   Set<String> matchedKeys ) {
-                matchedKeys.addAll(keysByValue.values());
+                for (K ref : keysByValue.values()) {
+                    matchedKeys.add(nodeKeyResolver.apply(ref));
+                }
             }
         };
         OperationBuilder<T> builder = new BasicOperationBuilder<>(keysByValue, converter, nodeKeysAccessor, variables);
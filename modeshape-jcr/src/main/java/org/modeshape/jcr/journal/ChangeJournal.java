@@ -84,6 +84,25 @@ public interface ChangeJournal extends ChangeSetListener {
      */
     public Iterator<NodeKey> changedNodesSince( long timestamp );
 
+    /**
+     * Checks whether this journal holds all the changes made since a given time, or whether some of them may be missing (e.g.
+     * because they were removed from the journal once they became older than its retention period).
+     *
+     * @param timestamp the time in UTC milliseconds of the oldest change of interest
+     * @return {@code true} if none of the changes made since the given time are missing, {@code false} otherwise
+     */
+    public boolean containsChangesSince( long timestamp );
+
+    /**
+     * Returns the records of the changes made to the system workspace since a given time. These are kept apart from all other
+     * records, so they are neither returned by any of the other methods nor exchanged with the other members of a cluster.
+     *
+     * @param timestamp the time in UTC milliseconds of the oldest change of interest
+     * @return the records in ascending order, which may include a few records older than the given time, or {@code null} if
+     *         some of the changes made to the system workspace since the given time may be missing from this journal
+     */
+    public Records systemRecordsNewerThan( long timestamp );
+
     /**
      * Adds one or more journal records to a journal.
      * 
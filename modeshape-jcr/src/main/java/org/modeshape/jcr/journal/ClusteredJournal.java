@@ -16,13 +16,18 @@
 
 package org.modeshape.jcr.journal;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import org.modeshape.schematic.annotation.ThreadSafe;
 import org.modeshape.common.logging.Logger;
 import org.modeshape.common.util.CheckArg;
@@ -30,12 +35,20 @@ import org.modeshape.common.util.DateTimeUtil;
 import org.modeshape.jcr.JcrI18n;
 import org.modeshape.jcr.cache.NodeKey;
 import org.modeshape.jcr.cache.change.ChangeSet;
+import org.modeshape.jcr.cache.change.ChangeSetCodec;
+import org.modeshape.jcr.cache.change.RecordingChanges;
 import org.modeshape.jcr.clustering.ClusteringService;
+import org.modeshape.jcr.clustering.MessageCodec;
 import org.modeshape.jcr.clustering.MessageConsumer;
 
 /**
  * A {@link ChangeJournal} implementation which runs in a cluster and which attempts to reconcile with other members of the cluster
  * on startup in order to retrieve missed/lost records.
+ * <p>
+ * The records are streamed in batches from the first member which responds. When that member no longer has all of the records
+ * this journal is missing (because they are older than its retention period), this journal
+ * {@link #containsChangesSince(long) reports} that the changes made before its oldest record may be missing.
+ * </p>
  *
  * @author Horia Chiorean (hchiorea@redhat.com)
  */
@@ -44,12 +57,29 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
 
     private final static Logger LOGGER  = Logger.getLogger(ClusteredJournal.class);
     private final static int MAX_MINUTES_TO_WAIT_FOR_RECONCILIATION = 2;
+    private final static int DEFAULT_CATCH_UP_BATCH_SIZE = 500;
 
     private final LocalJournal localJournal;
     private final ClusteringService clusteringService;
     private final int reconciliationMaxWaitTimeMinutes;
-    
+    private final int catchUpBatchSize;
+    private final AtomicReference<String> catchUpSourceId = new AtomicReference<>();
+
     private CountDownLatch reconciliationLatch = null;
+    /**
+     * The time before which changes may be missing from this journal, because no other member could provide them.
+     */
+    private volatile long catchUpHorizonMillis = Long.MIN_VALUE;
+    /**
+     * The time before which changes to the system workspace may be missing from this journal, because they are never
+     * exchanged with the other members of the cluster.
+     */
+    private volatile long systemCatchUpHorizonMillis = Long.MIN_VALUE;
+    /**
+     * The time of the last change this journal had recorded before it received the changes missed while it was not running, or
+     * null if it did not receive any changes.
+     */
+    private volatile Long caughtUpChangesSince = null;
 
     /**
      * Creates a new clustered journal
@@ -65,6 +95,13 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
     protected ClusteredJournal(LocalJournal localJournal,
                                ClusteringService clusteringService,
                                int reconciliationMaxWaitTime) {
+        this(localJournal, clusteringService, reconciliationMaxWaitTime, DEFAULT_CATCH_UP_BATCH_SIZE);
+    }
+
+    protected ClusteredJournal(LocalJournal localJournal,
+                               ClusteringService clusteringService,
+                               int reconciliationMaxWaitTime,
+                               int catchUpBatchSize) {
         super(DeltaMessage.class);
 
         CheckArg.isNotNull(localJournal, "localJournal");
@@ -73,6 +110,7 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
         this.clusteringService = clusteringService;
         this.localJournal = localJournal.withSearchTimeDelta(clusteringService.getMaxAllowedClockDelayMillis());
         this.reconciliationMaxWaitTimeMinutes = reconciliationMaxWaitTime;
+        this.catchUpBatchSize = catchUpBatchSize;
     }
 
     @Override
@@ -88,14 +126,21 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
         }
 
         localJournal.start();
+        catchUpSourceId.set(null);
+        catchUpHorizonMillis = Long.MIN_VALUE;
+        systemCatchUpHorizonMillis = Long.MIN_VALUE;
+        caughtUpChangesSince = null;
 
         //make sure this process can always process delta messages
+        clusteringService.addCodec(DeltaMessageCodec.INSTANCE);
         clusteringService.addConsumer(this);
         
         if (!clusteringService.multipleMembersInCluster()) {
             // this is the first node of the cluster, nothing to do
             return;
         }
+        // the other members may have changed the system workspace while this process was not running
+        systemCatchUpHorizonMillis = System.currentTimeMillis();
 
         // we require just 1 response before unblocking for a couple of reasons:
         // a) partition tolerance is NOT SUPPORTED
@@ -124,6 +169,8 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
             }
             if (!reconciliationLatch.await(reconciliationMaxWaitTimeMinutes, TimeUnit.MINUTES)) {
                 LOGGER.warn(JcrI18n.journalHasNotCompletedReconciliation,journalId(), clusterName(), reconciliationMaxWaitTimeMinutes);
+                // any of the changes made so far may be missing
+                catchUpHorizonMillis = System.currentTimeMillis();
                 reconciliationLatch.countDown();
             } else if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug("{0} successfully completed reconciliation", journalId());
@@ -131,6 +178,7 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
         } catch (InterruptedException e) {
             LOGGER.warn(JcrI18n.journalHasNotCompletedReconciliation, journalId(), clusterName(),
                         MAX_MINUTES_TO_WAIT_FOR_RECONCILIATION);
+            catchUpHorizonMillis = System.currentTimeMillis();
             if (Thread.interrupted()) {
                 throw e;
             }
@@ -169,6 +217,30 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
         return localJournal.changedNodesSince(timestamp);
     }
 
+    @Override
+    public boolean containsChangesSince( long timestamp ) {
+        return timestamp >= catchUpHorizonMillis && localJournal.containsChangesSince(timestamp);
+    }
+
+    @Override
+    public Records systemRecordsNewerThan( long timestamp ) {
+        if (timestamp < catchUpHorizonMillis || timestamp < systemCatchUpHorizonMillis) {
+            return null;
+        }
+        return localJournal.systemRecordsNewerThan(timestamp);
+    }
+
+    /**
+     * Returns the time of the last change this journal had recorded before it received, while starting, the changes made by
+     * the other members of the cluster while it was not running. The nodes changed since then can be refreshed from
+     * {@link #changedNodesSince(long)}.
+     *
+     * @return the time in UTC milliseconds, or {@code null} if this journal did not receive any changes while starting
+     */
+    public Long caughtUpChangesSince() {
+        return caughtUpChangesSince;
+    }
+
     @Override
     public void addRecords( JournalRecord... records ) {
         localJournal.addRecords(records);
@@ -219,15 +291,30 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
         LocalDateTime lastChangeSetTime = requestorLastChangeSetTime != null ? 
                                           DateTimeUtil.localDateTimeUTC(requestorLastChangeSetTime) :
                                           null;
+        Long horizonMillis = null;
+        if (!localJournal.containsChangesSince(requestorLastChangeSetTime != null ? requestorLastChangeSetTime : 0L)) {
+            // some of the records the requestor needs have already been removed from this journal
+            Iterator<JournalRecord> oldestRecord = allRecords(false).iterator();
+            horizonMillis = oldestRecord.hasNext() ? oldestRecord.next().getChangeTimeMillis() : System.currentTimeMillis();
+        }
+
+        // stream the delta in batches, so that the records never have to be held in memory all at once
         Records delta = recordsNewerThan(lastChangeSetTime, false, false);
-        List<JournalRecord> deltaList = new ArrayList<>(delta.size());
+        List<JournalRecord> batch = new ArrayList<>(Math.min(delta.size(), catchUpBatchSize));
+        int batchNumber = 0;
         for (JournalRecord record : delta) {
-            deltaList.add(record);
+            batch.add(record);
+            if (batch.size() == catchUpBatchSize) {
+                sendDeltaResponse(DeltaMessage.response(request, journalId, batch, batchNumber++, false, null));
+                batch = new ArrayList<>(catchUpBatchSize);
+            }
         }
-        
-        DeltaMessage response = DeltaMessage.response(request, journalId, deltaList);
+        sendDeltaResponse(DeltaMessage.response(request, journalId, batch, batchNumber, true, horizonMillis));
+    }
+
+    private void sendDeltaResponse( DeltaMessage response ) {
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Sending delta response {0} to journal {1}", response, requestorId);
+            LOGGER.debug("Sending delta response {0} to journal {1}", response, response.getRequestorId());
         }
         clusteringService.sendMessage(response);
     }
@@ -238,6 +325,12 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
             // only process a response if the message is a response to our request (in a cluster everything will be broadcasted to everyone)
             return;
         }
+        String respondentId = message.getRespondentId();
+        if (!catchUpSourceId.compareAndSet(null, respondentId) && !respondentId.equals(catchUpSourceId.get())) {
+            // all members have the same records, so they are only streamed from the first member which responded
+            LOGGER.debug("{0} ignoring delta response from journal {1}", journalId, respondentId);
+            return;
+        }
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("{0} received delta response {1}", journalId, message);
         }
@@ -245,8 +338,19 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
         if (!records.isEmpty()) {
             //make sure that a new timestamp is not generated for those records and whatever comes in the response is used.
             localJournal.addRecords(records.toArray(new JournalRecord[0]));
+            if (caughtUpChangesSince == null) {
+                Long requestorLastChangeSetTime = message.getRequestorLastChangeSetTime();
+                caughtUpChangesSince = requestorLastChangeSetTime != null ? requestorLastChangeSetTime : 0L;
+            }
+        }
+        if (message.isLastBatch()) {
+            Long horizonMillis = message.getHorizonMillis();
+            if (horizonMillis != null) {
+                LOGGER.warn(JcrI18n.journalIsMissingChanges, journalId, clusterName(), new Date(horizonMillis));
+                catchUpHorizonMillis = horizonMillis;
+            }
+            reconciliationLatch.countDown();
         }
-        reconciliationLatch.countDown();     
     }
 
     protected ClusteringService clusteringService() {
@@ -268,15 +372,24 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
         private final Long requestorLastChangeSetTime;
         private final String respondentId;
         private final List<JournalRecord> respondentRecords;
+        private final int batchNumber;
+        private final boolean lastBatch;
+        private final Long horizonMillis;
 
         private DeltaMessage( String requestorId,
                               Long requestorLastChangeSetTime,
                               String respondentId,
-                              List<JournalRecord> respondentRecords ) {
+                              List<JournalRecord> respondentRecords,
+                              int batchNumber,
+                              boolean lastBatch,
+                              Long horizonMillis ) {
             this.requestorId = requestorId;
             this.requestorLastChangeSetTime = requestorLastChangeSetTime;
             this.respondentId = respondentId;
             this.respondentRecords = respondentRecords;
+            this.batchNumber = batchNumber;
+            this.lastBatch = lastBatch;
+            this.horizonMillis = horizonMillis;
         }
         
         protected boolean isResponse() {
@@ -299,12 +412,29 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
             return respondentRecords;
         }
 
+        protected int getBatchNumber() {
+            return batchNumber;
+        }
+
+        protected boolean isLastBatch() {
+            return lastBatch;
+        }
+
+        /**
+         * @return the time before which the respondent may not have had all the records the requestor needs, or null if it did
+         */
+        protected Long getHorizonMillis() {
+            return horizonMillis;
+        }
+
         protected static DeltaMessage request(String requestorId, Long requestorLastChangeSetTime) {
-            return new DeltaMessage(requestorId, requestorLastChangeSetTime, null, null);
+            return new DeltaMessage(requestorId, requestorLastChangeSetTime, null, null, 0, false, null);
         }
 
-        protected static DeltaMessage response(DeltaMessage request, String repondentId, List<JournalRecord> respondentRecords) {
-            return new DeltaMessage(request.requestorId, request.requestorLastChangeSetTime, repondentId, respondentRecords);
+        protected static DeltaMessage response(DeltaMessage request, String repondentId, List<JournalRecord> respondentRecords,
+                                               int batchNumber, boolean lastBatch, Long horizonMillis) {
+            return new DeltaMessage(request.requestorId, request.requestorLastChangeSetTime, repondentId, respondentRecords,
+                                    batchNumber, lastBatch, horizonMillis);
         }
 
         @Override
@@ -315,6 +445,9 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
                 sb.append("requestorId='").append(requestorId).append('\'');
                 sb.append(", requestorLastChangeSetTime=").append(requestorLastChangeSetTime);
                 sb.append(", repondentId='").append(respondentId).append('\'');
+                sb.append(", batchNumber=").append(batchNumber);
+                sb.append(", lastBatch=").append(lastBatch);
+                sb.append(", horizonMillis=").append(horizonMillis);
                 sb.append(", respondentRecords=").append(respondentRecords);
             } else {
                 sb = new StringBuilder("request[");
@@ -325,4 +458,81 @@ public class ClusteredJournal extends MessageConsumer<ClusteredJournal.DeltaMess
             return sb.toString();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * The {@link MessageCodec} for {@link DeltaMessage}s, which encodes the change sets of the records with the
+     * {@link ChangeSetCodec}.
+     */
+    protected static final class DeltaMessageCodec extends MessageCodec<DeltaMessage> {
+        public static final int ID = 2;
+
+        protected static final DeltaMessageCodec INSTANCE = new DeltaMessageCodec();
+
+        private DeltaMessageCodec() {
+            super(ID, DeltaMessage.class);
+        }
+
+        @Override
+        public void encode( DeltaMessage message,
+                            DataOutput output ) throws IOException {
+            output.writeUTF(message.requestorId);
+            writeLong(output, message.requestorLastChangeSetTime);
+            output.writeBoolean(message.isResponse());
+            if (!message.isResponse()) {
+                return;
+            }
+            output.writeUTF(message.respondentId);
+            writeVarInt(output, message.batchNumber);
+            output.writeBoolean(message.lastBatch);
+            writeLong(output, message.horizonMillis);
+            writeVarInt(output, message.respondentRecords.size());
+            for (JournalRecord record : message.respondentRecords) {
+                output.writeLong(record.getTimeBasedKey());
+                ChangeSet changeSet = record.getChangeSet();
+                boolean encoded = changeSet instanceof RecordingChanges;
+                output.writeBoolean(encoded);
+                if (encoded) {
+                    ChangeSetCodec.INSTANCE.encode(changeSet, output);
+                } else {
+                    writeSerialized(output, changeSet);
+                }
+            }
+        }
+
+        @Override
+        public DeltaMessage decode( DataInput input,
+                                    ClassLoader classLoader ) throws IOException, ClassNotFoundException {
+            String requestorId = input.readUTF();
+            Long requestorLastChangeSetTime = readLong(input);
+            if (!input.readBoolean()) {
+                return new DeltaMessage(requestorId, requestorLastChangeSetTime, null, null, 0, false, null);
+            }
+            String respondentId = input.readUTF();
+            int batchNumber = readVarInt(input);
+            boolean lastBatch = input.readBoolean();
+            Long horizonMillis = readLong(input);
+            int size = readVarInt(input);
+            List<JournalRecord> records = new ArrayList<>(size);
+            for (int i = 0; i != size; ++i) {
+                long timeBasedKey = input.readLong();
+                ChangeSet changeSet = input.readBoolean() ? ChangeSetCodec.INSTANCE.decode(input, classLoader) : 
+                                      (ChangeSet)readSerialized(input, classLoader);
+                records.add(new JournalRecord(changeSet).withTimeBasedKey(timeBasedKey));
+            }
+            return new DeltaMessage(requestorId, requestorLastChangeSetTime, respondentId, records, batchNumber, lastBatch,
+                                    horizonMillis);
+        }
+
+        private static void writeLong( DataOutput output,
+                                       Long value ) throws IOException {
+            output.writeBoolean(value != null);
+            if (value != null) {
+                output.writeLong(value);
+            }
+        }
+
+        private static Long readLong( DataInput input ) throws IOException {
+            return input.readBoolean() ? input.readLong() : null;
+        }
+    }
+}
@@ -22,6 +22,7 @@ import java.time.ZoneOffset;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.NavigableMap;
 import java.util.NoSuchElementException;
 import java.util.UUID;
@@ -53,6 +54,8 @@ public class LocalJournal implements ChangeJournal {
 
     private static final int DEFAULT_MAX_TIME_TO_KEEP_FILES = -1;
     private static final String RECORDS_FIELD = "records";
+    private static final String SYSTEM_RECORDS_FIELD = "systemRecords";
+    private static final String SYSTEM_RECORDS_SINCE_FIELD = "systemRecordsSince";
     private static final String JOURNAL_ID_FIELD = "journalId";
     private static final TimeBasedKeys TIME_BASED_KEYS = TimeBasedKeys.create();
 
@@ -73,6 +76,15 @@ public class LocalJournal implements ChangeJournal {
      * The records are a map of {@link org.modeshape.jcr.journal.JournalRecord} instances keyed by a time-based key.
      */
     private BTreeMap<Long, JournalRecord> records;
+    /**
+     * The records of the changes made to the system workspace, which are kept apart from all other records so that they are
+     * never returned to the users of the journal nor exchanged with other journals.
+     */
+    private BTreeMap<Long, JournalRecord> systemRecords;
+    /**
+     * The time since which this journal has recorded the changes made to the system workspace.
+     */
+    private long systemRecordsSinceMillis;
     private long searchTimeDelta;
     private volatile boolean stopped;
 
@@ -135,10 +147,20 @@ public class LocalJournal implements ChangeJournal {
                 dbMaker.asyncWriteEnable();
             }
             this.journalDB = dbMaker.make();
+            boolean systemRecordsMissing = this.journalDB.exists(RECORDS_FIELD) && !this.journalDB.exists(SYSTEM_RECORDS_FIELD);
             this.records = this.journalDB.createTreeMap(RECORDS_FIELD)
                                          .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
                                          .counterEnable()
                                          .makeOrGet();
+            this.systemRecords = this.journalDB.createTreeMap(SYSTEM_RECORDS_FIELD)
+                                               .keySerializer(BTreeKeySerializer.ZERO_OR_POSITIVE_LONG)
+                                               .makeOrGet();
+            Atomic.Long systemRecordsSince = this.journalDB.getAtomicLong(SYSTEM_RECORDS_SINCE_FIELD);
+            //journals created by older versions did not record the changes to the system workspace
+            if (systemRecordsMissing) {
+                systemRecordsSince.set(System.currentTimeMillis());
+            }
+            this.systemRecordsSinceMillis = systemRecordsSince.get();
             Atomic.String journalAtomic = this.journalDB.getAtomicString(JOURNAL_ID_FIELD);
             //only write the value the first time
             if (StringUtil.isBlank(journalAtomic.get())) {
@@ -169,12 +191,25 @@ public class LocalJournal implements ChangeJournal {
 
     @Override
     public void notify( ChangeSet changeSet ) {
-        //do not store records from jcr:system
+        if (changeSet.isEmpty()) {
+            return;
+        }
+        //records from jcr:system are stored separately
         boolean systemWorkspaceChanges = RepositoryConfiguration.SYSTEM_WORKSPACE_NAME.equalsIgnoreCase(changeSet.getWorkspaceName());
-        if (changeSet.isEmpty() || systemWorkspaceChanges) {
+        if (systemWorkspaceChanges) {
+            addSystemRecord(new JournalRecord(changeSet));
+        } else {
+            addRecords(new JournalRecord(changeSet));
+        }
+    }
+
+    protected synchronized void addSystemRecord( JournalRecord record ) {
+        if (stopped) {
             return;
         }
-        addRecords(new JournalRecord(changeSet));
+        record.withTimeBasedKey(TIME_BASED_KEYS.nextKey());
+        this.systemRecords.put(record.getTimeBasedKey(), record);
+        this.journalDB.commit();
     }
 
     @Override
@@ -210,6 +245,7 @@ public class LocalJournal implements ChangeJournal {
         LOGGER.debug("Removing records older than " + searchBound);
         NavigableMap<Long, JournalRecord> toRemove = this.records.headMap(searchBound);
         toRemove.clear();
+        this.systemRecords.headMap(searchBound).clear();
         journalDB.commit();
         journalDB.compact();
     }
@@ -316,6 +352,30 @@ public class LocalJournal implements ChangeJournal {
         };
     }
 
+    @Override
+    public boolean containsChangesSince( long timestamp ) {
+        if (stopped) {
+            return false;
+        }
+        if (maxTimeToKeepEntriesMillis <= 0 || timestamp >= System.currentTimeMillis() - maxTimeToKeepEntriesMillis) {
+            // records are only ever removed once they are older than the retention period
+            return true;
+        }
+        // otherwise the journal must still have a record at least as old as the timestamp
+        Map.Entry<Long, JournalRecord> firstEntry = records.firstEntry();
+        return firstEntry != null && firstEntry.getValue().getChangeTimeMillis() <= timestamp;
+    }
+
+    @Override
+    public Records systemRecordsNewerThan( long timestamp ) {
+        if (stopped || timestamp < systemRecordsSinceMillis || !containsChangesSince(timestamp)) {
+            return null;
+        }
+        // we use a delta to make sure we get everything, which may also include a few older records
+        long searchBound = TIME_BASED_KEYS.getCounterStartingAt(timestamp - searchTimeDelta);
+        return recordsFrom(systemRecords.tailMap(searchBound, true), false);
+    }
+
     @Override
     public String journalId() {
         return journalId;
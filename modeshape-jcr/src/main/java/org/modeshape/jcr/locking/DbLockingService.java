@@ -15,21 +15,74 @@
  */
 package org.modeshape.jcr.locking;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.modeshape.common.logging.Logger;
 import org.modeshape.common.util.CheckArg;
+import org.modeshape.jcr.RepositoryStatistics;
+import org.modeshape.jcr.api.monitor.DurationMetric;
+import org.modeshape.jcr.clustering.ClusteringService;
+import org.modeshape.jcr.clustering.MessageCodec;
+import org.modeshape.jcr.clustering.MessageConsumer;
 import org.modeshape.schematic.Lockable;
 
 /**
  * {@link LockingService} implementation which uses DB locking, via a {@link Lockable} instance.
+ * <p>
+ * The DB does not tell us when a lock is released, so threads which cannot obtain their locks wait in a per-name FIFO queue
+ * and only the thread at the head of all of its queues goes to the DB. Waiters are woken up when the locks are
+ * {@link #unlock(String...) unlocked} in this process or, when a {@link ClusteringService} is supplied, in any other process
+ * of the cluster. Since a lock may also be held by a process which doesn't notify us, waiters fall back to polling the DB with
+ * an exponential backoff when they aren't woken up.
+ * </p>
+ * <p>
+ * To avoid a cluster-wide message at the end of every transaction, a process only tells the other processes that it released
+ * some locks when one of them has announced that it is waiting for those locks (and is still within its timeout).
+ * </p>
  * 
  * @author Horia Chiorean (hchiorea@redhat.com)
  * @since 5.2
  */
 public class DbLockingService implements LockingService {
-    
+
+    private static final Logger LOGGER = Logger.getLogger(DbLockingService.class);
+
+    /**
+     * The initial amount of time a waiter which isn't woken up waits before polling the DB again.
+     */
+    protected static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * The maximum amount of time a waiter which isn't woken up waits before polling the DB again.
+     */
+    protected static final long MAX_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+
     private final Lockable db;
     private final long lockTimeoutMillis;
+    private final ClusteringService clusteringService;
+    private final RepositoryStatistics statistics;
+    private final String processId = UUID.randomUUID().toString();
+    // both guarded by "this"
+    private final Map<String, Deque<Waiter>> waitersByName = new HashMap<>();
+    private final Map<String, Thread> ownersByName = new HashMap<>();
+    /** The time (in nanoseconds) until which the other processes in the cluster wait for each lock; guarded by "this" */
+    private final Map<String, Long> remoteWaitersUntilByName = new HashMap<>();
 
     /**
      * Creates a new db locking service instance.
@@ -38,23 +91,71 @@ public class DbLockingService implements LockingService {
      * @param db a {@link Lockable} instance; never {@code null}
      */
     public DbLockingService(long lockTimeoutMillis, Lockable db) {
+        this(lockTimeoutMillis, db, null, null);
+    }
+
+    /**
+     * Creates a new db locking service instance.
+     *
+     * @param lockTimeoutMillis the number of milliseconds to wait by default for a lock to be obtained, before timing out
+     * @param db a {@link Lockable} instance; never {@code null}
+     * @param clusteringService the service used to notify the other processes in the cluster when locks are released; may be
+     * {@code null} if the repository isn't clustered
+     * @param statistics the statistics in which the time spent waiting for locks is recorded; may be {@code null}
+     */
+    public DbLockingService(long lockTimeoutMillis, Lockable db, ClusteringService clusteringService,
+                            RepositoryStatistics statistics) {
         CheckArg.isNonNegative(lockTimeoutMillis, "lockTimeout");
         this.lockTimeoutMillis = lockTimeoutMillis;
         this.db = db;
+        this.clusteringService = clusteringService;
+        this.statistics = statistics;
+        if (clusteringService != null) {
+            clusteringService.addCodec(LocksReleasedCodec.INSTANCE);
+            clusteringService.addCodec(LocksWantedCodec.INSTANCE);
+            clusteringService.addConsumer(new LocksReleasedConsumer());
+            clusteringService.addConsumer(new LocksWantedConsumer());
+        }
     }
 
     @Override
     public boolean tryLock(long time, TimeUnit unit, String... names) throws InterruptedException {
-        long start = System.currentTimeMillis();
-        boolean result;
-        long timeInMills = TimeUnit.MILLISECONDS.convert(time, unit);
-        while (!(result = db.lockForWriting(names)) && 
-               System.currentTimeMillis() - start <= timeInMills) {
-            //wait a bit (between 50 and 300 ms)
-            long sleepDurationMillis = 50 + ThreadLocalRandom.current().nextInt(251);
-            Thread.sleep(sleepDurationMillis);
+        Waiter waiter = enqueue(names);
+        if (waiter == null) {
+            // this thread already holds all the locks...
+            return lock(names);
+        }
+        long start = System.nanoTime();
+        long timeoutNanos = unit.toNanos(time);
+        long backoffNanos = MIN_BACKOFF_NANOS;
+        boolean acquired = false;
+        boolean waited = false;
+        try {
+            while (true) {
+                long remainingNanos = timeoutNanos - (System.nanoTime() - start);
+                // always make one last attempt, even if we're not (yet) first in line
+                if ((remainingNanos <= 0 || isFirstInLine(waiter)) && (acquired = lock(names))) {
+                    return true;
+                }
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                if (!waited) {
+                    // the locks may be held by another process, which needs to know it should tell us when it releases them
+                    announceWaiting(waiter.names, remainingNanos);
+                }
+                waited = true;
+                long jitterNanos = ThreadLocalRandom.current().nextLong(backoffNanos / 2 + 1);
+                if (!waiter.await(Math.min(backoffNanos + jitterNanos, remainingNanos))) {
+                    backoffNanos = Math.min(backoffNanos * 2, MAX_BACKOFF_NANOS);
+                }
+            }
+        } finally {
+            dequeue(waiter, acquired);
+            if (waited) {
+                recordWait(System.nanoTime() - start, names, acquired);
+            }
         }
-        return result;        
     }
 
     @Override
@@ -64,13 +165,343 @@ public class DbLockingService implements LockingService {
 
     @Override
     public boolean unlock(String... names) {
-        // the DB should automatically release locks at the end of each transaction
+        // the DB should automatically release locks at the end of each transaction, which is when this is called, so all we have
+        // to do is wake up the threads waiting for them...
+        synchronized (this) {
+            for (String name : names) {
+                ownersByName.remove(name);
+            }
+        }
+        signalFirstInLine(Arrays.asList(names));
+        if (clusteringService != null && clusteringService.multipleMembersInCluster()) {
+            String[] wanted = wantedByRemoteWaiters(names);
+            if (wanted.length > 0) {
+                clusteringService.sendMessage(new LocksReleased(processId, wanted));
+            }
+        }
         return true;
     }
 
+    private void announceWaiting(List<String> names, long timeoutNanos) {
+        if (clusteringService != null && !names.isEmpty() && clusteringService.multipleMembersInCluster()) {
+            clusteringService.sendMessage(new LocksWanted(processId, timeoutNanos, names.toArray(new String[names.size()])));
+        }
+    }
+
+    private synchronized String[] wantedByRemoteWaiters(String... names) {
+        if (remoteWaitersUntilByName.isEmpty()) {
+            return new String[0];
+        }
+        long now = System.nanoTime();
+        List<String> wanted = new ArrayList<>(names.length);
+        for (String name : names) {
+            Long until = remoteWaitersUntilByName.get(name);
+            if (until == null) {
+                continue;
+            }
+            if (until - now > 0) {
+                wanted.add(name);
+            } else {
+                // the remote waiters have given up by now...
+                remoteWaitersUntilByName.remove(name);
+            }
+        }
+        return wanted.toArray(new String[wanted.size()]);
+    }
+
+    private synchronized void remoteWaitersAnnounced(List<String> names, long timeoutNanos) {
+        long until = System.nanoTime() + timeoutNanos;
+        for (String name : names) {
+            remoteWaitersUntilByName.merge(name, until, (existing, announced) -> existing - announced > 0 ? existing : announced);
+        }
+    }
+
     @Override
     public boolean shutdown() {
-        // nothing to shutdown by default...
+        // wake up any waiters, which will make one last attempt to get their locks...
+        List<Waiter> waiters = new ArrayList<>();
+        synchronized (this) {
+            waitersByName.values().forEach(waiters::addAll);
+        }
+        waiters.forEach(Waiter::signal);
         return true;
     }
+
+    private boolean lock(String... names) {
+        return db.lockForWriting(names);
+    }
+
+    private synchronized Waiter enqueue(String... names) {
+        Thread currentThread = Thread.currentThread();
+        // the locks this thread already holds (within the same transaction) are reentrant, so we must not wait for them
+        List<String> namesToWaitFor = new ArrayList<>(names.length);
+        for (String name : names) {
+            if (ownersByName.get(name) != currentThread) {
+                namesToWaitFor.add(name);
+            }
+        }
+        if (names.length > 0 && namesToWaitFor.isEmpty()) {
+            return null;
+        }
+        Waiter waiter = new Waiter(currentThread, namesToWaitFor);
+        for (String name : namesToWaitFor) {
+            waitersByName.computeIfAbsent(name, key -> new ArrayDeque<>()).addLast(waiter);
+        }
+        return waiter;
+    }
+
+    private synchronized boolean isFirstInLine(Waiter waiter) {
+        for (String name : waiter.names) {
+            if (waitersByName.get(name).peekFirst() != waiter) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void dequeue(Waiter waiter, boolean acquired) {
+        synchronized (this) {
+            for (String name : waiter.names) {
+                Deque<Waiter> waiters = waitersByName.get(name);
+                waiters.remove(waiter);
+                if (waiters.isEmpty()) {
+                    waitersByName.remove(name);
+                }
+                if (acquired) {
+                    ownersByName.put(name, waiter.thread);
+                }
+            }
+        }
+        if (!acquired) {
+            // we may have been blocking the waiters behind us
+            signalFirstInLine(waiter.names);
+        }
+    }
+
+    private void signalFirstInLine(Iterable<String> names) {
+        Set<Waiter> waiters = new LinkedHashSet<>();
+        synchronized (this) {
+            for (String name : names) {
+                Deque<Waiter> queue = waitersByName.get(name);
+                if (queue != null) {
+                    waiters.add(queue.peekFirst());
+                }
+            }
+        }
+        waiters.forEach(Waiter::signal);
+    }
+
+    private void recordWait(long durationNanos, String[] names, boolean acquired) {
+        if (statistics == null) {
+            return;
+        }
+        Map<String, String> payload = new HashMap<>();
+        payload.put("locks", String.join(", ", names));
+        payload.put("acquired", Boolean.toString(acquired));
+        statistics.recordDuration(DurationMetric.LOCK_WAIT_TIME, durationNanos, TimeUnit.NANOSECONDS, payload);
+    }
+
+    /**
+     * A thread waiting to obtain a number of locks.
+     */
+    private static final class Waiter {
+        private final Thread thread;
+        private final List<String> names;
+        private volatile boolean signalled;
+
+        private Waiter(Thread thread, List<String> names) {
+            this.thread = thread;
+            this.names = names;
+        }
+
+        private void signal() {
+            signalled = true;
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * Wait until this waiter is signalled or the given time elapses.
+         * 
+         * @param nanos the maximum time to wait
+         * @return {@code true} if this waiter was signalled, or {@code false} if the time elapsed
+         * @throws InterruptedException if the thread was interrupted while waiting
+         */
+        private boolean await(long nanos) throws InterruptedException {
+            long deadline = System.nanoTime() + nanos;
+            while (!signalled) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long remainingNanos = deadline - System.nanoTime();
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remainingNanos);
+            }
+            signalled = false;
+            return true;
+        }
+    }
+
+    private final class LocksReleasedConsumer extends MessageConsumer<LocksReleased> {
+        private LocksReleasedConsumer() {
+            super(LocksReleased.class);
+        }
+
+        @Override
+        public void consume(LocksReleased payload) {
+            if (processId.equals(payload.processId)) {
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Locks {0} were released by process {1}", payload.names, payload.processId);
+            }
+            signalFirstInLine(payload.names);
+        }
+    }
+
+    private final class LocksWantedConsumer extends MessageConsumer<LocksWanted> {
+        private LocksWantedConsumer() {
+            super(LocksWanted.class);
+        }
+
+        @Override
+        public void consume(LocksWanted payload) {
+            if (processId.equals(payload.processId)) {
+                return;
+            }
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Process {0} is waiting for locks {1}", payload.processId, payload.names);
+            }
+            remoteWaitersAnnounced(payload.names, payload.timeoutNanos);
+        }
+    }
+
+    /**
+     * The message sent to the other members of the cluster when a thread starts waiting for locks.
+     */
+    protected static final class LocksWanted implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String processId;
+        private final long timeoutNanos;
+        private final List<String> names;
+
+        protected LocksWanted(String processId, long timeoutNanos, String... names) {
+            this.processId = processId;
+            this.timeoutNanos = timeoutNanos;
+            this.names = Collections.unmodifiableList(Arrays.asList(names));
+        }
+
+        protected String getProcessId() {
+            return processId;
+        }
+
+        protected long getTimeoutNanos() {
+            return timeoutNanos;
+        }
+
+        protected List<String> getNames() {
+            return names;
+        }
+
+        @Override
+        public String toString() {
+            return "locks-wanted[processId='" + processId + "', timeoutNanos=" + timeoutNanos + ", names=" + names + "]";
+        }
+    }
+
+    /**
+     * The message sent to the other members of the cluster when locks are released.
+     */
+    protected static final class LocksReleased implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String processId;
+        private final List<String> names;
+
+        protected LocksReleased(String processId, String... names) {
+            this.processId = processId;
+            this.names = Collections.unmodifiableList(Arrays.asList(names));
+        }
+
+        protected String getProcessId() {
+            return processId;
+        }
+
+        protected List<String> getNames() {
+            return names;
+        }
+
+        @Override
+        public String toString() {
+            return "locks-released[processId='" + processId + "', names=" + names + "]";
+        }
+    }
+
+    /**
+     * The {@link MessageCodec} for {@link LocksReleased} messages.
+     */
+    protected static final class LocksReleasedCodec extends MessageCodec<LocksReleased> {
+        public static final int ID = 3;
+
+        protected static final LocksReleasedCodec INSTANCE = new LocksReleasedCodec();
+
+        private LocksReleasedCodec() {
+            super(ID, LocksReleased.class);
+        }
+
+        @Override
+        public void encode(LocksReleased message, DataOutput output) throws IOException {
+            output.writeUTF(message.processId);
+            writeVarInt(output, message.names.size());
+            for (String name : message.names) {
+                output.writeUTF(name);
+            }
+        }
+
+        @Override
+        public LocksReleased decode(DataInput input, ClassLoader classLoader) throws IOException {
+            String processId = input.readUTF();
+            String[] names = new String[readVarInt(input)];
+            for (int i = 0; i != names.length; ++i) {
+                names[i] = input.readUTF();
+            }
+            return new LocksReleased(processId, names);
+        }
+    }
+
+    /**
+     * The {@link MessageCodec} for {@link LocksWanted} messages.
+     */
+    protected static final class LocksWantedCodec extends MessageCodec<LocksWanted> {
+        public static final int ID = 4;
+
+        protected static final LocksWantedCodec INSTANCE = new LocksWantedCodec();
+
+        private LocksWantedCodec() {
+            super(ID, LocksWanted.class);
+        }
+
+        @Override
+        public void encode(LocksWanted message, DataOutput output) throws IOException {
+            output.writeUTF(message.processId);
+            output.writeLong(message.timeoutNanos);
+            writeVarInt(output, message.names.size());
+            for (String name : message.names) {
+                output.writeUTF(name);
+            }
+        }
+
+        @Override
+        public LocksWanted decode(DataInput input, ClassLoader classLoader) throws IOException {
+            String processId = input.readUTF();
+            long timeoutNanos = input.readLong();
+            String[] names = new String[readVarInt(input)];
+            for (int i = 0; i != names.length; ++i) {
+                names[i] = input.readUTF();
+            }
+            return new LocksWanted(processId, timeoutNanos, names);
+        }
+    }
 }
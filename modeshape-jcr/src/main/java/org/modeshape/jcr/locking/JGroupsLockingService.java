@@ -15,6 +15,19 @@
  */
 package org.modeshape.jcr.locking;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import org.jgroups.Channel;
 import org.jgroups.blocks.locking.LockService;
@@ -22,9 +35,26 @@ import org.jgroups.protocols.CENTRAL_LOCK;
 import org.jgroups.stack.Protocol;
 import org.jgroups.stack.ProtocolStack;
 import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.common.util.CheckArg;
+import org.modeshape.common.util.NamedThreadFactory;
 
 /**
  * Locking service which should be used by ModeShape when running in a cluster
+ * <p>
+ * Each lock has two parts: a local lock which guarantees exclusive access between the threads of this process and a cluster
+ * lock, obtained via JGroups' {@link CENTRAL_LOCK} protocol, which guarantees exclusive access between the members of the
+ * cluster. JGroups ties cluster locks to the thread which obtained them, so the cluster locks are owned by a fixed number of
+ * <i>stripes</i> (each with its own thread) chosen by the hash of the lock name. A batch of names is sorted and split by stripe,
+ * and all the stripes request their cluster locks in parallel, so obtaining N locks takes roughly N / stripes round-trips instead
+ * of N. A batch is all-or-nothing: if any stripe can't get one of its locks, all the stripes give back the locks they got for the
+ * batch and the whole batch is retried (with an exponential backoff) until the timeout elapses.
+ * </p>
+ * <p>
+ * Once unlocked, a cluster lock is kept by its stripe for a short lease, so that a process which changes the same nodes
+ * repeatedly doesn't go to the lock coordinator each time. Other members of the cluster never queue for a cluster lock but
+ * retry it, so a lock which is used continuously is given back once it has been held for {@link #MAX_HOLD_NANOS}, and is
+ * not taken again by this process for {@link #YIELD_NANOS}, which is longer than the other members wait between retries.
+ * </p>
  *
  * @author Horia Chiorean (hchiorea@redhat.com)
  * @since 5.0
@@ -32,12 +62,46 @@ import org.modeshape.common.annotation.ThreadSafe;
  */
 @ThreadSafe
 @Deprecated
-public class JGroupsLockingService extends AbstractLockingService<Lock> {
+public class JGroupsLockingService extends AbstractLockingService<StandaloneLockingService.NodeLock> {
+
+    /**
+     * The default number of milliseconds for which a cluster lock is kept after it has been unlocked.
+     */
+    public static final long DEFAULT_LEASE_MILLIS = 50;
+
+    /**
+     * The default number of stripes (and threads) which own the cluster locks.
+     */
+    public static final int DEFAULT_STRIPE_COUNT = 8;
+
+    /**
+     * The initial amount of time to wait before retrying a batch of cluster locks which could not be obtained.
+     */
+    protected static final long MIN_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    /**
+     * The maximum amount of time to wait before retrying a batch of cluster locks which could not be obtained.
+     */
+    protected static final long MAX_RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+
+    /**
+     * The maximum amount of time for which a cluster lock is kept by renewing its lease, before it is given back to the
+     * coordinator so that the other members can get it.
+     */
+    protected static final long MAX_HOLD_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * The amount of time for which a cluster lock which was given back after {@link #MAX_HOLD_NANOS} is not taken again, so that
+     * every other member retrying it gets at least one chance to obtain it.
+     */
+    protected static final long YIELD_NANOS = 2 * MAX_RETRY_NANOS;
 
     /**
      * The service used for cluster-wide locking
      */
     private final LockService lockService;
+    private final long leaseNanos;
+    private final Stripe[] stripes;
 
     /**
      * Creates a new service instance using the supplied JGroups channel.
@@ -49,35 +113,290 @@ public class JGroupsLockingService extends AbstractLockingService<Lock> {
      * @param lockTimeoutMillis the number of millis to wait before timing out when attempting to obtain a lock
      */
     public JGroupsLockingService(Channel channel, long lockTimeoutMillis) {
+        this(channel, lockTimeoutMillis, DEFAULT_LEASE_MILLIS, DEFAULT_STRIPE_COUNT);
+    }
+
+    /**
+     * Creates a new service instance using the supplied JGroups channel.
+     * <p>
+     * Note that the channel is expected to have been initialized and the CENTRAL_LOCK protocol added.
+     * </p>
+     *
+     * @param channel a {@link Channel} instance; may not be null
+     * @param lockTimeoutMillis the number of millis to wait before timing out when attempting to obtain a lock
+     * @param leaseMillis the number of millis for which a cluster lock is kept after being unlocked; 0 releases cluster locks as
+     * soon as they are unlocked
+     * @param stripeCount the number of stripes which own the cluster locks; must be positive
+     */
+    public JGroupsLockingService(Channel channel, long lockTimeoutMillis, long leaseMillis, int stripeCount) {
         super(lockTimeoutMillis);
-        
+        CheckArg.isNonNegative(leaseMillis, "leaseMillis");
+        CheckArg.isPositive(stripeCount, "stripeCount");
+
         ProtocolStack protocolStack = channel.getProtocolStack();
         Protocol centralLock = protocolStack.findProtocol(CENTRAL_LOCK.class);
         if (centralLock == null) {
             throw new IllegalArgumentException("JGroups protocol stack does not contain a CENTRAL_LOCK protocol...");
         }
         this.lockService = new LockService(channel);
+        this.leaseNanos = TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+        NamedThreadFactory threadFactory = new NamedThreadFactory("modeshape-cluster-lock");
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i != stripeCount; ++i) {
+            this.stripes[i] = new Stripe(Executors.newSingleThreadScheduledExecutor(threadFactory));
+        }
     }
 
     @Override
-    protected Lock createLock(String name) {
-        return lockService.getLock(name);
+    public boolean tryLock(long time, TimeUnit unit, String... names) throws InterruptedException {
+        // sorting the names means that concurrent batches always request overlapping locks in the same order
+        String[] sortedNames = Arrays.stream(names).distinct().sorted().toArray(String[]::new);
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        if (!super.tryLock(time, unit, sortedNames)) {
+            return false;
+        }
+        boolean clusterLocked = false;
+        try {
+            clusterLocked = tryClusterLock(sortedNames, deadline);
+        } finally {
+            if (!clusterLocked) {
+                logger.debug("Unable to acquire the cluster locks for {0}. Reverting back the local locks", 
+                             Arrays.toString(sortedNames));
+                super.unlock(sortedNames);
+            }
+        }
+        return clusterLocked;
     }
-    
+
     @Override
-    protected boolean releaseLock(Lock lock) {
-        // the only way to tell if JG has a lock is to try locking it from the current thread (which should be a no-op if the lock 
-        // is already held...
-        if (lock.tryLock()) {
-            lock.unlock();
-            return true;
-        } else {
-            return false;
+    public boolean unlock(String... names) {
+        // hand the cluster locks back to their stripes *before* releasing the local locks, so that the release is always
+        // processed by a stripe before the next local owner of the same name asks for the cluster lock
+        try {
+            namesByStripe(names).forEach((stripe, stripeNames) -> stripe.owner.execute(() -> stripe.release(stripeNames)));
+        } catch (RejectedExecutionException e) {
+            // the service is being shut down, which releases all the cluster locks
+            logger.debug("Cannot release cluster locks {0} because the service is shutting down", Arrays.toString(names));
         }
+        return super.unlock(names);
+    }
+
+    @Override
+    protected StandaloneLockingService.NodeLock createLock(String name) {
+        return new StandaloneLockingService.NodeLock();
+    }
+    
+    @Override
+    protected boolean releaseLock(StandaloneLockingService.NodeLock lock) {
+        // the local locks can be unlocked from any thread, as transactions may be completed on a different thread
+        lock.unlock();
+        return true;
     }
 
     @Override
     protected void doShutdown() {
+        for (Stripe stripe : stripes) {
+            stripe.owner.shutdownNow();
+        }
         lockService.unlockAll();
+        super.doShutdown();
+    }
+
+    private boolean tryClusterLock(String[] sortedNames, long deadline) throws InterruptedException {
+        Map<Stripe, List<String>> namesByStripe = namesByStripe(sortedNames);
+        long retryNanos = MIN_RETRY_NANOS;
+        while (true) {
+            Map<Stripe, CompletableFuture<Attempt>> attempts = new LinkedHashMap<>();
+            try {
+                namesByStripe.forEach((stripe, stripeNames) -> attempts.put(
+                        stripe, CompletableFuture.supplyAsync(() -> stripe.acquire(stripeNames), stripe.owner)));
+            } catch (RejectedExecutionException e) {
+                logger.debug("Cannot acquire cluster locks because the service is shutting down");
+                undo(attempts);
+                return false;
+            }
+            List<Attempt> completed = new ArrayList<>(attempts.size());
+            try {
+                for (CompletableFuture<Attempt> attempt : attempts.values()) {
+                    completed.add(attempt.get());
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                undo(attempts);
+                if (e instanceof InterruptedException) {
+                    throw (InterruptedException)e;
+                }
+                logger.debug(e, "unexpected exception while attempting to acquire cluster locks");
+                return false;
+            }
+            if (completed.stream().allMatch(Attempt::succeeded)) {
+                return true;
+            }
+            undo(attempts);
+            long remainingNanos = deadline - System.nanoTime();
+            if (remainingNanos <= 0) {
+                return false;
+            }
+            long jitterNanos = ThreadLocalRandom.current().nextLong(retryNanos / 2 + 1);
+            TimeUnit.NANOSECONDS.sleep(Math.min(retryNanos + jitterNanos, remainingNanos));
+            retryNanos = Math.min(retryNanos * 2, MAX_RETRY_NANOS);
+        }
+    }
+
+    private void undo(Map<Stripe, CompletableFuture<Attempt>> attempts) {
+        // the locks must be given back by the stripe which owns them, once its attempt completes
+        attempts.forEach((stripe, attempt) -> {
+            try {
+                attempt.thenAcceptAsync(Attempt::undo, stripe.owner);
+            } catch (RejectedExecutionException e) {
+                // the service is being shut down, which releases all the cluster locks
+            }
+        });
+    }
+
+    private Map<Stripe, List<String>> namesByStripe(String... names) {
+        Map<Stripe, List<String>> namesByStripe = new LinkedHashMap<>();
+        for (String name : names) {
+            Stripe stripe = stripes[(name.hashCode() & Integer.MAX_VALUE) % stripes.length];
+            namesByStripe.computeIfAbsent(stripe, key -> new ArrayList<>()).add(name);
+        }
+        return namesByStripe;
+    }
+
+    /**
+     * A cluster lock held by a stripe.
+     */
+    private static final class Lease {
+        private final Lock clusterLock;
+        private final long acquiredAt = System.nanoTime();
+        private boolean inUse;
+        private long expiresAt;
+
+        private Lease(Lock clusterLock) {
+            this.clusterLock = clusterLock;
+        }
+    }
+
+    /**
+     * The outcome of a stripe's attempt to obtain its part of a batch of cluster locks.
+     */
+    private static final class Attempt {
+        private final Stripe stripe;
+        // the locks which were obtained from the coordinator for this attempt
+        private final List<String> acquired = new ArrayList<>();
+        // the locks which were already held by the stripe, but not used
+        private final List<String> reused = new ArrayList<>();
+        private boolean success;
+
+        private Attempt(Stripe stripe) {
+            this.stripe = stripe;
+        }
+
+        private boolean succeeded() {
+            return success;
+        }
+
+        private void undo() {
+            if (success) {
+                stripe.rollback(this);
+            }
+        }
+    }
+
+    /**
+     * Owns a part of the cluster locks. All the methods are only ever called from the stripe's thread, which is why the leases
+     * don't require any synchronization.
+     */
+    private final class Stripe {
+        private final ScheduledExecutorService owner;
+        private final Map<String, Lease> leasesByName = new HashMap<>();
+        // the cluster locks which were given back to the other members, and until when they are left to them
+        private final Map<String, Long> yieldedUntilByName = new HashMap<>();
+
+        private Stripe(ScheduledExecutorService owner) {
+            this.owner = owner;
+        }
+
+        private Attempt acquire(List<String> names) {
+            Attempt attempt = new Attempt(this);
+            for (String name : names) {
+                Lease lease = leasesByName.get(name);
+                if (lease == null) {
+                    Long yieldedUntil = yieldedUntilByName.get(name);
+                    if (yieldedUntil != null && System.nanoTime() - yieldedUntil < 0) {
+                        logger.debug("cluster lock '{0}' is being left to the other members", name);
+                        rollback(attempt);
+                        return attempt;
+                    }
+                    Lock clusterLock = lockService.getLock(name);
+                    boolean locked = false;
+                    try {
+                        // don't wait for the lock, as that would block the releases queued behind this attempt
+                        locked = clusterLock.tryLock();
+                    } catch (RuntimeException e) {
+                        logger.debug(e, "unexpected exception while attempting to acquire cluster lock '{0}'", name);
+                    }
+                    if (!locked) {
+                        logger.debug("cluster lock '{0}' is held by another member", name);
+                        rollback(attempt);
+                        return attempt;
+                    }
+                    lease = new Lease(clusterLock);
+                    leasesByName.put(name, lease);
+                    attempt.acquired.add(name);
+                } else if (!lease.inUse) {
+                    attempt.reused.add(name);
+                }
+                lease.inUse = true;
+            }
+            attempt.success = true;
+            return attempt;
+        }
+
+        private void rollback(Attempt attempt) {
+            attempt.acquired.forEach(this::releaseClusterLock);
+            release(attempt.reused);
+        }
+
+        private void release(List<String> names) {
+            for (String name : names) {
+                Lease lease = leasesByName.get(name);
+                if (lease == null) {
+                    continue;
+                }
+                lease.inUse = false;
+                if (leaseNanos == 0) {
+                    releaseClusterLock(name);
+                } else if (System.nanoTime() - lease.acquiredAt >= MAX_HOLD_NANOS) {
+                    // other members only retry the lock, so they would never get it if the lease were renewed forever
+                    releaseClusterLock(name);
+                    yieldedUntilByName.put(name, System.nanoTime() + YIELD_NANOS);
+                    owner.schedule(() -> endYield(name), YIELD_NANOS, TimeUnit.NANOSECONDS);
+                } else {
+                    lease.expiresAt = System.nanoTime() + leaseNanos;
+                    owner.schedule(() -> expire(name), leaseNanos, TimeUnit.NANOSECONDS);
+                }
+            }
+        }
+
+        private void expire(String name) {
+            Lease lease = leasesByName.get(name);
+            if (lease != null && !lease.inUse && System.nanoTime() - lease.expiresAt >= 0) {
+                releaseClusterLock(name);
+            }
+        }
+
+        private void endYield(String name) {
+            yieldedUntilByName.computeIfPresent(name, (key, until) -> System.nanoTime() - until >= 0 ? null : until);
+        }
+
+        private void releaseClusterLock(String name) {
+            Lease lease = leasesByName.remove(name);
+            try {
+                lease.clusterLock.unlock();
+                logger.debug("cluster lock '{0}' released", name);
+            } catch (RuntimeException e) {
+                logger.debug(e, "unexpected exception while releasing cluster lock '{0}'", name);
+            }
+        }
     }
 }
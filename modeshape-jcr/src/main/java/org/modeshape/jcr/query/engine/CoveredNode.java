@@ -0,0 +1,266 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.query.engine;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import org.modeshape.jcr.cache.CachedNode;
+import org.modeshape.jcr.cache.CachedNodeSupplier;
+import org.modeshape.jcr.cache.ChildReferences;
+import org.modeshape.jcr.cache.NodeCache;
+import org.modeshape.jcr.cache.NodeKey;
+import org.modeshape.jcr.cache.NodeNotFoundException;
+import org.modeshape.jcr.cache.PathCache;
+import org.modeshape.jcr.cache.ReferrerCounts;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.Path.Segment;
+import org.modeshape.jcr.value.Property;
+
+/**
+ * A {@link CachedNode} returned by an index whose {@link org.modeshape.jcr.spi.index.provider.CoveringIndex stored columns}
+ * already contain the values of some of the node's properties. Those properties are returned directly from the index results,
+ * while all other information is obtained from the actual node, which is loaded from the workspace cache only the first time
+ * it is needed. Therefore a query whose projections, orderings and criteria are all covered by the index never loads the nodes
+ * that are discarded before the final results are produced.
+ * <p>
+ * The index may also have stored the path of the node as it was when the node was last indexed, which can be used to check
+ * whether the node can be read without loading it.
+ * </p>
+ */
+public final class CoveredNode implements CachedNode {
+
+    private final NodeKey key;
+    private final Map<Name, Property> storedProperties;
+    private final Path storedPath;
+    private final CachedNodeSupplier workspaceCache;
+    private CachedNode node;
+
+    /**
+     * Create a node whose stored properties (and possibly path) were obtained from an index.
+     *
+     * @param key the key of the node; may not be null
+     * @param storedProperties the stored properties keyed by their names, where the value is null if the node does not have the
+     *        property; may not be null
+     * @param storedPath the path of the node when it was indexed; may be null if the index did not store it
+     * @param workspaceCache the supplier of the actual node; may not be null
+     */
+    public CoveredNode( NodeKey key,
+                        Map<Name, Property> storedProperties,
+                        Path storedPath,
+                        CachedNodeSupplier workspaceCache ) {
+        assert key != null;
+        assert storedProperties != null;
+        assert workspaceCache != null;
+        this.key = key;
+        this.storedProperties = storedProperties;
+        this.storedPath = storedPath;
+        this.workspaceCache = workspaceCache;
+    }
+
+    /**
+     * Get the properties whose values were stored in the index.
+     *
+     * @return the stored properties keyed by their names, where the value is null if the node does not have the property;
+     *         never null
+     */
+    public Map<Name, Property> getStoredProperties() {
+        return storedProperties;
+    }
+
+    /**
+     * Get the path of the node that was stored in the index. This is the persisted path of the node, so it does not reflect any
+     * transient changes in a session.
+     *
+     * @return the stored path, or null if the index did not store the path
+     */
+    public Path getStoredPath() {
+        return storedPath;
+    }
+
+    private CachedNode node() {
+        if (node == null) {
+            node = workspaceCache.getNode(key);
+            if (node == null) {
+                // The index is out of date ...
+                throw new NodeNotFoundException(key);
+            }
+        }
+        return node;
+    }
+
+    @Override
+    public NodeKey getKey() {
+        return key;
+    }
+
+    @Override
+    public Name getName( NodeCache cache ) {
+        return node().getName(cache);
+    }
+
+    @Override
+    public Segment getSegment( NodeCache cache ) {
+        return node().getSegment(cache);
+    }
+
+    @Override
+    public Path getPath( NodeCache cache ) throws NodeNotFoundException {
+        return node().getPath(cache);
+    }
+
+    @Override
+    public Path getPath( PathCache pathCache ) throws NodeNotFoundException {
+        return node().getPath(pathCache);
+    }
+
+    @Override
+    public int getDepth( NodeCache cache ) throws NodeNotFoundException {
+        return node().getDepth(cache);
+    }
+
+    @Override
+    public NodeKey getParentKey( NodeCache cache ) {
+        return node().getParentKey(cache);
+    }
+
+    @Override
+    public NodeKey getParentKeyInAnyWorkspace( NodeCache cache ) {
+        return node().getParentKeyInAnyWorkspace(cache);
+    }
+
+    @Override
+    public Set<NodeKey> getAdditionalParentKeys( NodeCache cache ) {
+        return node().getAdditionalParentKeys(cache);
+    }
+
+    @Override
+    public Name getPrimaryType( NodeCache cache ) {
+        return node().getPrimaryType(cache);
+    }
+
+    @Override
+    public Set<Name> getMixinTypes( NodeCache cache ) {
+        return node().getMixinTypes(cache);
+    }
+
+    @Override
+    public int getPropertyCount( NodeCache cache ) {
+        return node().getPropertyCount(cache);
+    }
+
+    @Override
+    public boolean hasProperties( NodeCache cache ) {
+        return node().hasProperties(cache);
+    }
+
+    @Override
+    public boolean hasProperty( Name name,
+                                NodeCache cache ) {
+        if (storedProperties.containsKey(name)) {
+            return storedProperties.get(name) != null;
+        }
+        return node().hasProperty(name, cache);
+    }
+
+    @Override
+    public Property getProperty( Name name,
+                                 NodeCache cache ) {
+        if (storedProperties.containsKey(name)) {
+            return storedProperties.get(name);
+        }
+        return node().getProperty(name, cache);
+    }
+
+    @Override
+    public Properties getPropertiesByName( NodeCache cache ) {
+        return node().getPropertiesByName(cache);
+    }
+
+    @Override
+    public Iterator<Property> getProperties( NodeCache cache ) {
+        return node().getProperties(cache);
+    }
+
+    @Override
+    public Iterator<Property> getProperties( Collection<?> namePatterns,
+                                             NodeCache cache ) {
+        return node().getProperties(namePatterns, cache);
+    }
+
+    @Override
+    public ChildReferences getChildReferences( NodeCache cache ) {
+        return node().getChildReferences(cache);
+    }
+
+    @Override
+    public Set<NodeKey> getReferrers( NodeCache cache,
+                                      ReferenceType type ) {
+        return node().getReferrers(cache, type);
+    }
+
+    @Override
+    public ReferrerCounts getReferrerCounts( NodeCache cache ) {
+        return node().getReferrerCounts(cache);
+    }
+
+    @Override
+    public boolean isAtOrBelow( NodeCache cache,
+                                Path path ) {
+        return node().isAtOrBelow(cache, path);
+    }
+
+    @Override
+    public boolean isExcludedFromSearch( NodeCache cache ) {
+        return node().isExcludedFromSearch(cache);
+    }
+
+    @Override
+    public boolean hasACL( NodeCache cache ) {
+        return node().hasACL(cache);
+    }
+
+    @Override
+    public Map<String, Set<String>> getPermissions( NodeCache cache ) {
+        return node().getPermissions(cache);
+    }
+
+    @Override
+    public boolean isExternal( NodeCache cache ) {
+        return node().isExternal(cache);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public boolean equals( Object obj ) {
+        if (obj == this) return true;
+        if (obj instanceof CachedNode) {
+            return key.equals(((CachedNode)obj).getKey());
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return "covered node " + key + (storedPath != null ? " at " + storedPath : "") + " with " + storedProperties.keySet();
+    }
+}
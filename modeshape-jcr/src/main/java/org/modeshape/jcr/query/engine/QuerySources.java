@@ -20,6 +20,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -43,6 +44,7 @@ import org.modeshape.jcr.spi.index.provider.Filter;
 import org.modeshape.jcr.value.Name;
 import org.modeshape.jcr.value.Path;
 import org.modeshape.jcr.value.Path.Segment;
+import org.modeshape.jcr.value.Property;
 import org.modeshape.jcr.value.ValueFactories;
 
 /**
@@ -396,10 +398,22 @@ public class QuerySources {
                     }
                     readBatch();
                 }
-                Batch nextBatch = NodeSequence.batchOfKeys(currentBatch.keys().iterator(), 
-                                                           currentBatch.scores().iterator(),
-                                                           currentBatch.size(),
-                                                           workspaceName, repo);
+                Batch nextBatch = null;
+                Iterable<Map<Name, Property>> storedValues = currentBatch.storedValues();
+                if (storedValues != null) {
+                    // The index stored some of the property values, so use them rather than loading every node ...
+                    Iterable<Path> storedPaths = currentBatch.storedPaths();
+                    Iterator<CachedNode> nodes = coveredNodes(currentBatch.keys().iterator(), storedValues.iterator(),
+                                                              storedPaths != null ? storedPaths.iterator() : null,
+                                                              repo.getWorkspaceCache(workspaceName));
+                    nextBatch = NodeSequence.batchOf(nodes, currentBatch.scores().iterator(), currentBatch.size(),
+                                                     workspaceName);
+                } else {
+                    nextBatch = NodeSequence.batchOfKeys(currentBatch.keys().iterator(),
+                                                         currentBatch.scores().iterator(),
+                                                         currentBatch.size(),
+                                                         workspaceName, repo);
+                }
                 currentBatch = null;
                 return nextBatch;
             }
@@ -435,6 +449,38 @@ public class QuerySources {
         };
     }
 
+    /**
+     * Create an iterator over {@link CoveredNode}s that answer the stored property values directly and that load the actual
+     * node only when other information is needed.
+     * 
+     * @param keys the iterator over the node keys; may not be null
+     * @param storedValues the iterator over the stored values for each node, in the same order as the keys; may not be null
+     * @param storedPaths the iterator over the stored paths of the nodes, in the same order as the keys; may be null if the index
+     *        did not store the paths
+     * @param cache the workspace cache from which the nodes can be loaded; may not be null
+     * @return the iterator over the nodes; never null
+     */
+    protected static Iterator<CachedNode> coveredNodes( final Iterator<NodeKey> keys,
+                                                        final Iterator<Map<Name, Property>> storedValues,
+                                                        final Iterator<Path> storedPaths,
+                                                        final NodeCache cache ) {
+        return new Iterator<CachedNode>() {
+            @Override
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            @Override
+            public CachedNode next() {
+                NodeKey key = keys.next();
+                Map<Name, Property> stored = storedValues.next();
+                Path path = storedPaths != null ? storedPaths.next() : null;
+                if (stored == null) return cache.getNode(key);
+                return new CoveredNode(key, stored, path, cache);
+            }
+        };
+    }
+
     protected static class CompositeNodeFilter implements NodeFilter {
         private final List<NodeFilter> filters;
 
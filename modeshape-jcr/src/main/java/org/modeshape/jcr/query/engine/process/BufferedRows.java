@@ -15,16 +15,26 @@
  */
 package org.modeshape.jcr.query.engine.process;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
 import org.mapdb.Serializer;
 import org.modeshape.jcr.cache.CachedNode;
 import org.modeshape.jcr.cache.CachedNodeSupplier;
 import org.modeshape.jcr.cache.NodeKey;
 import org.modeshape.jcr.query.NodeSequence.Batch;
 import org.modeshape.jcr.query.NodeSequence.RowAccessor;
+import org.modeshape.jcr.query.engine.CoveredNode;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.Property;
 
 /**
  * @author Randall Hauch (rhauch@redhat.com)
@@ -329,6 +339,50 @@ public class BufferedRows {
         return keyStr.length() == 0 ? null : cache.getNode(new NodeKey(keyStr));
     }
 
+    /**
+     * Write the key of the node, and for a {@link CoveredNode} also the values and path that were stored in the index, so that
+     * the node does not have to be loaded when the row is read back.
+     *
+     * @param out the output; may not be null
+     * @param node the node; may be null
+     * @throws IOException if there is a problem writing the node
+     */
+    protected static void serializeNode( DataOutput out,
+                                         CachedNode node ) throws IOException {
+        out.writeUTF(serializeNodeKey(node));
+        if (!(node instanceof CoveredNode)) {
+            out.writeBoolean(false);
+            return;
+        }
+        CoveredNode covered = (CoveredNode)node;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream objects = new ObjectOutputStream(bytes)) {
+            objects.writeObject(new HashMap<>(covered.getStoredProperties()));
+            objects.writeObject(covered.getStoredPath());
+        }
+        out.writeBoolean(true);
+        out.writeInt(bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    @SuppressWarnings( "unchecked" )
+    protected static CachedNode deserializeNode( DataInput in,
+                                                 CachedNodeSupplier cache ) throws IOException {
+        String keyStr = in.readUTF();
+        if (!in.readBoolean()) {
+            return deserializeNodeKey(keyStr, cache);
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        try (ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            Map<Name, Property> storedProperties = (Map<Name, Property>)objects.readObject();
+            Path storedPath = (Path)objects.readObject();
+            return new CoveredNode(new NodeKey(keyStr), storedProperties, storedPath, cache);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
     protected static final class SingleNodeRowSerializer implements BufferedRowFactory<SingleNodeRow>, Serializable {
         private static final long serialVersionUID = 1L;
         private final transient CachedNodeSupplier cache;
@@ -340,16 +394,15 @@ public class BufferedRows {
         @Override
         public void serialize( DataOutput out,
                                SingleNodeRow value ) throws IOException {
-            out.writeUTF(serializeNodeKey(value.getNode()));
+            serializeNode(out, value.getNode());
             out.writeFloat(value.getScore());
         }
 
         @Override
         public SingleNodeRow deserialize( DataInput in,
                                           int available ) throws IOException {
-            String keyStr = in.readUTF();
+            CachedNode node = deserializeNode(in, cache);
             float score = in.readFloat();
-            CachedNode node = deserializeNodeKey(keyStr, cache);
             return new SingleNodeRow(node, score);
         }
 
@@ -380,8 +433,8 @@ public class BufferedRows {
         @Override
         public void serialize( DataOutput out,
                                DoubleNodeRow value ) throws IOException {
-            out.writeUTF(serializeNodeKey(value.getNode()));
-            out.writeUTF(serializeNodeKey(value.getNode(1)));
+            serializeNode(out, value.getNode());
+            serializeNode(out, value.getNode(1));
             out.writeFloat(value.getScore());
             out.writeFloat(value.getScore(1));
         }
@@ -389,8 +442,8 @@ public class BufferedRows {
         @Override
         public DoubleNodeRow deserialize( DataInput in,
                                           int available ) throws IOException {
-            CachedNode node1 = deserializeNodeKey(in.readUTF(), cache);
-            CachedNode node2 = deserializeNodeKey(in.readUTF(), cache);
+            CachedNode node1 = deserializeNode(in, cache);
+            CachedNode node2 = deserializeNode(in, cache);
             return new DoubleNodeRow(node1, node2, in.readFloat(), in.readFloat());
         }
 
@@ -421,9 +474,9 @@ public class BufferedRows {
         @Override
         public void serialize( DataOutput out,
                                TripleNodeRow value ) throws IOException {
-            out.writeUTF(serializeNodeKey(value.getNode()));
-            out.writeUTF(serializeNodeKey(value.getNode(1)));
-            out.writeUTF(serializeNodeKey(value.getNode(2)));
+            serializeNode(out, value.getNode());
+            serializeNode(out, value.getNode(1));
+            serializeNode(out, value.getNode(2));
             out.writeFloat(value.getScore());
             out.writeFloat(value.getScore(1));
             out.writeFloat(value.getScore(2));
@@ -432,9 +485,9 @@ public class BufferedRows {
         @Override
         public TripleNodeRow deserialize( DataInput in,
                                           int available ) throws IOException {
-            CachedNode node1 = deserializeNodeKey(in.readUTF(), cache);
-            CachedNode node2 = deserializeNodeKey(in.readUTF(), cache);
-            CachedNode node3 = deserializeNodeKey(in.readUTF(), cache);
+            CachedNode node1 = deserializeNode(in, cache);
+            CachedNode node2 = deserializeNode(in, cache);
+            CachedNode node3 = deserializeNode(in, cache);
             return new TripleNodeRow(node1, node2, node3, in.readFloat(), in.readFloat(), in.readFloat());
         }
 
@@ -466,10 +519,10 @@ public class BufferedRows {
         @Override
         public void serialize( DataOutput out,
                                QuadNodeRow value ) throws IOException {
-            out.writeUTF(serializeNodeKey(value.getNode()));
-            out.writeUTF(serializeNodeKey(value.getNode(1)));
-            out.writeUTF(serializeNodeKey(value.getNode(2)));
-            out.writeUTF(serializeNodeKey(value.getNode(3)));
+            serializeNode(out, value.getNode());
+            serializeNode(out, value.getNode(1));
+            serializeNode(out, value.getNode(2));
+            serializeNode(out, value.getNode(3));
             out.writeFloat(value.getScore());
             out.writeFloat(value.getScore(1));
             out.writeFloat(value.getScore(2));
@@ -479,10 +532,10 @@ public class BufferedRows {
         @Override
         public QuadNodeRow deserialize( DataInput in,
                                         int available ) throws IOException {
-            CachedNode node1 = deserializeNodeKey(in.readUTF(), cache);
-            CachedNode node2 = deserializeNodeKey(in.readUTF(), cache);
-            CachedNode node3 = deserializeNodeKey(in.readUTF(), cache);
-            CachedNode node4 = deserializeNodeKey(in.readUTF(), cache);
+            CachedNode node1 = deserializeNode(in, cache);
+            CachedNode node2 = deserializeNode(in, cache);
+            CachedNode node3 = deserializeNode(in, cache);
+            CachedNode node4 = deserializeNode(in, cache);
             return new QuadNodeRow(node1, node2, node3, node4, in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat());
         }
 
@@ -518,7 +571,7 @@ public class BufferedRows {
         public void serialize( DataOutput out,
                                MultiNodeRow value ) throws IOException {
             for (int i = 0; i != width; ++i) {
-                out.writeUTF(serializeNodeKey(value.getNode(i)));
+                serializeNode(out, value.getNode(i));
                 out.writeFloat(value.getScore(i));
             }
         }
@@ -529,7 +582,7 @@ public class BufferedRows {
             CachedNode[] nodes = new CachedNode[width];
             float[] scores = new float[width];
             for (int i = 0; i != width; ++i) {
-                nodes[i] = deserializeNodeKey(in.readUTF(), cache);
+                nodes[i] = deserializeNode(in, cache);
                 scores[i] = in.readFloat();
             }
             return new MultiNodeRow(nodes, scores);
@@ -0,0 +1,72 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.spi.index.provider;
+
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Path;
+
+/**
+ * Interface which should be implemented by {@link ProvidedIndex} instances that are able to store, for each indexed node, the
+ * values of the additional properties listed in the index definition's
+ * {@link org.modeshape.jcr.RepositoryConfiguration.FieldName#STORED_COLUMNS stored columns}. Such indexes should return these
+ * values from {@link Filter.ResultBatch#storedValues()}, which allows the query engine to evaluate projections, orderings and
+ * criteria on those properties without loading the nodes.
+ * 
+ * @since 5.5
+ */
+public interface CoveringIndex {
+
+    /**
+     * Store (or replace) the values of a stored column for the given node.
+     *
+     * @param nodeKey a {@link org.modeshape.jcr.cache.NodeKey} instance, never {@code null}
+     * @param propertyName the name of the stored column's property, never {@code null}
+     * @param values the values of the property; may be null or empty if the node no longer has the property
+     */
+    void storeValues( String nodeKey,
+                      String propertyName,
+                      Object[] values );
+
+    /**
+     * Remove all of the stored column values for the given node.
+     *
+     * @param nodeKey a {@link org.modeshape.jcr.cache.NodeKey} instance, never {@code null}
+     */
+    void removeStoredValues( String nodeKey );
+
+    /**
+     * Store (or replace) the path of the given node, which may be returned from {@link Filter.ResultBatch#storedPaths()} so that
+     * the query engine can check the permissions on the node without loading it.
+     *
+     * @param nodeKey a {@link org.modeshape.jcr.cache.NodeKey} instance, never {@code null}
+     * @param path the current path of the node, never {@code null}
+     */
+    void storePath( String nodeKey,
+                    Path path );
+
+    /**
+     * Forget the stored paths of the children of the given parent with the given name and a same-name-sibling index of at least
+     * {@code fromIndex}, and of all of their descendants. This is called whenever the paths of these nodes may have changed,
+     * such as when a node with the same name is moved, renamed, reordered or removed.
+     *
+     * @param parentPath the path of the parent, never {@code null}
+     * @param childName the name of the children, never {@code null}
+     * @param fromIndex the lowest same-name-sibling index of the children whose paths may have changed
+     */
+    void invalidatePaths( Path parentPath,
+                          Name childName,
+                          int fromIndex );
+}
@@ -17,9 +17,13 @@
 package org.modeshape.jcr.spi.index.provider;
 
 import java.util.Iterator;
+import java.util.Map;
 import org.modeshape.common.collection.EmptyIterator;
 import org.modeshape.jcr.cache.NodeKey;
 import org.modeshape.jcr.spi.index.IndexConstraints;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.Property;
 
 /**
  * A simple filter that takes constraints as input and returns a results object that lazily returns (in batches) those nodes that
@@ -128,6 +132,30 @@ public interface Filter {
          */
         boolean hasNext();
 
+        /**
+         * Returns an {@link Iterable} over the values of the index's stored columns for each of the matched nodes. This should
+         * have the same order as {@link #keys()}, and each map contains an entry for every stored column, keyed by the property
+         * name, with a null value when the node does not have that property.
+         * 
+         * @return an iterable instance, or {@code null} if this batch does not contain any stored values (the default)
+         * @see CoveringIndex
+         */
+        default Iterable<Map<Name, Property>> storedValues() {
+            return null;
+        }
+
+        /**
+         * Returns an {@link Iterable} over the paths of the matched nodes as they were when the nodes were last indexed, in the
+         * same order as {@link #keys()}. A path may be null when the index does not know the current path of a node (for example,
+         * because one of its ancestors was moved since it was indexed).
+         * 
+         * @return an iterable instance, or {@code null} if this batch does not contain any stored paths (the default)
+         * @see CoveringIndex
+         */
+        default Iterable<Path> storedPaths() {
+            return null;
+        }
+
         /**
          * Returns the total number of node keys in this batch.
          * 
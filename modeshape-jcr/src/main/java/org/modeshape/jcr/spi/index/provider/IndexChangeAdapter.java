@@ -21,6 +21,7 @@ import org.modeshape.common.logging.Logger;
 import org.modeshape.jcr.ExecutionContext;
 import org.modeshape.jcr.cache.CachedNode.Properties;
 import org.modeshape.jcr.cache.NodeKey;
+import org.modeshape.jcr.cache.change.ChangeSet;
 import org.modeshape.jcr.cache.change.ChangeSetAdapter;
 import org.modeshape.jcr.value.Name;
 import org.modeshape.jcr.value.Path;
@@ -36,6 +37,7 @@ public abstract class IndexChangeAdapter extends ChangeSetAdapter {
     protected final String workspaceName;
     protected final ProvidedIndex<?> index;
     protected final Logger logger;
+    private boolean commitDeferred;
 
     protected IndexChangeAdapter( ExecutionContext context,
                                   String workspaceName,
@@ -94,14 +96,40 @@ public abstract class IndexChangeAdapter extends ChangeSetAdapter {
         return (ProvidedIndex<T>)index;
     }
 
+    /**
+     * Apply the changes in the supplied change set to the index without committing them. The caller is responsible for
+     * subsequently {@link ProvidedIndex#commit() committing} the index, which allows the changes in multiple change sets to be
+     * committed at once. This method must not be called concurrently with itself or {@link #notify}.
+     *
+     * @param changeSet the changes; may not be null
+     */
+    public void notifyWithoutCommit( ChangeSet changeSet ) {
+        commitDeferred = true;
+        try {
+            notify(changeSet);
+        } finally {
+            commitDeferred = false;
+        }
+    }
+
+    /**
+     * Determine whether the changes currently being applied should be left uncommitted.
+     *
+     * @return true if the index should not be committed after the current change set, or false otherwise
+     * @see #notifyWithoutCommit(ChangeSet)
+     */
+    protected final boolean isCommitDeferred() {
+        return commitDeferred;
+    }
+
     @Override
     protected void completeChanges() {
-        index.commit();
+        if (!commitDeferred) index.commit();
     }
 
     @Override
     protected void completeWorkspaceChanges() {
-        index.commit();
+        if (!commitDeferred) index.commit();
     }
 
     @Override
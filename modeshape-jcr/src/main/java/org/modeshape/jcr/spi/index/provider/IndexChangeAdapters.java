@@ -29,7 +29,13 @@ import org.modeshape.jcr.ModeShapeLexicon;
 import org.modeshape.jcr.cache.CachedNode.Properties;
 import org.modeshape.jcr.cache.NodeKey;
 import org.modeshape.jcr.cache.change.AbstractPropertyChange;
+import org.modeshape.jcr.cache.change.Change;
+import org.modeshape.jcr.cache.change.ChangeSet;
 import org.modeshape.jcr.cache.change.ChangeSetAdapter.NodeTypePredicate;
+import org.modeshape.jcr.cache.change.NodeMoved;
+import org.modeshape.jcr.cache.change.NodeRemoved;
+import org.modeshape.jcr.cache.change.NodeRenamed;
+import org.modeshape.jcr.cache.change.NodeReordered;
 import org.modeshape.jcr.cache.change.PropertyAdded;
 import org.modeshape.jcr.cache.change.PropertyChanged;
 import org.modeshape.jcr.cache.change.PropertyRemoved;
@@ -262,9 +268,213 @@ public class IndexChangeAdapters {
         return new TextPropertyChangeAdapter(context, matcher, workspaceName, propertyName, factory,index);
     }
 
+    /**
+     * Create an {@link IndexChangeAdapter} implementation that maintains the values of the stored columns of a
+     * {@link CoveringIndex}, and which delegates all of the other index changes to the supplied adapter.
+     *
+     * @param context the execution context; may not be null
+     * @param matcher the node type matcher used to determine which nodes should be included in the index; may not be null
+     * @param workspaceName the name of the workspace; may not be null
+     * @param index the covering index that should be used; may not be null
+     * @param storedColumns the value factories for the stored columns keyed by the name of their properties; may not be null
+     * or empty
+     * @param delegate the adapter which handles the changes to the indexed columns; may not be null
+     * @return the new {@link IndexChangeAdapter}; never null
+     */
+    public static IndexChangeAdapter forStoredColumns( ExecutionContext context,
+                                                       NodeTypePredicate matcher,
+                                                       String workspaceName,
+                                                       ProvidedIndex<?> index,
+                                                       Map<Name, ValueFactory<?>> storedColumns,
+                                                       IndexChangeAdapter delegate ) {
+        return new StoredColumnsChangeAdapter(context, matcher, workspaceName, index, storedColumns, delegate);
+    }
+
     private IndexChangeAdapters() {
     }
     
+    protected static final class StoredColumnsChangeAdapter extends IndexChangeAdapter {
+        private final Map<Name, ValueFactory<?>> storedColumns;
+        private final IndexChangeAdapter delegate;
+
+        protected StoredColumnsChangeAdapter( ExecutionContext context,
+                                              NodeTypePredicate matcher,
+                                              String workspaceName,
+                                              ProvidedIndex<?> index,
+                                              Map<Name, ValueFactory<?>> storedColumns,
+                                              IndexChangeAdapter delegate ) {
+            super(context, workspaceName, matcher, index);
+            assert index instanceof CoveringIndex;
+            assert storedColumns != null && !storedColumns.isEmpty();
+            assert delegate != null;
+            this.storedColumns = storedColumns;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void notify( ChangeSet changeSet ) {
+            // first record the stored values and paths (without committing), and then let the delegate update the indexed
+            // columns and commit all the changes at once ...
+            super.notify(changeSet);
+            String workspaceName = changeSet.getWorkspaceName();
+            if (workspaceName != null && includesWorkspace(workspaceName)) {
+                invalidatePaths(changeSet);
+            }
+            if (isCommitDeferred()) {
+                delegate.notifyWithoutCommit(changeSet);
+            } else {
+                delegate.notify(changeSet);
+            }
+        }
+
+        /**
+         * Forget the stored paths of all the nodes whose paths may have been changed by a move, rename, reorder or removal of
+         * another node, regardless of the type of that node. These are its same-name siblings (whose indexes may have shifted)
+         * and its descendants.
+         *
+         * @param changeSet the changes; may not be null
+         */
+        private void invalidatePaths( ChangeSet changeSet ) {
+            for (Change change : changeSet) {
+                if (change instanceof NodeRemoved) {
+                    invalidatePaths(((NodeRemoved)change).getPath(), 0);
+                } else if (change instanceof NodeMoved) {
+                    NodeMoved moved = (NodeMoved)change;
+                    invalidatePaths(moved.getOldPath(), 0);
+                    invalidatePaths(moved.getNewPath(), 1);
+                } else if (change instanceof NodeRenamed) {
+                    NodeRenamed renamed = (NodeRenamed)change;
+                    Path newPath = renamed.getPath();
+                    if (!newPath.isRoot()) {
+                        Path.Segment oldSegment = renamed.getOldSegment();
+                        coveringIndex().invalidatePaths(newPath.getParent(), oldSegment.getName(), oldSegment.getIndex());
+                    }
+                    invalidatePaths(newPath, 1);
+                } else if (change instanceof NodeReordered) {
+                    Path path = ((NodeReordered)change).getPath();
+                    if (!path.isRoot()) {
+                        coveringIndex().invalidatePaths(path.getParent(), path.getLastSegment().getName(), 1);
+                    }
+                }
+            }
+        }
+
+        private void invalidatePaths( Path path,
+                                      int offset ) {
+            if (path == null || path.isRoot()) {
+                return;
+            }
+            Path.Segment segment = path.getLastSegment();
+            coveringIndex().invalidatePaths(path.getParent(), segment.getName(), segment.getIndex() + offset);
+        }
+
+        @Override
+        protected void completeChanges() {
+            // the delegate commits the changes ...
+        }
+
+        @Override
+        protected void completeWorkspaceChanges() {
+            // the delegate commits the changes ...
+        }
+
+        @Override
+        protected void modifyProperties( NodeKey key,
+                                         Name primaryType,
+                                         Set<Name> mixinTypes,
+                                         Map<Name, AbstractPropertyChange> propChanges ) {
+            for (Map.Entry<Name, ValueFactory<?>> entry : storedColumns.entrySet()) {
+                AbstractPropertyChange propChange = propChanges.get(entry.getKey());
+                if (propChange instanceof PropertyRemoved) {
+                    store(key, entry.getKey(), null, entry.getValue());
+                } else if (propChange != null) {
+                    store(key, entry.getKey(), propChange.getProperty(), entry.getValue());
+                }
+            }
+        }
+
+        @Override
+        protected void addNode( String workspaceName,
+                                NodeKey key,
+                                Path path,
+                                Name primaryType,
+                                Set<Name> mixinTypes,
+                                Properties properties ) {
+            coveringIndex().storePath(nodeKey(key), path);
+        }
+
+        @Override
+        protected void moveNode( String workspaceName,
+                                 NodeKey key,
+                                 Name primaryType,
+                                 Set<Name> mixinTypes,
+                                 NodeKey oldParent,
+                                 NodeKey newParent,
+                                 Path newPath,
+                                 Path oldPath ) {
+            coveringIndex().storePath(nodeKey(key), newPath);
+        }
+
+        @Override
+        protected void renameNode( String workspaceName,
+                                   NodeKey key,
+                                   Path newPath,
+                                   Path.Segment oldSegment,
+                                   Name primaryType,
+                                   Set<Name> mixinTypes ) {
+            coveringIndex().storePath(nodeKey(key), newPath);
+        }
+
+        @Override
+        protected void removeNode( String workspaceName,
+                                   NodeKey key,
+                                   NodeKey parentKey,
+                                   Path path,
+                                   Name primaryType,
+                                   Set<Name> mixinTypes ) {
+            coveringIndex().removeStoredValues(nodeKey(key));
+        }
+
+        @Override
+        protected void reindexNode( String workspaceName,
+                                    NodeKey key,
+                                    Path path,
+                                    Name primaryType,
+                                    Set<Name> mixinTypes,
+                                    Properties properties,
+                                    boolean queryable ) {
+            delegate.reindex(workspaceName, key, path, primaryType, mixinTypes, properties, queryable);
+            coveringIndex().removeStoredValues(nodeKey(key));
+            if (!queryable || properties == null) {
+                return;
+            }
+            coveringIndex().storePath(nodeKey(key), path);
+            for (Map.Entry<Name, ValueFactory<?>> entry : storedColumns.entrySet()) {
+                Property property = properties.getProperty(entry.getKey());
+                if (property != null) {
+                    store(key, entry.getKey(), property, entry.getValue());
+                }
+            }
+        }
+
+        private void store( NodeKey key,
+                            Name propertyName,
+                            Property property,
+                            ValueFactory<?> valueFactory ) {
+            Object[] values = property == null || property.isEmpty() ? null : property.getValuesAsArray(valueFactory);
+            coveringIndex().storeValues(nodeKey(key), propertyName.getString(context.getNamespaceRegistry()), values);
+        }
+
+        private CoveringIndex coveringIndex() {
+            return (CoveringIndex)index;
+        }
+
+        @Override
+        public String toString() {
+            return delegate + " storing " + storedColumns.keySet();
+        }
+    }
+    
     protected static class MultiColumnChangeAdapter extends IndexChangeAdapter {
         private List<PathBasedChangeAdapter<?>> pathAdapters;
         private List<AbstractPropertyChangeAdapter<?>> propertyAdapters;
@@ -40,6 +40,7 @@ import org.modeshape.jcr.JcrI18n;
 import org.modeshape.jcr.JcrLexicon;
 import org.modeshape.jcr.ModeShapeLexicon;
 import org.modeshape.jcr.NodeTypes;
+import org.modeshape.jcr.RepositoryStatistics;
 import org.modeshape.jcr.api.Logger;
 import org.modeshape.jcr.api.index.IndexColumnDefinition;
 import org.modeshape.jcr.api.index.IndexDefinition;
@@ -129,6 +130,16 @@ public abstract class IndexProvider {
      * The default number of rows in a batch.
      */
     public static final int DEFAULT_BATCH_SIZE = 100;
+
+    /**
+     * The default maximum number of change sets that are applied to an asynchronous index before it is committed.
+     */
+    public static final int DEFAULT_ASYNCHRONOUS_COMMIT_BATCH_SIZE = 1000;
+
+    /**
+     * The default number of milliseconds that changes are collected before they are applied to asynchronous indexes.
+     */
+    public static final long DEFAULT_ASYNCHRONOUS_COMMIT_DELAY_IN_MILLIS = 100L;
     
     private final static IndexWriter EMPTY_WRITER = NoOpQueryIndexWriter.INSTANCE;
 
@@ -152,6 +163,11 @@ public abstract class IndexProvider {
      */
     private Environment environment;
 
+    /**
+     * The statistics of the repository, set via reflection
+     */
+    private RepositoryStatistics statistics;
+
     /**
      * The name of the repository that owns this provider, set via reflection
      */
@@ -162,6 +178,18 @@ public abstract class IndexProvider {
      */
     private String systemWorkspaceName;
 
+    /**
+     * The pipeline that updates the asynchronous indexes, created when the first asynchronous index is registered.
+     */
+    @GuardedBy( "this" )
+    private IndexUpdatePipeline updatePipeline;
+
+    /**
+     * The change bus with which the {@link #updatePipeline} is registered.
+     */
+    @GuardedBy( "this" )
+    private ChangeBus updatePipelineBus;
+
     /**
      * A flag that tracks whether {@link #initialize()} has been called.
      */
@@ -264,6 +292,38 @@ public abstract class IndexProvider {
         return DEFAULT_BATCH_SIZE;
     }
 
+    /**
+     * Get the maximum number of change sets that are applied to an asynchronous index before the index is committed. Change sets
+     * that are saved in quick succession are applied to each asynchronous index together and then committed once.
+     *
+     * @return the maximum number of change sets in each commit; must be positive
+     */
+    protected int asynchronousCommitBatchSize() {
+        return DEFAULT_ASYNCHRONOUS_COMMIT_BATCH_SIZE;
+    }
+
+    /**
+     * Get the number of milliseconds that changes are collected before they are applied to and committed in each asynchronous
+     * index. Larger values result in fewer commits but greater lag between saving changes and those changes being visible in
+     * asynchronous indexes.
+     *
+     * @return the delay in milliseconds; may be 0 if changes should be applied as soon as possible
+     */
+    protected long asynchronousCommitDelayInMillis() {
+        return DEFAULT_ASYNCHRONOUS_COMMIT_DELAY_IN_MILLIS;
+    }
+
+    /**
+     * Get the time of the oldest change which was sent to this provider's asynchronous indexes, but which has not yet been
+     * applied to and committed in them. Providers that persist their indexes can use this to determine the time up to which
+     * the persisted indexes contain all of the changes.
+     *
+     * @return the time in UTC milliseconds, or null if there is no such change
+     */
+    protected final synchronized Long getOldestPendingChangeTime() {
+        return updatePipeline != null ? updatePipeline.oldestPendingChangeTime() : null;
+    }
+
     /**
      * Get all the index definition names belonging to this provider. 
      * 
@@ -350,6 +410,13 @@ public abstract class IndexProvider {
 
         delegateWriter = NoOpQueryIndexWriter.INSTANCE;
         try {
+            // Apply and commit any changes that are still queued for the asynchronous indexes ...
+            if (updatePipeline != null) {
+                updatePipelineBus.unregister(updatePipeline);
+                updatePipeline.shutdown();
+                updatePipeline = null;
+                updatePipelineBus = null;
+            }
             // Shutdown each of the provided indexes ...
             for (Map<String, AtomicIndex> byWorkspaceName : providedIndexesByWorkspaceNameByIndexName.values()) {
                 for (AtomicIndex provided : byWorkspaceName.values()) {
@@ -1410,8 +1477,19 @@ public abstract class IndexProvider {
             // 'notify' method returns), and the "in-thread" behavior is what does this ...
             observable.registerInThread(index);
         } else {
-            // The index is to be updated asynchronously, so use a normal listener ...
-            observable.register(index);
+            // The index is to be updated asynchronously, so use the pipeline that batches the changes for all of the
+            // asynchronous indexes and commits each index only periodically ...
+            if (updatePipeline == null) {
+                ExecutionContext context = context();
+                int threads = Runtime.getRuntime().availableProcessors();
+                updatePipeline = new IndexUpdatePipeline(context.getCachedTreadPool("modeshape-index-updates", threads),
+                                                         context.getScheduledThreadPool("modeshape-index-commits"),
+                                                         statistics, asynchronousCommitBatchSize(),
+                                                         asynchronousCommitDelayInMillis());
+                updatePipelineBus = observable;
+                observable.register(updatePipeline);
+            }
+            updatePipeline.register(index);
         }
     }
 
@@ -1419,7 +1497,9 @@ public abstract class IndexProvider {
     private void removeProvidedIndex( AtomicIndex index,
                                       ChangeBus observable ) {
         try {
-            observable.unregister(index);
+            if (updatePipeline == null || !updatePipeline.unregister(index)) {
+                observable.unregister(index);
+            }
             removeIndex(index.indexDefinition(), index.managed(), index.workspaceName());
         } catch (RuntimeException e) {
             String msg = "Error removing index '{0}' in workspace '{1}' with definition: {2}";
@@ -1446,7 +1526,7 @@ public abstract class IndexProvider {
      * @author Randall Hauch (rhauch@redhat.com)
      */
     @ThreadSafe
-    private final class AtomicIndex implements Index, ChangeSetListener {
+    private final class AtomicIndex implements Index, ChangeSetListener, IndexUpdatePipeline.Target {
         private final String workspaceName;
         private volatile ManagedIndex managedIndex;
         private volatile IndexDefinition defn;
@@ -1466,10 +1546,16 @@ public abstract class IndexProvider {
             return defn;
         }
 
-        protected final String workspaceName() {
+        @Override
+        public final String workspaceName() {
             return workspaceName;
         }
 
+        @Override
+        public IndexChangeAdapter adapter() {
+            return managedIndex.getIndexChangeAdapter();
+        }
+
         @Override
         public final String getProviderName() {
             return IndexProvider.this.getName();
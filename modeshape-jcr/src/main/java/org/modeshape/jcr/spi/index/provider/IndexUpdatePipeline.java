@@ -0,0 +1,317 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.spi.index.provider;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.common.logging.Logger;
+import org.modeshape.jcr.JcrI18n;
+import org.modeshape.jcr.RepositoryStatistics;
+import org.modeshape.jcr.api.monitor.ValueMetric;
+import org.modeshape.jcr.cache.change.ChangeSet;
+import org.modeshape.jcr.cache.change.ChangeSetListener;
+
+/**
+ * The stage that updates all of the asynchronous indexes of a provider. It is registered once with the change bus, and queues
+ * each {@link ChangeSet} for every index in the change set's workspace. Each queue is drained by a worker thread that applies
+ * all of the pending change sets to the index and then {@link ProvidedIndex#commit() commits} the index once, so that a burst of
+ * small saves results in a single commit per index rather than one commit per save. A queue is drained no sooner than the
+ * commit delay after the first change set is queued, and the index is also committed whenever the number of applied but
+ * uncommitted change sets reaches the maximum batch size.
+ */
+@ThreadSafe
+final class IndexUpdatePipeline implements ChangeSetListener {
+
+    /**
+     * An index that is updated by the pipeline.
+     */
+    interface Target {
+        /**
+         * Get the name of the index.
+         *
+         * @return the name; never null
+         */
+        String getName();
+
+        /**
+         * Get the name of the workspace whose content is indexed.
+         *
+         * @return the workspace name; never null
+         */
+        String workspaceName();
+
+        /**
+         * Get the current adapter that applies changes to the index.
+         *
+         * @return the adapter; never null
+         */
+        IndexChangeAdapter adapter();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(IndexUpdatePipeline.class);
+
+    private final Map<Target, IndexQueue> queues = new ConcurrentHashMap<>();
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler;
+    private final RepositoryStatistics statistics;
+    private final int maxBatchSize;
+    private final long commitDelayInMillis;
+    private final AtomicLong queueSize = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * Create a new pipeline.
+     *
+     * @param workers the executor used to apply the changes; may not be null
+     * @param scheduler the executor used to delay the draining of the queues; may not be null
+     * @param statistics the repository statistics used to record the queue size and indexing lag; may be null
+     * @param maxBatchSize the maximum number of change sets applied to an index before it is committed; must be positive
+     * @param commitDelayInMillis the number of milliseconds to wait for more changes before applying and committing them; may
+     *        be 0
+     */
+    IndexUpdatePipeline( ExecutorService workers,
+                         ScheduledExecutorService scheduler,
+                         RepositoryStatistics statistics,
+                         int maxBatchSize,
+                         long commitDelayInMillis ) {
+        assert workers != null;
+        assert scheduler != null;
+        assert maxBatchSize > 0;
+        assert commitDelayInMillis >= 0L;
+        this.workers = workers;
+        this.scheduler = scheduler;
+        this.statistics = statistics;
+        this.maxBatchSize = maxBatchSize;
+        this.commitDelayInMillis = commitDelayInMillis;
+    }
+
+    /**
+     * Start updating the supplied index.
+     *
+     * @param target the index; may not be null
+     */
+    void register( Target target ) {
+        queues.putIfAbsent(target, new IndexQueue(target));
+    }
+
+    /**
+     * Stop updating the supplied index, after applying and committing any changes that are already queued for it.
+     *
+     * @param target the index; may not be null
+     * @return true if the index was registered, or false otherwise
+     */
+    boolean unregister( Target target ) {
+        IndexQueue queue = queues.remove(target);
+        if (queue == null) return false;
+        queue.drain();
+        return true;
+    }
+
+    /**
+     * Apply and commit all of the queued changes, and stop accepting new changes.
+     */
+    void shutdown() {
+        running = false;
+        for (IndexQueue queue : queues.values()) {
+            queue.drain();
+        }
+        queues.clear();
+    }
+
+    @Override
+    public void notify( ChangeSet changeSet ) {
+        String workspaceName = changeSet.getWorkspaceName();
+        if (workspaceName == null || !running) {
+            // Indexes only care about changes in the content of a workspace ...
+            return;
+        }
+        for (IndexQueue queue : queues.values()) {
+            if (workspaceName.equals(queue.target.workspaceName())) {
+                queue.add(changeSet);
+            }
+        }
+    }
+
+    /**
+     * Get the time of the oldest change set which was queued for one of the indexes, but which has not yet been applied to and
+     * committed in that index.
+     *
+     * @return the time in UTC milliseconds, or null if all of the queued change sets have been committed
+     */
+    Long oldestPendingChangeTime() {
+        long oldest = Long.MAX_VALUE;
+        for (IndexQueue queue : queues.values()) {
+            oldest = Math.min(oldest, queue.oldestPendingChangeTime());
+        }
+        return oldest != Long.MAX_VALUE ? oldest : null;
+    }
+
+    protected void recordQueueSize( long delta ) {
+        long size = queueSize.addAndGet(delta);
+        if (statistics != null) {
+            statistics.set(ValueMetric.INDEX_UPDATE_QUEUE_SIZE, size);
+        }
+    }
+
+    protected void recordLag( long lagInMillis ) {
+        if (statistics != null) {
+            statistics.set(ValueMetric.INDEX_UPDATE_LAG, lagInMillis);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "IndexUpdatePipeline" + queues.keySet();
+    }
+
+    /**
+     * The change sets that are waiting to be applied to a single index.
+     */
+    protected final class IndexQueue {
+        protected final Target target;
+        private final Queue<ChangeSet> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private final Lock lock = new ReentrantLock();
+        /**
+         * The time of the oldest change set which was applied but not yet committed, or {@link Long#MAX_VALUE} if there is none.
+         * A change set is only removed from the pending queue after it has been counted here.
+         */
+        private volatile long oldestUncommittedTime = Long.MAX_VALUE;
+
+        protected IndexQueue( Target target ) {
+            this.target = target;
+        }
+
+        protected void add( ChangeSet changeSet ) {
+            pending.add(changeSet);
+            recordQueueSize(1L);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!scheduled.compareAndSet(false, true)) {
+                // the queue will already be drained ...
+                return;
+            }
+            try {
+                if (commitDelayInMillis > 0L) {
+                    scheduler.schedule(() -> workers.execute(this::drainAndReschedule), commitDelayInMillis,
+                                       TimeUnit.MILLISECONDS);
+                } else {
+                    workers.execute(this::drainAndReschedule);
+                }
+            } catch (RejectedExecutionException e) {
+                // The executors are being shut down, so apply the changes in this thread ...
+                drainAndReschedule();
+            }
+        }
+
+        private void drainAndReschedule() {
+            try {
+                drain();
+            } finally {
+                scheduled.set(false);
+            }
+            if (!pending.isEmpty()) {
+                // more changes arrived after the queue was drained ...
+                schedule();
+            }
+        }
+
+        protected long oldestPendingChangeTime() {
+            // Look at the queue first, since its head is only removed once it is counted as uncommitted ...
+            ChangeSet next = pending.peek();
+            long oldest = oldestUncommittedTime;
+            return next != null ? Math.min(oldest, next.getTimestamp().getMilliseconds()) : oldest;
+        }
+
+        protected void drain() {
+            lock.lock();
+            try {
+                IndexChangeAdapter adapter = null;
+                ChangeSet oldestUncommitted = null;
+                int uncommitted = 0;
+                ChangeSet changeSet = null;
+                while ((changeSet = pending.peek()) != null) {
+                    try {
+                        IndexChangeAdapter current = target.adapter();
+                        if (current != adapter && uncommitted > 0) {
+                            // The index was replaced, so commit what was applied to the previous one ...
+                            commit(adapter, oldestUncommitted, uncommitted);
+                            oldestUncommitted = null;
+                            uncommitted = 0;
+                        }
+                        adapter = current;
+                        adapter.notifyWithoutCommit(changeSet);
+                    } catch (RuntimeException e) {
+                        LOGGER.error(e, JcrI18n.errorUpdatingIndex, target.getName(), target.workspaceName(), e.getMessage());
+                        // The change set was not applied, so it is not counted as being committed ...
+                        removeHead();
+                        continue;
+                    }
+                    if (oldestUncommitted == null) {
+                        oldestUncommitted = changeSet;
+                        oldestUncommittedTime = changeSet.getTimestamp().getMilliseconds();
+                    }
+                    removeHead();
+                    if (++uncommitted >= maxBatchSize) {
+                        commit(adapter, oldestUncommitted, uncommitted);
+                        oldestUncommitted = null;
+                        uncommitted = 0;
+                    }
+                }
+                if (uncommitted > 0) {
+                    commit(adapter, oldestUncommitted, uncommitted);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void removeHead() {
+            pending.poll();
+            recordQueueSize(-1L);
+        }
+
+        private void commit( IndexChangeAdapter adapter,
+                             ChangeSet oldestUncommitted,
+                             int count ) {
+            assert adapter != null;
+            try {
+                adapter.index.commit();
+            } catch (RuntimeException e) {
+                LOGGER.error(e, JcrI18n.errorUpdatingIndex, target.getName(), target.workspaceName(), e.getMessage());
+                return;
+            }
+            oldestUncommittedTime = Long.MAX_VALUE;
+            long lag = System.currentTimeMillis() - oldestUncommitted.getTimestamp().getMilliseconds();
+            recordLag(Math.max(0L, lag));
+            LOGGER.trace("Committed {0} change set(s) to index '{1}' in workspace '{2}' with a lag of {3} ms", count,
+                         target.getName(), target.workspaceName(), lag);
+        }
+    }
+}
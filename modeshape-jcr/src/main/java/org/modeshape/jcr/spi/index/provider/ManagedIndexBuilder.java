@@ -16,12 +16,18 @@
 package org.modeshape.jcr.spi.index.provider;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import org.modeshape.common.annotation.Immutable;
 import org.modeshape.jcr.ExecutionContext;
 import org.modeshape.jcr.JcrLexicon;
 import org.modeshape.jcr.ModeShapeLexicon;
 import org.modeshape.jcr.NodeTypes;
+import org.modeshape.jcr.RepositoryConfiguration.FieldName;
 import org.modeshape.jcr.api.index.IndexColumnDefinition;
 import org.modeshape.jcr.api.index.IndexDefinition;
 import org.modeshape.jcr.cache.change.ChangeSetAdapter;
@@ -51,6 +57,8 @@ import org.modeshape.jcr.value.ValueFactory;
 @Immutable
 public abstract class ManagedIndexBuilder {
 
+    private static final Pattern STORED_COLUMN_PATTERN = Pattern.compile("([^(,]+)[(]([^),]+)[)]");
+
     protected final ExecutionContext context;
     protected final IndexDefinition defn;
     protected final NodeTypes.Supplier nodeTypesSupplier;
@@ -176,9 +184,42 @@ public abstract class ManagedIndexBuilder {
                                      changeAdapters.get(0) :
                                      IndexChangeAdapters.forMultipleColumns(context, matcher, workspaceName, index,
                                                                             changeAdapters);
+        Map<Name, PropertyType> storedColumns = storedColumns();
+        if (!storedColumns.isEmpty() && index instanceof CoveringIndex) {
+            Map<Name, ValueFactory<?>> factories = new LinkedHashMap<>();
+            storedColumns.forEach((name, type) -> factories.put(name, context.getValueFactories().getValueFactory(type)));
+            adapter = IndexChangeAdapters.forStoredColumns(context, matcher, workspaceName, index, factories, adapter);
+        }
         return new DefaultManagedIndex(index, adapter);
     }
 
+    /**
+     * Get the additional, non-indexed columns whose values should be stored in the index, as declared by the
+     * {@link FieldName#STORED_COLUMNS} property of the index definition. The property uses the same format as the index columns,
+     * e.g. "jcr:title(STRING),acme:size(LONG)".
+     *
+     * @return the types of the stored columns keyed by their property names, in the declared order; never null but possibly
+     * empty
+     * @throws IllegalArgumentException if the stored columns are not properly defined
+     */
+    protected Map<Name, PropertyType> storedColumns() {
+        Object value = defn.getIndexProperty(FieldName.STORED_COLUMNS);
+        if (value == null || value.toString().trim().length() == 0) {
+            return Collections.emptyMap();
+        }
+        Map<Name, PropertyType> result = new LinkedHashMap<>();
+        for (String columnDefn : value.toString().split(",")) {
+            if (columnDefn.trim().length() == 0) continue;
+            Matcher matcher = STORED_COLUMN_PATTERN.matcher(columnDefn);
+            if (!matcher.find()) {
+                throw new IllegalArgumentException("Invalid stored column '" + columnDefn + "' on: " + defn);
+            }
+            PropertyType type = PropertyType.valueFor(matcher.group(2).trim());
+            result.put(name(matcher.group(1).trim()), determineActualPropertyType(type));
+        }
+        return result;
+    }
+
     protected boolean isPrimaryTypeIndex( IndexColumnDefinition columnDefn, PropertyType type ) {
         return matches(columnDefn, JcrLexicon.PRIMARY_TYPE) && isType(type, PropertyType.NAME);
     }
@@ -223,7 +264,10 @@ public abstract class ManagedIndexBuilder {
     }
 
     protected static PropertyType determineActualPropertyType( IndexColumnDefinition columnDefn ) {
-        PropertyType type = PropertyType.valueFor(columnDefn.getColumnType());
+        return determineActualPropertyType(PropertyType.valueFor(columnDefn.getColumnType()));
+    }
+
+    protected static PropertyType determineActualPropertyType( PropertyType type ) {
         switch (type) {
             case BOOLEAN:
             case DATE:
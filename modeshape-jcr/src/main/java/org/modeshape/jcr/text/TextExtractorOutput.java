@@ -21,7 +21,8 @@ import org.modeshape.jcr.api.text.TextExtractor;
 
 /**
  * A {@link org.modeshape.jcr.api.text.TextExtractor.Output} implementation which appends each incoming text into a buffer,
- * separating the content via the configured separator.
+ * separating the content via the configured separator. The buffer can be limited to a maximum number of characters, beyond which
+ * any recorded text is discarded so that very large documents do not exhaust the memory.
  *
  * @author Horia Chiorean
  */
@@ -31,21 +32,57 @@ public final class TextExtractorOutput implements TextExtractor.Output {
 
     private final StringBuilder buffer = new StringBuilder("");
     private final String separator;
+    private final int maxLength;
+    private boolean truncated;
 
     public TextExtractorOutput() {
         this(DEFAULT_SEPARATOR);
     }
 
     public TextExtractorOutput( String separator ) {
+        this(separator, 0);
+    }
+
+    /**
+     * Create an output that keeps at most the given number of characters.
+     *
+     * @param separator the separator placed between the recorded texts
+     * @param maxLength the maximum number of characters that are kept, or a non-positive value if the length is unlimited
+     */
+    public TextExtractorOutput( String separator,
+                                int maxLength ) {
         this.separator = separator;
+        this.maxLength = maxLength > 0 ? maxLength : Integer.MAX_VALUE;
     }
 
     @Override
     public void recordText( String text ) {
+        if (truncated || text == null) {
+            return;
+        }
         if (buffer.length() > 0) {
-            buffer.append(separator);
+            append(separator);
+        }
+        append(text);
+    }
+
+    private void append( String text ) {
+        int remaining = maxLength - buffer.length();
+        if (text.length() <= remaining) {
+            buffer.append(text);
+        } else {
+            buffer.append(text, 0, Math.max(remaining, 0));
+            truncated = true;
         }
-        buffer.append(text);
+    }
+
+    /**
+     * Determine whether any recorded text was discarded because the maximum length was reached.
+     *
+     * @return true if the text was truncated, or false otherwise
+     */
+    public boolean isTruncated() {
+        return truncated;
     }
 
     public String getText() {
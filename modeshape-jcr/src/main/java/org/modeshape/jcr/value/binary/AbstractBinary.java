@@ -22,6 +22,7 @@ import java.text.DecimalFormat;
 import javax.jcr.RepositoryException;
 import org.modeshape.common.SystemFailureException;
 import org.modeshape.common.annotation.Immutable;
+import org.modeshape.common.util.CheckArg;
 import org.modeshape.common.util.SecureHash;
 import org.modeshape.common.util.SecureHash.Algorithm;
 import org.modeshape.common.util.SelfClosingInputStream;
@@ -65,14 +66,8 @@ public abstract class AbstractBinary implements BinaryValue {
         InputStream stream = null;
         Exception error = null;
         try {
-            stream = getStream();
-            // Read/skip the next 'position' bytes ...
-            long skip = position;
-            while (skip > 0) {
-                long skipped = stream.skip(skip);
-                if (skipped <= 0) return -1;
-                skip -= skipped;
-            }
+            // Start reading at the position, rather than reading/skipping the preceding bytes ...
+            stream = getStream(position, b.length);
             return stream.read(b);
         } catch (RepositoryException e) {
             error = e;
@@ -171,5 +166,33 @@ public abstract class AbstractBinary implements BinaryValue {
         }
     }
 
+    @Override
+    public InputStream getStream( long offset,
+                                  long length ) throws RepositoryException {
+        CheckArg.isNonNegative(offset, "offset");
+        CheckArg.isNonNegative(length, "length");
+        try {
+            return new SelfClosingInputStream(internalStream(offset, length));
+        } catch (RepositoryException re) {
+            throw re;
+        } catch (Exception e) {
+            throw new RepositoryException(e);
+        }
+    }
+
     protected abstract InputStream internalStream() throws Exception;
+
+    /**
+     * Open a stream to a range of the content. By default this skips over the beginning of the {@link #internalStream() content},
+     * so implementations that can start reading anywhere should override this method.
+     *
+     * @param offset the position of the first byte to be read; never negative
+     * @param length the maximum number of bytes to be read; never negative
+     * @return the stream of the range; never null
+     * @throws Exception if there is a problem opening the stream
+     */
+    protected InputStream internalStream( long offset,
+                                          long length ) throws Exception {
+        return RangedInputStream.of(internalStream(), offset, length);
+    }
 }
@@ -17,6 +17,8 @@ package org.modeshape.jcr.value.binary;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -25,6 +27,7 @@ import org.modeshape.common.annotation.ThreadSafe;
 import org.modeshape.common.logging.Logger;
 import org.modeshape.common.util.CheckArg;
 import org.modeshape.common.util.StringUtil;
+import org.modeshape.jcr.RepositoryStatistics;
 import org.modeshape.jcr.TextExtractors;
 import org.modeshape.jcr.mimetype.MimeTypeDetector;
 import org.modeshape.jcr.mimetype.NullMimeTypeDetector;
@@ -60,6 +63,7 @@ public abstract class AbstractBinaryStore implements BinaryStore {
 
     private volatile TextExtractors extractors;
     private volatile MimeTypeDetector detector = NullMimeTypeDetector.INSTANCE;
+    private volatile RepositoryStatistics statistics;
 
     /**
      * Given a number of bytes representing the length of a file, returns the optimum size for a buffer that should be used
@@ -85,6 +89,29 @@ public abstract class AbstractBinaryStore implements BinaryStore {
         return LARGE_BUFFER_SIZE;
     }
 
+    /**
+     * Transfer bytes from a file channel to another channel, looping until all bytes have been transferred.
+     *
+     * @param source the file channel; may not be null
+     * @param position the position in the file of the first byte
+     * @param count the number of bytes to transfer
+     * @param target the channel to which the bytes are written; may not be null
+     * @return the number of bytes that were transferred, which is smaller than {@code count} only if the file ends first
+     * @throws IOException if there is a problem transferring the bytes
+     */
+    protected static long transferFromFile( FileChannel source,
+                                            long position,
+                                            long count,
+                                            WritableByteChannel target ) throws IOException {
+        long transferred = 0L;
+        long size = source.size();
+        while (transferred < count && position + transferred < size) {
+            long result = source.transferTo(position + transferred, count - transferred, target);
+            if (result <= 0L) break;
+            transferred += result;
+        }
+        return transferred;
+    }
 
     @Override
     public long getMinimumBinarySizeInBytes() {
@@ -109,6 +136,20 @@ public abstract class AbstractBinaryStore implements BinaryStore {
         this.detector = mimeTypeDetector; 
     }
 
+    @Override
+    public void setStatistics( RepositoryStatistics statistics ) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Get the statistics to which this store should report its activity.
+     *
+     * @return the statistics, or null if nothing should be reported
+     */
+    protected final RepositoryStatistics statistics() {
+        return statistics;
+    }
+
     @Override
     public final String getText( BinaryValue binary ) throws BinaryStoreException {
         // try and locate an already extracted text from the store
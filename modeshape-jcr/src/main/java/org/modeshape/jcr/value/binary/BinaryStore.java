@@ -17,9 +17,13 @@ package org.modeshape.jcr.value.binary;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.concurrent.TimeUnit;
 import javax.jcr.RepositoryException;
 import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.common.util.CheckArg;
+import org.modeshape.jcr.RepositoryStatistics;
 import org.modeshape.jcr.TextExtractors;
 import org.modeshape.jcr.mimetype.MimeTypeDetector;
 import org.modeshape.jcr.value.BinaryKey;
@@ -109,6 +113,75 @@ public interface BinaryStore {
      */
     InputStream getInputStream( BinaryKey key ) throws BinaryStoreException;
 
+    /**
+     * Get an {@link InputStream} to a range of the binary content with the supplied key. Stores that can start reading in the
+     * middle of a value should override this method; by default, the bytes before the range are read and discarded.
+     * <p/>
+     * <b>Caution:</b> always consume the {@link InputStream} using a {@code try-with-resources} idiom to ensure it's properly closed.
+     *
+     * @param key the key to the binary content; never null
+     * @param offset the position within the content of the first byte to be read; must be non-negative
+     * @param length the maximum number of bytes to be read; the stream ends sooner if the content ends first
+     * @return the input stream through which the range of the content can be read, {@code never null}
+     * @throws BinaryStoreException if there is a problem reading the content from the store or if a valid, non-null
+     *         {@link InputStream} cannot be returned for the given key.
+     * @see #getInputStream(BinaryKey)
+     */
+    default InputStream getInputStream( BinaryKey key,
+                                        long offset,
+                                        long length ) throws BinaryStoreException {
+        CheckArg.isNonNegative(offset, "offset");
+        CheckArg.isNonNegative(length, "length");
+        try {
+            return RangedInputStream.of(getInputStream(key), offset, length);
+        } catch (IOException e) {
+            throw new BinaryStoreException(e);
+        }
+    }
+
+    /**
+     * Write a range of the binary content with the supplied key to a channel. Stores that keep the content in local files should
+     * override this method to {@link java.nio.channels.FileChannel#transferTo(long, long, WritableByteChannel) transfer} the
+     * bytes directly from the file; by default, the content is copied from {@link #getInputStream(BinaryKey, long, long)}.
+     *
+     * @param key the key to the binary content; never null
+     * @param offset the position within the content of the first byte to be written; must be non-negative
+     * @param length the maximum number of bytes to be written; fewer bytes are written if the content ends first
+     * @param target the channel to which the content should be written; may not be null
+     * @return the number of bytes that were written
+     * @throws BinaryStoreException if there is a problem reading the content from the store
+     * @throws IOException if there is a problem writing to the channel
+     */
+    default long transferTo( BinaryKey key,
+                             long offset,
+                             long length,
+                             WritableByteChannel target ) throws BinaryStoreException, IOException {
+        CheckArg.isNotNull(target, "target");
+        try (InputStream stream = getInputStream(key, offset, length)) {
+            byte[] buffer = new byte[AbstractBinaryStore.bestBufferSize(Math.min(length, 1 << 20))];
+            long total = 0L;
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                ByteBuffer bytes = ByteBuffer.wrap(buffer, 0, count);
+                while (bytes.hasRemaining()) {
+                    target.write(bytes);
+                }
+                total += count;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Set the statistics to which this store reports its activity, such as the progress of garbage collection. By default,
+     * stores do not report anything.
+     *
+     * @param statistics the repository statistics; may be null if no statistics are to be reported
+     */
+    default void setStatistics( RepositoryStatistics statistics ) {
+        // nothing to report by default
+    }
+
     /**
      * Searches for a binary which has the given key in this store. The store should return {@code true} as long the binary
      * is still present physically, regardless of any "trash" semantics.
@@ -0,0 +1,564 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.jcr.RepositoryException;
+import org.modeshape.common.SystemFailureException;
+import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.common.logging.Logger;
+import org.modeshape.common.util.CheckArg;
+import org.modeshape.jcr.JcrI18n;
+import org.modeshape.jcr.RepositoryStatistics;
+import org.modeshape.jcr.TextExtractors;
+import org.modeshape.jcr.mimetype.MimeTypeDetector;
+import org.modeshape.jcr.value.BinaryKey;
+import org.modeshape.jcr.value.BinaryValue;
+
+/**
+ * A {@link BinaryStore} that keeps local copies of the values read from another (usually remote) binary store, in a directory
+ * of bounded size. Values are stored in, removed from and marked as used or unused in the underlying store, while reads of the
+ * whole value are served from the local copy once it has been filled. Because values are keyed by the SHA-1 of their content,
+ * the local copies never become stale; the content is verified against its key before it is added to the cache.
+ * <p>
+ * When several threads read a value that is not yet cached, only one of them reads the value from the underlying store and the
+ * others wait for that copy. Once the cached values use more than the maximum size, the least recently used (or the least
+ * frequently used, depending upon the {@link EvictionPolicy eviction policy}) values are removed from the cache.
+ * </p>
+ */
+@ThreadSafe
+public class CachingBinaryStore implements BinaryStore {
+
+    /**
+     * The policy used to choose which values are removed when the cache is full.
+     */
+    public static enum EvictionPolicy {
+        /**
+         * Remove the values that have not been read for the longest time.
+         */
+        LRU,
+        /**
+         * Remove the values that have been read the fewest times, and of those the ones that have not been read for the longest
+         * time.
+         */
+        LFU;
+    }
+
+    /**
+     * The default maximum size of the cached values, in bytes.
+     */
+    public static final long DEFAULT_CACHE_SIZE_IN_BYTES = 1L << 30; // 1GB
+
+    private static final Logger LOGGER = Logger.getLogger(CachingBinaryStore.class);
+    private static final String TEMP_FILE_PREFIX = "tmp-";
+
+    /**
+     * A value in the cache.
+     */
+    private static final class CachedValue {
+        protected final BinaryKey key;
+        protected final File file;
+        protected final long size;
+        // guarded by the eviction order, like the values' positions in it ...
+        protected long lastRead;
+        protected long reads;
+
+        protected CachedValue( BinaryKey key,
+                               File file,
+                               long size,
+                               long lastRead ) {
+            this.key = key;
+            this.file = file;
+            this.size = size;
+            this.lastRead = lastRead;
+        }
+    }
+
+    /**
+     * Orders the values by the number of times they were read, and then by the time they were last read.
+     */
+    private static final Comparator<CachedValue> LEAST_FREQUENTLY_READ_FIRST = (value1, value2) -> {
+        int diff = Long.compare(value1.reads, value2.reads);
+        if (diff != 0) return diff;
+        diff = Long.compare(value1.lastRead, value2.lastRead);
+        return diff != 0 ? diff : value1.key.compareTo(value2.key);
+    };
+
+    private final BinaryStore delegate;
+    private final File directory;
+    private final long cacheSizeInBytes;
+    private final EvictionPolicy evictionPolicy;
+    private final ConcurrentMap<BinaryKey, CachedValue> cached = new ConcurrentHashMap<>();
+    private final ConcurrentMap<BinaryKey, FutureTask<CachedValue>> fills = new ConcurrentHashMap<>();
+    private final AtomicLong cachedSize = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    /**
+     * The cached values in the order in which they are to be evicted, used by the {@link EvictionPolicy#LRU} policy. Guarded
+     * by itself; reading a value moves it to the end.
+     */
+    private final LinkedHashMap<BinaryKey, CachedValue> leastRecentlyRead = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The cached values in the order in which they are to be evicted, used by the {@link EvictionPolicy#LFU} policy. Guarded
+     * by {@link #leastRecentlyRead}.
+     */
+    private final TreeSet<CachedValue> leastFrequentlyRead = new TreeSet<>(LEAST_FREQUENTLY_READ_FIRST);
+
+    /**
+     * Create a new store that caches the values read from the supplied store.
+     *
+     * @param delegate the store that holds the values; may not be null
+     * @param directory the directory in which the cached values are kept; may not be null
+     * @param cacheSizeInBytes the maximum total size of the cached values; must be positive
+     * @param evictionPolicy the policy that determines which values are removed when the cache is full; may be null if the
+     *        least recently used values are to be removed
+     */
+    public CachingBinaryStore( BinaryStore delegate,
+                               File directory,
+                               long cacheSizeInBytes,
+                               EvictionPolicy evictionPolicy ) {
+        CheckArg.isNotNull(delegate, "delegate");
+        CheckArg.isNotNull(directory, "directory");
+        CheckArg.isPositive(cacheSizeInBytes, "cacheSizeInBytes");
+        this.delegate = delegate;
+        this.directory = directory;
+        this.cacheSizeInBytes = cacheSizeInBytes;
+        this.evictionPolicy = evictionPolicy != null ? evictionPolicy : EvictionPolicy.LRU;
+    }
+
+    /**
+     * Get the store whose values are cached.
+     *
+     * @return the underlying store; never null
+     */
+    public BinaryStore getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * Get the total size of the values that are currently cached.
+     *
+     * @return the size in bytes; never negative
+     */
+    public long getCachedSizeInBytes() {
+        return cachedSize.get();
+    }
+
+    @Override
+    public void start() {
+        delegate.start();
+        if (!directory.exists() && !directory.mkdirs() && !directory.exists()) {
+            throw new SystemFailureException(JcrI18n.unableToCreateDirectoryForBinaryStore.text(directory.getAbsolutePath(),
+                                                                                             "cached binary values"));
+        }
+        // Pick up the values cached before the last shutdown, oldest first ...
+        File[] files = directory.listFiles();
+        if (files != null) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(TEMP_FILE_PREFIX)) {
+                    // An incomplete fill ...
+                    deleteFile(file);
+                } else if (file.isFile() && BinaryKey.isProperlyFormattedKey(name)) {
+                    BinaryKey key = new BinaryKey(name);
+                    CachedValue value = new CachedValue(key, file, file.length(), file.lastModified());
+                    if (cached.putIfAbsent(key, value) == null) {
+                        added(value);
+                    }
+                }
+            }
+        }
+        clock.set(System.currentTimeMillis());
+        evict(null);
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public long getMinimumBinarySizeInBytes() {
+        return delegate.getMinimumBinarySizeInBytes();
+    }
+
+    @Override
+    public void setMinimumBinarySizeInBytes( long minSizeInBytes ) {
+        delegate.setMinimumBinarySizeInBytes(minSizeInBytes);
+    }
+
+    @Override
+    public void setTextExtractors( TextExtractors textExtractors ) {
+        delegate.setTextExtractors(textExtractors);
+    }
+
+    @Override
+    public void setMimeTypeDetector( MimeTypeDetector mimeTypeDetector ) {
+        delegate.setMimeTypeDetector(mimeTypeDetector);
+    }
+
+    @Override
+    public void setStatistics( RepositoryStatistics statistics ) {
+        delegate.setStatistics(statistics);
+    }
+
+    @Override
+    public BinaryValue storeValue( InputStream stream,
+                                   boolean markAsUnused ) throws BinaryStoreException {
+        return cachedValueOf(delegate.storeValue(stream, markAsUnused));
+    }
+
+    @Override
+    public BinaryValue storeValue( InputStream stream,
+                                   String hint,
+                                   boolean markAsUnused ) throws BinaryStoreException {
+        return cachedValueOf(delegate.storeValue(stream, hint, markAsUnused));
+    }
+
+    private BinaryValue cachedValueOf( BinaryValue value ) {
+        // Make sure the stored value is read through this store ...
+        return value instanceof StoredBinaryValue ? new StoredBinaryValue(this, value.getKey(), value.getSize()) : value;
+    }
+
+    @Override
+    public InputStream getInputStream( BinaryKey key ) throws BinaryStoreException {
+        CachedValue value = cachedValueFor(key);
+        if (value != null) {
+            try {
+                return new BufferedInputStream(new FileInputStream(value.file), AbstractBinaryStore.bestBufferSize(value.size));
+            } catch (FileNotFoundException e) {
+                // The value was evicted after we found it ...
+                LOGGER.debug("The cached copy of binary value '{0}' was evicted while being opened", key);
+            }
+        }
+        return delegate.getInputStream(key);
+    }
+
+    @Override
+    public InputStream getInputStream( BinaryKey key,
+                                       long offset,
+                                       long length ) throws BinaryStoreException {
+        CheckArg.isNonNegative(offset, "offset");
+        CheckArg.isNonNegative(length, "length");
+        CachedValue value = cached.get(key);
+        if (value != null) {
+            try {
+                read(value);
+                long start = Math.min(offset, value.size);
+                long count = Math.min(length, value.size - start);
+                return new BufferedInputStream(new FileRangeInputStream(value.file, start, count),
+                                               AbstractBinaryStore.bestBufferSize(count));
+            } catch (FileNotFoundException e) {
+                LOGGER.debug("The cached copy of binary value '{0}' was evicted while being opened", key);
+            }
+        }
+        // Don't fill the cache with the whole value just to read part of it ...
+        return delegate.getInputStream(key, offset, length);
+    }
+
+    @Override
+    public long transferTo( BinaryKey key,
+                            long offset,
+                            long length,
+                            WritableByteChannel target ) throws BinaryStoreException, IOException {
+        CheckArg.isNotNull(target, "target");
+        CachedValue value = offset == 0L && length == Long.MAX_VALUE ? cachedValueFor(key) : cached.get(key);
+        if (value != null) {
+            try (RandomAccessFile file = new RandomAccessFile(value.file, "r")) {
+                read(value);
+                long start = Math.min(offset, value.size);
+                return AbstractBinaryStore.transferFromFile(file.getChannel(), start, Math.min(length, value.size - start),
+                                                            target);
+            } catch (FileNotFoundException e) {
+                LOGGER.debug("The cached copy of binary value '{0}' was evicted while being opened", key);
+            }
+        }
+        return delegate.transferTo(key, offset, length, target);
+    }
+
+    /**
+     * Find the cached copy of the value with the given key, reading it from the underlying store if needed. Only one thread
+     * reads any given value from the underlying store at a time.
+     *
+     * @param key the key of the value; may not be null
+     * @return the cached value, or null if the value could not be cached
+     * @throws BinaryStoreException if the value could not be read from the underlying store
+     */
+    private CachedValue cachedValueFor( final BinaryKey key ) throws BinaryStoreException {
+        CachedValue value = cached.get(key);
+        if (value == null) {
+            FutureTask<CachedValue> fill = new FutureTask<>(() -> fill(key));
+            FutureTask<CachedValue> existing = fills.putIfAbsent(key, fill);
+            if (existing == null) {
+                try {
+                    fill.run();
+                } finally {
+                    fills.remove(key, fill);
+                }
+            } else {
+                fill = existing;
+            }
+            try {
+                value = fill.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BinaryStoreException(e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof BinaryStoreException) throw (BinaryStoreException)cause;
+                throw new BinaryStoreException(cause);
+            }
+            if (value == null) return null;
+        }
+        read(value);
+        return value;
+    }
+
+    private CachedValue fill( BinaryKey key ) throws BinaryStoreException, IOException {
+        CachedValue value = cached.get(key);
+        if (value != null) {
+            // Another thread just finished filling it ...
+            return value;
+        }
+        MessageDigest digest = sha1Digest();
+        File tmp = new File(directory, TEMP_FILE_PREFIX + UUID.randomUUID());
+        try {
+            long size = 0L;
+            try (InputStream stream = delegate.getInputStream(key);
+                 OutputStream out = new FileOutputStream(tmp)) {
+                byte[] buffer = new byte[AbstractBinaryStore.MEDIUM_BUFFER_SIZE];
+                int count;
+                while ((count = stream.read(buffer)) != -1) {
+                    size += count;
+                    if (size > cacheSizeInBytes) {
+                        // The value would never fit in the cache ...
+                        return null;
+                    }
+                    digest.update(buffer, 0, count);
+                    out.write(buffer, 0, count);
+                }
+            }
+            BinaryKey actual = new BinaryKey(digest.digest());
+            if (!actual.equals(key)) {
+                throw new BinaryStoreException(JcrI18n.binaryValueDoesNotMatchKey.text(key, delegate, actual));
+            }
+            File file = new File(directory, key.toString());
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            value = new CachedValue(key, file, size, clock.incrementAndGet());
+            cached.put(key, value);
+            added(value);
+        } finally {
+            if (tmp.exists()) deleteFile(tmp);
+        }
+        evict(value);
+        return value;
+    }
+
+    /**
+     * Remove cached values until the total size is within the maximum size. A value that is being filled or removed by another
+     * thread is left alone, since that thread holds the value's slot in {@link #fills}.
+     *
+     * @param added the value that was just added and that should not be removed; may be null
+     */
+    private void evict( CachedValue added ) {
+        Set<BinaryKey> busy = new HashSet<>();
+        while (cachedSize.get() > cacheSizeInBytes) {
+            CachedValue victim = nextVictim(added, busy);
+            if (victim == null) return;
+            if (!remove(victim.key, victim)) {
+                busy.add(victim.key);
+            }
+        }
+    }
+
+    private CachedValue nextVictim( CachedValue added,
+                                    Set<BinaryKey> busy ) {
+        synchronized (leastRecentlyRead) {
+            Iterable<CachedValue> candidates = evictionPolicy == EvictionPolicy.LFU ? leastFrequentlyRead
+                                                                                    : leastRecentlyRead.values();
+            for (CachedValue candidate : candidates) {
+                if (candidate != added && !busy.contains(candidate.key)) return candidate;
+            }
+            return null;
+        }
+    }
+
+    private void added( CachedValue value ) {
+        cachedSize.addAndGet(value.size);
+        synchronized (leastRecentlyRead) {
+            if (evictionPolicy == EvictionPolicy.LFU) {
+                leastFrequentlyRead.add(value);
+            } else {
+                leastRecentlyRead.put(value.key, value);
+            }
+        }
+    }
+
+    private void read( CachedValue value ) {
+        long tick = clock.incrementAndGet();
+        synchronized (leastRecentlyRead) {
+            if (evictionPolicy == EvictionPolicy.LFU) {
+                // The ordering changes, so the value has to be reinserted (unless it was evicted in the meantime) ...
+                boolean present = leastFrequentlyRead.remove(value);
+                value.lastRead = tick;
+                ++value.reads;
+                if (present) leastFrequentlyRead.add(value);
+            } else {
+                value.lastRead = tick;
+                // Moves the value to the end of the eviction order ...
+                leastRecentlyRead.get(value.key);
+            }
+        }
+    }
+
+    /**
+     * Remove the cached copy of the value with the given key, unless the value is being filled or removed by another thread.
+     *
+     * @param key the key of the value; may not be null
+     * @param expected the cached value that is to be removed, or null if the value is to be removed whatever it is
+     * @return true if the value was removed or was not cached, or false if another thread is filling or removing the value
+     */
+    private boolean remove( BinaryKey key,
+                            CachedValue expected ) {
+        FutureTask<CachedValue> removal = new FutureTask<>(() -> {
+            CachedValue value = cached.get(key);
+            if (value != null && (expected == null || value == expected) && cached.remove(key, value)) {
+                removed(value);
+            }
+            return null;
+        });
+        if (fills.putIfAbsent(key, removal) != null) return false;
+        try {
+            removal.run();
+        } finally {
+            fills.remove(key, removal);
+        }
+        return true;
+    }
+
+    private void removed( CachedValue value ) {
+        synchronized (leastRecentlyRead) {
+            if (evictionPolicy == EvictionPolicy.LFU) {
+                leastFrequentlyRead.remove(value);
+            } else {
+                leastRecentlyRead.remove(value.key);
+            }
+        }
+        cachedSize.addAndGet(-value.size);
+        // Readers that already opened the file can continue reading on most platforms ...
+        deleteFile(value.file);
+    }
+
+    private static void deleteFile( File file ) {
+        if (!file.delete() && file.exists()) {
+            LOGGER.debug("Unable to delete the cached binary file '{0}'", file);
+        }
+    }
+
+    private static MessageDigest sha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new SystemFailureException(e);
+        }
+    }
+
+    @Override
+    public boolean hasBinary( BinaryKey key ) {
+        // The underlying store decides whether the value still exists ...
+        return delegate.hasBinary(key);
+    }
+
+    @Override
+    public void markAsUsed( Iterable<BinaryKey> keys ) throws BinaryStoreException {
+        delegate.markAsUsed(keys);
+    }
+
+    @Override
+    public void markAsUnused( Iterable<BinaryKey> keys ) throws BinaryStoreException {
+        delegate.markAsUnused(keys);
+        // Unused values will likely be removed, so there's no point in keeping them ...
+        for (BinaryKey key : keys) {
+            while (!remove(key, null)) {
+                // Wait for the thread that is filling the value, and then remove what it added ...
+                FutureTask<CachedValue> fill = fills.get(key);
+                if (fill != null) {
+                    try {
+                        fill.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new BinaryStoreException(e);
+                    } catch (ExecutionException e) {
+                        // The value was not cached ...
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public void removeValuesUnusedLongerThan( long minimumAge,
+                                              TimeUnit unit ) throws BinaryStoreException {
+        delegate.removeValuesUnusedLongerThan(minimumAge, unit);
+    }
+
+    @Override
+    public String getText( BinaryValue binary ) throws BinaryStoreException {
+        return delegate.getText(binary);
+    }
+
+    @Override
+    public String getMimeType( BinaryValue binary,
+                               String name ) throws IOException, RepositoryException {
+        return delegate.getMimeType(binary, name);
+    }
+
+    @Override
+    public Iterable<BinaryKey> getAllBinaryKeys() throws BinaryStoreException {
+        return delegate.getAllBinaryKeys();
+    }
+
+    @Override
+    public String toString() {
+        return "CachingBinaryStore[" + directory.getAbsolutePath() + "] of " + delegate;
+    }
+}
@@ -0,0 +1,707 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import org.modeshape.common.SystemFailureException;
+import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.common.logging.Logger;
+import org.modeshape.common.util.CheckArg;
+import org.modeshape.common.util.IoUtil;
+import org.modeshape.common.util.StringUtil;
+import org.modeshape.jcr.JcrI18n;
+import org.modeshape.jcr.value.BinaryKey;
+import org.modeshape.jcr.value.BinaryValue;
+
+/**
+ * A {@link BinaryStore} that splits each value into content-defined chunks and stores each distinct chunk only once, in a
+ * directory on the file system. Because chunk boundaries depend only on the nearby content, values that share most of their
+ * content (e.g., successive versions of a large, iteratively edited file) share most of their chunks, and storing a new version
+ * writes only the chunks that changed.
+ * <p>
+ * Each value is represented by a small manifest, keyed by the SHA-1 of the whole content, that lists the SHA-1 and length of each
+ * of its chunks. Values are reassembled by streaming the chunks in order, and ranges of a value are read starting at the chunk
+ * that contains the first byte. Values marked as unused are removed by {@link #removeValuesUnusedLongerThan(long, TimeUnit)},
+ * which then removes any chunks that are no longer referenced by a manifest.
+ * </p>
+ */
+@ThreadSafe
+public class ChunkedFileSystemBinaryStore extends AbstractBinaryStore {
+
+    /**
+     * The default average size of the chunks, in bytes.
+     */
+    public static final int DEFAULT_AVERAGE_CHUNK_SIZE_IN_BYTES = 8 * 1024;
+
+    private static final Logger LOGGER = Logger.getLogger(ChunkedFileSystemBinaryStore.class);
+
+    private static final String CHUNKS_DIRECTORY_NAME = "chunks";
+    private static final String MANIFESTS_DIRECTORY_NAME = "manifests";
+    private static final String UNUSED_DIRECTORY_NAME = "unused";
+    private static final String EXTRACTED_TEXT_SUFFIX = "-extracted-text";
+    private static final String MIME_TYPE_SUFFIX = "-mime-type";
+    private static final String TEMP_FILE_PREFIX = "tmp-";
+    private static final int MANIFEST_MAGIC = 0x4D53434D; // "MSCM"
+    private static final int MANIFEST_VERSION = 1;
+    private static final int SHA1_LENGTH = 20;
+    /**
+     * File systems may only record modification times to the second, so allow for that when comparing them.
+     */
+    private static final long TIMESTAMP_RESOLUTION_IN_MILLIS = 2000L;
+
+    private final File directory;
+    private final File chunks;
+    private final File manifests;
+    private final File unused;
+    private final NamedLocks locks = new NamedLocks();
+    /**
+     * Values are stored while holding the read lock, while the chunk garbage collection removes chunks while holding the write
+     * lock, so that chunks are never removed while they are being used by a value that is still being stored.
+     */
+    private final ReadWriteLock sweepLock = new ReentrantReadWriteLock();
+    private volatile ContentDefinedChunker chunker = new ContentDefinedChunker(DEFAULT_AVERAGE_CHUNK_SIZE_IN_BYTES);
+
+    /**
+     * Create a new store that keeps its chunks and manifests in the given directory.
+     *
+     * @param directory the directory; may not be null
+     */
+    public ChunkedFileSystemBinaryStore( File directory ) {
+        CheckArg.isNotNull(directory, "directory");
+        this.directory = directory;
+        this.chunks = new File(directory, CHUNKS_DIRECTORY_NAME);
+        this.manifests = new File(directory, MANIFESTS_DIRECTORY_NAME);
+        this.unused = new File(directory, UNUSED_DIRECTORY_NAME);
+    }
+
+    /**
+     * Get the directory in which the chunks and manifests are stored.
+     *
+     * @return the directory; never null
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Set the average size of the chunks. Smaller chunks find more of the content that is shared between values, but require
+     * more files and larger manifests. Changing the size only affects values stored afterwards, and values stored with different
+     * chunk sizes will share few (if any) chunks.
+     *
+     * @param averageChunkSizeInBytes the average chunk size; must be a power of two and at least 256
+     */
+    public void setAverageChunkSizeInBytes( int averageChunkSizeInBytes ) {
+        this.chunker = new ContentDefinedChunker(averageChunkSizeInBytes);
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        for (File dir : new File[] {chunks, manifests, unused}) {
+            if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+                throw new SystemFailureException(JcrI18n.unableToCreateDirectoryForBinaryStore.text(dir.getAbsolutePath(), directory));
+            }
+        }
+    }
+
+    @Override
+    public BinaryValue storeValue( InputStream stream,
+                                   boolean markAsUnused ) throws BinaryStoreException {
+        ContentDefinedChunker chunker = this.chunker;
+        MessageDigest contentDigest = sha1Digest();
+        MessageDigest chunkDigest = sha1Digest();
+        long minimumSize = getMinimumBinarySizeInBytes();
+        List<byte[]> chunkKeys = new ArrayList<>();
+        List<Integer> chunkLengths = new ArrayList<>();
+        // Small values are kept in memory, so hold on to the content until we know whether it's large enough to store ...
+        ByteArrayOutputStream pending = new ByteArrayOutputStream();
+        List<Integer> pendingLengths = new ArrayList<>();
+        long size = 0L;
+        Lock lock = sweepLock.readLock();
+        lock.lock();
+        try {
+            byte[] buffer = new byte[chunker.maximumChunkSize()];
+            int filled = 0;
+            boolean end = false;
+            while (true) {
+                // Fill the buffer so that the chunker can always find the next boundary ...
+                while (!end && filled < buffer.length) {
+                    int count = stream.read(buffer, filled, buffer.length - filled);
+                    if (count == -1) {
+                        end = true;
+                    } else {
+                        filled += count;
+                    }
+                }
+                if (filled == 0) break;
+                int length = chunker.nextChunkLength(buffer, filled, end);
+                contentDigest.update(buffer, 0, length);
+                size += length;
+                if (size < minimumSize) {
+                    pending.write(buffer, 0, length);
+                    pendingLengths.add(length);
+                } else {
+                    if (pending.size() > 0) {
+                        // The value is large enough to store, so write the chunks we've been holding ...
+                        byte[] pendingContent = pending.toByteArray();
+                        int offset = 0;
+                        for (int pendingLength : pendingLengths) {
+                            chunkKeys.add(storeChunk(chunkDigest, pendingContent, offset, pendingLength));
+                            chunkLengths.add(pendingLength);
+                            offset += pendingLength;
+                        }
+                        pending.reset();
+                        pendingLengths.clear();
+                    }
+                    chunkKeys.add(storeChunk(chunkDigest, buffer, 0, length));
+                    chunkLengths.add(length);
+                }
+                System.arraycopy(buffer, length, buffer, 0, filled - length);
+                filled -= length;
+            }
+            BinaryKey key = new BinaryKey(contentDigest.digest());
+            if (size < minimumSize) {
+                // The content is small enough to just store in-memory ...
+                return new InMemoryBinaryValue(this, key, pending.toByteArray());
+            }
+            storeManifest(key, size, chunkKeys, chunkLengths, markAsUnused);
+            return new StoredBinaryValue(this, key, size);
+        } catch (IOException e) {
+            throw new BinaryStoreException(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static MessageDigest sha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new SystemFailureException(e);
+        }
+    }
+
+    private byte[] storeChunk( MessageDigest digest,
+                               byte[] content,
+                               int offset,
+                               int length ) throws IOException {
+        digest.reset();
+        digest.update(content, offset, length);
+        byte[] sha1 = digest.digest();
+        File chunkFile = fileFor(chunks, new BinaryKey(sha1).toString());
+        // Most chunks of a new version of a value already exist ...
+        if (!chunkFile.exists()) {
+            writeAtomically(chunkFile, out -> out.write(content, offset, length));
+        }
+        return sha1;
+    }
+
+    private void storeManifest( BinaryKey key,
+                                long size,
+                                List<byte[]> chunkKeys,
+                                List<Integer> chunkLengths,
+                                boolean markAsUnused ) throws IOException {
+        File manifestFile = fileFor(manifests, key.toString());
+        Lock lock = locks.writeLock(key.toString());
+        try {
+            if (!manifestFile.exists()) {
+                writeAtomically(manifestFile, out -> {
+                    DataOutputStream data = new DataOutputStream(out);
+                    data.writeInt(MANIFEST_MAGIC);
+                    data.writeInt(MANIFEST_VERSION);
+                    data.writeLong(size);
+                    data.writeInt(chunkKeys.size());
+                    for (int i = 0; i != chunkKeys.size(); ++i) {
+                        data.write(chunkKeys.get(i));
+                        data.writeInt(chunkLengths.get(i));
+                    }
+                    data.flush();
+                });
+            }
+            File marker = new File(unused, key.toString());
+            if (markAsUnused) {
+                writeAtomically(marker, out -> {
+                });
+            } else if (marker.exists() && !marker.delete()) {
+                LOGGER.debug("Unable to remove the unused marker for binary value '{0}'", key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @FunctionalInterface
+    private interface FileWriter {
+        void write( OutputStream out ) throws IOException;
+    }
+
+    /**
+     * Write a file by writing a temporary file in the same directory and then moving it, so that the file is either absent or
+     * complete even if the process fails.
+     *
+     * @param file the file to write; may not be null
+     * @param writer the function that writes the content; may not be null
+     * @throws IOException if there is a problem writing the file
+     */
+    private void writeAtomically( File file,
+                                  FileWriter writer ) throws IOException {
+        File parent = file.getParentFile();
+        if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            throw new IOException(JcrI18n.unableToCreateDirectoryForBinaryStore.text(parent.getAbsolutePath(), file.getName()));
+        }
+        File tmp = new File(parent, TEMP_FILE_PREFIX + UUID.randomUUID());
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                writer.write(out);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            if (tmp.exists() && !tmp.delete()) {
+                LOGGER.warn(JcrI18n.unableToDeleteTemporaryFile, tmp.getAbsolutePath(), "");
+            }
+        }
+    }
+
+    private static File fileFor( File parent,
+                                 String sha1 ) {
+        return new File(new File(new File(parent, sha1.substring(0, 2)), sha1.substring(2, 4)), sha1);
+    }
+
+    /**
+     * The list of chunks that make up a value.
+     */
+    private static final class Manifest {
+        private final long size;
+        private final String[] chunkKeys;
+        private final long[] offsets;
+
+        private Manifest( long size,
+                          String[] chunkKeys,
+                          long[] offsets ) {
+            this.size = size;
+            this.chunkKeys = chunkKeys;
+            this.offsets = offsets;
+        }
+
+        private long lengthOf( int chunk ) {
+            return (chunk + 1 < offsets.length ? offsets[chunk + 1] : size) - offsets[chunk];
+        }
+
+        /**
+         * Find the chunk that contains the byte at the given position.
+         *
+         * @param position the position within the value; must be less than the size
+         * @return the index of the chunk
+         */
+        private int chunkAt( long position ) {
+            int low = 0;
+            int high = offsets.length - 1;
+            while (low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if (offsets[mid] <= position) {
+                    low = mid;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    private Manifest readManifest( BinaryKey key ) throws BinaryStoreException {
+        File manifestFile = fileFor(manifests, key.toString());
+        try {
+            return readManifest(manifestFile);
+        } catch (FileNotFoundException e) {
+            throw new BinaryStoreException(JcrI18n.unableToFindBinaryValue.text(key, directory.getPath()));
+        } catch (IOException e) {
+            throw new BinaryStoreException(e);
+        }
+    }
+
+    private static Manifest readManifest( File manifestFile ) throws IOException {
+        try (DataInputStream data = new DataInputStream(new BufferedInputStream(new FileInputStream(manifestFile)))) {
+            if (data.readInt() != MANIFEST_MAGIC || data.readInt() != MANIFEST_VERSION) {
+                throw new IOException("The file '" + manifestFile + "' is not a valid binary manifest");
+            }
+            long size = data.readLong();
+            int count = data.readInt();
+            String[] chunkKeys = new String[count];
+            long[] offsets = new long[count];
+            byte[] sha1 = new byte[SHA1_LENGTH];
+            long offset = 0L;
+            for (int i = 0; i != count; ++i) {
+                data.readFully(sha1);
+                chunkKeys[i] = new BinaryKey(sha1).toString();
+                offsets[i] = offset;
+                offset += data.readInt();
+            }
+            return new Manifest(size, chunkKeys, offsets);
+        }
+    }
+
+    @Override
+    public InputStream getInputStream( BinaryKey key ) throws BinaryStoreException {
+        return getInputStream(key, 0L, Long.MAX_VALUE);
+    }
+
+    @Override
+    public InputStream getInputStream( BinaryKey key,
+                                       long offset,
+                                       long length ) throws BinaryStoreException {
+        CheckArg.isNonNegative(offset, "offset");
+        CheckArg.isNonNegative(length, "length");
+        Manifest manifest = readManifest(key);
+        long start = Math.min(offset, manifest.size);
+        long count = Math.min(length, manifest.size - start);
+        return new BufferedInputStream(new ChunkInputStream(manifest, start, count), bestBufferSize(count));
+    }
+
+    @Override
+    public long transferTo( BinaryKey key,
+                            long offset,
+                            long length,
+                            WritableByteChannel target ) throws BinaryStoreException, IOException {
+        CheckArg.isNonNegative(offset, "offset");
+        CheckArg.isNonNegative(length, "length");
+        CheckArg.isNotNull(target, "target");
+        Manifest manifest = readManifest(key);
+        if (offset >= manifest.size) return 0L;
+        long end = offset + Math.min(length, manifest.size - offset);
+        long position = offset;
+        for (int chunk = manifest.chunkAt(offset); position < end; ++chunk) {
+            long chunkStart = position - manifest.offsets[chunk];
+            long count = Math.min(manifest.lengthOf(chunk) - chunkStart, end - position);
+            try (RandomAccessFile file = new RandomAccessFile(fileFor(chunks, manifest.chunkKeys[chunk]), "r")) {
+                position += transferFromFile(file.getChannel(), chunkStart, count, target);
+            }
+        }
+        return position - offset;
+    }
+
+    /**
+     * An input stream that reassembles a range of a value by reading its chunks in order.
+     */
+    private final class ChunkInputStream extends InputStream {
+        private final Manifest manifest;
+        private final long end;
+        private long position;
+        private int chunk;
+        private InputStream current;
+
+        protected ChunkInputStream( Manifest manifest,
+                                    long offset,
+                                    long length ) {
+            this.manifest = manifest;
+            this.position = offset;
+            this.end = offset + length;
+            this.chunk = length > 0L ? manifest.chunkAt(offset) - 1 : -1;
+        }
+
+        private boolean nextChunk() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            if (position >= end) return false;
+            ++chunk;
+            long chunkStart = position - manifest.offsets[chunk];
+            long count = Math.min(manifest.lengthOf(chunk) - chunkStart, end - position);
+            current = new FileRangeInputStream(fileFor(chunks, manifest.chunkKeys[chunk]), chunkStart, count);
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read( byte[] b,
+                         int off,
+                         int len ) throws IOException {
+            if (len == 0) return 0;
+            while (current != null || nextChunk()) {
+                int count = current.read(b, off, len);
+                if (count > 0) {
+                    position += count;
+                    return count;
+                }
+                // The current chunk is exhausted, so move to the next one ...
+                current.close();
+                current = null;
+            }
+            return -1;
+        }
+
+        @Override
+        public int available() {
+            return (int)Math.min(Integer.MAX_VALUE, end - position);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            position = end;
+        }
+    }
+
+    @Override
+    public boolean hasBinary( BinaryKey key ) {
+        return fileFor(manifests, key.toString()).exists();
+    }
+
+    @Override
+    public void markAsUsed( Iterable<BinaryKey> keys ) throws BinaryStoreException {
+        for (BinaryKey key : keys) {
+            Lock lock = locks.writeLock(key.toString());
+            try {
+                File marker = new File(unused, key.toString());
+                if (marker.exists() && !marker.delete()) {
+                    LOGGER.debug("Unable to remove the unused marker for binary value '{0}'", key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public void markAsUnused( Iterable<BinaryKey> keys ) throws BinaryStoreException {
+        for (BinaryKey key : keys) {
+            Lock lock = locks.writeLock(key.toString());
+            try {
+                File marker = new File(unused, key.toString());
+                if (hasBinary(key) && !marker.exists()) {
+                    // The modification time of the marker records when the value became unused ...
+                    writeAtomically(marker, out -> {
+                    });
+                }
+            } catch (IOException e) {
+                throw new BinaryStoreException(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void removeValuesUnusedLongerThan( long minimumAge,
+                                                           TimeUnit unit ) throws BinaryStoreException {
+        long oldestTimestamp = System.currentTimeMillis() - TimeUnit.MILLISECONDS.convert(minimumAge, unit);
+        File[] markers = unused.listFiles();
+        int removed = 0;
+        if (markers != null) {
+            for (File marker : markers) {
+                if (marker.getName().startsWith(TEMP_FILE_PREFIX) || marker.lastModified() >= oldestTimestamp) continue;
+                String sha1 = marker.getName();
+                Lock lock = locks.writeLock(sha1);
+                try {
+                    // Make sure the value wasn't used again ...
+                    if (!marker.exists() || marker.lastModified() >= oldestTimestamp) continue;
+                    File manifestFile = fileFor(manifests, sha1);
+                    deleteIfExists(new File(manifestFile.getPath() + EXTRACTED_TEXT_SUFFIX));
+                    deleteIfExists(new File(manifestFile.getPath() + MIME_TYPE_SUFFIX));
+                    if (deleteIfExists(manifestFile)) {
+                        deleteIfExists(marker);
+                        ++removed;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        if (removed > 0) {
+            try {
+                removeUnreferencedChunks();
+            } catch (IOException e) {
+                throw new BinaryStoreException(e);
+            }
+        }
+    }
+
+    /**
+     * Remove the chunks that are not used by any of the values. The manifests are read without blocking values from being
+     * stored, and then the chunks are removed while briefly blocking them, after checking the manifests that were written in the
+     * meantime.
+     *
+     * @throws IOException if there is a problem reading the manifests
+     */
+    private void removeUnreferencedChunks() throws IOException {
+        long started = System.currentTimeMillis();
+        Set<String> referenced = new HashSet<>();
+        for (File manifestFile : manifestFiles()) {
+            addChunkKeys(manifestFile, referenced);
+        }
+        List<File> candidates = new ArrayList<>();
+        collectFiles(chunks, candidates);
+        candidates.removeIf(file -> referenced.contains(file.getName()));
+        if (candidates.isEmpty()) return;
+
+        Lock lock = sweepLock.writeLock();
+        lock.lock();
+        try {
+            // No values are being stored, so only the manifests written since we started can use any of the candidates ...
+            for (File manifestFile : manifestFiles()) {
+                if (manifestFile.lastModified() >= started - TIMESTAMP_RESOLUTION_IN_MILLIS) {
+                    addChunkKeys(manifestFile, referenced);
+                }
+            }
+            int removed = 0;
+            for (File chunkFile : candidates) {
+                if (!referenced.contains(chunkFile.getName()) && deleteIfExists(chunkFile)) ++removed;
+            }
+            LOGGER.debug("Removed {0} unused chunks from the binary store in '{1}'", removed, directory);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static void addChunkKeys( File manifestFile,
+                                      Set<String> chunkKeys ) {
+        try {
+            for (String chunkKey : readManifest(manifestFile).chunkKeys) {
+                chunkKeys.add(chunkKey);
+            }
+        } catch (FileNotFoundException e) {
+            // the value was just removed
+        } catch (IOException e) {
+            LOGGER.debug(e, "Unable to read the binary manifest '{0}'", manifestFile);
+        }
+    }
+
+    private List<File> manifestFiles() {
+        List<File> files = new ArrayList<>();
+        collectFiles(manifests, files);
+        files.removeIf(file -> file.getName().indexOf('-') >= 0);
+        return files;
+    }
+
+    private static void collectFiles( File dir,
+                                      List<File> files ) {
+        File[] children = dir.listFiles();
+        if (children == null) return;
+        for (File child : children) {
+            if (child.isDirectory()) {
+                collectFiles(child, files);
+            } else if (!child.getName().startsWith(TEMP_FILE_PREFIX)) {
+                files.add(child);
+            }
+        }
+    }
+
+    private static boolean deleteIfExists( File file ) {
+        return file.delete() || !file.exists();
+    }
+
+    @Override
+    public String getExtractedText( BinaryValue source ) throws BinaryStoreException {
+        return readString(source, EXTRACTED_TEXT_SUFFIX);
+    }
+
+    @Override
+    public void storeExtractedText( BinaryValue source,
+                                    String extractedText ) throws BinaryStoreException {
+        writeString(source, EXTRACTED_TEXT_SUFFIX, extractedText);
+    }
+
+    @Override
+    protected String getStoredMimeType( BinaryValue binaryValue ) throws BinaryStoreException {
+        return readString(binaryValue, MIME_TYPE_SUFFIX);
+    }
+
+    @Override
+    protected void storeMimeType( BinaryValue binaryValue,
+                                  String mimeType ) throws BinaryStoreException {
+        writeString(binaryValue, MIME_TYPE_SUFFIX, mimeType);
+    }
+
+    private String readString( BinaryValue binaryValue,
+                               String suffix ) throws BinaryStoreException {
+        File manifestFile = fileFor(manifests, binaryValue.getKey().toString());
+        if (!manifestFile.exists()) {
+            throw new BinaryStoreException(JcrI18n.unableToFindBinaryValue.text(binaryValue.getKey(), directory));
+        }
+        File file = new File(manifestFile.getPath() + suffix);
+        if (!file.exists()) return null;
+        try {
+            return IoUtil.read(new FileInputStream(file), StandardCharsets.UTF_8.name());
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            throw new BinaryStoreException(e);
+        }
+    }
+
+    private void writeString( BinaryValue binaryValue,
+                              String suffix,
+                              String value ) throws BinaryStoreException {
+        File manifestFile = fileFor(manifests, binaryValue.getKey().toString());
+        if (!manifestFile.exists() || StringUtil.isBlank(value)) return;
+        try {
+            writeAtomically(new File(manifestFile.getPath() + suffix), out -> out.write(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (IOException e) {
+            throw new BinaryStoreException(e);
+        }
+    }
+
+    @Override
+    public Iterable<BinaryKey> getAllBinaryKeys() {
+        List<BinaryKey> keys = new ArrayList<>();
+        for (File manifestFile : manifestFiles()) {
+            String sha1 = manifestFile.getName();
+            if (!new File(unused, sha1).exists()) {
+                keys.add(new BinaryKey(sha1));
+            }
+        }
+        return keys;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkedFileSystemBinaryStore[" + directory.getAbsolutePath() + "]";
+    }
+}
@@ -17,6 +17,7 @@ package org.modeshape.jcr.value.binary;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
@@ -26,6 +27,7 @@ import org.modeshape.common.collection.Collections;
 import org.modeshape.common.logging.Logger;
 import org.modeshape.common.util.CheckArg;
 import org.modeshape.jcr.JcrI18n;
+import org.modeshape.jcr.RepositoryStatistics;
 import org.modeshape.jcr.TextExtractors;
 import org.modeshape.jcr.mimetype.MimeTypeDetector;
 import org.modeshape.jcr.mimetype.NullMimeTypeDetector;
@@ -140,6 +142,16 @@ public class CompositeBinaryStore implements BinaryStore {
         }
     }
 
+    @Override
+    public void setStatistics( RepositoryStatistics statistics ) {
+        Iterator<Map.Entry<String, BinaryStore>> it = getNamedStoreIterator();
+
+        while (it.hasNext()) {
+            BinaryStore bs = it.next().getValue();
+            bs.setStatistics(statistics);
+        }
+    }
+
     @Override
     public BinaryValue storeValue( InputStream stream, boolean markAsUnused ) throws BinaryStoreException {
         return storeValue(stream, DEFAULT_STRATEGY_HINT, markAsUnused);
@@ -225,6 +237,49 @@ public class CompositeBinaryStore implements BinaryStore {
         throw new BinaryStoreException(JcrI18n.unableToFindBinaryValue.text(key, this.toString()));
     }
 
+    @Override
+    public InputStream getInputStream( BinaryKey key,
+                                       long offset,
+                                       long length ) throws BinaryStoreException {
+        Iterator<Map.Entry<String, BinaryStore>> it = getNamedStoreIterator();
+
+        while (it.hasNext()) {
+            final Map.Entry<String, BinaryStore> entry = it.next();
+
+            final String binaryStoreKey = entry.getKey();
+
+            BinaryStore binaryStore = entry.getValue();
+            logger.trace("Checking binary store " + binaryStoreKey + " for key " + key);
+            try {
+                // Let the named store read the range natively, rather than skipping over the beginning of the value ...
+                return binaryStore.getInputStream(key, offset, length);
+            } catch (BinaryStoreException e) {
+                // this exception is "normal", and is thrown
+                logger.trace(e, "The named store " + binaryStoreKey + " raised exception");
+            }
+        }
+
+        throw new BinaryStoreException(JcrI18n.unableToFindBinaryValue.text(key, this.toString()));
+    }
+
+    @Override
+    public long transferTo( BinaryKey key,
+                            long offset,
+                            long length,
+                            WritableByteChannel target ) throws BinaryStoreException, IOException {
+        Iterator<Map.Entry<String, BinaryStore>> it = getNamedStoreIterator();
+
+        while (it.hasNext()) {
+            BinaryStore binaryStore = it.next().getValue();
+            // Find the store first, since content may already have been written when a transfer fails ...
+            if (binaryStore.hasBinary(key)) {
+                return binaryStore.transferTo(key, offset, length, target);
+            }
+        }
+
+        throw new BinaryStoreException(JcrI18n.unableToFindBinaryValue.text(key, this.toString()));
+    }
+
     @Override
     public boolean hasBinary( BinaryKey key ) {
         Iterator<Map.Entry<String, BinaryStore>> it = getNamedStoreIterator();
@@ -0,0 +1,95 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import java.util.Random;
+import org.modeshape.common.annotation.Immutable;
+import org.modeshape.common.util.CheckArg;
+
+/**
+ * Finds content-defined chunk boundaries using a "gear" rolling hash. A boundary is placed after a byte when the high-order bits
+ * of the hash of the preceding bytes are all zero, so boundaries depend only on the nearby content: inserting or removing bytes
+ * in one part of a value moves only the boundaries around that change, and the other chunks of the value are unchanged.
+ */
+@Immutable
+final class ContentDefinedChunker {
+
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // The table must be the same in every process, so use a fixed seed ...
+        Random random = new Random(0x4D6F646553686170L);
+        for (int i = 0; i != GEAR.length; ++i) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int minimumChunkSize;
+    private final int maximumChunkSize;
+    private final long mask;
+
+    /**
+     * Create a chunker that produces chunks with the given average size. The minimum chunk size is a quarter and the maximum
+     * chunk size is eight times the average size.
+     *
+     * @param averageChunkSize the average chunk size; must be a power of two and at least 256
+     */
+    ContentDefinedChunker( int averageChunkSize ) {
+        CheckArg.isGreaterThanOrEqualTo(averageChunkSize, 256, "averageChunkSize");
+        if (Integer.bitCount(averageChunkSize) != 1) {
+            throw new IllegalArgumentException("The average chunk size must be a power of two: " + averageChunkSize);
+        }
+        int bits = Integer.numberOfTrailingZeros(averageChunkSize);
+        this.minimumChunkSize = averageChunkSize / 4;
+        this.maximumChunkSize = averageChunkSize * 8;
+        // The low-order bits of a gear hash only depend on the last few bytes, so use the high-order bits ...
+        this.mask = ((1L << bits) - 1L) << (Long.SIZE - bits);
+    }
+
+    /**
+     * Get the largest chunk that this chunker will produce, which is also the amount of content that must be available to
+     * {@link #nextChunkLength(byte[], int, boolean)} to find a boundary.
+     *
+     * @return the maximum chunk size
+     */
+    int maximumChunkSize() {
+        return maximumChunkSize;
+    }
+
+    /**
+     * Find the length of the chunk at the beginning of the supplied content.
+     *
+     * @param content the buffer holding the content
+     * @param length the number of bytes of content in the buffer; must be at least {@link #maximumChunkSize()} unless
+     *        {@code end} is true
+     * @param end true if the buffer holds the end of the content, or false otherwise
+     * @return the length of the chunk, which is never larger than {@code length}
+     */
+    int nextChunkLength( byte[] content,
+                         int length,
+                         boolean end ) {
+        assert end || length >= maximumChunkSize;
+        int limit = Math.min(length, maximumChunkSize);
+        if (limit <= minimumChunkSize) return limit;
+        long hash = 0L;
+        // Warm the hash with the bytes just before the first possible boundary; earlier bytes are shifted out anyway ...
+        for (int i = Math.max(0, minimumChunkSize - Long.SIZE); i != limit; ++i) {
+            hash = (hash << 1) + GEAR[content[i] & 0xFF];
+            if (i >= minimumChunkSize && (hash & mask) == 0L) return i + 1;
+        }
+        return limit;
+    }
+}
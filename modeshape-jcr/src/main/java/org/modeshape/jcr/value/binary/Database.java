@@ -18,6 +18,7 @@ package org.modeshape.jcr.value.binary;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
@@ -278,15 +279,35 @@ public class Database {
      */
     protected InputStream readContent( BinaryKey key,
                                        Connection connection ) throws SQLException {
+        return readContent(key, 0L, Long.MAX_VALUE, connection);
+    }
+
+    /**
+     * Attempts to return a stream of a range of the content for a given binary value. Where the driver supports it, the range is
+     * read directly from the {@link Blob}; otherwise, the bytes before the range are skipped. The connection is handled as
+     * in {@link #readContent(BinaryKey, Connection)}.
+     *
+     * @param key a {@link org.modeshape.jcr.value.BinaryKey} the key of the binary value, may not be null
+     * @param offset the position within the content of the first byte to be read; must be non-negative
+     * @param length the maximum number of bytes to be read; must be non-negative
+     * @param connection a {@link java.sql.Connection} instance, may not be null
+     * @return either a stream that wraps the input stream of the range and closes the connection and the statement when it
+     * terminates or {@code null}, meaning that the binary was not found.
+     * @throws SQLException if anything unexpected fails
+     */
+    protected InputStream readContent( BinaryKey key,
+                                       long offset,
+                                       long length,
+                                       Connection connection ) throws SQLException {
         try {
             // first search the contents which are in use
-            InputStream is = readStreamFromStatement(USED_CONTENT_STMT_KEY, key, connection);
+            InputStream is = readStreamFromStatement(USED_CONTENT_STMT_KEY, key, offset, length, connection);
             if (is != null) {
                 // return the stream without closing the connection
                 return is;
             }
             // then search the contents which are in the trash
-            is = readStreamFromStatement(UNUSED_CONTENT_STMT_KEY, key, connection);
+            is = readStreamFromStatement(UNUSED_CONTENT_STMT_KEY, key, offset, length, connection);
             if (is != null) {
                 // return the stream without closing the connection
                 return is;
@@ -300,7 +321,8 @@ public class Database {
         }
     }
 
-    private InputStream readStreamFromStatement( String statement, BinaryKey key, Connection connection ) throws SQLException {
+    private InputStream readStreamFromStatement( String statement, BinaryKey key, long offset, long length,
+                                                 Connection connection ) throws SQLException {
         PreparedStatement readContentStatement = prepareStatement(statement, connection);
         try {
             readContentStatement.setString(1, key.toString());
@@ -309,7 +331,20 @@ public class Database {
                 tryToClose(readContentStatement);
                 return null;
             }
-            return new DatabaseBinaryStream(connection, readContentStatement, rs.getBinaryStream(1));
+            if (offset == 0L && length == Long.MAX_VALUE) {
+                return new DatabaseBinaryStream(connection, readContentStatement, rs.getBinaryStream(1));
+            }
+            InputStream range = readBlobRange(rs, offset, length);
+            if (range != null) {
+                return new DatabaseBinaryStream(connection, readContentStatement, range);
+            }
+            // The driver can't read the range directly, so skip to it ...
+            try {
+                return RangedInputStream.of(new DatabaseBinaryStream(connection, readContentStatement, rs.getBinaryStream(1)),
+                                            offset, length);
+            } catch (IOException e) {
+                throw new SQLException(e);
+            }
         } catch (SQLException e) {
             tryToClose(readContentStatement);
             throw e;
@@ -319,6 +354,25 @@ public class Database {
         }
     }
 
+    private InputStream readBlobRange( ResultSet rs,
+                                       long offset,
+                                       long length ) {
+        try {
+            Blob blob = rs.getBlob(1);
+            if (blob == null) return null;
+            long size = blob.length();
+            long start = Math.min(offset, size);
+            long count = Math.min(length, size - start);
+            if (count == 0L) return new ByteArrayInputStream(new byte[0]);
+            // Blob positions start at 1 ...
+            return blob.getBinaryStream(start + 1, count);
+        } catch (SQLException | RuntimeException e) {
+            // Not all drivers expose the content as a Blob (e.g., PostgreSQL's 'bytea') ...
+            LOGGER.debug(e, "Cannot read a range of the binary content as a Blob; will skip to the range instead");
+            return null;
+        }
+    }
+
     protected void markUnused( Iterable<BinaryKey> keys,
                                Connection connection ) throws SQLException {
         try (PreparedStatement markUnusedSql = prepareStatement(MARK_UNUSED_STMT_KEY, connection)) {
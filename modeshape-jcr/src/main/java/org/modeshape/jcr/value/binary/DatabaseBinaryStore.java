@@ -26,6 +26,7 @@ import javax.naming.InitialContext;
 import javax.naming.NamingException;
 import javax.sql.DataSource;
 import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.common.util.CheckArg;
 import org.modeshape.common.util.StringUtil;
 import org.modeshape.jcr.JcrI18n;
 import org.modeshape.jcr.value.BinaryKey;
@@ -96,9 +97,9 @@ public class DatabaseBinaryStore extends AbstractBinaryStore {
     private DataSource dataSource;
 
     /**
-     * A temporary fs-based store which stores binaries before they are persisted in the DB
+     * The size of the largest value that is kept in memory rather than in a temporary file before it is persisted in the DB
      */
-    private final FileSystemBinaryStore cache;
+    private static final long MAXIMUM_IN_MEMORY_STAGING_SIZE_IN_BYTES = 1L << 20; // 1MB
 
     /**
      * JDBC utility for working with the database.
@@ -122,7 +123,6 @@ public class DatabaseBinaryStore extends AbstractBinaryStore {
         this.username = username;
         this.password = password;
         this.datasourceJNDILocation = null;
-        this.cache = TransientBinaryStore.get();
     }
 
     /**
@@ -136,7 +136,6 @@ public class DatabaseBinaryStore extends AbstractBinaryStore {
         this.username = null;
         this.password = null;
         this.datasourceJNDILocation = datasourceJNDILocation;
-        this.cache = TransientBinaryStore.get();
     }
 
     @Override
@@ -156,16 +155,20 @@ public class DatabaseBinaryStore extends AbstractBinaryStore {
 
     @Override
     public BinaryValue storeValue( InputStream stream, final boolean markAsUnused ) throws BinaryStoreException {
-        // store into temporary file system store and get SHA-1
-        final BinaryValue temp = cache.storeValue(stream, markAsUnused);
-        // prepare new binary key based on SHA-1
-        final BinaryKey key = new BinaryKey(temp.getKey().toString());
+        // read the content and compute the SHA-1 in one pass, keeping smaller values in memory
+        final StagedContent staged;
+        try {
+            staged = StagedContent.stage(stream, MAXIMUM_IN_MEMORY_STAGING_SIZE_IN_BYTES, null);
+        } catch (IOException e) {
+            throw new BinaryStoreException(e);
+        }
+        final BinaryKey key = staged.getKey();
         try {
             return dbCall(connection -> {
                 connection.setAutoCommit(false);
               
                 if (database.contentExists(key, ALIVE, connection)) {
-                    return new StoredBinaryValue(DatabaseBinaryStore.this, key, temp.getSize());
+                    return new StoredBinaryValue(DatabaseBinaryStore.this, key, staged.getSize());
                 }
 
                 // check unused content
@@ -174,15 +177,15 @@ public class DatabaseBinaryStore extends AbstractBinaryStore {
                         database.restoreContent(connection, Collections.singletonList(key));
                     }
                 } else {
-                    try (InputStream is = temp.getStream()) {
+                    try (InputStream is = staged.openStream()) {
                         // store the content
-                        database.insertContent(key, is, temp.getSize(), connection);
+                        database.insertContent(key, is, staged.getSize(), connection);
                         if (markAsUnused) {
                             database.markUnused(Collections.singletonList(key), connection);
                         }
                     }
                 }
-                return new StoredBinaryValue(DatabaseBinaryStore.this, key, temp.getSize());
+                return new StoredBinaryValue(DatabaseBinaryStore.this, key, staged.getSize());
             });
         } catch (BinaryStoreException e) {
             if (e.getCause() instanceof SQLException) {
@@ -190,7 +193,7 @@ public class DatabaseBinaryStore extends AbstractBinaryStore {
                 // so try reading again
                  return dbCall(connection -> {
                     if (database.contentExists(key, !markAsUnused, connection)) {
-                        return new StoredBinaryValue(DatabaseBinaryStore.this, key, temp.getSize());        
+                        return new StoredBinaryValue(DatabaseBinaryStore.this, key, staged.getSize());        
                     }
                     // nothing there, so rethrow the original exception
                     throw e;
@@ -198,8 +201,8 @@ public class DatabaseBinaryStore extends AbstractBinaryStore {
             }
             throw e;
         } finally {
-            // remove content from temp store
-            cache.markAsUnused(temp.getKey());
+            // remove the temporary file, if there is one
+            staged.close();
         }
     }
     
@@ -229,6 +232,26 @@ public class DatabaseBinaryStore extends AbstractBinaryStore {
         }
     }
 
+    @Override
+    public InputStream getInputStream( BinaryKey key,
+                                       long offset,
+                                       long length ) throws BinaryStoreException {
+        CheckArg.isNonNegative(offset, "offset");
+        CheckArg.isNonNegative(length, "length");
+        Connection connection = newConnection();
+        try {
+            InputStream inputStream = database.readContent(key, offset, length, connection);
+            if (inputStream == null) {
+                // if we didn't find anything, the connection should've been closed already
+                throw new BinaryStoreException(JcrI18n.unableToFindBinaryValue.text(key, database.getTableName()));
+            }
+            // the connection & statement will be left open until the stream is closed !
+            return inputStream;
+        } catch (SQLException e) {
+            throw new BinaryStoreException(e);
+        }
+    }
+
     @Override
     public void markAsUsed(final Iterable<BinaryKey> keys ) throws BinaryStoreException {
         dbCall(connection -> {
@@ -0,0 +1,98 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import org.modeshape.common.annotation.NotThreadSafe;
+
+/**
+ * An {@link InputStream} that reads a range of a file using positional reads, so that the stream can start anywhere in the file
+ * without reading the preceding bytes.
+ */
+@NotThreadSafe
+final class FileRangeInputStream extends InputStream {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long end;
+    private long position;
+    private long mark;
+
+    FileRangeInputStream( File file,
+                          long offset,
+                          long length ) throws FileNotFoundException {
+        this.file = new RandomAccessFile(file, "r");
+        this.channel = this.file.getChannel();
+        this.position = offset;
+        this.mark = offset;
+        this.end = offset + length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read( byte[] b,
+                     int off,
+                     int len ) throws IOException {
+        if (len == 0) return 0;
+        long remaining = end - position;
+        if (remaining <= 0) return -1;
+        int count = channel.read(ByteBuffer.wrap(b, off, (int)Math.min(len, remaining)), position);
+        if (count > 0) position += count;
+        return count;
+    }
+
+    @Override
+    public long skip( long n ) {
+        long skipped = Math.max(0L, Math.min(n, end - position));
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int)Math.max(0L, Math.min(Integer.MAX_VALUE, end - position));
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark( int readlimit ) {
+        mark = position;
+    }
+
+    @Override
+    public synchronized void reset() {
+        position = mark;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -25,20 +25,19 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
-import java.security.NoSuchAlgorithmException;
+import java.nio.channels.WritableByteChannel;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
-import org.modeshape.common.SystemFailureException;
 import org.modeshape.common.annotation.ThreadSafe;
-import org.modeshape.common.logging.Logger;
+import org.modeshape.common.util.CheckArg;
 import org.modeshape.common.util.IoUtil;
-import org.modeshape.common.util.SecureHash;
-import org.modeshape.common.util.SecureHash.Algorithm;
-import org.modeshape.common.util.SecureHash.HashingInputStream;
 import org.modeshape.jcr.JcrI18n;
+import org.modeshape.jcr.RepositoryStatistics;
+import org.modeshape.jcr.api.monitor.ValueMetric;
 import org.modeshape.jcr.value.BinaryKey;
 import org.modeshape.jcr.value.BinaryValue;
 
@@ -52,10 +51,29 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
 
     protected static final String TRASH_DIRECTORY_NAME = "trash";
 
+    /**
+     * The default size at which pack files are closed and a new pack file is started.
+     */
+    public static final long DEFAULT_PACK_SEGMENT_SIZE_IN_BYTES = 256L * 1024L * 1024L;
+
     private static final String EXTRACTED_TEXT_SUFFIX = "-extracted-text";
     private static final String MIME_TYPE_SUFFIX = "-mime-type";
     private static final String TEMP_FILE_PREFIX = "ms-fs-binstore";
     private static final String TEMP_FILE_SUFFIX = "hashing";
+    private static final String PACKS_DIRECTORY_NAME = "packs";
+    private static final String STAGING_DIRECTORY_NAME = "staging";
+    /**
+     * The size of the largest value that is kept in memory while being stored in a pack file.
+     */
+    private static final long MAXIMUM_IN_MEMORY_STAGING_SIZE_IN_BYTES = 1L << 20; // 1MB
+    /**
+     * Staging files left behind by a failed process are removed once they are this old.
+     */
+    private static final long ABANDONED_STAGING_FILE_AGE_IN_MILLIS = TimeUnit.DAYS.toMillis(1);
+    /**
+     * The number of unused values removed by garbage collection before the index of unused values is committed.
+     */
+    private static final int GARBAGE_COLLECTION_BATCH_SIZE = 1000;
     
     private static final ConcurrentHashMap<String, FileSystemBinaryStore> INSTANCES = new ConcurrentHashMap<String, FileSystemBinaryStore>();
 
@@ -84,6 +102,12 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
     private final File trash;
     private final NamedLocks locks = new NamedLocks();
     private volatile boolean initialized = false;
+    private volatile long maximumPackedBinarySizeInBytes = 0L;
+    private volatile long packSegmentSizeInBytes = DEFAULT_PACK_SEGMENT_SIZE_IN_BYTES;
+    private PackFiles packFiles;
+    private volatile boolean unusedValueIndexEnabled = false;
+    private volatile int garbageCollectionRateLimit = 0;
+    private UnusedValueIndex unusedValueIndex;
 
     protected FileSystemBinaryStore( File directory ) {
         this(directory, new File(directory, TRASH_DIRECTORY_NAME));
@@ -98,51 +122,258 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
         return directory;
     }
 
+    /**
+     * Get the size of the largest binary value that is appended to a pack file rather than being stored in its own file.
+     *
+     * @return the size in bytes, or 0 if pack files are not used
+     */
+    public long getMaximumPackedBinarySizeInBytes() {
+        return maximumPackedBinarySizeInBytes;
+    }
+
+    /**
+     * Set the size of the largest binary value that is appended to a pack file rather than being stored in its own file. Storing
+     * many small and medium-sized values in a few large pack files uses far fewer inodes and is much faster to enumerate. Values
+     * that were stored before pack files were enabled remain in their own files.
+     *
+     * @param maximumPackedBinarySizeInBytes the size in bytes, or 0 if pack files should not be used
+     */
+    public void setMaximumPackedBinarySizeInBytes( long maximumPackedBinarySizeInBytes ) {
+        CheckArg.isNonNegative(maximumPackedBinarySizeInBytes, "maximumPackedBinarySizeInBytes");
+        this.maximumPackedBinarySizeInBytes = maximumPackedBinarySizeInBytes;
+    }
+
+    /**
+     * Set the size at which pack files are closed and a new pack file is started.
+     *
+     * @param packSegmentSizeInBytes the size in bytes; must be positive
+     */
+    public void setPackSegmentSizeInBytes( long packSegmentSizeInBytes ) {
+        CheckArg.isPositive(packSegmentSizeInBytes, "packSegmentSizeInBytes");
+        this.packSegmentSizeInBytes = packSegmentSizeInBytes;
+    }
+
+    /**
+     * Determine whether the unused values are tracked in an index ordered by the time they became unused, rather than with a
+     * trash file for each value.
+     *
+     * @return true if the index is used, or false if trash files are used
+     */
+    public boolean isUnusedValueIndexEnabled() {
+        return unusedValueIndexEnabled;
+    }
+
+    /**
+     * Set whether the unused values are tracked in an index ordered by the time they became unused, rather than with a trash
+     * file for each value. With the index, garbage collection only visits the values that have been unused long enough, rather
+     * than walking the whole tree of trash files. Any existing trash files are moved into the index when it is opened, and the
+     * migration is resumed the next time the index is opened if it did not complete. The index can only be used by a single
+     * process at a time, so it should not be enabled when several processes share the directory.
+     *
+     * @param unusedValueIndexEnabled true if the index should be used, or false if trash files should be used
+     */
+    public void setUnusedValueIndexEnabled( boolean unusedValueIndexEnabled ) {
+        this.unusedValueIndexEnabled = unusedValueIndexEnabled;
+    }
+
+    /**
+     * Set the maximum number of unused values that garbage collection removes per second, so that removing a large backlog of
+     * unused values does not saturate the disk. This only applies when the {@link #setUnusedValueIndexEnabled(boolean) index of
+     * unused values} is enabled.
+     *
+     * @param garbageCollectionRateLimit the maximum number of values removed per second, or 0 if there is no limit
+     */
+    public void setGarbageCollectionRateLimit( int garbageCollectionRateLimit ) {
+        CheckArg.isNonNegative(garbageCollectionRateLimit, "garbageCollectionRateLimit");
+        this.garbageCollectionRateLimit = garbageCollectionRateLimit;
+    }
+
+    /**
+     * Get the index of unused values, opening it (and moving any existing trash files into it) if required.
+     *
+     * @return the index, or null if the index is not enabled
+     * @throws BinaryStoreException if the index cannot be opened
+     */
+    private synchronized UnusedValueIndex unusedValueIndex() throws BinaryStoreException {
+        if (!unusedValueIndexEnabled) return null;
+        if (unusedValueIndex == null || unusedValueIndex.isClosed()) {
+            try {
+                unusedValueIndex = new UnusedValueIndex(trash);
+            } catch (IOException e) {
+                throw new BinaryStoreException(e);
+            }
+            if (!unusedValueIndex.isMigrated()) {
+                // Either the index is new or a previous migration was interrupted, so (re)visit all the trash files and commit
+                // them before deleting them. Values already in the index keep their original timestamp ...
+                addTrashFilesToIndex(trash, unusedValueIndex);
+                unusedValueIndex.commit();
+                removeTrashFiles(trash);
+                unusedValueIndex.markMigrated();
+            }
+        }
+        return unusedValueIndex;
+    }
+
+    private void addTrashFilesToIndex( File dir,
+                                       UnusedValueIndex index ) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                addTrashFilesToIndex(file, index);
+            } else if (isTrashFile(file)) {
+                // Trash files are empty, and their timestamp is when the value became unused ...
+                index.add(new BinaryKey(file.getName()), file.lastModified());
+            }
+        }
+    }
+
+    private void removeTrashFiles( File dir ) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                removeTrashFiles(file);
+                pruneEmptyDirectories(trash, file);
+            } else if (isTrashFile(file)) {
+                file.delete();
+            }
+        }
+    }
+
+    private static boolean isTrashFile( File file ) {
+        return file.length() == 0 && BinaryKey.isProperlyFormattedKey(file.getName());
+    }
+
+    private boolean isMarkedUnused( BinaryKey key ) throws BinaryStoreException {
+        UnusedValueIndex index = unusedValueIndex();
+        return index != null ? index.isUnused(key) : getTrashFile(key, false) != null;
+    }
+
+    private void addUnusedMarker( BinaryKey key ) throws BinaryStoreException {
+        UnusedValueIndex index = unusedValueIndex();
+        if (index != null) {
+            index.markUnused(key, System.currentTimeMillis());
+        } else {
+            getTrashFile(key, true);
+        }
+    }
+
+    private boolean removeUnusedMarker( BinaryKey key ) throws BinaryStoreException {
+        UnusedValueIndex index = unusedValueIndex();
+        return index != null ? index.markUsed(key) : removeTrashFile(key);
+    }
+
+    /**
+     * Get the pack files, opening them if required.
+     *
+     * @return the pack files, or null if pack files are not used and none were ever written
+     * @throws BinaryStoreException if the pack files cannot be opened
+     */
+    private synchronized PackFiles packFiles() throws BinaryStoreException {
+        if (packFiles == null || packFiles.isClosed()) {
+            packFiles = null;
+            File packsDirectory = new File(directory, PACKS_DIRECTORY_NAME);
+            if (maximumPackedBinarySizeInBytes > 0 || packsDirectory.exists()) {
+                try {
+                    packFiles = new PackFiles(packsDirectory, packSegmentSizeInBytes);
+                } catch (IOException e) {
+                    throw new BinaryStoreException(e);
+                }
+            }
+        }
+        return packFiles;
+    }
+
+    private boolean isPacked( BinaryKey key ) throws BinaryStoreException {
+        PackFiles packs = packFiles();
+        return packs != null && packs.contains(key);
+    }
+
+    @Override
+    public void shutdown() {
+        synchronized (this) {
+            if (packFiles != null) {
+                packFiles.close();
+                packFiles = null;
+            }
+            if (unusedValueIndex != null) {
+                unusedValueIndex.close();
+                unusedValueIndex = null;
+            }
+        }
+    }
+
     @Override
     public BinaryValue storeValue( InputStream stream, boolean markAsUnused ) throws BinaryStoreException {
-        File tmpFile = null;
-        BinaryValue value = null;
-        try {
-            // Write the contents to a temporary file, and while we do grab the SHA-1 hash and the length ...
-            HashingInputStream hashingStream = SecureHash.createHashingStream(Algorithm.SHA_1, stream);
-            tmpFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX);
-            IoUtil.write(hashingStream, new BufferedOutputStream(new FileOutputStream(tmpFile)),
-                         AbstractBinaryStore.MEDIUM_BUFFER_SIZE);
-            byte[] sha1 = hashingStream.getHash();
-            BinaryKey key = new BinaryKey(sha1);
-
-            final long numberOfBytes = tmpFile.length();
-            if (numberOfBytes < getMinimumBinarySizeInBytes()) {
+        // Read and hash the content in one pass, keeping small values in memory and staging larger ones on this volume ...
+        long minimumSize = getMinimumBinarySizeInBytes();
+        long inMemoryLimit = Math.max(minimumSize - 1,
+                                      Math.min(maximumPackedBinarySizeInBytes, MAXIMUM_IN_MEMORY_STAGING_SIZE_IN_BYTES));
+        try (StagedContent staged = StagedContent.stage(stream, inMemoryLimit, stagingDirectory())) {
+            BinaryKey key = staged.getKey();
+            if (staged.getSize() < minimumSize) {
                 // The content is small enough to just store in-memory ...
-                byte[] content = IoUtil.readBytes(tmpFile);
-                tmpFile.delete();
-                value = new InMemoryBinaryValue(this, key, content);
+                return new InMemoryBinaryValue(this, key, staged.getContent());
+            }
+            BinaryValue value = null;
+            if (staged.isInMemory()) {
+                value = saveContentToStore(staged.getContent(), key);
             } else {
-                value = saveTempFileToStore(tmpFile, key, numberOfBytes);
-                if (markAsUnused) {
-                    markAsUnused(key);
-                }
+                value = saveTempFileToStore(staged.getFile(), key, staged.getSize());
+            }
+            if (markAsUnused) {
+                markAsUnused(key);
             }
             return value;
         } catch (IOException e) {
             throw new BinaryStoreException(e);
-        } catch (NoSuchAlgorithmException e) {
-            throw new SystemFailureException(e);
-        } finally {
-            if (tmpFile != null) {
-                try {
-                    tmpFile.delete();
-                } catch (Throwable t) {
-                    Logger.getLogger(getClass()).warn(t, JcrI18n.unableToDeleteTemporaryFile, tmpFile.getAbsolutePath(),
-                                                      t.getMessage());
-                }
+        }
+    }
+
+    /**
+     * Get the directory in which new values are written before they are moved into place. It is within the store's directory so
+     * that moving the files is a rename rather than a copy.
+     *
+     * @return the staging directory; never null
+     */
+    private File stagingDirectory() {
+        return new File(directory, STAGING_DIRECTORY_NAME);
+    }
+
+    private BinaryValue saveContentToStore( byte[] content,
+                                            BinaryKey key ) throws BinaryStoreException, IOException {
+        if (content.length <= maximumPackedBinarySizeInBytes && !findFile(directory, key, false).exists()) {
+            // Append the value to a pack file without ever writing it to its own file ...
+            packFiles().store(key, content);
+            return new StoredBinaryValue(this, key, content.length);
+        }
+        File stagingDirectory = stagingDirectory();
+        stagingDirectory.mkdirs();
+        File tmpFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, stagingDirectory);
+        try {
+            try (OutputStream out = new FileOutputStream(tmpFile)) {
+                out.write(content);
             }
+            return saveTempFileToStore(tmpFile, key, content.length);
+        } finally {
+            tmpFile.delete();
         }
     }
 
     private BinaryValue saveTempFileToStore( File tmpFile,
                                              BinaryKey key,
                                              long numberOfBytes ) throws BinaryStoreException {
+        if (numberOfBytes <= maximumPackedBinarySizeInBytes && !findFile(directory, key, false).exists()) {
+            // Append the value to a pack file rather than storing it in its own file ...
+            try {
+                packFiles().store(key, tmpFile);
+            } catch (IOException e) {
+                throw new BinaryStoreException(e);
+            }
+            return new StoredBinaryValue(this, key, numberOfBytes);
+        }
+
         // Now that we know the SHA-1, find the File object that corresponds to the existing persisted file ...
         File persistedFile = findFile(directory, key, true);
 
@@ -150,9 +381,13 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
         final Lock lock = locks.writeLock(key.toString());
         try {
             // Now that we know the SHA-1, see if there is already an existing file in storage ...
+            if (isPacked(key)) {
+                packFiles().markUsed(key);
+                return new StoredBinaryValue(this, key, numberOfBytes);
+            }
             if (persistedFile.exists()) {
-                //if there's a trash file for this file remove it
-                removeTrashFile(key);
+                //if the value was marked as unused, it's now used again
+                removeUnusedMarker(key);
                 // There is an existing file, so go ahead and return a binary value that uses the existing file ...
                 return new StoredBinaryValue(this, key, numberOfBytes);
             }
@@ -313,6 +548,15 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
 
     @Override
     public InputStream getInputStream( BinaryKey key ) throws BinaryStoreException {
+        PackFiles packs = packFiles();
+        if (packs != null) {
+            try {
+                InputStream packed = packs.read(key);
+                if (packed != null) return packed;
+            } catch (IOException e) {
+                throw new BinaryStoreException(e);
+            }
+        }
         // Now that we know the SHA-1, find the File object that corresponds to the existing persisted file ...
         File persistedFile = findFile(directory, key, false);
         if (!persistedFile.exists() || !persistedFile.canRead()) {
@@ -325,6 +569,59 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
         return new SharedLockingInputStream(key, persistedFile, locks);
     }
 
+    @Override
+    public InputStream getInputStream( BinaryKey key,
+                                       long offset,
+                                       long length ) throws BinaryStoreException {
+        CheckArg.isNonNegative(offset, "offset");
+        CheckArg.isNonNegative(length, "length");
+        PackFiles packs = packFiles();
+        if (packs != null) {
+            try {
+                InputStream packed = packs.read(key, offset, length);
+                if (packed != null) return packed;
+            } catch (IOException e) {
+                throw new BinaryStoreException(e);
+            }
+        }
+        File persistedFile = findFile(directory, key, false);
+        if (!persistedFile.exists() || !persistedFile.canRead()) {
+            throw new BinaryStoreException(JcrI18n.unableToFindBinaryValue.text(key, directory.getPath()));
+        }
+        return new SharedLockingInputStream(key, persistedFile, locks, offset, length);
+    }
+
+    @Override
+    public long transferTo( BinaryKey key,
+                            long offset,
+                            long length,
+                            WritableByteChannel target ) throws BinaryStoreException, IOException {
+        CheckArg.isNonNegative(offset, "offset");
+        CheckArg.isNonNegative(length, "length");
+        CheckArg.isNotNull(target, "target");
+        PackFiles packs = packFiles();
+        if (packs != null) {
+            long transferred = packs.transferTo(key, offset, length, target);
+            if (transferred >= 0L) return transferred;
+        }
+        File persistedFile = findFile(directory, key, false);
+        if (!persistedFile.exists() || !persistedFile.canRead()) {
+            throw new BinaryStoreException(JcrI18n.unableToFindBinaryValue.text(key, directory.getPath()));
+        }
+        // Use the same locks as the streams, so that the file cannot be changed while it is being transferred ...
+        Lock processLock = locks.readLock(key.toString());
+        try {
+            FileLocks.WrappedLock fileLock = FileLocks.get().readLock(persistedFile);
+            try (RandomAccessFile file = new RandomAccessFile(persistedFile, "r")) {
+                return transferFromFile(file.getChannel(), offset, length, target);
+            } finally {
+                fileLock.unlock();
+            }
+        } finally {
+            processLock.unlock();
+        }
+    }
+
     @SuppressWarnings( "unused" )
     protected void initializeStorage( File directory ) throws BinaryStoreException {
         // do nothing by default
@@ -366,8 +663,8 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
                     File persistedFile = findFile(directory, key, true);
                     // move it to main storage
                     moveFileExclusively(file, persistedFile, key);
-                    // and write out a new trash file
-                    getTrashFile(key, true);
+                    // and mark it as unused
+                    addUnusedMarker(key);
                 }
             }
         }
@@ -375,9 +672,17 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
 
     protected boolean removeAllTrashFilesFor( BinaryKey key ) throws BinaryStoreException {
         // remove the trash file for the main binary, extracted text and mime-type
-        return removeTrashFile(key) |
-               removeTrashFile(createKeyFromSourceWithSuffix(key, EXTRACTED_TEXT_SUFFIX)) |
-               removeTrashFile(createKeyFromSourceWithSuffix(key, MIME_TYPE_SUFFIX));
+        return markUsed(key) |
+               markUsed(createKeyFromSourceWithSuffix(key, EXTRACTED_TEXT_SUFFIX)) |
+               markUsed(createKeyFromSourceWithSuffix(key, MIME_TYPE_SUFFIX));
+    }
+
+    private boolean markUsed( BinaryKey key ) throws BinaryStoreException {
+        PackFiles packs = packFiles();
+        if (packs != null && packs.markUsed(key)) {
+            return true;
+        }
+        return removeUnusedMarker(key);
     }
 
     @Override
@@ -391,27 +696,27 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
     }
 
     protected void markAsUnused( BinaryKey key ) throws BinaryStoreException {
-        File persistedFile = findFile(directory, key, false);
-        if (!persistedFile.exists()) {
-            // if the persisted file doesn't exist, there's nothing to do
+        if (!markUnused(key)) {
+            // if the persisted value doesn't exist, there's nothing to do
             return;
         }
-        // create a trash file for the main binary
-        getTrashFile(key, true);
+        // mark the extracted text and the mime-type binaries as unused, too
+        markUnused(createKeyFromSourceWithSuffix(key, EXTRACTED_TEXT_SUFFIX));
+        markUnused(createKeyFromSourceWithSuffix(key, MIME_TYPE_SUFFIX));
+    }
 
-        BinaryKey textExtractionKey = createKeyFromSourceWithSuffix(key, EXTRACTED_TEXT_SUFFIX);
-        File textFile = findFile(directory, textExtractionKey, false);
-        if (textFile.exists()) {
-            // create a trash file for the extracted text binary
-            getTrashFile(textExtractionKey, true);
+    private boolean markUnused( BinaryKey key ) throws BinaryStoreException {
+        PackFiles packs = packFiles();
+        if (packs != null && packs.markUnused(key)) {
+            return true;
         }
-
-        BinaryKey mimeTypeKey = createKeyFromSourceWithSuffix(key, MIME_TYPE_SUFFIX);
-        File mimeTypeFile = findFile(directory, mimeTypeKey, false);
-        if (mimeTypeFile.exists()) {
-            // create a trash file for the mime-type binary
-            getTrashFile(mimeTypeKey, true);
+        File persistedFile = findFile(directory, key, false);
+        if (!persistedFile.exists()) {
+            return false;
         }
+        // record that the binary is unused
+        addUnusedMarker(key);
+        return true;
     }
 
     protected void touch( File file ) throws BinaryStoreException {
@@ -478,7 +783,21 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
                                               TimeUnit unit ) throws BinaryStoreException {
         long oldestTimestamp = System.currentTimeMillis() - TimeUnit.MILLISECONDS.convert(minimumAge, unit);
         try {
-            removeFilesOlderThan(oldestTimestamp, trash);
+            UnusedValueIndex index = unusedValueIndex();
+            if (index != null) {
+                removeIndexedValuesOlderThan(oldestTimestamp, index);
+            } else {
+                removeFilesOlderThan(oldestTimestamp, trash);
+            }
+            removeAbandonedStagingFiles();
+            PackFiles packs = packFiles();
+            int removedPacked = packs != null ? packs.removeUnusedSince(oldestTimestamp) : 0;
+            if (removedPacked > 0) {
+                // Reclaim the space used by the removed values without holding up the caller ...
+                packs.compactInBackground();
+                RepositoryStatistics statistics = statistics();
+                if (statistics != null) statistics.increment(ValueMetric.BINARY_GC_REMOVED_COUNT, removedPacked);
+            }
         } catch (IOException e) {
             throw new BinaryStoreException(e);
         } catch (BinaryStoreException bse) {
@@ -486,6 +805,89 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
         }
     }
 
+    /**
+     * Remove the values that became unused before the given time, visiting only those values in the order they became unused.
+     * The values are removed in batches, after each of which the index is committed, progress is reported, and (if there is a
+     * rate limit) the removal pauses until it is back within the limit. A pass that is interrupted simply leaves the remaining
+     * values for the next pass.
+     *
+     * @param oldestTimestamp the time before which the values must have become unused
+     * @param index the index of unused values; may not be null
+     * @throws BinaryStoreException if the location of a value cannot be determined
+     */
+    private void removeIndexedValuesOlderThan( long oldestTimestamp,
+                                               UnusedValueIndex index ) throws BinaryStoreException {
+        RepositoryStatistics statistics = statistics();
+        int rateLimit = garbageCollectionRateLimit;
+        int batchSize = rateLimit > 0 ? Math.min(rateLimit, GARBAGE_COLLECTION_BATCH_SIZE) : GARBAGE_COLLECTION_BATCH_SIZE;
+        long started = System.currentTimeMillis();
+        long visited = 0L;
+        long removed = 0L;
+        long reclaimedBytes = 0L;
+        List<BinaryKey> batch;
+        while (!(batch = index.unusedBefore(oldestTimestamp, batchSize)).isEmpty()) {
+            long batchRemoved = 0L;
+            long batchReclaimedBytes = 0L;
+            for (BinaryKey key : batch) {
+                Lock lock = locks.writeLock(key.toString());
+                try {
+                    // The value may have been used again since we found it ...
+                    if (!index.isUnusedBefore(key, oldestTimestamp)) continue;
+                    File persistedFile = findFile(directory, key, false);
+                    long length = persistedFile.length();
+                    if (persistedFile.exists() && !persistedFile.delete()) {
+                        // Try again during a later pass ...
+                        index.remove(key);
+                        index.markUnused(key, System.currentTimeMillis());
+                        continue;
+                    }
+                    index.remove(key);
+                    if (length > 0L) {
+                        ++batchRemoved;
+                        batchReclaimedBytes += length;
+                        pruneEmptyDirectories(directory, persistedFile.getParentFile());
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            index.commit();
+            visited += batch.size();
+            removed += batchRemoved;
+            reclaimedBytes += batchReclaimedBytes;
+            if (statistics != null) {
+                statistics.increment(ValueMetric.BINARY_GC_REMOVED_COUNT, batchRemoved);
+                statistics.increment(ValueMetric.BINARY_GC_RECLAIMED_BYTES, batchReclaimedBytes);
+                statistics.set(ValueMetric.BINARY_GC_PENDING_COUNT, index.size());
+            }
+            if (rateLimit > 0) {
+                long ahead = visited * 1000L / rateLimit - (System.currentTimeMillis() - started);
+                if (ahead > 0L) {
+                    try {
+                        Thread.sleep(ahead);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+        }
+        if (statistics != null) statistics.set(ValueMetric.BINARY_GC_PENDING_COUNT, index.size());
+        logger.debug("Removed {0} unused binary values ({1} bytes) from '{2}'; {3} unused values remain", removed,
+                     reclaimedBytes, directory, index.size());
+    }
+
+    private void removeAbandonedStagingFiles() {
+        File[] files = stagingDirectory().listFiles();
+        if (files == null) return;
+        long oldestTimestamp = System.currentTimeMillis() - ABANDONED_STAGING_FILE_AGE_IN_MILLIS;
+        for (File file : files) {
+            if (file.lastModified() < oldestTimestamp && !file.delete()) {
+                logger.debug("Unable to remove the abandoned staging file '{0}'", file);
+            }
+        }
+    }
+
     private void removeFilesOlderThan( long oldestTimestamp,
                                        File parentDirectory ) throws IOException, BinaryStoreException {
         if (parentDirectory == null || !parentDirectory.exists() || parentDirectory.isFile()) {
@@ -585,7 +987,9 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
                                    BinaryKey key) throws BinaryStoreException {
         File tmpFile = null;
         try {
-            tmpFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX + EXTRACTED_TEXT_SUFFIX);
+            File stagingDirectory = stagingDirectory();
+            stagingDirectory.mkdirs();
+            tmpFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX + EXTRACTED_TEXT_SUFFIX, stagingDirectory);
             IoUtil.write(string, new BufferedOutputStream(new FileOutputStream(tmpFile)));
             saveTempFileToStore(tmpFile, key, tmpFile.length());
         } catch (IOException e) {
@@ -617,6 +1021,7 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
     }
 
     private boolean binaryValueExists( BinaryValue binaryValue ) throws BinaryStoreException {
+        if (isPacked(binaryValue.getKey())) return true;
         File fileInMainStorage = findFile(directory, binaryValue.getKey(), false);
         return fileInMainStorage.exists() && fileInMainStorage.canRead();
     }
@@ -647,8 +1052,8 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
                                         // SHA-1s should be 40 characters ...
                                         if (filename.length() != 40) continue;
                                         BinaryKey key = new BinaryKey(file.getName());
-                                        // There is a trash file for this key, meaning the file is unused
-                                        if (getTrashFile(key, false) != null) continue;
+                                        // The value is marked as unused
+                                        if (isMarkedUnused(key)) continue;
 
                                         keys.add(key);
 
@@ -667,6 +1072,14 @@ public class FileSystemBinaryStore extends AbstractBinaryStore {
                 }
             }
         }
+        PackFiles packs = packFiles();
+        if (packs != null) {
+            for (BinaryKey key : packs.usedKeys()) {
+                keys.add(key);
+                keysToExclude.add(createKeyFromSourceWithSuffix(key, MIME_TYPE_SUFFIX));
+                keysToExclude.add(createKeyFromSourceWithSuffix(key, EXTRACTED_TEXT_SUFFIX));
+            }
+        }
         keys.removeAll(keysToExclude);
         return keys;
     }
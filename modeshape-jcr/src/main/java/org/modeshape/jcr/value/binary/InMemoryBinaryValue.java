@@ -84,4 +84,11 @@ public class InMemoryBinaryValue extends AbstractBinary {
     protected InputStream internalStream() {
         return new ByteArrayInputStream(this.bytes);
     }
+
+    @Override
+    protected InputStream internalStream( long offset,
+                                          long length ) {
+        int start = (int)Math.min(offset, bytes.length);
+        return new ByteArrayInputStream(this.bytes, start, (int)Math.min(length, bytes.length - start));
+    }
 }
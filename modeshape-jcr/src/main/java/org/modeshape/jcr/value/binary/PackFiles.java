@@ -0,0 +1,904 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.mapdb.Atomic;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.common.logging.Logger;
+import org.modeshape.common.util.NamedThreadFactory;
+import org.modeshape.jcr.value.BinaryKey;
+
+/**
+ * Storage for binary values that appends each value to one of a small number of large segment files, rather than storing each
+ * value in its own file. This is used by the {@link FileSystemBinaryStore} for small and medium-sized values, since millions of
+ * individual files exhaust inodes and are slow to enumerate.
+ * <p>
+ * An on-disk index (kept in a MapDB database) maps the SHA-1 of each value to the segment, offset and length of its content.
+ * Values that are no longer used are recorded in a separate map along with the time they became unused; once they are
+ * {@link #removeUnusedSince(long) removed}, segments whose live content falls below half of their size are
+ * {@link #compact() compacted} in the background by copying their live values to the end of the current segment and deleting
+ * the old file.
+ * </p>
+ * <p>
+ * Values are written concurrently: the lock is only held to reserve the space for a value at the end of the current segment and
+ * to record its location in the index, while its content is written and forced to disk without the lock. A value's record is
+ * reserved with a "pending" marker, which is only replaced once the whole content has been written.
+ * </p>
+ * <p>
+ * Each value is written to its segment with a header containing its SHA-1 and length (records which are still pending are
+ * skipped), and each removal appends a small tombstone record, so the index can be rebuilt by scanning the segments in order if it is ever lost or does not match the segments.
+ * (Values that were marked as unused but not yet removed are considered used after such a rebuild.) The appended records are
+ * always forced to disk before the index which refers to them is committed, and the index records the length of the current
+ * segment at each commit, so that an index which is ahead of the segments after a crash is detected when it is opened.
+ * </p>
+ */
+@ThreadSafe
+final class PackFiles {
+
+    private static final Logger LOGGER = Logger.getLogger(PackFiles.class);
+
+    private static final String INDEX_FILENAME = "pack-index.db";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".pack";
+    private static final int RECORD_MAGIC = 0x4D53424E; // "MSBN"
+    private static final int TOMBSTONE_MAGIC = 0x4D535242; // "MSRB"
+    private static final int PENDING_MAGIC = 0x4D535050; // "MSPP"
+    private static final int SHA1_LENGTH = 20;
+    private static final int HEADER_LENGTH = 4 + SHA1_LENGTH + 8;
+    private static final double COMPACTION_THRESHOLD = 0.5d;
+    private static final int REMOVAL_BATCH_SIZE = 1000;
+    private static final long COMPACTION_SHUTDOWN_TIMEOUT_IN_SECONDS = 30L;
+
+    private static final int SEGMENT = 0;
+    private static final int OFFSET = 1;
+    private static final int LENGTH = 2;
+
+    private final File directory;
+    private final long segmentSize;
+    private final DB db;
+    /** The location of each value, keyed by SHA-1: { segment, offset of the content, length of the content } */
+    private final HTreeMap<String, long[]> locations;
+    /** The time at which each unused value was marked as unused, keyed by SHA-1 */
+    private final HTreeMap<String, Long> unusedSince;
+    private final Atomic.Long currentSegment;
+    /** The length of the current segment covered by the records in the index when it was last committed */
+    private final Atomic.Long segmentLength;
+    // the following are guarded by 'this' ...
+    private AppendTarget appendTarget;
+    /** The previous segments which are no longer appended to, but which still have values being written to them */
+    private final Map<Long, AppendTarget> retiredTargets = new HashMap<>();
+    /** The SHA-1 of each value which is being written */
+    private final Set<String> storing = new HashSet<>();
+    /** Whether records were written to the current segment under the lock, and so have not yet been forced to disk */
+    private boolean unforced;
+    /** The end of the last record written to the current segment under the lock */
+    private long unforcedEnd;
+    private final Object compactionLock = new Object();
+    private final ThreadPoolExecutor compactor;
+    private final AtomicBoolean compactionScheduled = new AtomicBoolean();
+    private volatile boolean closed;
+
+    PackFiles( File directory,
+               long segmentSize ) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory for pack files: " + directory);
+        }
+        File indexFile = new File(directory, INDEX_FILENAME);
+        boolean rebuild = !indexFile.exists();
+        DB db = null;
+        try {
+            db = DBMaker.newFileDB(indexFile).closeOnJvmShutdown().make();
+        } catch (RuntimeException | IOError e) {
+            LOGGER.debug(e, "Unable to open the pack index '{0}'; it will be rebuilt from the pack files", indexFile);
+            deleteIndex();
+            db = DBMaker.newFileDB(indexFile).closeOnJvmShutdown().make();
+            rebuild = true;
+        }
+        this.db = db;
+        this.locations = db.createHashMap("locations").keySerializer(Serializer.STRING).valueSerializer(Serializer.LONG_ARRAY)
+                           .makeOrGet();
+        this.unusedSince = db.createHashMap("unused").keySerializer(Serializer.STRING).valueSerializer(Serializer.LONG)
+                             .makeOrGet();
+        this.currentSegment = db.exists("segment") ? db.getAtomicLong("segment") : db.createAtomicLong("segment", 0L);
+        this.segmentLength = db.exists("segmentLength") ? db.getAtomicLong("segmentLength") : db.createAtomicLong("segmentLength",
+                                                                                                                    0L);
+        if (rebuild || !isValid()) {
+            rebuildIndex();
+        }
+        this.compactor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                                                new NamedThreadFactory("modeshape-pack-compaction"));
+        this.compactor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Determine whether the index matches the segments, which is not the case if the segments lost records after the index
+     * was committed, or if a new segment was started but the index was not committed.
+     *
+     * @return true if the index can be used, or false if it must be rebuilt
+     */
+    private boolean isValid() {
+        Set<Long> segments = existingSegments();
+        if (segments.isEmpty()) {
+            return locations.isEmpty();
+        }
+        long current = currentSegment.get();
+        if (Collections.max(segments) != current) {
+            LOGGER.debug("The pack index refers to segment {0}, which is not the latest one", current);
+            return false;
+        }
+        long length = segmentFile(current).length();
+        if (length < segmentLength.get()) {
+            LOGGER.debug("The pack index refers to {0} bytes of segment {1}, which only has {2} bytes", segmentLength.get(),
+                         current, length);
+            return false;
+        }
+        return true;
+    }
+
+    private void deleteIndex() throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            // MapDB keeps the index in several files with the same prefix ...
+            if (file.getName().startsWith(INDEX_FILENAME) && !file.delete()) {
+                throw new IOException("Unable to delete the pack index file: " + file);
+            }
+        }
+    }
+
+    /**
+     * Determine whether the value with the given key is stored in the pack files.
+     *
+     * @param key the key; may not be null
+     * @return true if the value is stored (whether or not it is used), or false otherwise
+     */
+    boolean contains( BinaryKey key ) {
+        return locations.containsKey(key.toString());
+    }
+
+    /**
+     * Get the length of the value with the given key.
+     *
+     * @param key the key; may not be null
+     * @return the length, or -1 if the value is not stored in the pack files
+     */
+    long length( BinaryKey key ) {
+        long[] location = locations.get(key.toString());
+        return location != null ? location[LENGTH] : -1L;
+    }
+
+    /**
+     * Append the content of the given file to the current segment, unless a value with the same key is already stored. Storing a
+     * value always marks it as used.
+     *
+     * @param key the key of the value; may not be null
+     * @param content the file with the content; may not be null
+     * @return true if the value was appended, or false if it was already stored
+     * @throws IOException if there is a problem writing the value
+     */
+    boolean store( BinaryKey key,
+                   File content ) throws IOException {
+        try (FileInputStream input = new FileInputStream(content)) {
+            FileChannel source = input.getChannel();
+            long length = content.length();
+            return store(key, length, ( target, position ) -> copy(key, source, 0L, length, target, position));
+        }
+    }
+
+    /**
+     * Append a value that is held in memory to the current segment, unless the value is already stored.
+     *
+     * @param key the key of the value; may not be null
+     * @param content the content of the value; may not be null
+     * @return true if the value was appended, or false if it was already stored
+     * @throws IOException if there is a problem writing the value
+     */
+    boolean store( BinaryKey key,
+                   byte[] content ) throws IOException {
+        return store(key, content.length, ( target, position ) -> {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                position += target.write(buffer, position);
+            }
+        });
+    }
+
+    private boolean store( BinaryKey key,
+                           long length,
+                           ContentWriter content ) throws IOException {
+        String sha1 = key.toString();
+        Reservation reservation = null;
+        synchronized (this) {
+            // Wait for any other thread which is writing the same value ...
+            while (storing.contains(sha1)) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for binary value " + key + " to be stored");
+                }
+            }
+            unusedSince.remove(sha1);
+            if (locations.containsKey(sha1)) {
+                db.commit();
+                return false;
+            }
+            reservation = reserve(key, PENDING_MAGIC, length);
+            storing.add(sha1);
+        }
+        boolean written = false;
+        try {
+            write(reservation, content);
+            reservation.target.channel().force(false);
+            written = true;
+        } finally {
+            synchronized (this) {
+                storing.remove(sha1);
+                notifyAll();
+                release(reservation);
+                if (written) {
+                    locations.put(sha1, reservation.location());
+                    recorded(reservation);
+                    commit();
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Open a stream to the content of the value with the given key.
+     *
+     * @param key the key; may not be null
+     * @return the stream, or null if the value is not stored in the pack files
+     * @throws IOException if there is a problem opening the segment
+     */
+    InputStream read( BinaryKey key ) throws IOException {
+        return read(key, 0L, Long.MAX_VALUE);
+    }
+
+    /**
+     * Open a stream to a range of the content of the value with the given key.
+     *
+     * @param key the key; may not be null
+     * @param offset the offset within the value of the first byte to be read; must be non-negative
+     * @param length the maximum number of bytes to be read; must be non-negative
+     * @return the stream, or null if the value is not stored in the pack files
+     * @throws IOException if there is a problem opening the segment
+     */
+    InputStream read( BinaryKey key,
+                      long offset,
+                      long length ) throws IOException {
+        String sha1 = key.toString();
+        for (int attempt = 0;; ++attempt) {
+            long[] location = locations.get(sha1);
+            if (location == null) return null;
+            long start = Math.min(offset, location[LENGTH]);
+            long count = Math.min(length, location[LENGTH] - start);
+            try {
+                return new FileRangeInputStream(segmentFile(location[SEGMENT]), location[OFFSET] + start, count);
+            } catch (FileNotFoundException e) {
+                // The segment may have just been compacted, in which case the value has moved ...
+                if (attempt > 0) throw e;
+            }
+        }
+    }
+
+    /**
+     * Transfer a range of the content of the value with the given key directly from its segment to the supplied channel.
+     *
+     * @param key the key; may not be null
+     * @param offset the offset within the value of the first byte to be transferred; must be non-negative
+     * @param length the maximum number of bytes to be transferred; must be non-negative
+     * @param target the channel to which the content is written; may not be null
+     * @return the number of bytes that were transferred, or -1 if the value is not stored in the pack files
+     * @throws IOException if there is a problem reading the segment or writing to the channel
+     */
+    long transferTo( BinaryKey key,
+                     long offset,
+                     long length,
+                     WritableByteChannel target ) throws IOException {
+        String sha1 = key.toString();
+        for (int attempt = 0;; ++attempt) {
+            long[] location = locations.get(sha1);
+            if (location == null) return -1L;
+            long start = Math.min(offset, location[LENGTH]);
+            long count = Math.min(length, location[LENGTH] - start);
+            try (RandomAccessFile segment = new RandomAccessFile(segmentFile(location[SEGMENT]), "r")) {
+                return AbstractBinaryStore.transferFromFile(segment.getChannel(), location[OFFSET] + start, count, target);
+            } catch (FileNotFoundException e) {
+                // The segment may have just been compacted, in which case the value has moved ...
+                if (attempt > 0) throw e;
+            }
+        }
+    }
+
+    /**
+     * Record that the value with the given key is no longer used, if it is stored in the pack files.
+     *
+     * @param key the key; may not be null
+     * @return true if the value is stored in the pack files, or false otherwise
+     */
+    synchronized boolean markUnused( BinaryKey key ) {
+        String sha1 = key.toString();
+        if (!locations.containsKey(sha1)) return false;
+        if (unusedSince.putIfAbsent(sha1, System.currentTimeMillis()) == null) {
+            db.commit();
+        }
+        return true;
+    }
+
+    /**
+     * Record that the value with the given key is used.
+     *
+     * @param key the key; may not be null
+     * @return true if the value was previously marked as unused, or false otherwise
+     */
+    synchronized boolean markUsed( BinaryKey key ) {
+        if (unusedSince.remove(key.toString()) == null) return false;
+        db.commit();
+        return true;
+    }
+
+    /**
+     * Get the keys of all of the values that are stored and used.
+     *
+     * @return the keys; never null
+     */
+    List<BinaryKey> usedKeys() {
+        List<BinaryKey> keys = new ArrayList<>();
+        for (String sha1 : locations.keySet()) {
+            if (!unusedSince.containsKey(sha1)) keys.add(new BinaryKey(sha1));
+        }
+        return keys;
+    }
+
+    /**
+     * Remove from the index all of the values that were marked as unused before the given time. The space they occupy is only
+     * reclaimed when their segments are {@link #compact() compacted}. The values are removed in batches, so that values can still
+     * be stored in the meantime.
+     *
+     * @param oldestTimestamp the time before which values must have been marked as unused to be removed
+     * @return the number of values that were removed
+     * @throws IOException if there is a problem recording the removals
+     */
+    int removeUnusedSince( long oldestTimestamp ) throws IOException {
+        List<String> candidates = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : unusedSince.entrySet()) {
+            if (entry.getValue() < oldestTimestamp) candidates.add(entry.getKey());
+        }
+        int removed = 0;
+        for (int start = 0; start < candidates.size(); start += REMOVAL_BATCH_SIZE) {
+            List<String> batch = candidates.subList(start, Math.min(start + REMOVAL_BATCH_SIZE, candidates.size()));
+            synchronized (this) {
+                int batchRemoved = 0;
+                for (String sha1 : batch) {
+                    // The value may have been used again since it was found ...
+                    Long since = unusedSince.get(sha1);
+                    if (since == null || since >= oldestTimestamp) continue;
+                    appendTombstone(new BinaryKey(sha1));
+                    locations.remove(sha1);
+                    unusedSince.remove(sha1);
+                    ++batchRemoved;
+                }
+                if (batchRemoved > 0) {
+                    commit();
+                    removed += batchRemoved;
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Compact the segments in the background, unless a compaction is already waiting to be run.
+     */
+    void compactInBackground() {
+        if (closed || !compactionScheduled.compareAndSet(false, true)) return;
+        try {
+            compactor.execute(() -> {
+                compactionScheduled.set(false);
+                try {
+                    int compacted = compact();
+                    if (compacted > 0) LOGGER.debug("Compacted {0} pack file(s) in '{1}'", compacted, directory);
+                } catch (IOException | RuntimeException e) {
+                    if (!closed) LOGGER.debug(e, "Error compacting the pack files in '{0}'; will try again later", directory);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the pack files are being closed ...
+            compactionScheduled.set(false);
+        }
+    }
+
+    /**
+     * Compact all segments (other than those being written) whose live values occupy less than half of the segment, by copying
+     * the live values to the current segment and deleting the old segment file. Values can still be stored and read while the
+     * segments are compacted.
+     *
+     * @return the number of segments that were compacted
+     * @throws IOException if there is a problem copying the values
+     */
+    int compact() throws IOException {
+        synchronized (compactionLock) {
+            // Determine the number of bytes used by the live values in each segment ...
+            Map<Long, Long> liveBytes = new HashMap<>();
+            for (long[] location : locations.values()) {
+                liveBytes.merge(location[SEGMENT], location[LENGTH] + HEADER_LENGTH, Long::sum);
+            }
+            int compacted = 0;
+            for (long segment : existingSegments()) {
+                if (closed) break;
+                if (isBeingWritten(segment)) continue;
+                File file = segmentFile(segment);
+                long live = liveBytes.getOrDefault(segment, 0L);
+                if (live >= file.length() * COMPACTION_THRESHOLD) continue;
+                LOGGER.debug("Compacting pack file '{0}' with {1} of {2} bytes in use", file, live, file.length());
+                if (!compact(segment)) break;
+                if (!file.delete()) {
+                    LOGGER.debug("Unable to delete compacted pack file '{0}'; will try again later", file);
+                    continue;
+                }
+                ++compacted;
+            }
+            return compacted;
+        }
+    }
+
+    private synchronized boolean isBeingWritten( long segment ) {
+        return segment >= currentSegment.get() || retiredTargets.containsKey(segment);
+    }
+
+    /**
+     * Copy the live values in the given segment to the current segment, and record their new locations.
+     *
+     * @param segment the segment to be compacted
+     * @return true if all the live values were copied, or false if the pack files were closed in the meantime
+     * @throws IOException if there is a problem copying the values
+     */
+    private boolean compact( long segment ) throws IOException {
+        List<Move> moves = new ArrayList<>();
+        boolean copied = false;
+        try (RandomAccessFile source = new RandomAccessFile(segmentFile(segment), "r")) {
+            FileChannel channel = source.getChannel();
+            scan(segment, ( key, tombstone, offset, length ) -> {
+                if (closed) throw new InterruptedIOException("The pack files were closed while compacting them");
+                String sha1 = key.toString();
+                long[] location = locations.get(sha1);
+                if (tombstone) {
+                    // Older segments may still contain the removed value, so keep the tombstone ...
+                    if (location == null) {
+                        synchronized (this) {
+                            if (!locations.containsKey(sha1)) appendTombstone(key);
+                        }
+                    }
+                } else if (location != null && location[SEGMENT] == segment && location[OFFSET] == offset) {
+                    Move move;
+                    synchronized (this) {
+                        move = new Move(sha1, location, reserve(key, PENDING_MAGIC, length));
+                    }
+                    moves.add(move);
+                    write(move.reservation, ( target, position ) -> copy(key, channel, offset, length, target, position));
+                }
+            });
+            // Make sure the copies are on disk before their locations are recorded ...
+            Set<AppendTarget> targets = new HashSet<>();
+            for (Move move : moves) {
+                if (targets.add(move.reservation.target)) move.reservation.target.channel().force(false);
+            }
+            copied = true;
+        } catch (InterruptedIOException e) {
+            LOGGER.debug("Stopped compacting pack file '{0}' because the pack files were closed", segmentFile(segment));
+        } finally {
+            synchronized (this) {
+                for (Move move : moves) {
+                    release(move.reservation);
+                    if (!copied) continue;
+                    long[] location = locations.get(move.sha1);
+                    if (Arrays.equals(location, move.from)) {
+                        locations.put(move.sha1, move.reservation.location());
+                        recorded(move.reservation);
+                    } else if (location == null) {
+                        // The value was removed while it was copied, so make sure the copy isn't found by a rebuild ...
+                        appendTombstone(new BinaryKey(move.sha1));
+                    }
+                }
+                // Make sure the new locations are recorded before the old segment is removed ...
+                if (copied) commit();
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * Close the index and the segments, after waiting for a running compaction to stop.
+     */
+    void close() {
+        closed = true;
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(COMPACTION_SHUTDOWN_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                if (!db.isClosed()) commit();
+            } catch (IOException e) {
+                LOGGER.debug(e, "Error committing the pack index");
+            }
+            try {
+                if (appendTarget != null) {
+                    appendTarget.file.close();
+                    appendTarget = null;
+                }
+                for (AppendTarget target : retiredTargets.values()) {
+                    target.file.close();
+                }
+                retiredTargets.clear();
+            } catch (IOException e) {
+                LOGGER.debug(e, "Error closing pack file");
+            } finally {
+                if (!db.isClosed()) {
+                    db.close();
+                }
+            }
+        }
+    }
+
+    boolean isClosed() {
+        return db.isClosed();
+    }
+
+    /**
+     * Force the records written to the current segment under the lock to disk, and only then commit the index which refers to
+     * them. The values which are written without the lock are forced by their writers.
+     *
+     * @throws IOException if there is a problem forcing the segment to disk
+     */
+    private void commit() throws IOException {
+        assert Thread.holdsLock(this);
+        if (unforced && appendTarget != null) {
+            appendTarget.channel().force(false);
+            segmentLength.set(Math.max(segmentLength.get(), unforcedEnd));
+        }
+        unforced = false;
+        db.commit();
+    }
+
+    /**
+     * Reserve the space for a new record at the end of the current segment and write its header, rolling over to a new segment
+     * if the record would not fit in the current one. The reservation must be {@link #release(Reservation) released} once the
+     * record has been written.
+     *
+     * @param key the key of the value; may not be null
+     * @param magic the marker of the record
+     * @param length the length of the value
+     * @return the reservation; never null
+     * @throws IOException if there is a problem writing the header
+     */
+    private Reservation reserve( BinaryKey key,
+                                 int magic,
+                                 long length ) throws IOException {
+        assert Thread.holdsLock(this);
+        AppendTarget target = appendTarget();
+        if (target.end > 0 && target.end + HEADER_LENGTH + length > segmentSize) {
+            // Roll over to a new segment ...
+            retire(target);
+            currentSegment.incrementAndGet();
+            segmentLength.set(0L);
+            target = appendTarget();
+        }
+        assert key.toBytes().length == SHA1_LENGTH;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(magic).put(key.toBytes()).putLong(length).flip();
+        long recordStart = target.end;
+        long position = recordStart;
+        while (header.hasRemaining()) {
+            position += target.channel().write(header, position);
+        }
+        target.end = recordStart + HEADER_LENGTH + length;
+        ++target.writers;
+        return new Reservation(target, recordStart, length);
+    }
+
+    /**
+     * Write the content of a reserved record, and then mark the record as complete. This is done without holding the lock.
+     *
+     * @param reservation the reservation; may not be null
+     * @param content the writer of the content; may not be null
+     * @throws IOException if there is a problem writing the record
+     */
+    private void write( Reservation reservation,
+                        ContentWriter content ) throws IOException {
+        FileChannel channel = reservation.target.channel();
+        content.write(channel, reservation.recordStart + HEADER_LENGTH);
+        ByteBuffer magic = ByteBuffer.allocate(4);
+        magic.putInt(RECORD_MAGIC).flip();
+        long position = reservation.recordStart;
+        while (magic.hasRemaining()) {
+            position += channel.write(magic, position);
+        }
+    }
+
+    private void release( Reservation reservation ) {
+        assert Thread.holdsLock(this);
+        AppendTarget target = reservation.target;
+        if (--target.writers == 0 && target.retired) {
+            retiredTargets.remove(target.segment);
+            try {
+                target.file.close();
+            } catch (IOException e) {
+                LOGGER.debug(e, "Error closing pack file");
+            }
+        }
+    }
+
+    /**
+     * Note that the index now refers to the supplied record, which must be on disk.
+     *
+     * @param reservation the reservation of the record; may not be null
+     */
+    private void recorded( Reservation reservation ) {
+        assert Thread.holdsLock(this);
+        if (reservation.target.segment == currentSegment.get()) {
+            segmentLength.set(Math.max(segmentLength.get(), reservation.recordStart + HEADER_LENGTH + reservation.length));
+        }
+    }
+
+    private void retire( AppendTarget target ) throws IOException {
+        assert Thread.holdsLock(this);
+        if (unforced) {
+            // Make sure the records in the previous segment are on disk before the index refers to the new one ...
+            target.channel().force(false);
+            unforced = false;
+        }
+        appendTarget = null;
+        if (target.writers == 0) {
+            target.file.close();
+        } else {
+            // Other threads are still writing values to the segment, so it is closed by the last of them ...
+            target.retired = true;
+            retiredTargets.put(target.segment, target);
+        }
+    }
+
+    private void appendTombstone( BinaryKey key ) throws IOException {
+        assert Thread.holdsLock(this);
+        Reservation reservation = reserve(key, TOMBSTONE_MAGIC, 0L);
+        release(reservation);
+        // The tombstone is only covered by the index once it has been forced to disk ...
+        unforcedEnd = reservation.recordStart + HEADER_LENGTH;
+        unforced = true;
+    }
+
+    private AppendTarget appendTarget() throws IOException {
+        assert Thread.holdsLock(this);
+        if (closed) throw new IOException("The pack files in '" + directory + "' have been closed");
+        if (appendTarget == null) {
+            long segment = currentSegment.get();
+            appendTarget = new AppendTarget(segment, new RandomAccessFile(segmentFile(segment), "rw"));
+        }
+        return appendTarget;
+    }
+
+    private static void copy( BinaryKey key,
+                              FileChannel source,
+                              long sourceOffset,
+                              long length,
+                              FileChannel target,
+                              long position ) throws IOException {
+        source.position(sourceOffset);
+        long copied = 0L;
+        while (copied < length) {
+            long count = target.transferFrom(source, position + copied, length - copied);
+            if (count <= 0) throw new EOFException("Unexpected end of content for binary value " + key);
+            copied += count;
+        }
+    }
+
+    private File segmentFile( long segment ) {
+        return new File(directory, SEGMENT_PREFIX + String.format("%08d", segment) + SEGMENT_SUFFIX);
+    }
+
+    private Set<Long> existingSegments() {
+        Set<Long> segments = new TreeSet<>();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                                   name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // not one of our files ...
+                    }
+                }
+            }
+        }
+        return segments;
+    }
+
+    private void rebuildIndex() throws IOException {
+        locations.clear();
+        unusedSince.clear();
+        long latest = 0L;
+        // Replay the segments in order, so that later records supersede earlier ones ...
+        for (long segment : existingSegments()) {
+            latest = Math.max(latest, segment);
+            LOGGER.debug("Rebuilding the pack index from '{0}'", segmentFile(segment));
+            scan(segment, ( key, tombstone, offset, length ) -> {
+                if (tombstone) {
+                    locations.remove(key.toString());
+                } else {
+                    locations.put(key.toString(), new long[] {segment, offset, length});
+                }
+            });
+        }
+        currentSegment.set(latest);
+        segmentLength.set(segmentFile(latest).length());
+        db.commit();
+    }
+
+    /**
+     * Visit each of the complete records in a segment, in order. Records which are still pending (e.g., because a crash happened
+     * while their content was written) are skipped, and any incomplete record at the end of the segment is discarded.
+     *
+     * @param segment the segment
+     * @param visitor the visitor
+     * @throws IOException if there is a problem reading the segment
+     */
+    private void scan( long segment,
+                       RecordVisitor visitor ) throws IOException {
+        File file = segmentFile(segment);
+        long fileLength = file.length();
+        long position = 0L;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] sha1 = new byte[SHA1_LENGTH];
+            while (position + HEADER_LENGTH <= fileLength) {
+                int magic = input.readInt();
+                if (magic != RECORD_MAGIC && magic != TOMBSTONE_MAGIC && magic != PENDING_MAGIC) break;
+                input.readFully(sha1);
+                long length = input.readLong();
+                if (position + HEADER_LENGTH + length > fileLength) break;
+                if (magic != PENDING_MAGIC) {
+                    visitor.visit(new BinaryKey(sha1), magic == TOMBSTONE_MAGIC, position + HEADER_LENGTH, length);
+                }
+                long skipped = 0L;
+                while (skipped < length) {
+                    skipped += input.skip(length - skipped);
+                }
+                position += HEADER_LENGTH + length;
+            }
+        }
+        if (position < fileLength) {
+            // Discard the incomplete record at the end, so that later records can be found ...
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(position);
+            }
+        }
+    }
+
+    /**
+     * A segment to which values are appended. It is kept open until all the values which were reserved in it are written.
+     */
+    private static final class AppendTarget {
+        private final long segment;
+        private final RandomAccessFile file;
+        // the following are guarded by the pack files ...
+        private long end;
+        private int writers;
+        private boolean retired;
+
+        private AppendTarget( long segment,
+                              RandomAccessFile file ) throws IOException {
+            this.segment = segment;
+            this.file = file;
+            this.end = file.length();
+        }
+
+        private FileChannel channel() {
+            return file.getChannel();
+        }
+    }
+
+    /**
+     * The space reserved for a record in a segment.
+     */
+    private static final class Reservation {
+        private final AppendTarget target;
+        private final long recordStart;
+        private final long length;
+
+        private Reservation( AppendTarget target,
+                             long recordStart,
+                             long length ) {
+            this.target = target;
+            this.recordStart = recordStart;
+            this.length = length;
+        }
+
+        private long[] location() {
+            return new long[] {target.segment, recordStart + HEADER_LENGTH, length};
+        }
+    }
+
+    /**
+     * A value which is copied out of a segment that is being compacted.
+     */
+    private static final class Move {
+        private final String sha1;
+        private final long[] from;
+        private final Reservation reservation;
+
+        private Move( String sha1,
+                      long[] from,
+                      Reservation reservation ) {
+            this.sha1 = sha1;
+            this.from = from;
+            this.reservation = reservation;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ContentWriter {
+        void write( FileChannel target,
+                    long position ) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor {
+        void visit( BinaryKey key,
+                    boolean tombstone,
+                    long offset,
+                    long length ) throws IOException;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.modeshape.common.annotation.NotThreadSafe;
+
+/**
+ * An {@link InputStream} that exposes a range of another stream, for stores that cannot natively start reading in the middle of
+ * a value. The bytes before the range are skipped when the stream is created, and the stream ends after the range.
+ */
+@NotThreadSafe
+final class RangedInputStream extends FilterInputStream {
+
+    /**
+     * Skip to the start of the range in the supplied stream, and return a stream that ends after the range. The supplied stream
+     * is closed if it cannot be positioned.
+     *
+     * @param stream the stream of the whole content; may not be null
+     * @param offset the number of bytes to skip; must be non-negative
+     * @param length the maximum number of bytes to read after the skipped bytes; must be non-negative
+     * @return the stream of the range; never null
+     * @throws IOException if there is a problem skipping over the bytes before the range
+     */
+    static InputStream of( InputStream stream,
+                           long offset,
+                           long length ) throws IOException {
+        try {
+            long remaining = offset;
+            while (remaining > 0L) {
+                long skipped = stream.skip(remaining);
+                if (skipped <= 0L) {
+                    // Some streams don't skip, so fall back to reading ...
+                    if (stream.read() == -1) break;
+                    skipped = 1L;
+                }
+                remaining -= skipped;
+            }
+        } catch (IOException | RuntimeException e) {
+            stream.close();
+            throw e;
+        }
+        return new RangedInputStream(stream, length);
+    }
+
+    private long remaining;
+
+    private RangedInputStream( InputStream stream,
+                               long length ) {
+        super(stream);
+        this.remaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0L) return -1;
+        int result = super.read();
+        if (result != -1) --remaining;
+        return result;
+    }
+
+    @Override
+    public int read( byte[] b,
+                     int off,
+                     int len ) throws IOException {
+        if (len == 0) return 0;
+        if (remaining <= 0L) return -1;
+        int count = super.read(b, off, (int)Math.min(len, remaining));
+        if (count > 0) remaining -= count;
+        return count;
+    }
+
+    @Override
+    public long skip( long n ) throws IOException {
+        long skipped = super.skip(Math.min(n, remaining));
+        if (skipped > 0L) remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int)Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
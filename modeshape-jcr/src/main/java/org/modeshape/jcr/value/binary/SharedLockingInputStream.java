@@ -36,6 +36,8 @@ public final class SharedLockingInputStream extends InputStream {
     protected final BinaryKey key;
     protected final File file;
     protected final NamedLocks lockManager;
+    protected final long offset;
+    protected final long length;
     protected InputStream stream;
     protected Lock processLock;
     protected FileLocks.WrappedLock fileLock;
@@ -52,11 +54,34 @@ public final class SharedLockingInputStream extends InputStream {
     public SharedLockingInputStream( BinaryKey key,
                                      File file,
                                      NamedLocks lockManager ) {
+        this(key, file, lockManager, 0L, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a self-closing, (shared) locking {@link InputStream} to read a range of the content of the supplied {@link File
+     * file}. The bytes before the range are never read.
+     *
+     * @param key the binary key; may not be null
+     * @param file the file that is to be read; may not be null
+     * @param lockManager the manager of the locks, from which a read lock is to be obtained; may be null if no read lock is
+     *        needed
+     * @param offset the position in the file of the first byte to be read; must be non-negative
+     * @param length the maximum number of bytes to be read; must be non-negative
+     */
+    public SharedLockingInputStream( BinaryKey key,
+                                     File file,
+                                     NamedLocks lockManager,
+                                     long offset,
+                                     long length ) {
         assert key != null;
         assert file != null;
+        assert offset >= 0L;
+        assert length >= 0L;
         this.key = key;
         this.file = file;
         this.lockManager = lockManager;
+        this.offset = offset;
+        this.length = length;
     }
 
     protected void open() throws IOException {
@@ -72,10 +97,19 @@ public final class SharedLockingInputStream extends InputStream {
                     // Also get a shared file lock to prevent other processes from modifying the file ...
                     SharedLockingInputStream.this.fileLock = FileLocks.get().readLock(file);
 
-                    // Now create a buffered stream ...
-                    SharedLockingInputStream.this.stream = new BufferedInputStream(
-                                                                                   new FileInputStream(file),
-                                                                                   AbstractBinaryStore.bestBufferSize(file.length()));
+                    // Now create a buffered stream, starting at the beginning of the range ...
+                    long fileLength = file.length();
+                    if (offset == 0L && length >= fileLength) {
+                        SharedLockingInputStream.this.stream = new BufferedInputStream(
+                                                                                       new FileInputStream(file),
+                                                                                       AbstractBinaryStore.bestBufferSize(fileLength));
+                    } else {
+                        long start = Math.min(offset, fileLength);
+                        long count = Math.min(length, fileLength - start);
+                        SharedLockingInputStream.this.stream = new BufferedInputStream(
+                                                                                       new FileRangeInputStream(file, start, count),
+                                                                                       AbstractBinaryStore.bestBufferSize(count));
+                    }
                     SharedLockingInputStream.this.eofReached = false;
                 }
                 return null;
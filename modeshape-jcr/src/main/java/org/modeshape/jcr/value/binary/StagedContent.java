@@ -0,0 +1,199 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import org.modeshape.common.SystemFailureException;
+import org.modeshape.common.annotation.NotThreadSafe;
+import org.modeshape.common.logging.Logger;
+import org.modeshape.jcr.JcrI18n;
+import org.modeshape.jcr.value.BinaryKey;
+
+/**
+ * The content of a binary value that is being stored, read from the supplied stream in a single pass that also computes the
+ * SHA-1 hash. Content that is no larger than a given limit is kept in memory, while larger content is written to a staging file
+ * as it is read. Stores should stage files on the same volume as their own files, so that moving a staged file into place is a
+ * cheap rename rather than another copy.
+ */
+@NotThreadSafe
+final class StagedContent implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(StagedContent.class);
+    private static final String STAGING_FILE_PREFIX = "ms-binary-staging";
+    private static final String STAGING_FILE_SUFFIX = ".tmp";
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Read and hash all of the content in the supplied stream. The stream is not closed.
+     *
+     * @param stream the stream with the content; may not be null
+     * @param inMemoryLimit the size of the largest content that is kept in memory
+     * @param stagingDirectory the directory in which larger content is written; may be null if the default temporary directory
+     *        should be used
+     * @return the staged content; never null
+     * @throws IOException if there is a problem reading the stream or writing the staging file
+     */
+    static StagedContent stage( InputStream stream,
+                                long inMemoryLimit,
+                                File stagingDirectory ) throws IOException {
+        MessageDigest digest = sha1Digest();
+        int limit = (int)Math.min(inMemoryLimit, Integer.MAX_VALUE - 8);
+        byte[] buffer = new byte[Math.max(1, Math.min(INITIAL_BUFFER_SIZE, limit + 1))];
+        int size = 0;
+        while (true) {
+            if (size == buffer.length) {
+                if (size > limit) break;
+                // Grow the buffer, but never beyond one byte more than the limit ...
+                buffer = Arrays.copyOf(buffer, (int)Math.min((long)limit + 1, 2L * buffer.length));
+            }
+            int count = stream.read(buffer, size, buffer.length - size);
+            if (count == -1) {
+                // All of the content fits in memory ...
+                digest.update(buffer, 0, size);
+                byte[] content = size == buffer.length ? buffer : Arrays.copyOf(buffer, size);
+                return new StagedContent(new BinaryKey(digest.digest()), size, content, null);
+            }
+            size += count;
+        }
+
+        // The content is too large to keep in memory, so write what we have and the rest of the stream to a file ...
+        if (stagingDirectory != null && !stagingDirectory.exists() && !stagingDirectory.mkdirs() && !stagingDirectory.exists()) {
+            throw new IOException(JcrI18n.unableToCreateDirectoryForBinaryStore.text(stagingDirectory.getAbsolutePath(),
+                                                                                   "staged binary values"));
+        }
+        File file = File.createTempFile(STAGING_FILE_PREFIX, STAGING_FILE_SUFFIX, stagingDirectory);
+        boolean success = false;
+        try (OutputStream out = new FileOutputStream(file)) {
+            digest.update(buffer, 0, size);
+            out.write(buffer, 0, size);
+            long total = size;
+            if (buffer.length < AbstractBinaryStore.MEDIUM_BUFFER_SIZE) buffer = new byte[AbstractBinaryStore.MEDIUM_BUFFER_SIZE];
+            int count;
+            while ((count = stream.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+                out.write(buffer, 0, count);
+                total += count;
+            }
+            success = true;
+            return new StagedContent(new BinaryKey(digest.digest()), total, null, file);
+        } finally {
+            if (!success) delete(file);
+        }
+    }
+
+    private static MessageDigest sha1Digest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new SystemFailureException(e);
+        }
+    }
+
+    private static void delete( File file ) {
+        if (file.exists() && !file.delete()) {
+            LOGGER.warn(JcrI18n.unableToDeleteTemporaryFile, file.getAbsolutePath(), "");
+        }
+    }
+
+    private final BinaryKey key;
+    private final long size;
+    private final byte[] content;
+    private final File file;
+
+    private StagedContent( BinaryKey key,
+                           long size,
+                           byte[] content,
+                           File file ) {
+        this.key = key;
+        this.size = size;
+        this.content = content;
+        this.file = file;
+    }
+
+    /**
+     * Get the key computed from the content.
+     *
+     * @return the key; never null
+     */
+    BinaryKey getKey() {
+        return key;
+    }
+
+    /**
+     * Get the size of the content.
+     *
+     * @return the size in bytes; never negative
+     */
+    long getSize() {
+        return size;
+    }
+
+    /**
+     * Determine whether the content is held in memory.
+     *
+     * @return true if {@link #getContent()} returns the content, or false if {@link #getFile()} does
+     */
+    boolean isInMemory() {
+        return content != null;
+    }
+
+    /**
+     * Get the content if it is held in memory.
+     *
+     * @return the content, or null if it was written to a staging file
+     */
+    byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * Get the staging file if the content was too large to hold in memory. The file is deleted when this object is
+     * {@link #close() closed}, unless it has been moved elsewhere.
+     *
+     * @return the staging file, or null if the content is held in memory
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Open a new stream to the content.
+     *
+     * @return the stream; never null
+     * @throws IOException if the staging file cannot be opened
+     */
+    InputStream openStream() throws IOException {
+        return content != null ? new ByteArrayInputStream(content) : new FileInputStream(file);
+    }
+
+    /**
+     * Delete the staging file, if there is one and it still exists.
+     */
+    @Override
+    public void close() {
+        if (file != null) delete(file);
+    }
+}
@@ -17,6 +17,7 @@ package org.modeshape.jcr.value.binary;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
 import javax.jcr.RepositoryException;
 import org.modeshape.common.annotation.Immutable;
 import org.modeshape.jcr.value.BinaryKey;
@@ -69,6 +70,19 @@ public class StoredBinaryValue extends AbstractBinary {
     protected InputStream internalStream() throws RepositoryException {
         return store.getInputStream(getKey());
     }
+
+    @Override
+    protected InputStream internalStream( long offset,
+                                          long length ) throws RepositoryException {
+        return store.getInputStream(getKey(), offset, length);
+    }
+
+    @Override
+    public long transferTo( long offset,
+                            long length,
+                            WritableByteChannel target ) throws IOException, RepositoryException {
+        return store.transferTo(getKey(), offset, length, target);
+    }
     
     protected String mimeType() {
         return this.mimeType;
@@ -0,0 +1,219 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import org.mapdb.Atomic;
+import org.mapdb.BTreeKeySerializer;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+import org.modeshape.common.annotation.ThreadSafe;
+import org.modeshape.jcr.value.BinaryKey;
+
+/**
+ * An on-disk index of the binary values that are no longer used, ordered by the time at which they became unused. This is used by
+ * the {@link FileSystemBinaryStore} instead of a tree of trash files, so that garbage collection only visits the values that have
+ * been unused for long enough, in the order they became unused, rather than walking the whole tree.
+ * <p>
+ * The index is kept in a MapDB database with two collections: a map from the SHA-1 of each unused value to the time it became
+ * unused, and a sorted set of entries that combine that time (as fixed-width hexadecimal) with the SHA-1, so that the values
+ * unused before a given time are at the head of the set. The database also records whether the trash files written before the
+ * index was enabled have all been moved into the index.
+ * </p>
+ */
+@ThreadSafe
+final class UnusedValueIndex {
+
+    static final String INDEX_FILENAME = "unused-index.db";
+    private static final String MIGRATED = "trashFilesMigrated";
+
+    private final DB db;
+    /** The time at which each unused value was marked as unused, keyed by SHA-1 */
+    private final HTreeMap<String, Long> unusedSince;
+    /** The unused values in the order they became unused; each entry is the time in fixed-width hex followed by the SHA-1 */
+    private final NavigableSet<String> byTime;
+    /** Whether the trash files have been moved into the index */
+    private final Atomic.Boolean migrated;
+
+    UnusedValueIndex( File directory ) throws IOException {
+        if (!directory.exists() && !directory.mkdirs() && !directory.exists()) {
+            throw new IOException("Unable to create directory for the index of unused binary values: " + directory);
+        }
+        File indexFile = new File(directory, INDEX_FILENAME);
+        this.db = DBMaker.newFileDB(indexFile).commitFileSyncDisable().closeOnJvmShutdown().make();
+        this.unusedSince = db.createHashMap("unusedSince").keySerializer(Serializer.STRING).valueSerializer(Serializer.LONG)
+                             .makeOrGet();
+        this.byTime = db.createTreeSet("byTime").serializer(BTreeKeySerializer.STRING).makeOrGet();
+        this.migrated = db.exists(MIGRATED) ? db.getAtomicBoolean(MIGRATED) : db.createAtomicBoolean(MIGRATED, false);
+    }
+
+    /**
+     * Determine whether all of the trash files have been moved into this index. This is only the case once
+     * {@link #markMigrated()} has been called, so a migration that was interrupted is resumed the next time the index is opened.
+     *
+     * @return true if the trash files have been moved into the index, or false otherwise
+     */
+    boolean isMigrated() {
+        return migrated.get();
+    }
+
+    /**
+     * Record that all of the trash files have been moved into this index, and commit all of the changes.
+     */
+    synchronized void markMigrated() {
+        migrated.set(true);
+        db.commit();
+    }
+
+    private static String timeKey( long timestamp,
+                                   String sha1 ) {
+        return String.format("%016x%s", timestamp, sha1);
+    }
+
+    /**
+     * Record that the value with the given key became unused at the given time, unless it is already recorded as unused. The
+     * change is committed before this method returns.
+     *
+     * @param key the key; may not be null
+     * @param timestamp the time at which the value became unused
+     * @return true if the value was recorded, or false if it was already recorded as unused
+     */
+    synchronized boolean markUnused( BinaryKey key,
+                                     long timestamp ) {
+        if (!add(key, timestamp)) return false;
+        db.commit();
+        return true;
+    }
+
+    /**
+     * Record that the value with the given key became unused at the given time, unless it is already recorded as unused,
+     * without committing the change.
+     *
+     * @param key the key; may not be null
+     * @param timestamp the time at which the value became unused
+     * @return true if the value was recorded, or false if it was already recorded as unused
+     * @see #commit()
+     */
+    synchronized boolean add( BinaryKey key,
+                              long timestamp ) {
+        String sha1 = key.toString();
+        if (unusedSince.putIfAbsent(sha1, timestamp) != null) return false;
+        byTime.add(timeKey(timestamp, sha1));
+        return true;
+    }
+
+    /**
+     * Record that the value with the given key is used. The change is committed before this method returns.
+     *
+     * @param key the key; may not be null
+     * @return true if the value was recorded as unused, or false otherwise
+     */
+    synchronized boolean markUsed( BinaryKey key ) {
+        if (!remove(key)) return false;
+        db.commit();
+        return true;
+    }
+
+    /**
+     * Remove the value with the given key from the index, without committing the change.
+     *
+     * @param key the key; may not be null
+     * @return true if the value was recorded as unused, or false otherwise
+     * @see #commit()
+     */
+    synchronized boolean remove( BinaryKey key ) {
+        String sha1 = key.toString();
+        Long timestamp = unusedSince.remove(sha1);
+        if (timestamp == null) return false;
+        byTime.remove(timeKey(timestamp, sha1));
+        return true;
+    }
+
+    /**
+     * Determine whether the value with the given key is recorded as unused.
+     *
+     * @param key the key; may not be null
+     * @return true if the value is unused, or false otherwise
+     */
+    boolean isUnused( BinaryKey key ) {
+        return unusedSince.containsKey(key.toString());
+    }
+
+    /**
+     * Determine whether the value with the given key has been unused since before the given time.
+     *
+     * @param key the key; may not be null
+     * @param oldestTimestamp the time
+     * @return true if the value became unused before the time, or false otherwise
+     */
+    boolean isUnusedBefore( BinaryKey key,
+                            long oldestTimestamp ) {
+        Long timestamp = unusedSince.get(key.toString());
+        return timestamp != null && timestamp < oldestTimestamp;
+    }
+
+    /**
+     * Get the number of unused values.
+     *
+     * @return the number of values; never negative
+     */
+    long size() {
+        return unusedSince.sizeLong();
+    }
+
+    /**
+     * Find the values that became unused before the given time, in the order they became unused.
+     *
+     * @param oldestTimestamp the time
+     * @param maximum the maximum number of keys to return
+     * @return the keys; never null
+     */
+    synchronized List<BinaryKey> unusedBefore( long oldestTimestamp,
+                                               int maximum ) {
+        List<BinaryKey> keys = new ArrayList<>();
+        String upper = timeKey(oldestTimestamp, "");
+        Iterator<String> iter = byTime.headSet(upper, false).iterator();
+        while (iter.hasNext() && keys.size() < maximum) {
+            keys.add(new BinaryKey(iter.next().substring(16)));
+        }
+        return keys;
+    }
+
+    /**
+     * Make the changes since the last commit durable.
+     */
+    synchronized void commit() {
+        db.commit();
+    }
+
+    synchronized void close() {
+        if (!db.isClosed()) {
+            db.commit();
+            db.close();
+        }
+    }
+
+    boolean isClosed() {
+        return db.isClosed();
+    }
+}
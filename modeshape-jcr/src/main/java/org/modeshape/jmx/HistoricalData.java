@@ -29,6 +29,10 @@ public class HistoricalData {
     private final String start;
     private final String end;
     private final List<StatisticalData> statisticalData;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
 
     /**
      * @param timeWindow the name of the time windows for which the data is produced.
@@ -36,15 +40,40 @@ public class HistoricalData {
      * @param end the ISO-8601 format of the end time
      * @param statisticalData a list of {@link StatisticalData} for the interval
      */
-    @ConstructorProperties( {"timeWindow", "start", "end", "statisticalData"} )
     public HistoricalData( String timeWindow,
                            String start,
                            String end,
                            List<StatisticalData> statisticalData ) {
+        this(timeWindow, start, end, statisticalData, -1L, -1L, -1L, -1L);
+    }
+
+    /**
+     * @param timeWindow the name of the time windows for which the data is produced.
+     * @param start the ISO-8601 format of the start time
+     * @param end the ISO-8601 format of the end time
+     * @param statisticalData a list of {@link StatisticalData} for the interval
+     * @param p50 the 50th percentile (median) over the whole time window, or -1 if not available
+     * @param p90 the 90th percentile over the whole time window, or -1 if not available
+     * @param p99 the 99th percentile over the whole time window, or -1 if not available
+     * @param p999 the 99.9th percentile over the whole time window, or -1 if not available
+     */
+    @ConstructorProperties( {"timeWindow", "start", "end", "statisticalData", "p50", "p90", "p99", "p999"} )
+    public HistoricalData( String timeWindow,
+                           String start,
+                           String end,
+                           List<StatisticalData> statisticalData,
+                           long p50,
+                           long p90,
+                           long p99,
+                           long p999 ) {
         this.timeWindow = timeWindow;
         this.start = start;
         this.end = end;
         this.statisticalData = statisticalData;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
     }
 
     /**
@@ -74,4 +103,32 @@ public class HistoricalData {
     public List<StatisticalData> getStatisticalData() {
         return statisticalData;
     }
+
+    /**
+     * @return the 50th percentile (median) over the whole time window, or -1 if not available
+     */
+    public long getP50() {
+        return p50;
+    }
+
+    /**
+     * @return the 90th percentile over the whole time window, or -1 if not available
+     */
+    public long getP90() {
+        return p90;
+    }
+
+    /**
+     * @return the 99th percentile over the whole time window, or -1 if not available
+     */
+    public long getP99() {
+        return p99;
+    }
+
+    /**
+     * @return the 99.9th percentile over the whole time window, or -1 if not available
+     */
+    public long getP999() {
+        return p999;
+    }
 }
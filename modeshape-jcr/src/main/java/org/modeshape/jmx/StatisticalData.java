@@ -29,6 +29,10 @@ public class StatisticalData implements Statistics {
     private final long minimum;
     private final double mean;
     private final double variance;
+    private final long p50;
+    private final long p90;
+    private final long p99;
+    private final long p999;
 
     /**
      * @param count number of elements in the sample
@@ -37,17 +41,44 @@ public class StatisticalData implements Statistics {
      * @param mean sample mean
      * @param variance sample variance
      */
-    @ConstructorProperties( {"count", "maximum", "minimum", "mean", "variance"} )
     public StatisticalData( int count,
                             long maximum,
                             long minimum,
                             double mean,
                             double variance ) {
+        this(count, maximum, minimum, mean, variance, -1L, -1L, -1L, -1L);
+    }
+
+    /**
+     * @param count number of elements in the sample
+     * @param maximum max value from the sample
+     * @param minimum min value from the sample
+     * @param mean sample mean
+     * @param variance sample variance
+     * @param p50 the 50th percentile (median) of the sample, or -1 if not available
+     * @param p90 the 90th percentile of the sample, or -1 if not available
+     * @param p99 the 99th percentile of the sample, or -1 if not available
+     * @param p999 the 99.9th percentile of the sample, or -1 if not available
+     */
+    @ConstructorProperties( {"count", "maximum", "minimum", "mean", "variance", "p50", "p90", "p99", "p999"} )
+    public StatisticalData( int count,
+                            long maximum,
+                            long minimum,
+                            double mean,
+                            double variance,
+                            long p50,
+                            long p90,
+                            long p99,
+                            long p999 ) {
         this.count = count;
         this.maximum = maximum;
         this.minimum = minimum;
         this.mean = mean;
         this.variance = variance;
+        this.p50 = p50;
+        this.p90 = p90;
+        this.p99 = p99;
+        this.p999 = p999;
     }
 
     @Override
@@ -79,4 +110,41 @@ public class StatisticalData implements Statistics {
     public double getStandardDeviation() {
         return variance <= 0.0d ? 0.0d : Math.sqrt(variance);
     }
+
+    /**
+     * @return the 50th percentile (median) of the sample, or -1 if not available
+     */
+    public long getP50() {
+        return p50;
+    }
+
+    /**
+     * @return the 90th percentile of the sample, or -1 if not available
+     */
+    public long getP90() {
+        return p90;
+    }
+
+    /**
+     * @return the 99th percentile of the sample, or -1 if not available
+     */
+    public long getP99() {
+        return p99;
+    }
+
+    /**
+     * @return the 99.9th percentile of the sample, or -1 if not available
+     */
+    public long getP999() {
+        return p999;
+    }
+
+    @Override
+    public long getPercentile( double percentile ) {
+        if (percentile == 50.0d) return p50;
+        if (percentile == 90.0d) return p90;
+        if (percentile == 99.0d) return p99;
+        if (percentile == 99.9d) return p999;
+        return -1L;
+    }
 }
@@ -19,9 +19,11 @@ import static org.hamcrest.core.Is.is;
 import static org.modeshape.schematic.Schematic.newDocument;
 import static org.junit.Assert.assertThat;
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import org.modeshape.schematic.document.Document;
 import org.junit.After;
 import org.junit.Before;
@@ -199,4 +201,92 @@ public class BackupDocumentWriterAndReaderTest {
         assertThat(readDocs.size(), is(documents.size()));
         assertDocuments(readDocs, documents);
     }
+
+    @Test
+    public void shouldWriteAndReadFilesOfWritersSharingTheFileNumbers() throws Exception {
+        AtomicLong fileNumbers = new AtomicLong();
+        writer = new BackupDocumentWriter(testDirectory, "backup", 1, true, problems, fileNumbers);
+        BackupDocumentWriter other = new BackupDocumentWriter(testDirectory, "backup", 1, false, problems, fileNumbers);
+        writer.write(documents.get(0));
+        other.write(documents.get(1));
+        writer.write(documents.get(2));
+        writer.close();
+        other.close();
+        assertNoProblems();
+        assertThat(writer.getFileCount(), is(2L));
+        assertThat(other.getFileCount(), is(1L));
+
+        // The files are numbered consecutively across the writers ...
+        List<File> files = BackupDocumentReader.filesIn(testDirectory, "backup");
+        assertThat(files.size(), is(3));
+        assertThat(files.get(1).getName(), is("backup_000002" + BackupDocumentWriter.DOCUMENTS_EXTENSION));
+
+        // Each file can be read separately ...
+        List<Document> readDocs = new ArrayList<Document>();
+        for (File file : files) {
+            reader = new BackupDocumentReader(file, problems);
+            readDocs.addAll(readAllDocuments());
+        }
+        assertNoProblems();
+        assertDocuments(readDocs, documents);
+    }
+
+    @Test
+    public void shouldWriteAndReadBsonFilesWithMultipleSegments() throws Exception {
+        for (boolean compress : new boolean[] {true, false}) {
+            FileUtil.delete(testDirectory);
+            testDirectory.mkdirs();
+            // Use segments small enough to hold just one or two documents ...
+            writer = new BackupDocumentWriter(testDirectory, "backup", 2, compress, problems, new AtomicLong(), true, 60);
+            for (Document doc : documents) {
+                writer.write(doc);
+            }
+            writer.close();
+            assertNoProblems();
+
+            List<File> files = BackupDocumentReader.filesIn(testDirectory, "backup");
+            assertThat(files.size(), is(2));
+            assertThat(files.get(0).getName(), is("backup_000001" + BackupDocumentWriter.BSON_DOCUMENTS_EXTENSION));
+            for (File file : files) {
+                assertThat(BackupDocumentReader.verify(file, problems), is(true));
+            }
+            reader = new BackupDocumentReader(testDirectory, "backup", problems);
+            List<Document> readDocs = readAllDocuments();
+            assertNoProblems();
+            assertDocuments(readDocs, documents);
+        }
+    }
+
+    @Test
+    public void shouldDetectCorruptBsonFiles() throws Exception {
+        writer = new BackupDocumentWriter(testDirectory, "backup", 5, true, problems, new AtomicLong(), true, 60);
+        for (Document doc : documents) {
+            writer.write(doc);
+        }
+        writer.close();
+        assertNoProblems();
+        File file = BackupDocumentReader.filesIn(testDirectory, "backup").get(0);
+
+        // Change the last byte of the file, which is in the data of the last segment ...
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 1);
+            int last = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(last ^ 0xFF);
+        }
+        assertThat(BackupDocumentReader.verify(file, problems), is(false));
+        assertThat(problems.errorCount(), is(1));
+
+        // The documents before the corrupt segment are read, but the corruption is reported ...
+        problems = new SimpleProblems();
+        reader = new BackupDocumentReader(file, problems);
+        List<Document> readDocs = readAllDocuments();
+        assertThat(readDocs.size() < documents.size(), is(true));
+        assertThat(problems.hasErrors(), is(true));
+
+        // A file whose index is missing can't be verified ...
+        problems = new SimpleProblems();
+        assertThat(BackupDocumentWriter.indexFileFor(file).delete(), is(true));
+        assertThat(BackupDocumentReader.verify(file, problems), is(false));
+    }
 }
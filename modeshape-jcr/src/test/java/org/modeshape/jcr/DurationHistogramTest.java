@@ -0,0 +1,127 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import java.util.Arrays;
+import org.junit.Test;
+import org.modeshape.jcr.api.monitor.Statistics;
+
+public class DurationHistogramTest {
+
+    @Test
+    public void shouldCoverAllValuesWithContiguousBuckets() {
+        assertThat(DurationHistogram.lowestEquivalentValue(0), is(0L));
+        for (int index = 1; index != DurationHistogram.BUCKET_COUNT; ++index) {
+            long lowest = DurationHistogram.lowestEquivalentValue(index);
+            assertThat(lowest, is(DurationHistogram.highestEquivalentValue(index - 1) + 1L));
+            assertThat(DurationHistogram.bucketIndex(lowest), is(index));
+            assertThat(DurationHistogram.bucketIndex(DurationHistogram.highestEquivalentValue(index)), is(index));
+        }
+        assertThat(DurationHistogram.bucketIndex(Long.MAX_VALUE), is(DurationHistogram.BUCKET_COUNT - 1));
+        assertThat(DurationHistogram.bucketIndex(-1L), is(0));
+    }
+
+    @Test
+    public void shouldCountSmallValuesExactly() {
+        for (long value = 0L; value != DurationHistogram.SUB_BUCKET_COUNT; ++value) {
+            int index = DurationHistogram.bucketIndex(value);
+            assertThat(DurationHistogram.lowestEquivalentValue(index), is(value));
+            assertThat(DurationHistogram.highestEquivalentValue(index), is(value));
+        }
+    }
+
+    @Test
+    public void shouldComputePercentilesWithinPrecision() {
+        DurationHistogram histogram = histogramOf(1L, 100000L);
+        assertThat(histogram.getTotalCount(), is(100000L));
+        assertWithinPrecision(histogram.getValueAtPercentile(50.0d), 50000L);
+        assertWithinPrecision(histogram.getValueAtPercentile(90.0d), 90000L);
+        assertWithinPrecision(histogram.getValueAtPercentile(99.0d), 99000L);
+        assertWithinPrecision(histogram.getValueAtPercentile(99.9d), 99900L);
+        assertWithinPrecision(histogram.getMaximum(), 100000L);
+        assertThat(histogram.getMinimum(), is(1L));
+        assertThat(histogram.getValueAtPercentile(0.0d), is(1L));
+    }
+
+    @Test
+    public void shouldMergeHistogramsWithoutLosingPrecision() {
+        DurationHistogram lower = histogramOf(1L, 50000L);
+        DurationHistogram upper = histogramOf(50001L, 100000L);
+        DurationHistogram merged = DurationHistogram.merge(Arrays.asList(lower, null, upper));
+        DurationHistogram all = histogramOf(1L, 100000L);
+        assertThat(merged.getTotalCount(), is(all.getTotalCount()));
+        for (double percentile : new double[] {0.0d, 10.0d, 50.0d, 90.0d, 99.0d, 99.9d, 100.0d}) {
+            assertThat(merged.getValueAtPercentile(percentile), is(all.getValueAtPercentile(percentile)));
+        }
+    }
+
+    @Test
+    public void shouldDrainOnlyValuesRecordedSinceLastDrain() throws Exception {
+        final DurationHistogram.Recorder recorder = new DurationHistogram.Recorder(Thread.currentThread());
+        recorder.record(10L);
+        recorder.record(1000L);
+        long[] bucketCounts = new long[DurationHistogram.BUCKET_COUNT];
+        assertThat(recorder.drainInto(bucketCounts), is(1010L));
+        assertThat(DurationHistogram.of(bucketCounts).getTotalCount(), is(2L));
+
+        Thread thread = new Thread(() -> recorder.record(20L));
+        thread.start();
+        thread.join();
+        bucketCounts = new long[DurationHistogram.BUCKET_COUNT];
+        assertThat(recorder.drainInto(bucketCounts), is(20L));
+        DurationHistogram histogram = DurationHistogram.of(bucketCounts);
+        assertThat(histogram.getTotalCount(), is(1L));
+        assertThat(histogram.getValueAtPercentile(50.0d), is(20L));
+
+        bucketCounts = new long[DurationHistogram.BUCKET_COUNT];
+        assertThat(recorder.drainInto(bucketCounts), is(0L));
+        assertThat(DurationHistogram.of(bucketCounts).getTotalCount(), is(0L));
+    }
+
+    @Test
+    public void shouldRollUpPercentilesInStatistics() {
+        Statistics lower = RepositoryStatistics.statisticsFor(histogramOf(1L, 500L), sum(1L, 500L));
+        Statistics upper = RepositoryStatistics.statisticsFor(histogramOf(501L, 1000L), sum(501L, 1000L));
+        Statistics rolledUp = RepositoryStatistics.statisticsFor(new Statistics[] {lower, null, upper});
+        assertThat(rolledUp.getCount(), is(1000));
+        assertThat(rolledUp.getMean(), is(500.5d));
+        assertWithinPrecision(rolledUp.getPercentile(50.0d), 500L);
+        assertWithinPrecision(rolledUp.getPercentile(99.0d), 990L);
+        assertThat(RepositoryStatistics.statisticsFor(42L).getPercentile(50.0d), is(-1L));
+    }
+
+    protected static DurationHistogram histogramOf( long first,
+                                                    long last ) {
+        long[] bucketCounts = new long[DurationHistogram.BUCKET_COUNT];
+        for (long value = first; value <= last; ++value) {
+            ++bucketCounts[DurationHistogram.bucketIndex(value)];
+        }
+        return DurationHistogram.of(bucketCounts);
+    }
+
+    protected static long sum( long first,
+                               long last ) {
+        return (first + last) * (last - first + 1L) / 2L;
+    }
+
+    protected static void assertWithinPrecision( long actual,
+                                                 long expected ) {
+        assertTrue("Expected " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 16L);
+    }
+}
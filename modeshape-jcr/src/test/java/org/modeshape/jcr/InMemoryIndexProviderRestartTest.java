@@ -0,0 +1,97 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import javax.jcr.Node;
+import javax.jcr.query.Query;
+import org.junit.Test;
+import org.modeshape.common.util.FileUtil;
+import org.modeshape.jcr.index.local.InMemoryIndexProvider;
+
+/**
+ * Tests that the changes which were still waiting to be applied to the asynchronous indexes of an
+ * {@link InMemoryIndexProvider} when it wrote a snapshot are recovered after a restart.
+ */
+public class InMemoryIndexProviderRestartTest extends SingleUseAbstractTest {
+
+    private static final String DIRECTORY = "target/in_memory_index_restart";
+
+    protected static volatile long commitDelayInMillis;
+
+    @Test
+    public void shouldReindexChangesThatWerePendingWhenTheSnapshotWasWritten() throws Exception {
+        FileUtil.delete(DIRECTORY);
+        commitDelayInMillis = TimeUnit.HOURS.toMillis(1);
+        startRepositoryWithConfiguration(configuration());
+
+        Node node = session.getRootNode().addNode("pending");
+        node.setProperty("title", "pending");
+        session.save();
+
+        // The periodic snapshot is written while the change is still waiting to be applied to the index ...
+        DelayedInMemoryIndexProvider provider = (DelayedInMemoryIndexProvider)repository.queryManager().getIndexManager()
+                                                                                          .getProvider("in-memory");
+        provider.writeSnapshot();
+        File snapshot = new File(DIRECTORY + "/indexes/in-memory-indexes.snapshot");
+        File copy = new File(DIRECTORY + "/snapshot.copy");
+        assertTrue(snapshot.exists());
+        Files.copy(snapshot.toPath(), copy.toPath());
+
+        // and the process then terminates before the change is applied or another snapshot is written ...
+        stopRepository();
+        Files.copy(copy.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        // so the change has to be recovered from the journal when the repository is restarted ...
+        commitDelayInMillis = 0L;
+        startRepositoryWithConfiguration(configuration());
+        String sql = "SELECT [jcr:path] FROM [nt:unstructured] WHERE [title] = 'pending'";
+        Query query = session.getWorkspace().getQueryManager().createQuery(sql, Query.JCR_SQL2);
+        assertThat(query.execute().getNodes().getSize(), is(1L));
+    }
+
+    protected String configuration() {
+        return "{ 'name' : '" + REPO_NAME + "', "
+               + "'storage' : { 'persistence' : { 'type' : 'file', 'path' : '" + DIRECTORY + "/store' } }, "
+               + "'journaling' : { 'location' : '" + DIRECTORY + "/journal' }, "
+               + "'indexProviders' : { 'in-memory' : { 'classname' : '" + DelayedInMemoryIndexProvider.class.getName() + "', "
+               + "'directory' : '" + DIRECTORY + "/indexes', 'snapshotIntervalInSeconds' : 0 } }, "
+               + "'indexes' : { 'titles' : { 'kind' : 'value', 'provider' : 'in-memory', 'synchronous' : false, "
+               + "'nodeType' : 'nt:unstructured', 'columns' : 'title(STRING)' } }, "
+               + "'reindexing' : { 'async' : false, 'mode' : 'incremental' } }";
+    }
+
+    /**
+     * An {@link InMemoryIndexProvider} whose asynchronous indexes wait {@link #commitDelayInMillis} before applying changes.
+     */
+    public static class DelayedInMemoryIndexProvider extends InMemoryIndexProvider {
+        @Override
+        protected long asynchronousCommitDelayInMillis() {
+            return commitDelayInMillis;
+        }
+
+        @Override
+        public synchronized void writeSnapshot() {
+            super.writeSnapshot();
+        }
+    }
+}
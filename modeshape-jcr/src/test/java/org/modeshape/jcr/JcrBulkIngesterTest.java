@@ -0,0 +1,136 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.jcr.InvalidItemStateException;
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.nodetype.ConstraintViolationException;
+import javax.jcr.observation.Event;
+import org.junit.Test;
+import org.modeshape.jcr.api.BulkIngestOptions;
+import org.modeshape.jcr.api.BulkIngester;
+
+/**
+ * Unit test for {@link JcrBulkIngester}.
+ */
+public class JcrBulkIngesterTest extends SingleUseAbstractTest {
+
+    private static final BulkIngestOptions SMALL_BATCHES = new BulkIngestOptions() {
+        @Override
+        public int batchSize() {
+            return 7;
+        }
+    };
+
+    @Test
+    public void shouldIngestNodesInMultipleBatches() throws Exception {
+        Node parent = session.getRootNode().addNode("parent");
+        session.save();
+
+        int childCount = 50;
+        try (BulkIngester ingester = session.bulkIngester(SMALL_BATCHES)) {
+            for (int i = 0; i != childCount; ++i) {
+                Map<String, Object> properties = new HashMap<>();
+                properties.put("index", session.getValueFactory().createValue(i));
+                properties.put("tags", new Value[] {session.getValueFactory().createValue("a"),
+                    session.getValueFactory().createValue("b")});
+                String childId = ingester.addNode(parent.getIdentifier(), "child", "nt:unstructured", null, properties);
+                ingester.addNode(childId, "grandchild", "nt:unstructured", new String[] {"mix:referenceable"}, null);
+            }
+        }
+
+        session.refresh(false);
+        parent = session.getNode("/parent");
+        assertEquals(childCount, parent.getNodes().getSize());
+        for (int i = 0; i != childCount; ++i) {
+            Node child = session.getNode("/parent/child[" + (i + 1) + "]");
+            assertEquals(i, child.getProperty("index").getLong());
+            assertEquals(2, child.getProperty("tags").getValues().length);
+            Node grandchild = child.getNode("grandchild");
+            assertTrue(grandchild.isNodeType("mix:referenceable"));
+            assertEquals(grandchild.getIdentifier(), grandchild.getProperty("jcr:uuid").getString());
+        }
+    }
+
+    @Test
+    public void shouldFireEventsForIngestedNodes() throws Exception {
+        Node parent = session.getRootNode().addNode("parent");
+        session.save();
+
+        int childCount = 20;
+        final Set<String> addedPaths = Collections.synchronizedSet(new HashSet<String>());
+        final CountDownLatch latch = new CountDownLatch(childCount);
+        session.getWorkspace().getObservationManager().addEventListener(events -> {
+            while (events.hasNext()) {
+                try {
+                    addedPaths.add(events.nextEvent().getPath());
+                } catch (RepositoryException e) {
+                    throw new RuntimeException(e);
+                }
+                latch.countDown();
+            }
+        }, Event.NODE_ADDED, "/parent", true, null, null, false);
+
+        try (BulkIngester ingester = session.bulkIngester(SMALL_BATCHES)) {
+            for (int i = 0; i != childCount; ++i) {
+                ingester.addNode(parent.getIdentifier(), "child", "nt:unstructured", null, null);
+            }
+        }
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i != childCount; ++i) {
+            assertTrue(addedPaths.contains("/parent/child[" + (i + 1) + "]"));
+        }
+    }
+
+    @Test( expected = ConstraintViolationException.class )
+    public void shouldNotIngestVersionableNodes() throws Exception {
+        try (BulkIngester ingester = session.bulkIngester(null)) {
+            ingester.addNode(session.getRootNode().getIdentifier(), "node", "nt:unstructured",
+                             new String[] {"mix:versionable"}, null);
+        }
+    }
+
+    @Test( expected = ConstraintViolationException.class )
+    public void shouldNotIngestReferenceProperties() throws Exception {
+        Node target = session.getRootNode().addNode("target");
+        target.addMixin("mix:referenceable");
+        session.save();
+
+        Map<String, Object> properties = new HashMap<>();
+        properties.put("ref", session.getValueFactory().createValue(target));
+        try (BulkIngester ingester = session.bulkIngester(null)) {
+            ingester.addNode(session.getRootNode().getIdentifier(), "node", "nt:unstructured", null, properties);
+        }
+    }
+
+    @Test( expected = InvalidItemStateException.class )
+    public void shouldNotCreateIngesterWithPendingChanges() throws Exception {
+        session.getRootNode().addNode("pending");
+        session.bulkIngester(null);
+    }
+}
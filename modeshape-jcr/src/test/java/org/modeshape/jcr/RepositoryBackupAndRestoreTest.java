@@ -27,7 +27,9 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -345,6 +347,176 @@ public class RepositoryBackupAndRestoreTest extends SingleUseAbstractTest {
         queryContentInWorkspace(repository(), null);
     }
 
+    @Test
+    public void shouldBackupAndRestoreRepositoryUsingMultipleThreads() throws Exception {
+        loadContent();
+        BackupOptions backupOptions = new BackupOptions() {
+            @Override
+            public int batchSize() {
+                return 7;
+            }
+
+            @Override
+            public long documentsPerFile() {
+                return 10;
+            }
+
+            @Override
+            public int parallelism() {
+                return 3;
+            }
+        };
+        Problems problems = session().getWorkspace().getRepositoryManager().backupRepository(backupDirectory, backupOptions);
+        assertNoProblems(problems);
+        // The documents are written by several threads to many files ...
+        assertThat(BackupDocumentReader.filesIn(backupDirectory, BackupService.DOCUMENTS_FILENAME_PREFIX).size() > 3, is(true));
+
+        session().getRootNode().addNode("node-not-in-backup");
+        session().save();
+
+        RestoreOptions restoreOptions = new RestoreOptions() {
+            @Override
+            public int batchSize() {
+                return 5;
+            }
+
+            @Override
+            public int parallelism() {
+                return 3;
+            }
+        };
+        JcrSession newSession = repository().login();
+        try {
+            Problems restoreProblems = newSession.getWorkspace().getRepositoryManager().restoreRepository(backupDirectory,
+                                                                                                          restoreOptions);
+            assertNoProblems(restoreProblems);
+        } finally {
+            newSession.logout();
+        }
+
+        assertWorkspaces(repository(), "default", "ws2", "ws3");
+        assertContentInWorkspace(repository(), "default");
+        assertContentInWorkspace(repository(), "ws2");
+        assertContentInWorkspace(repository(), "ws3");
+        assertContentNotInWorkspace(repository(), "default", "/node-not-in-backup");
+        queryContentInWorkspace(repository(), null);
+    }
+
+    @Test
+    public void shouldBackupAndRestoreRepositoryUsingBsonFormat() throws Exception {
+        loadContent();
+        BackupOptions backupOptions = new BackupOptions() {
+            @Override
+            public DocumentFormat documentFormat() {
+                return DocumentFormat.BSON;
+            }
+        };
+        Problems problems = session().getWorkspace().getRepositoryManager().backupRepository(backupDirectory, backupOptions);
+        assertNoProblems(problems);
+        List<File> files = BackupDocumentReader.filesIn(backupDirectory, BackupService.DOCUMENTS_FILENAME_PREFIX);
+        assertThat(files.get(0).getName().endsWith(BackupDocumentWriter.BSON_DOCUMENTS_EXTENSION), is(true));
+
+        session().getRootNode().addNode("node-not-in-backup");
+        session().save();
+
+        JcrSession newSession = repository().login();
+        try {
+            Problems restoreProblems = newSession.getWorkspace().getRepositoryManager().restoreRepository(backupDirectory);
+            assertNoProblems(restoreProblems);
+        } finally {
+            newSession.logout();
+        }
+
+        assertWorkspaces(repository(), "default", "ws2", "ws3");
+        assertContentInWorkspace(repository(), "default");
+        assertContentInWorkspace(repository(), "ws2");
+        assertContentInWorkspace(repository(), "ws3");
+        assertContentNotInWorkspace(repository(), "default", "/node-not-in-backup");
+        queryContentInWorkspace(repository(), null);
+    }
+
+    @Test
+    public void shouldBackupAndRestoreChangesSincePreviousBackup() throws Exception {
+        wipeRepository();
+        startRepositoryWithConfigurationFrom("config/backup-repo-config-journaling.json");
+        Node root = session().getRootNode();
+        root.addNode("changed").setProperty("value", "original");
+        root.addNode("removed");
+        session().save();
+
+        // Make a full backup ...
+        Problems problems = session().getWorkspace().getRepositoryManager().backupRepository(backupDirectory);
+        assertNoProblems(problems);
+
+        // Change the content and make an incremental backup of those changes ...
+        session().getNode("/changed").setProperty("value", "changed");
+        session().getNode("/removed").remove();
+        root.addNode("added");
+        session().save();
+        BackupOptions incrementalOptions = new BackupOptions() {
+            @Override
+            public File previousBackupDirectory() {
+                return backupDirectory;
+            }
+        };
+        problems = session().getWorkspace().getRepositoryManager().backupRepository(backupDirectory2, incrementalOptions);
+        assertNoProblems(problems);
+        assertThat(new File(backupDirectory2, BackupService.BACKUP_INFO_FILE_NAME).exists(), is(true));
+
+        session().getRootNode().addNode("node-not-in-backup");
+        session().save();
+
+        // Restore the full backup followed by the incremental backup ...
+        RestoreOptions restoreOptions = new RestoreOptions() {
+            @Override
+            public List<File> incrementalBackupDirectories() {
+                return Collections.singletonList(backupDirectory2);
+            }
+        };
+        JcrSession newSession = repository().login();
+        try {
+            problems = newSession.getWorkspace().getRepositoryManager().restoreRepository(backupDirectory, restoreOptions);
+            assertNoProblems(problems);
+        } finally {
+            newSession.logout();
+        }
+
+        newSession = repository().login();
+        try {
+            assertThat(newSession.getNode("/changed").getProperty("value").getString(), is("changed"));
+            assertThat(newSession.nodeExists("/added"), is(true));
+            assertThat(newSession.nodeExists("/removed"), is(false));
+            assertThat(newSession.nodeExists("/node-not-in-backup"), is(false));
+        } finally {
+            newSession.logout();
+        }
+
+        // The incremental backup cannot be applied to a backup it is not based upon ...
+        newSession = repository().login();
+        try {
+            problems = newSession.getWorkspace().getRepositoryManager().restoreRepository(backupDirectory2, restoreOptions);
+            assertThat(problems.hasProblems(), is(true));
+        } finally {
+            newSession.logout();
+        }
+    }
+
+    @Test
+    public void shouldNotMakeIncrementalBackupWithoutJournal() throws Exception {
+        loadContent();
+        Problems problems = session().getWorkspace().getRepositoryManager().backupRepository(backupDirectory);
+        assertNoProblems(problems);
+
+        BackupOptions incrementalOptions = new BackupOptions() {
+            @Override
+            public File previousBackupDirectory() {
+                return backupDirectory;
+            }
+        };
+        problems = session().getWorkspace().getRepositoryManager().backupRepository(backupDirectory2, incrementalOptions);
+        assertThat(problems.hasProblems(), is(true));
+    }
+
     @FixFor( "MODE-2309" )
     @Test
     public void shouldBackupAndRestoreRepositoryWithLineBreaksInPropertyValues() throws Exception {
@@ -39,6 +39,9 @@ import org.modeshape.jcr.RepositoryConfiguration.JaasSecurity;
 import org.modeshape.jcr.RepositoryConfiguration.Security;
 import org.modeshape.jcr.api.index.IndexDefinition;
 import org.modeshape.jcr.api.index.IndexDefinition.IndexKind;
+import org.modeshape.jcr.value.binary.BinaryStore;
+import org.modeshape.jcr.value.binary.CachingBinaryStore;
+import org.modeshape.jcr.value.binary.FileSystemBinaryStore;
 import org.modeshape.jcr.value.binary.MongodbBinaryStore;
 import org.modeshape.schematic.Schematic;
 import org.modeshape.schematic.document.Document;
@@ -192,6 +195,14 @@ public class RepositoryConfigurationTest {
         assertNotValid(1, "config/composite-binary-storage-without-default.json");
     }
 
+    @Test
+    public void shouldSuccessfullyValidateCachedBinaryStorageConfiguration() throws Exception {
+        RepositoryConfiguration config = assertValid("config/cached-binary-storage.json");
+        BinaryStore store = config.getBinaryStorage().getBinaryStore();
+        assertTrue(store instanceof CachingBinaryStore);
+        assertTrue(((CachingBinaryStore)store).getDelegate() instanceof FileSystemBinaryStore);
+    }
+
     @Test
     public void shouldSuccessfullyValidateCustomBinaryStorageConfiguration() {
         assertValid("config/custom-binary-storage.json");
@@ -20,14 +20,23 @@ import static org.hamcrest.core.IsNull.notNullValue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.jcr.Node;
 import org.junit.Test;
 import org.modeshape.common.FixFor;
 import org.modeshape.common.collection.Problems;
+import org.modeshape.common.util.FileUtil;
 import org.modeshape.jcr.RepositoryConfiguration.FieldName;
+import org.modeshape.jcr.api.monitor.Statistics;
+import org.modeshape.jcr.api.monitor.ValueMetric;
+import org.modeshape.jcr.api.monitor.Window;
 import org.modeshape.jcr.sequencer.AbstractSequencerTest;
 import org.modeshape.schematic.Schematic;
 import org.modeshape.schematic.document.Document;
@@ -147,6 +156,110 @@ public class SequencingTest extends AbstractSequencerTest {
         assertThat(session.getRootNode().hasNode("output/foo"), is(false));
     }
 
+    @Test
+    public void shouldSequenceInBatchesAndDiscardOnlyTheOutputOfFailedInputs() throws Exception {
+        EditableDocument doc = Schematic.newDocument();
+        addSequencer(doc, "seq1", TestSequencersHolder.SelectivelyFaultySequencer.class.getName(), "/foo/*[@bar] => /output");
+        doc.getDocument(FieldName.SEQUENCING).set(FieldName.BATCH_SIZE, 10);
+        doc.getDocument(FieldName.SEQUENCING).getDocument(FieldName.SEQUENCERS).getDocument("seq1")
+           .set(FieldName.MAX_CONCURRENCY, 1);
+        startRepositoryWithConfiguration(doc);
+        TestSequencersHolder.SelectivelyFaultySequencer.MAX_RUNNING.set(0);
+        TestSequencersHolder.SelectivelyFaultySequencer.EXECUTIONS.clear();
+
+        // Add many nodes in one save, one of which will fail to be sequenced ...
+        int count = 25;
+        int failing = 7;
+        Node foo = session.getRootNode().addNode("foo");
+        Node failingNode = null;
+        for (int i = 0; i != count; ++i) {
+            Node node = foo.addNode("node" + i);
+            if (i == failing) {
+                node.setProperty("bar", TestSequencersHolder.SelectivelyFaultySequencer.FAILING_VALUE);
+                failingNode = node;
+            } else {
+                node.setProperty("bar", "value of bar");
+            }
+        }
+        session.save();
+
+        expectSequencingFailure(failingNode);
+        for (int i = 0; i != count; ++i) {
+            if (i == failing) continue;
+            assertNotNull("Missing output for node" + i, getOutputNode("/output/node" + i));
+            assertNotNull(session.getNode("/output/node" + i + "/" + TestSequencersHolder.DERIVED_NODE_NAME));
+        }
+        assertThat(session.getRootNode().hasNode("output/node" + failing), is(false));
+        assertEquals(1, TestSequencersHolder.SelectivelyFaultySequencer.MAX_RUNNING.get());
+        assertEquals(0, repository.runningState().sequencers().getQueueSize("seq1"));
+        assertEquals(Long.valueOf(0L), repository.getRepositoryStatistics().getGauges().get(Sequencers.queueSizeGaugeName("seq1")));
+
+        // The sequencer must never have been run again for inputs that were already sequenced ...
+        assertEquals(count, TestSequencersHolder.SelectivelyFaultySequencer.EXECUTIONS.size());
+        for (Map.Entry<String, AtomicInteger> entry : TestSequencersHolder.SelectivelyFaultySequencer.EXECUTIONS.entrySet()) {
+            assertEquals("Executions for " + entry.getKey(), 1, entry.getValue().get());
+        }
+
+        // And the output must have been committed in batches rather than node by node ...
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(15);
+        while (sumOf(ValueMetric.SEQUENCED_COUNT) < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(250);
+        }
+        assertEquals(count, sumOf(ValueMetric.SEQUENCED_COUNT));
+        long batches = sumOf(ValueMetric.SEQUENCED_BATCH_COUNT);
+        assertTrue("Expected the output to be committed in batches, but there were " + batches + " commits",
+                   batches > 0 && batches < count / 2);
+    }
+
+    private long sumOf( ValueMetric metric ) {
+        long sum = 0L;
+        for (Statistics stats : repository.getRepositoryStatistics().getHistory(metric, Window.PREVIOUS_60_SECONDS).getStats()) {
+            if (stats != null) sum += stats.getMaximum();
+        }
+        return sum;
+    }
+
+    @Test
+    public void shouldRetryFailedSequencingWorkAndSetItAsideAfterTooManyAttempts() throws Exception {
+        File queueDir = new File("target/sequencing-work-queue");
+        FileUtil.delete(queueDir);
+        EditableDocument doc = Schematic.newDocument();
+        addSequencer(doc, "seq1", TestSequencersHolder.SelectivelyFaultySequencer.class.getName(), "/foo/*[@bar] => /output");
+        EditableDocument sequencing = doc.getDocument(FieldName.SEQUENCING);
+        sequencing.set(FieldName.WORK_QUEUE_DIRECTORY, queueDir.getPath());
+        sequencing.set(FieldName.MAX_ATTEMPTS, 2);
+        sequencing.set(FieldName.RETRY_DELAY_IN_MILLIS, 200);
+        startRepositoryWithConfiguration(doc);
+        assertThat(new File(queueDir, SequencingWorkStore.STORE_FILENAME).exists(), is(true));
+
+        Node foo = session.getRootNode().addNode("foo");
+        Node failingNode = foo.addNode("failing");
+        failingNode.setProperty("bar", TestSequencersHolder.SelectivelyFaultySequencer.FAILING_VALUE);
+        foo.addNode("working").setProperty("bar", "value of bar");
+        session.save();
+
+        assertNotNull(getOutputNode("/output/working"));
+        // The failing node is tried twice before it is set aside ...
+        expectSequencingFailure(failingNode);
+        expectSequencingFailure(failingNode);
+        Sequencers sequencers = repository.runningState().sequencers();
+        waitForDeadLetters(sequencers, 1);
+        assertThat(session.getRootNode().hasNode("output/failing"), is(false));
+
+        // Work that has been set aside can be queued again ...
+        assertEquals(1, sequencers.retryDeadLetters());
+        expectSequencingFailure(failingNode);
+        waitForDeadLetters(sequencers, 1);
+    }
+
+    private void waitForDeadLetters( Sequencers sequencers,
+                                     int expected ) throws InterruptedException {
+        for (int i = 0; i != 100 && sequencers.getDeadLetterCount() != expected; ++i) {
+            Thread.sleep(50);
+        }
+        assertEquals(expected, sequencers.getDeadLetterCount());
+    }
+
     /**
      * Sequencer path expressions are matching expressions, and therefore we cannot verify that they actually represent paths. So,
      * even though this is an valid path expression, it won't match any real paths.
@@ -0,0 +1,138 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.common.util.FileUtil;
+import org.modeshape.jcr.Sequencers.SequencingWorkItem;
+
+public class SequencingWorkStoreTest {
+
+    private static final File DIRECTORY = new File("target/sequencing-work-store");
+
+    private SequencingWorkStore store;
+
+    @Before
+    public void beforeEach() throws Exception {
+        FileUtil.delete(DIRECTORY);
+        store = new SequencingWorkStore(DIRECTORY);
+    }
+
+    @After
+    public void afterEach() {
+        store.close();
+        FileUtil.delete(DIRECTORY);
+    }
+
+    @Test
+    public void shouldKeepCommittedWorkAcrossRestarts() throws Exception {
+        long first = store.add("seq1", work("/a", null));
+        long second = store.add("seq2", work("/b", "other"));
+        store.commit();
+        restart();
+
+        List<SequencingWorkStore.Entry> pending = store.pending();
+        assertThat(pending.size(), is(2));
+        assertThat(pending.get(0).getId(), is(first));
+        assertThat(pending.get(0).getSequencerName(), is("seq1"));
+        assertThat(pending.get(1).getId(), is(second));
+
+        UUID sequencerId = UUID.randomUUID();
+        SequencingWorkItem item = pending.get(1).toWorkItem(sequencerId);
+        assertThat(item.getSequencerId(), is(sequencerId));
+        assertThat(item.getInputPath(), is("/b/jcr:content"));
+        assertThat(item.getOutputWorkspaceName(), is("other"));
+        assertThat(pending.get(0).toWorkItem(sequencerId).getOutputWorkspaceName(), is(nullValue()));
+
+        // New work is given new identifiers ...
+        assertThat(store.add("seq1", work("/c", null)) > second, is(true));
+    }
+
+    @Test
+    public void shouldRemoveCompletedWork() throws Exception {
+        long first = store.add("seq1", work("/a", null));
+        long second = store.add("seq1", work("/b", null));
+        store.completed(Arrays.asList(first));
+        restart();
+
+        List<SequencingWorkStore.Entry> pending = store.pending();
+        assertThat(pending.size(), is(1));
+        assertThat(pending.get(0).getId(), is(second));
+    }
+
+    @Test
+    public void shouldCountAttemptsAndSetAsideAndReviveFailedWork() throws Exception {
+        long id = store.add("seq1", work("/a", null));
+        assertThat(store.failed(id, "first").getAttempts(), is(1));
+        assertThat(store.failed(id, "second").getAttempts(), is(2));
+        store.deadLetter(id, "third");
+        restart();
+
+        assertThat(store.pending().isEmpty(), is(true));
+        assertThat(store.deadLetterCount(), is(1));
+        SequencingWorkStore.Entry deadLetter = store.deadLetters().get(0);
+        assertThat(deadLetter.getAttempts(), is(2));
+        assertThat(deadLetter.getLastError(), is("third"));
+
+        List<SequencingWorkStore.Entry> revived = store.reviveDeadLetters();
+        assertThat(revived.size(), is(1));
+        assertThat(revived.get(0).getAttempts(), is(0));
+        assertThat(store.deadLetterCount(), is(0));
+        assertThat(store.pending().get(0).getId(), is(id));
+    }
+
+    @Test
+    public void shouldSetAsideWorkWhoseErrorIsVeryLong() throws Exception {
+        long id = store.add("seq1", work("/a", null));
+        char[] error = new char[100000];
+        Arrays.fill(error, 'x');
+        store.failed(id, new String(error));
+        store.deadLetter(id, new String(error));
+        restart();
+
+        assertThat(store.pending().isEmpty(), is(true));
+        assertThat(store.deadLetterCount(), is(1));
+        assertThat(store.deadLetters().get(0).getLastError().length() < error.length, is(true));
+    }
+
+    @Test
+    public void shouldIgnoreChangesAfterClosing() {
+        store.close();
+        assertThat(store.add("seq1", work("/a", null)), is(-1L));
+        assertThat(store.pending().isEmpty(), is(true));
+        assertThat(store.deadLetterCount(), is(0));
+    }
+
+    private void restart() throws Exception {
+        store.close();
+        store = new SequencingWorkStore(DIRECTORY);
+    }
+
+    private SequencingWorkItem work( String path,
+                                     String outputWorkspaceName ) {
+        return new SequencingWorkItem(UUID.randomUUID(), "admin", "default", path, path + "/jcr:content", "/output",
+                                      outputWorkspaceName, "jcr:data");
+    }
+}
@@ -20,6 +20,8 @@ import static org.junit.Assert.assertNotNull;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import javax.jcr.NamespaceRegistry;
 import javax.jcr.Node;
@@ -82,6 +84,41 @@ public class TestSequencersHolder {
         }
     }
 
+    /**
+     * A sequencer that fails for inputs whose value is {@link #FAILING_VALUE}, and otherwise behaves like the
+     * {@link DefaultSequencer}. It also records the largest number of concurrent executions of all instances, and the number of
+     * executions for each input.
+     */
+    public static class SelectivelyFaultySequencer extends Sequencer {
+        public static final String FAILING_VALUE = "fail";
+        public static final AtomicInteger RUNNING = new AtomicInteger();
+        public static final AtomicInteger MAX_RUNNING = new AtomicInteger();
+        public static final ConcurrentMap<String, AtomicInteger> EXECUTIONS = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean execute( Property inputProperty,
+                                Node outputNode,
+                                Context context ) throws Exception {
+            EXECUTIONS.computeIfAbsent(inputProperty.getPath(), path -> new AtomicInteger()).incrementAndGet();
+            int running = RUNNING.incrementAndGet();
+            try {
+                int max = MAX_RUNNING.get();
+                while (running > max && !MAX_RUNNING.compareAndSet(max, running)) {
+                    max = MAX_RUNNING.get();
+                }
+                Thread.sleep(5);
+                // Make some output before failing, so that it has to be discarded ...
+                outputNode.addNode(DERIVED_NODE_NAME);
+                if (FAILING_VALUE.equals(inputProperty.getString())) {
+                    throw new IllegalArgumentException("We're expecting to get this exception");
+                }
+                return true;
+            } finally {
+                RUNNING.decrementAndGet();
+            }
+        }
+    }
+
     /**
      * A sequencer which has different property types and is used to test the setting of property values.
      */
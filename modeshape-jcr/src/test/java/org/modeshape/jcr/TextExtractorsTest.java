@@ -0,0 +1,243 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.api.Binary;
+import org.modeshape.jcr.api.monitor.ValueMetric;
+import org.modeshape.jcr.api.text.TextExtractor;
+import org.modeshape.jcr.text.TextExtractorOutput;
+import org.modeshape.jcr.value.BinaryKey;
+import org.modeshape.jcr.value.BinaryValue;
+import org.modeshape.jcr.value.binary.AbstractBinaryStore;
+
+public class TextExtractorsTest {
+
+    private static final String PDF = "application/pdf";
+    private static final String TEXT = "text/plain";
+
+    private ExecutorService executor;
+    private AbstractBinaryStore store;
+    private RepositoryStatistics statistics;
+    private RecordingExtractor extractor;
+    private TextExtractors extractors;
+
+    @Before
+    public void beforeEach() {
+        store = mock(AbstractBinaryStore.class);
+        statistics = mock(RepositoryStatistics.class);
+        extractor = new RecordingExtractor();
+    }
+
+    @After
+    public void afterEach() {
+        extractor.gate.countDown();
+        if (extractors != null) extractors.shutdown();
+        if (executor != null) executor.shutdownNow();
+    }
+
+    private TextExtractors newExtractors( int threads,
+                                          int maxQueueSize,
+                                          Map<String, Integer> mimeTypeConcurrency ) {
+        executor = Executors.newFixedThreadPool(threads);
+        List<TextExtractor> list = new ArrayList<TextExtractor>(Arrays.asList(extractor));
+        extractors = new TextExtractors(executor, list, threads, maxQueueSize, 0, mimeTypeConcurrency, statistics);
+        return extractors;
+    }
+
+    @Test
+    public void shouldExtractSmallestValuesFirst() throws Exception {
+        newExtractors(1, 100, Collections.<String, Integer>emptyMap());
+        BinaryValue first = binary("first", 100, TEXT);
+        extractor.blocked.add(first.getKey());
+        CountDownLatch firstLatch = extractors.extract(store, first, null);
+        assertTrue(extractor.started.await(10, TimeUnit.SECONDS));
+
+        List<CountDownLatch> latches = new ArrayList<>();
+        latches.add(extractors.extract(store, binary("large", 300, TEXT), null));
+        latches.add(extractors.extract(store, binary("medium", 200, TEXT), null));
+        latches.add(extractors.extract(store, binary("small", 50, TEXT), null));
+        assertEquals(3, extractors.getQueueSize());
+        verify(statistics).set(ValueMetric.TEXT_EXTRACTION_QUEUE_SIZE, 3L);
+
+        extractor.gate.countDown();
+        assertTrue(firstLatch.await(10, TimeUnit.SECONDS));
+        for (CountDownLatch latch : latches) {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+        assertEquals(Arrays.asList(first.getKey(), key("small"), key("medium"), key("large")), extractor.extracted);
+        assertEquals(0, extractors.getQueueSize());
+    }
+
+    @Test
+    public void shouldLimitConcurrentExtractionsOfMimeType() throws Exception {
+        newExtractors(4, 100, Collections.singletonMap(PDF, 1));
+        extractor.delayInMillis = 20;
+        List<CountDownLatch> latches = new ArrayList<>();
+        for (int i = 0; i != 6; ++i) {
+            latches.add(extractors.extract(store, binary("pdf" + i, 100, PDF), null));
+        }
+        for (int i = 0; i != 6; ++i) {
+            latches.add(extractors.extract(store, binary("text" + i, 100, TEXT), null));
+        }
+        for (CountDownLatch latch : latches) {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        }
+        assertEquals(12, extractor.extracted.size());
+        assertEquals(1, extractor.maximumConcurrency(PDF));
+        assertTrue(extractor.maximumConcurrency(TEXT) > 1);
+    }
+
+    @Test
+    public void shouldExtractTextOnceForConcurrentRequestsForSameValue() throws Exception {
+        newExtractors(1, 100, Collections.<String, Integer>emptyMap());
+        BinaryValue value = binary("value", 100, TEXT);
+        extractor.blocked.add(value.getKey());
+        CountDownLatch latch = extractors.extract(store, value, null);
+        assertSame(latch, extractors.extract(store, value, null));
+        verify(statistics).increment(ValueMetric.TEXT_EXTRACTION_DEDUPLICATED_COUNT);
+
+        extractor.gate.countDown();
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        assertEquals(1, extractor.extracted.size());
+        verify(store).storeExtractedText(value, "text of value");
+        // The text has been stored, so the work is no longer tracked ...
+        assertNull(extractors.getWorkerLatch(value.getKey(), false));
+    }
+
+    @Test
+    public void shouldExtractTextInRequestingThreadWhenQueueIsFull() throws Exception {
+        newExtractors(1, 1, Collections.<String, Integer>emptyMap());
+        BinaryValue first = binary("first", 100, TEXT);
+        extractor.blocked.add(first.getKey());
+        extractors.extract(store, first, null);
+        assertTrue(extractor.started.await(10, TimeUnit.SECONDS));
+        CountDownLatch queued = extractors.extract(store, binary("queued", 100, TEXT), null);
+        assertEquals(1, extractors.getQueueSize());
+
+        CountDownLatch overflow = extractors.extract(store, binary("overflow", 100, TEXT), null);
+        assertEquals(0L, overflow.getCount());
+        assertEquals(key("overflow"), extractor.extracted.get(0));
+        assertEquals(1L, queued.getCount());
+        verify(statistics).increment(ValueMetric.TEXT_EXTRACTION_OVERFLOW_COUNT);
+    }
+
+    @Test
+    public void shouldReleaseQueuedWorkOnShutdown() throws Exception {
+        newExtractors(1, 100, Collections.<String, Integer>emptyMap());
+        BinaryValue first = binary("first", 100, TEXT);
+        extractor.blocked.add(first.getKey());
+        extractors.extract(store, first, null);
+        assertTrue(extractor.started.await(10, TimeUnit.SECONDS));
+        CountDownLatch queued = extractors.extract(store, binary("queued", 100, TEXT), null);
+        extractors.shutdown();
+        assertEquals(0L, queued.getCount());
+        assertFalse(extractor.extracted.contains(key("queued")));
+    }
+
+    @Test
+    public void shouldTruncateTextBeyondMaximumLength() {
+        TextExtractorOutput output = new TextExtractorOutput(" ", 10);
+        output.recordText("hello");
+        assertFalse(output.isTruncated());
+        output.recordText("world wide");
+        output.recordText("web");
+        assertTrue(output.isTruncated());
+        assertEquals("hello worl", output.getText());
+    }
+
+    private static BinaryKey key( String name ) {
+        return BinaryKey.keyFor(name.getBytes());
+    }
+
+    private static BinaryValue binary( String name,
+                                       long size,
+                                       String mimeType ) throws Exception {
+        BinaryValue value = mock(BinaryValue.class);
+        when(value.getKey()).thenReturn(key(name));
+        when(value.getSize()).thenReturn(size);
+        when(value.getMimeType()).thenReturn(mimeType);
+        when(value.toString()).thenReturn(name);
+        return value;
+    }
+
+    protected static final class RecordingExtractor extends TextExtractor {
+        protected final List<BinaryKey> extracted = new CopyOnWriteArrayList<>();
+        protected final List<BinaryKey> blocked = new CopyOnWriteArrayList<>();
+        protected final CountDownLatch started = new CountDownLatch(1);
+        protected final CountDownLatch gate = new CountDownLatch(1);
+        protected volatile long delayInMillis;
+        private final Map<String, AtomicInteger> running = new ConcurrentHashMap<>();
+        private final Map<String, AtomicInteger> maximums = new ConcurrentHashMap<>();
+
+        @Override
+        public boolean supportsMimeType( String mimeType ) {
+            return true;
+        }
+
+        @Override
+        public void extractFrom( Binary binary,
+                                 Output output,
+                                 Context context ) throws Exception {
+            BinaryValue value = (BinaryValue)binary;
+            String mimeType = value.getMimeType();
+            running.putIfAbsent(mimeType, new AtomicInteger());
+            maximums.putIfAbsent(mimeType, new AtomicInteger());
+            int concurrency = running.get(mimeType).incrementAndGet();
+            try {
+                AtomicInteger maximum = maximums.get(mimeType);
+                while (maximum.get() < concurrency) {
+                    maximum.compareAndSet(maximum.get(), concurrency);
+                }
+                if (blocked.contains(value.getKey())) {
+                    started.countDown();
+                    gate.await();
+                }
+                if (delayInMillis > 0) Thread.sleep(delayInMillis);
+                extracted.add(value.getKey());
+                output.recordText("text of " + value);
+            } finally {
+                running.get(mimeType).decrementAndGet();
+            }
+        }
+
+        protected int maximumConcurrency( String mimeType ) {
+            return maximums.get(mimeType).get();
+        }
+    }
+}
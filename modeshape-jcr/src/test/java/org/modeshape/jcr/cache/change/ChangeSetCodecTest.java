@@ -0,0 +1,231 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.cache.change;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.junit.Assert.assertThat;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.cache.NodeKey;
+import org.modeshape.jcr.value.BinaryKey;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.Property;
+import org.modeshape.jcr.value.PropertyFactory;
+import org.modeshape.jcr.value.ValueFactories;
+
+public class ChangeSetCodecTest {
+
+    private ExecutionContext context;
+    private ValueFactories valueFactories;
+    private PropertyFactory propertyFactory;
+    private NodeKey parentKey;
+
+    @Before
+    public void beforeEach() {
+        context = new ExecutionContext();
+        valueFactories = context.getValueFactories();
+        propertyFactory = context.getPropertyFactory();
+        parentKey = new NodeKey("source1works1-parent");
+    }
+
+    @Test
+    public void shouldRoundTripEmptyChangeSet() throws Exception {
+        RecordingChanges changes = new RecordingChanges("session", "process", "repository", null, null);
+        changes.freeze("user", null, null);
+
+        ChangeSet decoded = roundTrip(changes);
+        assertThat(decoded.isEmpty(), is(true));
+        assertThat(decoded.getUUID(), is(changes.getUUID()));
+        assertThat(decoded.getWorkspaceName(), is((String)null));
+        assertThat(decoded.getTimestamp(), is((Object)null));
+        assertThat(decoded.getUserData().isEmpty(), is(true));
+    }
+
+    @Test
+    public void shouldRoundTripChangeSetWithAllKindsOfChanges() throws Exception {
+        RecordingChanges changes = new RecordingChanges("session", "process", "repository", "default", "journal");
+        Name unstructured = name("nt:unstructured");
+        Set<Name> mixins = Collections.singleton(name("mix:referenceable"));
+        Map<Name, Property> properties = new HashMap<>();
+        properties.put(name("title"), property("title", "A title"));
+        properties.put(name("count"), property("count", 42L));
+        properties.put(name("ratio"), property("ratio", 0.5d, 1.5d));
+        properties.put(name("flag"), property("flag", true));
+        properties.put(name("created"), property("created", valueFactories.getDateFactory().create()));
+        properties.put(name("target"), property("target", path("/a/b[2]/c")));
+        properties.put(name("type"), property("type", name("nt:file")));
+        properties.put(name("decimal"), property("decimal", new java.math.BigDecimal("1.25")));
+
+        changes.workspaceAdded("other");
+        changes.nodeCreated(key("child"), parentKey, path("/parent/child"), unstructured, mixins, properties);
+        changes.nodeChanged(key("child"), path("/parent/child"), unstructured, Collections.<Name>emptySet());
+        changes.nodeMoved(key("child"), unstructured, mixins, parentKey, key("other"), path("/other/child"),
+                          path("/parent/child"));
+        changes.nodeRenamed(key("child"), path("/other/renamed"), path("/other/child").getLastSegment(), unstructured,
+                            mixins);
+        Map<NodeKey, Map<Path, Path>> snsChanges = new HashMap<>();
+        snsChanges.put(key("sns"), Collections.singletonMap(path("/other/sns[2]"), path("/other/sns[1]")));
+        changes.nodeReordered(key("sns"), unstructured, mixins, key("other"), path("/other/sns[1]"), path("/other/sns[2]"),
+                              path("/other/renamed"), snsChanges);
+        changes.propertyAdded(key("child"), unstructured, mixins, path("/other/renamed"), property("added", "value"));
+        changes.propertyChanged(key("child"), unstructured, mixins, path("/other/renamed"), property("title", "New"),
+                                property("title", "A title"));
+        changes.propertyRemoved(key("child"), unstructured, mixins, path("/other/renamed"), property("removed"));
+        changes.nodeSequenced(key("child"), path("/other/renamed"), unstructured, mixins, key("output"), path("/output"),
+                              "/output", "user", "/other/renamed", "sequencer");
+        changes.nodeSequencingFailure(key("child"), path("/other/renamed"), unstructured, mixins, "/output", "user",
+                                      "/other/renamed", "sequencer", new IllegalStateException("failed"));
+        changes.nodeRemoved(key("child"), key("other"), path("/other/renamed"), unstructured, mixins, unstructured, Collections.<Name>emptySet());
+        changes.binaryValueUsed(new BinaryKey("0123456789abcdef"));
+        changes.binaryValueNoLongerUsed(new BinaryKey("fedcba9876543210"));
+        changes.repositoryMetadataChanged();
+        changes.workspaceRemoved("other");
+        Set<NodeKey> changedNodes = new HashSet<>();
+        changedNodes.add(key("child"));
+        changedNodes.add(key("sns"));
+        changes.setChangedNodes(changedNodes);
+        Map<String, String> userData = new HashMap<>();
+        userData.put("reason", "testing");
+        changes.freeze("user", userData, valueFactories.getDateFactory().create());
+
+        ChangeSet decoded = roundTrip(changes);
+        assertThat(decoded.getProcessKey(), is(changes.getProcessKey()));
+        assertThat(decoded.getRepositoryKey(), is(changes.getRepositoryKey()));
+        assertThat(decoded.getWorkspaceName(), is(changes.getWorkspaceName()));
+        assertThat(decoded.getJournalId(), is(changes.getJournalId()));
+        assertThat(decoded.getSessionId(), is(changes.getSessionId()));
+        assertThat(decoded.getUUID(), is(changes.getUUID()));
+        assertThat(decoded.getUserId(), is(changes.getUserId()));
+        assertThat(decoded.getUserData(), is(changes.getUserData()));
+        assertThat(decoded.getTimestamp(), is(changes.getTimestamp()));
+        assertThat(decoded.changedNodes(), is(changes.changedNodes()));
+        assertThat(decoded.usedBinaries(), is(changes.usedBinaries()));
+        assertThat(decoded.unusedBinaries(), is(changes.unusedBinaries()));
+        assertThat(decoded.size(), is(changes.size()));
+
+        Iterator<Change> expected = changes.iterator();
+        for (Change change : decoded) {
+            Change expectedChange = expected.next();
+            assertThat(change.getClass().getName(), is(expectedChange.getClass().getName()));
+            if (change instanceof AbstractNodeChange) {
+                AbstractNodeChange nodeChange = (AbstractNodeChange)change;
+                AbstractNodeChange expectedNodeChange = (AbstractNodeChange)expectedChange;
+                assertThat(nodeChange.getKey(), is(expectedNodeChange.getKey()));
+                assertThat(nodeChange.getPath(), is(expectedNodeChange.getPath()));
+                assertThat(nodeChange.getPrimaryType(), is(expectedNodeChange.getPrimaryType()));
+                assertThat(nodeChange.getMixinTypes(), is(expectedNodeChange.getMixinTypes()));
+            }
+            if (!(change instanceof NodeReordered)) {
+                // All other changes describe all of their fields ...
+                assertThat(change.toString(), is(expectedChange.toString()));
+            }
+        }
+
+        NodeAdded added = (NodeAdded)find(decoded, NodeAdded.class);
+        assertThat(added.getProperties(), is(properties));
+        assertThat(added.getMixinTypes(), is(mixins));
+        NodeReordered reordered = (NodeReordered)find(decoded, NodeReordered.class);
+        assertThat(reordered.getParent(), is(key("other")));
+        assertThat(reordered.getOldPath(), is(path("/other/sns[2]")));
+        assertThat(reordered.getReorderedBeforePath(), is(path("/other/renamed")));
+        assertThat(reordered.getSnsPathChangesByNodeKey(), is(snsChanges));
+        NodeSequencingFailure failure = (NodeSequencingFailure)find(decoded, NodeSequencingFailure.class);
+        assertThat(failure.getCause(), instanceOf(IllegalStateException.class));
+    }
+
+    @Test
+    public void shouldEncodeChangeSetMoreCompactlyThanJavaSerialization() throws Exception {
+        RecordingChanges changes = new RecordingChanges("session", "process", "repository", "default", "journal");
+        Name unstructured = name("nt:unstructured");
+        for (int i = 0; i != 100; ++i) {
+            Path path = path("/parent/child" + i);
+            changes.nodeCreated(key("child" + i), parentKey, path, unstructured, Collections.<Name>emptySet(),
+                                Collections.singletonMap(name("jcr:title"), property("jcr:title", "Child " + i)));
+            changes.propertyAdded(key("child" + i), unstructured, Collections.<Name>emptySet(), path, property("jcr:title", "Child " + i));
+        }
+        changes.freeze("user", null, valueFactories.getDateFactory().create());
+
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(serialized)) {
+            output.writeObject(changes);
+        }
+        byte[] encoded = encode(changes);
+        assertThat("Encoded in " + encoded.length + " bytes rather than " + serialized.size(),
+                   encoded.length * 3 < serialized.size(), is(true));
+        assertThat(decode(encoded).size(), is(200));
+    }
+
+    protected ChangeSet roundTrip( ChangeSet changes ) throws Exception {
+        return decode(encode(changes));
+    }
+
+    protected byte[] encode( ChangeSet changes ) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream output = new DataOutputStream(bytes)) {
+            ChangeSetCodec.INSTANCE.encode(changes, output);
+        }
+        return bytes.toByteArray();
+    }
+
+    protected ChangeSet decode( byte[] bytes ) throws Exception {
+        try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            return ChangeSetCodec.INSTANCE.decode(input, getClass().getClassLoader());
+        }
+    }
+
+    protected Change find( ChangeSet changes,
+                           Class<? extends Change> type ) {
+        for (Change change : changes) {
+            if (type.isInstance(change)) return change;
+        }
+        throw new AssertionError("No " + type.getSimpleName() + " change found");
+    }
+
+    protected NodeKey key( String id ) {
+        return parentKey.withId(id);
+    }
+
+    protected Name name( String name ) {
+        return valueFactories.getNameFactory().create(name);
+    }
+
+    protected Path path( String path ) {
+        return valueFactories.getPathFactory().create(path);
+    }
+
+    protected Property property( String name,
+                                 Object... values ) {
+        List<Object> valueList = new ArrayList<>();
+        Collections.addAll(valueList, values);
+        return propertyFactory.create(name(name), valueList);
+    }
+}
@@ -48,7 +48,7 @@ public abstract class AbstractSessionCacheTest extends AbstractNodeCacheTest {
         listener = new PrintingChangeSetListener();
         changeBus.register(listener);
         ConcurrentMap<NodeKey, CachedNode> nodeCache = new ConcurrentHashMap<>();
-        DocumentStore documentStore = new LocalDocumentStore(schematicDb, repoEnv);
+        DocumentStore documentStore = createDocumentStore();
         DocumentTranslator translator = new DocumentTranslator(context, documentStore, 100L);
         workspaceCache = new WorkspaceCache(context, "repo", "ws", null, documentStore, translator, ROOT_KEY_WS1, nodeCache,
                                             changeBus, null);
@@ -69,6 +69,10 @@ public abstract class AbstractSessionCacheTest extends AbstractNodeCacheTest {
         }
     }
 
+    protected DocumentStore createDocumentStore() {
+        return new LocalDocumentStore(schematicDb, repoEnv);
+    }
+
     protected abstract SessionCache createSessionCache( ExecutionContext context,
                                                         WorkspaceCache cache,
                                                         TransactionalWorkspaceCaches txWsCaches,
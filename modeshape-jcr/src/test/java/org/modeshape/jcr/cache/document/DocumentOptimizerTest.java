@@ -26,6 +26,7 @@ import org.junit.Test;
 import org.modeshape.jcr.ExecutionContext;
 import org.modeshape.jcr.RepositoryEnvironment;
 import org.modeshape.jcr.cache.ChildReference;
+import org.modeshape.jcr.cache.ChildReferences;
 import org.modeshape.jcr.cache.MutableCachedNode;
 import org.modeshape.jcr.cache.NodeKey;
 import org.modeshape.jcr.cache.SessionCache;
@@ -172,6 +173,127 @@ public class DocumentOptimizerTest extends AbstractSessionCacheTest {
         print(document(key), true);
     }
 
+    @Test
+    public void shouldMaintainChildDirectoryForDocumentWithMultipleSegments() throws Exception {
+        MutableCachedNode nodeB = check(session1).mutableNode("/childB");
+        NodeKey key = nodeB.getKey();
+        runInTransaction(() -> optimizer.optimizeChildrenBlocks(key, null, 5, 2)); // will merge into a single block ...
+        session1.save();
+
+        // Create a bunch of same-name siblings, and split them into blocks with a directory ...
+        nodeB = check(session1).mutableNode("/childB");
+        for (int i = 0; i != 20; ++i) {
+            nodeB.createChild(session(), key.withId("child" + (i + 1)), name("newChild"), property("p1a", 344));
+        }
+        session1.save();
+        runInTransaction(() -> optimizer.optimizeChildrenBlocks(key, null, 5, 2, true));
+        String directoryKey = document(key).getDocument(DocumentTranslator.CHILDREN_INFO).getString(DocumentTranslator.DIRECTORY);
+        assertThat(directoryKey != null, is(true));
+        assertThat(directory(key, 22).childCount("newChild"), is(20));
+
+        // Append a few more, which should be added to the directory ...
+        workspaceCache.clear();
+        nodeB = check(session1).mutableNode("/childB");
+        for (int i = 20; i != 25; ++i) {
+            nodeB.createChild(session(), key.withId("child" + (i + 1)), name("newChild"), property("p1a", 344));
+        }
+        session1.save();
+        ChildDirectory directory = directory(key, 27);
+        assertThat(directory.childCount("newChild"), is(25));
+        assertThat(directory.blockFor(key.withId("child25").toString()), is(directory.blockFor(key.withId("child21").toString())));
+
+        // And the children should be found via the directory ...
+        workspaceCache.clear();
+        ChildReferences refs = workspaceCache.getNode(key).getChildReferences(workspaceCache);
+        assertThat(refs.getChildCount(name("newChild")), is(25));
+        assertThat(refs.getChild(name("newChild"), 17).getKey(), is(key.withId("child17")));
+        assertThat(refs.getChild(key.withId("child23")).getSnsIndex(), is(23));
+        assertThat(refs.getChild(name("newChild"), 26) == null, is(true));
+        assertThat(refs.hasChild(key.withId("child9")), is(true));
+
+        // A directory for a different number of children or last block is not valid ...
+        Document directoryDoc = document(new NodeKey(directoryKey));
+        assertThat(ChildDirectory.from(directoryDoc, 26, lastBlockKey(key), this::content) == null, is(true));
+        assertThat(ChildDirectory.from(directoryDoc, 27, directoryKey, this::content) == null, is(true));
+
+        // The blocks are read in order when the directory doesn't know of a child ...
+        String childKey = key.withId("child9").toString();
+        String segmentKey = directoryDoc.getArray(DocumentTranslator.SEGMENTS).get(0).toString();
+        runInTransaction(() -> workspaceCache.documentStore().edit(segmentKey, false).getDocument(DocumentTranslator.KEYS)
+                                             .remove(childKey));
+        workspaceCache.clear();
+        refs = workspaceCache.getNode(key).getChildReferences(workspaceCache);
+        assertThat(refs.hasChild(key.withId("child9")), is(true));
+        assertThat(refs.getChild(key.withId("child9")).getSnsIndex(), is(9));
+
+        // Disabling the directory should remove it ...
+        runInTransaction(() -> optimizer.optimizeChildrenBlocks(key, null, 5, 2, false));
+        assertThat(document(key).getDocument(DocumentTranslator.CHILDREN_INFO).containsField(DocumentTranslator.DIRECTORY),
+                   is(false));
+    }
+
+    @Test
+    public void shouldReadAtMostOneBlockToLookUpChildWithDirectory() throws Exception {
+        MutableCachedNode nodeB = check(session1).mutableNode("/childB");
+        NodeKey key = nodeB.getKey();
+        runInTransaction(() -> optimizer.optimizeChildrenBlocks(key, null, 5, 2)); // will merge into a single block ...
+        session1.save();
+        nodeB = check(session1).mutableNode("/childB");
+        for (int i = 0; i != 20; ++i) {
+            nodeB.createChild(session(), key.withId("child" + (i + 1)), name("newChild"), property("p1a", 344));
+        }
+        session1.save();
+        runInTransaction(() -> optimizer.optimizeChildrenBlocks(key, null, 5, 2, true));
+
+        // Remove every block but the one with "child9", so that reading any other block fails ...
+        ChildDirectory directory = directory(key, 22);
+        int blockNumber = directory.blockFor(key.withId("child9").toString());
+        assertThat(blockNumber > 0, is(true));
+        String directoryKey = document(key).getDocument(DocumentTranslator.CHILDREN_INFO).getString(DocumentTranslator.DIRECTORY);
+        List<?> blockKeys = document(new NodeKey(directoryKey)).getArray(DocumentTranslator.BLOCKS);
+        runInTransaction(() -> {
+            for (int i = 0; i != blockKeys.size(); ++i) {
+                if (i + 1 != blockNumber) {
+                    workspaceCache.documentStore().remove(blockKeys.get(i).toString());
+                }
+            }
+            return null;
+        });
+        workspaceCache.clear();
+        ChildReferences refs = workspaceCache.getNode(key).getChildReferences(workspaceCache);
+
+        // Children which don't exist are not found without reading any block, even with transient changes ...
+        ChildReferences.Context withChanges = new ChildReferences.WithChanges(new ChildReferences.BasicContext(),
+                                                                              new ChildReferences.NoChanges());
+        assertThat(refs.hasChild(key.withId("child99")), is(false));
+        assertThat(refs.getChild(key.withId("child99")) == null, is(true));
+        assertThat(refs.getChild(key.withId("child99"), withChanges) == null, is(true));
+        assertThat(refs.getChild(name("newChild"), 21) == null, is(true));
+        assertThat(refs.getChild(name("otherChild"), 1) == null, is(true));
+        assertThat(refs.getChild(name("otherChild"), 1, withChanges) == null, is(true));
+
+        // and an existing child is found by reading only its own block ...
+        assertThat(refs.hasChild(key.withId("child9")), is(true));
+        assertThat(refs.getChild(key.withId("child9")).getSnsIndex(), is(9));
+        assertThat(refs.getChild(name("newChild"), 9).getKey(), is(key.withId("child9")));
+    }
+
+    protected ChildDirectory directory( NodeKey key,
+                                        long expectedSize ) {
+        String directoryKey = document(key).getDocument(DocumentTranslator.CHILDREN_INFO).getString(DocumentTranslator.DIRECTORY);
+        return ChildDirectory.from(content(directoryKey), expectedSize, lastBlockKey(key), this::content);
+    }
+
+    protected String lastBlockKey( NodeKey key ) {
+        Document info = document(key).getDocument(DocumentTranslator.CHILDREN_INFO);
+        return info.getString(DocumentTranslator.LAST_BLOCK, info.getString(DocumentTranslator.NEXT_BLOCK));
+    }
+
+    protected Document content( String key ) {
+        SchematicEntry entry = workspaceCache.documentStore().get(key);
+        return entry != null ? entry.content() : null;
+    }
+
     protected Document document( NodeKey key ) {
         SchematicEntry entry = workspaceCache.documentStore().get(key.toString());
         return entry.content();
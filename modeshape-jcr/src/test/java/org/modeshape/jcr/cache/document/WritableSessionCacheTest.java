@@ -18,9 +18,13 @@ package org.modeshape.jcr.cache.document;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -31,6 +35,8 @@ import org.modeshape.jcr.cache.CachedNode;
 import org.modeshape.jcr.cache.MutableCachedNode;
 import org.modeshape.jcr.cache.NodeKey;
 import org.modeshape.jcr.cache.SessionCache;
+import org.modeshape.schematic.SchematicDb;
+import org.modeshape.schematic.SchematicEntry;
 
 /**
  * Tests that operate against a {@link WritableSessionCache}. Each test method starts with a clean slate of content
@@ -38,6 +44,7 @@ import org.modeshape.jcr.cache.SessionCache;
 public class WritableSessionCacheTest extends AbstractSessionCacheTest {
 
     private DocumentOptimizer optimizer;
+    private CountingDocumentStore documentStore;
 
     @Before
     @Override
@@ -46,6 +53,12 @@ public class WritableSessionCacheTest extends AbstractSessionCacheTest {
         this.optimizer = new DocumentOptimizer(workspaceCache.documentStore());
     }
 
+    @Override
+    protected DocumentStore createDocumentStore() {
+        documentStore = new CountingDocumentStore(schematicDb, repoEnv);
+        return documentStore;
+    }
+
     @Override
     protected SessionCache createSessionCache( ExecutionContext context,
                                                WorkspaceCache cache,
@@ -393,4 +406,97 @@ public class WritableSessionCacheTest extends AbstractSessionCacheTest {
         session1.destroy(child.getKey());
         assertEquals(new HashSet<NodeKey>(Arrays.asList(rootKey, childKey)), session1.getChangedNodeKeysAtOrBelow(root));
     }
+
+    @Test
+    public void shouldLoadPersistedDocumentsInBatchesWhenSaving() {
+        List<NodeKey> few = createChildren("few", 5);
+        List<NodeKey> many = createChildren("many", 50);
+
+        // The number of round trips to the document store must not depend upon the number of modified nodes ...
+        modifyAll(few);
+        documentStore.reset();
+        session1.save();
+        int loadsForFew = documentStore.loads.get();
+        int getsForFew = documentStore.gets.get();
+
+        modifyAll(many);
+        documentStore.reset();
+        session1.save();
+        assertThat(documentStore.loads.get(), is(loadsForFew));
+        assertThat(documentStore.gets.get(), is(getsForFew));
+        assertThat(documentStore.loads.get() < many.size(), is(true));
+    }
+
+    @Test
+    public void shouldNotLookForNodesCreatedInTheSameSaveInTheDocumentStore() {
+        List<NodeKey> many = createChildren("many", 50);
+        modifyAll(many);
+        documentStore.reset();
+        session1.save();
+        int loadsForModified = documentStore.loads.get();
+        int getsForModified = documentStore.gets.get();
+
+        // Create a node and reorder it before an existing child, so that the parent's insertions refer to a new node ...
+        MutableCachedNode parent = check(session1).mutableNode("/many");
+        NodeKey newChildKey = parent.createChild(session(), newKey("many-new"), name("newChild"), property("p1", "new")).getKey();
+        parent.reorderChild(session1, newChildKey, many.get(0));
+        modifyAll(many);
+        documentStore.reset();
+        session1.save();
+        // the parent was changed as well, so it is loaded together with the children rather than as an ancestor ...
+        assertThat(documentStore.loads.get() <= loadsForModified, is(true));
+        assertThat(documentStore.gets.get(), is(getsForModified));
+
+        check(session2).node(newChildKey, "/many/newChild");
+        check(session2).property("/many/newChild", property("p1", "new"));
+        assertThat(session2.getNode(parent.getKey()).getChildReferences(session2).getAllKeys().next(), is(newChildKey));
+    }
+
+    private List<NodeKey> createChildren( String parentName,
+                                          int count ) {
+        MutableCachedNode root = session1.mutable(session1.getRootKey());
+        MutableCachedNode parent = root.createChild(session(), newKey(parentName), name(parentName), property("p1", "value"));
+        List<NodeKey> childKeys = new ArrayList<>(count);
+        for (int i = 0; i != count; ++i) {
+            childKeys.add(parent.createChild(session(), newKey(parentName + "-" + i), name("child"), property("p1", i)).getKey());
+        }
+        session1.save();
+        return childKeys;
+    }
+
+    private void modifyAll( List<NodeKey> keys ) {
+        for (NodeKey key : keys) {
+            session1.mutable(key).setProperty(session1, property("p2", key.toString()));
+        }
+    }
+
+    /**
+     * A {@link LocalDocumentStore} which counts the round trips made to the database to read documents.
+     */
+    private static class CountingDocumentStore extends LocalDocumentStore {
+        protected final AtomicInteger loads = new AtomicInteger();
+        protected final AtomicInteger gets = new AtomicInteger();
+
+        protected CountingDocumentStore( SchematicDb database,
+                                         RepositoryEnvironment repoEnv ) {
+            super(database, repoEnv);
+        }
+
+        @Override
+        public List<SchematicEntry> load( Collection<String> keys ) {
+            loads.incrementAndGet();
+            return super.load(keys);
+        }
+
+        @Override
+        public SchematicEntry get( String key ) {
+            gets.incrementAndGet();
+            return super.get(key);
+        }
+
+        protected void reset() {
+            loads.set(0);
+            gets.set(0);
+        }
+    }
 }
@@ -16,18 +16,40 @@
 
 package org.modeshape.jcr.clustering;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import org.jgroups.Channel;
+import org.jgroups.Message;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import org.modeshape.common.SystemFailureException;
 import org.modeshape.common.FixFor;
+import org.modeshape.common.util.StringUtil;
 import org.modeshape.jcr.ClusteringHelper;
 
 /**
@@ -114,12 +136,153 @@ public class ClusteringServiceTest {
         consumer22.assertAllPayloadsConsumed();
     }
 
+    @Test
+    public void shouldEncodeBatchesOfPayloads() throws Exception {
+        ClusteringService service = new ClusteringService("test-cluster") {
+            @Override
+            protected void init() {
+            }
+        };
+        service.addCodec(GreetingCodec.INSTANCE);
+
+        // Some of the payloads are large enough for the batch to be compressed ...
+        String largeText = StringUtil.createString('x', 20 * 1024);
+        List<byte[]> batch = new ArrayList<>();
+        int size = 0;
+        for (int i = 0; i != 10; ++i) {
+            byte[] encoded = service.encode(new Greeting((i % 5 == 0 ? largeText : "") + i));
+            batch.add(encoded);
+            size += encoded.length;
+        }
+        byte[] encoded = service.encode("not a greeting");
+        batch.add(encoded);
+        size += encoded.length;
+        byte[] data = service.toMessageData(batch, size);
+        assertTrue("The batch was not compressed", data.length < size);
+
+        List<Serializable> payloads = service.fromMessageData(data, getClass().getClassLoader());
+        assertEquals(11, payloads.size());
+        assertEquals(largeText + "0", ((Greeting)payloads.get(0)).text);
+        assertEquals("9", ((Greeting)payloads.get(9)).text);
+        assertEquals("not a greeting", payloads.get(10));
+
+        // Messages sent by older members contain a single serialized payload ...
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(serialized)) {
+            output.writeObject("legacy");
+        }
+        assertEquals(Arrays.asList("legacy"), service.fromMessageData(serialized.toByteArray(), null));
+    }
+
+    @Test
+    public void shouldReportSendFailuresToEverySenderInTheBatch() throws Exception {
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch failing = new CountDownLatch(1);
+        Channel failingChannel = mock(Channel.class);
+        doAnswer(invocation -> {
+            if (sending.getCount() > 0) {
+                // The first message is sent, but only once the other senders have had a chance to queue their payloads ...
+                sending.countDown();
+                failing.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+            throw new IllegalStateException("channel closed");
+        }).when(failingChannel).send(any(Message.class));
+        ClusteringService service = new ClusteringService("test-cluster") {
+            @Override
+            protected void init() {
+                this.channel = failingChannel;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public boolean multipleMembersInCluster() {
+                return true;
+            }
+        };
+        service.init();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<Boolean> first = executor.submit(() -> service.sendMessage("first"));
+            assertTrue(sending.await(10, TimeUnit.SECONDS));
+            List<Future<Boolean>> others = new ArrayList<>();
+            for (int i = 0; i != 3; ++i) {
+                String payload = "other" + i;
+                others.add(executor.submit(() -> service.sendMessage(payload)));
+            }
+            Thread.sleep(100);
+            failing.countDown();
+
+            assertTrue(first.get(10, TimeUnit.SECONDS));
+            for (Future<Boolean> other : others) {
+                try {
+                    other.get(10, TimeUnit.SECONDS);
+                    fail("The payload should not have been sent");
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof SystemFailureException);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void shouldEncodeAndDecodeVariableLengthIntegers() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE};
+        for (int value : values) {
+            MessageCodec.writeVarInt(output, value);
+        }
+        assertEquals(1 + 1 + 1 + 2 + 2 + 3 + 5, bytes.size());
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (int value : values) {
+            assertEquals(value, MessageCodec.readVarInt(input));
+        }
+    }
+
     private ClusteringService startForked(ClusteringService mainService) {
         ClusteringService service = ClusteringService.startForked(mainService.getChannel());
         cluster.add(service);
         return service;
     }
 
+    protected static class Greeting implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        protected final String text;
+
+        protected Greeting( String text ) {
+            this.text = text;
+        }
+    }
+
+    protected static class GreetingCodec extends MessageCodec<Greeting> {
+        protected static final GreetingCodec INSTANCE = new GreetingCodec();
+
+        protected GreetingCodec() {
+            super(100, Greeting.class);
+        }
+
+        @Override
+        public void encode( Greeting payload,
+                            DataOutput output ) throws IOException {
+            output.writeUTF(payload.text);
+        }
+
+        @Override
+        public Greeting decode( DataInput input,
+                                ClassLoader classLoader ) throws IOException {
+            return new Greeting(input.readUTF());
+        }
+    }
+
     protected class TestConsumer extends MessageConsumer<String> {
         private List<String> payloads = new ArrayList<>();
         private CountDownLatch payloadsLatch;
@@ -22,6 +22,7 @@ import static org.junit.Assert.assertTrue;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
 import javax.jcr.query.qom.Constraint;
@@ -44,6 +45,7 @@ import org.modeshape.jcr.query.model.SelectorName;
 import org.modeshape.jcr.query.model.StaticOperand;
 import org.modeshape.jcr.spi.index.IndexConstraints;
 import org.modeshape.jcr.spi.index.provider.Filter;
+import org.modeshape.jcr.value.Name;
 import org.modeshape.jcr.value.PropertyType;
 import org.modeshape.jcr.value.ValueFactories;
 import org.modeshape.jcr.value.ValueFactory;
@@ -90,8 +92,21 @@ public abstract class AbstractLocalIndexTest {
         }
     }
 
-    @SuppressWarnings( "unchecked" )
     protected <T> LocalUniqueIndex<T> uniqueValueIndex( Class<T> valueType ) {
+        return uniqueValueIndex(valueType, null);
+    }
+
+    protected LocalStoredColumns storedColumns( String... propertyNames ) {
+        Map<Name, PropertyType> columns = new LinkedHashMap<>();
+        for (String propertyName : propertyNames) {
+            columns.put(context.getValueFactories().getNameFactory().create(propertyName), PropertyType.STRING);
+        }
+        return LocalStoredColumns.create("myIndex", db, context, columns, true);
+    }
+
+    @SuppressWarnings( "unchecked" )
+    protected <T> LocalUniqueIndex<T> uniqueValueIndex( Class<T> valueType,
+                                                        LocalStoredColumns storedColumns ) {
         PropertyType type = PropertyType.discoverType(valueType);
         ValueFactory<T> valueFactory = (ValueFactory<T>)context.getValueFactories().getValueFactory(type);
         Converter<T> converter = IndexValues.converter(valueFactory);
@@ -99,7 +114,7 @@ public abstract class AbstractLocalIndexTest {
         BTreeKeySerializer<T> keySerializer = (BTreeKeySerializer<T>)serializers.bTreeKeySerializerFor(type.getValueClass(),
                                                                                                        type.getComparator(),
                                                                                                        false);
-        return new LocalUniqueIndex<T>("myIndex", "myWorkspace", db, converter, keySerializer, serializer);
+        return new LocalUniqueIndex<T>("myIndex", "myWorkspace", db, converter, keySerializer, serializer, storedColumns);
     }
 
     @SuppressWarnings( "unchecked" )
@@ -109,7 +124,7 @@ public abstract class AbstractLocalIndexTest {
         ValueFactory<T> valueFactory = (ValueFactory<T>)context.getValueFactories().getValueFactory(type);
         Converter<T> converter = IndexValues.converter(valueFactory);
         Serializer<T> serializer = (Serializer<T>)serializers.serializerFor(type.getValueClass());
-        return new LocalDuplicateIndex<T>("myIndex", "myWorkspace", db, converter, serializer, comparator);
+        return new LocalDuplicateIndex<T>("myIndex", "myWorkspace", db, converter, serializer, comparator, null);
     }
 
     public <T> void assertNoMatch( LocalUniqueIndex<T> index,
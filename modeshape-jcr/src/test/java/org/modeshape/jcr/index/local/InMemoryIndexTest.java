@@ -0,0 +1,134 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.index.local;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import java.io.File;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import org.junit.Test;
+import org.modeshape.common.util.FileUtil;
+import org.modeshape.jcr.api.query.qom.Operator;
+import org.modeshape.jcr.spi.index.provider.Filter;
+import org.modeshape.jcr.value.PropertyType;
+import org.modeshape.jcr.value.ValueFactory;
+
+public class InMemoryIndexTest extends AbstractLocalIndexTest {
+
+    @SuppressWarnings( "unchecked" )
+    protected <T> InMemoryIndex<T> inMemoryIndex( Class<T> valueType,
+                                                  boolean unique ) {
+        PropertyType type = PropertyType.discoverType(valueType);
+        ValueFactory<T> valueFactory = (ValueFactory<T>)context.getValueFactories().getValueFactory(type);
+        return new InMemoryIndex<>("myIndex", "myWorkspace", unique, (Comparator<T>)type.getComparator(),
+                                   valueFactory, context.getValueFactories().getStringFactory(), null);
+    }
+
+    @Test
+    public void shouldAllowBasicQueryOperationsOnUniqueIndex() {
+        InMemoryIndex<Long> index = inMemoryIndex(Long.class, true);
+        assertThat(index.requiresReindexing(), is(true));
+        for (int i = 1; i <= 10; ++i) {
+            index.add(key(i), propertyName, i * 10L);
+        }
+        assertThat(index.estimateTotalCount(), is(10L));
+        assertMatch(index, Operator.EQUAL_TO, 20L, key(2));
+        assertMatch(index, Operator.LESS_THAN, 30L, key(1), key(2));
+        assertMatch(index, Operator.GREATER_THAN_OR_EQUAL_TO, 90L, key(9), key(10));
+
+        // Adding an existing value replaces the node key ...
+        index.add(key(11), propertyName, 20L);
+        assertThat(index.estimateTotalCount(), is(10L));
+        assertMatch(index, Operator.EQUAL_TO, 20L, key(11));
+        index.remove(key(2));
+        assertMatch(index, Operator.EQUAL_TO, 20L, key(11));
+
+        index.remove(key(11), propertyName, 20L);
+        assertMatch(index, Operator.EQUAL_TO, 20L);
+        assertThat(index.estimateTotalCount(), is(9L));
+    }
+
+    @Test
+    public void shouldAllowMultipleNodesWithSameValueInDuplicateIndex() {
+        InMemoryIndex<String> index = inMemoryIndex(String.class, false);
+        index.add(key(1), propertyName, "a");
+        index.add(key(2), propertyName, new String[] {"b", "c"});
+        index.add(key(3), propertyName, "b");
+        assertThat(index.estimateTotalCount(), is(4L));
+        assertMatch(index, Operator.EQUAL_TO, "a", key(1));
+        assertMatchInAnyOrder(index, Operator.EQUAL_TO, "b", key(2), key(3));
+
+        index.remove(key(2));
+        assertThat(index.estimateTotalCount(), is(2L));
+        assertMatch(index, Operator.EQUAL_TO, "b", key(3));
+        assertMatch(index, Operator.EQUAL_TO, "c");
+    }
+
+    @Test
+    public void shouldRestoreFromSnapshot() throws Exception {
+        File dir = new File("target/InMemoryIndexTest");
+        FileUtil.delete(dir);
+        assertTrue(dir.mkdirs());
+        File file = new File(dir, "snapshot");
+        assertThat(InMemoryIndexSnapshot.read(file), is(nullValue()));
+
+        InMemoryIndex<Long> index = inMemoryIndex(Long.class, false);
+        for (int i = 1; i <= 10; ++i) {
+            index.add(key(i), propertyName, i % 3L);
+        }
+        InMemoryIndexSnapshot.write(file, 1234L, Collections.<InMemoryIndex<?>>singletonList(index));
+
+        InMemoryIndexSnapshot snapshot = InMemoryIndexSnapshot.read(file);
+        assertThat(snapshot.timestamp(), is(1234L));
+        assertThat(snapshot.take("otherIndex", "myWorkspace"), is(nullValue()));
+        InMemoryIndex<Long> restored = inMemoryIndex(Long.class, false);
+        restored.restore(snapshot.take("myIndex", "myWorkspace"));
+        assertThat(restored.requiresReindexing(), is(false));
+        assertThat(restored.estimateTotalCount(), is(10L));
+        assertMatchInAnyOrder(restored, Operator.EQUAL_TO, 0L, key(3), key(6), key(9));
+        assertMatchInAnyOrder(restored, Operator.GREATER_THAN, 0L, key(1), key(2), key(4), key(5), key(7), key(8), key(10));
+        assertThat(snapshot.take("myIndex", "myWorkspace"), is(nullValue()));
+    }
+
+    protected <T> void assertMatch( InMemoryIndex<T> index,
+                                    Operator op,
+                                    T value,
+                                    String... keys ) {
+        LinkedList<String> expected = keyList(keys);
+        validateResults(expected, index.filter(constraints(propertyName, op, value), -1));
+        assertTrue("Not all expected values were found in results: " + expected, expected.isEmpty());
+    }
+
+    protected <T> void assertMatchInAnyOrder( InMemoryIndex<T> index,
+                                              Operator op,
+                                              T value,
+                                              String... keys ) {
+        LinkedList<String> expected = keyList(keys);
+        LinkedList<String> actual = new LinkedList<>();
+        Filter.ResultBatch batch;
+        Filter.Results results = index.filter(constraints(propertyName, op, value), -1);
+        while ((batch = results.getNextBatch(Integer.MAX_VALUE)).size() > 0) {
+            batch.keys().forEach(key -> actual.add(key.toString()));
+        }
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertThat(actual, is(expected));
+    }
+}
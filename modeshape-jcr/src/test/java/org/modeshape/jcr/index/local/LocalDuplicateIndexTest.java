@@ -19,6 +19,9 @@ package org.modeshape.jcr.index.local;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNull.notNullValue;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Collections;
 import org.junit.Test;
 import org.modeshape.jcr.api.query.qom.Operator;
 
@@ -144,4 +147,62 @@ public class LocalDuplicateIndexTest extends AbstractLocalIndexTest {
         assertNoMatch(index, Operator.EQUAL_TO, 30L);
         assertThat(index.estimateTotalCount(), is(8L));
     }
+
+    @Test
+    public void shouldEstimateCardinalityOfSkewedValuesUsingStatistics() {
+        LocalDuplicateIndex<String> index = duplicateValueIndex(String.class);
+        // 9000 nodes are 'active', and 1000 nodes each have a distinct status ...
+        for (int i = 0; i != 10000; ++i) {
+            index.add(key(i), "test", i < 9000 ? "active" : "status-" + i);
+        }
+        index.commit();
+        assertThat(index.estimateTotalCount(), is(10000L));
+
+        assertEstimate(index, Operator.EQUAL_TO, "active", 9000L, 0.05d);
+        assertEstimate(index, Operator.NOT_EQUAL_TO, "active", 1000L, 0.05d);
+        assertEstimate(index, Operator.EQUAL_TO, "status-9500", 1L, 0.0d);
+        assertThat(estimate(index, Operator.EQUAL_TO, "deleted") <= 1L, is(true));
+        assertEstimate(index, Operator.LESS_THAN, "active", 0L, 0.0d);
+        assertEstimate(index, Operator.GREATER_THAN, "active", 1000L, 0.05d);
+
+        // The bucket counts are maintained as values are added ...
+        for (int i = 10000; i != 11000; ++i) {
+            index.add(key(i), "test", "active");
+        }
+        assertEstimate(index, Operator.EQUAL_TO, "active", 10000L, 0.05d);
+
+        // and the statistics are rebuilt after enough changes, and persisted in the index ...
+        index.commit();
+        LocalDuplicateIndex<String> reopened = duplicateValueIndex(String.class);
+        assertEstimate(reopened, Operator.EQUAL_TO, "active", 10000L, 0.05d);
+    }
+
+    @Test
+    public void shouldEstimateCardinalityOfNumericRangesUsingStatistics() {
+        LocalDuplicateIndex<Long> index = duplicateValueIndex(Long.class);
+        loadLongIndexWithNoDuplicates(index, 10000);
+        index.commit();
+
+        assertEstimate(index, Operator.LESS_THAN_OR_EQUAL_TO, 10000L, 1000L, 0.05d);
+        assertEstimate(index, Operator.GREATER_THAN, 50000L, 5000L, 0.05d);
+        assertEstimate(index, Operator.EQUAL_TO, 500L, 1L, 0.0d);
+        assertEstimate(index, Operator.EQUAL_TO, 100001L, 0L, 0.0d);
+    }
+
+    protected <T> long estimate( LocalDuplicateIndex<T> index,
+                                 Operator op,
+                                 T value ) {
+        return index.estimateCardinality(new ArrayList<>(constraints(propertyName, op, value).getConstraints()),
+                                         Collections.emptyMap());
+    }
+
+    protected <T> void assertEstimate( LocalDuplicateIndex<T> index,
+                                       Operator op,
+                                       T value,
+                                       long expected,
+                                       double tolerance ) {
+        long actual = estimate(index, op, value);
+        assertTrue("Expected about " + expected + " but estimated " + actual,
+                   Math.abs(actual - expected) <= Math.max(1L, (long)(expected * tolerance)));
+    }
 }
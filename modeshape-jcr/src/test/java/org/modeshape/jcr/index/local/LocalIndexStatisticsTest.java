@@ -0,0 +1,144 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.index.local;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.function.Function;
+import org.junit.Before;
+import org.junit.Test;
+import org.mapdb.BTreeMap;
+import org.mapdb.Serializer;
+import org.modeshape.jcr.api.query.qom.Operator;
+import org.modeshape.jcr.value.PropertyType;
+
+public class LocalIndexStatisticsTest extends AbstractLocalIndexTest {
+
+    private BTreeMap<Long, String> keysByValue;
+    private LocalIndexStatistics<Long, Long> statistics;
+    private IndexValues.Converter<Long> converter;
+
+    @Override
+    @Before
+    @SuppressWarnings( "unchecked" )
+    public void beforeEach() {
+        super.beforeEach();
+        keysByValue = db.createTreeMap("myIndex").comparator(PropertyType.LONG.getComparator()).make();
+        statistics = statistics();
+        statistics.bind(keysByValue);
+        converter = IndexValues.converter(context.getValueFactories().getLongFactory());
+    }
+
+    @SuppressWarnings( "unchecked" )
+    protected LocalIndexStatistics<Long, Long> statistics() {
+        return LocalIndexStatistics.create("myIndex", db, Function.identity(),
+                                           (Comparator<Long>)PropertyType.LONG.getComparator(), Serializer.LONG);
+    }
+
+    @Test
+    public void shouldNotEstimateBeforeFirstCommit() {
+        keysByValue.put(1L, key(1));
+        assertThat(estimate(Operator.EQUAL_TO, 1L), is(-1L));
+    }
+
+    @Test
+    public void shouldEstimateUniformRanges() {
+        for (long i = 1; i <= 10000; ++i) {
+            keysByValue.put(i, key((int)i));
+        }
+        statistics.commit();
+        assertEstimate(Operator.LESS_THAN_OR_EQUAL_TO, 1000L, 1000L);
+        assertEstimate(Operator.GREATER_THAN, 2500L, 7500L);
+        assertEstimate(Operator.EQUAL_TO, 42L, 1L);
+        assertEstimate(Operator.LESS_THAN, 1L, 0L);
+        assertThat(statistics.estimateDistinctValues() > 9500L && statistics.estimateDistinctValues() < 10500L, is(true));
+    }
+
+    @Test
+    public void shouldEstimateSkewedValues() {
+        // Half of the entries are in a single narrow range, the rest are spread out ...
+        for (long i = 1; i <= 5000; ++i) {
+            keysByValue.put(i, key((int)i));
+        }
+        for (long i = 1; i <= 5000; ++i) {
+            keysByValue.put(1000000L + i * 1000L, key((int)(5000 + i)));
+        }
+        statistics.commit();
+        assertEstimate(Operator.LESS_THAN_OR_EQUAL_TO, 5000L, 5000L);
+        assertEstimate(Operator.GREATER_THAN, 3500000L, 2500L);
+    }
+
+    @Test
+    public void shouldTrackChangesAndPersistStatistics() {
+        for (long i = 1; i <= 2000; ++i) {
+            keysByValue.put(i, key((int)i));
+        }
+        statistics.commit();
+        for (long i = 1; i <= 1000; ++i) {
+            keysByValue.remove(i);
+        }
+        // only the partially-emptied bucket that straddles the boundary is interpolated ...
+        assertThat(estimate(Operator.LESS_THAN_OR_EQUAL_TO, 1000L) <= 32L, is(true));
+        assertEstimate(Operator.GREATER_THAN, 1000L, 1000L);
+
+        statistics.commit();
+        db.commit();
+        LocalIndexStatistics<Long, Long> reopened = statistics();
+        reopened.bind(keysByValue);
+        long estimate = reopened.estimateCardinality(new ArrayList<>(constraints(propertyName, Operator.GREATER_THAN, 1000L)
+                                                                         .getConstraints()), converter, Collections.emptyMap());
+        assertEstimate(estimate, 1000L);
+    }
+
+    @Test
+    public void shouldKeepEstimatingWhileTheHistogramIsRebuilt() {
+        for (long i = 1; i <= 2000; ++i) {
+            keysByValue.put(i, key((int)i));
+        }
+        statistics.commit();
+        assertEstimate(Operator.LESS_THAN_OR_EQUAL_TO, 1000L, 1000L);
+
+        // Enough entries change for the histogram to be rebuilt, but committing doesn't wait for that ...
+        for (long i = 2001; i <= 6000; ++i) {
+            keysByValue.put(i, key((int)i));
+        }
+        statistics.commit();
+        assertEstimate(Operator.LESS_THAN_OR_EQUAL_TO, 1000L, 1000L);
+        assertThat(estimate(Operator.GREATER_THAN, 2000L) > 0L, is(true));
+    }
+
+    protected long estimate( Operator op,
+                             Long value ) {
+        return statistics.estimateCardinality(new ArrayList<>(constraints(propertyName, op, value).getConstraints()), converter,
+                                              Collections.emptyMap());
+    }
+
+    protected void assertEstimate( Operator op,
+                                   Long value,
+                                   long expected ) {
+        assertEstimate(estimate(op, value), expected);
+    }
+
+    protected void assertEstimate( long actual,
+                                   long expected ) {
+        assertTrue("Expected about " + expected + " but estimated " + actual,
+                   Math.abs(actual - expected) <= Math.max(1L, expected / 20L));
+    }
+}
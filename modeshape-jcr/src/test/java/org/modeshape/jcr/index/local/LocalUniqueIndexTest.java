@@ -18,9 +18,20 @@ package org.modeshape.jcr.index.local;
 
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertThat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.junit.Test;
 import org.modeshape.jcr.api.query.qom.Operator;
+import org.modeshape.jcr.spi.index.provider.Filter;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Path;
+import org.modeshape.jcr.value.Property;
 
 public class LocalUniqueIndexTest extends AbstractLocalIndexTest {
 
@@ -143,4 +154,155 @@ public class LocalUniqueIndexTest extends AbstractLocalIndexTest {
         assertNoMatch(index, Operator.EQUAL_TO, 30L);
         assertThat(index.estimateTotalCount(), is(8L));
     }
+
+    @Test
+    public void shouldReturnStoredValuesWithResults() {
+        LocalUniqueIndex<Long> index = uniqueValueIndex(Long.class, storedColumns("title", "author"));
+        assertThat(index.requiresReindexing(), is(true));
+        loadLongIndex(index, 3);
+        index.storeValues(key(1), "title", new Object[] {"First"});
+        index.storeValues(key(2), "title", new Object[] {"Second"});
+        index.storeValues(key(2), "author", new Object[] {"Alice", "Bob"});
+
+        Filter.Results results = index.filter(constraints(propertyName, Operator.LESS_THAN_OR_EQUAL_TO, 30L), -1);
+        Filter.ResultBatch batch = results.getNextBatch(10);
+        assertThat(batch.size(), is(3));
+        Iterator<Map<Name, Property>> stored = batch.storedValues().iterator();
+        Map<Name, Property> first = stored.next();
+        assertThat(first.get(name("title")).getFirstValue(), is((Object)"First"));
+        assertThat(first.containsKey(name("author")), is(true));
+        assertThat(first.get(name("author")), is(nullValue()));
+        Map<Name, Property> second = stored.next();
+        assertThat(second.get(name("author")).size(), is(2));
+        Map<Name, Property> third = stored.next();
+        assertThat(third.get(name("title")), is(nullValue()));
+        assertThat(stored.hasNext(), is(false));
+
+        // Removing the node should also remove its stored values ...
+        index.removeStoredValues(key(2));
+        index.storeValues(key(1), "title", null);
+        stored = index.filter(constraints(propertyName, Operator.LESS_THAN_OR_EQUAL_TO, 30L), -1)
+                      .getNextBatch(10).storedValues().iterator();
+        assertThat(stored.next().get(name("title")), is(nullValue()));
+        assertThat(stored.next().get(name("author")), is(nullValue()));
+    }
+
+    @Test
+    public void shouldStoreEachNodeKeyOnce() {
+        LocalUniqueIndex<Long> index = uniqueValueIndex(Long.class);
+        loadLongIndex(index, 10);
+        index.add(key(3), "test", 300L);
+
+        LocalNodeKeyDictionary nodeKeys = LocalNodeKeyDictionary.create(db);
+        assertThat(nodeKeys.size(), is(10L));
+        assertThat(nodeKeys.nodeKeyFor(nodeKeys.existingIdFor(key(3))), is(key(3)));
+        assertThat(nodeKeys.existingIdFor(key(20)), is(nullValue()));
+
+        // Removing a node key that was never stored should not add it to the dictionary ...
+        index.remove(key(20));
+        assertThat(nodeKeys.size(), is(10L));
+        assertMatch(index, Operator.EQUAL_TO, 30L, key(3));
+        assertMatch(index, Operator.EQUAL_TO, 300L, key(3));
+
+        // Node keys are removed once no entry refers to them ...
+        index.remove(key(3), "test", 30L);
+        assertThat(nodeKeys.size(), is(10L));
+        index.remove(key(3));
+        assertThat(nodeKeys.size(), is(9L));
+        assertThat(nodeKeys.existingIdFor(key(3)), is(nullValue()));
+        assertMatch(index, Operator.EQUAL_TO, 40L, key(4));
+
+        // and when the index is cleared ...
+        index.clearAllData();
+        assertThat(nodeKeys.size(), is(0L));
+    }
+
+    @Test
+    public void shouldReleaseNodeKeysWhenEntriesAreReplaced() {
+        LocalUniqueIndex<Long> index = uniqueValueIndex(Long.class);
+        LocalNodeKeyDictionary nodeKeys = LocalNodeKeyDictionary.create(db);
+        index.add(key(1), "test", 10L);
+        index.add(key(1), "test", 10L);
+        assertThat(nodeKeys.size(), is(1L));
+        index.add(key(2), "test", 10L);
+        assertThat(nodeKeys.size(), is(1L));
+        assertThat(nodeKeys.existingIdFor(key(1)), is(nullValue()));
+        assertMatch(index, Operator.EQUAL_TO, 10L, key(2));
+    }
+
+    @Test
+    public void shouldCountNodeKeyReferencesFromConcurrentThreads() throws Exception {
+        LocalNodeKeyDictionary nodeKeys = LocalNodeKeyDictionary.create(db);
+        List<Thread> threads = new ArrayList<>();
+        List<Throwable> failures = new CopyOnWriteArrayList<>();
+        for (int t = 0; t != 8; ++t) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i != 1000; ++i) {
+                        String nodeKey = key(i % 10);
+                        long id = nodeKeys.acquire(nodeKey);
+                        assertThat(nodeKeys.nodeKeyFor(id), is(nodeKey));
+                        // keep every other reference, so that the counts cross zero only sometimes ...
+                        if ((i / 10) % 2 == 1) nodeKeys.release(id);
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        assertThat(failures.isEmpty(), is(true));
+
+        // All threads must have shared a single identifier for each node key, holding 8 * 50 references to it ...
+        assertThat(nodeKeys.size(), is(10L));
+        for (int i = 0; i != 10; ++i) {
+            Long id = nodeKeys.existingIdFor(key(i));
+            for (int n = 0; n != 8 * 50; ++n) {
+                assertThat(nodeKeys.existingIdFor(key(i)), is(id));
+                nodeKeys.release(id);
+            }
+            assertThat(nodeKeys.existingIdFor(key(i)), is(nullValue()));
+        }
+        assertThat(nodeKeys.size(), is(0L));
+    }
+
+    @Test
+    public void shouldReturnStoredPathsWithResultsUntilTheyAreInvalidated() {
+        LocalUniqueIndex<Long> index = uniqueValueIndex(Long.class, storedColumns("title"));
+        loadLongIndex(index, 5);
+        index.storePath(key(1), path("/a/b"));
+        index.storePath(key(2), path("/a/b[2]"));
+        index.storePath(key(3), path("/a/b[3]/c"));
+        index.storePath(key(4), path("/a/bx"));
+        index.storePath(key(5), path("/e"));
+        index.storePath(key(5), path("/d"));
+        assertThat(storedPaths(index), is(Arrays.asList(path("/a/b"), path("/a/b[2]"), path("/a/b[3]/c"), path("/a/bx"),
+                                                        path("/d"))));
+
+        // Removing "/a/b[2]" shifts its later same-name siblings, so their paths (and those of their descendants) are unknown ...
+        index.invalidatePaths(path("/a"), name("b"), 2);
+        assertThat(storedPaths(index), is(Arrays.asList(path("/a/b"), null, null, path("/a/bx"), path("/d"))));
+
+        index.removeStoredValues(key(1));
+        assertThat(storedPaths(index), is(Arrays.asList(null, null, null, path("/a/bx"), path("/d"))));
+    }
+
+    protected List<Path> storedPaths( LocalUniqueIndex<Long> index ) {
+        List<Path> paths = new ArrayList<>();
+        Filter.ResultBatch batch = index.filter(constraints(propertyName, Operator.LESS_THAN_OR_EQUAL_TO, 100L), -1)
+                                        .getNextBatch(10);
+        for (Path path : batch.storedPaths()) {
+            paths.add(path);
+        }
+        return paths;
+    }
+
+    protected Path path( String path ) {
+        return context.getValueFactories().getPathFactory().create(path);
+    }
+
+    protected Name name( String name ) {
+        return context.getValueFactories().getNameFactory().create(name);
+    }
 }
@@ -16,7 +16,17 @@
 
 package org.modeshape.jcr.journal;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
@@ -26,7 +36,11 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.modeshape.common.util.FileUtil;
 import org.modeshape.jcr.ClusteringHelper;
+import org.modeshape.jcr.cache.change.ChangeSet;
+import org.modeshape.jcr.cache.change.RecordingChanges;
+import org.modeshape.jcr.cache.change.WorkspaceAdded;
 import org.modeshape.jcr.clustering.ClusteringService;
+import org.modeshape.jcr.value.basic.ModeShapeDateTime;
 
 /**
  * Unit test for {@link ClusteredJournal}
@@ -123,6 +137,51 @@ public class ClusteredJournalTest extends LocalJournalTest {
         }
     }
     
+    @Test
+    public void shouldStreamDeltaInBatchesAndReportMissingChanges() throws Exception {
+        journal.shutdown();
+
+        LoopbackClusteringService clusteringService = new LoopbackClusteringService();
+        // the first journal removes records after 1 day, so it cannot know whether it holds all the older changes ...
+        FileUtil.delete("target/streaming_journal_1");
+        FileUtil.delete("target/streaming_journal_2");
+        ClusteredJournal journal1 = new ClusteredJournal(new LocalJournal("target/streaming_journal_1", false, 1),
+                                                         clusteringService, 1, 2);
+        ClusteredJournal journal2 = new ClusteredJournal(new LocalJournal("target/streaming_journal_2"), clusteringService, 1, 2);
+        try {
+            clusteringService.members.add(journal1);
+            journal1.start();
+            assertNull(journal1.caughtUpChangesSince());
+            for (int i = 0; i != 5; ++i) {
+                RecordingChanges changes = new RecordingChanges("session", "process", "repository", "default",
+                                                                journal1.journalId());
+                changes.workspaceAdded("workspace" + i);
+                changes.freeze("user", null, new ModeShapeDateTime());
+                journal1.addRecords(new JournalRecord(changes));
+            }
+            journal1.addRecords(new JournalRecord(TestChangeSet.create(journal1.journalId(), 2)));
+            long oldestChange = journal1.allRecords(false).iterator().next().getChangeTimeMillis();
+
+            clusteringService.members.add(journal2);
+            journal2.start();
+            assertTrue(journal2.started());
+            // 6 records in batches of 2, followed by an empty last batch ...
+            assertEquals(4, clusteringService.responses);
+            assertEquals(6, journal2.allRecords(false).size());
+            assertEquals(Long.valueOf(0L), journal2.caughtUpChangesSince());
+            Iterator<JournalRecord> records = journal2.allRecords(false).iterator();
+            ChangeSet first = records.next().getChangeSet();
+            assertEquals("workspace0", ((WorkspaceAdded)first.iterator().next()).getWorkspaceName());
+            assertEquals(journal1.allRecords(false).iterator().next().getChangeSet().getUUID(), first.getUUID());
+
+            // the changes older than those of the first journal may be missing ...
+            assertFalse(journal2.containsChangesSince(0));
+            assertTrue(journal2.containsChangesSince(oldestChange));
+        } finally {
+            shutdown(journal1, journal2);
+        }
+    }
+
     private void shutdown(ChangeJournal... journals) {
         for (ChangeJournal journal : journals) {
             try {
@@ -135,6 +194,58 @@ public class ClusteredJournalTest extends LocalJournalTest {
         }
     }
 
+    /**
+     * A clustering service which delivers each (encoded and decoded) message directly to the journals in the same process.
+     */
+    private static class LoopbackClusteringService extends ClusteringService {
+        private final List<ClusteredJournal> members = new ArrayList<>();
+        private int responses;
+
+        protected LoopbackClusteringService() {
+            super("loopback-cluster");
+        }
+
+        @Override
+        protected void init() {
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public String clusterName() {
+            return "loopback-cluster";
+        }
+
+        @Override
+        public boolean multipleMembersInCluster() {
+            return members.size() > 1;
+        }
+
+        @Override
+        public boolean sendMessage( Serializable payload ) {
+            try {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                ClusteredJournal.DeltaMessageCodec.INSTANCE.encode((ClusteredJournal.DeltaMessage)payload,
+                                                                   new DataOutputStream(bytes));
+                DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+                ClusteredJournal.DeltaMessage message = ClusteredJournal.DeltaMessageCodec.INSTANCE.decode(input,
+                                                                                                           getClass().getClassLoader());
+                if (message.isResponse()) {
+                    ++responses;
+                }
+                for (ClusteredJournal member : new ArrayList<>(members)) {
+                    member.consume(message);
+                }
+                return true;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
     private ClusteredJournal startNewJournal( String fileLocation,
                                               int clusterServiceIdx,
                                               int maxReconciliationWaitTimeMinutes) throws Exception {
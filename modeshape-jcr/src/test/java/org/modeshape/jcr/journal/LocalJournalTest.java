@@ -16,6 +16,7 @@
 package org.modeshape.jcr.journal;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import java.io.File;
@@ -26,11 +27,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.modeshape.common.FixFor;
 import org.modeshape.common.util.FileUtil;
+import org.modeshape.jcr.RepositoryConfiguration;
 import org.modeshape.jcr.api.value.DateTime;
 import org.modeshape.jcr.cache.NodeKey;
 import org.modeshape.jcr.cache.change.Change;
@@ -201,6 +204,43 @@ public class LocalJournalTest {
         assertEquals(entriesCount + 1, journal.allRecords(false).size());
     }
 
+    @Test
+    public void shouldDetermineWhetherChangesMayBeMissing() throws Exception {
+        // by default records are never removed, so no changes can be missing ...
+        assertTrue(journal.containsChangesSince(0));
+
+        LocalJournal retainingJournal = new LocalJournal("target/retaining_journal", false, 1);
+        FileUtil.delete(retainingJournal.getJournalLocation());
+        retainingJournal.start();
+        try {
+            long now = System.currentTimeMillis();
+            retainingJournal.notify(TestChangeSet.create("j1", 1));
+            long oldestChange = retainingJournal.lastRecord().getChangeTimeMillis();
+            // changes within the retention period are never removed ...
+            assertTrue(retainingJournal.containsChangesSince(now - TimeUnit.HOURS.toMillis(1)));
+            // but older changes may have been
+            assertFalse(retainingJournal.containsChangesSince(now - TimeUnit.DAYS.toMillis(2)));
+            assertFalse(retainingJournal.containsChangesSince(0));
+            assertTrue(retainingJournal.containsChangesSince(oldestChange));
+        } finally {
+            retainingJournal.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldKeepChangesToSystemWorkspaceApart() throws Exception {
+        long now = System.currentTimeMillis();
+        int recordsCount = journal.allRecords(false).size();
+        journal.notify(TestChangeSet.createInWorkspace(RepositoryConfiguration.SYSTEM_WORKSPACE_NAME, "j1", 2));
+        // the changes to the system workspace are not returned with the other records ...
+        assertEquals(recordsCount, journal.allRecords(false).size());
+        // but only separately
+        ChangeJournal.Records systemRecords = journal.systemRecordsNewerThan(now);
+        assertNotNull(systemRecords);
+        assertEquals(1, systemRecords.size());
+        assertEquals(2, systemRecords.iterator().next().changedNodes().size());
+    }
+
     @Test
     public void shouldHaveSameJournalIdAfterRestart() throws Exception {
         String journalId = journal.journalId();
@@ -224,6 +264,7 @@ public class LocalJournalTest {
         private org.modeshape.jcr.api.value.DateTime timestamp;
         private String journalId;
         private Set<NodeKey> nodeChanges;
+        private String workspaceName = "someWorkspace";
 
         private TestChangeSet( List<Change> changes,
                                String journalId,
@@ -271,7 +312,7 @@ public class LocalJournalTest {
 
         @Override
         public String getWorkspaceName() {
-            return "someWorkspace";
+            return workspaceName;
         }
 
         @Override
@@ -329,5 +370,13 @@ public class LocalJournalTest {
             Thread.sleep(1);
             return new TestChangeSet(changes, journalId, nodeChanges);
         }
+
+        static ChangeSet createInWorkspace( String workspaceName,
+                                           String journalId,
+                                           int changesCount ) throws InterruptedException {
+            TestChangeSet changeSet = (TestChangeSet)create(journalId, changesCount);
+            changeSet.workspaceName = workspaceName;
+            return changeSet;
+        }
     }
 }
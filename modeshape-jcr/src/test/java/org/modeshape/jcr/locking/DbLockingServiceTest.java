@@ -0,0 +1,258 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.locking;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.modeshape.jcr.clustering.ClusteringService;
+import org.modeshape.jcr.clustering.MessageConsumer;
+import org.modeshape.schematic.Lockable;
+
+/**
+ * Unit test for {@link DbLockingService}
+ */
+public class DbLockingServiceTest {
+
+    private InMemoryLockable db;
+    private DbLockingService service;
+    private ExecutorService executors;
+
+    @Before
+    public void before() {
+        db = new InMemoryLockable();
+        service = new DbLockingService(TimeUnit.SECONDS.toMillis(10), db);
+        executors = Executors.newFixedThreadPool(5);
+    }
+
+    @After
+    public void after() throws Exception {
+        executors.shutdownNow();
+        service.shutdown();
+    }
+
+    @Test
+    public void shouldLockAndUnlockMultipleLocks() throws Exception {
+        assertTrue(service.tryLock("lock1", "lock2"));
+        commit("lock1", "lock2");
+        assertTrue(executors.submit(() -> service.tryLock("lock1", "lock2")).get());
+    }
+
+    @Test
+    public void shouldReacquireLocksHeldByTheSameThread() throws Exception {
+        assertTrue(service.tryLock("lock1", "lock2"));
+        // another thread is queued for one of the locks, but this thread's transaction already holds it
+        Future<Boolean> waiter = executors.submit(() -> service.tryLock("lock2"));
+        Thread.sleep(50);
+        assertTrue(service.tryLock(0, TimeUnit.MILLISECONDS, "lock2", "lock3"));
+        assertFalse(waiter.isDone());
+        commit("lock1", "lock2", "lock3");
+        assertTrue(waiter.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void shouldFailWithoutWaitingIfLocksAlreadyHeld() throws Exception {
+        assertTrue(service.tryLock("lock1"));
+        assertFalse(executors.submit(() -> service.tryLock(0, TimeUnit.MILLISECONDS, "lock2", "lock1")).get());
+        assertEquals(2, db.attempts.get());
+    }
+
+    @Test
+    public void shouldTimeOutIfLocksAreNotReleased() throws Exception {
+        assertTrue(service.tryLock("lock1"));
+        long start = System.nanoTime();
+        assertFalse(executors.submit(() -> service.tryLock(200, TimeUnit.MILLISECONDS, "lock1")).get());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 200);
+        // the timed out waiter must not prevent others from getting the lock
+        commit("lock1");
+        assertTrue(executors.submit(() -> service.tryLock(0, TimeUnit.MILLISECONDS, "lock1")).get());
+    }
+
+    @Test
+    public void shouldGrantLocksToWaitersInOrder() throws Exception {
+        assertTrue(service.tryLock("lock1"));
+        List<Integer> order = new CopyOnWriteArrayList<>();
+        int waiterCount = 4;
+        CountDownLatch done = new CountDownLatch(waiterCount);
+        for (int i = 0; i != waiterCount; ++i) {
+            int waiterId = i;
+            executors.submit(() -> {
+                if (service.tryLock("lock1")) {
+                    order.add(waiterId);
+                    commit("lock1");
+                }
+                done.countDown();
+                return null;
+            });
+            // make sure the waiters are queued in order
+            Thread.sleep(50);
+        }
+        int attemptsBeforeRelease = db.attempts.get();
+        commit("lock1");
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(0, 1, 2, 3), order);
+        // only the waiter at the head of the queue polls the DB, and each of the others goes to the DB about once when woken up
+        assertTrue("too many DB lock attempts: " + db.attempts.get(),
+                   attemptsBeforeRelease < 20 && db.attempts.get() - attemptsBeforeRelease < 20);
+    }
+
+    @Test
+    public void shouldWakeUpWaitersWhenLocksAreReleased() throws Exception {
+        assertTrue(service.tryLock("lock1"));
+        Future<Boolean> waiter = executors.submit(() -> service.tryLock("lock1"));
+        // let the waiter back off for a while
+        Thread.sleep(1000);
+        int attempts = db.attempts.get();
+        commit("lock1");
+        assertTrue(waiter.get(5, TimeUnit.SECONDS));
+        // the waiter goes to the DB as soon as it's woken up, unless it happened to poll just before the release
+        assertTrue(db.attempts.get() - attempts <= 2);
+    }
+
+    @Test
+    public void shouldEncodeLocksReleasedMessages() throws Exception {
+        DbLockingService.LocksReleased message = new DbLockingService.LocksReleased("process", "lock1", "lock2");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DbLockingService.LocksReleasedCodec.INSTANCE.encode(message, new DataOutputStream(bytes));
+        DbLockingService.LocksReleased decoded = DbLockingService.LocksReleasedCodec.INSTANCE.decode(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), getClass().getClassLoader());
+        assertEquals(message.getProcessId(), decoded.getProcessId());
+        assertEquals(message.getNames(), decoded.getNames());
+    }
+
+    @Test
+    public void shouldEncodeLocksWantedMessages() throws Exception {
+        DbLockingService.LocksWanted message = new DbLockingService.LocksWanted("process", 123L, "lock1", "lock2");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DbLockingService.LocksWantedCodec.INSTANCE.encode(message, new DataOutputStream(bytes));
+        DbLockingService.LocksWanted decoded = DbLockingService.LocksWantedCodec.INSTANCE.decode(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), getClass().getClassLoader());
+        assertEquals(message.getProcessId(), decoded.getProcessId());
+        assertEquals(message.getTimeoutNanos(), decoded.getTimeoutNanos());
+        assertEquals(message.getNames(), decoded.getNames());
+    }
+
+    @Test
+    @SuppressWarnings( {"unchecked", "rawtypes"} )
+    public void shouldOnlyTellOtherProcessesAboutReleasedLocksTheyAreWaitingFor() throws Exception {
+        ClusteringService clustering = mock(ClusteringService.class);
+        when(clustering.multipleMembersInCluster()).thenReturn(true);
+        DbLockingService clustered = new DbLockingService(TimeUnit.SECONDS.toMillis(10), db, clustering, null);
+        ArgumentCaptor<MessageConsumer> consumers = ArgumentCaptor.forClass(MessageConsumer.class);
+        verify(clustering, times(2)).addConsumer(consumers.capture());
+        MessageConsumer<DbLockingService.LocksWanted> locksWanted = null;
+        for (MessageConsumer<?> consumer : consumers.getAllValues()) {
+            if (consumer.getPayloadType() == DbLockingService.LocksWanted.class) {
+                locksWanted = (MessageConsumer<DbLockingService.LocksWanted>)consumer;
+            }
+        }
+
+        // nobody else is waiting, so releasing the locks doesn't send anything...
+        assertTrue(clustered.tryLock("lock1", "lock2"));
+        db.release("lock1", "lock2");
+        clustered.unlock("lock1", "lock2");
+        verify(clustering, never()).sendMessage(any(Serializable.class));
+
+        // but once another process announces that it waits for a lock, it is told when that lock is released...
+        locksWanted.consume(new DbLockingService.LocksWanted("other", TimeUnit.SECONDS.toNanos(10), "lock2"));
+        assertTrue(clustered.tryLock("lock1", "lock2"));
+        db.release("lock1", "lock2");
+        clustered.unlock("lock1", "lock2");
+        ArgumentCaptor<Serializable> messages = ArgumentCaptor.forClass(Serializable.class);
+        verify(clustering).sendMessage(messages.capture());
+        assertEquals(Arrays.asList("lock2"), ((DbLockingService.LocksReleased)messages.getValue()).getNames());
+
+        // until it gives up waiting...
+        locksWanted.consume(new DbLockingService.LocksWanted("other", 0L, "lock1"));
+        assertTrue(clustered.tryLock("lock1"));
+        db.release("lock1");
+        clustered.unlock("lock1");
+        verify(clustering, times(1)).sendMessage(any(Serializable.class));
+    }
+
+    @Test
+    public void shouldAnnounceThatThreadIsWaitingForLocks() throws Exception {
+        ClusteringService clustering = mock(ClusteringService.class);
+        when(clustering.multipleMembersInCluster()).thenReturn(true);
+        DbLockingService clustered = new DbLockingService(TimeUnit.SECONDS.toMillis(10), db, clustering, null);
+        assertTrue(clustered.tryLock("lock1"));
+        assertFalse(executors.submit(() -> clustered.tryLock(100, TimeUnit.MILLISECONDS, "lock1")).get());
+        ArgumentCaptor<Serializable> messages = ArgumentCaptor.forClass(Serializable.class);
+        verify(clustering).sendMessage(messages.capture());
+        assertEquals(Arrays.asList("lock1"), ((DbLockingService.LocksWanted)messages.getValue()).getNames());
+    }
+
+    /**
+     * Mimics the end of the transaction in which the locks were obtained: the DB releases the locks and then the locking
+     * service is told about it.
+     */
+    private void commit( String... names ) {
+        db.release(names);
+        service.unlock(names);
+    }
+
+    /**
+     * A {@link Lockable} which, like a DB, lets the same thread obtain its locks again and only releases them at the end.
+     */
+    private static class InMemoryLockable implements Lockable {
+        private final Map<String, Thread> owners = new HashMap<>();
+        private final AtomicInteger attempts = new AtomicInteger();
+
+        @Override
+        public synchronized boolean lockForWriting( List<String> locks ) {
+            attempts.incrementAndGet();
+            Thread currentThread = Thread.currentThread();
+            for (String lock : locks) {
+                Thread owner = owners.get(lock);
+                if (owner != null && owner != currentThread) {
+                    return false;
+                }
+            }
+            locks.forEach(lock -> owners.put(lock, currentThread));
+            return true;
+        }
+
+        protected synchronized void release( String... locks ) {
+            Arrays.asList(locks).forEach(owners::remove);
+        }
+    }
+}
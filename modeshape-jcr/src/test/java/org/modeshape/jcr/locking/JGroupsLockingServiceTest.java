@@ -20,6 +20,8 @@ import static org.junit.Assert.assertTrue;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.junit.After;
@@ -150,6 +152,66 @@ public class JGroupsLockingServiceTest extends StandaloneLockingServiceTest {
         assertFalse(service4.tryLock("lock4"));
     }
 
+    @Test
+    public void shouldAcquireLargeBatchesAllOrNothingInCluster() throws Exception {
+        LockingService service1 = newLockingService(0);
+        LockingService service2 = newLockingService(1);
+        String[] locks = IntStream.range(0, 200).mapToObj(i -> "lock" + i).toArray(String[]::new);
+        assertTrue(service1.tryLock(locks));
+        // a batch which overlaps with the first one should not leave any of its locks behind
+        assertFalse(service2.tryLock("other1", "lock150", "other2"));
+        assertTrue(service1.tryLock("other1", "other2"));
+        assertTrue(service1.unlock("other1", "other2"));
+        assertTrue(service1.unlock(locks));
+        Thread.sleep(200);
+        assertTrue(service2.tryLock(locks));
+        assertTrue(service2.unlock(locks));
+    }
+
+    @Test
+    public void shouldReleaseClusterLocksUnlockedFromAnotherThread() throws Exception {
+        LockingService service1 = newLockingService(0);
+        LockingService service2 = newLockingService(1);
+        assertTrue(service1.tryLock("lock1", "lock2"));
+        // transactions may be completed on a different thread than the one which obtained the locks
+        CompletableFuture.runAsync(() -> assertTrue(service1.unlock("lock1", "lock2"))).get();
+        // the locks are still leased to the first member, which should be able to lock them again from any thread
+        CompletableFuture.runAsync(() -> {
+            assertLock(service1, true, "lock1", "lock2");
+            assertTrue(service1.unlock("lock1", "lock2"));
+        }).get();
+        Thread.sleep(200);
+        assertTrue(service2.tryLock("lock1", "lock2"));
+    }
+
+    @Test
+    public void shouldNotStarveOtherMembersOfLockUsedContinuously() throws Exception {
+        LockingService service1 = newLockingService(0);
+        LockingService service2 = newLockingService(1);
+        // the first member keeps locking and unlocking the same name, which renews the lease of its cluster lock ...
+        AtomicBoolean done = new AtomicBoolean();
+        CompletableFuture<Void> contender = CompletableFuture.runAsync(() -> {
+            while (!done.get()) {
+                try {
+                    if (service1.tryLock("lock1")) {
+                        service1.unlock("lock1");
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        });
+        try {
+            // but the second member should still get the cluster lock once the maximum hold time has elapsed
+            assertTrue(service2.tryLock(5, TimeUnit.SECONDS, "lock1"));
+            assertTrue(service2.unlock("lock1"));
+        } finally {
+            done.set(true);
+            contender.get();
+        }
+    }
+
     protected JGroupsLockingService newLockingService(int clusteredServiceIdx) {
         ClusteringService service = clusteringServices.get(clusteredServiceIdx);  
         JGroupsLockingService lockingService = new JGroupsLockingService(service.getChannel(), 100);
@@ -16,23 +16,34 @@
 package org.modeshape.jcr.query.engine.process;
 
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.notNullValue;
 import static org.junit.Assert.assertThat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.cache.CachedNode;
+import org.modeshape.jcr.cache.CachedNodeSupplier;
+import org.modeshape.jcr.cache.NodeKey;
 import org.modeshape.jcr.query.AbstractNodeSequenceTest;
 import org.modeshape.jcr.query.BufferManager;
 import org.modeshape.jcr.query.NodeSequence;
 import org.modeshape.jcr.query.NodeSequence.Batch;
 import org.modeshape.jcr.query.RowExtractors;
 import org.modeshape.jcr.query.RowExtractors.ExtractFromRow;
+import org.modeshape.jcr.query.engine.CoveredNode;
 import org.modeshape.jcr.query.model.NullOrder;
 import org.modeshape.jcr.query.model.TypeSystem;
+import org.modeshape.jcr.value.Name;
+import org.modeshape.jcr.value.Property;
 import org.modeshape.jcr.value.ValueTypeSystem;
 
 /**
@@ -123,6 +134,53 @@ public class SortingSequenceTest extends AbstractNodeSequenceTest {
         assertSorted(sorted, extractor);
     }
 
+    @Test
+    public void shouldSortCoveredNodesOffHeapWithoutLoadingThem() {
+        // Count the nodes which are loaded from the workspace cache ...
+        AtomicInteger loads = new AtomicInteger();
+        CachedNodeSupplier countingCache = key -> {
+            loads.incrementAndGet();
+            return cache.getNode(key);
+        };
+        Name title = name("title");
+        List<CachedNode> nodes = new ArrayList<CachedNode>();
+        Iterator<NodeKey> keys = cache.getAllNodeKeys();
+        for (int i = 0; keys.hasNext(); ++i) {
+            Map<Name, Property> stored = new HashMap<Name, Property>();
+            stored.put(title, context.getPropertyFactory().create(title, String.format("title-%04d", 1000 - i)));
+            nodes.add(new CoveredNode(keys.next(), stored, path("/node" + i), countingCache));
+        }
+        boolean useHeap = false;
+        boolean pack = false;
+        boolean allowDups = true;
+        ExtractFromRow extractor = RowExtractors.extractPropertyValue(title, 0, cache, types.getStringFactory());
+        SortingSequence sorted = new SortingSequence(workspaceName(), NodeSequence.withNodes(nodes, 1.0f, workspaceName()),
+                                                     extractor, bufferMgr, countingCache, pack, useHeap, allowDups,
+                                                     NullOrder.NULLS_LAST);
+        List<Object> values = new ArrayList<Object>();
+        try {
+            Batch batch = null;
+            while ((batch = sorted.nextBatch()) != null) {
+                while (batch.hasNext()) {
+                    batch.nextRow();
+                    // The buffered rows should still carry the stored values and path ...
+                    CoveredNode node = (CoveredNode)batch.getNode();
+                    assertThat(node.getStoredPath(), is(notNullValue()));
+                    values.add(extractor.getValueInRow(batch));
+                }
+            }
+        } finally {
+            sorted.close();
+        }
+        assertThat(values.size(), is(nodes.size()));
+        List<Object> naturallySorted = new ArrayList<Object>(values);
+        @SuppressWarnings( "unchecked" )
+        Comparator<Object> comparator = (Comparator<Object>)extractor.getType().getComparator();
+        Collections.sort(naturallySorted, comparator);
+        assertThat(values, is(naturallySorted));
+        assertThat(loads.get(), is(0));
+    }
+
     protected void assertSorted( NodeSequence sequence,
                                  ExtractFromRow extractor ) {
         List<Object> values = new ArrayList<Object>();
@@ -0,0 +1,216 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.spi.index.provider;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.jcr.ExecutionContext;
+import org.modeshape.jcr.cache.change.ChangeSet;
+import org.modeshape.jcr.cache.change.RecordingChanges;
+
+public class IndexUpdatePipelineTest {
+
+    private ExecutionContext context;
+    private ExecutorService workers;
+    private ScheduledExecutorService scheduler;
+    private ProvidedIndex<?> index;
+    private CountingAdapter adapter;
+    private IndexUpdatePipeline.Target target;
+
+    @Before
+    public void beforeEach() {
+        context = new ExecutionContext();
+        workers = Executors.newFixedThreadPool(2);
+        scheduler = Executors.newScheduledThreadPool(1);
+        index = mock(ProvidedIndex.class);
+        when(index.getName()).thenReturn("myIndex");
+        adapter = new CountingAdapter(context, index);
+        target = new IndexUpdatePipeline.Target() {
+            @Override
+            public String getName() {
+                return "myIndex";
+            }
+
+            @Override
+            public String workspaceName() {
+                return "default";
+            }
+
+            @Override
+            public IndexChangeAdapter adapter() {
+                return adapter;
+            }
+        };
+    }
+
+    @After
+    public void afterEach() {
+        workers.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void shouldCommitManyChangeSetsAtOnce() throws Exception {
+        IndexUpdatePipeline pipeline = new IndexUpdatePipeline(workers, scheduler, null, 1000, 200L);
+        pipeline.register(target);
+        for (int i = 0; i != 50; ++i) {
+            pipeline.notify(changes("default"));
+        }
+        // Changes in other workspaces are ignored ...
+        pipeline.notify(changes("other"));
+        waitForChangeSets(50);
+        Thread.sleep(100L);
+        verify(index, times(1)).commit();
+    }
+
+    @Test
+    public void shouldCommitWhenBatchIsFull() throws Exception {
+        IndexUpdatePipeline pipeline = new IndexUpdatePipeline(workers, scheduler, null, 10, 200L);
+        pipeline.register(target);
+        for (int i = 0; i != 25; ++i) {
+            pipeline.notify(changes("default"));
+        }
+        waitForChangeSets(25);
+        Thread.sleep(100L);
+        verify(index, times(3)).commit();
+    }
+
+    @Test
+    public void shouldApplyQueuedChangesWhenShutdown() {
+        IndexUpdatePipeline pipeline = new IndexUpdatePipeline(workers, scheduler, null, 1000, TimeUnit.MINUTES.toMillis(1));
+        pipeline.register(target);
+        pipeline.notify(changes("default"));
+        pipeline.notify(changes("default"));
+        pipeline.shutdown();
+        assertThat(adapter.changeSets.get(), is(2));
+        verify(index, times(1)).commit();
+
+        // and ignore any further changes ...
+        pipeline.notify(changes("default"));
+        assertThat(adapter.changeSets.get(), is(2));
+    }
+
+    @Test
+    public void shouldReportOldestPendingChangeUntilItIsCommitted() throws Exception {
+        IndexUpdatePipeline pipeline = new IndexUpdatePipeline(workers, scheduler, null, 1000, TimeUnit.MINUTES.toMillis(1));
+        pipeline.register(target);
+        assertThat(pipeline.oldestPendingChangeTime(), is(nullValue()));
+        ChangeSet first = changes("default");
+        pipeline.notify(first);
+        Thread.sleep(5L);
+        pipeline.notify(changes("default"));
+        assertThat(pipeline.oldestPendingChangeTime(), is(first.getTimestamp().getMilliseconds()));
+        pipeline.shutdown();
+        assertThat(pipeline.oldestPendingChangeTime(), is(nullValue()));
+    }
+
+    @Test
+    public void shouldNotCountChangeSetsThatFailedToBeApplied() {
+        final AtomicInteger calls = new AtomicInteger();
+        IndexUpdatePipeline.Target failingFirst = new IndexUpdatePipeline.Target() {
+            @Override
+            public String getName() {
+                return "myIndex";
+            }
+
+            @Override
+            public String workspaceName() {
+                return "default";
+            }
+
+            @Override
+            public IndexChangeAdapter adapter() {
+                if (calls.incrementAndGet() == 1) {
+                    throw new IllegalStateException("We're expecting to get this exception");
+                }
+                return adapter;
+            }
+        };
+        IndexUpdatePipeline pipeline = new IndexUpdatePipeline(workers, scheduler, null, 1000, TimeUnit.MINUTES.toMillis(1));
+        pipeline.register(failingFirst);
+        pipeline.notify(changes("default"));
+        pipeline.notify(changes("default"));
+        pipeline.shutdown();
+        assertThat(adapter.changeSets.get(), is(1));
+        verify(index, times(1)).commit();
+    }
+
+    @Test
+    public void shouldNotCommitWhenNoChangeSetCouldBeApplied() {
+        IndexUpdatePipeline.Target failing = new IndexUpdatePipeline.Target() {
+            @Override
+            public String getName() {
+                return "myIndex";
+            }
+
+            @Override
+            public String workspaceName() {
+                return "default";
+            }
+
+            @Override
+            public IndexChangeAdapter adapter() {
+                throw new IllegalStateException("We're expecting to get this exception");
+            }
+        };
+        IndexUpdatePipeline pipeline = new IndexUpdatePipeline(workers, scheduler, null, 1000, TimeUnit.MINUTES.toMillis(1));
+        pipeline.register(failing);
+        pipeline.notify(changes("default"));
+        pipeline.shutdown();
+        verify(index, times(0)).commit();
+    }
+
+    protected ChangeSet changes( String workspaceName ) {
+        RecordingChanges changes = new RecordingChanges("session", "process", "repository", workspaceName, "journal");
+        changes.freeze("user", null, context.getValueFactories().getDateFactory().create());
+        return changes;
+    }
+
+    protected void waitForChangeSets( int expected ) throws InterruptedException {
+        long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (adapter.changeSets.get() < expected && System.currentTimeMillis() < end) {
+            Thread.sleep(10L);
+        }
+        assertThat(adapter.changeSets.get(), is(expected));
+    }
+
+    protected static final class CountingAdapter extends IndexChangeAdapter {
+        protected final AtomicInteger changeSets = new AtomicInteger();
+
+        protected CountingAdapter( ExecutionContext context,
+                                   ProvidedIndex<?> index ) {
+            super(context, "default", null, index);
+        }
+
+        @Override
+        protected void beginWorkspaceChanges() {
+            changeSets.incrementAndGet();
+        }
+    }
+}
@@ -23,8 +23,10 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -226,6 +228,45 @@ public abstract class AbstractBinaryStoreTest {
         getBinaryStore().getText(new StoredBinaryValue(getBinaryStore(), invalidBinaryKey(), 0));
     }
 
+    @Test
+    public void shouldReadRangesOfStoredValues() throws Exception {
+        BinaryValue value = getBinaryStore().storeValue(new ByteArrayInputStream(STORED_LARGE_BINARY), false);
+        assertRange(value.getKey(), 0, 100);
+        assertRange(value.getKey(), 1000, 4000);
+        assertRange(value.getKey(), LARGE_BINARY_SIZE - 10, 10);
+        // Ranges past the end of the content are truncated ...
+        assertRange(value.getKey(), LARGE_BINARY_SIZE - 10, 1000);
+        assertRange(value.getKey(), LARGE_BINARY_SIZE + 10, 1000);
+
+        byte[] buffer = new byte[100];
+        assertEquals(100, value.read(buffer, 5000));
+        assertArrayEquals(Arrays.copyOfRange(STORED_LARGE_BINARY, 5000, 5100), buffer);
+    }
+
+    @Test
+    public void shouldTransferRangesOfStoredValuesToChannels() throws Exception {
+        BinaryValue value = getBinaryStore().storeValue(new ByteArrayInputStream(STORED_LARGE_BINARY), false);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        long transferred = getBinaryStore().transferTo(value.getKey(), 3000, 5000, Channels.newChannel(output));
+        assertEquals(5000L, transferred);
+        assertArrayEquals(Arrays.copyOfRange(STORED_LARGE_BINARY, 3000, 8000), output.toByteArray());
+
+        output.reset();
+        transferred = value.transferTo(0, Long.MAX_VALUE, Channels.newChannel(output));
+        assertEquals(LARGE_BINARY_SIZE, transferred);
+        assertArrayEquals(STORED_LARGE_BINARY, output.toByteArray());
+    }
+
+    private void assertRange( BinaryKey key,
+                              int offset,
+                              int length ) throws Exception {
+        int start = Math.min(offset, LARGE_BINARY_SIZE);
+        byte[] expected = Arrays.copyOfRange(STORED_LARGE_BINARY, start, Math.min(LARGE_BINARY_SIZE, start + length));
+        try (InputStream stream = getBinaryStore().getInputStream(key, offset, length)) {
+            assertArrayEquals(expected, IoUtil.readBytes(stream));
+        }
+    }
+
     private BinaryKey invalidBinaryKey() {
         return new BinaryKey(UUID.randomUUID().toString());
     }
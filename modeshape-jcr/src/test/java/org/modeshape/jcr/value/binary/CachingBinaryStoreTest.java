@@ -0,0 +1,236 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.common.util.FileUtil;
+import org.modeshape.common.util.IoUtil;
+import org.modeshape.jcr.value.BinaryKey;
+import org.modeshape.jcr.value.BinaryValue;
+
+/**
+ * Runs the binary store tests against a {@link CachingBinaryStore} in front of a file system store that stands in for a remote
+ * store and counts how often values are read from it.
+ */
+public class CachingBinaryStoreTest extends AbstractBinaryStoreTest {
+
+    private static final int MIN_BINARY_SIZE = 20;
+    private static final long CACHE_SIZE = 100 * 1024L;
+
+    private File directory;
+    private RemoteStore remote;
+    private CachingBinaryStore store;
+
+    @Before
+    public void beforeEach() {
+        directory = new File("target/caching-bs/");
+        FileUtil.delete(directory);
+        directory.mkdirs();
+        store = newStore(CachingBinaryStore.EvictionPolicy.LRU);
+    }
+
+    @After
+    public void afterEach() {
+        store.shutdown();
+        FileUtil.delete(directory);
+    }
+
+    private CachingBinaryStore newStore( CachingBinaryStore.EvictionPolicy policy ) {
+        remote = new RemoteStore(new File(directory, "remote"));
+        CachingBinaryStore store = new CachingBinaryStore(remote, new File(directory, "cache"), CACHE_SIZE, policy);
+        store.setMinimumBinarySizeInBytes(MIN_BINARY_SIZE);
+        store.setMimeTypeDetector(DEFAULT_DETECTOR);
+        store.start();
+        return store;
+    }
+
+    @Override
+    protected BinaryStore getBinaryStore() {
+        return store;
+    }
+
+    @Override
+    @Test( expected = BinaryStoreException.class )
+    public void shouldStoreZeroLengthBinary() throws BinaryStoreException, IOException {
+        // the file system binary store will not store a 0 byte size content
+        super.shouldStoreZeroLengthBinary();
+    }
+
+    @Test
+    public void shouldReadEachValueFromTheUnderlyingStoreOnce() throws Exception {
+        byte[] content = randomBytes(10000);
+        BinaryValue value = store.storeValue(new ByteArrayInputStream(content), false);
+        for (int i = 0; i != 5; ++i) {
+            assertArrayEquals(content, IoUtil.readBytes(value.getStream()));
+        }
+        assertEquals(1, remote.reads.get());
+        assertEquals(content.length, store.getCachedSizeInBytes());
+
+        // The cached copy should survive a restart ...
+        store.shutdown();
+        store = newStore(CachingBinaryStore.EvictionPolicy.LRU);
+        assertArrayEquals(content, IoUtil.readBytes(store.getInputStream(value.getKey())));
+        assertEquals(0, remote.reads.get());
+    }
+
+    @Test
+    public void shouldEvictLeastRecentlyReadValues() throws Exception {
+        List<BinaryKey> keys = storeValues(5, 30 * 1024);
+        read(keys.get(0), keys.get(1), keys.get(2));
+        read(keys.get(0));
+        // Reading this value should evict the second value, which was read the longest time ago ...
+        read(keys.get(3));
+        assertTrue(store.getCachedSizeInBytes() <= CACHE_SIZE);
+        remote.reads.set(0);
+        read(keys.get(0), keys.get(2), keys.get(3));
+        assertEquals(0, remote.reads.get());
+        read(keys.get(1));
+        assertEquals(1, remote.reads.get());
+    }
+
+    @Test
+    public void shouldEvictLeastFrequentlyReadValues() throws Exception {
+        store.shutdown();
+        FileUtil.delete(directory);
+        store = newStore(CachingBinaryStore.EvictionPolicy.LFU);
+        List<BinaryKey> keys = storeValues(5, 30 * 1024);
+        read(keys.get(0), keys.get(1), keys.get(2));
+        read(keys.get(0), keys.get(2), keys.get(0), keys.get(2));
+        // Reading this value should evict the second value, which was read the fewest times ...
+        read(keys.get(3));
+        remote.reads.set(0);
+        read(keys.get(0), keys.get(2));
+        assertEquals(0, remote.reads.get());
+        read(keys.get(1));
+        assertEquals(1, remote.reads.get());
+    }
+
+    @Test
+    public void shouldReadValueOnceForConcurrentMisses() throws Exception {
+        byte[] content = randomBytes(20000);
+        final BinaryKey key = store.storeValue(new ByteArrayInputStream(content), false).getKey();
+        remote.delay = 200L;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i != 8; ++i) {
+                results.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        start.await();
+                        return IoUtil.readBytes(store.getInputStream(key));
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<byte[]> result : results) {
+                assertArrayEquals(content, result.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, remote.reads.get());
+    }
+
+    @Test
+    public void shouldNotCacheContentThatDoesNotMatchItsKey() throws Exception {
+        BinaryKey key = store.storeValue(new ByteArrayInputStream(randomBytes(5000)), false).getKey();
+        remote.corrupt = true;
+        try {
+            store.getInputStream(key);
+            fail("Should not have returned corrupt content");
+        } catch (BinaryStoreException e) {
+            // expected
+        }
+        assertEquals(0L, store.getCachedSizeInBytes());
+    }
+
+    private List<BinaryKey> storeValues( int count,
+                                         int size ) throws BinaryStoreException {
+        List<BinaryKey> keys = new ArrayList<>();
+        for (int i = 0; i != count; ++i) {
+            keys.add(store.storeValue(new ByteArrayInputStream(randomBytes(size)), false).getKey());
+        }
+        return keys;
+    }
+
+    private void read( BinaryKey... keys ) throws Exception {
+        for (BinaryKey key : keys) {
+            IoUtil.readBytes(store.getInputStream(key));
+        }
+    }
+
+    private static byte[] randomBytes( int length ) {
+        byte[] bytes = new byte[length];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * A stand-in for a remote store.
+     */
+    protected static class RemoteStore extends FileSystemBinaryStore {
+        protected final AtomicInteger reads = new AtomicInteger();
+        protected volatile long delay;
+        protected volatile boolean corrupt;
+
+        protected RemoteStore( File directory ) {
+            super(directory);
+        }
+
+        @Override
+        public InputStream getInputStream( BinaryKey key ) throws BinaryStoreException {
+            reads.incrementAndGet();
+            if (delay > 0L) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (corrupt) {
+                try {
+                    byte[] content = IoUtil.readBytes(super.getInputStream(key));
+                    content[0] ^= 0xFF;
+                    return new ByteArrayInputStream(content);
+                } catch (IOException e) {
+                    throw new BinaryStoreException(e);
+                }
+            }
+            return super.getInputStream(key);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.common.util.FileUtil;
+import org.modeshape.common.util.IoUtil;
+import org.modeshape.jcr.value.BinaryValue;
+
+public class ChunkedFileSystemBinaryStoreTest extends AbstractBinaryStoreTest {
+
+    private static final int MIN_BINARY_SIZE = 20;
+    private static final int AVERAGE_CHUNK_SIZE = 1024;
+
+    private File directory;
+    private ChunkedFileSystemBinaryStore store;
+
+    @Before
+    public void beforeEach() {
+        directory = new File("target/chunked-fsbs/");
+        FileUtil.delete(directory);
+        directory.mkdirs();
+        store = new ChunkedFileSystemBinaryStore(directory);
+        store.setMinimumBinarySizeInBytes(MIN_BINARY_SIZE);
+        store.setAverageChunkSizeInBytes(AVERAGE_CHUNK_SIZE);
+        store.setMimeTypeDetector(DEFAULT_DETECTOR);
+        store.start();
+    }
+
+    @After
+    public void afterEach() {
+        store.shutdown();
+        FileUtil.delete(directory);
+    }
+
+    @Override
+    protected BinaryStore getBinaryStore() {
+        return store;
+    }
+
+    @Override
+    @Test( expected = BinaryStoreException.class )
+    public void shouldStoreZeroLengthBinary() throws BinaryStoreException, IOException {
+        // the chunked binary store will not store a 0 byte size content
+        super.shouldStoreZeroLengthBinary();
+    }
+
+    @Test
+    public void shouldStoreOnlyTheChunksThatChangedBetweenVersions() throws Exception {
+        byte[] original = randomBytes(256 * 1024);
+        BinaryValue first = store.storeValue(new ByteArrayInputStream(original), false);
+        Set<String> chunksOfFirst = chunkNames();
+        assertTrue(chunksOfFirst.size() > 50);
+
+        // Insert a few bytes into the middle of the content ...
+        byte[] edited = new byte[original.length + 3];
+        System.arraycopy(original, 0, edited, 0, 100000);
+        edited[100000] = 1;
+        edited[100001] = 2;
+        edited[100002] = 3;
+        System.arraycopy(original, 100000, edited, 100003, original.length - 100000);
+        BinaryValue second = store.storeValue(new ByteArrayInputStream(edited), false);
+        Set<String> chunksOfBoth = chunkNames();
+        assertTrue("Expected only a few new chunks", chunksOfBoth.size() - chunksOfFirst.size() <= 3);
+
+        assertArrayEquals(original, IoUtil.readBytes(store.getInputStream(first.getKey())));
+        assertArrayEquals(edited, IoUtil.readBytes(store.getInputStream(second.getKey())));
+        byte[] range = IoUtil.readBytes(store.getInputStream(second.getKey(), 99990L, 5000L));
+        assertArrayEquals(Arrays.copyOfRange(edited, 99990, 104990), range);
+    }
+
+    @Test
+    public void shouldRemoveOnlyTheChunksNoLongerUsedByAnyValue() throws Exception {
+        byte[] original = randomBytes(64 * 1024);
+        byte[] edited = original.clone();
+        edited[40000] ^= 0xFF;
+        BinaryValue first = store.storeValue(new ByteArrayInputStream(original), false);
+        Set<String> chunksOfFirst = chunkNames();
+        BinaryValue second = store.storeValue(new ByteArrayInputStream(edited), false);
+
+        store.markAsUnused(Arrays.asList(second.getKey()));
+        Thread.sleep(50);
+        store.removeValuesUnusedLongerThan(1, TimeUnit.MILLISECONDS);
+
+        assertFalse(store.hasBinary(second.getKey()));
+        assertTrue(store.hasBinary(first.getKey()));
+        assertEquals(chunksOfFirst, chunkNames());
+        assertArrayEquals(original, IoUtil.readBytes(store.getInputStream(first.getKey())));
+    }
+
+    private Set<String> chunkNames() {
+        Set<String> names = new HashSet<>();
+        collectNames(new File(directory, "chunks"), names);
+        return names;
+    }
+
+    private static void collectNames( File dir,
+                                      Set<String> names ) {
+        for (File child : dir.listFiles()) {
+            if (child.isDirectory()) {
+                collectNames(child, names);
+            } else {
+                names.add(child.getName());
+            }
+        }
+    }
+
+    private static byte[] randomBytes( int length ) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.common.util.FileUtil;
+import org.modeshape.jcr.RepositoryStatistics;
+import org.modeshape.jcr.api.monitor.ValueMetric;
+import org.modeshape.jcr.value.BinaryKey;
+import org.modeshape.jcr.value.BinaryValue;
+
+/**
+ * Runs the binary store tests against a {@link FileSystemBinaryStore} that tracks unused values in an {@link UnusedValueIndex}.
+ */
+public class IndexedFileSystemBinaryStoreTest extends AbstractBinaryStoreTest {
+
+    private static final int MIN_BINARY_SIZE = 20;
+
+    private File directory;
+    private FileSystemBinaryStore store;
+
+    @Before
+    public void beforeEach() {
+        directory = new File("target/indexed-fsbs/");
+        FileUtil.delete(directory);
+        directory.mkdirs();
+        store = newStore();
+    }
+
+    @After
+    public void afterEach() {
+        store.shutdown();
+        FileUtil.delete(directory);
+    }
+
+    private FileSystemBinaryStore newStore() {
+        FileSystemBinaryStore store = new FileSystemBinaryStore(directory);
+        store.setMinimumBinarySizeInBytes(MIN_BINARY_SIZE);
+        store.setMimeTypeDetector(DEFAULT_DETECTOR);
+        store.setUnusedValueIndexEnabled(true);
+        return store;
+    }
+
+    @Override
+    protected BinaryStore getBinaryStore() {
+        return store;
+    }
+
+    @Override
+    @Test( expected = BinaryStoreException.class )
+    public void shouldStoreZeroLengthBinary() throws BinaryStoreException, IOException {
+        // the file system binary store will not store a 0 byte size content
+        super.shouldStoreZeroLengthBinary();
+    }
+
+    @Test
+    public void shouldNotCreateTrashFilesForUnusedValues() throws Exception {
+        byte[] content = randomBytes(1000);
+        BinaryValue value = store.storeValue(new ByteArrayInputStream(content), false);
+        store.markAsUnused(Collections.singleton(value.getKey()));
+        assertTrue(new File(new File(directory, "trash"), "unused-index.db").exists());
+        assertFalse(new File(new File(directory, "trash"), value.getKey().toString().substring(0, 2)).exists());
+        assertFalse(store.getAllBinaryKeys().iterator().hasNext());
+
+        // Using the value again should remove it from the index ...
+        store.storeValue(new ByteArrayInputStream(content), false);
+        assertTrue(store.getAllBinaryKeys().iterator().hasNext());
+        store.removeValuesUnusedLongerThan(0, TimeUnit.MILLISECONDS);
+        assertTrue(store.hasBinary(value.getKey()));
+    }
+
+    @Test
+    public void shouldMigrateExistingTrashFilesIntoIndex() throws Exception {
+        // Create some unused values without the index ...
+        store.shutdown();
+        store = newStore();
+        store.setUnusedValueIndexEnabled(false);
+        List<BinaryKey> keys = new ArrayList<>();
+        for (int i = 0; i != 5; ++i) {
+            keys.add(store.storeValue(new ByteArrayInputStream(randomBytes(1000)), false).getKey());
+        }
+        store.markAsUnused(keys);
+        store.shutdown();
+        File trash = new File(directory, "trash");
+        assertTrue(trash.list().length > 0);
+
+        // Now enable the index and verify the markers have been migrated ...
+        store = newStore();
+        Thread.sleep(50);
+        store.removeValuesUnusedLongerThan(1, TimeUnit.MILLISECONDS);
+        for (BinaryKey key : keys) {
+            assertFalse(store.hasBinary(key));
+        }
+        // Only the index's own files should remain in the trash directory ...
+        for (String name : trash.list()) {
+            assertTrue(name, name.startsWith("unused-index.db"));
+        }
+    }
+
+    @Test
+    public void shouldResumeInterruptedMigrationOfTrashFiles() throws Exception {
+        store.shutdown();
+        store = newStore();
+        store.setUnusedValueIndexEnabled(false);
+        List<BinaryKey> keys = new ArrayList<>();
+        for (int i = 0; i != 5; ++i) {
+            keys.add(store.storeValue(new ByteArrayInputStream(randomBytes(1000)), false).getKey());
+        }
+        store.markAsUnused(keys);
+        store.shutdown();
+
+        // Simulate a migration that was interrupted after committing some of the markers ...
+        File trash = new File(directory, "trash");
+        UnusedValueIndex index = new UnusedValueIndex(trash);
+        assertFalse(index.isMigrated());
+        index.markUnused(keys.get(0), System.currentTimeMillis());
+        index.close();
+
+        store = newStore();
+        Thread.sleep(50);
+        store.removeValuesUnusedLongerThan(1, TimeUnit.MILLISECONDS);
+        for (BinaryKey key : keys) {
+            assertFalse(store.hasBinary(key));
+        }
+        for (String name : trash.list()) {
+            assertTrue(name, name.startsWith("unused-index.db"));
+        }
+        store.shutdown();
+        index = new UnusedValueIndex(trash);
+        assertTrue(index.isMigrated());
+        index.close();
+        store = newStore();
+    }
+
+    @Test
+    public void shouldOnlyRemoveValuesUnusedLongerThanGivenAgeAndReportProgress() throws Exception {
+        RepositoryStatistics statistics = mock(RepositoryStatistics.class);
+        store.setStatistics(statistics);
+        store.setGarbageCollectionRateLimit(1000);
+
+        List<BinaryKey> old = new ArrayList<>();
+        for (int i = 0; i != 20; ++i) {
+            old.add(store.storeValue(new ByteArrayInputStream(randomBytes(1000)), false).getKey());
+        }
+        store.markAsUnused(old);
+        Thread.sleep(200);
+        List<BinaryKey> recent = new ArrayList<>();
+        for (int i = 0; i != 10; ++i) {
+            recent.add(store.storeValue(new ByteArrayInputStream(randomBytes(1000)), false).getKey());
+        }
+        store.markAsUnused(recent);
+
+        store.removeValuesUnusedLongerThan(100, TimeUnit.MILLISECONDS);
+        for (BinaryKey key : old) {
+            assertFalse(store.hasBinary(key));
+        }
+        for (BinaryKey key : recent) {
+            assertTrue(store.hasBinary(key));
+        }
+        verify(statistics).increment(ValueMetric.BINARY_GC_REMOVED_COUNT, 20L);
+        verify(statistics).increment(ValueMetric.BINARY_GC_RECLAIMED_BYTES, 20 * 1000L);
+        verify(statistics, atLeastOnce()).set(eq(ValueMetric.BINARY_GC_PENDING_COUNT), eq(10L));
+
+        // The index should survive a restart ...
+        store.shutdown();
+        store = newStore();
+        store.removeValuesUnusedLongerThan(0, TimeUnit.MILLISECONDS);
+        for (BinaryKey key : recent) {
+            assertFalse(store.hasBinary(key));
+        }
+    }
+
+    private static byte[] randomBytes( int length ) {
+        byte[] bytes = new byte[length];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.common.util.FileUtil;
+import org.modeshape.common.util.IoUtil;
+import org.modeshape.jcr.value.BinaryKey;
+import org.modeshape.jcr.value.BinaryValue;
+
+/**
+ * Runs the binary store tests against a {@link FileSystemBinaryStore} that appends small and medium values to pack files.
+ */
+public class PackedFileSystemBinaryStoreTest extends AbstractBinaryStoreTest {
+
+    private static final int MIN_BINARY_SIZE = 20;
+    private static final long MAX_PACKED_SIZE = 64 * 1024L;
+    private static final long SEGMENT_SIZE = 16 * 1024L;
+
+    private File directory;
+    private FileSystemBinaryStore store;
+
+    @Before
+    public void beforeEach() {
+        directory = new File("target/packed-fsbs/");
+        FileUtil.delete(directory);
+        directory.mkdirs();
+        store = newStore();
+    }
+
+    @After
+    public void afterEach() {
+        store.shutdown();
+        FileUtil.delete(directory);
+    }
+
+    private FileSystemBinaryStore newStore() {
+        FileSystemBinaryStore store = new FileSystemBinaryStore(directory);
+        store.setMinimumBinarySizeInBytes(MIN_BINARY_SIZE);
+        store.setMaximumPackedBinarySizeInBytes(MAX_PACKED_SIZE);
+        store.setPackSegmentSizeInBytes(SEGMENT_SIZE);
+        store.setMimeTypeDetector(DEFAULT_DETECTOR);
+        return store;
+    }
+
+    @Override
+    protected BinaryStore getBinaryStore() {
+        return store;
+    }
+
+    @Override
+    @Test( expected = BinaryStoreException.class )
+    public void shouldStoreZeroLengthBinary() throws BinaryStoreException, IOException {
+        // the file system binary store will not store a 0 byte size content
+        super.shouldStoreZeroLengthBinary();
+    }
+
+    @Test
+    public void shouldStoreSmallValuesInPackFilesAndLargeValuesInTheirOwnFiles() throws Exception {
+        BinaryValue small = store.storeValue(new ByteArrayInputStream(randomBytes(1000)), false);
+        BinaryValue large = store.storeValue(new ByteArrayInputStream(randomBytes((int)MAX_PACKED_SIZE + 1)), false);
+        assertFalse(store.findFile(directory, small.getKey(), false).exists());
+        assertTrue(store.findFile(directory, large.getKey(), false).exists());
+        assertTrue(new File(directory, "packs").isDirectory());
+        assertTrue(store.hasBinary(small.getKey()));
+        assertTrue(store.hasBinary(large.getKey()));
+    }
+
+    @Test
+    public void shouldReclaimSpaceOfRemovedValuesAndSurviveRestart() throws Exception {
+        List<byte[]> contents = new ArrayList<>();
+        List<BinaryKey> keys = new ArrayList<>();
+        for (int i = 0; i != 40; ++i) {
+            byte[] content = randomBytes(2000);
+            contents.add(content);
+            keys.add(store.storeValue(new ByteArrayInputStream(content), false).getKey());
+        }
+        File packs = new File(directory, "packs");
+        long sizeBefore = packSize(packs);
+
+        // Mark all but every tenth value as unused and remove them ...
+        List<BinaryKey> unused = new ArrayList<>();
+        for (int i = 0; i != keys.size(); ++i) {
+            if (i % 10 != 0) unused.add(keys.get(i));
+        }
+        store.markAsUnused(unused);
+        Thread.sleep(50);
+        store.removeValuesUnusedLongerThan(1, TimeUnit.MILLISECONDS);
+        // The pack files are compacted in the background ...
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (packSize(packs) >= sizeBefore / 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50L);
+        }
+        assertTrue("Expected the pack files to be compacted", packSize(packs) < sizeBefore / 2);
+
+        for (int i = 0; i != keys.size(); ++i) {
+            assertEquals(i % 10 == 0, store.hasBinary(keys.get(i)));
+        }
+
+        // Re-open the store, and then again after losing the index ...
+        store.shutdown();
+        store = newStore();
+        assertSurvivors(keys, contents);
+        store.shutdown();
+        assertTrue(new File(packs, "pack-index.db").delete());
+        store = newStore();
+        assertSurvivors(keys, contents);
+    }
+
+    @Test
+    public void shouldRebuildIndexWhenCurrentSegmentIsShorterThanIndexed() throws Exception {
+        byte[] first = randomBytes(1000);
+        BinaryKey firstKey = store.storeValue(new ByteArrayInputStream(first), false).getKey();
+        BinaryKey lastKey = store.storeValue(new ByteArrayInputStream(randomBytes(1000)), false).getKey();
+        store.shutdown();
+
+        // Lose the end of the last value, as if it had not reached the disk before a crash ...
+        File segment = new File(new File(directory, "packs"), "segment-00000000.pack");
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 10);
+        }
+        store = newStore();
+        assertTrue(store.hasBinary(firstKey));
+        assertFalse(store.hasBinary(lastKey));
+        assertArrayEquals(first, IoUtil.readBytes(store.getInputStream(firstKey)));
+    }
+
+    private void assertSurvivors( List<BinaryKey> keys,
+                                  List<byte[]> contents ) throws Exception {
+        for (int i = 0; i < keys.size(); i += 10) {
+            assertArrayEquals(contents.get(i), IoUtil.readBytes(store.getInputStream(keys.get(i))));
+        }
+        List<BinaryKey> expected = new ArrayList<>();
+        for (int i = 0; i < keys.size(); i += 10) {
+            expected.add(keys.get(i));
+        }
+        List<BinaryKey> actual = new ArrayList<>();
+        store.getAllBinaryKeys().forEach(actual::add);
+        assertTrue(actual.containsAll(expected));
+        assertEquals(expected.size(), actual.size());
+    }
+
+    private static long packSize( File packs ) {
+        long size = 0L;
+        for (File file : packs.listFiles()) {
+            if (file.getName().endsWith(".pack")) size += file.length();
+        }
+        return size;
+    }
+
+    private static byte[] randomBytes( int length ) {
+        byte[] bytes = new byte[length];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * ModeShape (http://www.modeshape.org)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.modeshape.jcr.value.binary;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.modeshape.common.util.FileUtil;
+import org.modeshape.common.util.IoUtil;
+import org.modeshape.jcr.value.BinaryKey;
+
+public class StagedContentTest {
+
+    private File directory;
+
+    @Before
+    public void beforeEach() {
+        directory = new File("target/staged-content/");
+        FileUtil.delete(directory);
+    }
+
+    @After
+    public void afterEach() {
+        FileUtil.delete(directory);
+    }
+
+    @Test
+    public void shouldKeepContentUpToTheLimitInMemory() throws Exception {
+        for (int size : new int[] {0, 1, 100, 8192, 8193, 20000}) {
+            byte[] content = randomBytes(size);
+            try (StagedContent staged = StagedContent.stage(new ByteArrayInputStream(content), 20000, directory)) {
+                assertTrue(staged.isInMemory());
+                assertNull(staged.getFile());
+                assertEquals(size, staged.getSize());
+                assertEquals(BinaryKey.keyFor(content), staged.getKey());
+                assertArrayEquals(content, staged.getContent());
+            }
+        }
+        assertFalse(directory.exists());
+    }
+
+    @Test
+    public void shouldWriteContentOverTheLimitToStagingFile() throws Exception {
+        byte[] content = randomBytes(300000);
+        File file = null;
+        try (StagedContent staged = StagedContent.stage(new ByteArrayInputStream(content), 20000, directory)) {
+            assertFalse(staged.isInMemory());
+            file = staged.getFile();
+            assertEquals(directory.getAbsoluteFile(), file.getParentFile().getAbsoluteFile());
+            assertEquals(content.length, staged.getSize());
+            assertEquals(BinaryKey.keyFor(content), staged.getKey());
+            assertArrayEquals(content, IoUtil.readBytes(staged.openStream()));
+        }
+        assertFalse(file.exists());
+    }
+
+    private static byte[] randomBytes( int length ) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
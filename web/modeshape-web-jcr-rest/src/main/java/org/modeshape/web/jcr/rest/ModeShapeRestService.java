@@ -18,7 +18,6 @@ package org.modeshape.web.jcr.rest;
 
 import java.io.File;
 import java.io.InputStream;
-import javax.jcr.Binary;
 import javax.jcr.Property;
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
@@ -29,6 +28,7 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
@@ -296,8 +296,9 @@ public final class ModeShapeRestService {
      * @param mimeType an optional {@link String} representing the "already-known" mime-type of the binary. Can be {@code null}
      * @param contentDisposition an optional {@link String} representing the client-preferred content disposition of the respose.
      *        Can be {@code null}
-     * @return the binary stream of the requested binary property or NOT_FOUND if either the property isn't found or it isn't a
-     *         binary
+     * @param range an optional HTTP {@code Range} header, requesting a single range of bytes of the content. Can be {@code null}
+     * @return the binary stream of the requested binary property (or of the requested range, with a PARTIAL_CONTENT status) or
+     *         NOT_FOUND if either the property isn't found or it isn't a binary
      * @throws RepositoryException if any JCR related operation fails, including the case when the path to the property isn't
      *         valid.
      */
@@ -309,13 +310,13 @@ public final class ModeShapeRestService {
                                @PathParam( "workspaceName" ) String workspaceName,
                                @PathParam( "path" ) String path,
                                @QueryParam( "mimeType" ) String mimeType,
-                               @QueryParam( "contentDisposition" ) String contentDisposition ) throws RepositoryException {
+                               @QueryParam( "contentDisposition" ) String contentDisposition,
+                               @HeaderParam( "Range" ) String range ) throws RepositoryException {
         Property binaryProperty = binaryHandler.getBinaryProperty(request, repositoryName, workspaceName, path);
         if (binaryProperty.getType() != PropertyType.BINARY) {
             return Response.status(Response.Status.NOT_FOUND)
                            .entity(new RestException("The property " + binaryProperty.getPath() + " is not a binary")).build();
         }
-        Binary binary = binaryProperty.getBinary();
         if (StringUtil.isBlank(mimeType)) {
             mimeType = binaryHandler.getDefaultMimeType(binaryProperty);
         }
@@ -323,7 +324,7 @@ public final class ModeShapeRestService {
             contentDisposition = binaryHandler.getDefaultContentDisposition(binaryProperty);
         }
 
-        return Response.ok(binary.getStream(), mimeType).header("Content-Disposition", contentDisposition).build();
+        return binaryHandler.getBinaryContent(binaryProperty, range, mimeType, contentDisposition);
     }
 
     /**
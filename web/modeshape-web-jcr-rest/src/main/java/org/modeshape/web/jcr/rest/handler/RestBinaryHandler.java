@@ -18,6 +18,9 @@ package org.modeshape.web.jcr.rest.handler;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
 import java.util.List;
 import javax.jcr.Binary;
@@ -27,8 +30,10 @@ import javax.jcr.Property;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import org.modeshape.common.util.CheckArg;
 import org.modeshape.common.util.StringUtil;
 import org.modeshape.jcr.api.JcrConstants;
@@ -47,6 +52,10 @@ public final class RestBinaryHandler extends AbstractHandler {
      */
     public static final String DEFAULT_CONTENT_DISPOSITION_PREFIX = "attachment;filename=";
     private static final String DEFAULT_MIME_TYPE = MediaType.APPLICATION_OCTET_STREAM;
+    private static final String BYTES_UNIT = "bytes";
+    private static final int PARTIAL_CONTENT = 206;
+    private static final int RANGE_NOT_SATISFIABLE = 416;
+    private static final int COPY_BUFFER_SIZE = 8192;
 
     /**
      * Returns a binary {@link Property} for the given repository, workspace and path.
@@ -101,6 +110,124 @@ public final class RestBinaryHandler extends AbstractHandler {
         }
     }
 
+    /**
+     * Returns a response which writes the content of a binary property, or the single range of it requested by an HTTP
+     * {@code Range} header. The content is transferred directly from the binary store to the response where the store supports
+     * it, and a range is read starting at its first byte rather than by skipping over the preceding bytes.
+     *
+     * @param binaryProperty a non-null {@link Property} of type {@link javax.jcr.PropertyType#BINARY}
+     * @param range the value of the HTTP {@code Range} header; may be {@code null} if the whole content is requested
+     * @param mimeType a non-null {@link String} representing the mime-type of the content
+     * @param contentDisposition a non-null {@link String} representing the content disposition of the response
+     * @return a {@link Response} object, never {@code null}
+     * @throws RepositoryException if any JCR related operation involving the binary property fail.
+     */
+    public Response getBinaryContent( Property binaryProperty,
+                                      String range,
+                                      String mimeType,
+                                      String contentDisposition ) throws RepositoryException {
+        final Binary binary = binaryProperty.getBinary();
+        long size = binary.getSize();
+        long first = 0L;
+        long last = size - 1;
+        boolean partial = false;
+        if (!StringUtil.isBlank(range)) {
+            long[] bounds = parseRange(range, size);
+            if (bounds != null && bounds.length == 0) {
+                return Response.status(RANGE_NOT_SATISFIABLE).header("Content-Range", BYTES_UNIT + " */" + size).build();
+            }
+            if (bounds != null) {
+                first = bounds[0];
+                last = bounds[1];
+                partial = true;
+            }
+            // otherwise the header is ignored and the whole content is returned, as allowed by RFC 7233
+        }
+        final long offset = first;
+        final long length = last - first + 1;
+        StreamingOutput content = new StreamingOutput() {
+            @Override
+            public void write( OutputStream output ) throws IOException, WebApplicationException {
+                writeContent(binary, offset, length, output);
+            }
+        };
+        Response.ResponseBuilder builder = partial ? Response.status(PARTIAL_CONTENT)
+                                                             .header("Content-Range", BYTES_UNIT + " " + first + "-" + last + "/"
+                                                                                      + size) : Response.ok();
+        return builder.entity(content)
+                      .type(mimeType)
+                      .header("Accept-Ranges", BYTES_UNIT)
+                      .header("Content-Length", length)
+                      .header("Content-Disposition", contentDisposition)
+                      .build();
+    }
+
+    /**
+     * Parses a single byte range of an HTTP {@code Range} header.
+     *
+     * @param range the value of the header; may not be null
+     * @param size the size of the content
+     * @return the first and last byte positions of the range; an empty array if the range cannot be satisfied; or {@code null}
+     *         if the header is not a single, valid byte range and should be ignored
+     */
+    protected static long[] parseRange( String range,
+                                        long size ) {
+        String value = range.trim();
+        if (!value.startsWith(BYTES_UNIT + "=")) return null;
+        String spec = value.substring(BYTES_UNIT.length() + 1).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0) {
+            // Multiple ranges would require a multipart response, so serve the whole content instead ...
+            return null;
+        }
+        try {
+            String start = spec.substring(0, dash).trim();
+            String end = spec.substring(dash + 1).trim();
+            if (start.isEmpty()) {
+                // A suffix range, with the number of bytes at the end of the content ...
+                long suffix = Long.parseLong(end);
+                if (suffix < 0L) return null;
+                if (suffix == 0L || size == 0L) return new long[0];
+                return new long[] {Math.max(0L, size - suffix), size - 1};
+            }
+            long first = Long.parseLong(start);
+            long last = end.isEmpty() ? size - 1 : Long.parseLong(end);
+            if (first < 0L || last < first) return null;
+            if (first >= size) return new long[0];
+            return new long[] {first, Math.min(last, size - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void writeContent( Binary binary,
+                                      long offset,
+                                      long length,
+                                      OutputStream output ) throws IOException {
+        try {
+            if (binary instanceof org.modeshape.jcr.api.Binary) {
+                // Let the binary store read just the range. The content avoids a copy through the heap only when the container's
+                // stream is itself a channel; any other stream is written through the buffer of an adapting channel ...
+                WritableByteChannel channel = output instanceof WritableByteChannel ? (WritableByteChannel)output
+                                                                                    : Channels.newChannel(output);
+                ((org.modeshape.jcr.api.Binary)binary).transferTo(offset, length, channel);
+                return;
+            }
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                int count = binary.read(buffer, position);
+                if (count <= 0) break;
+                count = (int)Math.min(count, end - position);
+                output.write(buffer, 0, count);
+                position += count;
+            }
+        } catch (RepositoryException e) {
+            throw new WebApplicationException(e);
+        }
+    }
+
     /**
      * Updates the {@link Property property} at the given path with the content from the given {@link InputStream}.
      *